@@ -29,30 +29,6 @@ import org.onesec.raven.ivr.Codec;
  */
 public class AlawDecoder extends AudioCodec {
 
-    private static final byte[] lutTableL = new byte[256];
-    private static final byte[] lutTableH = new byte[256];
-    
-    static {
-        for (int i = 0; i < 256; ++i) {
-            int input = i ^ 0x55;
-            int mantissa = (input & 0xF) << 4;
-            int segment = (input & 0x70) >> 4;
-            int value = mantissa + 8;
-
-            if (segment >= 1) {
-                value += 256;
-            }
-            if (segment > 1) {
-                value <<= segment - 1;
-            }
-            if ((input & 0x80) == 0) {
-                value = -value;
-            }
-            lutTableL[i] = (byte) value;
-            lutTableH[i] = (byte) (value >> 8);
-        }        
-    }
-
     public AlawDecoder() {
         this.supportedInputFormats = new AudioFormat[]{new AudioFormat(AudioFormat.ALAW)};
         this.defaultOutputFormats = new AudioFormat[]{new AudioFormat(AudioFormat.LINEAR)};
@@ -87,13 +63,7 @@ public class AlawDecoder extends AudioCodec {
         int inpLength = inputBuffer.getLength();
         int outLength = 2 * inpLength;
 
-        int inOffset = inputBuffer.getOffset();
-        int outOffset = outputBuffer.getOffset();
-        for (int i = 0; i < inpLength; ++i) {
-            int temp = inData[(inOffset++)] & 0xFF;
-            outData[(outOffset++)] = lutTableL[temp];
-            outData[(outOffset++)] = lutTableH[temp];
-        }
+        G711.decodeAlaw(inData, inputBuffer.getOffset(), outData, outputBuffer.getOffset(), inpLength);
 
         updateOutput(outputBuffer, this.outputFormat, outLength, 0);
 
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec;
+
+/**
+ * Streaming in-band DTMF detector (8000 Hz, 16 bit samples). The Goertzel filters of the eight DTMF
+ * frequencies are updated sample by sample, so the stream may be passed by the frames of any size
+ * (10, 20, 30 ms...). Every {@link #BLOCK_SIZE} samples the block is classified:
+ * <ul>
+ *  <li>the energy of the strongest row and column tones must be above the threshold;</li>
+ *  <li>the twist (ratio of the row and column tones energy) must be in the limits;</li>
+ *  <li>the strongest tones must be above the other tones of their groups on {@link #RELATIVE_PEAK};</li>
+ *  <li>the two tones must carry the most of the block energy (speech and noise are rejected here).</li>
+ * </ul>
+ * The digit is reported when it is detected in two consecutive blocks (~25 ms) and is reported once
+ * until two consecutive blocks without it are received. The detector does not allocate memory after
+ * the creation.
+ *
+ * @author Mikhail Titov
+ */
+public class DtmfDetector {
+    public final static int SAMPLE_RATE = 8000;
+    public final static int BLOCK_SIZE = 102;
+    public final static char NO_DIGIT = 0;
+    /**
+     * Minimum amplitude of the each tone (-38 dBFS)
+     */
+    public final static double MIN_TONE_AMPLITUDE = 400;
+    /**
+     * Maximum energy ratio of the row tone to the column tone (8 dB)
+     */
+    public final static double MAX_NORMAL_TWIST = 6.3;
+    /**
+     * Maximum energy ratio of the column tone to the row tone (4 dB)
+     */
+    public final static double MAX_REVERSE_TWIST = 2.5;
+    /**
+     * Minimum energy ratio of the detected tone to the other tones of the group (6 dB)
+     */
+    public final static double RELATIVE_PEAK = 4.;
+    /**
+     * Minimum part of the block energy which the detected tones must carry
+     */
+    public final static double MIN_TONES_TO_TOTAL_ENERGY = 0.8;
+
+    private final static double[] ROW_FREQS = {697, 770, 852, 941};
+    private final static double[] COL_FREQS = {1209, 1336, 1477, 1633};
+    private final static char[][] DTMF_CODES = new char[][]{
+            {'1','2','3','A'},
+            {'4','5','6','B'},
+            {'7','8','9','C'},
+            {'*','0','#','D'}
+    };
+    private final static float[] COEFFS = new float[8];
+    //the energy of the tone with the minimum amplitude in the Goertzel filter output: (A*N/2)^2
+    private final static float MIN_TONE_ENERGY =
+            (float) (MIN_TONE_AMPLITUDE*MIN_TONE_AMPLITUDE*BLOCK_SIZE*BLOCK_SIZE/4);
+
+    static {
+        for (int i=0; i<4; ++i) {
+            COEFFS[i] = (float) (2*Math.cos(2*Math.PI*ROW_FREQS[i]/SAMPLE_RATE));
+            COEFFS[i+4] = (float) (2*Math.cos(2*Math.PI*COL_FREQS[i]/SAMPLE_RATE));
+        }
+    }
+
+    private final DtmfListener listener;
+    private final float[] s1 = new float[8];
+    private final float[] s2 = new float[8];
+    private final float[] energies = new float[8];
+    private float blockEnergy;
+    private int samplesInBlock;
+    private char lastHit = NO_DIGIT;
+    private char digit = NO_DIGIT;
+    private long detectedCount;
+
+    public DtmfDetector(DtmfListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Processes <b>samples</b> 16 bit linear samples
+     */
+    public void processLinear(final byte[] data, int offset, final int samples, final boolean bigEndian) {
+        if (bigEndian)
+            for (int i=0; i<samples; ++i, offset+=2)
+                process((short) ((data[offset] << 8) | (data[offset+1] & 0xFF)));
+        else
+            for (int i=0; i<samples; ++i, offset+=2)
+                process((short) ((data[offset] & 0xFF) | (data[offset+1] << 8)));
+    }
+
+    /**
+     * Processes <b>samples</b> A-law samples
+     */
+    public void processAlaw(final byte[] data, final int offset, final int samples) {
+        for (int i=0; i<samples; ++i)
+            process(G711.alaw2linear(data[offset+i]));
+    }
+
+    /**
+     * Processes <b>samples</b> u-law samples
+     */
+    public void processUlaw(final byte[] data, final int offset, final int samples) {
+        for (int i=0; i<samples; ++i)
+            process(G711.ulaw2linear(data[offset+i]));
+    }
+
+    /**
+     * Returns the digit being received now or {@link #NO_DIGIT}
+     */
+    public char getDigit() {
+        return digit;
+    }
+
+    /**
+     * Returns the number of the reported digits
+     */
+    public long getDetectedCount() {
+        return detectedCount;
+    }
+
+    public void reset() {
+        for (int i=0; i<8; ++i)
+            s1[i] = s2[i] = 0f;
+        blockEnergy = 0f;
+        samplesInBlock = 0;
+        lastHit = digit = NO_DIGIT;
+    }
+
+    private void process(final short sample) {
+        final float x = sample;
+        blockEnergy += x*x;
+        for (int i=0; i<8; ++i) {
+            final float s = COEFFS[i]*s1[i] - s2[i] + x;
+            s2[i] = s1[i];
+            s1[i] = s;
+        }
+        if (++samplesInBlock==BLOCK_SIZE)
+            blockCompleted();
+    }
+
+    private void blockCompleted() {
+        for (int i=0; i<8; ++i) {
+            energies[i] = s1[i]*s1[i] + s2[i]*s2[i] - COEFFS[i]*s1[i]*s2[i];
+            s1[i] = s2[i] = 0f;
+        }
+        final char hit = classify();
+        blockEnergy = 0f;
+        samplesInBlock = 0;
+        if (hit==lastHit && hit!=digit) {
+            digit = hit;
+            if (hit!=NO_DIGIT) {
+                ++detectedCount;
+                if (listener!=null)
+                    listener.dtmfDetected(hit);
+            }
+        }
+        lastHit = hit;
+    }
+
+    private char classify() {
+        final int row = maxIndex(0);
+        final int col = maxIndex(4);
+        final float rowEnergy = energies[row];
+        final float colEnergy = energies[col];
+        if (rowEnergy<MIN_TONE_ENERGY || colEnergy<MIN_TONE_ENERGY)
+            return NO_DIGIT;
+        if (rowEnergy>colEnergy*MAX_NORMAL_TWIST || colEnergy>rowEnergy*MAX_REVERSE_TWIST)
+            return NO_DIGIT;
+        for (int i=0; i<4; ++i) {
+            if (i!=row && energies[i]*RELATIVE_PEAK>rowEnergy)
+                return NO_DIGIT;
+            if (i+4!=col && energies[i+4]*RELATIVE_PEAK>colEnergy)
+                return NO_DIGIT;
+        }
+        //the energy of the pure tone in the filter output is blockEnergy*N/2
+        if (rowEnergy+colEnergy < MIN_TONES_TO_TOTAL_ENERGY*blockEnergy*BLOCK_SIZE/2)
+            return NO_DIGIT;
+        return DTMF_CODES[row][col-4];
+    }
+
+    private int maxIndex(final int from) {
+        int ind = from;
+        for (int i=from+1; i<from+4; ++i)
+            if (energies[i]>energies[ind])
+                ind = i;
+        return ind;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven G.711 A-law and u-law codec kernels. Encoding is the one lookup in the 64K table indexed by
+ * the 16 bit linear sample, decoding is the one lookup in the 256 entries table. The tables are built by
+ * the reference algorithms (Sun Microsystems g711.c) so the results are bit exact with them.
+ *
+ * <p/>Bulk methods work in the simple counted loops without calls and allocations (see {@link PcmUtils}).
+ *
+ * @author Mikhail Titov
+ */
+public class G711 {
+    private final static int QUANT_MASK = 0xf;
+    private final static int SEG_SHIFT = 4;
+    private final static int SEG_MASK = 0x70;
+    private final static int SIGN_BIT = 0x80;
+    private final static int ULAW_BIAS = 0x84;
+    private final static int ULAW_CLIP = 8159;
+    private final static short[] ALAW_SEG_END = {0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF, 0x3FFF, 0x7FFF};
+    private final static short[] ULAW_SEG_END = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+
+    private final static byte[] LINEAR_TO_ALAW = new byte[65536];
+    private final static byte[] LINEAR_TO_ULAW = new byte[65536];
+    private final static short[] ALAW_TO_LINEAR = new short[256];
+    private final static short[] ULAW_TO_LINEAR = new short[256];
+
+    static {
+        for (int i=0; i<65536; ++i) {
+            LINEAR_TO_ALAW[i] = computeLinear2alaw((short)i);
+            LINEAR_TO_ULAW[i] = computeLinear2ulaw((short)i);
+        }
+        for (int i=0; i<256; ++i) {
+            ALAW_TO_LINEAR[i] = computeAlaw2linear(i);
+            ULAW_TO_LINEAR[i] = computeUlaw2linear(i);
+        }
+    }
+
+    private G711() {}
+
+    public static byte linear2alaw(final int sample) {
+        return LINEAR_TO_ALAW[sample & 0xFFFF];
+    }
+
+    public static byte linear2ulaw(final int sample) {
+        return LINEAR_TO_ULAW[sample & 0xFFFF];
+    }
+
+    public static short alaw2linear(final byte code) {
+        return ALAW_TO_LINEAR[code & 0xFF];
+    }
+
+    public static short ulaw2linear(final byte code) {
+        return ULAW_TO_LINEAR[code & 0xFF];
+    }
+
+    /**
+     * Encodes <b>samples</b> 16 bit samples from the <b>src</b> to A-law
+     */
+    public static void encodeAlaw(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset,
+            final int samples, final boolean bigEndian)
+    {
+        encode(LINEAR_TO_ALAW, src, srcOffset, dst, dstOffset, samples, bigEndian);
+    }
+
+    /**
+     * Encodes <b>samples</b> 16 bit samples from the <b>src</b> to u-law
+     */
+    public static void encodeUlaw(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset,
+            final int samples, final boolean bigEndian)
+    {
+        encode(LINEAR_TO_ULAW, src, srcOffset, dst, dstOffset, samples, bigEndian);
+    }
+
+    /**
+     * Decodes <b>samples</b> A-law samples from the <b>src</b> to the little endian 16 bit samples
+     */
+    public static void decodeAlaw(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset,
+            final int samples)
+    {
+        decode(ALAW_TO_LINEAR, src, srcOffset, dst, dstOffset, samples);
+    }
+
+    /**
+     * Decodes <b>samples</b> u-law samples from the <b>src</b> to the little endian 16 bit samples
+     */
+    public static void decodeUlaw(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset,
+            final int samples)
+    {
+        decode(ULAW_TO_LINEAR, src, srcOffset, dst, dstOffset, samples);
+    }
+
+    /**
+     * Encodes the 16 bit samples (in the byte order of the <b>src</b>) remaining in the <b>src</b> to A-law
+     * while the <b>dst</b> has the space
+     */
+    public static void encodeAlaw(final ByteBuffer src, final ByteBuffer dst) {
+        encode(LINEAR_TO_ALAW, src, dst);
+    }
+
+    /**
+     * Encodes the 16 bit samples (in the byte order of the <b>src</b>) remaining in the <b>src</b> to u-law
+     * while the <b>dst</b> has the space
+     */
+    public static void encodeUlaw(final ByteBuffer src, final ByteBuffer dst) {
+        encode(LINEAR_TO_ULAW, src, dst);
+    }
+
+    /**
+     * Decodes A-law samples remaining in the <b>src</b> to the 16 bit samples (in the byte order of the
+     * <b>dst</b>) while the <b>dst</b> has the space
+     */
+    public static void decodeAlaw(final ByteBuffer src, final ByteBuffer dst) {
+        decode(ALAW_TO_LINEAR, src, dst);
+    }
+
+    /**
+     * Decodes u-law samples remaining in the <b>src</b> to the 16 bit samples (in the byte order of the
+     * <b>dst</b>) while the <b>dst</b> has the space
+     */
+    public static void decodeUlaw(final ByteBuffer src, final ByteBuffer dst) {
+        decode(ULAW_TO_LINEAR, src, dst);
+    }
+
+    private static void encode(final byte[] table, final byte[] src, int srcOffset, final byte[] dst,
+            final int dstOffset, final int samples, final boolean bigEndian)
+    {
+        if (bigEndian)
+            for (int i=0; i<samples; ++i, srcOffset+=2)
+                dst[dstOffset+i] = table[((src[srcOffset] & 0xFF) << 8) | (src[srcOffset+1] & 0xFF)];
+        else
+            for (int i=0; i<samples; ++i, srcOffset+=2)
+                dst[dstOffset+i] = table[(src[srcOffset] & 0xFF) | ((src[srcOffset+1] & 0xFF) << 8)];
+    }
+
+    private static void decode(final short[] table, final byte[] src, final int srcOffset, final byte[] dst,
+            int dstOffset, final int samples)
+    {
+        for (int i=0; i<samples; ++i, dstOffset+=2) {
+            final short val = table[src[srcOffset+i] & 0xFF];
+            dst[dstOffset] = (byte) val;
+            dst[dstOffset+1] = (byte) (val >> 8);
+        }
+    }
+
+    private static void encode(final byte[] table, final ByteBuffer src, final ByteBuffer dst) {
+        final int samples = Math.min(src.remaining() >> 1, dst.remaining());
+        for (int i=0; i<samples; ++i)
+            dst.put(table[src.getShort() & 0xFFFF]);
+    }
+
+    private static void decode(final short[] table, final ByteBuffer src, final ByteBuffer dst) {
+        final int samples = Math.min(src.remaining(), dst.remaining() >> 1);
+        for (int i=0; i<samples; ++i)
+            dst.putShort(table[src.get() & 0xFF]);
+    }
+
+    /*
+     * linear2alaw() - Convert a 16-bit linear PCM value to 8-bit A-law (g711.c, Sun Microsystems, Inc.)
+     *
+     *      Linear Input Code   Compressed Code
+     *  ------------------------    ---------------
+     *  0000000wxyza            000wxyz
+     *  0000001wxyza            001wxyz
+     *  000001wxyzab            010wxyz
+     *  00001wxyzabc            011wxyz
+     *  0001wxyzabcd            100wxyz
+     *  001wxyzabcde            101wxyz
+     *  01wxyzabcdef            110wxyz
+     *  1wxyzabcdefg            111wxyz
+     */
+    private static byte computeLinear2alaw(short pcm_val) {
+        int mask;
+        if (pcm_val >= 0)
+            mask = 0xD5; /* sign (7th) bit = 1 */
+        else {
+            mask = 0x55; /* sign bit = 0 */
+            pcm_val = (short) (-pcm_val - 8);
+        }
+        int seg = search(pcm_val, ALAW_SEG_END);
+        if (seg >= 8) /* out of range, return maximum value. */
+            return (byte) (0x7F ^ mask);
+        int aval = seg << SEG_SHIFT;
+        if (seg < 2)
+            aval |= (pcm_val >> 4) & QUANT_MASK;
+        else
+            aval |= (pcm_val >> (seg + 3)) & QUANT_MASK;
+        return (byte) (aval ^ mask);
+    }
+
+    /*
+     * linear2ulaw() - Convert a 16-bit linear PCM value to 8-bit u-law (g711.c, Sun Microsystems, Inc.)
+     */
+    private static byte computeLinear2ulaw(short pcm_val) {
+        int mask;
+        int val = pcm_val >> 2;
+        if (val < 0) {
+            val = -val;
+            mask = 0x7F;
+        } else
+            mask = 0xFF;
+        if (val > ULAW_CLIP)
+            val = ULAW_CLIP;
+        val += ULAW_BIAS >> 2;
+        int seg = search(val, ULAW_SEG_END);
+        if (seg >= 8)
+            return (byte) (0x7F ^ mask);
+        int uval = (seg << 4) | ((val >> (seg + 1)) & 0xF);
+        return (byte) (uval ^ mask);
+    }
+
+    /*
+     * The A-law decoding used by AlawDecoder before the tables were moved here
+     */
+    private static short computeAlaw2linear(int code) {
+        int input = code ^ 0x55;
+        int mantissa = (input & 0xF) << 4;
+        int segment = (input & 0x70) >> 4;
+        int value = mantissa + 8;
+        if (segment >= 1)
+            value += 256;
+        if (segment > 1)
+            value <<= segment - 1;
+        if ((input & 0x80) == 0)
+            value = -value;
+        return (short) value;
+    }
+
+    /*
+     * ulaw2linear() - Convert a u-law value to 16-bit linear PCM (g711.c, Sun Microsystems, Inc.)
+     */
+    private static short computeUlaw2linear(int code) {
+        int u_val = ~code;
+        int t = ((u_val & QUANT_MASK) << 3) + ULAW_BIAS;
+        t <<= (u_val & SEG_MASK) >> SEG_SHIFT;
+        return (short) ((u_val & SIGN_BIT) != 0 ? (ULAW_BIAS - t) : (t - ULAW_BIAS));
+    }
+
+    private static int search(int val, short[] table) {
+        for (int i=0; i<table.length; ++i)
+            if (val <= table[i])
+                return i;
+        return table.length;
+    }
+}
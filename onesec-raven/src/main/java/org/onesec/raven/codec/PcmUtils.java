@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec;
+
+/**
+ * Bulk operations over the 16 bit signed little endian linear PCM. All methods are working in the
+ * simple counted loops without calls and allocations, so JIT can unroll (and vectorize) them.
+ *
+ * @author Mikhail Titov
+ */
+public class PcmUtils {
+    public final static int MAX_SAMPLE = Short.MAX_VALUE;
+    public final static int MIN_SAMPLE = Short.MIN_VALUE;
+
+    private PcmUtils() {}
+
+    /**
+     * Decodes <b>samples</b> little endian 16 bit samples from the <b>src</b> to the <b>dst</b>
+     * @return the maximum absolute value of the decoded samples
+     */
+    public static int decode(final byte[] src, int srcOffset, final int[] dst, int dstOffset, final int samples) {
+        int max = 0;
+        for (int i=0; i<samples; ++i, srcOffset+=2) {
+            int val = (short) ((src[srcOffset] & 0xFF) | (src[srcOffset+1] << 8));
+            dst[dstOffset+i] = val;
+            int abs = val<0? -val : val;
+            if (abs>max)
+                max = abs;
+        }
+        return max;
+    }
+
+    /**
+     * Encodes <b>samples</b> samples from the <b>src</b> to the little endian 16 bit samples. Samples out of
+     * the 16 bit range are saturated.
+     */
+    public static void encode(final int[] src, int srcOffset, final byte[] dst, int dstOffset, final int samples) {
+        for (int i=0; i<samples; ++i, dstOffset+=2) {
+            int val = saturate(src[srcOffset+i]);
+            dst[dstOffset] = (byte) val;
+            dst[dstOffset+1] = (byte) (val >> 8);
+        }
+    }
+
+    public static int saturate(int val) {
+        return val>MAX_SAMPLE? MAX_SAMPLE : (val<MIN_SAMPLE? MIN_SAMPLE : val);
+    }
+
+    /**
+     * dst[i] += src[i]
+     */
+    public static void add(final int[] dst, final int[] src, final int len) {
+        for (int i=0; i<len; ++i)
+            dst[i] += src[i];
+    }
+
+    /**
+     * dst[i] = saturate(dst[i] + src[i])
+     */
+    public static void addSaturated(final int[] dst, final int[] src, final int len) {
+        for (int i=0; i<len; ++i)
+            dst[i] = saturate(dst[i] + src[i]);
+    }
+
+    /**
+     * dst[i] = a[i] - b[i]
+     */
+    public static void subtract(final int[] dst, final int[] a, final int[] b, final int len) {
+        for (int i=0; i<len; ++i)
+            dst[i] = a[i] - b[i];
+    }
+
+    /**
+     * data[i] /= divisor
+     * @return the maximum absolute value of the result
+     */
+    public static int divide(final int[] data, final int len, final int divisor) {
+        int max = 0;
+        for (int i=0; i<len; ++i) {
+            int val = data[i] / divisor;
+            data[i] = val;
+            int abs = val<0? -val : val;
+            if (abs>max)
+                max = abs;
+        }
+        return max;
+    }
+
+    public static int maxAbs(final int[] data, final int len) {
+        int max = 0;
+        for (int i=0; i<len; ++i) {
+            int val = data[i];
+            int abs = val<0? -val : val;
+            if (abs>max)
+                max = abs;
+        }
+        return max;
+    }
+
+    /**
+     * data[i] = (int) (koef*data[i])
+     */
+    public static void gain(final int[] data, final int len, final double koef) {
+        for (int i=0; i<len; ++i)
+            data[i] = (int) (koef*data[i]);
+    }
+
+    /**
+     * Normalizes the mix of the <b>streamsCount</b> streams: divides samples on the streams count and
+     * gains the result to the maximum amplitude, but not more than on <b>maxGainCoef</b>.
+     * @return the applied gain coefficient
+     */
+    public static double normalize(final int[] data, final int len, final int streamsCount,
+            final double maxGainCoef)
+    {
+        double koef = maxGainCoef;
+        if (koef>1.01 || streamsCount>1) {
+            int max = divide(data, len, streamsCount);
+            koef = Math.min(max>0? 32767./max : 1., maxGainCoef);
+        }
+        koef = Math.min(maxGainCoef, koef);
+        if (koef>1.01)
+            gain(data, len, koef);
+        return koef;
+    }
+}
@@ -42,6 +42,11 @@ class AcelpCo {
     Used for the floating point version of G.729 main body
     (not for G.729A)
      */
+
+    /* Work buffers of ACELP_codebook() */
+    private final float[] dn = new float[Ld8k.L_SUBFR];
+    private final float[] rr = new float[Ld8k.DIM_RR];
+
     /**
      *
      * @param x             (i)     :Target vector
@@ -67,8 +72,6 @@ class AcelpCo {
         int L_SUBFR = Ld8k.L_SUBFR;
 
         int i, index;
-        float[] dn = new float[L_SUBFR];
-        float[] rr = new float[DIM_RR];
 
         /*----------------------------------------------------------------*
          * Include fixed-gain pitch contribution into impulse resp. h[]    *
@@ -460,6 +463,9 @@ class AcelpCo {
     }
     private int extra;
 
+    /* Work buffers of d4i40_17() */
+    private final float[] p_sign = new float[Ld8k.L_SUBFR];
+
     /**
      * Algebraic codebook search 17 bits; 4 pulses 40 sampleframe
      *
@@ -504,7 +510,6 @@ class AcelpCo {
         float ps0, ps1, ps2, ps3, alp0, alp1, alp2, alp3;
         float ps3c, psc, alpha;
         float average, max0, max1, max2, thres;
-        float[] p_sign = new float[L_SUBFR];
 
         int rri0i0, rri1i1, rri2i2, rri3i3, rri4i4;
         int rri0i1, rri0i2, rri0i3, rri0i4;
@@ -99,6 +99,10 @@ class CodLd8k extends Ld8k {
     private final QuaGain quaGain = new QuaGain();
     private final QuaLsp quaLsp = new QuaLsp();
     private final Taming taming = new Taming();
+    private final Filter filter = new Filter();
+    private final Lpc lpc = new Lpc();
+    private final Lpcfunc lpcfunc = new Lpcfunc();
+    private final Pitch pitch = new Pitch();
 
     /**
      * Initialization of variables for the encoder.
@@ -154,6 +158,32 @@ class CodLd8k extends Ld8k {
         taming.init_exc_err();
     }
 
+    /* Work buffers of coder_ld8k() */
+    /* LPC coefficients */
+    private final float[] r = new float[MP1];                /* Autocorrelations low and hi          */
+    private final float[] A_t = new float[(MP1) * 2];          /* A(z) unquantized for the 2 subframes */
+    private final float[] Aq_t = new float[(MP1) * 2];         /* A(z)   quantized for the 2 subframes */
+    private final float[] Ap1 = new float[MP1];              /* A(z) with spectral expansion         */
+    private final float[] Ap2 = new float[MP1];              /* A(z) with spectral expansion         */
+    private final float[] lsp_new = new float[M], lsp_new_q = new float[M]; /* LSPs at 2th subframe                 */
+    private final float[] lsf_int = new float[M];               /* Interpolated LSF 1st subframe.       */
+    private final float[] lsf_new = new float[M];
+    private final float[] rc = new float[M];                        /* Reflection coefficients */
+    private final float[] gamma1 = new float[2];             /* Gamma1 for 1st and 2nd subframes */
+    private final float[] gamma2 = new float[2];             /* Gamma2 for 1st and 2nd subframes */
+    private final float[] synth = new float[L_FRAME];        /* Buffer for synthesis speech        */
+    private final float[] h1 = new float[L_SUBFR];           /* Impulse response h1[]              */
+    private final float[] xn = new float[L_SUBFR];           /* Target vector for pitch search     */
+    private final float[] xn2 = new float[L_SUBFR];          /* Target vector for codebook search  */
+    private final float[] code = new float[L_SUBFR];         /* Fixed codebook excitation          */
+    private final float[] y1 = new float[L_SUBFR];           /* Filtered adaptive excitation       */
+    private final float[] y2 = new float[L_SUBFR];           /* Filtered fixed codebook excitation */
+    private final float[] g_coeff = new float[5];            /* Correlations between xn, y1, & y2:
+                                                                <y1,y1>, <xn,y1>, <y2,y2>, <xn,y2>,<y1,y2>*/
+    private final IntReference iRef = new IntReference();
+    private final IntReference t0_min = new IntReference(), t0_max = new IntReference(), t0_frac = new IntReference();
+    private final FloatReference _gain_pit = new FloatReference(), _gain_code = new FloatReference();
+
     /**
      * Encoder routine ( speech data should be in new_speech ).
      *
@@ -162,45 +192,15 @@ class CodLd8k extends Ld8k {
     void coder_ld8k(
             int ana[]) {
         /* LPC coefficients */
-        float[] r = new float[MP1];                /* Autocorrelations low and hi          */
-        float[] A_t = new float[(MP1) * 2];          /* A(z) unquantized for the 2 subframes */
-        float[] Aq_t = new float[(MP1) * 2];         /* A(z)   quantized for the 2 subframes */
-        float[] Ap1 = new float[MP1];              /* A(z) with spectral expansion         */
-        float[] Ap2 = new float[MP1];              /* A(z) with spectral expansion         */
         float[] A, Aq;               /* Pointer on A_t and Aq_t              */
         int A_offset, Aq_offset;
 
-        /* LSP coefficients */
-        float[] lsp_new = new float[M], lsp_new_q = new float[M]; /* LSPs at 2th subframe                 */
-        float[] lsf_int = new float[M];               /* Interpolated LSF 1st subframe.       */
-        float[] lsf_new = new float[M];
-
-        /* Variable added for adaptive gamma1 and gamma2 of the PWF */
-
-        float[] rc = new float[M];                        /* Reflection coefficients */
-        float[] gamma1 = new float[2];             /* Gamma1 for 1st and 2nd subframes */
-        float[] gamma2 = new float[2];             /* Gamma2 for 1st and 2nd subframes */
-
-        /* Other vectors */
-        float[] synth = new float[L_FRAME];        /* Buffer for synthesis speech        */
-        float[] h1 = new float[L_SUBFR];           /* Impulse response h1[]              */
-        float[] xn = new float[L_SUBFR];           /* Target vector for pitch search     */
-        float[] xn2 = new float[L_SUBFR];          /* Target vector for codebook search  */
-        float[] code = new float[L_SUBFR];         /* Fixed codebook excitation          */
-        float[] y1 = new float[L_SUBFR];           /* Filtered adaptive excitation       */
-        float[] y2 = new float[L_SUBFR];           /* Filtered fixed codebook excitation */
-        float[] g_coeff = new float[5];            /* Correlations between xn, y1, & y2:
-        <y1,y1>, <xn,y1>, <y2,y2>, <xn,y2>,<y1,y2>*/
-
         /* Scalars */
 
         int i, j, i_gamma, i_subfr;
-        IntReference iRef = new IntReference();
         int T_op, t0;
-        IntReference t0_min = new IntReference(), t0_max = new IntReference(), t0_frac = new IntReference();
         int index, taming;
         float gain_pit, gain_code = 0.0f;
-        FloatReference _gain_pit = new FloatReference(), _gain_code = new FloatReference();
 
         int ana_offset = 0;
 
@@ -216,10 +216,10 @@ class CodLd8k extends Ld8k {
 
         /* LP analysis */
 
-        Lpc.autocorr(p_window, p_window_offset, M, r);                     /* Autocorrelations */
+        lpc.autocorr(p_window, p_window_offset, M, r);                     /* Autocorrelations */
         Lpc.lag_window(M, r);                             /* Lag windowing    */
         Lpc.levinson(r, A_t, MP1, rc);                   /* Levinson Durbin  */
-        Lpc.az_lsp(A_t, MP1, lsp_new, lsp_old);          /* From A(z) to lsp */
+        lpc.az_lsp(A_t, MP1, lsp_new, lsp_old);          /* From A(z) to lsp */
 
         /* LSP quantization */
 
@@ -233,8 +233,8 @@ class CodLd8k extends Ld8k {
          * and the quantized interpolated parameters are in array Aq_t[]      *
          *--------------------------------------------------------------------*/
 
-        Lpcfunc.int_lpc(lsp_old, lsp_new, lsf_int, lsf_new, A_t);
-        Lpcfunc.int_qlpc(lsp_old_q, lsp_new_q, Aq_t);
+        lpcfunc.int_lpc(lsp_old, lsp_new, lsf_int, lsf_new, A_t);
+        lpcfunc.int_qlpc(lsp_old_q, lsp_new_q, Aq_t);
 
         /* update the LSPs for the next frame */
 
@@ -259,16 +259,16 @@ class CodLd8k extends Ld8k {
         Lpcfunc.weight_az(A_t, 0, gamma1[0], M, Ap1);
         Lpcfunc.weight_az(A_t, 0, gamma2[0], M, Ap2);
         Filter.residu(Ap1, 0, speech, speech_offset, wsp, wsp_offset, L_SUBFR);
-        Filter.syn_filt(Ap2, 0, wsp, wsp_offset, wsp, wsp_offset, L_SUBFR, mem_w, 0, 1);
+        filter.syn_filt(Ap2, 0, wsp, wsp_offset, wsp, wsp_offset, L_SUBFR, mem_w, 0, 1);
 
         Lpcfunc.weight_az(A_t, MP1, gamma1[1], M, Ap1);
         Lpcfunc.weight_az(A_t, MP1, gamma2[1], M, Ap2);
         Filter.residu(Ap1, 0, speech, speech_offset + L_SUBFR, wsp, wsp_offset + L_SUBFR, L_SUBFR);
-        Filter.syn_filt(Ap2, 0, wsp, wsp_offset + L_SUBFR, wsp, wsp_offset + L_SUBFR, L_SUBFR, mem_w, 0, 1);
+        filter.syn_filt(Ap2, 0, wsp, wsp_offset + L_SUBFR, wsp, wsp_offset + L_SUBFR, L_SUBFR, mem_w, 0, 1);
 
         /* Find open loop pitch lag for whole speech frame */
 
-        T_op = Pitch.pitch_ol(wsp, wsp_offset, PIT_MIN, PIT_MAX, L_FRAME);
+        T_op = pitch.pitch_ol(wsp, wsp_offset, PIT_MIN, PIT_MAX, L_FRAME);
 
         /* range for closed loop pitch search in 1st subframe */
 
@@ -325,8 +325,8 @@ class CodLd8k extends Ld8k {
             for (i = 0; i <= M; i++) {
                 ai_zero[i] = Ap1[i];
             }
-            Filter.syn_filt(Aq, Aq_offset, ai_zero, 0, h1, 0, L_SUBFR, zero, zero_offset, 0);
-            Filter.syn_filt(Ap2, 0, h1, 0, h1, 0, L_SUBFR, zero, zero_offset, 0);
+            filter.syn_filt(Aq, Aq_offset, ai_zero, 0, h1, 0, L_SUBFR, zero, zero_offset, 0);
+            filter.syn_filt(Ap2, 0, h1, 0, h1, 0, L_SUBFR, zero, zero_offset, 0);
 
             /*------------------------------------------------------------------------*
              *                                                                        *
@@ -357,17 +357,17 @@ class CodLd8k extends Ld8k {
 
             Filter.residu(Aq, Aq_offset, speech, speech_offset + i_subfr, exc, exc_offset + i_subfr, L_SUBFR);   /* LPC residual */
 
-            Filter.syn_filt(Aq, Aq_offset, exc, exc_offset + i_subfr, error, error_offset, L_SUBFR, mem_err, 0, 0);
+            filter.syn_filt(Aq, Aq_offset, exc, exc_offset + i_subfr, error, error_offset, L_SUBFR, mem_err, 0, 0);
 
             Filter.residu(Ap1, 0, error, error_offset, xn, 0, L_SUBFR);
 
-            Filter.syn_filt(Ap2, 0, xn, 0, xn, 0, L_SUBFR, mem_w0, 0, 0);    /* target signal xn[]*/
+            filter.syn_filt(Ap2, 0, xn, 0, xn, 0, L_SUBFR, mem_w0, 0, 0);    /* target signal xn[]*/
 
             /*----------------------------------------------------------------------*
              *                 Closed-loop fractional pitch search                  *
              *----------------------------------------------------------------------*/
 
-            t0 = Pitch.pitch_fr3(exc, exc_offset + i_subfr, xn, h1, L_SUBFR, t0_min.value, t0_max.value,
+            t0 = pitch.pitch_fr3(exc, exc_offset + i_subfr, xn, h1, L_SUBFR, t0_min.value, t0_max.value,
                     i_subfr, t0_frac);
 
 
@@ -460,7 +460,7 @@ class CodLd8k extends Ld8k {
 
             this.taming.update_exc_err(gain_pit, t0);
 
-            Filter.syn_filt(Aq, Aq_offset, exc, exc_offset + i_subfr, synth, i_subfr, L_SUBFR, mem_syn, 0, 1);
+            filter.syn_filt(Aq, Aq_offset, exc, exc_offset + i_subfr, synth, i_subfr, L_SUBFR, mem_syn, 0, 1);
 
             for (i = L_SUBFR - M, j = 0; i < L_SUBFR; i++, j++) {
                 mem_err[j] = speech[speech_offset + i_subfr + i] - synth[i_subfr + i];
@@ -39,6 +39,10 @@ class DeAcelp {
     Used for the floating point version of both
     G.729 main body and G.729A
      */
+
+    /* Work buffers of decod_ACELP() */
+    private final int[] pos = new int[4];
+
     /**
      * Algebraic codebook decoder.
      *
@@ -46,13 +50,12 @@ class DeAcelp {
      * @param index     input : positions of 4 pulses
      * @param cod       output: innovative codevector
      */
-    static void decod_ACELP(
+    void decod_ACELP(
             int sign,
             int index,
             float cod[]) {
         int L_SUBFR = Ld8k.L_SUBFR;
 
-        int[] pos = new int[4];
         int i, j;
 
         /* decode the positions of 4 pulses */
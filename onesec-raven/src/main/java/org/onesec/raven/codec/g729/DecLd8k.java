@@ -97,6 +97,14 @@ class DecLd8k extends Ld8k
     private final FloatReference gain_pitch = new FloatReference();
     private final DecGain decGain = new DecGain();
     private final Lspdec lspdec = new Lspdec();
+    private final DeAcelp deAcelp = new DeAcelp();
+    private final Filter filter = new Filter();
+    private final Lpcfunc lpcfunc = new Lpcfunc();
+    /**
+     * Random generator of the frame erasure parameters. It is the global variable in the reference code,
+     * so it is kept per decoder to make the decoders independent.
+     */
+    private short seed = 21845;
 
     /**
      * Initialization of variables for the decoder section.
@@ -118,6 +126,11 @@ class DecLd8k extends Ld8k
         lspdec.lsp_decw_reset();
     }
 
+    /* Work buffers of decod_ld8k() */
+    private final float[] lsp_new = new float[M];           /* LSPs                               */
+    private final float[] code = new float[L_SUBFR];        /* algebraic codevector               */
+    private final IntReference t0 = new IntReference(), t0_frac = new IntReference();
+
     /**
      * Decoder
      *
@@ -139,12 +152,9 @@ class DecLd8k extends Ld8k
         int t0_first = 0;          /* output: integer delay of first subframe            */
         float[] Az;                  /* Pointer to A_t (LPC coefficients)  */
         int Az_offset;
-        float[] lsp_new = new float[M];           /* LSPs                               */
-        float[] code = new float[L_SUBFR];        /* algebraic codevector               */
 
         /* Scalars */
         int i, i_subfr;
-        IntReference t0 = new IntReference(), t0_frac = new IntReference();
         int index;
 
         int bfi;
@@ -162,7 +172,7 @@ class DecLd8k extends Ld8k
 
         /* Interpolation of LPC for the 2 subframes */
 
-        Lpcfunc.int_qlpc(lsp_old, lsp_new, A_t);
+        lpcfunc.int_qlpc(lsp_old, lsp_new, A_t);
 
         /* update the LSFs for the next frame */
 
@@ -230,11 +240,11 @@ class DecLd8k extends Ld8k
              *-------------------------------------------------------*/
 
             if (bfi != 0) {            /* Bad Frame Error Concealment */
-                parm[parm_offset + 0] = (Util.random_g729() & 0x1fff);      /* 13 bits random*/
-                parm[parm_offset + 1] = (Util.random_g729() & 0x000f);      /*  4 bits random */
+                parm[parm_offset + 0] = (random_g729() & 0x1fff);      /* 13 bits random*/
+                parm[parm_offset + 1] = (random_g729() & 0x000f);      /*  4 bits random */
             }
 
-            DeAcelp.decod_ACELP(parm[parm_offset + 1], parm[parm_offset + 0], code);
+            deAcelp.decod_ACELP(parm[parm_offset + 1], parm[parm_offset + 0], code);
             parm_offset += 2;
             for (i = t0.value; i < L_SUBFR; i++) {
                 code[i] += sharp * code[i - t0.value];
@@ -284,7 +294,7 @@ class DecLd8k extends Ld8k
              * - Find synthesis speech corresponding to exc[].       *
              *-------------------------------------------------------*/
 
-            Filter.syn_filt(Az, Az_offset, exc, exc_offset + i_subfr, synth, synth_offset + i_subfr, L_SUBFR, mem_syn, 0, 1);
+            filter.syn_filt(Az, Az_offset, exc, exc_offset + i_subfr, synth, synth_offset + i_subfr, L_SUBFR, mem_syn, 0, 1);
 
             Az_offset += MP1;        /* interpolated LPC parameters for next subframe */
         }
@@ -296,4 +306,15 @@ class DecLd8k extends Ld8k
         Util.copy(old_exc, L_FRAME, old_exc, PIT_MAX + L_INTERPOL);
         return t0_first;
     }
+
+    /**
+     * Return random short.
+     *
+     * @return random short
+     */
+    private short random_g729() {
+        seed = (short) (seed * 31821L + 13849L);
+
+        return (seed);
+    }
 }
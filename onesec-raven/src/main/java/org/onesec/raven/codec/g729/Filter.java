@@ -68,6 +68,9 @@ class Filter {
         }
     }
 
+    /* Work buffers of syn_filt() */
+    private final float[] yy_b = new float[Ld8k.L_SUBFR + Ld8k.M];
+
     /**
      * Filter with synthesis filter 1/A(z).
      *
@@ -82,7 +85,7 @@ class Filter {
      * @param mem_offset input : filter memory ofset
      * @param update     input : 0 = no memory update, 1 = update
      */
-    static void syn_filt(
+    void syn_filt(
             float a[],
             int a_offset,
             float x[],
@@ -99,7 +102,6 @@ class Filter {
         int i, j;
 
         /* This is usually done by memory allocation (l+m) */
-        float[] yy_b = new float[L_SUBFR + M];
         float s;
         int yy, py, pa;
         /* Copy mem[] to yy[] */
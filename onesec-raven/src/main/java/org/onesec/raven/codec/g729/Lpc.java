@@ -43,6 +43,10 @@ class Lpc {
     Used for the floating point version of G.729 main body
     (not for G.729A)
      */
+
+    /* Work buffers of autocorr() */
+    private final float[] y = new float[Ld8k.L_WINDOW];
+
     /**
      * Compute the auto-correlations of windowed speech signal
      *
@@ -51,7 +55,7 @@ class Lpc {
      * @param m         (i) LPC order
      * @param r         (o) auto-correlation vector r[0:M]
      */
-    static void autocorr(
+    void autocorr(
             float[] x,
             int x_offset,
             int m,
@@ -59,7 +63,6 @@ class Lpc {
         int L_WINDOW = Ld8k.L_WINDOW;
         float[] hamwindow = TabLd8k.hamwindow;
 
-        float[] y = new float[L_WINDOW];
         float sum;
         int i, j;
 
@@ -142,6 +145,9 @@ class Lpc {
         return (err);
     }
 
+    /* Work buffers of az_lsp() */
+    private final float[] f1 = new float[Ld8k.NC + 1], f2 = new float[Ld8k.NC + 1];
+
     /**                                                                                         *
      * Compute the LSPs from  the LP coefficients a[] using Chebyshev
      * polynomials. The found LSPs are in the cosine domain with values
@@ -155,7 +161,7 @@ class Lpc {
      * @param lsp       (o) Line spectral pairs (in the cosine domain)
      * @param old_lsp   (i) LSP vector from past frame
      */
-    static void az_lsp(
+    void az_lsp(
             float[] a,
             int a_offset,
             float[] lsp,
@@ -169,7 +175,6 @@ class Lpc {
         float xlow, ylow, xhigh, yhigh, xmid, ymid, xint;
         float[] coef;
 
-        float[] f1 = new float[NC + 1], f2 = new float[NC + 1];
 
         /*-------------------------------------------------------------*
          * find the sum and diff polynomials F1(z) and F2(z)           *
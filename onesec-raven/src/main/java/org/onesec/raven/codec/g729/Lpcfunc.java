@@ -38,6 +38,10 @@ class Lpcfunc {
     Used for the floating point version of G.729 main body
     (not for G.729A)
      */
+
+    /* Work buffers of lsp_az() */
+    private final float[] f1 = new float[Ld8k.NC + 1], f2 = new float[Ld8k.NC + 1];
+
     /**
      * Convert LSPs to predictor coefficients a[]
      *
@@ -45,14 +49,13 @@ class Lpcfunc {
      * @param a         output: predictor coeffs a[0:M], a[0] = 1.
      * @param a_offset  input: predictor coeffs a offset.
      */
-    private static void lsp_az(
+    private void lsp_az(
             float[] lsp,
             float[] a,
             int a_offset) {
         int M = Ld8k.M;
         int NC = Ld8k.NC;
 
-        float[] f1 = new float[NC + 1], f2 = new float[NC + 1];
         int i, j;
 
 
@@ -161,6 +164,9 @@ class Lpcfunc {
         ap[m] = fac * a[a_offset + m];
     }
 
+    /* Work buffers of int_qlpc() and int_lpc() */
+    private final float[] lsp = new float[Ld8k.M];
+
     /**
      * Interpolated M LSP parameters and convert to M+1 LPC coeffs
      *
@@ -168,14 +174,13 @@ class Lpcfunc {
      * @param lsp_new    input : LSPs for present frame (0:M-1)
      * @param az         output: filter parameters in 2 subfr (dim 2(m+1))
      */
-    static void int_qlpc(
+    void int_qlpc(
             float lsp_old[],
             float lsp_new[],
             float az[]) {
         int M = Ld8k.M;
 
         int i;
-        float[] lsp = new float[M];
 
         for (i = 0; i < M; i++) {
             lsp[i] = lsp_old[i] * 0.5f + lsp_new[i] * 0.5f;
@@ -194,7 +199,7 @@ class Lpcfunc {
      * @param lsf_new   input : LSFs for present frame (0:M-1)
      * @param az        output: filter parameters in 2 subfr (dim 2(m+1))
      */
-    static void int_lpc(
+    void int_lpc(
             float lsp_old[],
             float lsp_new[],
             float lsf_int[],
@@ -203,7 +208,6 @@ class Lpcfunc {
         int M = Ld8k.M;
 
         int i;
-        float[] lsp = new float[M];
 
 
         for (i = 0; i < M; i++) {
@@ -47,6 +47,7 @@ class Lspdec {
      * Previous LSP vector
      */
     private final float[][] freq_prev = new float[MA_NP][M];
+    private final Lspgetq lspgetq = new Lspgetq();
     /**
      * Previous LSP vector(init)
      */
@@ -80,6 +81,9 @@ class Lspdec {
         Util.copy(FREQ_PREV_RESET, prev_lsp, M);
     }
 
+    /* Work buffers of lsp_iqua_cs() */
+    private final float[] buf = new float[M];
+
     /**
      * LSP main quantization routine
      *
@@ -107,7 +111,6 @@ class Lspdec {
         int code0;
         int code1;
         int code2;
-        float[] buf = new float[M];
 
 
         if (erase == 0) /* Not frame erasure */ {
@@ -116,7 +119,7 @@ class Lspdec {
             code1 = (prm[prm_offset + 1] >>> NC1_B) & (short) (NC1 - 1);
             code2 = prm[prm_offset + 1] & (short) (NC1 - 1);
 
-            Lspgetq.lsp_get_quant(lspcb1, lspcb2, code0, code1, code2, fg[mode_index],
+            lspgetq.lsp_get_quant(lspcb1, lspcb2, code0, code1, code2, fg[mode_index],
                     freq_prev, lsp_q, fg_sum[mode_index]);
 
             Util.copy(lsp_q, prev_lsp, M);
@@ -39,6 +39,10 @@ class Lspgetq {
     Used for the floating point version of both
     G.729 main body and G.729A
      */
+
+    /* Work buffers of lsp_get_quant() */
+    private final float[] buf = new float[Ld8k.M];
+
     /**
      * Reconstruct quantized LSP parameter and check the stabilty
      *
@@ -52,7 +56,7 @@ class Lspgetq {
      * @param lspq          output: quantized LSP parameters
      * @param fg_sum        input : present MA prediction coef.
      */
-    static void lsp_get_quant(
+    void lsp_get_quant(
             float lspcb1[][/* M */],
             float lspcb2[][/* M */],
             int code0,
@@ -68,7 +72,6 @@ class Lspgetq {
         int NC = Ld8k.NC;
 
         int j;
-        float[] buf = new float[M];
 
 
         for (j = 0; j < NC; j++) {
@@ -41,6 +41,10 @@ class Pitch {
     Used for the floating point version of G.729 main body
     (not for G.729A)
      */
+
+    /* Work buffers of pitch_ol() */
+    private final FloatReference maxRef = new FloatReference();
+
     /**
      * Compute the open loop pitch lag.
      *
@@ -52,7 +56,7 @@ class Pitch {
      * @param l_frame           input : error minimization window
      * @return                  open-loop pitch lag
      */
-    static int pitch_ol(
+    int pitch_ol(
             float[] signal,
             int signal_offset,
             int pit_min,
@@ -74,7 +78,6 @@ class Pitch {
          *  Third section:  lag delay = 39 to 20                              *
          *--------------------------------------------------------------------*/
 
-        FloatReference maxRef = new FloatReference();
         p_max1 = lag_max(signal, signal_offset, l_frame, pit_max, 80, maxRef);
         max1 = maxRef.value;
         p_max2 = lag_max(signal, signal_offset, l_frame, 79, 40, maxRef);
@@ -155,6 +158,9 @@ class Pitch {
         return (p_max);
     }
 
+    /* Work buffers of pitch_fr3() */
+    private final float[] corr_v = new float[10 + 2 * Ld8k.L_INTER4];  /* size: 2*L_INTER4+t0_max-t0_min+1 */
+
     /**
      * Find the pitch period  with 1/3 subsample resolution
      *
@@ -169,7 +175,7 @@ class Pitch {
      * @param pit_frac      output: chosen fraction
      * @return          integer part of pitch period
      */
-    static int pitch_fr3(
+    int pitch_fr3(
             float[] exc, /*                  */
             int exc_offset,
             float xn[], /*                        */
@@ -185,7 +191,6 @@ class Pitch {
         int lag, t_min, t_max;
         float max;
         float corr_int;
-        float[] corr_v = new float[10 + 2 * L_INTER4];  /* size: 2*L_INTER4+t0_max-t0_min+1 */
         float[] corr;
         int corr_offset;
 
@@ -250,6 +255,9 @@ class Pitch {
         return lag;
     }
 
+    /* Work buffers of norm_corr() */
+    private final float[] excf = new float[Ld8k.L_SUBFR];     /* filtered past excitation */
+
     /**
      * Find the normalized correlation between the target vector and
      * the filtered past excitation.
@@ -267,7 +275,7 @@ class Pitch {
      *                              excitation)
      * @param corr_norm_offset      input: normalized correlation offset
      */
-    private static void norm_corr(
+    private void norm_corr(
             float[] exc,
             int exc_offset,
             float xn[],
@@ -280,7 +288,6 @@ class Pitch {
         int L_SUBFR = Ld8k.L_SUBFR;
 
         int i, j, k;
-        float[] excf = new float[L_SUBFR];     /* filtered past excitation */
         float alp, s, norm;
 
         k = exc_offset - t_min;
@@ -81,6 +81,7 @@ class Postfil
      * A(gamma2) residual
      */
     private final float[] res2 = new float[SIZ_RES2];
+    private final Filter filter = new Filter();
 
     /* Static pointers */
     private int res2_ptr;
@@ -126,6 +127,10 @@ class Postfil
         gain_prec = 1.f;
     }
 
+    /* Work buffers of post() */
+    private final float[] apond1 = new float[MP1];           /* s.t. denominator coeff.      */
+    private final float[] sig_ltp = new float[L_SUBFRP1];   /* H0 output signal             */
+
     /**
      * Adaptive postfilter main function
      *
@@ -148,8 +153,6 @@ class Postfil
             int sig_out_offset) {
         int vo;                /* output: voicing decision 0 = uv,  > 0 delay */
 
-        float[] apond1 = new float[MP1];           /* s.t. denominator coeff.      */
-        float[] sig_ltp = new float[L_SUBFRP1];   /* H0 output signal             */
         int sig_ltp_ptr;
         float parcor0;
 
@@ -172,7 +175,7 @@ class Postfil
         parcor0 = calc_st_filt(apond2, apond1, sig_ltp, sig_ltp_ptr);
 
         /* 1/A(gamma1) filtering, mem_stp is updated */
-        Filter.syn_filt(apond1, 0, sig_ltp, sig_ltp_ptr, sig_ltp, sig_ltp_ptr, L_SUBFR, mem_stp, 0, 1);
+        filter.syn_filt(apond1, 0, sig_ltp, sig_ltp_ptr, sig_ltp, sig_ltp_ptr, L_SUBFR, mem_stp, 0, 1);
 
         /* (1 + mu z-1) tilt filtering */
         filt_mu(sig_ltp, sig_out, sig_out_offset, parcor0);
@@ -186,6 +189,16 @@ class Postfil
         return vo;
     }
 
+    /* Work buffers of pst_ltp() */
+    private final float[] y_up = new float[SIZ_Y_UP];
+    private final IntReference _ltpdel = new IntReference();
+    private final IntReference _phase = new IntReference();
+    private final FloatReference _num_gltp = new FloatReference();
+    private final FloatReference _den_gltp = new FloatReference();
+    private final IntReference _off_yup = new IntReference();
+    private final FloatReference _num2_gltp = new FloatReference();
+    private final FloatReference _den2_gltp = new FloatReference();
+
     /**
      * Harmonic postfilter
      *
@@ -209,17 +222,11 @@ class Postfil
         float num_gltp, den_gltp;
         float num2_gltp, den2_gltp;
         float gain_plt;
-        float[] y_up = new float[SIZ_Y_UP];
         float[] ptr_y_up;
         int ptr_y_up_offset;
         int off_yup;
 
         /* Sub optimal delay search */
-        IntReference _ltpdel = new IntReference();
-        IntReference _phase = new IntReference();
-        FloatReference _num_gltp = new FloatReference();
-        FloatReference _den_gltp = new FloatReference();
-        IntReference _off_yup = new IntReference();
         search_del(t0, ptr_sig_in, ptr_sig_in_offset, _ltpdel, _phase, _num_gltp, _den_gltp,
                 y_up, _off_yup);
         ltpdel = _ltpdel.value;
@@ -239,8 +246,6 @@ class Postfil
                 ptr_y_up_offset = ptr_sig_in_offset - ltpdel;
             } else {
                 /* Filtering with long filter */
-                FloatReference _num2_gltp = new FloatReference();
-                FloatReference _den2_gltp = new FloatReference();
                 compute_ltp_l(ptr_sig_in, ptr_sig_in_offset, ltpdel, phase, ptr_sig_pst0, ptr_sig_pst0_offset,
                         _num2_gltp, _den2_gltp);
                 num2_gltp = _num2_gltp.value;
@@ -273,6 +278,9 @@ class Postfil
         return vo;
     }
 
+    /* Work buffers of search_del() */
+    private final float[] tab_den0 = new float[F_UP_PST - 1], tab_den1 = new float[F_UP_PST - 1];
+
     /**
      * Computes best (shortest) integer LTP delay + fine search
      *
@@ -302,7 +310,6 @@ class Postfil
         int ptr_h;
 
         /* Variables and local arrays */
-        float[] tab_den0 = new float[F_UP_PST - 1], tab_den1 = new float[F_UP_PST - 1];
         int ptr_den0, ptr_den1;
         int ptr_sig_past, ptr_sig_past0;
         int ptr1;
@@ -665,6 +672,9 @@ class Postfil
         }
     }
 
+    /* Work buffers of calc_st_filt() */
+    private final float[] h = new float[LONG_H_ST];
+
     /**
      * Computes impulse response of A(gamma2) / A(gamma1).
      * controls gain : computation of energy impulse response as
@@ -681,12 +691,11 @@ class Postfil
             float[] apond1,
             float[] sig_ltp_ptr,
             int sig_ltp_ptr_offset) {
-        float[] h = new float[LONG_H_ST];
         float parcor0;    /* output: 1st parcor calcul. on composed filter */
         float g0, temp;
 
         /* computes impulse response of  apond1 / apond2 */
-        Filter.syn_filt(apond1, 0, apond2, 0, h, 0, LONG_H_ST, mem_zero, 0, 0);
+        filter.syn_filt(apond1, 0, apond2, 0, h, 0, LONG_H_ST, mem_zero, 0, 0);
 
         /* computes 1st parcor */
         parcor0 = calc_rc0_h(h);
@@ -42,6 +42,11 @@ class QuaGain {
     /* gain quantizer routines                                                   */
     private final float[/* 4 */] past_qua_en = {-14.0f, -14.0f, -14.0f, -14.0f};
 
+    /* Work buffers of qua_gain() */
+    private final float[] best_gain = new float[2];
+    private final IntReference cand1Ref = new IntReference();
+    private final IntReference cand2Ref = new IntReference();
+
     /**
      * Quantization of pitch and codebook gains
      *
@@ -85,7 +90,6 @@ class QuaGain {
         int cand1, cand2;
         float gcode0;
         float dist, dist_min, g_pitch, g_code;
-        float[] best_gain = new float[2];
         float tmp;
 
         /*---------------------------------------------------*
@@ -110,8 +114,6 @@ class QuaGain {
          *   - presearch for gain codebook -            *
          *----------------------------------------------*/
 
-        IntReference cand1Ref = new IntReference();
-        IntReference cand2Ref = new IntReference();
         gbk_presel(best_gain, cand1Ref, cand2Ref, gcode0);
         cand1 = cand1Ref.value;
         cand2 = cand2Ref.value;
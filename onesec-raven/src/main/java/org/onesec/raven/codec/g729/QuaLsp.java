@@ -47,6 +47,7 @@ class QuaLsp {
      * previous LSP vector
      */
     private final float[][] freq_prev = new float[Ld8k.MA_NP][Ld8k.M];
+    private final Lspgetq lspgetq = new Lspgetq();
     /**
      * previous LSP vector(init)
      */
@@ -56,6 +57,9 @@ class QuaLsp {
     };     /* PI*(float)(j+1)/(float)(M+1) */
 
 
+    /* Work buffers of qua_lsp() */
+    private final float[] lsf = new float[Ld8k.M], lsf_q = new float[Ld8k.M];  /* domain 0.0<= lsf <PI */
+
     /**
      * @param lsp       (i) : Unquantized LSP
      * @param lsp_q     (o) : Quantized LSP
@@ -68,7 +72,6 @@ class QuaLsp {
         int M = Ld8k.M;
 
         int i;
-        float[] lsf = new float[M], lsf_q = new float[M];  /* domain 0.0<= lsf <PI */
 
         /* Convert LSPs to LSFs */
 
@@ -98,6 +101,9 @@ class QuaLsp {
         }
     }
 
+    /* Work buffers of lsp_qua_cs() */
+    private final float[] wegt = new float[Ld8k.M];   /* weight coef. */
+
     /**
      * Lsp quantizer
      *
@@ -116,7 +122,6 @@ class QuaLsp {
         float[][] lspcb1 = TabLd8k.lspcb1;
         float[][] lspcb2 = TabLd8k.lspcb2;
 
-        float[] wegt = new float[M];   /* weight coef. */
 
         get_wegt(flsp_in, wegt);
 
@@ -124,6 +129,13 @@ class QuaLsp {
                 freq_prev, fg_sum, fg_sum_inv, code);
     }
 
+    /* Work buffers of relspwed() */
+    private final int[] cand = new int[Ld8k.MODE];
+    private final int[] tindex1 = new int[Ld8k.MODE], tindex2 = new int[Ld8k.MODE];
+    private final float[] tdist = new float[Ld8k.MODE];
+    private final float[] rbuf = new float[Ld8k.M];
+    private final float[] buf = new float[Ld8k.M];
+
     /**
      *
      * @param lsp            input: unquantized LSP parameters
@@ -158,12 +170,7 @@ class QuaLsp {
 
         int mode, j;
         int index, mode_index;
-        int[] cand = new int[MODE];
         int cand_cur;
-        int[] tindex1 = new int[MODE], tindex2 = new int[MODE];
-        float[] tdist = new float[MODE];
-        float[] rbuf = new float[M];
-        float[] buf = new float[M];
 
         for (mode = 0; mode < MODE; mode++) {
 
@@ -210,7 +217,7 @@ class QuaLsp {
         code_ana[1] = (tindex1[mode_index] << NC1_B) | tindex2[mode_index];
 
         /* reconstruct quantized LSP parameter and check the stabilty */
-        Lspgetq.lsp_get_quant(lspcb1, lspcb2, cand[mode_index],
+        lspgetq.lsp_get_quant(lspcb1, lspcb2, cand[mode_index],
                 tindex1[mode_index], tindex2[mode_index],
                 fg[mode_index],
                 freq_prev,
@@ -253,6 +260,9 @@ class QuaLsp {
         return cand;
     }
 
+    /* Work buffers of lsp_select_1() */
+    private final float[] sel1_buf = new float[Ld8k.M];
+
     /**
      * Select the code of second stage lsp codebook (lower 0-4)
      *
@@ -273,11 +283,10 @@ class QuaLsp {
         int NC1 = Ld8k.NC1;
 
         int j, k1;
-        float[] buf = new float[M];
         float dist, dmin, tmp;
 
         for (j = 0; j < NC; j++) {
-            buf[j] = rbuf[j] - lspcb1[j];
+            sel1_buf[j] = rbuf[j] - lspcb1[j];
         }
 
         int index = 0;          /*output: selected codebook index     */
@@ -286,7 +295,7 @@ class QuaLsp {
             /* calculate the distortion */
             dist = 0.f;
             for (j = 0; j < NC; j++) {
-                tmp = buf[j] - lspcb2[k1][j];
+                tmp = sel1_buf[j] - lspcb2[k1][j];
                 dist += wegt[j] * tmp * tmp;
             }
 
@@ -298,6 +307,9 @@ class QuaLsp {
         return index;
     }
 
+    /* Work buffers of lsp_select_2() */
+    private final float[] sel2_buf = new float[Ld8k.M];
+
     /**
      * Select the code of second stage lsp codebook (higher 5-9)
      *
@@ -318,11 +330,10 @@ class QuaLsp {
         int NC1 = Ld8k.NC1;
 
         int j, k1;
-        float[] buf = new float[M];
         float dist, dmin, tmp;
 
         for (j = NC; j < M; j++) {
-            buf[j] = rbuf[j] - lspcb1[j];
+            sel2_buf[j] = rbuf[j] - lspcb1[j];
         }
 
 
@@ -331,7 +342,7 @@ class QuaLsp {
         for (k1 = 0; k1 < NC1; k1++) {
             dist = 0.0f;
             for (j = NC; j < M; j++) {
-                tmp = buf[j] - lspcb2[k1][j];
+                tmp = sel2_buf[j] - lspcb2[k1][j];
                 dist += wegt[j] * tmp * tmp;
             }
 
@@ -131,20 +131,6 @@ class Util {
         }
     }
 
-    /* Random generator  */
-    private static short seed = 21845;
-
-    /**
-     * Return random short.
-     *
-     * @return random short
-     */
-    static short random_g729() {
-        seed = (short) (seed * 31821L + 13849L);
-
-        return (seed);
-    }
-
     /**
      * Write <code>data</code> in <code>fp</code>
      *
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.impl;
+
+import java.util.Arrays;
+
+/**
+ * Goal: percentiles of the latency over the last <b>windowSize</b> operations.
+ * @author Mikhail Titov
+ */
+public final class LatencyStat {
+    public final static int DEFAULT_WINDOW_SIZE = 1024;
+
+    private final long[] samples;
+    private long count;
+    private long total;
+
+    public LatencyStat() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public LatencyStat(int windowSize) {
+        this.samples = new long[windowSize];
+    }
+
+    public synchronized void add(long latency) {
+        samples[(int)(count++ % samples.length)] = latency;
+        total += latency;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized long getAverage() {
+        return count==0? 0 : total/count;
+    }
+
+    /**
+     * Returns the percentile (0..100) of the latency over the window or 0 if there were no operations
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count==0)
+                return 0;
+            sorted = Arrays.copyOf(samples, (int)Math.min(count, samples.length));
+        }
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percentile/100. * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length-1, index))];
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        total = 0;
+    }
+}
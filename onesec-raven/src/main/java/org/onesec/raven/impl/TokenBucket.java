@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Goal: limit the rate of the operations without sleeping. The bucket is refilled with <b>rate</b> tokens per
+ * second and holds at most <b>burst</b> tokens. The caller that did not get the token receives the time
+ * to wait for the next one.
+ * @author Mikhail Titov
+ */
+public final class TokenBucket {
+    //the time (in nanoseconds) to refill the one token
+    private final long interval;
+    private final long capacity;
+    //the accumulated refill time in nanoseconds
+    private long credit;
+    private long lastRefillTime;
+
+    public TokenBucket(int rate) {
+        this(rate, rate);
+    }
+
+    public TokenBucket(int rate, int burst) {
+        this(rate, 1, TimeUnit.SECONDS, burst);
+    }
+
+    /**
+     * Creates the bucket that is refilled with <b>tokens</b> tokens per <b>period</b> of the <b>timeUnit</b>
+     * and holds at most <b>burst</b> tokens
+     */
+    public TokenBucket(long tokens, long period, TimeUnit timeUnit, long burst) {
+        if (tokens<1 || period<1 || burst<1)
+            throw new IllegalArgumentException("tokens, period and burst must be greater than zero");
+        this.interval = Math.max(1, timeUnit.toNanos(period)/tokens);
+        this.capacity = interval*burst;
+        this.credit = capacity;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Takes the token from the bucket.
+     * @param now the current value of {@link System#nanoTime()}
+     * @return zero if the token was taken or the time in nanoseconds to wait for the next token
+     */
+    public synchronized long tryAcquire(long now) {
+        refill(now);
+        if (credit>=interval) {
+            credit -= interval;
+            return 0;
+        } else
+            return interval-credit;
+    }
+
+    /**
+     * Returns the time in nanoseconds to wait for the token (zero if the token is available) without taking it
+     * @param now the current value of {@link System#nanoTime()}
+     */
+    public synchronized long getWaitTime(long now) {
+        refill(now);
+        return credit>=interval? 0 : interval-credit;
+    }
+
+    public long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    private void refill(long now) {
+        if (now>lastRefillTime) {
+            credit = Math.min(capacity, credit+now-lastRefillTime);
+            lastRefillTime = now;
+        }
+    }
+}
@@ -17,6 +17,8 @@
 
 package org.onesec.raven.ivr;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import javax.media.Buffer;
@@ -65,6 +67,53 @@ public interface BufferCache
      * Returns the max idle time of the cache in seconds
      */
     public long getMaxCacheIdleTime();
+    /**
+     * Sets the max size (in bytes) of the buffers cached in the memory. The least recently used caches are
+     * removed from the memory when the size is exceeded
+     */
+    public void setMaxCacheSize(long size);
+    /**
+     * Returns the max size (in bytes) of the buffers cached in the memory
+     */
+    public long getMaxCacheSize();
+    /**
+     * Sets the directory of the persistent store of the cached buffers. Buffers that are stored in the
+     * directory are loaded to the memory (up to the {@link #getMaxCacheSize()}). If the directory is 
+     * null the persistent store is disabled
+     */
+    public void setStoreDirectory(File dir) throws IOException;
+    /**
+     * Returns the directory of the persistent store or null if the store is disabled
+     */
+    public File getStoreDirectory();
+    /**
+     * Returns the number of requests served from the memory
+     */
+    public long getCacheHits();
+    /**
+     * Returns the number of requests served from the persistent store
+     */
+    public long getStoreHits();
+    /**
+     * Returns the number of requests for which the cache has no buffers
+     */
+    public long getCacheMisses();
+    /**
+     * Returns the number of caches removed from the memory because of {@link #getMaxCacheSize()}
+     */
+    public long getCacheEvictions();
+    /**
+     * Returns the size (in bytes) of the buffers cached in the memory
+     */
+    public long getCacheSize();
+    /**
+     * Returns the size (in bytes) of the buffers in the persistent store
+     */
+    public long getStoreSize();
+    /**
+     * Returns the number of caches in the persistent store
+     */
+    public int getStoreEntitiesCount();
 
     public List<BuffersCacheEntity> getCacheEntities();
 
@@ -25,6 +25,12 @@ public interface OutgoingRtpStream  extends RtpStream
 {
     public void open(String remoteHost, int remotePort, AudioStream audioStream) throws RtpStreamException;
     public void start() throws RtpStreamException;
+    /**
+     * Sends the DTMF digits as the telephone events (RFC 4733) in the stream. The digits are sent
+     * asynchronously.
+     * @return <b>false</b> if the stream can't send the telephone events (DTMF must be sent by the signalling)
+     */
+    public boolean sendDtmf(String digits);
 //    public void setLogPrefix(String prefix);
 //    public String getLogPrefix();
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.conference.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.media.Buffer;
+import org.onesec.raven.codec.PcmUtils;
+import org.onesec.raven.ivr.impl.AbstractRealTimeMixer;
+
+/**
+ * Preallocated double buffer of the conference participant. Holds the conference mix without the
+ * participant's own audio ("mix minus self"). The buffer is filled by the mixer thread in the
+ * slot that is not visible to the reader and then published, so nothing is allocated on the mixing path.
+ * The slots are reused every second tick, so the reader takes the copy of the data with {@link #read(Buffer)}
+ * (the slot version is checked after the copy and the copy is repeated if the mixer overwrote the slot).
+ *
+ * @author Mikhail Titov
+ */
+class MixMinusBuffer {
+    private final int[][] data;
+    private final byte[][] byteData;
+    private final Buffer[] buffers;
+    //odd version means that the mixer is writing to the slot
+    private final AtomicLongArray versions = new AtomicLongArray(2);
+    private int nextSlot = 0;
+    private volatile int currentSlot = -1;
+    private volatile Buffer current;
+
+    public MixMinusBuffer() {
+        this(AbstractRealTimeMixer.BUFFER_SIZE, AbstractRealTimeMixer.BYTE_BUFFER_SIZE);
+    }
+
+    public MixMinusBuffer(int samplesCount, int bytesCount) {
+        data = new int[2][samplesCount];
+        byteData = new byte[2][bytesCount];
+        buffers = new Buffer[]{new Buffer(), new Buffer()};
+    }
+
+    /**
+     * Creates the participant's audio buffer from the conference mix and publishes it.
+     * Must be called only from the mixer thread.
+     * @param selfData the participant's own audio or null if participant is not in the mix
+     * @param mixData the conference mix
+     * @param len the number of samples in the mix
+     * @param streamsCount the number of streams in the mix
+     */
+    public Buffer mix(final int[] selfData, final int[] mixData, int len, int streamsCount, double maxGainCoef,
+            int bufferSize)
+    {
+        final int slot = nextSlot;
+        nextSlot = slot ^ 1;
+        final int[] slotData = data[slot];
+        versions.incrementAndGet(slot);
+        if (selfData!=null) {
+            PcmUtils.subtract(slotData, mixData, selfData, len);
+            --streamsCount;
+        } else
+            System.arraycopy(mixData, 0, slotData, 0, len);
+        Buffer buffer = AbstractRealTimeMixer.createBuffer(buffers[slot], slotData, byteData[slot], len,
+                streamsCount, maxGainCoef, bufferSize);
+        versions.incrementAndGet(slot);
+        currentSlot = slot;
+        current = buffer;
+        return buffer;
+    }
+
+    /**
+     * Copies the last published buffer to the <b>target</b>. The data is copied to the byte array of the target
+     * (if it is large enough and is not the slot of this buffer) or to the new array, so the reader may hold
+     * the data while the mixer reuses the slot.
+     * @return false if {@link #mix} was never called
+     */
+    public boolean read(Buffer target) {
+        byte[] targetData = target.getData() instanceof byte[]? (byte[]) target.getData() : null;
+        if (targetData==byteData[0] || targetData==byteData[1])
+            targetData = null;
+        while (true) {
+            final int slot = currentSlot;
+            if (slot<0)
+                return false;
+            final long version = versions.get(slot);
+            if ((version & 1)!=0)
+                continue;
+            final Buffer source = buffers[slot];
+            final int len = source.getLength();
+            final int offset = source.getOffset();
+            if (targetData==null || targetData.length<len)
+                targetData = new byte[byteData[slot].length];
+            System.arraycopy(byteData[slot], offset, targetData, 0, len);
+            target.copy(source);
+            if (versions.get(slot)==version) {
+                target.setData(targetData);
+                target.setOffset(0);
+                target.setLength(len);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the last published buffer or null if {@link #mix} was never called
+     */
+    public Buffer getCurrent() {
+        return current;
+    }
+}
@@ -16,7 +16,6 @@
 package org.onesec.raven.ivr.conference.impl;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.media.Buffer;
 import javax.media.Format;
@@ -76,31 +75,6 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
 //        }
     }
     
-    private static class BufferData {
-        private final int[] data;
-        private final byte[] byteData;
-        private final int len;
-        private final int streamsCount;
-        private final int bufferSize;
-        private final double maxGainCoef;
-
-        public BufferData(final int[] selfData, final int[] data, int len, int streamsCount, int bufferSize, 
-                double maxGainCoef, boolean debug) 
-        {
-//            if (debug)
-//                System.out.println(String.format("selfData: %s", selfData==null? "null" : "not null"));
-            this.data = Arrays.copyOf(data, bufferSize);
-            this.len = len;
-            if (selfData!=null)
-                for (int i=0; i<len; ++i)
-                    this.data[i]-=selfData[i];
-            this.streamsCount = streamsCount - (selfData==null? 0:1);
-            this.bufferSize = bufferSize;
-            this.maxGainCoef = maxGainCoef;
-            this.byteData = new byte[bufferSize];
-        }
-    }
-    
     class PlayAudioHandler extends AbstractMixerHandler {
         private final String name;
 
@@ -122,9 +96,10 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
     
     class Handler extends AbstractMixerHandler implements ConferenceMixerSession {
         private final int[] selfData = new int[BUFFER_SIZE];
+        private final MixMinusBuffer mixBuffer = new MixMinusBuffer();
         private volatile boolean hasData = false;
         private final AtomicBoolean sessionStopped = new AtomicBoolean();
-        private final HandlerDataSource conferenceAudio = new HandlerDataSource();
+        private final HandlerDataSource conferenceAudio = new HandlerDataSource(mixBuffer);
         private final String name;
         private volatile boolean muted = false;
 
@@ -178,8 +153,8 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
         }
 
         public void applyMergedBuffer(final int[] data, int len, int streamsCount, double maxGainCoef, int bufferSize) {
-            conferenceAudio.processConferenceAudioData(new BufferData(
-                    hasData && !muted? selfData:null, data, len, streamsCount, bufferSize, maxGainCoef, false));
+            mixBuffer.mix(hasData && !muted? selfData:null, data, len, streamsCount, maxGainCoef, bufferSize);
+            conferenceAudio.processConferenceAudioData();
         }
 
         public boolean stopSession() throws Exception {
@@ -203,7 +178,11 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
     }
     
     private class HandlerDataSource extends PushBufferDataSource {
-        private final PushBufferStream[] streams = new PushBufferStream[]{new HandlerStream()};
+        private final PushBufferStream[] streams;
+
+        public HandlerDataSource(MixMinusBuffer mixBuffer) {
+            this.streams = new PushBufferStream[]{new HandlerStream(mixBuffer)};
+        }
 
         @Override
         public PushBufferStream[] getStreams() {
@@ -236,16 +215,20 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
             return DURATION_UNKNOWN;
         }
         
-        public void processConferenceAudioData(BufferData data) {
-            ((HandlerStream)streams[0]).setAudioData(data);
+        public void processConferenceAudioData() {
+            ((HandlerStream)streams[0]).audioDataReady();
         }
     }
     
     private class HandlerStream implements PushBufferStream {
+        private final MixMinusBuffer mixBuffer;
         private volatile BufferTransferHandler transferHandler;
-        private volatile BufferData audioData;
         private AtomicBoolean stopped = new AtomicBoolean();
 
+        public HandlerStream(MixMinusBuffer mixBuffer) {
+            this.mixBuffer = mixBuffer;
+        }
+
         public Format getFormat() {
             return FORMAT;
         }
@@ -255,8 +238,7 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
                 informTransferHandler();
         }
         
-        public void setAudioData(BufferData data) {
-            this.audioData = data;
+        public void audioDataReady() {
             informTransferHandler();
         }
         
@@ -275,10 +257,10 @@ public class RealTimeConferenceMixer extends AbstractRealTimeMixer {
                 buffer.setOffset(0);
                 buffer.setFormat(FORMAT);
             } else {
-                BufferData a = audioData;
-                if (a!=null) 
-                    createBuffer(buffer, a.data, a.byteData, a.len, a.streamsCount, a.maxGainCoef, a.bufferSize);
-                else 
+                //the reader gets its own copy of the data, the slots of the mix buffer are reused by the mixer
+                if (buffer.getData()==EMPTY_BUFFER)
+                    buffer.setData(null);
+                if (!mixBuffer.read(buffer))
                     buffer.setDiscard(true);
             }
         }
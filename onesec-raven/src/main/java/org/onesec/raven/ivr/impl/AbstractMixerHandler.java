@@ -161,9 +161,9 @@ public abstract class AbstractMixerHandler implements MixerHandler {
                 PushBufferDataSource ds = datasource;
                 Buffer buffer = new Buffer();
                 stream.read(buffer);
-                byte[] data = (byte[]) buffer.getData();
-                if (data!=null)
-                    bytesCount.addAndGet(data.length);
+                //the cached buffers share one array, so only the data of this buffer is counted
+                if (buffer.getData()!=null)
+                    bytesCount.addAndGet(buffer.getLength());
                 buffers.push(buffer);
                 if (buffer.isEOM())
                     alive.compareAndSet(true, false);
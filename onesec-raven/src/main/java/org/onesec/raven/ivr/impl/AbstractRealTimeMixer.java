@@ -18,7 +18,6 @@ package org.onesec.raven.ivr.impl;
 import java.io.IOException;
 import static java.lang.Math.*;
 import java.util.Arrays;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.media.Buffer;
 import javax.media.Format;
@@ -30,12 +29,11 @@ import javax.media.protocol.PushBufferDataSource;
 import javax.media.protocol.PushBufferStream;
 import org.onesec.raven.RingQueue;
 import org.onesec.raven.codec.ByteUtils;
+import org.onesec.raven.codec.PcmUtils;
 import org.onesec.raven.ivr.CodecManager;
 import org.onesec.raven.ivr.MixerHandler;
 import org.onesec.raven.ivr.RealTimeDataSourceMarker;
 import org.raven.sched.ExecutorService;
-import org.raven.sched.ExecutorServiceException;
-import org.raven.sched.Task;
 import org.raven.tree.Node;
 import org.raven.tree.impl.LoggerHelper;
 /**
@@ -63,6 +61,7 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
     protected final CodecManager codecManager;
     protected final Node owner;
     protected final ExecutorService executor;
+    protected final MediaClock clock;
     protected final int noiseLevel;
     protected final double maxGainCoef;
 
@@ -76,10 +75,17 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
     
     public AbstractRealTimeMixer(CodecManager codecManager, Node owner, LoggerHelper logger
             , ExecutorService executor, int noiseLevel, double maxGainCoef) 
+    {
+        this(codecManager, owner, logger, executor, MediaClock.getDefault(), noiseLevel, maxGainCoef);
+    }
+    
+    public AbstractRealTimeMixer(CodecManager codecManager, Node owner, LoggerHelper logger
+            , ExecutorService executor, MediaClock clock, int noiseLevel, double maxGainCoef) 
     {
         this.codecManager = codecManager;
         this.owner = owner;
         this.executor = executor;
+        this.clock = clock;
         this.noiseLevel = noiseLevel;
         this.maxGainCoef = maxGainCoef;
         this.logger = logger;
@@ -112,19 +118,22 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
 
     @Override
     public void connect() throws IOException {
-        if (connected.compareAndSet(false, true))
+        if (connected.compareAndSet(false, true)) {
+            MixerHandler handler = firstHandler;
+            while (handler!=null) {
+                handler.connect();
+                handler = handler.getNextHandler();
+            }
             try {
-                MixerHandler handler = firstHandler;
-                while (handler!=null) {
-                    handler.connect();
-                    handler = handler.getNextHandler();
-                }
-                executor.execute((Task)streams[0]);
-            } catch (ExecutorServiceException ex) {
+                clock.register((Stream)streams[0]);
+            } catch (IllegalStateException e) {
                 if (logger.isErrorEnabled())
-                    logger.error("Error executing STREAM task", ex);
-                throw new IOException(ex);
+                    logger.error("Error registering STREAM in the media clock", e);
+                throw new IOException(e);
             }
+            if (logger.isDebugEnabled())
+                logger.debug("Merger registered in the media clock ("+clock+")");
+        }
     }
 
     @Override public void disconnect() {
@@ -184,25 +193,8 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
 //            System.out.println("WRITING SILIENCE");
 //            System.out.println("S: "+Arrays.toString(SILENCE_DATA));
         } else  {
-            double koef = maxGainCoef;
-            if (koef>1.01 || streamsCount>1) {
-                int max=0;
-                for (int i=0; i<len; i++) {
-                    data[i] = data[i]/streamsCount;
-                    max = max(max, abs(data[i]));
-                }
-                koef = min(max>0? 32767./max : 1., maxGainCoef);
-            } 
-            koef = min(maxGainCoef, koef);
-            int k =0;
-            for (int i=0; i<byteLen; i+=2) {
-                if (koef>1.01) {
-//                    System.out.println("Gaining!!!"); 
-                    data[k] = (int) (koef*data[k]);
-                }
-//                ByteUtils.writeSignedShortAsUnsigned(i, data[k++], byteData, true);
-                ByteUtils.writeShort(i, data[k++], byteData, true);
-            }
+            PcmUtils.normalize(data, len, streamsCount, maxGainCoef);
+            PcmUtils.encode(data, 0, byteData, 0, len);
         }
 //        Buffer buf = new Buffer();
         buf.setFormat(FORMAT);
@@ -213,12 +205,17 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
         return buf;
     }
     
-    private class Stream implements PushBufferStream, Task {
+    private class Stream implements PushBufferStream, MediaClock.Listener {
         private final int[] data = new int[BUFFER_SIZE];
         private final int[] workData = new int[BUFFER_SIZE];
         private final int BYTES_BUFFER_SIZE = BUFFER_SIZE * 2; //16bit per sample
 //        private final int BYTES_BUFFER_SIZE = BUFFER_SIZE; //16bit per sample
-        private final byte[] byteData = new byte[BYTES_BUFFER_SIZE]; 
+        //every transmit buffer has its own data array, so the buffer read by the consumer on the previous
+        //tick is not overwritten by the current one
+        private final byte[][] byteData = new byte[][]{
+            new byte[BYTES_BUFFER_SIZE], new byte[BYTES_BUFFER_SIZE]}; 
+        private final Buffer[] transmitBuffers = new Buffer[]{new Buffer(), new Buffer()};
+        private int transmitBufferIndex = 0;
 //        private final short[] byteData = new short[BUFFER_SIZE]; 
         
         private volatile Buffer bufferToTranssmit;
@@ -258,35 +255,19 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
             return null;
         }
 
-        public Node getTaskNode() {
-            return owner;
-        }
-
-        public String getStatusMessage() {
-            return "Merging audio streams";
-        }
-
-        public void run() {
-            try {
+        public boolean tick() {
+            if (stopped) {
                 if (logger.isDebugEnabled())
-                    logger.debug("Merger task executed");
-                long startTime = System.currentTimeMillis();
-                long packetNumber = 0;
-                while (!stopped) {
-                    //transsmit
-                    mergeAndTranssmit();
-                    //sleep
-                    ++packetNumber;
-                    long timeDiff = System.currentTimeMillis() - startTime;
-                    long expectedPacketNumber = timeDiff/TICK_INTERVAL;
-                    long correction = timeDiff % TICK_INTERVAL;
-                    long sleepTime = (packetNumber-expectedPacketNumber) * TICK_INTERVAL - correction;
-                    if (sleepTime>0)
-                        TimeUnit.MILLISECONDS.sleep(sleepTime);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                    logger.debug("Merger stopped. Unregistering from the media clock");
+                return false;
             }
+            mergeAndTranssmit();
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Mixer stream ("+owner+")";
         }
 
         private void mergeAndTranssmit() {
@@ -310,8 +291,9 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
                 handler = handler.getNextHandler();
             }
             applyBufferToHandlers(firstHandler, data, maxlen, streamsCount, maxGainCoef, BYTE_BUFFER_SIZE);
-            bufferToTranssmit = createBuffer(new Buffer(), data, byteData, maxlen, streamsCount, maxGainCoef, 
-                    BYTES_BUFFER_SIZE);
+            transmitBufferIndex ^= 1;
+            bufferToTranssmit = createBuffer(transmitBuffers[transmitBufferIndex], data, 
+                    byteData[transmitBufferIndex], maxlen, streamsCount, maxGainCoef, BYTES_BUFFER_SIZE);
             BufferTransferHandler _transferHandler = transferHandler;
             if (_transferHandler!=null)
                 _transferHandler.transferData(this);
@@ -336,13 +318,9 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
                     byte[] bufdata = (byte[]) buffer.getData();
                     int bufOffset = buffer.getOffset();
                     int bytesToRead = min(len, buflen);
-                    int lastPos = bufOffset+bytesToRead;
-//                    System.out.println(String.format("R. (%d) Buf len: %s, bytes to read: %s", System.currentTimeMillis(), buflen, bytesToRead));
-                    for (int i=bufOffset; i<lastPos; i+=2) {
-                        int val = ByteUtils.readSignedShort(i, bufdata, true);
-                        max = max(max, abs(val));
-                        workData[offset++] = val;
-                    }
+                    int samples = bytesToRead/2;
+                    max = max(max, PcmUtils.decode(bufdata, bufOffset, workData, offset, samples));
+                    offset += samples;
                     if (bytesToRead==buflen || buffer.isEOM()) {
                         bufferQueue.pop();
                         buffer = bufferQueue.peek();
@@ -356,8 +334,7 @@ public abstract class AbstractRealTimeMixer<H extends MixerHandler<H>> extends P
             }
             if (max>noiseLevel) {
                 handler.applyProcessingBuffer(workData);
-                for (int i=0; i<offset; ++i)
-                    data[i]+=workData[i];
+                PcmUtils.add(data, workData, offset);
                 return offset;
             } else {
                 handler.applyProcessingBuffer(null);
@@ -17,13 +17,17 @@
 
 package org.onesec.raven.ivr.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -48,14 +52,25 @@ public class BufferCacheImpl implements BufferCache
     public final static String SILENCE_RESOURCE_NAME = "/org/onesec/raven/ivr/silence.wav";
     public final static int WAIT_STATE_TIMEOUT = 2000;
     public final static long DEFAULT_MAX_CACHE_IDLE_TIME = 3600l;
+    public final static long DEFAULT_MAX_CACHE_SIZE = 64*1024*1024l;
 
     private final Map<String, Buffer> silentBuffers = new ConcurrentHashMap<>();
-    private final Map<String, BuffersCacheEntity>  buffersCache = new ConcurrentHashMap<>();
+    //access ordered, guarded by itself. The eldest entity is the least recently used one
+    private final LinkedHashMap<String, CacheEntity>  buffersCache = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentMap<String, BuffersCacheStore.Entry> storeEntries = new ConcurrentHashMap<>();
     private final RTPManagerService rtpManagerService;
     private final CodecManager codecManager;
     private final Logger logger;
 
     private final AtomicLong maxCacheIdleTime = new AtomicLong(DEFAULT_MAX_CACHE_IDLE_TIME);
+    private final AtomicLong maxCacheSize = new AtomicLong(DEFAULT_MAX_CACHE_SIZE);
+    private volatile BuffersCacheStore store;
+    private long cacheSize;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong storeHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
 
     public BufferCacheImpl(RTPManagerService rtpManagerService, Logger logger, CodecManager codecManager) {
         this.rtpManagerService = rtpManagerService;
@@ -79,7 +94,9 @@ public class BufferCacheImpl implements BufferCache
     }
 
     public List<BuffersCacheEntity> getCacheEntities() {
-        return new ArrayList<BuffersCacheEntity>(buffersCache.values());
+        synchronized (buffersCache) {
+            return new ArrayList<BuffersCacheEntity>(buffersCache.values());
+        }
     }
 
     public long getMaxCacheIdleTime() {
@@ -87,25 +104,184 @@ public class BufferCacheImpl implements BufferCache
     }
 
     public void removeOldCaches() {
-        Iterator<Map.Entry<String, BuffersCacheEntity>> it = buffersCache.entrySet().iterator();
-        while (it.hasNext())
-            if (it.next().getValue().isInvalid())
-                it.remove();
+        synchronized (buffersCache) {
+            Iterator<CacheEntity> it = buffersCache.values().iterator();
+            while (it.hasNext()) {
+                CacheEntity entity = it.next();
+                if (entity.isInvalid()) {
+                    it.remove();
+                    cacheSize -= entity.size;
+                }
+            }
+        }
     }
 
     public void setMaxCacheIdleTime(long time) {
         maxCacheIdleTime.set(time);
     }
 
+    public long getMaxCacheSize() {
+        return maxCacheSize.get();
+    }
+
+    public void setMaxCacheSize(long size) {
+        maxCacheSize.set(size);
+        synchronized (buffersCache) {
+            evictLeastRecentlyUsed(null);
+        }
+    }
+
+    public File getStoreDirectory() {
+        BuffersCacheStore _store = store;
+        return _store==null? null : _store.getDir();
+    }
+
+    public synchronized void setStoreDirectory(File dir) throws IOException {
+        BuffersCacheStore _store = store;
+        if (dir==null? _store==null : _store!=null && dir.equals(_store.getDir()))
+            return;
+        store = null;
+        storeEntries.clear();
+        if (dir==null)
+            return;
+        _store = new BuffersCacheStore(dir, logger);
+        List<BuffersCacheStore.Entry> entries = _store.scan();
+        for (BuffersCacheStore.Entry entry: entries)
+            storeEntries.put(formCacheKey(entry.getKey(), entry.getCodec(), entry.getPacketSize()), entry);
+        store = _store;
+        warmUp(_store, entries);
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getStoreHits() {
+        return storeHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getCacheEvictions() {
+        return cacheEvictions.get();
+    }
+
+    public long getCacheSize() {
+        synchronized (buffersCache) {
+            return cacheSize;
+        }
+    }
+
+    public int getStoreEntitiesCount() {
+        return storeEntries.size();
+    }
+
+    public long getStoreSize() {
+        long size = 0;
+        for (BuffersCacheStore.Entry entry: storeEntries.values())
+            size += entry.getDataSize();
+        return size;
+    }
+
     public void cacheBuffers(String key, long checksum, Codec codec, int packetSize, Collection<Buffer> buffers) {
-        buffersCache.put(
-                formCacheKey(key, codec, packetSize)
-                , new CacheEntity(key, codec, packetSize, checksum, buffers));
+        String cacheKey = formCacheKey(key, codec, packetSize);
+        CacheEntity entity = new CacheEntity(key, codec, packetSize, checksum, buffers);
+        putToCache(cacheKey, entity);
+        BuffersCacheStore _store = store;
+        if (_store!=null) {
+            try {
+                BuffersCacheStore.Entry entry = _store.write(key, codec, packetSize, checksum, entity.buffers);
+                if (entry!=null)
+                    storeEntries.put(cacheKey, entry);
+                else if (logger.isDebugEnabled())
+                    logger.debug("Buffers of ({}) can not be stored", cacheKey);
+            } catch (IOException e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("Error storing buffers of (%s) to (%s)", cacheKey, _store.getDir()), e);
+            }
+        }
     }
 
     public Buffer[] getCachedBuffers(String key, long checksum, Codec codec, int packetSize) {
-        BuffersCacheEntity entity = buffersCache.get(formCacheKey(key, codec, packetSize));
-        return entity!=null && entity.getChecksum()==checksum? entity.getBuffers() : null;
+        String cacheKey = formCacheKey(key, codec, packetSize);
+        CacheEntity entity;
+        synchronized (buffersCache) {
+            entity = buffersCache.get(cacheKey);
+        }
+        if (entity!=null && entity.getChecksum()==checksum) {
+            cacheHits.incrementAndGet();
+            return entity.getBuffers();
+        }
+        BuffersCacheStore.Entry entry = storeEntries.get(cacheKey);
+        BuffersCacheStore _store = store;
+        if (entry!=null && entry.getChecksum()==checksum && _store!=null) {
+            entity = loadFromStore(_store, cacheKey, entry);
+            if (entity!=null) {
+                storeHits.incrementAndGet();
+                return entity.getBuffers();
+            }
+        }
+        cacheMisses.incrementAndGet();
+        return null;
+    }
+
+    private void warmUp(BuffersCacheStore _store, List<BuffersCacheStore.Entry> entries) {
+        long ts = System.currentTimeMillis();
+        long size = 0;
+        int count = 0;
+        for (BuffersCacheStore.Entry entry: entries) {
+            size += entry.getDataSize();
+            if (size > maxCacheSize.get())
+                break;
+            if (loadFromStore(_store, formCacheKey(entry.getKey(), entry.getCodec(), entry.getPacketSize()), entry)!=null)
+                ++count;
+        }
+        if (logger.isInfoEnabled())
+            logger.info(String.format("Loaded (%s) of (%s) buffers caches from (%s) in %s ms"
+                    , count, entries.size(), _store.getDir(), System.currentTimeMillis()-ts));
+    }
+
+    private CacheEntity loadFromStore(BuffersCacheStore _store, String cacheKey, BuffersCacheStore.Entry entry) {
+        try {
+            CacheEntity entity = new CacheEntity(entry.getKey(), entry.getCodec(), entry.getPacketSize()
+                    , entry.getChecksum(), Arrays.asList(_store.read(entry)));
+            putToCache(cacheKey, entity);
+            return entity;
+        } catch (IOException e) {
+            if (logger.isErrorEnabled())
+                logger.error(String.format("Error loading buffers of (%s) from (%s)", cacheKey, _store.getDir()), e);
+            storeEntries.remove(cacheKey, entry);
+            _store.remove(entry);
+            return null;
+        }
+    }
+
+    private void putToCache(String cacheKey, CacheEntity entity) {
+        synchronized (buffersCache) {
+            CacheEntity prev = buffersCache.put(cacheKey, entity);
+            if (prev!=null)
+                cacheSize -= prev.size;
+            cacheSize += entity.size;
+            evictLeastRecentlyUsed(entity);
+        }
+    }
+
+    /**
+     * Removes least recently used entities until the cache size fits the {@link #getMaxCacheSize()}. 
+     * Must be called under the lock of the {@link #buffersCache}
+     */
+    private void evictLeastRecentlyUsed(CacheEntity protectedEntity) {
+        Iterator<CacheEntity> it = buffersCache.values().iterator();
+        while (cacheSize > maxCacheSize.get() && it.hasNext()) {
+            CacheEntity entity = it.next();
+            if (entity!=protectedEntity) {
+                it.remove();
+                cacheSize -= entity.size;
+                cacheEvictions.incrementAndGet();
+            }
+        }
     }
 
     private String formCacheKey(String key, Codec codec, int packetSize){
@@ -177,6 +353,7 @@ public class BufferCacheImpl implements BufferCache
         private final int packetSize;
         private final long checksum;
         private final Buffer[] buffers;
+        private final long size;
         private final AtomicLong ts = new AtomicLong(System.currentTimeMillis());
         private final AtomicLong usageCount = new AtomicLong(0);
 
@@ -188,6 +365,11 @@ public class BufferCacheImpl implements BufferCache
             this.checksum = checksum;
             this.buffers = new Buffer[buffers.size()];
             buffers.toArray(this.buffers);
+            long _size = 0;
+            for (Buffer buffer: this.buffers)
+                if (buffer!=null)
+                    _size += buffer.getLength();
+            this.size = _size;
         }
 
         public int getBuffersCount() {
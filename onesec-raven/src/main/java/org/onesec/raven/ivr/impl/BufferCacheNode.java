@@ -17,6 +17,7 @@
 
 package org.onesec.raven.ivr.impl;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -43,6 +44,7 @@ import org.weda.internal.annotations.Service;
  */
 public class BufferCacheNode extends BaseNode implements Viewable, Schedulable {
     public static final String MAX_CACHE_IDLE_TIME_ATTR = "maxCacheIdleTime";
+    public static final String MAX_CACHE_SIZE_ATTR = "maxCacheSize";
     public final static String NAME = "Buffers cache";
 
     @Service
@@ -51,6 +53,12 @@ public class BufferCacheNode extends BaseNode implements Viewable, Schedulable {
     @NotNull @Parameter
     private Long maxCacheIdleTime;
 
+    @NotNull @Parameter
+    private Long maxCacheSize;
+
+    @Parameter
+    private String storeDirectory;
+
     @NotNull @Parameter(valueHandlerType=SystemSchedulerValueHandlerFactory.TYPE)
     private Scheduler scheduler;
 
@@ -66,6 +74,11 @@ public class BufferCacheNode extends BaseNode implements Viewable, Schedulable {
             attr.setValue(""+bufferCache.getMaxCacheIdleTime());
             attr.save();
         }
+        attr = getNodeAttribute(MAX_CACHE_SIZE_ATTR);
+        if (attr.getValue()==null) {
+            attr.setValue(""+bufferCache.getMaxCacheSize());
+            attr.save();
+        }
     }
 
     @Override
@@ -75,6 +88,12 @@ public class BufferCacheNode extends BaseNode implements Viewable, Schedulable {
             bufferCache.setMaxCacheIdleTime(maxCacheIdleTime);
         else
             throw new Exception("The value of the (maxCacheIdleTime) attribute must be greate than zero");
+        if (maxCacheSize>0)
+            bufferCache.setMaxCacheSize(maxCacheSize);
+        else
+            throw new Exception("The value of the (maxCacheSize) attribute must be greate than zero");
+        String dir = storeDirectory;
+        bufferCache.setStoreDirectory(dir==null || dir.trim().isEmpty()? null : new File(dir));
     }
 
     public Scheduler getScheduler() {
@@ -93,6 +112,57 @@ public class BufferCacheNode extends BaseNode implements Viewable, Schedulable {
         this.maxCacheIdleTime = maxCacheIdleTime;
     }
 
+    public Long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(Long maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    public String getStoreDirectory() {
+        return storeDirectory;
+    }
+
+    public void setStoreDirectory(String storeDirectory) {
+        this.storeDirectory = storeDirectory;
+    }
+
+    @Parameter(readOnly = true)
+    public Long getCacheHits() {
+        return bufferCache.getCacheHits();
+    }
+
+    @Parameter(readOnly = true)
+    public Long getStoreHits() {
+        return bufferCache.getStoreHits();
+    }
+
+    @Parameter(readOnly = true)
+    public Long getCacheMisses() {
+        return bufferCache.getCacheMisses();
+    }
+
+    @Parameter(readOnly = true)
+    public Long getCacheEvictions() {
+        return bufferCache.getCacheEvictions();
+    }
+
+    @Parameter(readOnly = true)
+    public Long getCacheSize() {
+        return bufferCache.getCacheSize();
+    }
+
+    @Parameter(readOnly = true)
+    public Long getStoreSize() {
+        return bufferCache.getStoreSize();
+    }
+
+    @Parameter(readOnly = true)
+    public Integer getStoreEntitiesCount() {
+        return bufferCache.getStoreEntitiesCount();
+    }
+
     public Map<String, NodeAttribute> getRefreshAttributes() throws Exception {
         return null;
     }
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.media.Buffer;
+import javax.media.Format;
+import org.onesec.raven.ivr.Codec;
+import org.slf4j.Logger;
+
+/**
+ * The persistent store of the transcoded buffers. Every cache entity (key, codec, packet size) is stored
+ * in its own file:
+ * <pre>
+ *   header: magic, version, key, codec, packet size, checksum, serialized format, buffers count, data size
+ *   buffers descriptors: length, time stamp, duration, flags, sequence number
+ *   buffers data
+ * </pre>
+ * Files are read through the memory mapping. The data of all buffers of the entity is placed to the one
+ * array so the loaded entity does not produce the array per packet.
+ *
+ * @author Mikhail Titov
+ */
+class BuffersCacheStore {
+    public final static String FILE_EXTENSION = ".bcs";
+    private final static int MAGIC = 0x4f534243;
+    private final static int VERSION = 1;
+    private final static int DESCRIPTOR_SIZE = 4 + 8 + 8 + 4 + 8;
+    private final static Charset CHARSET = Charset.forName("UTF-8");
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final Logger logger;
+
+    public BuffersCacheStore(File dir, Logger logger) throws IOException {
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException(String.format("Can't create buffers cache store directory (%s)", dir));
+        if (!dir.isDirectory())
+            throw new IOException(String.format("(%s) is not a directory", dir));
+        this.dir = dir;
+        this.logger = logger;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Reads headers of all entities of the store. The most recently written entities are first in the list.
+     * Unfinished and corrupted files are removed.
+     */
+    public List<Entry> scan() {
+        File[] files = dir.listFiles();
+        List<Entry> entries = new ArrayList<>(files==null? 0 : files.length);
+        if (files==null)
+            return entries;
+        for (File file: files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp"))
+                file.delete();
+            else if (name.endsWith(FILE_EXTENSION)) {
+                try {
+                    entries.add(readEntry(file, false).entry);
+                } catch (Exception e) {
+                    if (logger.isWarnEnabled())
+                        logger.warn(String.format("Removing invalid buffers cache store file (%s)", file), e);
+                    file.delete();
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override public int compare(Entry o1, Entry o2) {
+                return Long.compare(o2.lastModified, o1.lastModified);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Writes buffers to the store. Returns null if buffers can not be stored (the buffer data is not a byte
+     * array or the buffers have different formats).
+     */
+    public Entry write(String key, Codec codec, int packetSize, long checksum, Buffer[] buffers)
+            throws IOException
+    {
+        Format format = null;
+        long dataSize = 0;
+        for (Buffer buffer: buffers) {
+            if (buffer==null || !(buffer.getData() instanceof byte[]) || buffer.getHeader()!=null)
+                return null;
+            if (format==null)
+                format = buffer.getFormat();
+            else if (!format.equals(buffer.getFormat()))
+                return null;
+            dataSize += buffer.getLength();
+        }
+        byte[] formatBytes = serializeFormat(format);
+        File file = getFile(key, codec, packetSize);
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, key);
+                writeString(out, codec.name());
+                out.writeInt(packetSize);
+                out.writeLong(checksum);
+                out.writeInt(formatBytes.length);
+                out.write(formatBytes);
+                out.writeInt(buffers.length);
+                out.writeLong(dataSize);
+                for (Buffer buffer: buffers) {
+                    out.writeInt(buffer.getLength());
+                    out.writeLong(buffer.getTimeStamp());
+                    out.writeLong(buffer.getDuration());
+                    out.writeInt(buffer.getFlags());
+                    out.writeLong(buffer.getSequenceNumber());
+                }
+                for (Buffer buffer: buffers)
+                    out.write((byte[])buffer.getData(), buffer.getOffset(), buffer.getLength());
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmpFile.delete();
+        }
+        return new Entry(file, key, codec, packetSize, checksum, buffers.length, dataSize, file.lastModified());
+    }
+
+    /**
+     * Reads buffers of the entry from the store
+     */
+    public Buffer[] read(Entry entry) throws IOException {
+        try {
+            Loaded loaded = readEntry(entry.file, true);
+            if (loaded.entry.checksum!=entry.checksum || !loaded.entry.key.equals(entry.key))
+                throw new IOException("Store file was changed");
+            return loaded.buffers;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void remove(Entry entry) {
+        entry.file.delete();
+    }
+
+    private File getFile(String key, Codec codec, int packetSize) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((key+"_"+codec+"_"+packetSize).getBytes(CHARSET));
+            char[] name = new char[hash.length*2];
+            for (int i=0; i<hash.length; ++i) {
+                name[i*2] = HEX[(hash[i] >> 4) & 0x0F];
+                name[i*2+1] = HEX[hash[i] & 0x0F];
+            }
+            return new File(dir, new String(name)+FILE_EXTENSION);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Loaded readEntry(File file, boolean readBuffers) throws IOException, ClassNotFoundException {
+        MappedByteBuffer map;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        if (map.getInt()!=MAGIC || map.getInt()!=VERSION)
+            throw new IOException("Invalid store file header");
+        String key = readString(map);
+        Codec codec = Codec.valueOf(readString(map));
+        int packetSize = map.getInt();
+        long checksum = map.getLong();
+        byte[] formatBytes = new byte[map.getInt()];
+        map.get(formatBytes);
+        int count = map.getInt();
+        long dataSize = map.getLong();
+        int dataPos = map.position() + count*DESCRIPTOR_SIZE;
+        if (count<0 || dataSize>Integer.MAX_VALUE || dataPos+dataSize!=map.limit())
+            throw new IOException("Invalid store file size");
+        Entry entry = new Entry(file, key, codec, packetSize, checksum, count, dataSize, file.lastModified());
+        if (!readBuffers)
+            return new Loaded(entry, null);
+        Format format = deserializeFormat(formatBytes);
+        byte[] data = new byte[(int)dataSize];
+        ByteBuffer dataMap = map.duplicate();
+        dataMap.position(dataPos);
+        dataMap.get(data);
+        Buffer[] buffers = new Buffer[count];
+        int offset = 0;
+        for (int i=0; i<count; ++i) {
+            Buffer buffer = new Buffer();
+            buffer.setFormat(format);
+            buffer.setData(data);
+            buffer.setOffset(offset);
+            buffer.setLength(map.getInt());
+            buffer.setTimeStamp(map.getLong());
+            buffer.setDuration(map.getLong());
+            buffer.setFlags(map.getInt());
+            buffer.setSequenceNumber(map.getLong());
+            offset += buffer.getLength();
+            buffers[i] = buffer;
+        }
+        if (offset!=dataSize)
+            throw new IOException("Invalid buffers descriptors");
+        return new Loaded(entry, buffers);
+    }
+
+    private static byte[] serializeFormat(Format format) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(format);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Format deserializeFormat(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (Format) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    public static class Entry {
+        private final File file;
+        private final String key;
+        private final Codec codec;
+        private final int packetSize;
+        private final long checksum;
+        private final int buffersCount;
+        private final long dataSize;
+        private final long lastModified;
+
+        public Entry(File file, String key, Codec codec, int packetSize, long checksum, int buffersCount,
+                long dataSize, long lastModified)
+        {
+            this.file = file;
+            this.key = key;
+            this.codec = codec;
+            this.packetSize = packetSize;
+            this.checksum = checksum;
+            this.buffersCount = buffersCount;
+            this.dataSize = dataSize;
+            this.lastModified = lastModified;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Codec getCodec() {
+            return codec;
+        }
+
+        public int getPacketSize() {
+            return packetSize;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public int getBuffersCount() {
+            return buffersCount;
+        }
+
+        public long getDataSize() {
+            return dataSize;
+        }
+    }
+
+    private static class Loaded {
+        private final Entry entry;
+        private final Buffer[] buffers;
+
+        public Loaded(Entry entry, Buffer[] buffers) {
+            this.entry = entry;
+            this.buffers = buffers;
+        }
+    }
+}
@@ -74,6 +74,10 @@ public class CallCdrRecordSchemaNode extends RecordSchemaNode {
     public final static String IN_RTP_REMOTE_COLLISIONS = "inRtpRemoteCollisions";
     public final static String IN_RTP_LOCAL_COLLISIONS = "inRtpLocalCollisions";
     public final static String IN_RTP_TRANSMIT_FAILED = "inRtpTransmitFailed";
+    public final static String IN_RTP_LATE_PACKETS = "inRtpLatePackets";
+    public final static String IN_RTP_LOST_PACKETS = "inRtpLostPackets";
+    public final static String IN_RTP_REORDERED_PACKETS = "inRtpReorderedPackets";
+    public final static String IN_RTP_DISCARDED_PACKETS = "inRtpDiscardedPackets";
     
     //out rtp stat
     public final static String OUT_RTP_LOCAL_ADDR = "outRtpLocalAddr";
@@ -157,6 +161,10 @@ public class CallCdrRecordSchemaNode extends RecordSchemaNode {
         createField(IN_RTP_REMOTE_COLLISIONS, RecordSchemaFieldType.INTEGER);
         createField(IN_RTP_LOCAL_COLLISIONS, RecordSchemaFieldType.INTEGER);
         createField(IN_RTP_TRANSMIT_FAILED, RecordSchemaFieldType.INTEGER);
+        createField(IN_RTP_LATE_PACKETS, RecordSchemaFieldType.INTEGER);
+        createField(IN_RTP_LOST_PACKETS, RecordSchemaFieldType.INTEGER);
+        createField(IN_RTP_REORDERED_PACKETS, RecordSchemaFieldType.INTEGER);
+        createField(IN_RTP_DISCARDED_PACKETS, RecordSchemaFieldType.INTEGER);
         
         //out rtp fields
         createField(OUT_RTP_LOCAL_ADDR, RecordSchemaFieldType.STRING);
@@ -21,12 +21,15 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.media.Buffer;
+import javax.media.protocol.BufferTransferHandler;
 import javax.media.protocol.DataSource;
-import javax.media.protocol.FileTypeDescriptor;
 import javax.media.protocol.PushBufferDataSource;
+import javax.media.protocol.PushBufferStream;
 import javax.script.Bindings;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
@@ -55,7 +58,9 @@ import org.raven.tree.NodeAttribute;
 import org.raven.tree.Viewable;
 import org.raven.tree.ViewableObject;
 import org.raven.tree.impl.BaseNode;
+import org.raven.tree.impl.FileViewableObject;
 import org.raven.tree.impl.LoggerHelper;
+import org.raven.tree.impl.NodeAttributeImpl;
 import org.raven.tree.impl.NodeReferenceValueHandlerFactory;
 import org.raven.tree.impl.ViewableObjectImpl;
 import org.weda.annotations.constraints.NotNull;
@@ -77,6 +82,11 @@ public class CallRecorderNode extends BaseNode
     public static final String DATE_BINDING = "date";
     public static final String PATH_BINDING = "path";
     public static final String TIME_BINDING = "time";
+    public static final String CATALOG_DIR = ".catalog";
+    public static final String NUMBER_ATTR = "number";
+    public static final String CONVERSATION_ID_ATTR = "conversationId";
+    public static final String DATE_ATTR = "date";
+    public static final int MAX_CATALOG_ROWS = 1000;
     
     @Service
     private static CodecManager codecManager;
@@ -116,13 +126,28 @@ public class CallRecorderNode extends BaseNode
     @NotNull @Parameter(defaultValue="false")
     private Boolean startRecordOnConnectionEstablished;
     
+    @NotNull @Parameter(defaultValue="false")
+    private Boolean stereoRecording;
+    
+    @NotNull @Parameter(defaultValue="2")
+    private Integer ioThreadsCount;
+    
+    @NotNull @Parameter(defaultValue="1000")
+    private Long flushInterval;
+    
     @Message private static String callInfoMessage;
     @Message private static String recordStartTimeMessage;
     @Message private static String recordDurationMessage;
     @Message private static String recordFileMessage;
+    @Message private static String catalogTitleMessage;
+    @Message private static String conversationIdMessage;
+    @Message private static String callingNumberMessage;
+    @Message private static String calledNumberMessage;
     
     private ConcurrentHashMap<IvrConversationsBridge, Recorder> recorders;
     private volatile File baseDirFile;
+    private volatile WavRecordingWriter recordingWriter;
+    private volatile RecordingCatalog catalog;
     private BindingSupportImpl bindingSupport;
 
     @Override
@@ -144,6 +169,25 @@ public class CallRecorderNode extends BaseNode
         if (!baseDirFile.canWrite())
             throw new Exception(String.format("No rights to create files in the directory (%s)", baseDir));
         checkRecord();
+        LoggerHelper nodeLogger = new LoggerHelper(this, "");
+        RecordingCatalog _catalog = new RecordingCatalog(new File(baseDirFile, CATALOG_DIR), nodeLogger);
+        _catalog.open();
+        catalog = _catalog;
+        recordingWriter = new WavRecordingWriter(getName(), ioThreadsCount, flushInterval
+                , WavRecordingWriter.DEFAULT_CHUNK_SIZE, nodeLogger);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        WavRecordingWriter writer = recordingWriter;
+        recordingWriter = null;
+        if (writer!=null)
+            writer.stop();
+        RecordingCatalog _catalog = catalog;
+        catalog = null;
+        if (_catalog!=null)
+            _catalog.close();
     }
     
     private void checkRecord() throws Exception {
@@ -206,7 +250,7 @@ public class CallRecorderNode extends BaseNode
         try {
             File file = generateRecordFile(bridge, context);
             final Recorder recorder = new Recorder(bridge, codecManager, file, recordSchema
-                    , noiseLevel, maxGainCoef, context);
+                    , noiseLevel, maxGainCoef, stereoRecording, context);
             if (isLogLevelEnabled(LogLevel.DEBUG))
                 getLogger().debug(logMess(bridge, "Recorder created. Recorording to the file (%s)", file));
             if (startRecordOnConnectionEstablished)
@@ -304,13 +348,20 @@ public class CallRecorderNode extends BaseNode
     }
 
     public Map<String, NodeAttribute> getRefreshAttributes() throws Exception {
-        return null;
+        Map<String, NodeAttribute> attrs = new LinkedHashMap<String, NodeAttribute>();
+        for (String name: new String[]{NUMBER_ATTR, CONVERSATION_ID_ATTR, DATE_ATTR}) {
+            NodeAttributeImpl attr = new NodeAttributeImpl(name, String.class, null, null);
+            attr.setOwner(this);
+            attr.init();
+            attrs.put(name, attr);
+        }
+        return attrs;
     }
 
     public List<ViewableObject> getViewableObjects(Map<String, NodeAttribute> refreshAttributes) 
             throws Exception 
     {
-        List<ViewableObject> vos = new ArrayList<ViewableObject>(1);
+        List<ViewableObject> vos = new ArrayList<ViewableObject>(3);
         TableImpl tab = new TableImpl(new String[]{callInfoMessage, recordStartTimeMessage
                 , recordDurationMessage, recordFileMessage});
         List<Recorder> recordersList = new ArrayList<Recorder>(recorders.values());
@@ -325,8 +376,70 @@ public class CallRecorderNode extends BaseNode
                 rec.file.toString()
                 });
         vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, tab));
+        List<RecordingCatalog.Entry> entries = findCatalogEntries(refreshAttributes);
+        if (entries!=null) {
+            TableImpl catalogTab = new TableImpl(new String[]{conversationIdMessage, callingNumberMessage
+                    , calledNumberMessage, recordStartTimeMessage, recordDurationMessage, recordFileMessage});
+            for (RecordingCatalog.Entry entry: entries)
+                catalogTab.addRow(new Object[]{
+                    entry.getConversationId(), 
+                    entry.getCallingNumber(), 
+                    entry.getCalledNumber(),
+                    fmt.format(new Date(entry.getStartTime())),
+                    (entry.getCloseTime()-entry.getStartTime())/1000,
+                    new FileViewableObject(new File(entry.getFile()), this)
+                });
+            vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, catalogTitleMessage));
+            vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, catalogTab));
+        }
         return vos;
     }
+    
+    /**
+     * Searches the recordings in the catalog by the number (calling or called), by the conversation id or by 
+     * the date (dd.MM.yyyy) of the recording. The number and the conversation id can be combined with the date.
+     * Returns null if no search attribute is set
+     */
+    private List<RecordingCatalog.Entry> findCatalogEntries(Map<String, NodeAttribute> refreshAttributes) 
+            throws Exception
+    {
+        RecordingCatalog _catalog = catalog;
+        if (_catalog==null || refreshAttributes==null)
+            return null;
+        String number = getRefreshAttributeValue(refreshAttributes, NUMBER_ATTR);
+        String conversationId = getRefreshAttributeValue(refreshAttributes, CONVERSATION_ID_ATTR);
+        String date = getRefreshAttributeValue(refreshAttributes, DATE_ATTR);
+        long from = 0, to = Long.MAX_VALUE;
+        if (date!=null) {
+            from = new SimpleDateFormat("dd.MM.yyyy").parse(date).getTime();
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(from);
+            c.add(Calendar.DATE, 1);
+            to = c.getTimeInMillis();
+        }
+        List<RecordingCatalog.Entry> entries = new ArrayList<RecordingCatalog.Entry>();
+        if (number!=null) {
+            entries.addAll(_catalog.find(RecordingCatalog.Index.CALLING_NUMBER, number, MAX_CATALOG_ROWS));
+            entries.addAll(_catalog.find(RecordingCatalog.Index.CALLED_NUMBER, number, MAX_CATALOG_ROWS));
+        } else if (conversationId!=null)
+            entries.addAll(_catalog.find(RecordingCatalog.Index.CONVERSATION_ID, conversationId, MAX_CATALOG_ROWS));
+        else if (date!=null)
+            return _catalog.findByTime(from, to, MAX_CATALOG_ROWS);
+        else
+            return null;
+        List<RecordingCatalog.Entry> res = new ArrayList<RecordingCatalog.Entry>(entries.size());
+        Set<String> files = new HashSet<String>();
+        for (RecordingCatalog.Entry entry: entries)
+            if (entry.getStartTime()>=from && entry.getStartTime()<to && files.add(entry.getFile()))
+                res.add(entry);
+        return res;
+    }
+    
+    private static String getRefreshAttributeValue(Map<String, NodeAttribute> refreshAttributes, String name) {
+        NodeAttribute attr = refreshAttributes.get(name);
+        String value = attr==null? null : attr.getValue();
+        return value==null || value.trim().isEmpty()? null : value.trim();
+    }
 
     private void createBindings(IvrConversationsBridge bridge, DataContext context) {
         bindingSupport.put(CONV1_NUMA, bridge.getConversation1().getCallingNumber());
@@ -354,13 +467,17 @@ public class CallRecorderNode extends BaseNode
                         + "is null or has invalid value");
             return;
         }
-        File[] dirs = baseDirFile.listFiles((FileFilter)DirectoryFileFilter.DIRECTORY);
         Calendar c = Calendar.getInstance();
         c.add(Calendar.DATE, -1*days);
+        expireCatalogEntries(c);
+        //the directories of the recordings made before the catalog
+        File[] dirs = baseDirFile.listFiles((FileFilter)DirectoryFileFilter.DIRECTORY);
         int yearMonth = new Integer(new SimpleDateFormat("yyyyMM").format(c.getTime()));
         int day = c.get(Calendar.DATE);
         if (dirs!=null)
             for (File dir: dirs) {
+                if (dir.getName().startsWith("."))
+                    continue;
                 try {
                     String elems[] = dir.getName().split("\\.");
                     if (elems==null || elems.length!=2)
@@ -387,6 +504,26 @@ public class CallRecorderNode extends BaseNode
             }
     }
     
+    /**
+     * Deletes the recordings closed before the day of the calendar
+     */
+    private void expireCatalogEntries(Calendar c) {
+        RecordingCatalog _catalog = catalog;
+        if (_catalog==null)
+            return;
+        Calendar day = Calendar.getInstance();
+        day.clear();
+        day.set(c.get(Calendar.YEAR), c.get(Calendar.MONTH), c.get(Calendar.DATE));
+        try {
+            int count = _catalog.expire(day.getTimeInMillis());
+            if (isLogLevelEnabled(LogLevel.DEBUG))
+                getLogger().debug("Deleted {} recordings made before {}", count, day.getTime());
+        } catch (Throwable e) {
+            if (isLogLevelEnabled(LogLevel.ERROR))
+                getLogger().error("Error deleting old recordings from the catalog", e);
+        }
+    }
+    
     private void deleteDir(File dir) throws IOException {
         if (isLogLevelEnabled(LogLevel.DEBUG))
             getLogger().debug("Deleting directory ({})", dir);
@@ -409,6 +546,30 @@ public class CallRecorderNode extends BaseNode
         this.startRecordOnConnectionEstablished = startRecordOnConnectionEstablished;
     }
 
+    public Boolean getStereoRecording() {
+        return stereoRecording;
+    }
+
+    public void setStereoRecording(Boolean stereoRecording) {
+        this.stereoRecording = stereoRecording;
+    }
+
+    public Integer getIoThreadsCount() {
+        return ioThreadsCount;
+    }
+
+    public void setIoThreadsCount(Integer ioThreadsCount) {
+        this.ioThreadsCount = ioThreadsCount;
+    }
+
+    public Long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(Long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
     public Double getMaxGainCoef() {
         return maxGainCoef;
     }
@@ -524,60 +685,137 @@ public class CallRecorderNode extends BaseNode
         }
     }
     
+    /**
+     * Records the conversations of the bridge to the WAV file using the {@link WavRecordingWriter} of the node.
+     * In the mono mode the streams are mixed by the {@link RealTimeMixer} (noise level, gain), in the stereo 
+     * mode the stream of the every conversation is written to its own channel
+     */
     private class Recorder implements IncomingRtpStreamDataSourceListener, Comparable<Recorder> {
+        private final static long CLOSE_TIMEOUT = 5000;
         
         private final IvrConversationsBridge bridge;
         private final long recordingStartTime = System.currentTimeMillis();
         private final RealTimeMixer merger;
-        private final AudioFileWriterDataSource fileWriter;
         private final File file;
         private final RecordSchemaNode schema;
         private final DataContext context;
         private final LoggerHelper logger;
+        private final boolean stereo;
+        private final LegWriter[] legWriters = new LegWriter[2];
         
         private volatile boolean stopped = false;
         private volatile boolean started = false;
+        private boolean stopping = false;
         private volatile IncomingRtpStream inRtp1;
         private volatile IncomingRtpStream inRtp2;
+        private volatile WavRecordingWriter.Recording recording;
 
         public Recorder(IvrConversationsBridge bridge, CodecManager codecManager, File file
-                , RecordSchemaNode schema, int noiseLevel, double maxGainCoef, DataContext context) 
-            throws FileWriterDataSourceException 
+                , RecordSchemaNode schema, int noiseLevel, double maxGainCoef, boolean stereo
+                , DataContext context) 
         {
             this.bridge = bridge;
             this.file = file;
             this.schema = schema;
             this.context = context;
+            this.stereo = stereo;
             this.logger = new LoggerHelper(CallRecorderNode.this, bridge.toString()+"Recorder. ");
-            merger = new RealTimeMixer(codecManager, CallRecorderNode.this
+            merger = stereo? null : new RealTimeMixer(codecManager, CallRecorderNode.this
                     , logger.getPrefix(), executor, noiseLevel, maxGainCoef);
-            fileWriter = new AudioFileWriterDataSource(file, merger, codecManager, FileTypeDescriptor.WAVE, logger);
         }
         
         public synchronized void startRecording() {
             if (stopped)
                 return;
             try {
+                WavRecordingWriter writer = recordingWriter;
+                if (writer==null)
+                    throw new Exception("Recording writer stopped");
                 started = true;
+                recording = writer.createRecording(file, WavRecordingWriter.Encoding.LINEAR
+                        , (int)AbstractRealTimeMixer.FORMAT.getSampleRate(), stereo? 2 : 1, stereo);
+                if (!stereo)
+                    startLegWriter(0, merger);
                 inRtp1 = bridge.getConversation1().getIncomingRtpStream();
                 inRtp2 = bridge.getConversation2().getIncomingRtpStream();
                 inRtp1.addDataSourceListener(this, null);
                 inRtp2.addDataSourceListener(this, null);
-                fileWriter.start();                
             } catch (Exception ex) {
                 stopped = true;
                 if (logger.isErrorEnabled())
                     logger.error(String.format("Error starting writing to file (%s)", file), ex);
-                fileWriter.stop();
+                closeRecording();
+            }
+        }
+        
+        /**
+         * Closes the recording under the lock and waits for the writer to close the file outside of it, so
+         * the stream substitution and the other calls to the recorder are not blocked by the writer
+         */
+        public void stopRecording() {
+            final WavRecordingWriter.Recording _recording;
+            synchronized(this) {
+                if (stopping)
+                    return;
+                stopping = true;
+                stopped = true;
+                if (!started)
+                    return;
+                closeRecording();
+                _recording = recording;
+            }
+            try {
+                if (_recording!=null && !_recording.awaitClose(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)
+                    && logger.isWarnEnabled())
+                {
+                    logger.warn("File ({}) was not closed in {} ms", file, CLOSE_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            addToCatalog();
+            createAndSendRecord();
+        }
+        
+        private void addToCatalog() {
+            RecordingCatalog _catalog = catalog;
+            if (_catalog==null)
+                return;
+            try {
+                _catalog.add(new RecordingCatalog.Entry(bridge.getConversation1().getConversationId()
+                        , bridge.getConversation1().getCallingNumber(), bridge.getConversation2().getCalledNumber()
+                        , file.getAbsolutePath(), recordingStartTime, System.currentTimeMillis()));
+            } catch (Exception e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("Error adding recording (%s) to the catalog", file), e);
             }
         }
         
-        public synchronized void stopRecording() {
-            stopped = true;
-            if (started) {
-                fileWriter.stop();            
-                createAndSendRecord();
+        private void closeRecording() {
+            synchronized(legWriters) {
+                for (int i=0; i<legWriters.length; ++i)
+                    if (legWriters[i]!=null) {
+                        legWriters[i].stop();
+                        legWriters[i] = null;
+                    }
             }
+            WavRecordingWriter.Recording _recording = recording;
+            if (_recording!=null)
+                _recording.close();
+        }
+        
+        private void startLegWriter(int leg, PushBufferDataSource dataSource) throws IOException {
+            LegWriter legWriter = new LegWriter(leg, dataSource);
+            LegWriter prev;
+            synchronized(legWriters) {
+                if (stopped)
+                    return;
+                prev = legWriters[leg];
+                legWriters[leg] = legWriter;
+            }
+            if (prev!=null)
+                prev.stop();
+            legWriter.start();
         }
         
         private void createAndSendRecord() {
@@ -615,19 +853,24 @@ public class CallRecorderNode extends BaseNode
                 stopped = true;
                 if (logger.isErrorEnabled())
                     logger.error("Error handling stream substitution", e);
-                fileWriter.stop();
+                closeRecording();
             }
         }
 
         public void dataSourceCreated(IncomingRtpStream stream, DataSource dataSource) {
             try {
-                if (!stopped)
+                if (stopped)
+                    return;
+                if (!stereo)
                     merger.addDataSource((PushBufferDataSource)dataSource);
+                else if (stream==inRtp1 || stream==inRtp2)
+                    startLegWriter(stream==inRtp1? 0 : 1, new TranscoderDataSource(codecManager
+                            , (PushBufferDataSource)dataSource, AbstractRealTimeMixer.FORMAT, logger));
             } catch (Exception e) {
                 stopped = true;
                 if (logger.isErrorEnabled())
                     logger.error(String.format("Error starting writing to file (%s)", file), e);
-                fileWriter.stop();
+                closeRecording();
             }
         }
 
@@ -637,5 +880,50 @@ public class CallRecorderNode extends BaseNode
         public int compareTo(Recorder o) {
             return new Long(recordingStartTime).compareTo(o.recordingStartTime);
         }
+
+        /**
+         * Passes the buffers of the data source (linear, 8000 Hz, 16 bit, mono) to the leg of the recording
+         */
+        private class LegWriter implements BufferTransferHandler {
+            private final int leg;
+            private final PushBufferDataSource dataSource;
+            private final Buffer buffer = new Buffer();
+
+            public LegWriter(int leg, PushBufferDataSource dataSource) {
+                this.leg = leg;
+                this.dataSource = dataSource;
+            }
+
+            public void start() throws IOException {
+                dataSource.getStreams()[0].setTransferHandler(this);
+                dataSource.connect();
+                dataSource.start();
+            }
+
+            public void stop() {
+                dataSource.getStreams()[0].setTransferHandler(null);
+                try {
+                    dataSource.stop();
+                } catch (IOException e) {
+                    if (logger.isErrorEnabled())
+                        logger.error("Error stopping data source", e);
+                }
+                dataSource.disconnect();
+            }
+
+            public void transferData(PushBufferStream stream) {
+                try {
+                    stream.read(buffer);
+                    if (buffer.isDiscard() || buffer.getLength()<=0 || !(buffer.getData() instanceof byte[]))
+                        return;
+                    WavRecordingWriter.Recording _recording = recording;
+                    if (_recording!=null)
+                        _recording.write(leg, (byte[])buffer.getData(), buffer.getOffset(), buffer.getLength());
+                } catch (IOException e) {
+                    if (logger.isErrorEnabled())
+                        logger.error("Error reading the stream buffer", e);
+                }
+            }
+        }
     }
 }
@@ -48,6 +48,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -138,6 +139,11 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
     private final AtomicBoolean stopping = new AtomicBoolean();
     private final boolean sharePort;
     private final boolean startRtpImmediatelly;
+    private volatile JtapiEventDispatcher eventDispatcher;
+    //the dispatcher keys of the events that are not keyed by their own call. Maintained by the provider 
+    //observer thread at the moment of the events delivery
+    private final ConcurrentMap<Integer, Call> connIdCalls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Call, Call> replacedCalls = new ConcurrentHashMap<>();
 
     @Message private static String callIdColumnMessage;
     @Message private static String callInfoColumnMessage;
@@ -145,6 +151,7 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
     @Message private static String callDurationColumnMessage;
     @Message private static String endpointBusyMessage;
     @Message private static String callsCountMessage;
+    @Message private static String eventDispatcherStatMessage;
 
     public CiscoJtapiTerminal(ProviderRegistry providerRegistry
             , StateListenersCoordinator stateListenersCoordinator
@@ -186,6 +193,7 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
             if (logger.isDebugEnabled())
                 logger.debug("Checking terminal address...");
             termAddress = provider.getAddress(address);
+            eventDispatcher = JtapiEventDispatcher.getDispatcher(providerController.getName());
             ciscoTerm = registerTerminal(termAddress);
             registerTerminalListeners();
         } catch (Throwable e) {
@@ -198,6 +206,8 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
             resetListeners();
             unregisterTerminal(ciscoTerm);
             unregisterTerminalListeners();
+            connIdCalls.clear();
+            replacedCalls.clear();
         }
     }
 
@@ -374,6 +384,13 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
             vos.add(new ViewableObjectImpl(
                     Viewable.RAVEN_TEXT_MIMETYPE, String.format(callsCountMessage, callsCount)));
         }
+        final JtapiEventDispatcher dispatcher = eventDispatcher;
+        if (dispatcher!=null)
+            vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, String.format(eventDispatcherStatMessage,
+                    dispatcher.getName(), dispatcher.getEventsCount(), dispatcher.getQueueSize(),
+                    dispatcher.getQueueDepthPercentile(50), dispatcher.getQueueDepthPercentile(99),
+                    dispatcher.getLatencyPercentile(50, TimeUnit.MILLISECONDS),
+                    dispatcher.getLatencyPercentile(99, TimeUnit.MILLISECONDS))));
 //        if (lock.readLock().tryLock(500, TimeUnit.MILLISECONDS)){
 //            try{
 //                callsCount = calls.size();
@@ -483,7 +500,100 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
         }
     }
 
-    public void terminalChangedEvent(TermEv[] events) {
+    /*
+     * The observer methods are called from the event thread of the provider, which is shared by all
+     * terminals of the provider. The events are processed in the lane of the terminal of the event
+     * dispatcher, so the order of the events of the terminal is kept.
+     */
+    public void terminalChangedEvent(final TermEv[] events) {
+        dispatch(getTerminalEventsKey(events), new Runnable() {
+            @Override public void run() {
+                processTerminalEvents(events);
+            }
+        });
+    }
+
+    public void callChangedEvent(final CallEv[] events) {
+        dispatch(getCallEventsKey(events), new Runnable() {
+            @Override public void run() {
+                processCallEvents(events);
+            }
+        });
+    }
+
+    public void addressChangedEvent(final AddrEv[] events) {
+        dispatch(this, new Runnable() {
+            @Override public void run() {
+                processAddressEvents(events);
+            }
+        });
+    }
+    
+    /**
+     * The events are keyed by the call, so the events of the one call are processed in the order of 
+     * delivery and the calls of the terminal are processed in parallel
+     */
+    private void dispatch(Object key, Runnable event) {
+        try {
+            eventDispatcher.dispatch(key, event);
+        } catch (IllegalStateException e) {
+            //the provider was shut down, the terminal is being stopped
+            if (logger.isWarnEnabled())
+                logger.warn("Event ignored. {}", e.getMessage());
+        }
+    }
+    
+    private Object getCallEventsKey(CallEv[] events) {
+        final Call call = events[0].getCall();
+        final Call key = getCallKey(call);
+        for (CallEv ev: events)
+            switch (ev.getID()) {
+                case ConnConnectedEv.ID:
+                    Connection conn = ((ConnConnectedEv)ev).getConnection();
+                    if (address.equals(conn.getAddress().getName()))
+                        connIdCalls.put(((CiscoConnection)conn).getConnectionID().intValue(), key);
+                    break;
+                case ConnDisconnectedEv.ID:
+                    conn = ((ConnDisconnectedEv)ev).getConnection();
+                    if (address.equals(conn.getAddress().getName()))
+                        connIdCalls.remove(((CiscoConnection)conn).getConnectionID().intValue());
+                    break;
+                case CiscoCallChangedEv.ID:
+                    //the events of the surviving call must be processed after the replacement of the call
+                    replacedCalls.put(((CiscoCallChangedEv)ev).getSurvivingCall(), key);
+                    break;
+                case CallInvalidEv.ID:
+                    replacedCalls.remove(call);
+                    break;
+            }
+        return key;
+    }
+    
+    private Object getTerminalEventsKey(TermEv[] events) {
+        for (TermEv ev: events) {
+            Call call = null;
+            switch (ev.getID()) {
+                case CiscoMediaOpenLogicalChannelEv.ID: 
+                    call = connIdCalls.get(((CiscoMediaOpenLogicalChannelEv)ev).getCiscoRTPHandle().getHandle());
+                    break;
+                case CiscoRTPOutputStartedEv.ID: call = ((CiscoRTPOutputStartedEv)ev).getCallID().getCall(); break;
+                case CiscoRTPInputStartedEv.ID: call = ((CiscoRTPInputStartedEv)ev).getCallID().getCall(); break;
+                case CiscoRTPOutputStoppedEv.ID: call = ((CiscoRTPOutputStoppedEv)ev).getCallID().getCall(); break;
+                case CiscoRTPInputStoppedEv.ID: call = ((CiscoRTPInputStoppedEv)ev).getCallID().getCall(); break;
+            }
+            if (call!=null)
+                return getCallKey(call);
+        }
+        //the terminal state events
+        return this;
+    }
+    
+    private Call getCallKey(Call call) {
+        Call key = replacedCalls.get(call);
+        return key==null? call : key;
+    }
+
+    private void processTerminalEvents(TermEv[] events) {
         if (logger.isDebugEnabled())
             logger.debug("Recieved terminal events: "+eventsToString(events));
         for (TermEv ev: events)
@@ -498,7 +608,7 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
             }
     }
 
-    public void callChangedEvent(CallEv[] events) {
+    private void processCallEvents(CallEv[] events) {
         if (logger.isDebugEnabled())
             logCallEvents(events);
         for (CallEv ev: events) {
@@ -521,7 +631,7 @@ public class CiscoJtapiTerminal implements CiscoTerminalObserver, AddressObserve
         }
     }
     
-    public void addressChangedEvent(AddrEv[] events) {
+    private void processAddressEvents(AddrEv[] events) {
         if (logger.isDebugEnabled())
             logger.debug("Recieved address events: "+eventsToString(events));
         for (AddrEv ev: events)
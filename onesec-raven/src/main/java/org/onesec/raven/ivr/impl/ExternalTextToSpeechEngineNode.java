@@ -16,21 +16,33 @@
 package org.onesec.raven.ivr.impl;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.script.Bindings;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.LineIterator;
-import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.onesec.raven.impl.LatencyStat;
+import org.onesec.raven.ivr.InputStreamSource;
 import org.raven.BindingNames;
 import org.raven.annotations.NodeClass;
 import org.raven.annotations.Parameter;
@@ -71,6 +83,13 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
     public final static String WAV_FILENAME_BINDING = "wavFilename";
     
     public final static long PROCESS_EXECUTION_TIMEOUT = 5000;
+    public final static String TEXT_FILE_EXT = ".txt";
+    public final static String WAV_FILE_EXT = ".wav";
+    public final static String TMP_WAV_FILE_SUFFIX = "_tmp"+WAV_FILE_EXT;
+    //the access time of the cached file is saved to the file system not often than this interval
+    private final static long ACCESS_TIME_SAVE_INTERVAL = 60000;
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+    private final static int HASH_LENGTH = 40;
     
     @Service
     private static MessagesRegistry messReg;
@@ -87,23 +106,36 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
     private Charset commandStreamsEncoding;
     @NotNull @Parameter(defaultValue="5000")
     private Long commandExecutionTimeout;
+    @NotNull @Parameter(defaultValue="4")
+    private Integer maxConcurrentProcesses;
+    @NotNull @Parameter(defaultValue="1024")
+    private Long maxCacheSizeMb;
+    @NotNull @Parameter(defaultValue="60000")
+    private Long evictedEntryRemoveDelay;
     
     @Message private static String textColumnMessage;
     @Message private static String wavFileColumnMessage;
     @Message private static String tableHeaderMessage;
     
-    private Map<String, FileInputStreamSource> cache;
+    //key is the hash of the text, access ordered (the eldest entry is the least recently used one)
+    private LinkedHashMap<String, CacheEntry> cache;
+    private long cacheSize;
+    private ConcurrentMap<String, Synthesis> inFlight;
+    private volatile Semaphore processesSemaphore;
     private BindingSupportImpl bindingSupport;
-    private volatile long executionTime;
-    private volatile long operationsCount;
+    private LatencyStat executionStat;
     private AtomicInteger cacheHitCount;
     private AtomicInteger errorsCount;
+    private AtomicInteger joinedRequestsCount;
 
     @Override
     protected void initFields() {
         super.initFields();
-        cache = new ConcurrentHashMap<String, FileInputStreamSource>();
+        cache = new LinkedHashMap<>(64, 0.75f, true);
+        cacheSize = 0;
+        inFlight = new ConcurrentHashMap<>();
         bindingSupport = new BindingSupportImpl();
+        executionStat = new LatencyStat();
         resetStat();
     }
 
@@ -111,34 +143,67 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
     protected void doStart() throws Exception {
         super.doStart();
         resetStat();
+        processesSemaphore = new Semaphore(maxConcurrentProcesses, true);
         readCache();
     }
     
     private void resetStat() {
-        executionTime = 0;
-        operationsCount = 0;
+        executionStat.reset();
         cacheHitCount = new AtomicInteger();
         errorsCount = new AtomicInteger();
+        joinedRequestsCount = new AtomicInteger();
     }
 
     @Override
     protected void doStop() throws Exception {
         super.doStop();
-        cache.clear();
+        synchronized (cache) {
+            cache.clear();
+            cacheSize = 0;
+        }
     }
 
     @Override
     public boolean gatherDataForConsumer(DataConsumer dataConsumer, DataContext context) throws Exception {
         String text = context.getSessionAttributes().get(TEXT_ATTR).getValue();
-        FileInputStreamSource source = cache.get(text);
+        String hash = hash(text);
+        InputStreamSource source = getFromCache(hash, text);
         if (source!=null) {
             cacheHitCount.incrementAndGet();
             dataConsumer.setData(this, source, context);
             return true;
         }
-        File textFile = File.createTempFile("audio_", ".txt", new File(cacheDir));
+        //only one synthesis process for the same text. Other requesters wait for its result
+        Synthesis synthesis = new Synthesis();
+        Synthesis current = inFlight.putIfAbsent(hash, synthesis);
+        if (current!=null) {
+            joinedRequestsCount.incrementAndGet();
+            if (isLogLevelEnabled(LogLevel.DEBUG))
+                getLogger().debug("Waiting for the synthesis of the same text by another requester");
+            dataConsumer.setData(this, current.await(3*commandExecutionTimeout), context);
+            return true;
+        }
+        try {
+            source = getFromCache(hash, text);
+            if (source==null)
+                source = synthesize(text, hash, dataConsumer, context);
+        } finally {
+            inFlight.remove(hash);
+            synthesis.complete(source);
+        }
+        dataConsumer.setData(this, source, context);
+        return true;
+    }
+
+    private InputStreamSource synthesize(String text, String hash, DataConsumer dataConsumer
+            , DataContext context) 
+        throws Exception
+    {
+        File dir = new File(cacheDir);
+        File textFile = new File(dir, hash+TEXT_FILE_EXT);
+        File tmpWavFile = new File(dir, hash+TMP_WAV_FILE_SUFFIX);
         FileUtils.writeStringToFile(textFile, text, textFileEncoding.name());
-        String wavFileName = FilenameUtils.removeExtension(textFile.getAbsolutePath())+".wav";
+        String wavFileName = tmpWavFile.getAbsolutePath();
         String _commandLine = null;
         try {
             bindingSupport.put(TEXT_FILENAME_BINDING, textFile.getAbsolutePath());
@@ -149,21 +214,131 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
         } finally {
             bindingSupport.reset();
         }
-        if (!executeProcess(_commandLine, dataConsumer))
-            dataConsumer.setData(this, null, context);
-        else {
-            File wavFile = new File(wavFileName);
-            if (!wavFile.exists()) {
-                if (isLogLevelEnabled(LogLevel.ERROR))
-                    getLogger().error("WAV file ({}) not created after commans execution ({})"
-                            , wavFileName, _commandLine);
-                dataConsumer.setData(this, null, context);
-            } else {
-                source = new FileInputStreamSource(wavFile, this);
-                cache.put(text, source);
-                dataConsumer.setData(this, source, context);
+        Semaphore semaphore = processesSemaphore;
+        if (!semaphore.tryAcquire(commandExecutionTimeout, TimeUnit.MILLISECONDS)) {
+            errorsCount.incrementAndGet();
+            if (isLogLevelEnabled(LogLevel.ERROR))
+                getLogger().error("Timeout waiting for the free slot for the synthesis process ({})", _commandLine);
+            removeFiles(textFile, tmpWavFile);
+            return null;
+        }
+        boolean executed;
+        try {
+            executed = executeProcess(_commandLine, dataConsumer);
+        } finally {
+            semaphore.release();
+        }
+        if (!executed) {
+            removeFiles(textFile, tmpWavFile);
+            return null;
+        } 
+        File wavFile = new File(dir, hash+WAV_FILE_EXT);
+        if (!tmpWavFile.exists() || !tmpWavFile.renameTo(wavFile)) {
+            if (isLogLevelEnabled(LogLevel.ERROR))
+                getLogger().error("WAV file ({}) not created after commans execution ({})"
+                        , wavFileName, _commandLine);
+            removeFiles(textFile, tmpWavFile);
+            return null;
+        }
+        CacheEntry entry = new CacheEntry(hash, text, textFile, wavFile);
+        addToCache(hash, entry);
+        return entry;
+    }
+    
+    private InputStreamSource getFromCache(String hash, String text) {
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(hash);
+        }
+        if (entry==null)
+            return null;
+        //the text of the entry restored from the cache directory is read from its text file on the first hit
+        if (!text.equals(entry.getText())) {
+            if (isLogLevelEnabled(LogLevel.WARN))
+                getLogger().warn("The text of the cached entry ({}) differs from the requested text. "
+                        + "Synthesizing again", entry.wavFile);
+            return null;
+        }
+        long time = System.currentTimeMillis();
+        if (time-entry.accessTime > ACCESS_TIME_SAVE_INTERVAL) {
+            //the access order survives the restart of the node
+            entry.accessTime = time;
+            entry.wavFile.setLastModified(time);
+        }
+        return entry;
+    }
+    
+    private void addToCache(String hash, CacheEntry entry) {
+        List<CacheEntry> evicted = null;
+        synchronized (cache) {
+            CacheEntry prev = cache.put(hash, entry);
+            if (prev!=null)
+                cacheSize -= prev.size;
+            cacheSize += entry.size;
+            long maxSize = maxCacheSizeMb*1024*1024;
+            Iterator<CacheEntry> it = cache.values().iterator();
+            while (cacheSize > maxSize && it.hasNext()) {
+                CacheEntry eldest = it.next();
+                if (eldest!=entry) {
+                    it.remove();
+                    cacheSize -= eldest.size;
+                    if (evicted==null)
+                        evicted = new ArrayList<>(2);
+                    evicted.add(eldest);
+                }
             }
         }
+        if (evicted!=null)
+            for (CacheEntry eldest: evicted) {
+                if (isLogLevelEnabled(LogLevel.DEBUG))
+                    getLogger().debug("Cache size exceeded. Removing ({}) from the cache", eldest.wavFile);
+                eldest.evict();
+            }
+    }
+    
+    /**
+     * Removes the files of the evicted entry if they are not read by the consumers and if they are not 
+     * reused by the entry synthesized again for the same text. The check and the removal are done under
+     * the cache lock, so the synthesis of the same text (it checks the cache after registering in the 
+     * {@link #inFlight}) can't create the files between them.
+     */
+    private void removeEvictedEntryFiles(CacheEntry entry) {
+        synchronized (cache) {
+            if (entry.removed || entry.openedStreams.get()>0 || cache.containsKey(entry.hash) 
+                || inFlight.containsKey(entry.hash))
+            {
+                return;
+            }
+            entry.removed = true;
+            removeFiles(entry.textFile, entry.wavFile);
+        }
+        if (isLogLevelEnabled(LogLevel.DEBUG))
+            getLogger().debug("Files of the evicted entry ({}) removed", entry.wavFile);
+    }
+    
+    private static void removeFiles(File... files) {
+        for (File file: files)
+            file.delete();
+    }
+    
+    static String hash(String text) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+        char[] res = new char[hash.length*2];
+        for (int i=0; i<hash.length; ++i) {
+            res[i*2] = HEX[(hash[i] >> 4) & 0x0F];
+            res[i*2+1] = HEX[hash[i] & 0x0F];
+        }
+        return new String(res);
+    }
+    
+    private static boolean isHash(String name) {
+        if (name.length()!=HASH_LENGTH)
+            return false;
+        for (int i=0; i<name.length(); ++i) {
+            char c = name.charAt(i);
+            if (!(c>='0' && c<='9') && !(c>='a' && c<='f'))
+                return false;
+        }
         return true;
     }
     
@@ -181,6 +356,7 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
                 if (isLogLevelEnabled(LogLevel.DEBUG))
                     executor.executeQuietly(new StreamLoggerTask("output", proc.getInputStream(), true));
                 int res = proc.waitFor();
+                procInfo.finished = true;
                 if (res!=0) {
                     errorsCount.incrementAndGet();
                     if (isLogLevelEnabled(LogLevel.ERROR))
@@ -194,7 +370,7 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
                 return false;
             }
         } finally {
-            addStat(ts);
+            executionStat.add(System.currentTimeMillis()-ts);
         }
     }
     
@@ -216,11 +392,6 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
         bindingSupport.addTo(bindings);
     }
     
-    private synchronized void addStat(long startTime) {
-        executionTime += System.currentTimeMillis()-startTime;
-        ++operationsCount;
-    }
-
     @Override
     public void fillConsumerAttributes(Collection<NodeAttribute> consumerAttributes) {
         NodeAttributeImpl textAttr = new NodeAttributeImpl(TEXT_ATTR, String.class, null, null);
@@ -232,40 +403,91 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
         consumerAttributes.add(textAttr);
     }
     
+    /**
+     * Builds the cache index from the names of the files of the cache directory. The text of the cached
+     * entry is not read, except the entries cached by the previous versions of the node (the names of their
+     * files are not the text hash), such entries are renamed.
+     */
     private void readCache() throws Exception {
         File cacheFile = new File(cacheDir);
         if (!cacheFile.exists() || !cacheFile.isDirectory() || !cacheFile.canRead() || !cacheFile.canWrite())
             throw new Exception(String.format("Not valid path for cache (%s). It's not a directory or "
                     + "file not exists or can't read/write to this directory", cacheDir));
-        File[] textFiles = cacheFile.listFiles((FilenameFilter)new SuffixFileFilter(".txt"));
-        if (textFiles!=null && textFiles.length>0)
-            for (File textFile: textFiles) {
+        File[] files = cacheFile.listFiles();
+        if (files==null || files.length==0)
+            return;
+        Set<String> names = new HashSet<>();
+        for (File file: files) 
+            if (file.getName().endsWith(TMP_WAV_FILE_SUFFIX))
+                file.delete();
+            else
+                names.add(file.getName());
+        List<CacheEntry> entries = new ArrayList<>(files.length/2);
+        for (File textFile: files) {
+            String name = textFile.getName();
+            if (!name.endsWith(TEXT_FILE_EXT))
+                continue;
+            String baseName = name.substring(0, name.length()-TEXT_FILE_EXT.length());
+            File wavFile = new File(cacheFile, baseName+WAV_FILE_EXT);
+            if (!names.contains(wavFile.getName())) {
+                if (isLogLevelEnabled(LogLevel.ERROR))
+                    getLogger().error("Found text file ({}) but not found WAV file ({}). "
+                            + "Removing invalid cached entry", textFile.getPath(), wavFile.getPath());
+                textFile.delete();
+            } else if (isHash(baseName))
+                entries.add(new CacheEntry(baseName, null, textFile, wavFile));
+            else {
                 String text = FileUtils.readFileToString(textFile, textFileEncoding.name());
-                String wavFileName = FilenameUtils.removeExtension(textFile.getPath())+".wav";
-                File wavFile = new File(wavFileName);
-                if (!(wavFile.exists())) {
-                    if (isLogLevelEnabled(LogLevel.ERROR))
-                        getLogger().error("Found text file ({}) but not found WAV file ({}). "
-                                + "Removing invalid cached entry", textFile.getPath(), wavFileName);
-                    textFile.delete();
-                } else 
-                    cache.put(text, new FileInputStreamSource(wavFile, this));
+                String hash = hash(text);
+                File newTextFile = new File(cacheFile, hash+TEXT_FILE_EXT);
+                File newWavFile = new File(cacheFile, hash+WAV_FILE_EXT);
+                if (names.contains(newWavFile.getName()) || !wavFile.renameTo(newWavFile) 
+                    || !textFile.renameTo(newTextFile)) 
+                {
+                    removeFiles(textFile, wavFile);
+                } else {
+                    names.add(newWavFile.getName());
+                    entries.add(new CacheEntry(hash, text, newTextFile, newWavFile));
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<CacheEntry>() {
+            @Override public int compare(CacheEntry o1, CacheEntry o2) {
+                return Long.compare(o1.accessTime, o2.accessTime);
             }
+        });
+        for (CacheEntry entry: entries)
+            addToCache(entry.hash, entry);
     }
     
     @Parameter(readOnly=true)
     public Long getTotalExecutionTimeMS() {
-        return executionTime;
+        return executionStat.getTotal();
     }
     
     @Parameter(readOnly=true)
     public Long getAvgExecutionTimeMS() {
-        return operationsCount==0? 0 : executionTime/operationsCount;
+        return executionStat.getAverage();
+    }
+    
+    @Parameter(readOnly=true)
+    public Long getExecutionTime50PercentileMS() {
+        return executionStat.getPercentile(50);
+    }
+    
+    @Parameter(readOnly=true)
+    public Long getExecutionTime95PercentileMS() {
+        return executionStat.getPercentile(95);
+    }
+    
+    @Parameter(readOnly=true)
+    public Long getExecutionTime99PercentileMS() {
+        return executionStat.getPercentile(99);
     }
     
     @Parameter(readOnly=true)
     public Long getOperationsCount() {
-        return operationsCount;
+        return executionStat.getCount();
     }
     
     @Parameter(readOnly=true)
@@ -275,13 +497,38 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
     
     @Parameter(readOnly=true)
     public Long getCacheHitPercent() {
+        long operationsCount = executionStat.getCount();
         return operationsCount==0? 0 : 100*cacheHitCount.get()/operationsCount;
     }
     
+    @Parameter(readOnly=true)
+    public Integer getJoinedRequestsCount() {
+        return joinedRequestsCount.get();
+    }
+    
+    @Parameter(readOnly=true)
+    public Integer getInFlightCount() {
+        return inFlight.size();
+    }
+    
     @Parameter(readOnly=true)
     public Integer getErrorsCount() {
         return errorsCount.get();
     }
+    
+    @Parameter(readOnly=true)
+    public Integer getCachedEntriesCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    
+    @Parameter(readOnly=true)
+    public Long getCacheSize() {
+        synchronized (cache) {
+            return cacheSize;
+        }
+    }
 
     public Boolean getAutoRefresh() {
         return true;
@@ -297,8 +544,12 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
         List<ViewableObject> vos = new ArrayList<ViewableObject>(2);
         vos.add(new ViewableObjectImpl(RAVEN_TEXT_MIMETYPE, tableHeaderMessage));
         TableImpl table = new TableImpl(new String[]{textColumnMessage, wavFileColumnMessage});
-        for (Map.Entry entry: cache.entrySet())
-            table.addRow(new Object[]{entry.getKey(), entry.getValue().toString()});
+        List<CacheEntry> entries;
+        synchronized (cache) {
+            entries = new ArrayList<>(cache.values());
+        }
+        for (CacheEntry entry: entries)
+            table.addRow(new Object[]{entry.getText(), entry.wavFile.getAbsolutePath()});
         vos.add(new ViewableObjectImpl(RAVEN_TABLE_MIMETYPE, table));
         return vos;
     }
@@ -311,6 +562,30 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
         this.commandExecutionTimeout = commandExecutionTimeout;
     }
 
+    public Integer getMaxConcurrentProcesses() {
+        return maxConcurrentProcesses;
+    }
+
+    public void setMaxConcurrentProcesses(Integer maxConcurrentProcesses) {
+        this.maxConcurrentProcesses = maxConcurrentProcesses;
+    }
+
+    public Long getMaxCacheSizeMb() {
+        return maxCacheSizeMb;
+    }
+
+    public void setMaxCacheSizeMb(Long maxCacheSizeMb) {
+        this.maxCacheSizeMb = maxCacheSizeMb;
+    }
+
+    public Long getEvictedEntryRemoveDelay() {
+        return evictedEntryRemoveDelay;
+    }
+
+    public void setEvictedEntryRemoveDelay(Long evictedEntryRemoveDelay) {
+        this.evictedEntryRemoveDelay = evictedEntryRemoveDelay;
+    }
+
     public ExecutorService getExecutor() {
         return executor;
     }
@@ -362,6 +637,106 @@ public class ExternalTextToSpeechEngineNode extends AbstractDataSource implement
         }
     }
     
+    /**
+     * The cached entry is the source of the synthesized wav file itself. The source is opened lazily by the
+     * consumers, so the files of the evicted entry are removed after the 
+     * {@link #getEvictedEntryRemoveDelay() delay} and only when all opened streams are closed.
+     */
+    private class CacheEntry implements InputStreamSource {
+        private final String hash;
+        private final File textFile;
+        private final File wavFile;
+        private final long size;
+        private final AtomicInteger openedStreams = new AtomicInteger();
+        private volatile String text;
+        private volatile long accessTime;
+        private volatile boolean evicted = false;
+        //guarded by the cache lock
+        private boolean removed = false;
+
+        public CacheEntry(String hash, String text, File textFile, File wavFile) {
+            this.hash = hash;
+            this.text = text;
+            this.textFile = textFile;
+            this.wavFile = wavFile;
+            this.size = textFile.length() + wavFile.length();
+            this.accessTime = wavFile.lastModified();
+        }
+
+        public InputStream getInputStream() {
+            openedStreams.incrementAndGet();
+            try {
+                return new FilterInputStream(FileUtils.openInputStream(wavFile)) {
+                    private boolean closed = false;
+                    @Override public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (!closed) {
+                                closed = true;
+                                streamClosed();
+                            }
+                        }
+                    }
+                };
+            } catch (IOException e) {
+                streamClosed();
+                if (isLogLevelEnabled(LogLevel.ERROR))
+                    getLogger().error(e.getMessage(), e);
+                return null;
+            }
+        }
+        
+        private void streamClosed() {
+            if (openedStreams.decrementAndGet()==0 && evicted)
+                removeEvictedEntryFiles(this);
+        }
+        
+        public void evict() {
+            evicted = true;
+            boolean scheduled = executor.executeQuietly(evictedEntryRemoveDelay, 
+                new AbstractTask(ExternalTextToSpeechEngineNode.this, "Removing files of the evicted entry") {
+                    @Override public void doRun() throws Exception {
+                        removeEvictedEntryFiles(CacheEntry.this);
+                    }
+                });
+            if (!scheduled)
+                removeEvictedEntryFiles(this);
+        }
+
+        @Override
+        public String toString() {
+            return wavFile.getAbsolutePath();
+        }
+        
+        public String getText() {
+            String _text = text;
+            if (_text==null) 
+                try {
+                    _text = FileUtils.readFileToString(textFile, textFileEncoding.name());
+                    text = _text;
+                } catch (Exception e) {
+                    if (isLogLevelEnabled(LogLevel.ERROR))
+                        getLogger().error(String.format("Error reading text file (%s)", textFile), e);
+                }
+            return _text;
+        }
+    }
+    
+    private static class Synthesis {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile InputStreamSource source;
+        
+        public void complete(InputStreamSource source) {
+            this.source = source;
+            latch.countDown();
+        }
+        
+        public InputStreamSource await(long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS)? source : null;
+        }
+    }
+    
     private class StreamLoggerTask implements Task {
         
         private final String streamName;
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.io.IOException;
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+import javax.media.protocol.DataSource;
+import javax.media.protocol.PushBufferDataSource;
+import javax.media.protocol.PushBufferStream;
+import javax.media.protocol.BufferTransferHandler;
+import org.onesec.raven.codec.AlawAudioFormat;
+import org.onesec.raven.codec.DtmfDetector;
+import org.onesec.raven.codec.DtmfListener;
+import org.onesec.raven.ivr.IncomingRtpStream;
+import org.onesec.raven.ivr.IncomingRtpStreamDataSourceListener;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * The consumer of the {@link IncomingRtpStream} which detects the in-band DTMF. G.711 payload is decoded
+ * sample by sample inside the detector, so the stream is not passed through the JMF processor. Streams in
+ * the other formats (G.729) are ignored. Usage:
+ * <pre>
+ *   conversation.getIncomingRtpStream().addDataSourceListener(new InbandDtmfDetector(listener, logger), null);
+ * </pre>
+ *
+ * @author Mikhail Titov
+ */
+public class InbandDtmfDetector implements IncomingRtpStreamDataSourceListener, BufferTransferHandler {
+    private enum Encoding {LINEAR_LE, LINEAR_BE, ALAW, ULAW}
+
+    private final DtmfDetector detector;
+    private final LoggerHelper logger;
+    //accessed only by the thread of the stream
+    private final Buffer buffer = new Buffer();
+    private volatile PushBufferStream stream;
+    private volatile Encoding encoding;
+
+    public InbandDtmfDetector(DtmfListener listener, LoggerHelper logger) {
+        this.detector = new DtmfDetector(listener);
+        this.logger = new LoggerHelper(logger, "DTMF detector. ");
+    }
+
+    public DtmfDetector getDetector() {
+        return detector;
+    }
+
+    @Override
+    public void dataSourceCreated(IncomingRtpStream rtpStream, DataSource dataSource) {
+        detach();
+        if (!(dataSource instanceof PushBufferDataSource))
+            return;
+        try {
+            PushBufferStream _stream = ((PushBufferDataSource)dataSource).getStreams()[0];
+            Encoding _encoding = getEncoding(_stream.getFormat());
+            if (_encoding==null) {
+                if (logger.isWarnEnabled())
+                    logger.warn("Can't detect DTMF in the stream of format ({})", _stream.getFormat());
+                return;
+            }
+            synchronized(this) {
+                detector.reset();
+                encoding = _encoding;
+                stream = _stream;
+            }
+            _stream.setTransferHandler(this);
+            dataSource.connect();
+            dataSource.start();
+            if (logger.isDebugEnabled())
+                logger.debug("Detecting DTMF in the stream of format ({})", _stream.getFormat());
+        } catch (IOException e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error starting DTMF detection", e);
+            detach();
+        }
+    }
+
+    @Override
+    public void streamClosing(IncomingRtpStream rtpStream) {
+        detach();
+    }
+
+    @Override
+    public void transferData(PushBufferStream pushStream) {
+        if (pushStream!=stream)
+            return;
+        try {
+            pushStream.read(buffer);
+            if (buffer.isDiscard() || buffer.getLength()<=0 || !(buffer.getData() instanceof byte[]))
+                return;
+            final byte[] data = (byte[]) buffer.getData();
+            final int offset = buffer.getOffset();
+            final int len = buffer.getLength();
+            synchronized(this) {
+                switch (encoding) {
+                    case ALAW: detector.processAlaw(data, offset, len); break;
+                    case ULAW: detector.processUlaw(data, offset, len); break;
+                    case LINEAR_BE: detector.processLinear(data, offset, len/2, true); break;
+                    default: detector.processLinear(data, offset, len/2, false);
+                }
+            }
+        } catch (IOException e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error reading the stream buffer", e);
+        }
+    }
+
+    private void detach() {
+        final PushBufferStream _stream = stream;
+        stream = null;
+        if (_stream!=null)
+            _stream.setTransferHandler(null);
+    }
+
+    private static Encoding getEncoding(Format format) {
+        if (!(format instanceof AudioFormat) || ((AudioFormat)format).getSampleRate()!=8000.)
+            return null;
+        final String enc = format.getEncoding();
+        if (AudioFormat.ULAW_RTP.equals(enc) || AudioFormat.ULAW.equals(enc))
+            return Encoding.ULAW;
+        if (AlawAudioFormat.ALAW_RTP.equals(enc) || AudioFormat.ALAW.equals(enc))
+            return Encoding.ALAW;
+        if (AudioFormat.LINEAR.equals(enc) && ((AudioFormat)format).getSampleSizeInBits()==16)
+            return ((AudioFormat)format).getEndian()==AudioFormat.BIG_ENDIAN?
+                    Encoding.LINEAR_BE : Encoding.LINEAR_LE;
+        return null;
+    }
+}
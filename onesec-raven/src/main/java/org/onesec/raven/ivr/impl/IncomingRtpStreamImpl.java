@@ -35,6 +35,7 @@ import javax.media.rtp.GlobalReceptionStats;
 import javax.media.rtp.RTPManager;
 import javax.media.rtp.ReceiveStream;
 import javax.media.rtp.ReceiveStreamListener;
+import javax.media.rtp.ReceptionStats;
 import javax.media.rtp.SessionAddress;
 import javax.media.rtp.event.ByeEvent;
 import javax.media.rtp.event.NewReceiveStreamEvent;
@@ -60,7 +61,7 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
 
 
     private RTPManager rtpManager;
-    private ReceiveStream stream;
+    private volatile ReceiveStream stream;
     private DataSourceCloneBuilder sourceCloneBuilder; //SourceClonable
     private final List<Consumer> consumers;
     private final Lock lock;
@@ -81,21 +82,28 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
     {
         try {
             try {
-                try {
-                    if (sourceCloneBuilder!=null)
-                        sourceCloneBuilder.close();
-                } finally {
-                    if (!consumers.isEmpty())
-                        for (Consumer consumer: consumers)
-                            consumer.fireStreamClosingEvent();
-                }
+                if (sourceCloneBuilder!=null)
+                    sourceCloneBuilder.close();
             } finally {
-                if (rtpManager!=null) {
-                    GlobalReceptionStats stats = rtpManager.getGlobalReceptionStats();
-                    incHandledBytesBy(stats.getBytesRecd());
-                    incHandledPacketsBy(stats.getPacketsRecd());
-                    rtpManager.removeTargets("Disconnected");
-                }
+                if (!consumers.isEmpty())
+                    for (Consumer consumer: consumers)
+                        consumer.fireStreamClosingEvent();
+            }
+        } finally {
+            closeSession();
+        }
+    }
+    
+    /**
+     * Releases the RTP session opened by {@link #openSession(InetAddress, int)}
+     */
+    protected void closeSession() throws Exception {
+        try {
+            if (rtpManager!=null) {
+                GlobalReceptionStats stats = rtpManager.getGlobalReceptionStats();
+                incHandledBytesBy(stats.getBytesRecd());
+                incHandledPacketsBy(stats.getPacketsRecd());
+                rtpManager.removeTargets("Disconnected");
             }
         } finally {
             releaseRtpManager();
@@ -132,8 +140,15 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
         final RTPManager _rtpManager = rtpManager;
         if (_rtpManager==null)
             return Collections.EMPTY_MAP;
-        else 
-            return getStatFor(_rtpManager.getGlobalReceptionStats());
+        Map<String, Object> stat = getStatFor(_rtpManager.getGlobalReceptionStats());
+        final ReceiveStream _stream = stream;
+        if (_stream!=null) {
+            ReceptionStats rStat = _stream.getSourceReceptionStats();
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_LOST_PACKETS, rStat.getPDUlost());
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_REORDERED_PACKETS, rStat.getPDUMisOrd());
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_DISCARDED_PACKETS, rStat.getPDUDuplicate());
+        }
+        return stat;
     }
     
     protected void releaseRtpManager() {
@@ -152,9 +167,7 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
                 logger.debug(String.format(
                         "Trying to open incoming RTP stream from the remote host (%s)"
                         , remoteHost));
-            rtpManager = rtpManagerConfigurator.configureInboundManager(
-                    address, port, InetAddress.getByName(remoteHost), remotePort, logger);
-            rtpManager.addReceiveStreamListener(this);
+            openSession(InetAddress.getByName(remoteHost), remotePort);
         } catch(Exception e) {
             throw new RtpStreamException(logger.logMess(
                         "Error creating receiver for RTP stream from remote host (%s)"
@@ -163,6 +176,16 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
         }
     }
     
+    /**
+     * Opens the RTP session. The data source of the received stream must be passed to the 
+     * {@link #initStream(PushBufferDataSource)} when the stream is received.
+     */
+    protected void openSession(InetAddress remoteAddress, int remotePort) throws Exception {
+        rtpManager = rtpManagerConfigurator.configureInboundManager(
+                address, port, remoteAddress, remotePort, logger);
+        rtpManager.addReceiveStreamListener(this);
+    }
+    
     public boolean addDataSourceListener(IncomingRtpStreamDataSourceListener listener, AudioFormat format)
         throws RtpStreamException
     {
@@ -193,6 +216,21 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
         }
     }
 
+    /**
+     * Returns <b>true</b> if the stream has the consumers other than the passed listener
+     */
+    protected boolean hasOtherConsumers(IncomingRtpStreamDataSourceListener listener) {
+        lock.lock();
+        try {
+            for (Consumer consumer: consumers)
+                if (consumer.listener!=listener)
+                    return true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void update(final ReceiveStreamEvent event)
     {
         try {
@@ -202,12 +240,7 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
             if (event instanceof NewReceiveStreamEvent) {
                 initStream(event);
             } else if (event instanceof ByeEvent) {
-                lock.lock();
-                try {
-                    status = Status.CLOSED;
-                } finally {
-                    lock.unlock();
-                }
+                byeReceived();
             } else if (event instanceof RemotePayloadChangeEvent) {
                 RemotePayloadChangeEvent payloadEvent = (RemotePayloadChangeEvent) event;
                 if (logger.isDebugEnabled())
@@ -225,12 +258,28 @@ public class IncomingRtpStreamImpl extends AbstractRtpStream
         }
     }
     
+    protected void byeReceived() {
+        lock.lock();
+        try {
+            status = Status.CLOSED;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
     private void initStream(final ReceiveStreamEvent event) throws IOException {
         stream = event.getReceiveStream();
+        initStream((PushBufferDataSource)stream.getDataSource());
+    }
+    
+    /**
+     * Creates the data sources of the consumers from the data source of the received stream
+     */
+    protected void initStream(final PushBufferDataSource dataSource) throws IOException {
         if (logger.isDebugEnabled())
             logger.debug("Received new stream");
 
-        sourceCloneBuilder = new DataSourceCloneBuilder((PushBufferDataSource)stream.getDataSource(), logger);
+        sourceCloneBuilder = new DataSourceCloneBuilder(dataSource, logger);
         sourceCloneBuilder.open();
         lock.lock();
         try{
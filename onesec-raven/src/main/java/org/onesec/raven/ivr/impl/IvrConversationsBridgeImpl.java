@@ -17,19 +17,30 @@
 
 package org.onesec.raven.ivr.impl;
 
+import io.netty.buffer.ByteBuf;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.media.protocol.DataSource;
+import javax.media.protocol.PushBufferDataSource;
 import org.onesec.raven.ivr.*;
+import org.onesec.raven.rtp.JitterBuffer;
+import org.onesec.raven.rtp.RtpPayloadTypes;
 import org.raven.log.LogLevel;
 import org.raven.sched.ExecutorService;
 import org.raven.sched.impl.AbstractTask;
 import org.raven.tree.Node;
 
 /**
+ * Routes the incoming RTP stream of the each conversation to the outgoing RTP stream of another one.
+ *
+ * <p/>In the pass-through mode, if the both legs use the native RTP engine with the same codec and the
+ * bridge is the only consumer of the incoming stream, the payload is relayed from the incoming stream to
+ * the outgoing one without decoding and encoding (see {@link NativeIncomingRtpStreamImpl#startForwarding}).
+ * Otherwise, or when another consumer (the call recorder for example) is added to the incoming stream,
+ * the stream is transcoded through the audio stream of the opposite conversation.
  *
  * @author Mikhail Titov
  */
@@ -50,12 +61,20 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
     private boolean activated = false;
     private final AtomicReference<IvrConversationsBridgeStatus> status;
     private final boolean passDtmf;
+    private final boolean passThrough;
     private final ExecutorService executor;
 //    private final ReentrantLock lock = new ReentrantLock();
 
     public IvrConversationsBridgeImpl(
             IvrEndpointConversation conv1, IvrEndpointConversation conv2, Node owner, String logPrefix, 
             boolean passDtmf)
+    {
+        this(conv1, conv2, owner, logPrefix, passDtmf, false);
+    }
+
+    public IvrConversationsBridgeImpl(
+            IvrEndpointConversation conv1, IvrEndpointConversation conv2, Node owner, String logPrefix, 
+            boolean passDtmf, boolean passThrough)
     {
         this.executor = conv1.getExecutorService();
         this.conv1 = conv1;
@@ -64,6 +83,7 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
         this.logPrefix = logPrefix;
         this.createdTimestamp = System.currentTimeMillis();
         this.passDtmf = passDtmf;
+        this.passThrough = passThrough;
         activatingTimestamp = new AtomicLong();
         activatedTimestamp = new AtomicLong();
         listeners = new LinkedList<>();
@@ -94,6 +114,14 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
         return conv2;
     }
 
+    /**
+     * Returns the number of the bridge directions (0..2) working in the pass-through mode
+     */
+    public synchronized int getPassThroughConnectionsCount() {
+        return (conn1!=null && conn1.passThroughRef.get()!=null? 1 : 0)
+                + (conn2!=null && conn2.passThroughRef.get()!=null? 1 : 0);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof IvrConversationsBridge))
@@ -220,6 +248,7 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
         private final IvrEndpointConversation conv2;
         private final AtomicReference<AudioStream> audioStream = new AtomicReference<AudioStream>();
         private final AtomicReference<IncomingRtpStream> inRtp = new AtomicReference<IncomingRtpStream>();
+        private final AtomicReference<PassThrough> passThroughRef = new AtomicReference<>();
         private volatile ConnectionState state = ConnectionState.INITIALIZING;
 
         public BridgeConnection(IvrEndpointConversation conv1, IvrEndpointConversation conv2) {
@@ -255,6 +284,7 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
             if (ev.getConversation()!=conv1)
                 return;
             state = ConnectionState.INVALID;
+            stopPassThrough();
             checkBridgeState();
         }
 
@@ -289,12 +319,15 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
             if (stream==inRtp.get() && state!=ConnectionState.INVALID) {
                 AudioStream audio = audioStream.get();
                 if (audio!=null) {
-                    audio.addSource(dataSource);
+                    stopPassThrough();
+                    final boolean relayed = startPassThrough(stream, dataSource);
+                    if (!relayed)
+                        audio.addSource(dataSource);
                     state = ConnectionState.ACTIVE;
                     if (owner.isLogLevelEnabled(LogLevel.DEBUG))
                         owner.getLogger().debug(logMess(
-                                "Incoming RTP stream from %s routed to the outgoing RTP of the %s"
-                                , getNumber(conv1), getNumber(conv2)));
+                                "Incoming RTP stream from %s routed to the outgoing RTP of the %s (%s)"
+                                , getNumber(conv1), getNumber(conv2), relayed? "pass-through" : "transcoding"));
                 }
                 checkBridgeState();
             }
@@ -307,6 +340,7 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
         }
 
         public void streamClosing(IncomingRtpStream stream) {
+            stopPassThrough();
             if (state != ConnectionState.INVALID) {
                 state = ConnectionState.INITIALIZING;
                 inRtp.set(null);
@@ -314,6 +348,63 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
             }
         }
 
+        /**
+         * Starts relaying the payload of the incoming stream if the codecs of the both legs are the same.
+         * Returns <b>false</b> if the data source must be routed through the audio stream
+         */
+        private boolean startPassThrough(IncomingRtpStream stream, DataSource dataSource) {
+            if (!passThrough || !(stream instanceof NativeIncomingRtpStreamImpl) 
+                || !(dataSource instanceof PushBufferDataSource))
+            {
+                return false;
+            }
+            final OutgoingRtpStream outRtp = conv2.getOutgoingRtpStream();
+            if (!(outRtp instanceof NativeOutgoingRtpStreamImpl))
+                return false;
+            final NativeOutgoingRtpStreamImpl out = (NativeOutgoingRtpStreamImpl) outRtp;
+            final int payloadType = RtpPayloadTypes.getPayloadType(
+                    ((PushBufferDataSource)dataSource).getStreams()[0].getFormat());
+            if (payloadType<0 || payloadType!=out.getPayloadType())
+                return false;
+            final NativeIncomingRtpStreamImpl in = (NativeIncomingRtpStreamImpl) stream;
+            final PassThrough pass = new PassThrough(in, out, payloadType, dataSource);
+            passThroughRef.set(pass);
+            out.setForwarding(true);
+            if (in.startForwarding(this, payloadType, pass))
+                return true;
+            //if the forwarding was already stopped by the stream the data source is routed by fallBack
+            if (!passThroughRef.compareAndSet(pass, null))
+                return true;
+            out.setForwarding(false);
+            return false;
+        }
+
+        private void stopPassThrough() {
+            final PassThrough pass = passThroughRef.getAndSet(null);
+            if (pass!=null) {
+                pass.in.stopForwarding(pass);
+                pass.out.setForwarding(false);
+            }
+        }
+
+        /**
+         * Switches the connection from the pass-through to the transcoding when the forwarding is stopped
+         * by the incoming stream
+         */
+        private void fallBack(PassThrough pass) {
+            if (!passThroughRef.compareAndSet(pass, null))
+                return;
+            pass.out.setForwarding(false);
+            final AudioStream audio = audioStream.get();
+            if (audio!=null && state!=ConnectionState.INVALID) {
+                audio.addSource(pass.dataSource);
+                if (owner.isLogLevelEnabled(LogLevel.DEBUG))
+                    owner.getLogger().debug(logMess(
+                            "Incoming RTP stream from %s switched from pass-through to transcoding"
+                            , getNumber(conv1)));
+            }
+        }
+
         private void addListenerToRtpStream() {
             try {
                 IncomingRtpStream _rtp = inRtp.get();
@@ -326,5 +417,38 @@ public class IvrConversationsBridgeImpl implements IvrConversationsBridge, Compa
                 checkBridgeState();
             }
         }
+
+        private class PassThrough implements NativeIncomingRtpStreamImpl.Forwarder {
+            private final NativeIncomingRtpStreamImpl in;
+            private final NativeOutgoingRtpStreamImpl out;
+            private final int payloadType;
+            //the data source of the incoming stream for the case of the fall back to the transcoding
+            private final DataSource dataSource;
+
+            public PassThrough(NativeIncomingRtpStreamImpl in, NativeOutgoingRtpStreamImpl out, 
+                    int payloadType, DataSource dataSource) 
+            {
+                this.in = in;
+                this.out = out;
+                this.payloadType = payloadType;
+                this.dataSource = dataSource;
+            }
+
+            @Override
+            public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+                out.forward(payloadType, packet, payloadIndex, payloadLength);
+            }
+
+            @Override
+            public void frameReceived(JitterBuffer.Frame frame) {
+                if (frame.getLength()>0)
+                    out.forward(payloadType, frame.getData(), 0, frame.getLength());
+            }
+
+            @Override
+            public void forwardingStopped() {
+                fallBack(this);
+            }
+        }
     }
 }
@@ -58,6 +58,9 @@ public class IvrConversationsBridgeManagerNode extends BaseNode
     
     @NotNull @Parameter(defaultValue="true")
     private Boolean passDtmf;
+    
+    @NotNull @Parameter(defaultValue="true")
+    private Boolean passThrough;
 
     @Message
     private static String phoneNumberMessage;
@@ -86,7 +89,8 @@ public class IvrConversationsBridgeManagerNode extends BaseNode
     {
         lock.writeLock().lock();
         try {
-            IvrConversationsBridge bridge = new IvrConversationsBridgeImpl(conv1, conv2, this, logPrefix, passDtmf);
+            IvrConversationsBridge bridge = new IvrConversationsBridgeImpl(
+                    conv1, conv2, this, logPrefix, passDtmf, passThrough);
             bridges.add(bridge);
             bridge.addBridgeListener(this);
             return bridge;
@@ -181,4 +185,12 @@ public class IvrConversationsBridgeManagerNode extends BaseNode
     public void setPassDtmf(Boolean passDtmf) {
         this.passDtmf = passDtmf;
     }
+
+    public Boolean getPassThrough() {
+        return passThrough;
+    }
+
+    public void setPassThrough(Boolean passThrough) {
+        this.passThrough = passThrough;
+    }
 }
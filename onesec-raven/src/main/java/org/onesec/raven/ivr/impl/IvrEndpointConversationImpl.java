@@ -40,6 +40,7 @@ import org.onesec.core.provider.ProviderController;
 import org.onesec.core.services.ProviderRegistry;
 import org.onesec.core.services.StateListenersCoordinator;
 import static org.onesec.raven.impl.CCMUtils.*;
+import org.onesec.raven.codec.DtmfListener;
 import org.onesec.raven.ivr.*;
 import static org.onesec.raven.ivr.IvrEndpointConversationState.*;
 import org.onesec.raven.ivr.actions.ContinueConversationAction;
@@ -315,6 +316,8 @@ public class IvrEndpointConversationImpl implements IvrEndpointConversation
                         "Can't create incoming RTP stream", "INVALID", inRtpStatus.name());
             inRtp = getStreamManager().getIncomingRtpStream(owner);
             inRtp.setLogger(new LoggerHelper(logger, callId+" : "));
+            if (inRtp instanceof NativeIncomingRtpStreamImpl)
+                ((NativeIncomingRtpStreamImpl)inRtp).setDtmfListener(new TelephoneEventsListener());
             inRtpStatus = RtpStatus.CREATED;
             if (logger.isDebugEnabled())
                 logger.debug(callLog("Incoming RTP successfully created"));
@@ -874,6 +877,9 @@ public class IvrEndpointConversationImpl implements IvrEndpointConversation
     }
 
     public void sendDTMF(String digits) {
+        final OutgoingRtpStream _outRtp = outRtp;
+        if (_outRtp!=null && _outRtp.sendDtmf(digits))
+            return;
         try {
             CiscoCall _call = call;
             if (_call==null)
@@ -1131,6 +1137,23 @@ public class IvrEndpointConversationImpl implements IvrEndpointConversation
         }
     }
 
+    /**
+     * Receives DTMF from the telephone events of the incoming RTP stream (in the event loop thread) and
+     * continues the conversation in the executor, as if the digit was received by JTAPI
+     */
+    private class TelephoneEventsListener implements DtmfListener {
+        @Override
+        public void dtmfDetected(final char dtmf) {
+            if (logger.isDebugEnabled())
+                logger.debug(callLog("Received DTMF (%s) in the RTP stream", dtmf));
+            executor.executeQuietly(new AbstractTask(owner, "Processing DTMF received in the RTP stream") {
+                @Override public void doRun() throws Exception {
+                    continueConversation(dtmf);
+                }
+            });
+        }
+    }
+
     private void fireDtmfReceived(char dtmf) {
         final List<IvrEndpointConversationListener> _listeners = cloneListeners();
         if ( !_listeners.isEmpty()) {
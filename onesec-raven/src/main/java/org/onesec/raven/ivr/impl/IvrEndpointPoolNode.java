@@ -31,6 +31,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.onesec.raven.impl.TokenBucket;
 import org.onesec.raven.ivr.*;
 import org.raven.annotations.NodeClass;
 import org.raven.annotations.Parameter;
@@ -53,6 +54,11 @@ import org.weda.annotations.constraints.NotNull;
 import org.weda.internal.annotations.Message;
 
 /**
+ * The pool of the endpoints. In the OUTGOING_CALLS use case the pool keeps the index of the free endpoints,
+ * so the endpoint is taken and returned to the pool in the constant time. The requests wait for the
+ * endpoint in the queue (each one until its own wait timeout), the manager task is woken up when the
+ * request is added, the endpoint is released or the nearest wait timeout is expired and never waits for
+ * the endpoint on behalf of the one request.
  *
  * @author Mikhail Titov
  */
@@ -130,7 +136,8 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
     private CdrGeneratorNode cdrGenerator;
 
     private ReadWriteLock lock;
-    private Condition endpointReleased;
+    //signalled when the request is added, the endpoint is released or the pool is stopping
+    private Condition poolStateChanged;
     private Map<Integer, RequestInfo> busyEndpoints;
     private Map<Integer, Long> usageCounters;
     private BlockingQueue<RequestInfo> queue;
@@ -139,9 +146,14 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
     private AtomicReference<String> statusMessage;
     private AtomicBoolean watchdogRunning;
     private final static AtomicLong requestSeq = new AtomicLong();
-    private int sessionMaxRequestsPerSecond;
-    private int requestsCountInSecond;
-    private long lastMaxRequestsPerSecondCheckTime;
+    private TokenBucket requestsRateLimiter;
+    //the index of the free endpoints. Guarded by the write lock
+    private Deque<IvrEndpoint> freeEndpoints;
+    private Set<Integer> freeEndpointIds;
+    //the endpoints that were not in service or had active calls when were taken from the index.
+    //Rechecked when the index is empty. Guarded by the write lock
+    private Map<Integer, IvrEndpoint> parkedEndpoints;
+    private int indexedChildrenCount;
     private ConcurrentMap<IvrEndpoint, ReservedEndpointInfo> reservedEndpoints;
 
     @Message private static String totalUsageCountMessage;
@@ -173,7 +185,7 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
     protected void initFields() {
         super.initFields();
         lock = new ReentrantReadWriteLock();
-        endpointReleased = lock.writeLock().newCondition();
+        poolStateChanged = lock.writeLock().newCondition();
         busyEndpoints = new ConcurrentHashMap<Integer, RequestInfo>();
         usageCounters = new ConcurrentHashMap<Integer, Long>();
         stopManagerTask = new AtomicBoolean(false);
@@ -182,6 +194,9 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         auxiliaryPoolUsageCount = new AtomicInteger(0);
         reservedEndpoints = new ConcurrentHashMap<IvrEndpoint, ReservedEndpointInfo>();
         watchdogRunning = new AtomicBoolean();
+        freeEndpoints = new ArrayDeque<IvrEndpoint>();
+        freeEndpointIds = new HashSet<Integer>();
+        parkedEndpoints = new LinkedHashMap<Integer, IvrEndpoint>();
     }
 
     @Override
@@ -190,7 +205,7 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         if (!managerThreadStoped.get())
             throw new Exception("Can't start pool because of manager task is still running");
         lock = new ReentrantReadWriteLock();
-        endpointReleased = lock.writeLock().newCondition();
+        poolStateChanged = lock.writeLock().newCondition();
 //        queue = new LinkedBlockingQueue<RequestInfo>(maxRequestQueueSize);
         switch (prioritizationType) {
             case STRICT : 
@@ -206,12 +221,11 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         usageCounters.clear();
         stopManagerTask.set(false);
         synchEndpointsWithAddressRanges();
-        executor.execute(this);
+        rebuildEndpointsIndex();
         loadAverage = new LoadAverageStatistic(LOADAVERAGE_INTERVAL, getChildrenCount());
-        sessionMaxRequestsPerSecond = maxRequestsPerSecond==null? Integer.MAX_VALUE : maxRequestsPerSecond;
-        lastMaxRequestsPerSecondCheckTime = 0;
-        requestsCountInSecond = 0;        
+        requestsRateLimiter = maxRequestsPerSecond==null? null : new TokenBucket(maxRequestsPerSecond);
         reservedEndpoints.clear();
+        executor.execute(this);
     }
 
     @Override
@@ -219,6 +233,7 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
     {
         super.doStop();
         stopManagerTask.set(true);
+        signalPoolStateChanged();
         while (!managerThreadStoped.get())
             TimeUnit.MILLISECONDS.sleep(100);
     }
@@ -293,7 +308,8 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
                         "The queue size was exceeded. The request from the (%s) was ignored."
                         , request.getOwner().getPath()));
             request.processRequest(null);
-        }
+        } else
+            signalPoolStateChanged();
     }
 
     public void releaseEndpoint(IvrEndpoint endpoint) {
@@ -306,7 +322,8 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
             RequestInfo req = busyEndpoints.remove(endpoint.getId());
             if (req!=null){
                 loadAverage.addDuration(System.currentTimeMillis()-req.execStartTime);
-                endpointReleased.signal();
+                addFreeEndpoint(endpoint, false);
+                poolStateChanged.signal();
                 if (isLogLevelEnabled(LogLevel.DEBUG))
                     debug(String.format("Endpoint (%s) successfully realesed to the pool"
                             , endpoint.getName()));
@@ -316,18 +333,27 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         }
     }
     
-    private void cleanupQueue()
+    /**
+     * Removes the timeouted requests from the queue.
+     * @return the time in nanoseconds to the nearest wait timeout of the requests left in the queue
+     */
+    private long removeTimeoutedRequests(List<RequestInfo> timeoutedRequests, long maxWaitTime)
     {
         statusMessage.set("Cleaning up queue from timeouted requests");
+        final long ts = System.currentTimeMillis();
+        long waitTime = maxWaitTime;
         RequestInfo ri;
         Iterator<RequestInfo> it = queue.iterator();
         while (it.hasNext()) {
             ri = it.next();
-            if (System.currentTimeMillis() - ri.startTime > ri.request.getWaitTimeout()) {
+            final long timeout = ri.getWaitDeadline() - ts;
+            if (timeout < 0) {
                 it.remove();
-                ri.request.processRequest(null);
-            }
+                timeoutedRequests.add(ri);
+            } else
+                waitTime = Math.min(waitTime, TimeUnit.MILLISECONDS.toNanos(timeout+1));
         }
+        return waitTime;
     }
 
     private void clearQueue() 
@@ -339,32 +365,30 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
 
     private void processRequest() throws InterruptedException {
         try {
-            try{
-                statusMessage.set("Waiting for request...");
-                RequestInfo ri = queue.poll(10, TimeUnit.SECONDS);
-                if (ri != null) {
-                    if (isLogLevelEnabled(LogLevel.DEBUG))
-                        debug("Processing request from (" + ri.getTaskNode().getPath() + ")");
-                    lookupForEndpoint(ri);
-                    if (ri.endpoint == null) {
-                        IvrEndpointPool _auxiliaryPool = auxiliaryPool;
-                        if (_auxiliaryPool==null)
+            List<RequestInfo> timeoutedRequests = new LinkedList<RequestInfo>();
+            RequestInfo ri = lookupForRequest(timeoutedRequests);
+            for (RequestInfo timeouted: timeoutedRequests) {
+                if (isLogLevelEnabled(LogLevel.DEBUG))
+                    debug("Request from ("+timeouted.getTaskNode().getPath()+") timeouted");
+                timeouted.request.processRequest(null);
+            }
+            if (ri != null) {
+                if (ri.endpoint == null) {
+                    IvrEndpointPool _auxiliaryPool = auxiliaryPool;
+                    if (_auxiliaryPool==null)
+                        ri.request.processRequest(null);
+                    else{
+                        auxiliaryPoolUsageCount.incrementAndGet();
+                        _auxiliaryPool.requestEndpoint(ri.request);
+                    }
+                } else {
+                    if (!sendResponse(ri)) 
+                        try {
                             ri.request.processRequest(null);
-                        else{
-                            auxiliaryPoolUsageCount.incrementAndGet();
-                            _auxiliaryPool.requestEndpoint(ri.request);
+                        } finally {
+                            releaseEndpoint(ri.endpoint, 0);
                         }
-                    } else {
-                        if (!sendResponse(ri)) 
-                            try {
-                                ri.request.processRequest(null);
-                            } finally {
-                                releaseEndpoint(ri.endpoint, 0);
-                            }
-                    }
                 }
-            }finally{
-                cleanupQueue();
             }
         } catch (Throwable e) {
             if (e instanceof InterruptedException) {
@@ -374,26 +398,56 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
             }
         }
     }
-    
-    private synchronized void applyMaxRequestsPerSecondPolicy() {
-        long ts = System.currentTimeMillis();
-        if (ts/1000 > lastMaxRequestsPerSecondCheckTime/1000) {
-            lastMaxRequestsPerSecondCheckTime = ts;
-            requestsCountInSecond=1;
-        } else if (requestsCountInSecond<=sessionMaxRequestsPerSecond) {
-            ++requestsCountInSecond;
-        } else {
-            try {
-                Thread.sleep(1000-ts%1000);
-                requestsCountInSecond = 1;
-                lastMaxRequestsPerSecondCheckTime = System.currentTimeMillis();
-            } catch (InterruptedException ex) { }
+
+    /**
+     * Returns the request for which the free endpoint was found (or that must be redirected to the
+     * auxiliary pool). If there is no such request waits until the pool state changed, the requests rate
+     * limit allows the next request or the nearest wait timeout of the queued requests is expired.
+     */
+    private RequestInfo lookupForRequest(List<RequestInfo> timeoutedRequests) throws InterruptedException
+    {
+        lock.writeLock().lock();
+        try {
+            long waitTime = TimeUnit.SECONDS.toNanos(10);
+            if (!queue.isEmpty() && !stopManagerTask.get()) {
+                statusMessage.set("Looking up for free endpoint");
+                final IvrEndpoint endpoint = acquireFreeEndpoint();
+                final long delay = endpoint==null || requestsRateLimiter==null?
+                        0 : requestsRateLimiter.tryAcquire();
+                if (delay==0 && (endpoint!=null || auxiliaryPool!=null)) {
+                    RequestInfo ri = queue.poll();
+                    if (ri!=null) {
+                        if (endpoint!=null)
+                            lockEndpoint(ri, endpoint);
+                        if (isLogLevelEnabled(LogLevel.DEBUG)) {
+                            if (ri.endpoint==null)
+                                debug("No free endpoint found in the pool for request from ("
+                                        +ri.getTaskNode().getPath()+")");
+                            else
+                                debug("Found free endpoint ("+ri.endpoint.getName()+") for request from ("
+                                        +ri.getTaskNode().getPath()+")");
+                        }
+                        return ri;
+                    }
+                }
+                if (endpoint!=null)
+                    addFreeEndpoint(endpoint, true);
+                if (delay>0)
+                    waitTime = delay;
+                waitTime = removeTimeoutedRequests(timeoutedRequests, waitTime);
+            }
+            if (timeoutedRequests.isEmpty()) {
+                statusMessage.set("Waiting for request...");
+                poolStateChanged.awaitNanos(waitTime);
+            }
+            return null;
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     private boolean sendResponse(RequestInfo requestInfo) {
         try {
-            applyMaxRequestsPerSecondPolicy();
             statusMessage.set("Executing response for request from ("+requestInfo.getTaskNode().getPath()+")");
             executor.execute(requestInfo);
             return true;
@@ -571,8 +625,9 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         lock.writeLock().lock();
         try {
             loadAverage.addDuration(duration);
-            busyEndpoints.remove(endpoint.getId());
-            endpointReleased.signal();
+            if (busyEndpoints.remove(endpoint.getId())!=null)
+                addFreeEndpoint(endpoint, false);
+            poolStateChanged.signal();
             if (isLogLevelEnabled(LogLevel.DEBUG))
                 debug(String.format("Endpoint (%s) successfully realesed to the pool"
                         , endpoint.getName()));
@@ -581,23 +636,90 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         }
     }
 
-    private void getAndLockFreeEndpoint(RequestInfo requestInfo) throws InterruptedException {
-        for (IvrEndpoint endpoint : NodeUtils.getChildsOfType(this, IvrEndpoint.class)) {
-            if (   endpoint.getActiveCallsCount()==0
-                && !busyEndpoints.containsKey(endpoint.getId())
-                && ((IvrEndpoint)endpoint).getEndpointState().getId() == IvrEndpointState.IN_SERVICE)
-            {
-                busyEndpoints.put(endpoint.getId(), requestInfo);
-                requestInfo.terminalUsageTime = System.currentTimeMillis();                
-                requestInfo.endpoint = (IvrEndpoint) endpoint;
-                incEndpointUsageCounter(endpoint);
-//                Long counter = usageCounters.get(endpoint.getId());
-//                usageCounters.put(endpoint.getId(), counter == null ? 1 : counter + 1);
-                return;
+    private void lockEndpoint(RequestInfo requestInfo, IvrEndpoint endpoint) {
+        busyEndpoints.put(endpoint.getId(), requestInfo);
+        requestInfo.terminalUsageTime = System.currentTimeMillis();
+        requestInfo.endpoint = endpoint;
+        incEndpointUsageCounter(endpoint);
+    }
+
+    private static boolean isEndpointAvailable(IvrEndpoint endpoint) {
+        return endpoint.isStarted()
+            && endpoint.getActiveCallsCount()==0
+            && endpoint.getEndpointState().getId() == IvrEndpointState.IN_SERVICE;
+    }
+
+    /**
+     * Takes the free endpoint from the index. Must be called under the write lock.
+     */
+    private IvrEndpoint acquireFreeEndpoint() {
+        if (indexedChildrenCount!=getChildrenCount())
+            rebuildEndpointsIndex();
+        IvrEndpoint endpoint;
+        while ((endpoint=freeEndpoints.poll())!=null) {
+            freeEndpointIds.remove(endpoint.getId());
+            if (endpoint.getParent()==this && !busyEndpoints.containsKey(endpoint.getId())) {
+                if (isEndpointAvailable(endpoint))
+                    return endpoint;
+                parkedEndpoints.put(endpoint.getId(), endpoint);
+            }
+        }
+        //the endpoint state is changed without notifying the pool, so the parked endpoints are rechecked
+        Iterator<IvrEndpoint> it = parkedEndpoints.values().iterator();
+        while (it.hasNext()) {
+            endpoint = it.next();
+            if (endpoint.getParent()!=this || busyEndpoints.containsKey(endpoint.getId()))
+                it.remove();
+            else if (isEndpointAvailable(endpoint)) {
+                it.remove();
+                return endpoint;
             }
         }
+        return null;
     }
-    
+
+    /**
+     * Returns the endpoint to the index of the free endpoints. Must be called under the write lock.
+     * @param first if <b>true</b> the endpoint will be taken first
+     */
+    private void addFreeEndpoint(IvrEndpoint endpoint, boolean first) {
+        if (endpoint.getParent()==this && freeEndpointIds.add(endpoint.getId())) {
+            parkedEndpoints.remove(endpoint.getId());
+            if (first)
+                freeEndpoints.addFirst(endpoint);
+            else
+                freeEndpoints.addLast(endpoint);
+        }
+    }
+
+    /**
+     * Rebuilds the index of the free endpoints. Called on the pool start, when the endpoints were added to
+     * or removed from the pool and by the watchdog. Must be called under the write lock (or on start).
+     */
+    private void rebuildEndpointsIndex() {
+        freeEndpoints.clear();
+        freeEndpointIds.clear();
+        parkedEndpoints.clear();
+        indexedChildrenCount = getChildrenCount();
+        for (IvrEndpoint endpoint: NodeUtils.getChildsOfType(this, IvrEndpoint.class, false))
+            if (!busyEndpoints.containsKey(endpoint.getId())) {
+                if (isEndpointAvailable(endpoint)) {
+                    freeEndpointIds.add(endpoint.getId());
+                    freeEndpoints.add(endpoint);
+                } else
+                    parkedEndpoints.put(endpoint.getId(), endpoint);
+            }
+    }
+
+    private void signalPoolStateChanged() {
+        lock.writeLock().lock();
+        try {
+            poolStateChanged.signal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     private void incEndpointUsageCounter(IvrEndpoint endpoint) {
         Long counter = usageCounters.get(endpoint.getId());
         usageCounters.put(endpoint.getId(), counter == null ? 1 : counter + 1);
@@ -753,17 +875,14 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
     
     private void runWatchdogForOutgoingCallsUseCase() {
         try {
+            int restartedEndpoints = 0;
             if (lock.writeLock().tryLock(500, TimeUnit.MILLISECONDS)) {
                 try {
                     loadAverage.addDuration(0);
                     Collection<IvrEndpoint> endpoints = NodeUtils.getChildsOfType(this, IvrEndpoint.class, false);
-                    int restartedEndpoints = 0;
-                    boolean hasFree = false;
                     for (IvrEndpoint endpoint: endpoints) 
                         if (!busyEndpoints.containsKey(endpoint.getId())) {
                             int state = endpoint.getEndpointState().getId();
-                            if (endpoint.isStarted() && state==IvrEndpointState.IN_SERVICE)
-                                hasFree = true;
                             if (   endpoint.isInitialized()
                                 || (   endpoint.isStarted()
                                     && (state!=IvrEndpointState.IN_SERVICE || endpoint.getActiveCallsCount()>0)))
@@ -776,19 +895,21 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
                                     ++restartedEndpoints;
                             }
                         }
-                    if (restartedEndpoints>0) {
-                        //giving some time for terminals to be IN_SERVICE
-                        TimeUnit.SECONDS.sleep(5);
-                        if (isLogLevelEnabled(LogLevel.INFO))
-                            info("Watchdog task. Successfully restarted ({}) endpoints", restartedEndpoints);
-                    }
-                    if (hasFree || restartedEndpoints>0)
-                        endpointReleased.signal();
+                    rebuildEndpointsIndex();
+                    poolStateChanged.signal();
                 } finally {
                     lock.writeLock().unlock();
                 }
             } else if (isLogLevelEnabled(LogLevel.WARN))
                 warn("Error executing watchdog task. Timeout acquiring read lock");
+            if (restartedEndpoints>0) {
+                //giving some time for terminals to be IN_SERVICE. The pool is not locked meanwhile, the
+                //restarted endpoints are parked in the index until they are in service
+                TimeUnit.SECONDS.sleep(5);
+                if (isLogLevelEnabled(LogLevel.INFO))
+                    info("Watchdog task. Successfully restarted ({}) endpoints", restartedEndpoints);
+                signalPoolStateChanged();
+            }
         } catch (InterruptedException ex) {
             if (isLogLevelEnabled(LogLevel.WARN))
                 warn("Wait for read lock was interrupted", ex);
@@ -832,32 +953,6 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         }
     }
 
-    private void lookupForEndpoint(RequestInfo ri) throws InterruptedException
-    {
-        if (isLogLevelEnabled(LogLevel.DEBUG))
-            debug("Searching for free endpoint for request from ("+ri.getTaskNode().getPath()+")");
-        statusMessage.set("Looking up for endpoint for request from ("+ri.getTaskNode().getPath()+")");
-
-        if (lock.writeLock().tryLock(1, TimeUnit.SECONDS)) try {
-            getAndLockFreeEndpoint(ri);
-            if (ri.endpoint==null && auxiliaryPool==null) {
-                long timeout = ri.request.getWaitTimeout()-(System.currentTimeMillis()-ri.startTime);
-                if (timeout>0) {
-                    if (endpointReleased.await(timeout, TimeUnit.MILLISECONDS))
-                        getAndLockFreeEndpoint(ri);
-                }
-            }
-            if (isLogLevelEnabled(LogLevel.DEBUG)) {
-                if (ri.endpoint==null)
-                    debug("No free endpoint found in the pool");
-                else
-                    debug("Found free endpoint ("+ri.endpoint.getName()+")");
-            }
-        } finally {
-            lock.writeLock().unlock();
-        }
-    }
-
     private void synchEndpointsWithAddressRanges() throws Exception
     {
         if (addressRanges==null)
@@ -913,6 +1008,7 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
         private long execStartTime;
         private IvrEndpoint endpoint;
         private long id;
+        private long waitDeadline = 0;
 
         public RequestInfo(EndpointRequest request) {
             this.request = request;
@@ -924,6 +1020,16 @@ public class IvrEndpointPoolNode extends BaseNode implements IvrEndpointPool, Vi
             this.endpoint = endpoint;
         }
 
+        /**
+         * Returns the time (in milliseconds) until the request waits for the endpoint. The wait timeout
+         * is asked from the request only once, when the request has to wait for the first time
+         */
+        public long getWaitDeadline() {
+            if (waitDeadline==0)
+                waitDeadline = startTime + request.getWaitTimeout();
+            return waitDeadline;
+        }
+
         public Node getTaskNode() {
             return request.getOwner();
         }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.impl.LatencyStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the JTAPI observer events out of the observer thread of the provider. The events are hashed by
+ * the key (the call) onto the fixed set of lanes, every lane is the thread with the FIFO queue, so the
+ * events of the one key are executed in the order of delivery and the events of the different keys are
+ * executed in parallel. The slow event processing of the one call (call setup, RTP initialization)
+ * delays only the calls of the same lane and never blocks the provider observer thread.
+ *
+ * <p/>The dispatcher of the provider is stopped and removed when the provider is shut down
+ * (see {@link #removeDispatcher(String)}).
+ *
+ * <p/>The dispatcher collects the depth of the lane queue (on every dispatch) and the latency of the events
+ * (the time from the dispatch to the start of the execution) over the last {@link LatencyStat#DEFAULT_WINDOW_SIZE}
+ * events.
+ *
+ * @author Mikhail Titov
+ */
+public class JtapiEventDispatcher {
+    public final static int DEFAULT_LANES_COUNT = 16;
+
+    private final static Logger logger = LoggerFactory.getLogger(JtapiEventDispatcher.class);
+    private final static ConcurrentMap<String, JtapiEventDispatcher> dispatchers = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Lane[] lanes;
+    private final AtomicLong eventsCount = new AtomicLong();
+    private final AtomicLong errorsCount = new AtomicLong();
+    private final LatencyStat queueDepthStat = new LatencyStat();
+    private final LatencyStat latencyStat = new LatencyStat();
+    private volatile boolean stopped = false;
+
+    public JtapiEventDispatcher(String name, int lanesCount) {
+        if (lanesCount<1)
+            throw new IllegalArgumentException("lanesCount must be greater than zero");
+        this.name = name;
+        this.lanes = new Lane[lanesCount];
+        for (int i=0; i<lanesCount; ++i)
+            lanes[i] = new Lane(i);
+    }
+
+    /**
+     * Returns the dispatcher (with {@link #DEFAULT_LANES_COUNT} lanes) of the provider
+     */
+    public static JtapiEventDispatcher getDispatcher(String providerName) {
+        JtapiEventDispatcher dispatcher = dispatchers.get(providerName);
+        if (dispatcher==null) {
+            dispatcher = new JtapiEventDispatcher("JTAPI events ("+providerName+")", DEFAULT_LANES_COUNT);
+            JtapiEventDispatcher prev = dispatchers.putIfAbsent(providerName, dispatcher);
+            if (prev!=null)
+                dispatcher = prev;
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Stops and removes the dispatcher of the provider. The next {@link #getDispatcher(String)} call creates
+     * the new dispatcher
+     */
+    public static void removeDispatcher(String providerName) {
+        JtapiEventDispatcher dispatcher = dispatchers.remove(providerName);
+        if (dispatcher!=null) {
+            if (logger.isDebugEnabled())
+                logger.debug("{}. Stopping", dispatcher.getName());
+            dispatcher.stop();
+        }
+    }
+
+    /**
+     * Queues the event to the lane of the key
+     * @throws IllegalStateException if the dispatcher is stopped
+     */
+    public void dispatch(Object key, Runnable event) {
+        if (stopped)
+            throw new IllegalStateException(String.format("Dispatcher (%s) stopped", name));
+        final Lane lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        queueDepthStat.add(lane.queue.size());
+        lane.add(new Event(event));
+    }
+
+    public void stop() {
+        stopped = true;
+        for (Lane lane: lanes)
+            lane.stop();
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLanesCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of the lanes which threads are running
+     */
+    public int getActiveLanesCount() {
+        int count = 0;
+        for (Lane lane: lanes)
+            if (lane.isAlive())
+                ++count;
+        return count;
+    }
+
+    /**
+     * Returns the number of the events waiting for the execution in all lanes
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (Lane lane: lanes)
+            size += lane.queue.size();
+        return size;
+    }
+
+    public long getEventsCount() {
+        return eventsCount.get();
+    }
+
+    public long getErrorsCount() {
+        return errorsCount.get();
+    }
+
+    /**
+     * Returns the percentile (0..100) of the lane queue depth observed by the dispatched events
+     */
+    public long getQueueDepthPercentile(double percentile) {
+        return queueDepthStat.getPercentile(percentile);
+    }
+
+    /**
+     * Returns the percentile (0..100) of the time the events waited in the queue
+     */
+    public long getLatencyPercentile(double percentile, TimeUnit timeUnit) {
+        return timeUnit.convert(latencyStat.getPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    public void resetStat() {
+        queueDepthStat.reset();
+        latencyStat.reset();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private class Event implements Runnable {
+        private final Runnable event;
+        private final long created = System.nanoTime();
+
+        public Event(Runnable event) {
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            latencyStat.add(System.nanoTime()-created);
+            eventsCount.incrementAndGet();
+            try {
+                event.run();
+            } catch (Throwable e) {
+                errorsCount.incrementAndGet();
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("%s. Event processing error", name), e);
+            }
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final int index;
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private volatile Thread thread;
+
+        public Lane(int index) {
+            this.index = index;
+        }
+
+        public void add(Runnable event) {
+            queue.offer(event);
+            if (thread==null) {
+                synchronized(this) {
+                    if (thread==null && !stopped) {
+                        Thread _thread = new Thread(this, name+" lane "+index);
+                        _thread.setDaemon(true);
+                        thread = _thread;
+                        _thread.start();
+                    }
+                }
+            }
+        }
+
+        //synchronized with the thread creation, so the thread created concurrently is interrupted too
+        public synchronized void stop() {
+            final Thread _thread = thread;
+            if (_thread!=null)
+                _thread.interrupt();
+        }
+
+        public boolean isAlive() {
+            final Thread _thread = thread;
+            return _thread!=null && _thread.isAlive();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped)
+                    queue.take().run();
+            } catch (InterruptedException e) {
+                if (logger.isDebugEnabled())
+                    logger.debug("{} lane {} stopped", name, index);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared media clock. Instead of the thread per real time data source the clock drives all registered
+ * listeners from the small set of timer threads (lanes). Every listener is bound to the one lane, so
+ * the listener ticks are never executed concurrently. The clock is based on {@link System#nanoTime()},
+ * if the lane falls behind the schedule it executes missed ticks without waiting (but not more than
+ * {@link #MAX_CATCH_UP_TICKS} ticks).
+ *
+ * @author Mikhail Titov
+ */
+public class MediaClock {
+    public final static long TICK_INTERVAL = 20;
+    public final static int MAX_CATCH_UP_TICKS = 5;
+
+    private final static Logger logger = LoggerFactory.getLogger(MediaClock.class);
+    private static volatile MediaClock defaultClock;
+
+    private final String name;
+    private final long tickIntervalNanos;
+    private final Lane[] lanes;
+    private volatile boolean stopped = false;
+
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong skippedTicks = new AtomicLong();
+    private final AtomicLong maxLateness = new AtomicLong();
+    private final AtomicLong maxTickDuration = new AtomicLong();
+    private final AtomicLong totalLateness = new AtomicLong();
+
+    /**
+     * Listener of the clock ticks
+     */
+    public interface Listener {
+        /**
+         * Executes on every tick of the clock.
+         * @return <b>false</b> if listener must be unregistered from the clock
+         */
+        public boolean tick();
+    }
+
+    public MediaClock(String name, long tickInterval, TimeUnit timeUnit, int lanesCount) {
+        if (lanesCount<1)
+            throw new IllegalArgumentException("lanesCount must be greater than zero");
+        this.name = name;
+        this.tickIntervalNanos = timeUnit.toNanos(tickInterval);
+        this.lanes = new Lane[lanesCount];
+        for (int i=0; i<lanesCount; ++i)
+            lanes[i] = new Lane(i);
+    }
+
+    /**
+     * Returns the clock (with {@link #TICK_INTERVAL} tick interval) shared by all real time mixers
+     */
+    public static MediaClock getDefault() {
+        MediaClock clock = defaultClock;
+        if (clock==null) {
+            synchronized(MediaClock.class) {
+                clock = defaultClock;
+                if (clock==null) {
+                    clock = new MediaClock("Media clock", TICK_INTERVAL, TimeUnit.MILLISECONDS,
+                            Runtime.getRuntime().availableProcessors());
+                    defaultClock = clock;
+                }
+            }
+        }
+        return clock;
+    }
+
+    /**
+     * Registers listener in the lane with the smallest number of listeners
+     */
+    public void register(Listener listener) {
+        if (stopped)
+            throw new IllegalStateException(String.format("Clock (%s) stopped", name));
+        Lane lane = lanes[0];
+        for (int i=1; i<lanes.length; ++i)
+            if (lanes[i].listeners.size() < lane.listeners.size())
+                lane = lanes[i];
+        lane.add(listener);
+    }
+
+    public void unregister(Listener listener) {
+        for (Lane lane: lanes)
+            if (lane.listeners.remove(listener))
+                return;
+    }
+
+    public void stop() {
+        stopped = true;
+        for (Lane lane: lanes)
+            lane.stop();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTickInterval(TimeUnit timeUnit) {
+        return timeUnit.convert(tickIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getListenersCount() {
+        int count = 0;
+        for (Lane lane: lanes)
+            count += lane.listeners.size();
+        return count;
+    }
+
+    /**
+     * Returns the number of started timer threads
+     */
+    public int getThreadsCount() {
+        int count = 0;
+        for (Lane lane: lanes)
+            if (lane.thread!=null)
+                ++count;
+        return count;
+    }
+
+    public long getTicksCount() {
+        return ticks.get();
+    }
+
+    /**
+     * Returns the number of ticks whose processing (listeners execution) took more time than the tick interval
+     */
+    public long getOverrunsCount() {
+        return overruns.get();
+    }
+
+    /**
+     * Returns the number of ticks that were not executed because the lane fell behind the schedule more
+     * than on {@link #MAX_CATCH_UP_TICKS}
+     */
+    public long getSkippedTicksCount() {
+        return skippedTicks.get();
+    }
+
+    public long getMaxLateness(TimeUnit timeUnit) {
+        return timeUnit.convert(maxLateness.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getAvgLateness(TimeUnit timeUnit) {
+        long _ticks = ticks.get();
+        return _ticks==0? 0 : timeUnit.convert(totalLateness.get()/_ticks, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxTickDuration(TimeUnit timeUnit) {
+        return timeUnit.convert(maxTickDuration.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public void resetStat() {
+        ticks.set(0);
+        overruns.set(0);
+        skippedTicks.set(0);
+        maxLateness.set(0);
+        maxTickDuration.set(0);
+        totalLateness.set(0);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long cur = max.get();
+        while (value>cur && !max.compareAndSet(cur, value))
+            cur = max.get();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private class Lane implements Runnable {
+        private final int index;
+        private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+        private volatile Thread thread;
+
+        public Lane(int index) {
+            this.index = index;
+        }
+
+        public void add(Listener listener) {
+            listeners.add(listener);
+            Thread _thread = thread;
+            if (_thread==null) {
+                synchronized(this) {
+                    if (thread==null) {
+                        _thread = new Thread(this, name+" lane #"+index);
+                        _thread.setDaemon(true);
+                        _thread.setPriority(Thread.MAX_PRIORITY);
+                        thread = _thread;
+                        _thread.start();
+                        return;
+                    }
+                    _thread = thread;
+                }
+            }
+            LockSupport.unpark(_thread);
+        }
+
+        public void stop() {
+            Thread _thread = thread;
+            if (_thread!=null)
+                LockSupport.unpark(_thread);
+        }
+
+        public void run() {
+            long nextTick = System.nanoTime();
+            while (!stopped) {
+                if (listeners.isEmpty()) {
+                    LockSupport.park(this);
+                    nextTick = System.nanoTime();
+                    continue;
+                }
+                long waitTime = nextTick - System.nanoTime();
+                if (waitTime>0) {
+                    LockSupport.parkNanos(this, waitTime);
+                    continue;
+                }
+                long lateness = -waitTime;
+                if (lateness > tickIntervalNanos * MAX_CATCH_UP_TICKS) {
+                    long missed = lateness / tickIntervalNanos;
+                    skippedTicks.addAndGet(missed);
+                    nextTick += missed * tickIntervalNanos;
+                    lateness -= missed * tickIntervalNanos;
+                }
+                long startTime = System.nanoTime();
+                executeTick();
+                long duration = System.nanoTime() - startTime;
+                ticks.incrementAndGet();
+                totalLateness.addAndGet(lateness);
+                updateMax(maxLateness, lateness);
+                updateMax(maxTickDuration, duration);
+                if (duration > tickIntervalNanos)
+                    overruns.incrementAndGet();
+                nextTick += tickIntervalNanos;
+            }
+        }
+
+        private void executeTick() {
+            for (Listener listener: listeners) {
+                boolean active;
+                try {
+                    active = listener.tick();
+                } catch (Throwable e) {
+                    if (logger.isErrorEnabled())
+                        logger.error(String.format("%s. Listener (%s) tick error. Unregistering listener",
+                                thread.getName(), listener), e);
+                    active = false;
+                }
+                if (!active)
+                    listeners.remove(listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import io.netty.buffer.ByteBuf;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.media.format.AudioFormat;
+import org.onesec.raven.codec.DtmfListener;
+import org.onesec.raven.ivr.IncomingRtpStreamDataSourceListener;
+import org.onesec.raven.ivr.RtpStreamException;
+import org.onesec.raven.rtp.JitterBuffer;
+import org.onesec.raven.rtp.RtpPacket;
+import org.onesec.raven.rtp.RtpPayloadTypes;
+import org.onesec.raven.rtp.RtpReceiver;
+import org.onesec.raven.rtp.RtpSession;
+import org.onesec.raven.rtp.RtpSessionDataSource;
+import org.onesec.raven.rtp.RtpSessionFactory;
+import org.onesec.raven.rtp.TelephoneEventReceiver;
+import org.raven.sched.impl.AbstractTask;
+
+/**
+ * Incoming RTP stream over the {@link RtpSession} of the native RTP engine. The data source for the
+ * consumers is created when the first packet of the supported payload type is received and recreated
+ * when the payload type is changed.
+ *
+ * <p/>If the session factory creates the {@link JitterBuffer} the received packets are put to the
+ * buffer and the frames are played out to the data source on the ticks of the default {@link MediaClock},
+ * otherwise packets are pushed to the data source from the event loop thread.
+ *
+ * <p/>The consumer that is the only consumer of the stream may take the payload without decoding using
+ * {@link #startForwarding(IncomingRtpStreamDataSourceListener, int, Forwarder)}. The forwarding is stopped
+ * when another consumer is added to the stream.
+ *
+ * <p/>If the session factory has the payload type of the telephone events (RFC 4733) the received events are
+ * reported to the {@link #setDtmfListener(DtmfListener) DTMF listener} from the event loop thread, bypassing
+ * the jitter buffer.
+ *
+ * @author Mikhail Titov
+ */
+public class NativeIncomingRtpStreamImpl extends IncomingRtpStreamImpl
+        implements RtpSession.PayloadListener, RtpSession.Listener, MediaClock.Listener
+{
+    /**
+     * Receives the payload of the stream instead of the data source. Called from the same threads as the
+     * data source (the event loop or the media clock thread)
+     */
+    public interface Forwarder extends RtpSession.PayloadListener {
+        /**
+         * Receives the frame played out by the {@link JitterBuffer}
+         */
+        public void frameReceived(JitterBuffer.Frame frame);
+        /**
+         * Called when the forwarding was stopped by the stream (another consumer was added to the stream)
+         */
+        public void forwardingStopped();
+    }
+
+    private final RtpSessionFactory sessionFactory;
+    private final JitterBuffer jitterBuffer;
+    //accessed only by the media clock thread
+    private final JitterBuffer.Frame frame = new JitterBuffer.Frame();
+    private volatile boolean closed = false;
+    private volatile RtpSession session;
+    private volatile RtpSessionDataSource dataSource;
+    //the payload type of the data source being initialized. Set by the event loop thread, reset by the
+    //executor thread if the initialization failed, so the next packet will retry it
+    private final AtomicInteger pendingPayloadType = new AtomicInteger(-1);
+    private volatile Forwarder forwarder;
+    private volatile int forwardedPayloadType = -1;
+    private IncomingRtpStreamDataSourceListener forwarderOwner;
+    private final TelephoneEventReceiver eventReceiver = new TelephoneEventReceiver(null);
+
+    public NativeIncomingRtpStreamImpl(InetAddress address, int port, RtpSessionFactory sessionFactory) {
+        super(address, port, null);
+        this.sessionFactory = sessionFactory;
+        this.jitterBuffer = sessionFactory.createJitterBuffer();
+    }
+
+    @Override
+    protected void openSession(InetAddress remoteAddress, int remotePort) throws Exception {
+        this.remotePort = remotePort;
+        RtpSession _session = sessionFactory.createSession(address, port, remoteAddress, remotePort, logger);
+        for (int payloadType: RtpPayloadTypes.SUPPORTED)
+            _session.setPayloadListener(payloadType, this);
+        final int dtmfPayloadType = sessionFactory.getDtmfPayloadType();
+        if (dtmfPayloadType>=0)
+            _session.setPayloadListener(dtmfPayloadType, eventReceiver);
+        _session.setListener(this);
+        session = _session;
+        if (jitterBuffer!=null)
+            MediaClock.getDefault().register(this);
+    }
+
+    @Override
+    protected void closeSession() throws Exception {
+        closed = true;
+        final RtpSession _session = session;
+        if (_session!=null) {
+            _session.close();
+            incHandledBytesBy(_session.getBytesReceived());
+            incHandledPacketsBy(_session.getPacketsReceived());
+        }
+    }
+
+    @Override
+    public boolean addDataSourceListener(IncomingRtpStreamDataSourceListener listener, AudioFormat format)
+            throws RtpStreamException
+    {
+        boolean added = super.addDataSourceListener(listener, format);
+        Forwarder stoppedForwarder = null;
+        synchronized(this) {
+            if (forwarder!=null && listener!=forwarderOwner) {
+                stoppedForwarder = forwarder;
+                resetForwarder();
+            }
+        }
+        if (stoppedForwarder!=null) {
+            if (logger.isDebugEnabled())
+                logger.debug("Payload forwarding stopped because of the new consumer");
+            stoppedForwarder.forwardingStopped();
+        }
+        return added;
+    }
+
+    /**
+     * Starts forwarding the payload of the passed type to the forwarder. The payload is not pushed to the
+     * data source while forwarding.
+     * @param owner the consumer which owns the forwarder
+     * @return <b>false</b> if the stream has the consumers other than the owner
+     */
+    public boolean startForwarding(IncomingRtpStreamDataSourceListener owner, int payloadType,
+            Forwarder forwarder)
+    {
+        if (closed)
+            return false;
+        synchronized(this) {
+            this.forwarderOwner = owner;
+            this.forwardedPayloadType = payloadType;
+            this.forwarder = forwarder;
+        }
+        //the consumer added concurrently either is seen here or sees the forwarder in addDataSourceListener
+        if (hasOtherConsumers(owner)) {
+            stopForwarding(forwarder);
+            return false;
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Payload forwarding started for payload type ({})", payloadType);
+        return true;
+    }
+
+    /**
+     * Stops forwarding to the passed forwarder. {@link Forwarder#forwardingStopped()} is not called.
+     */
+    public synchronized void stopForwarding(Forwarder forwarder) {
+        if (this.forwarder==forwarder)
+            resetForwarder();
+    }
+
+    public boolean isForwarding() {
+        return forwarder!=null;
+    }
+
+    /**
+     * Sets the listener of the DTMF received as the telephone events. The listener is called from the
+     * event loop thread and must not block
+     */
+    public void setDtmfListener(DtmfListener listener) {
+        eventReceiver.setListener(listener);
+    }
+
+    private void resetForwarder() {
+        forwarder = null;
+        forwardedPayloadType = -1;
+        forwarderOwner = null;
+    }
+
+    public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+        final RtpSessionDataSource _dataSource = dataSource;
+        final int payloadType = RtpPacket.getPayloadType(packet);
+        if (_dataSource!=null && _dataSource.getPayloadType()==payloadType) {
+            final Forwarder _forwarder = forwarder;
+            if (jitterBuffer!=null)
+                jitterBuffer.payloadReceived(packet, payloadIndex, payloadLength);
+            else if (_forwarder!=null && forwardedPayloadType==payloadType)
+                _forwarder.payloadReceived(packet, payloadIndex, payloadLength);
+            else
+                _dataSource.payloadReceived(packet, payloadIndex, payloadLength);
+        } else if (payloadType!=pendingPayloadType.get()) {
+            pendingPayloadType.set(payloadType);
+            if (logger.isDebugEnabled())
+                logger.debug("Received stream with payload type ({})", payloadType);
+            //consumers may do the long operations on the data source creation so the event loop
+            //must not be blocked
+            final boolean executed = sessionFactory.getExecutor().executeQuietly(
+                new AbstractTask(owner, "Initializing rtp data source") {
+                    @Override public void doRun() throws Exception {
+                        initDataSource(payloadType);
+                    }
+                });
+            if (!executed)
+                pendingPayloadType.compareAndSet(payloadType, -1);
+        }
+    }
+    
+    private void initDataSource(int payloadType) {
+        try {
+            RtpSessionDataSource newDataSource = new RtpSessionDataSource(payloadType);
+            initStream(newDataSource);
+            dataSource = newDataSource;
+        } catch (Exception e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error initializing rtp data source", e);
+            pendingPayloadType.compareAndSet(payloadType, -1);
+        }
+    }
+
+    public void byeReceived(RtpSession session) {
+        byeReceived();
+    }
+
+    public boolean tick() {
+        if (closed)
+            return false;
+        final long now = System.nanoTime();
+        while (jitterBuffer.poll(now, frame)) {
+            final RtpSessionDataSource _dataSource = dataSource;
+            if (_dataSource!=null && _dataSource.getPayloadType()==frame.getPayloadType()) {
+                final Forwarder _forwarder = forwarder;
+                if (_forwarder!=null && forwardedPayloadType==frame.getPayloadType())
+                    _forwarder.frameReceived(frame);
+                else
+                    _dataSource.frameReceived(frame);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> getStat() {
+        final RtpSession _session = session;
+        if (_session==null)
+            return Collections.EMPTY_MAP;
+        RtpReceiver receiver = _session.getReceiver();
+        Map<String, Object> stat = new LinkedHashMap<>();
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_LOCAL_ADDR, getAddress().getHostAddress());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_LOCAL_PORT, getPort());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_REMOTE_ADDR, getRemoteHost());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_REMOTE_PORT, getRemotePort());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_BAD_RTP_PACKETS, _session.getBadPackets());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_BAD_RTCP_PACKETS, _session.getBadRtcpPackets());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_BYTES_RECEIVED, _session.getBytesReceived());
+        stat.put(CallCdrRecordSchemaNode.IN_RTP_PACKETS_RECEIVED, _session.getPacketsReceived());
+        if (jitterBuffer!=null) {
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_LATE_PACKETS, jitterBuffer.getLate());
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_LOST_PACKETS, jitterBuffer.getLost());
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_REORDERED_PACKETS, jitterBuffer.getReordered());
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_DISCARDED_PACKETS, jitterBuffer.getDiscarded());
+            stat.put("concealedFrames", jitterBuffer.getConcealed());
+            stat.put("jitterBufferDelay", jitterBuffer.getDelay());
+        } else
+            stat.put(CallCdrRecordSchemaNode.IN_RTP_LOST_PACKETS, receiver.getLost());
+        stat.put("jitter", receiver.getJitter());
+        stat.put("RTCPRecd", _session.getRtcpReceived());
+        stat.put("unknownTypes", _session.getUnknownPayloads());
+        if (eventReceiver.getEventsCount()>0)
+            stat.put("telephoneEvents", eventReceiver.getEventsCount());
+        return stat;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.protocol.BufferTransferHandler;
+import javax.media.protocol.PushBufferDataSource;
+import javax.media.protocol.PushBufferStream;
+import org.onesec.raven.ivr.AudioStream;
+import org.onesec.raven.ivr.OutgoingRtpStream;
+import org.onesec.raven.ivr.RtpStreamException;
+import org.onesec.raven.rtp.RtpPayloadTypes;
+import org.onesec.raven.rtp.RtpSession;
+import org.onesec.raven.rtp.RtpSessionFactory;
+import org.onesec.raven.rtp.TelephoneEvent;
+import org.onesec.raven.rtp.TelephoneEventSender;
+
+/**
+ * Outgoing RTP stream over the {@link RtpSession} of the native RTP engine. Buffers of the audio stream
+ * are packetized directly to the network buffers in the thread of the audio stream.
+ *
+ * <p/>In the forwarding mode (see {@link #setForwarding(boolean)}) the buffers of the audio stream are
+ * dropped and the stream sends the payload relayed from the incoming stream of another call leg by
+ * the <b>forward</b> methods. The sequence number, the timestamp and the SSRC of the relayed packets are
+ * the ones of this stream so the remote side sees the continuous stream on switching between the modes.
+ *
+ * <p/>If the session factory has the payload type of the telephone events the DTMF digits are sent in
+ * the stream (see {@link #sendDtmf(String)}). The event packets are sent on the ticks of the default
+ * {@link MediaClock} in addition to the audio packets.
+ *
+ * @author Mikhail Titov
+ */
+public class NativeOutgoingRtpStreamImpl extends AbstractRtpStream
+        implements OutgoingRtpStream, BufferTransferHandler
+{
+    private final RtpSessionFactory sessionFactory;
+    private final Buffer buffer = new Buffer();
+    private volatile RtpSession session;
+    private AudioStream audioStream;
+    private volatile PushBufferDataSource dataSource;
+    //accessed only by the thread of the audio stream
+    private Format lastFormat;
+    private int payloadType = -1;
+    private boolean firstPacket = true;
+    private volatile boolean forwarding = false;
+    //the first packet after the mode switch starts the new talkspurt. Guarded by this
+    private boolean markNext = false;
+    private volatile boolean released = false;
+    private final int dtmfPayloadType;
+    private final TelephoneEventSender eventSender = new TelephoneEventSender();
+    private final EventTicker eventTicker = new EventTicker();
+    //the state of the event being sent. Guarded by this
+    private final byte[] eventPayload = new byte[TelephoneEvent.PAYLOAD_SIZE];
+    private long eventTimestamp;
+    private boolean eventTickerRegistered = false;
+
+    public NativeOutgoingRtpStreamImpl(InetAddress address, int portNumber, RtpSessionFactory sessionFactory) {
+        super(address, portNumber, "Outbound RTP", null);
+        this.sessionFactory = sessionFactory;
+        this.dtmfPayloadType = sessionFactory.getDtmfPayloadType();
+    }
+
+    public void open(String remoteHost, int remotePort, AudioStream audioStream) throws RtpStreamException {
+        try {
+            this.remoteHost = remoteHost;
+            this.remotePort = remotePort;
+            if (logger.isDebugEnabled())
+                logger.debug(String.format(
+                        "Trying to open outgoing RTP stream to the remote host (%s) using port (%s)"
+                        , remoteHost, remotePort));
+            this.audioStream = audioStream;
+            this.dataSource = (PushBufferDataSource) audioStream.getDataSource();
+            session = sessionFactory.createSession(address, port, InetAddress.getByName(remoteHost), remotePort,
+                    logger);
+            if (logger.isDebugEnabled())
+                logger.debug(String.format(
+                        "RTP stream was successfully opened to the remote host (%s) using port (%s)"
+                        , remoteHost, remotePort));
+        } catch(Exception e) {
+            throw new RtpStreamException(
+                    String.format(
+                        "Outgoing RTP. Error opening RTP stream to remote host (%s) using port (%s)"
+                        , remoteHost, remotePort)
+                    , e);
+        }
+    }
+
+    public void start() throws RtpStreamException {
+        try {
+            if (logger.isDebugEnabled())
+                logger.debug("Starting rtp packets transmission...");
+            dataSource.getStreams()[0].setTransferHandler(this);
+            dataSource.connect();
+            dataSource.start();
+            if (logger.isDebugEnabled())
+                logger.debug("Rtp packets transmission started");
+        } catch (IOException ex) {
+            throw new RtpStreamException(
+                    String.format(
+                        "Outgoing RTP. Error start outgoing rtp stream (remote address: %s; remote port: %s)"
+                        , remoteHost, remotePort)
+                    , ex);
+        }
+    }
+
+    public void transferData(PushBufferStream stream) {
+        try {
+            stream.read(buffer);
+            if (buffer.isDiscard() || buffer.getLength()<=0 || !(buffer.getData() instanceof byte[]))
+                return;
+            final Format format = buffer.getFormat();
+            if (format!=lastFormat) {
+                lastFormat = format;
+                payloadType = RtpPayloadTypes.getPayloadType(format);
+                if (payloadType<0 && logger.isErrorEnabled())
+                    logger.error("Can't send buffers in format ({})", format);
+            }
+            if (payloadType<0 || forwarding)
+                return;
+            send(payloadType, (byte[])buffer.getData(), buffer.getOffset(), buffer.getLength());
+        } catch (IOException e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error reading audio stream buffer", e);
+        }
+    }
+
+    /**
+     * Returns the RTP payload type of the codec of the audio stream or -1 if the stream is not opened yet or
+     * the codec is not supported by the native engine
+     */
+    public int getPayloadType() {
+        final PushBufferDataSource _dataSource = dataSource;
+        return _dataSource instanceof ConcatDataSource?
+                RtpPayloadTypes.getPayloadType(((ConcatDataSource)_dataSource).getFormat()) : -1;
+    }
+
+    /**
+     * Switches the stream to the forwarding mode (<b>true</b>) or back to sending the audio stream
+     */
+    public synchronized void setForwarding(boolean forwarding) {
+        if (this.forwarding!=forwarding) {
+            this.forwarding = forwarding;
+            markNext = true;
+            if (logger.isDebugEnabled())
+                logger.debug(forwarding? "Forwarding mode started" : "Forwarding mode stopped");
+        }
+    }
+
+    public boolean isForwarding() {
+        return forwarding;
+    }
+
+    /**
+     * Sends the payload relayed from the network buffer of the incoming stream
+     */
+    public synchronized void forward(int payloadType, ByteBuf data, int index, int len) {
+        if (forwarding && session.send(payloadType, firstPacket || markNext, data, index, len,
+                RtpPayloadTypes.getSamplesCount(payloadType, len)))
+        {
+            firstPacket = markNext = false;
+        }
+    }
+
+    /**
+     * Sends the payload relayed from the frame of the jitter buffer of the incoming stream
+     */
+    public synchronized void forward(int payloadType, byte[] data, int offset, int len) {
+        if (forwarding)
+            send(payloadType, data, offset, len);
+    }
+
+    public boolean sendDtmf(String digits) {
+        if (dtmfPayloadType<0 || session==null || released)
+            return false;
+        if (!eventSender.add(digits)) {
+            if (logger.isWarnEnabled())
+                logger.warn("Can't send ({}) as the telephone events", digits);
+            return false;
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Sending DTMF ({}) as the telephone events", digits);
+        synchronized(this) {
+            if (!eventTickerRegistered) {
+                eventTickerRegistered = true;
+                MediaClock.getDefault().register(eventTicker);
+            }
+        }
+        return true;
+    }
+
+    //the audio stream thread and the forwarding thread may overlap on switching the mode
+    private synchronized void send(int payloadType, byte[] data, int offset, int len) {
+        if (session.send(payloadType, firstPacket || markNext, data, offset, len,
+                RtpPayloadTypes.getSamplesCount(payloadType, len)))
+        {
+            firstPacket = markNext = false;
+        }
+    }
+
+    @Override
+    public void doRelease() throws Exception {
+        released = true;
+        final RtpSession _session = session;
+        if (_session==null)
+            return;
+        incHandledBytesBy(_session.getOctetsSent());
+        incHandledPacketsBy(_session.getPacketsSent());
+        try {
+            try {
+                dataSource.getStreams()[0].setTransferHandler(null);
+            } finally {
+                audioStream.close();
+            }
+        } finally {
+            _session.close();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStat() {
+        final RtpSession _session = session;
+        if (_session==null)
+            return Collections.EMPTY_MAP;
+        Map<String, Object> stat = new LinkedHashMap<>();
+        stat.put(CallCdrRecordSchemaNode.OUT_RTP_LOCAL_ADDR, getAddress().getHostAddress());
+        stat.put(CallCdrRecordSchemaNode.OUT_RTP_LOCAL_PORT, getPort());
+        stat.put(CallCdrRecordSchemaNode.OUT_RTP_REMOTE_ADDR, getRemoteHost());
+        stat.put(CallCdrRecordSchemaNode.OUT_RTP_REMOTE_PORT, getRemotePort());
+        stat.put(CallCdrRecordSchemaNode.OUT_RTP_BYTES_SENT, _session.getOctetsSent());
+        stat.put(CallCdrRecordSchemaNode.OUT_RTP_PACKETS_SENT, _session.getPacketsSent());
+        stat.put("RTCPSent", _session.getRtcpSent());
+        return stat;
+    }
+
+    private class EventTicker implements MediaClock.Listener {
+        private final int interval = (int) MediaClock.TICK_INTERVAL*TelephoneEventSender.SAMPLES_PER_MS;
+
+        @Override
+        public boolean tick() {
+            synchronized(NativeOutgoingRtpStreamImpl.this) {
+                if (released || eventSender.isIdle()) {
+                    eventTickerRegistered = false;
+                    return false;
+                }
+                if (eventSender.nextPacket(eventPayload, interval)) {
+                    //all packets of the event carry the timestamp of its start
+                    if (eventSender.isEventStart())
+                        eventTimestamp = session.getTimestamp();
+                    session.sendEvent(dtmfPayloadType, eventSender.isEventStart(), eventPayload, 0,
+                            eventPayload.length, eventTimestamp);
+                }
+                return true;
+            }
+        }
+    }
+}
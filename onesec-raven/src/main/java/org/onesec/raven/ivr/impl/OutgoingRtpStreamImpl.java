@@ -159,4 +159,11 @@ public class OutgoingRtpStreamImpl extends AbstractRtpStream implements Outgoing
                     , ex);
         }
     }
+
+    /**
+     * The JMF RTP engine does not send the telephone events, DTMF is sent by the signalling
+     */
+    public boolean sendDtmf(String digits) {
+        return false;
+    }
 }
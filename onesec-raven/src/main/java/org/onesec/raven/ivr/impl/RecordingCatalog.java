@@ -0,0 +1,555 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * The append-only catalog of the recordings. The entry is appended to the current segment file of the catalog
+ * when the recording is closed, the segment is switched when its size reaches the segment size 
+ * ({@link #SEGMENT_SIZE} by default). The entries are indexed in the memory by the closing time (the order 
+ * of the entries) and by the hashes of the conversation id, the calling and the called numbers. The index 
+ * keeps only the times, the positions and the hashes (about 50 bytes per entry), the entries found by the 
+ * index are read from the segments. The index is rebuilt from the segments on {@link #open()}, the broken 
+ * tail of the last segment (the process crash) is truncated.
+ *
+ * <p/>The expiration removes the range of the oldest entries from the index, deletes the files of the 
+ * recordings of the range and the segments that contain only the expired entries.
+ *
+ * @author Mikhail Titov
+ */
+public class RecordingCatalog {
+    public final static int SEGMENT_SIZE = 16*1024*1024;
+    public final static String SEGMENT_EXT = ".cat";
+    private final static int INITIAL_CAPACITY = 1024;
+    //the size of the length and the checksum of the entry
+    private final static int ENTRY_HEADER_SIZE = 8;
+
+    public enum Index {CONVERSATION_ID, CALLING_NUMBER, CALLED_NUMBER};
+
+    private final File dir;
+    private final int segmentSize;
+    private final LoggerHelper logger;
+    private final List<Segment> segments = new ArrayList<>();
+    private final KeyIndex[] indexes = new KeyIndex[Index.values().length];
+    //the index of the entries. Only the entries from first to count are alive
+    private long[] times;
+    private int[] offsets;
+    private int first;
+    private int count;
+    private long maxDuration;
+    private long lastSegmentNumber;
+    private boolean opened = false;
+
+    public RecordingCatalog(File dir, LoggerHelper logger) {
+        this(dir, SEGMENT_SIZE, logger);
+    }
+
+    public RecordingCatalog(File dir, int segmentSize, LoggerHelper logger) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.logger = new LoggerHelper(logger, "Catalog. ");
+    }
+
+    /**
+     * Reads the segments of the catalog and builds the index
+     */
+    public synchronized void open() throws IOException {
+        if (opened)
+            return;
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException(String.format("Can't create directory (%s)", dir));
+        times = new long[INITIAL_CAPACITY];
+        offsets = new int[INITIAL_CAPACITY];
+        for (int i=0; i<indexes.length; ++i)
+            indexes[i] = new KeyIndex(INITIAL_CAPACITY);
+        first = count = 0;
+        maxDuration = 0;
+        lastSegmentNumber = 0;
+        File[] files = dir.listFiles();
+        List<String> names = new ArrayList<>();
+        if (files!=null)
+            for (File file: files)
+                if (file.getName().endsWith(SEGMENT_EXT))
+                    names.add(file.getName());
+        Collections.sort(names);
+        try {
+            for (String name: names) {
+                final long number = Long.parseLong(name.substring(0, name.length()-SEGMENT_EXT.length()));
+                lastSegmentNumber = Math.max(lastSegmentNumber, number);
+                final Segment segment = new Segment(new File(dir, name), count);
+                segments.add(segment);
+                segment.load();
+            }
+            opened = true;
+        } finally {
+            if (!opened)
+                closeSegments();
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Opened. Entries: {}, segments: {}", count, segments.size());
+    }
+
+    public synchronized void close() {
+        opened = false;
+        closeSegments();
+    }
+
+    /**
+     * Appends the entry to the catalog
+     */
+    public synchronized void add(Entry entry) throws IOException {
+        checkOpened();
+        final byte[] data = entry.toBytes();
+        Segment segment = segments.isEmpty()? null : segments.get(segments.size()-1);
+        if (segment==null || segment.size+data.length > segmentSize) {
+            final long number = ++lastSegmentNumber;
+            segment = new Segment(new File(dir, String.format("%016d", number)+SEGMENT_EXT), count);
+            segments.add(segment);
+        }
+        final int offset = segment.append(data);
+        addToIndex(entry, offset);
+    }
+
+    /**
+     * Returns the entries (the newest first) with the key
+     * @param limit the max number of the returned entries
+     */
+    public synchronized List<Entry> find(Index index, String key, int limit) throws IOException {
+        checkOpened();
+        final List<Entry> entries = new ArrayList<>();
+        if (key==null)
+            return entries;
+        final KeyIndex keyIndex = indexes[index.ordinal()];
+        final int hash = key.hashCode();
+        for (int i=keyIndex.buckets[hash & (keyIndex.buckets.length-1)]; i>=first && entries.size()<limit; 
+             i=keyIndex.next[i])
+        {
+            if (keyIndex.hashes[i]==hash) {
+                final Entry entry = readEntry(i);
+                if (key.equals(entry.getKey(index)))
+                    entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the entries (in the order of closing) of the recordings started in the time interval
+     * @param from the start of the interval (inclusive)
+     * @param to the end of the interval (exclusive)
+     * @param limit the max number of the returned entries
+     */
+    public synchronized List<Entry> findByTime(long from, long to, int limit) throws IOException {
+        checkOpened();
+        final List<Entry> entries = new ArrayList<>();
+        //the recording started in the interval was closed after from and before to+maxDuration
+        final long maxTime = to+maxDuration;
+        for (int i=search(from); i<count && times[i]<=maxTime && entries.size()<limit; ++i) {
+            final Entry entry = readEntry(i);
+            if (entry.getStartTime()>=from && entry.getStartTime()<to)
+                entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Removes the entries of the recordings closed before the time from the catalog and deletes their files.
+     * The files are deleted out of the catalog lock
+     * @return the number of the expired entries
+     */
+    public int expire(long before) throws IOException {
+        final List<String> files = new ArrayList<>();
+        synchronized(this) {
+            checkOpened();
+            final int last = search(before);
+            for (int i=first; i<last; ++i)
+                files.add(readEntry(i).getFile());
+            first = Math.max(first, last);
+        }
+        File prevDir = null;
+        for (String filename: files) {
+            final File file = new File(filename);
+            if (!file.delete() && file.exists() && logger.isWarnEnabled())
+                logger.warn("Can't delete file ({})", file);
+            //the directories of the days are deleted when they become empty
+            if (prevDir!=null && !prevDir.equals(file.getParentFile()))
+                deleteEmptyDir(prevDir);
+            prevDir = file.getParentFile();
+        }
+        if (prevDir!=null)
+            deleteEmptyDir(prevDir);
+        synchronized(this) {
+            if (opened)
+                removeExpiredSegments();
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Expired {} entries", files.size());
+        return files.size();
+    }
+
+    /**
+     * Returns the number of the entries
+     */
+    public synchronized int size() {
+        return count-first;
+    }
+
+    public synchronized int getSegmentsCount() {
+        return segments.size();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private void checkOpened() throws IOException {
+        if (!opened)
+            throw new IOException(String.format("Catalog (%s) is not opened", dir));
+    }
+
+    private void closeSegments() {
+        for (Segment segment: segments)
+            segment.close();
+        segments.clear();
+    }
+
+    private void deleteEmptyDir(File dir) {
+        //the day directory and the month directory
+        if (dir.delete()) {
+            final File parent = dir.getParentFile();
+            if (parent!=null)
+                parent.delete();
+        }
+    }
+
+    /**
+     * Returns the index of the first entry closed at the time or later
+     */
+    private int search(long time) {
+        int low = first, high = count;
+        while (low<high) {
+            final int mid = (low+high) >>> 1;
+            if (times[mid]<time)
+                low = mid+1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void addToIndex(Entry entry, int offset) {
+        if (count==times.length)
+            grow();
+        //the times are kept in the order of the entries even if the clock was moved back
+        times[count] = count>first? Math.max(times[count-1], entry.getCloseTime()) : entry.getCloseTime();
+        offsets[count] = offset;
+        for (Index index: Index.values())
+            indexes[index.ordinal()].add(count, entry.getKey(index));
+        maxDuration = Math.max(maxDuration, entry.getCloseTime()-entry.getStartTime());
+        ++count;
+    }
+
+    /**
+     * Grows the arrays of the index. If more than the half of the entries are expired the index is compacted
+     * instead
+     */
+    private void grow() {
+        final int shift = first;
+        final int capacity = first > times.length/2? times.length : times.length*2;
+        final int size = count-shift;
+        times = Arrays.copyOfRange(times, shift, shift+capacity);
+        offsets = Arrays.copyOfRange(offsets, shift, shift+capacity);
+        for (KeyIndex index: indexes)
+            index.rebuild(shift, size, capacity);
+        for (Segment segment: segments)
+            segment.firstEntry -= shift;
+        first = 0;
+        count = size;
+    }
+
+    private void removeExpiredSegments() {
+        //the segment is expired if the next segment starts at the first alive entry or earlier
+        while (segments.size()>1 && segments.get(1).firstEntry<=first) {
+            final Segment segment = segments.remove(0);
+            segment.close();
+            if (!segment.file.delete() && logger.isWarnEnabled())
+                logger.warn("Can't delete segment ({})", segment.file);
+        }
+        if (segments.size()==1 && first==count && count>0) {
+            final Segment segment = segments.remove(0);
+            segment.close();
+            if (!segment.file.delete() && logger.isWarnEnabled())
+                logger.warn("Can't delete segment ({})", segment.file);
+        }
+    }
+
+    private Entry readEntry(int i) throws IOException {
+        return getSegment(i).read(offsets[i]);
+    }
+
+    private Segment getSegment(int i) {
+        int low = 0, high = segments.size()-1;
+        while (low<high) {
+            final int mid = (low+high+1) >>> 1;
+            if (segments.get(mid).firstEntry<=i)
+                low = mid;
+            else
+                high = mid-1;
+        }
+        return segments.get(low);
+    }
+
+    private static int checksum(byte[] data, int offset, int len) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, len);
+        return (int) crc.getValue();
+    }
+
+    public static class Entry {
+        private final String conversationId;
+        private final String callingNumber;
+        private final String calledNumber;
+        private final String file;
+        private final long startTime;
+        private final long closeTime;
+
+        public Entry(String conversationId, String callingNumber, String calledNumber, String file, 
+                long startTime, long closeTime)
+        {
+            this.conversationId = conversationId;
+            this.callingNumber = callingNumber;
+            this.calledNumber = calledNumber;
+            this.file = file;
+            this.startTime = startTime;
+            this.closeTime = closeTime;
+        }
+
+        public String getConversationId() {
+            return conversationId;
+        }
+
+        public String getCallingNumber() {
+            return callingNumber;
+        }
+
+        public String getCalledNumber() {
+            return calledNumber;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getCloseTime() {
+            return closeTime;
+        }
+
+        public String getKey(Index index) {
+            switch (index) {
+                case CONVERSATION_ID: return conversationId;
+                case CALLING_NUMBER: return callingNumber;
+                default: return calledNumber;
+            }
+        }
+
+        private byte[] toBytes() throws IOException {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+            final DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(startTime);
+            out.writeLong(closeTime);
+            writeString(out, conversationId);
+            writeString(out, callingNumber);
+            writeString(out, calledNumber);
+            writeString(out, file);
+            final byte[] data = buf.toByteArray();
+            ByteBuffer.wrap(data).putInt(data.length-ENTRY_HEADER_SIZE)
+                    .putInt(checksum(data, ENTRY_HEADER_SIZE, data.length-ENTRY_HEADER_SIZE));
+            return data;
+        }
+
+        private static Entry fromBytes(byte[] data) throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            final long startTime = in.readLong();
+            final long closeTime = in.readLong();
+            return new Entry(readString(in), readString(in), readString(in), readString(in), 
+                    startTime, closeTime);
+        }
+
+        private static void writeString(DataOutputStream out, String str) throws IOException {
+            out.writeBoolean(str!=null);
+            if (str!=null)
+                out.writeUTF(str);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean()? in.readUTF() : null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s -> %s): %s", conversationId, callingNumber, calledNumber, file);
+        }
+    }
+
+    private class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private int firstEntry;
+        private int size;
+
+        public Segment(File file, int firstEntry) throws IOException {
+            this.file = file;
+            this.firstEntry = firstEntry;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, 
+                    StandardOpenOption.WRITE);
+            this.size = (int) channel.size();
+        }
+
+        /**
+         * Adds the entries of the segment to the index. The broken tail of the segment is truncated
+         */
+        public void load() throws IOException {
+            final ByteBuffer buf = ByteBuffer.allocate(size);
+            readFully(buf, 0);
+            buf.flip();
+            int offset = 0;
+            while (buf.remaining()>=ENTRY_HEADER_SIZE) {
+                final int len = buf.getInt(offset);
+                final int crc = buf.getInt(offset+4);
+                if (len<=0 || len>buf.limit()-offset-ENTRY_HEADER_SIZE 
+                    || checksum(buf.array(), offset+ENTRY_HEADER_SIZE, len)!=crc)
+                {
+                    break;
+                }
+                addToIndex(Entry.fromBytes(Arrays.copyOfRange(buf.array(), offset+ENTRY_HEADER_SIZE, 
+                        offset+ENTRY_HEADER_SIZE+len)), offset);
+                offset += ENTRY_HEADER_SIZE+len;
+                buf.position(offset);
+            }
+            if (offset<size) {
+                if (logger.isWarnEnabled())
+                    logger.warn("Segment ({}) truncated from {} to {} bytes", file, size, offset);
+                channel.truncate(offset);
+                size = offset;
+            }
+        }
+
+        public int append(byte[] data) throws IOException {
+            final int offset = size;
+            final ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining())
+                channel.write(buf, offset+buf.position());
+            size += data.length;
+            return offset;
+        }
+
+        public Entry read(int offset) throws IOException {
+            final ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            readFully(header, offset);
+            final ByteBuffer data = ByteBuffer.allocate(header.getInt(0));
+            readFully(data, offset+ENTRY_HEADER_SIZE);
+            return Entry.fromBytes(data.array());
+        }
+
+        private void readFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining())
+                if (channel.read(buf, position+buf.position())<0)
+                    throw new IOException(String.format("Unexpected end of the segment (%s)", file));
+        }
+
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("Error closing segment (%s)", file), e);
+            }
+        }
+    }
+
+    /**
+     * The hash index of the key. The entries with the same hash of the key (in the bucket) are linked from the 
+     * newest to the oldest
+     */
+    private static class KeyIndex {
+        //the mark of the entry without the key
+        private final static int NOT_INDEXED = -2;
+
+        private int[] hashes;
+        private int[] next;
+        private int[] buckets;
+
+        public KeyIndex(int capacity) {
+            hashes = new int[capacity];
+            next = new int[capacity];
+            buckets = new int[capacity/2];
+            Arrays.fill(buckets, -1);
+        }
+
+        public void add(int i, String key) {
+            if (key==null) {
+                next[i] = NOT_INDEXED;
+                return;
+            }
+            final int hash = key.hashCode();
+            final int bucket = hash & (buckets.length-1);
+            hashes[i] = hash;
+            next[i] = buckets[bucket];
+            buckets[bucket] = i;
+        }
+
+        /**
+         * Moves the entries from shift to the start of the arrays of the new capacity and relinks them
+         */
+        public void rebuild(int shift, int size, int capacity) {
+            final int[] oldNext = next;
+            hashes = Arrays.copyOfRange(hashes, shift, shift+capacity);
+            next = new int[capacity];
+            buckets = new int[capacity/2];
+            Arrays.fill(buckets, -1);
+            for (int i=0; i<size; ++i) {
+                if (oldNext[i+shift]==NOT_INDEXED) {
+                    next[i] = NOT_INDEXED;
+                    continue;
+                }
+                final int bucket = hashes[i] & (buckets.length-1);
+                next[i] = buckets[bucket];
+                buckets[bucket] = i;
+            }
+        }
+    }
+}
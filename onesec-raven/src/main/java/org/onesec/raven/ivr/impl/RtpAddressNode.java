@@ -19,6 +19,7 @@ package org.onesec.raven.ivr.impl;
 
 import org.raven.annotations.NodeClass;
 import org.raven.annotations.Parameter;
+import org.raven.tree.Node;
 import org.raven.tree.impl.BaseNode;
 import org.weda.annotations.constraints.NotNull;
 
@@ -35,6 +36,24 @@ public class RtpAddressNode extends BaseNode
     @NotNull @Parameter(defaultValue="32768")
     private Integer maxPortNumber;
 
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        fireAddressesChanged();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        fireAddressesChanged();
+    }
+    
+    private void fireAddressesChanged() {
+        Node parent = getParent();
+        if (parent instanceof RtpStreamManagerNode)
+            ((RtpStreamManagerNode)parent).addressesChanged();
+    }
+
     public Integer getStartingPort() {
         return startingPort;
     }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocates RTP port pairs (even RTP port and the next RTCP port) of the one local address. Allocated
+ * pairs are stored in the bitmap. The search of the free pair starts after the last allocated pair (next fit),
+ * so the just released pair is not reused at once and the late packets of the previous call do not reach
+ * the new stream. The pair which port was found busy is not allocated for {@link #BUSY_PAIR_RETRY_INTERVAL}.
+ * The allocator is guarded by its own monitor, so allocations on the different addresses are not blocking
+ * each other.
+ *
+ * @author Mikhail Titov
+ */
+class RtpPortAllocator {
+    public final static long BUSY_PAIR_RETRY_INTERVAL = 60000;
+    
+    private final InetAddress address;
+    private final int startingPort;
+    private final int maxPortNumber;
+    private final int capacity;
+    private final long busyPairRetryInterval;
+    private final BitSet usedPairs;
+    //busy pairs in the order of the marking
+    private final Map<Integer, BusyPair> busyPairs = new LinkedHashMap<Integer, BusyPair>();
+    private int allocatedCount = 0;
+    private int nextPair = 0;
+
+    /**
+     * @param startingPort the first port of the range. If port is odd the next even port will be used
+     * @param maxPortNumber the last port of the range (the last pair must be fully in the range)
+     */
+    public RtpPortAllocator(InetAddress address, int startingPort, int maxPortNumber) {
+        this(address, startingPort, maxPortNumber, BUSY_PAIR_RETRY_INTERVAL);
+    }
+
+    /**
+     * @param busyPairRetryInterval the time (in milliseconds) after which the busy pair is allocated again
+     */
+    public RtpPortAllocator(InetAddress address, int startingPort, int maxPortNumber, long busyPairRetryInterval) {
+        this.address = address;
+        this.busyPairRetryInterval = busyPairRetryInterval;
+        this.startingPort = startingPort + (startingPort & 1);
+        this.maxPortNumber = maxPortNumber;
+        this.capacity = Math.max(0, (maxPortNumber - this.startingPort) / 2 + 1);
+        this.usedPairs = new BitSet(capacity);
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getStartingPort() {
+        return startingPort;
+    }
+
+    public int getMaxPortNumber() {
+        return maxPortNumber;
+    }
+
+    public boolean hasSameRange(int startingPort, int maxPortNumber) {
+        return this.startingPort==startingPort + (startingPort & 1) && this.maxPortNumber==maxPortNumber;
+    }
+
+    /**
+     * Returns the number of port pairs in the range
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    public synchronized int getBusyPairsCount() {
+        return busyPairs.size();
+    }
+
+    /**
+     * Returns the ports which were found busy (bound by someone else)
+     */
+    public synchronized List<Integer> getBusyPorts() {
+        if (busyPairs.isEmpty())
+            return Collections.EMPTY_LIST;
+        List<Integer> ports = new ArrayList<Integer>(busyPairs.size());
+        for (BusyPair busyPair: busyPairs.values())
+            ports.add(busyPair.port);
+        return ports;
+    }
+
+    /**
+     * Allocates the free port pair following the last allocated one and returns the RTP (even) port of the 
+     * pair or -1 if there is no free port pair
+     */
+    public synchronized int allocate() {
+        releaseBusyPairs(System.currentTimeMillis());
+        int pair = usedPairs.nextClearBit(nextPair);
+        if (pair>=capacity) {
+            pair = usedPairs.nextClearBit(0);
+            if (pair>=capacity)
+                return -1;
+        }
+        usedPairs.set(pair);
+        ++allocatedCount;
+        nextPair = pair+1<capacity? pair+1 : 0;
+        return startingPort + pair * 2;
+    }
+
+    /**
+     * Marks the port pair as allocated. Returns <b>false</b> if pair is out of range or already allocated
+     */
+    public synchronized boolean allocate(int port) {
+        int pair = pairOf(port);
+        if (pair<0 || usedPairs.get(pair))
+            return false;
+        usedPairs.set(pair);
+        ++allocatedCount;
+        return true;
+    }
+
+    /**
+     * Releases the allocated port pair
+     */
+    public synchronized boolean release(int port) {
+        int pair = pairOf(port);
+        if (pair<0 || !usedPairs.get(pair) || busyPairs.containsKey(pair))
+            return false;
+        usedPairs.clear(pair);
+        --allocatedCount;
+        return true;
+    }
+
+    /**
+     * Moves the allocated port pair to the busy state. The busy pair will not be allocated for the 
+     * retry interval
+     * @param port the RTP port of the pair
+     * @param busyPort the port of the pair which can't be bound
+     */
+    public synchronized void markBusy(int port, int busyPort) {
+        int pair = pairOf(port);
+        if (pair<0 || !usedPairs.get(pair) || busyPairs.containsKey(pair))
+            return;
+        busyPairs.put(pair, new BusyPair(busyPort, System.currentTimeMillis()+busyPairRetryInterval));
+        --allocatedCount;
+    }
+    
+    private void releaseBusyPairs(long now) {
+        for (Iterator<Map.Entry<Integer, BusyPair>> it=busyPairs.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, BusyPair> entry = it.next();
+            //the pairs are ordered by the marking time, so the rest of pairs are not expired
+            if (entry.getValue().expirationTime>now)
+                return;
+            usedPairs.clear(entry.getKey());
+            it.remove();
+        }
+    }
+
+    private int pairOf(int port) {
+        int offset = port - startingPort;
+        if (offset<0 || (offset & 1)!=0)
+            return -1;
+        int pair = offset / 2;
+        return pair<capacity? pair : -1;
+    }
+    
+    private static class BusyPair {
+        private final int port;
+        private final long expirationTime;
+
+        public BusyPair(int port, long expirationTime) {
+            this.port = port;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
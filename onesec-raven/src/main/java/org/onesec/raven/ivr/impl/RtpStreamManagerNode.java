@@ -23,10 +23,13 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.onesec.raven.ivr.InOutRtpStream;
 import org.onesec.raven.ivr.IncomingRtpStream;
 import org.onesec.raven.ivr.OutgoingRtpStream;
@@ -35,6 +38,7 @@ import org.onesec.raven.ivr.RtpAddress;
 import org.onesec.raven.ivr.RtpStream;
 import org.onesec.raven.ivr.RtpStreamManager;
 import org.onesec.raven.rtp.RtpManagerConfigurator;
+import org.onesec.raven.rtp.RtpSessionFactory;
 import org.onesec.raven.rtp.StandartRtpManagerConfigurator;
 import org.raven.annotations.NodeClass;
 import org.raven.annotations.Parameter;
@@ -68,11 +72,15 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
     
     @Parameter(valueHandlerType = NodeReferenceValueHandlerFactory.TYPE)
     private RtpManagerConfigurator rtpManagerConfigurator;
+    
+    @NotNull @Parameter(defaultValue="true")
+    private Boolean checkPortAvailability;
 
-    private Map<InetAddress, NavigableMap<Integer, RtpStream>> streams;
-    private Map<Node, RtpAddress> reservedAddresses;
-    private Map<InetAddress, Set<Integer>> busyPorts;
-    private ReentrantReadWriteLock streamsLock;
+    private ConcurrentMap<InetAddress, ConcurrentNavigableMap<Integer, RtpStream>> streams;
+    private ConcurrentMap<Node, RtpAddress> reservedAddresses;
+    private ConcurrentMap<InetAddress, RtpPortAllocator> allocators;
+    private volatile List<RtpPortAllocator> addressTable;
+    private AtomicInteger usedPorts;
 
     private AtomicLong sendedBytes;
     private AtomicLong recievedBytes;
@@ -101,17 +109,23 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
     @Message private static String remotePortMessage;
     @Message private static String creationTimeMessage;
     @Message private static String durationMessage;
-    @Message private static String managerBusyMessage;
     @Message private static String streamOwnerMessage;
+    @Message private static String addressesUtilizationMessage;
+    @Message private static String portsRangeMessage;
+    @Message private static String portPairsCountMessage;
+    @Message private static String allocatedPortPairsMessage;
+    @Message private static String busyPortPairsMessage;
+    @Message private static String utilizationMessage;
 
     @Override
     protected void initFields()
     {
         super.initFields();
-        streams = new HashMap<InetAddress, NavigableMap<Integer, RtpStream>>();
-        busyPorts =  new HashMap<InetAddress, Set<Integer>>();
-        reservedAddresses = new HashMap<Node, RtpAddress>();
-        streamsLock = new ReentrantReadWriteLock();
+        streams = new ConcurrentHashMap<InetAddress, ConcurrentNavigableMap<Integer, RtpStream>>();
+        reservedAddresses = new ConcurrentHashMap<Node, RtpAddress>();
+        allocators = new ConcurrentHashMap<InetAddress, RtpPortAllocator>();
+        addressTable = null;
+        usedPorts = new AtomicInteger();
         sendedBytes = new AtomicLong();
         recievedBytes = new AtomicLong();
         recievedPackets = new AtomicLong();
@@ -130,6 +144,7 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
         recievedPackets.set(0);
         rejectedStreamCreations.set(0);
         streamCreations.set(0);
+        addressTable = null;
     }
 
     @Override
@@ -138,13 +153,34 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
         super.doStop();
         releaseStreams(streams);
         streams.clear();
-        busyPorts.clear();
+        reservedAddresses.clear();
+        allocators.clear();
+        addressTable = null;
+        usedPorts.set(0);
+    }
+    
+    /**
+     * Invalidates the cached table of the available addresses. Called by the {@link RtpAddressNode} 
+     * on start and stop
+     */
+    void addressesChanged() {
+        addressTable = null;
     }
     
     private RtpManagerConfigurator getRtpConfigurator() {
         RtpManagerConfigurator configurator = rtpManagerConfigurator;
         return configurator==null? standartRtpManagerConfigurator : configurator;
     }
+    
+    /**
+     * Returns the factory of the native RTP engine sessions if the configurator has the native engine enabled
+     */
+    private RtpSessionFactory getRtpSessionFactory() {
+        RtpManagerConfigurator configurator = rtpManagerConfigurator;
+        return configurator instanceof RtpSessionFactory 
+                && ((RtpSessionFactory)configurator).isNativeRtpEngineEnabled()?
+            (RtpSessionFactory)configurator : null;
+    }
 
     public Boolean getAutoRefresh() {
         return true;
@@ -160,54 +196,58 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
         if (!Status.STARTED.equals(getStatus()))
             return null;
         
+        TableImpl statTable = new TableImpl(new String[]{
+            createdStreamsMessage, rejectedStreamsMessage, sendedBytesMessage, sendedPacketsMessage,
+            recievedBytesMessage, recievedPacketsMessage});
+        statTable.addRow(new Object[]{streamCreations, rejectedStreamCreations,
+            sendedBytes, sendedPackets, recievedBytes, recievedPackets});
+        
+        TableImpl utilizationTable = new TableImpl(new String[]{localAddressMessage, portsRangeMessage, 
+            portPairsCountMessage, allocatedPortPairsMessage, busyPortPairsMessage, utilizationMessage});
+        TableImpl busyPortsTable = new TableImpl(new String[]{localAddressMessage, localPortMessage});
+        for (RtpPortAllocator allocator: getAddressTable()) {
+            int allocated = allocator.getAllocatedCount();
+            int capacity = allocator.getCapacity();
+            utilizationTable.addRow(new Object[]{
+                allocator.getAddress().getHostAddress(), 
+                allocator.getStartingPort()+" - "+allocator.getMaxPortNumber(),
+                capacity, allocated, allocator.getBusyPairsCount(), 
+                capacity==0? "" : String.format("%.1f%%", allocated*100./capacity)});
+            for (Integer port: allocator.getBusyPorts())
+                busyPortsTable.addRow(new Object[]{allocator.getAddress().getHostAddress(), port});
+        }
+
+        String[] colnames = {
+            localAddressMessage, localPortMessage, remoteAddressMessage, remotePortMessage,
+            creationTimeMessage, durationMessage, streamOwnerMessage};
+        TableImpl inStreams = new TableImpl(colnames);
+        TableImpl outStreams = new TableImpl(colnames);
+        TableImpl inOutStreams = new TableImpl(colnames);
+        SimpleDateFormat fmt = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+        for (Map.Entry<InetAddress, ConcurrentNavigableMap<Integer, RtpStream>> addr: streams.entrySet()){
+            NavigableMap<Integer, RtpStream> ports = addr.getValue();
+            if (ports!=null)
+                for (RtpStream stream: ports.values())
+                    if (stream instanceof OutgoingRtpStream)
+                        outStreams.addRow(createRowFromStream(stream, fmt));
+                    else if (stream instanceof IncomingRtpStream)
+                        inStreams.addRow(createRowFromStream(stream, fmt));
+                    else
+                        inOutStreams.addRow(createRowFromStream(stream, fmt));
+        }
         List<ViewableObject> vos = new ArrayList<ViewableObject>();
-        if (streamsLock.readLock().tryLock(500, TimeUnit.MILLISECONDS)){
-            try {
-                TableImpl statTable = new TableImpl(new String[]{
-                    createdStreamsMessage, rejectedStreamsMessage, sendedBytesMessage, sendedPacketsMessage,
-                    recievedBytesMessage, recievedPacketsMessage});
-                statTable.addRow(new Object[]{streamCreations, rejectedStreamCreations,
-                    sendedBytes, sendedPackets, recievedBytes, recievedPackets});
-                
-                TableImpl busyPortsTable = new TableImpl(new String[]{localAddressMessage, localPortMessage});
-                for (Entry<InetAddress, Set<Integer>> addr: busyPorts.entrySet())
-                    for (Integer port: addr.getValue())
-                        busyPortsTable.addRow(new Object[]{addr.getKey().getHostAddress(), port});
-
-                String[] colnames = {
-                    localAddressMessage, localPortMessage, remoteAddressMessage, remotePortMessage,
-                    creationTimeMessage, durationMessage, streamOwnerMessage};
-                TableImpl inStreams = new TableImpl(colnames);
-                TableImpl outStreams = new TableImpl(colnames);
-                TableImpl inOutStreams = new TableImpl(colnames);
-                SimpleDateFormat fmt = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
-                for (Map.Entry<InetAddress, NavigableMap<Integer, RtpStream>> addr: streams.entrySet()){
-                    NavigableMap<Integer, RtpStream> ports = addr.getValue();
-                    if (ports!=null)
-                        for (RtpStream stream: ports.values())
-                            if (stream instanceof OutgoingRtpStream)
-                                outStreams.addRow(createRowFromStream(stream, fmt));
-                            else if (stream instanceof IncomingRtpStream)
-                                inStreams.addRow(createRowFromStream(stream, fmt));
-                            else
-                                inOutStreams.addRow(createRowFromStream(stream, fmt));
-                }
-                vos = new ArrayList<ViewableObject>();
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, statMessage));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, statTable));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, busyPortsMessage));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, busyPortsTable));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, outgoingStreamMessage));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, outStreams));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, incomingStreamMessage));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, inStreams));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, inOutStreamMessage));
-                vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, inOutStreams));
-            } finally {
-                streamsLock.readLock().unlock();
-            }
-        } else
-            vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, managerBusyMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, statMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, statTable));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, addressesUtilizationMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, utilizationTable));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, busyPortsMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, busyPortsTable));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, outgoingStreamMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, outStreams));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, incomingStreamMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, inStreams));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TEXT_MIMETYPE, inOutStreamMessage));
+        vos.add(new ViewableObjectImpl(Viewable.RAVEN_TABLE_MIMETYPE, inOutStreams));
         
         return vos;
     }
@@ -238,6 +278,14 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
         this.rtpManagerConfigurator = rtpManagerConfigurator;
     }
 
+    public Boolean getCheckPortAvailability() {
+        return checkPortAvailability;
+    }
+
+    public void setCheckPortAvailability(Boolean checkPortAvailability) {
+        this.checkPortAvailability = checkPortAvailability;
+    }
+
     public IncomingRtpStream getIncomingRtpStream(Node owner)
     {
         return (IncomingRtpStream)createStreamOrReserveAddress(StreamType.INBOUND, owner, false);
@@ -256,16 +304,11 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
     }
 
     public void unreserveAddress(Node node) {
-        streamsLock.writeLock().lock();
-        try{
-            RtpAddress rtpAddress = reservedAddresses.remove(node);
-            if (rtpAddress!=null) {
-                if (getLogger().isDebugEnabled())
-                    getLogger().debug("Unreserving rtp address for node ({})", node.getPath());
-                releaseStream(rtpAddress);
-            }
-        } finally {
-            streamsLock.writeLock().unlock();
+        RtpAddress rtpAddress = reservedAddresses.remove(node);
+        if (rtpAddress!=null) {
+            if (getLogger().isDebugEnabled())
+                getLogger().debug("Unreserving rtp address for node ({})", node.getPath());
+            releasePort(rtpAddress.getAddress(), rtpAddress.getPort());
         }
     }
 
@@ -286,40 +329,33 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
     }
 
     public void releaseStream(RtpAddress stream) {
-        streamsLock.writeLock().lock();
-        try {
-            Map portStreams = streams.get(stream.getAddress());
-            if (portStreams!=null)
-                portStreams.remove(stream.getPort());
-        } finally {
-            streamsLock.writeLock().unlock();
-        }
+        ConcurrentMap<Integer, RtpStream> portStreams = streams.get(stream.getAddress());
+        if (portStreams!=null && portStreams.remove(stream.getPort(), stream))
+            releasePort(stream.getAddress(), stream.getPort());
+    }
+    
+    private void releasePort(InetAddress address, int port) {
+        RtpPortAllocator allocator = allocators.get(address);
+        if (allocator!=null && allocator.release(port))
+            usedPorts.decrementAndGet();
     }
 
-    Map<InetAddress, NavigableMap<Integer, RtpStream>> getStreams()
+    Map<InetAddress, ConcurrentNavigableMap<Integer, RtpStream>> getStreams()
     {
         return streams;
     }
 
-    private void releaseStreams(Map<InetAddress, NavigableMap<Integer, RtpStream>> streams)
+    private void releaseStreams(Map<InetAddress, ConcurrentNavigableMap<Integer, RtpStream>> streams)
     {
-        streamsLock.writeLock().lock();
-        try
+        for (Map<Integer, RtpStream> portStreams: streams.values())
         {
-            for (Map<Integer, RtpStream> portStreams: streams.values())
+            if (portStreams.size()>0)
             {
-                if (portStreams.size()>0)
-                {
-                    Collection<RtpStream> list = new ArrayList<RtpStream>(portStreams.values());
-                    for (RtpStream stream: list)
-                        stream.release();
-                }
-                portStreams.clear();
+                Collection<RtpStream> list = new ArrayList<RtpStream>(portStreams.values());
+                for (RtpStream stream: list)
+                    stream.release();
             }
-        }
-        finally
-        {
-            streamsLock.writeLock().unlock();
+            portStreams.clear();
         }
     }
 
@@ -327,59 +363,48 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
         if (!isStarted())
             return null;
         try {
-            if (streamsLock.writeLock().tryLock(2000, TimeUnit.MILLISECONDS)) {
+            if (reserve) {
+                RtpAddress rtpAddress = reservedAddresses.get(owner);
+                if (rtpAddress!=null) {
+                    if (getLogger().isWarnEnabled())
+                        getLogger().warn("The node ({}) is already reserved the address and port ", owner.getPath());
+                    return rtpAddress;
+                }
+            }
+            if (usedPorts.incrementAndGet() > maxStreamCount) {
+                usedPorts.decrementAndGet();
+                throw new Exception("Max streams count exceded");
+            }
+            boolean allocated = false;
+            try {
+                RtpPortAllocator allocator = selectAllocator();
+                int portNumber = allocatePort(allocator);
+                InetAddress address = allocator.getAddress();
                 try {
-                    if (reserve && reservedAddresses.containsKey(owner)) {
-                        if (getLogger().isWarnEnabled())
-                            getLogger().warn("The node ({}) is already reserved the address and port ");
-                        return reservedAddresses.get(owner);
-                    }
-                    if (getStreamsCountWOLock()>= maxStreamCount)
-                        throw new Exception("Max streams count exceded");
-
-                    RtpStream stream = null;
-                    NavigableMap<Integer, RtpStream> portStreams = null;
-                    InetAddress address = null;
-                    int portNumber = 0;
-
-                    Map<InetAddress, RtpAddressNode> avalAddresses = getAvailableAddresses();
-                    for (Map.Entry<InetAddress, RtpAddressNode> addr: avalAddresses.entrySet()) {
-                        if (!streams.containsKey(addr.getKey())) {
-                            address = addr.getKey();
-                            portStreams = new TreeMap<Integer, RtpStream>();
-    //                        portNumber = addr.getValue().getStartingPort();
-                            portNumber = getPortNumber(address, addr.getValue().getStartingPort()
-                                    , addr.getValue().getMaxPortNumber(), portStreams);
-                            streams.put(addr.getKey(), portStreams);
-                            break;
-                        }
-                    }
-
-                    if (portStreams==null)
-                        for (Map.Entry<InetAddress, NavigableMap<Integer, RtpStream>> streamEntry: streams.entrySet())
-                            if (portStreams==null || streamEntry.getValue().size()<portStreams.size()) {
-                                portStreams = streamEntry.getValue();
-                                address = streamEntry.getKey();
-                                int startingPort = avalAddresses.get(streamEntry.getKey()).getStartingPort();
-                                int maxPortNumber = avalAddresses.get(streamEntry.getKey()).getMaxPortNumber();
-                                portNumber = getPortNumber(address, startingPort, maxPortNumber, portStreams);
-                            }
-
                     if (!reserve) {
-                        stream = createStream(streamType, stream, address, portNumber, owner, portStreams);
+                        RtpStream stream = createStream(
+                                streamType, null, address, portNumber, owner, getPortStreams(address));
+                        allocated = true;
                         return stream;
                     } else {
-                        portStreams.put(portNumber, null);
                         RtpAddress rtpAddress = new RtpAddressImpl(address, portNumber);
-                        reservedAddresses.put(owner, rtpAddress);
-
+                        RtpAddress prevAddress = reservedAddresses.putIfAbsent(owner, rtpAddress);
+                        allocated = true;
+                        if (prevAddress!=null) {
+                            releasePort(address, portNumber);
+                            return prevAddress;
+                        }
                         return rtpAddress;
                     }
                 } finally {
-                    streamsLock.writeLock().unlock();
+                    //the stream was not created, returning the port to the allocator
+                    if (!allocated)
+                        allocator.release(portNumber);
                 }
-            } else 
-                throw new Exception("Lock wait timeout");
+            } finally {
+                if (!allocated)
+                    usedPorts.decrementAndGet();
+            }
         } catch (Throwable e) {
             rejectedStreamCreations.incrementAndGet();
             if (isLogLevelEnabled(LogLevel.ERROR))
@@ -391,16 +416,68 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
             return null;
         }
     }
+    
+    private NavigableMap<Integer, RtpStream> getPortStreams(InetAddress address) {
+        ConcurrentNavigableMap<Integer, RtpStream> portStreams = streams.get(address);
+        if (portStreams==null) {
+            portStreams = new ConcurrentSkipListMap<Integer, RtpStream>();
+            ConcurrentNavigableMap<Integer, RtpStream> prev = streams.putIfAbsent(address, portStreams);
+            if (prev!=null)
+                portStreams = prev;
+        }
+        return portStreams;
+    }
+    
+    /**
+     * Returns the allocator of the address with the smallest number of allocated ports
+     */
+    private RtpPortAllocator selectAllocator() throws Exception {
+        RtpPortAllocator res = null;
+        int resCount = 0;
+        for (RtpPortAllocator allocator: getAddressTable()) {
+            int count = allocator.getAllocatedCount();
+            if (res==null || count<resCount) {
+                res = allocator;
+                resCount = count;
+            }
+        }
+        if (res==null)
+            throw new Exception("No available RTP addresses");
+        return res;
+    }
+    
+    /**
+     * Allocates the free port pair. Only the allocated candidate is checked for availability, if one of
+     * the ports of the pair is bound by someone else the pair is marked as busy and the next pair is allocated.
+     */
+    private int allocatePort(RtpPortAllocator allocator) throws Exception {
+        for (;;) {
+            int port = allocator.allocate();
+            if (port<0)
+                throw new Exception("No free port");
+            int busyPort = checkPortAvailability? findBusyPort(port) : -1;
+            if (busyPort<0)
+                return port;
+            if (isLogLevelEnabled(LogLevel.WARN))
+                getLogger().warn("Port ({}) of the address ({}) is busy", busyPort, allocator.getAddress());
+            allocator.markBusy(port, busyPort);
+        }
+    }
 
     private RtpStream createStream(StreamType streamType, RtpStream stream, InetAddress address, 
             int portNumber, Node owner, NavigableMap<Integer, RtpStream> portStreams) 
     {
+        final RtpSessionFactory sessionFactory = getRtpSessionFactory();
         switch(streamType) {
             case INBOUND:
-                stream = new IncomingRtpStreamImpl(address, portNumber, getRtpConfigurator());
+                stream = sessionFactory!=null?
+                        new NativeIncomingRtpStreamImpl(address, portNumber, sessionFactory) :
+                        new IncomingRtpStreamImpl(address, portNumber, getRtpConfigurator());
                 break;
             case OUTBOUND:
-                stream = new OutgoingRtpStreamImpl(address, portNumber, getRtpConfigurator());
+                stream = sessionFactory!=null?
+                        new NativeOutgoingRtpStreamImpl(address, portNumber, sessionFactory) :
+                        new OutgoingRtpStreamImpl(address, portNumber, getRtpConfigurator());
                 break;
             case INOUT:
                 stream = new InOutRtpStreamImpl(address, portNumber, getRtpConfigurator());
@@ -416,52 +493,20 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
         return stream;
     }
     
-    private int getPortNumber(InetAddress addr, int startingPort, int maxPortNumber
-            , NavigableMap<Integer, RtpStream> portStreams) throws Exception 
-    {
-        int port = portStreams.isEmpty()? startingPort : portStreams.firstKey()-2;
-        while (startingPort<=port)
-            if (checkPort(addr, port)) 
-                return port;
-            else
-                port-=2;
-        port = portStreams.isEmpty()? startingPort+2 : portStreams.lastKey()+2;
-        while (maxPortNumber>=port)
-            if (checkPort(addr, port))
-                return port;
-            else
-                port+=2;
-        //fullscan
-        int fromPort = portStreams.isEmpty()? startingPort : portStreams.firstKey()+2;
-        int toPort = portStreams.isEmpty()? maxPortNumber : portStreams.lastKey()-2;
-        for (port = fromPort; port<=toPort; port+=2) 
-            if (!portStreams.containsKey(port) && checkPort(addr, port))
-                return port;
-        throw new Exception("No free port");
-    }
-    
-    private boolean checkPort(InetAddress addr, int port) {
-        Set<Integer> ports = busyPorts.get(addr);
-        if (ports!=null && (ports.contains(port) || ports.contains(port+1)))
-                return false;
+    private int findBusyPort(int port) {
         for (int p=port; p<=port+1; ++p) {
             DatagramSocket socket = null;
             try {
                 socket = new DatagramSocket(p);
                 socket.setReuseAddress(true);
             } catch (IOException e) {
-                if (ports==null) {
-                    ports = new HashSet<Integer>();
-                    busyPorts.put(addr, ports);
-                }
-                ports.add(p);
-                return false;
+                return p;
             } finally { 
                 if (socket != null) 
                     socket.close(); 
             }            
         }
-        return true;
+        return -1;
     }
 
     @Parameter(readOnly=true)
@@ -469,40 +514,85 @@ public class RtpStreamManagerNode extends BaseNode implements RtpStreamManager,
     {
         if (!Status.STARTED.equals(getStatus()))
             return 0;
-        streamsLock.readLock().lock();
-        try {
-            return getStreamsCountWOLock();
-//            int count = 0;
-//            for (Map portStreams: streams.values())
-//                count += portStreams==null? 0 : portStreams.size();
-//            return count;
-        } finally {
-            streamsLock.readLock().unlock();
-        }
+        return usedPorts.get();
     }
-    
-    private int getStreamsCountWOLock() {
-        int count = 0;
-        for (Map portStreams: streams.values())
-            count += portStreams==null? 0 : portStreams.size();
-        return count;
+
+    @Parameter(readOnly=true)
+    public Long getMediaClockTicksCount() {
+        return MediaClock.getDefault().getTicksCount();
+    }
+
+    @Parameter(readOnly=true)
+    public Long getMediaClockOverrunsCount() {
+        return MediaClock.getDefault().getOverrunsCount();
+    }
+
+    @Parameter(readOnly=true)
+    public Long getMediaClockSkippedTicksCount() {
+        return MediaClock.getDefault().getSkippedTicksCount();
+    }
+
+    @Parameter(readOnly=true)
+    public Long getMediaClockAvgLagMicros() {
+        return MediaClock.getDefault().getAvgLateness(TimeUnit.MICROSECONDS);
+    }
+
+    @Parameter(readOnly=true)
+    public Long getMediaClockMaxLagMicros() {
+        return MediaClock.getDefault().getMaxLateness(TimeUnit.MICROSECONDS);
     }
 
-    private Map<InetAddress, RtpAddressNode> getAvailableAddresses() throws UnknownHostException
+    @Parameter(readOnly=true)
+    public Long getMediaClockMaxTickDurationMicros() {
+        return MediaClock.getDefault().getMaxTickDuration(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Returns the cached table of the available addresses. The table is rebuilt after 
+     * {@link #addressesChanged()}. Allocators are reused between rebuilds, if the port range of the address 
+     * was changed the new allocator is created and the ports of the existing streams are moved to it.
+     */
+    private List<RtpPortAllocator> getAddressTable() throws UnknownHostException
     {
-        Collection<Node> childs = getChildrens();
-        Map<InetAddress, RtpAddressNode> res = null;
-        if (childs!=null && !childs.isEmpty())
-        {
-            for (Node child: childs)
-                if (child instanceof RtpAddressNode && Status.STARTED.equals(child.getStatus()))
-                {
-                    if (res==null)
-                        res = new HashMap<InetAddress, RtpAddressNode>();
-                    res.put(InetAddress.getByName(child.getName()), (RtpAddressNode)child);
-                }
+        List<RtpPortAllocator> table = addressTable;
+        if (table!=null)
+            return table;
+        synchronized(allocators) {
+            table = addressTable;
+            if (table!=null)
+                return table;
+            table = new ArrayList<RtpPortAllocator>();
+            Collection<Node> childs = getChildrens();
+            if (childs!=null)
+                for (Node child: childs)
+                    if (child instanceof RtpAddressNode && Status.STARTED.equals(child.getStatus())) {
+                        RtpAddressNode addrNode = (RtpAddressNode) child;
+                        InetAddress address = InetAddress.getByName(child.getName());
+                        RtpPortAllocator allocator = allocators.get(address);
+                        if (allocator==null 
+                            || !allocator.hasSameRange(addrNode.getStartingPort(), addrNode.getMaxPortNumber())) 
+                        {
+                            allocator = new RtpPortAllocator(
+                                    address, addrNode.getStartingPort(), addrNode.getMaxPortNumber());
+                            moveAllocatedPorts(allocator);
+                            allocators.put(address, allocator);
+                        }
+                        table.add(allocator);
+                    }
+            table = Collections.unmodifiableList(table);
+            if (isStarted())
+                addressTable = table;
+            return table;
         }
-
-        return res==null? Collections.EMPTY_MAP : res;
+    }
+    
+    private void moveAllocatedPorts(RtpPortAllocator allocator) {
+        NavigableMap<Integer, RtpStream> portStreams = streams.get(allocator.getAddress());
+        if (portStreams!=null)
+            for (Integer port: portStreams.keySet())
+                allocator.allocate(port);
+        for (RtpAddress rtpAddress: reservedAddresses.values())
+            if (rtpAddress.getAddress().equals(allocator.getAddress()))
+                allocator.allocate(rtpAddress.getPort());
     }
 }
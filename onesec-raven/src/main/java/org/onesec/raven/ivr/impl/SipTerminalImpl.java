@@ -52,6 +52,7 @@ public class SipTerminalImpl implements SipTerminal {
 
     public void registered(SipContext context) {
         this.sipContext = context;
+        state.setState(IN_SERVICE);
     }
 
     public SipTerminalStateImpl getState() {
@@ -59,7 +60,8 @@ public class SipTerminalImpl implements SipTerminal {
     }
 
     public void unregistered() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        this.sipContext = null;
+        state.setState(OUT_OF_SERVICE);
     }
     
     private void registerTerminal() {
@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.sip.ClientTransaction;
 import javax.sip.DialogTerminatedEvent;
@@ -34,12 +35,15 @@ import javax.sip.SipListener;
 import javax.sip.SipProvider;
 import javax.sip.SipStack;
 import javax.sip.TimeoutEvent;
+import javax.sip.Transaction;
 import javax.sip.TransactionTerminatedEvent;
 import javax.sip.address.Address;
 import javax.sip.address.AddressFactory;
 import javax.sip.address.SipURI;
 import javax.sip.header.CSeqHeader;
 import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ExpiresHeader;
 import javax.sip.header.FromHeader;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.MaxForwardsHeader;
@@ -47,6 +51,7 @@ import javax.sip.header.ToHeader;
 import javax.sip.header.ViaHeader;
 import javax.sip.message.MessageFactory;
 import javax.sip.message.Request;
+import javax.sip.message.Response;
 import org.apache.log4j.Appender;
 import org.apache.log4j.Layout;
 import org.apache.log4j.Level;
@@ -73,6 +78,8 @@ import org.weda.annotations.constraints.NotNull;
  */
 public class SipTransparentProxyNode extends BaseNode implements SipProxy {
     private static enum TerminalStatus { UNREGISTERED, REGISTERING, REGISTERED };    
+    public final static long REGISTRATION_RETRY_INTERVAL = 30000;
+    public final static long MIN_REGISTRATION_REFRESH_INTERVAL = 5000;
     
     @NotNull @Parameter(valueHandlerType = SystemSchedulerValueHandlerFactory.TYPE)
     private ExecutorService executor;
@@ -98,6 +105,9 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
     @Parameter
     private String ip;
     
+    @NotNull @Parameter(defaultValue = "3600")
+    private Integer registrationExpires;
+    
     private AtomicReference<SipProxyContext> context;
 
     @Override
@@ -109,7 +119,8 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
     @Override
     protected void doStart() throws Exception {
         super.doStart();
-        context.set(new SipProxyContext(executor, ip, port, proxyIp, proxyPort, proxyProtocol, enableTcp, enableUdp));
+        context.set(new SipProxyContext(executor, ip, port, proxyIp, proxyPort, proxyProtocol, enableTcp, enableUdp, 
+                registrationExpires));
     }
     
 
@@ -119,7 +130,6 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
         SipProxyContext _context = context.getAndSet(null);
         if (_context!=null)
             _context.stop();
-        //TODO: unregister all terminals and clear terminals
     }
 
     public synchronized boolean register(SipTerminal terminal) throws SipProxyException {
@@ -132,7 +142,8 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
     }
 
     public boolean unregister(SipTerminal terminal) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        SipProxyContext _context = context.get();
+        return _context!=null && _context.unregister(terminal);
     }
 
     public ExecutorService getExecutor() {
@@ -191,6 +202,14 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
         this.proxyPort = proxyPort;
     }
 
+    public Integer getRegistrationExpires() {
+        return registrationExpires;
+    }
+
+    public void setRegistrationExpires(Integer registrationExpires) {
+        this.registrationExpires = registrationExpires;
+    }
+
     public String getProxyProtocol() {
         return proxyProtocol;
     }
@@ -318,15 +337,17 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
         private final int proxyPort;
         private final String proxyProtocol;
         private final ExecutorService executor;        
+        private final int registrationExpires;
         private volatile boolean valid = true;
         private final Random tagRandom = new Random();
         private final String tagPrefix = "ra-"+SipTransparentProxyNode.this.getId()+"-";
         
         public SipProxyContext(ExecutorService executor, String ip, int port, String proxyIp, int proxyPort, 
-                String proxyProtocol, boolean enableTcp, boolean enableUdp) 
+                String proxyProtocol, boolean enableTcp, boolean enableUdp, int registrationExpires) 
             throws Exception 
         {
             this.executor = executor;
+            this.registrationExpires = registrationExpires;
             SipFactory factory = SipFactory.getInstance();
             Properties props = new Properties();
 //            if (ip!=null)
@@ -390,6 +411,14 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
         public String getProxyHost() {
             return proxyIp;
         }
+
+        public int getRegistrationExpires() {
+            return registrationExpires;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
         
 //        public create
         
@@ -421,7 +450,18 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
 //            executor.executeQuietly(new Registered(terminal, this));
         }
         
+        public boolean unregister(SipTerminal terminal) {
+            TerminalHolder holder = terminals.get(terminal.getAddress());
+            if (holder==null || holder.terminal!=terminal || !terminals.remove(terminal.getAddress(), holder))
+                return false;
+            holder.unregister();
+            return true;
+        }
+        
         public void stop() {
+            for (TerminalHolder holder: terminals.values())
+                holder.unregister();
+            terminals.clear();
             valid = false;
             sipStack.stop();
         }
@@ -451,27 +491,49 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
         }
     
         public void processRequest(RequestEvent re) {
-            throw new UnsupportedOperationException("Not supported yet.");
+            //the incoming requests are not served yet
+            Request request = re.getRequest();
+            if (logger.isDebugEnabled())
+                logger.debug("Rejecting request: "+request.getMethod());
+            if (Request.ACK.equals(request.getMethod()))
+                return;
+            try {
+                sipProvider.sendResponse(messageFactory.createResponse(Response.NOT_IMPLEMENTED, request));
+            } catch (Exception e) {
+                if (logger.isErrorEnabled())
+                    logger.error("Error sending response to "+request.getMethod(), e);
+            }
         }
 
         public void processResponse(ResponseEvent re) {
-//            re.getResponse().get
+            TerminalHolder holder = getTerminalHolder(re.getClientTransaction());
+            if (holder!=null)
+                holder.processRegisterResponse(re.getClientTransaction(), re.getResponse());
+            else if (logger.isDebugEnabled())
+                logger.debug("Stray response: "+re.getResponse().getStatusCode());
         }
 
         public void processTimeout(TimeoutEvent te) {
-            throw new UnsupportedOperationException("Not supported yet.");
+            TerminalHolder holder = te.isServerTransaction()? null : getTerminalHolder(te.getClientTransaction());
+            if (holder!=null)
+                holder.registrationFailed("transaction timeout");
         }
 
         public void processIOException(IOExceptionEvent ioee) {
-            throw new UnsupportedOperationException("Not supported yet.");
+            if (logger.isErrorEnabled())
+                logger.error(String.format("IO error on %s transport to %s:%s", 
+                        ioee.getTransport(), ioee.getHost(), ioee.getPort()));
         }
 
         public void processTransactionTerminated(TransactionTerminatedEvent tte) {
-            throw new UnsupportedOperationException("Not supported yet.");
         }
 
         public void processDialogTerminated(DialogTerminatedEvent dte) {
-            throw new UnsupportedOperationException("Not supported yet.");
+        }
+        
+        private TerminalHolder getTerminalHolder(Transaction transaction) {
+            Object data = transaction==null? null : transaction.getApplicationData();
+            return data instanceof TerminalHolder? (TerminalHolder) data : null;
         }
         
     }
@@ -483,14 +545,14 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
     }
     
     private class TerminalHolder {
-        private volatile boolean registered = false;
         private final SipTerminal terminal;
-        private final SipContext context;
+        private final SipProxyContext context;
         private final RegInfo regInfo;
         private volatile TerminalStatus status = TerminalStatus.UNREGISTERED;
+        private volatile boolean removed = false;
         private final LoggerHelper logger;
 
-        public TerminalHolder(SipTerminal terminal, SipContext context, LoggerHelper logger) throws Exception {
+        public TerminalHolder(SipTerminal terminal, SipProxyContext context, LoggerHelper logger) throws Exception {
             this.terminal = terminal;
             this.context = context;
             this.regInfo = new RegInfo();
@@ -498,44 +560,202 @@ public class SipTransparentProxyNode extends BaseNode implements SipProxy {
         }
         
         public void register() throws Exception {
+            final long generation = regInfo.generation.get();
             context.getExecutor().execute(new ProxyTask("Registering sip terminal "+terminal.getAddress()) {
                 @Override public void doRun() throws Exception {
+                    if (removed || !context.isValid() || generation!=regInfo.generation.get())
+                        return;
                     if (logger.isDebugEnabled())
                         logger.debug("Trying to register terminal on proxy ({})", context.getProxyHost());
-                    SipURI requestURI = context.getAddressFactory().createSipURI(null, context.getProxyHost());
-                    requestURI.setTransportParam(terminal.getProtocol());
-                    
-                    Address fromAddr = context.getAddressFactory().createAddress(
-                            context.createSipURI(terminal.getAddress()));
-                    FromHeader fromHeader = context.getHeaderFactory().createFromHeader(fromAddr, context.generateTag()); 
-                    
-                    Address toAddr = context.getAddressFactory().createAddress(
-                            context.createSipURI(terminal.getAddress()));
-                    ToHeader toHeader = context.getHeaderFactory().createToHeader(toAddr, null);
-                    MaxForwardsHeader maxForwards = context.getHeaderFactory().createMaxForwardsHeader(70);
-                    ViaHeader via = context.getHeaderFactory().createViaHeader(context.getIp(), context.getPort(), 
-                            terminal.getProtocol(), null);
-                    List<ViaHeader> viaHeaders = Arrays.asList(via);
-                    Request request = context.getMessageFactory().createRequest(requestURI, Request.REGISTER, 
-                            regInfo.callId, regInfo.cseq, fromHeader, toHeader, viaHeaders, maxForwards);
-//                    request.s
-                    ClientTransaction t = context.getSipProvider().getNewClientTransaction(request);
-                    t.sendRequest();
-//                    SipURI toAddress = context.createSipUri
-//                    context.getHeaderFactory().createF
+                    if (status==TerminalStatus.UNREGISTERED)
+                        status = TerminalStatus.REGISTERING;
+                    try {
+                        sendRegister(context.getRegistrationExpires());
+                    } catch (Exception e) {
+                        if (logger.isErrorEnabled())
+                            logger.error("Error sending REGISTER", e);
+                        scheduleRegistration(REGISTRATION_RETRY_INTERVAL);
+                    }
                 }
             });
         }
         
+        /**
+         * Removes the binding of the terminal on the proxy (REGISTER with zero expires) and notifies the terminal
+         */
+        public void unregister() {
+            removed = true;
+            regInfo.generation.incrementAndGet();
+            TerminalStatus prevStatus = status;
+            status = TerminalStatus.UNREGISTERED;
+            if (prevStatus==TerminalStatus.REGISTERED && context.isValid())
+                try {
+                    sendRegister(0);
+                } catch (Exception e) {
+                    if (logger.isErrorEnabled())
+                        logger.error("Error sending REGISTER with zero expires", e);
+                }
+            terminal.unregistered();
+            if (logger.isDebugEnabled())
+                logger.debug("Terminal unregistered");
+        }
+        
+        public void processRegisterResponse(ClientTransaction transaction, Response response) {
+            int code = response.getStatusCode();
+            if (code<200 || removed)
+                return;
+            if (code>=300) {
+                registrationFailed("proxy response "+code+" "+response.getReasonPhrase());
+                return;
+            }
+            int expires = getExpires(transaction, response);
+            if (expires<=0) {
+                bindingRemoved();
+                return;
+            }
+            //the binding is refreshed at the half of the registration interval but not too often
+            long expirationInterval = expires*1000l;
+            long refreshDelay = Math.max(expirationInterval/2, MIN_REGISTRATION_REFRESH_INTERVAL);
+            if (refreshDelay >= expirationInterval && logger.isWarnEnabled())
+                logger.warn("Too short registration interval ({} seconds) granted by the registrar. "
+                        + "Refreshing binding every {} ms", expires, refreshDelay);
+            long now = System.currentTimeMillis();
+            regInfo.registrationTime = now;
+            regInfo.expirationTime = now+expirationInterval;
+            regInfo.refreshTime = now+refreshDelay;
+            TerminalStatus prevStatus = status;
+            status = TerminalStatus.REGISTERED;
+            if (prevStatus!=TerminalStatus.REGISTERED) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Terminal registered for {} seconds", expires);
+                context.getExecutor().executeQuietly(new Registered(terminal, context));
+            }
+            long generation = scheduleRegistration(refreshDelay);
+            context.getExecutor().executeQuietly(expirationInterval, new ExpirationCheck(generation));
+        }
+        
+        /**
+         * The registrar answered with the zero expiration interval, so the binding was removed (de-registration).
+         * The terminal is put out of service and the registration is retried later
+         */
+        private void bindingRemoved() {
+            if (logger.isWarnEnabled())
+                logger.warn("Binding removed by the registrar (zero expires in the response)");
+            TerminalStatus prevStatus = status;
+            status = TerminalStatus.UNREGISTERED;
+            if (prevStatus==TerminalStatus.REGISTERED)
+                terminal.unregistered();
+            scheduleRegistration(REGISTRATION_RETRY_INTERVAL);
+        }
+        
+        public void registrationFailed(String reason) {
+            if (removed)
+                return;
+            if (logger.isWarnEnabled())
+                logger.warn("Registration failed: "+reason);
+            if (status==TerminalStatus.REGISTERING)
+                status = TerminalStatus.UNREGISTERED;
+            scheduleRegistration(REGISTRATION_RETRY_INTERVAL);
+        }
+        
+        private long scheduleRegistration(long delay) {
+            final long generation = regInfo.generation.incrementAndGet();
+            context.getExecutor().executeQuietly(delay, new ProxyTask(
+                    "Waiting for registration of the sip terminal "+terminal.getAddress()) 
+            {
+                @Override public void doRun() throws Exception {
+                    if (generation==regInfo.generation.get())
+                        register();
+                }
+            });
+            return generation;
+        }
+        
+        /**
+         * Returns the expiration interval granted by the registrar (the expires parameter of the Contact or
+         * the Expires header) or the requested one
+         */
+        private int getExpires(ClientTransaction transaction, Response response) {
+            ContactHeader contact = (ContactHeader) response.getHeader(ContactHeader.NAME);
+            if (contact!=null && contact.getExpires()>=0)
+                return contact.getExpires();
+            ExpiresHeader expires = (ExpiresHeader) response.getHeader(ExpiresHeader.NAME);
+            if (expires==null)
+                expires = (ExpiresHeader) transaction.getRequest().getHeader(ExpiresHeader.NAME);
+            return expires==null? context.getRegistrationExpires() : expires.getExpires();
+        }
+        
+        private void sendRegister(int expires) throws Exception {
+            SipURI requestURI = context.getAddressFactory().createSipURI(null, context.getProxyHost());
+            requestURI.setTransportParam(terminal.getProtocol());
+
+            Address fromAddr = context.getAddressFactory().createAddress(
+                    context.createSipURI(terminal.getAddress()));
+            FromHeader fromHeader = context.getHeaderFactory().createFromHeader(fromAddr, context.generateTag()); 
+
+            Address toAddr = context.getAddressFactory().createAddress(
+                    context.createSipURI(terminal.getAddress()));
+            ToHeader toHeader = context.getHeaderFactory().createToHeader(toAddr, null);
+            MaxForwardsHeader maxForwards = context.getHeaderFactory().createMaxForwardsHeader(70);
+            ViaHeader via = context.getHeaderFactory().createViaHeader(context.getIp(), context.getPort(), 
+                    terminal.getProtocol(), null);
+            List<ViaHeader> viaHeaders = Arrays.asList(via);
+            //the registrar orders the requests of the one Call-ID by CSeq (RFC 3261 section 10.2)
+            CSeqHeader cseq = context.getHeaderFactory().createCSeqHeader(
+                    regInfo.seqNumber.incrementAndGet(), Request.REGISTER);
+            Request request = context.getMessageFactory().createRequest(requestURI, Request.REGISTER, 
+                    regInfo.callId, cseq, fromHeader, toHeader, viaHeaders, maxForwards);
+            SipURI contactURI = context.createSipURI(terminal.getAddress());
+            contactURI.setPort(context.getPort());
+            request.addHeader(context.getHeaderFactory().createContactHeader(
+                    context.getAddressFactory().createAddress(contactURI)));
+            request.addHeader(context.getHeaderFactory().createExpiresHeader(expires));
+            ClientTransaction t = context.getSipProvider().getNewClientTransaction(request);
+            t.setApplicationData(this);
+            regInfo.lastRegistrationCheck = System.currentTimeMillis();
+            t.sendRequest();
+        }
+        
+        /**
+         * Marks the terminal unregistered if the binding was not refreshed till the end of the registration
+         */
+        private class ExpirationCheck extends ProxyTask {
+            private final long generation;
+
+            public ExpirationCheck(long generation) {
+                super("Checking the registration expiration of the sip terminal "+terminal.getAddress());
+                this.generation = generation;
+            }
+
+            @Override
+            public void doRun() throws Exception {
+                if (removed || status!=TerminalStatus.REGISTERED 
+                        || System.currentTimeMillis()<regInfo.expirationTime) 
+                {
+                    return;
+                }
+                if (logger.isWarnEnabled())
+                    logger.warn("Registration expired");
+                status = TerminalStatus.UNREGISTERED;
+                terminal.unregistered();
+                //the refresh scheduled after the expiration (too short interval granted) will register the terminal
+                if (generation==regInfo.generation.get() && System.currentTimeMillis()>=regInfo.refreshTime)
+                    scheduleRegistration(0);
+            }
+        }
+        
         private class RegInfo {
             private final CallIdHeader callId;
-            private final CSeqHeader cseq;
+            private final AtomicLong seqNumber = new AtomicLong();
+            //increments on the each rescheduling of the registration, the stale tasks are skipped
+            private final AtomicLong generation = new AtomicLong();
             private volatile long registrationTime = 0l;
+            private volatile long expirationTime = 0l;
+            private volatile long refreshTime = 0l;
             private volatile long lastRegistrationCheck = 0l;
 
             public RegInfo() throws Exception {
                 this.callId = context.getSipProvider().getNewCallId();
-                this.cseq = context.getHeaderFactory().createCSeqHeader(1l, Request.REGISTER);
             }
         }
         
@@ -93,6 +93,9 @@ public class TerminalStateMonitoringServiceImpl implements TerminalStateMonitori
                         }
                     }
                 } catch (NumberFormatException e) { }
+            //the lanes of the events dispatcher of the provider are not needed after the shutdown
+            if (state.getId()==STOPED)
+                JtapiEventDispatcher.removeDispatcher(state.getObservableObject().getName());
         }
     }
 
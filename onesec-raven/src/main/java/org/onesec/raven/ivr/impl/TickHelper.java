@@ -16,32 +16,34 @@
 package org.onesec.raven.ivr.impl;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Sleeps until the next tick. The schedule is calculated from the {@link System#nanoTime()} so the
+ * ms resolution of the {@link Thread#sleep(long)} does not accumulate the drift.
  *
  * @author Mikhail Titov
  */
 public class TickHelper {
     private final long tickInterval;
+    private final long startTime = System.nanoTime();
     private long packetNumber = 1;
-    private final long startTime = System.currentTimeMillis();
-    
-    private long timeDiff;
-    private long expectedPacketNumber;
-    private long correction;
-    private long sleepTime;
 
+    /**
+     * @param tickInterval the tick interval in milliseconds
+     */
     public TickHelper(long tickInterval) {
-        this.tickInterval = tickInterval;
+        this.tickInterval = TimeUnit.MILLISECONDS.toNanos(tickInterval);
     }
    
     public void sleep() throws InterruptedException {
-        timeDiff = System.currentTimeMillis() - startTime;
-        expectedPacketNumber = timeDiff/tickInterval;
-        correction = timeDiff % tickInterval;
-        sleepTime = (packetNumber-expectedPacketNumber) * tickInterval - correction;
-        if (sleepTime>0)
-            TimeUnit.MILLISECONDS.sleep(sleepTime);
+        final long nextTick = startTime + packetNumber * tickInterval;
+        long sleepTime;
+        while ((sleepTime = nextTick - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, sleepTime);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
         packetNumber++;
     }
 }
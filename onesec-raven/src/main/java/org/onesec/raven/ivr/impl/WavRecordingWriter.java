@@ -0,0 +1,472 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.codec.G711;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * Writes the WAV files of many recordings on the few I/O threads. The callers (RTP threads) pass the frames
+ * of the call legs to the {@link Recording}, the frames are aligned by the legs, mixed to the one channel or 
+ * interleaved (one channel per leg) and collected in the memory chunks. The I/O thread of the recording
+ * writes the chunk when it is filled and commits the partial chunks of all its recordings once per 
+ * <b>flushInterval</b>, so every file gets the few big sequential writes instead of the write per frame.
+ * The callers never wait for the disk: if the I/O thread falls behind for more than 
+ * {@link #MAX_PENDING_BYTES} of the recording the frames are dropped.
+ *
+ * <p/>The header of the file is rewritten after every commit, so the file stays playable (up to the last 
+ * commit) if the process is terminated abruptly. The data is not forced to the disk.
+ *
+ * @author Mikhail Titov
+ */
+public class WavRecordingWriter {
+    public final static int DEFAULT_IO_THREADS = 2;
+    public final static long DEFAULT_FLUSH_INTERVAL = 1000;
+    public final static int DEFAULT_CHUNK_SIZE = 64*1024;
+    public final static int MAX_PENDING_BYTES = 4*1024*1024;
+    //the lag of the leg (ms) after which the missing samples of the leg are filled with the silence
+    public final static long MAX_LEG_LAG = 1000;
+    public final static int HEADER_SIZE = 44;
+
+    /**
+     * The encoding of the input frames. LINEAR is the signed 16 bit little endian samples
+     */
+    public enum Encoding {LINEAR, ALAW, ULAW};
+
+    private final String name;
+    private final long flushInterval;
+    private final int chunkSize;
+    private final LoggerHelper logger;
+    private final IoLane[] lanes;
+    private final AtomicInteger laneSeq = new AtomicInteger();
+    private final AtomicLong writesCount = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    public WavRecordingWriter(String name, LoggerHelper logger) {
+        this(name, DEFAULT_IO_THREADS, DEFAULT_FLUSH_INTERVAL, DEFAULT_CHUNK_SIZE, logger);
+    }
+
+    public WavRecordingWriter(String name, int ioThreads, long flushInterval, int chunkSize, LoggerHelper logger) {
+        if (ioThreads<1)
+            throw new IllegalArgumentException("ioThreads must be greater than zero");
+        this.name = name;
+        this.flushInterval = flushInterval;
+        this.chunkSize = chunkSize;
+        this.logger = new LoggerHelper(logger, "WAV writer. ");
+        this.lanes = new IoLane[ioThreads];
+        for (int i=0; i<ioThreads; ++i)
+            lanes[i] = new IoLane(i);
+    }
+
+    /**
+     * Creates the file and writes the header to it.
+     * @param file the file
+     * @param encoding the encoding of the frames of the legs
+     * @param sampleRate the sample rate of the frames of the legs
+     * @param legs the number of the legs (sources) of the recording
+     * @param stereo if <b>true</b> every leg is written to its own channel (the G.711 frames are written as is),
+     *      otherwise the legs are mixed to the one channel of 16 bit samples
+     */
+    public Recording createRecording(File file, Encoding encoding, int sampleRate, int legs, boolean stereo) 
+        throws IOException 
+    {
+        if (stopped)
+            throw new IOException(String.format("Writer (%s) stopped", name));
+        if (legs<1)
+            throw new IllegalArgumentException("legs must be greater than zero");
+        final IoLane lane = lanes[(laneSeq.getAndIncrement() & Integer.MAX_VALUE) % lanes.length];
+        final Recording recording = new Recording(file, encoding, sampleRate, legs, stereo, lane);
+        lane.recordings.add(recording);
+        if (logger.isDebugEnabled())
+            logger.debug("Recording to the file ({}) started", file);
+        return recording;
+    }
+
+    /**
+     * Closes all recordings and stops the I/O threads after they write the data
+     */
+    public void stop() {
+        stopped = true;
+        for (IoLane lane: lanes)
+            for (Recording recording: lane.recordings)
+                recording.close();
+        for (IoLane lane: lanes)
+            lane.stop();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getWritesCount() {
+        return writesCount.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public int getRecordingsCount() {
+        int count = 0;
+        for (IoLane lane: lanes)
+            count += lane.recordings.size();
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public class Recording {
+        private final File file;
+        private final FileChannel channel;
+        private final Encoding encoding;
+        private final int legs;
+        private final boolean stereo;
+        private final int frameSize;
+        private final int maxLegLag;
+        private final IoLane lane;
+        private final ByteBuffer header;
+        //the chunks waiting for the I/O thread
+        private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final CountDownLatch closeLatch = new CountDownLatch(1);
+        //guarded by this
+        private final short[][] legSamples;
+        private final int[] legCounts;
+        private ByteBuffer chunk;
+        private volatile boolean closed = false;
+        //the I/O thread fields
+        private long dataSize = 0;
+        private boolean finished = false;
+
+        private Recording(File file, Encoding encoding, int sampleRate, int legs, boolean stereo, IoLane lane)
+            throws IOException
+        {
+            this.file = file;
+            this.encoding = encoding;
+            this.legs = legs;
+            this.stereo = stereo;
+            this.lane = lane;
+            this.maxLegLag = (int) (sampleRate*MAX_LEG_LAG/1000);
+            this.legSamples = new short[legs][];
+            this.legCounts = new int[legs];
+            for (int i=0; i<legs; ++i)
+                legSamples[i] = new short[sampleRate/5];
+            final int channels = stereo? legs : 1;
+            final int sampleSize = stereo && encoding!=Encoding.LINEAR? 1 : 2;
+            final int formatTag = sampleSize==2? 1 : encoding==Encoding.ALAW? 6 : 7;
+            this.frameSize = channels*sampleSize;
+            this.header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36).put(new byte[]{'W', 'A', 'V', 'E'});
+            header.put(new byte[]{'f', 'm', 't', ' '}).putInt(16).putShort((short)formatTag)
+                    .putShort((short)channels).putInt(sampleRate).putInt(sampleRate*frameSize)
+                    .putShort((short)frameSize).putShort((short)(sampleSize*8));
+            header.put(new byte[]{'d', 'a', 't', 'a'}).putInt(0);
+            this.chunk = newChunk();
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, 
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                writeHeader();
+                channel.position(HEADER_SIZE);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Returns the number of the audio bytes written to the file
+         */
+        public long getDataSize() {
+            return closeLatch.getCount()==0? dataSize : -1;
+        }
+
+        /**
+         * Adds the frame of the leg to the recording. Never blocks on the I/O
+         * @param leg the index of the leg (from zero)
+         */
+        public void write(int leg, byte[] data, int offset, int len) {
+            boolean chunkReady;
+            synchronized(this) {
+                if (closed)
+                    return;
+                if (pendingBytes.get() > MAX_PENDING_BYTES) {
+                    droppedBytes.addAndGet(len);
+                    return;
+                }
+                final int samples = encoding==Encoding.LINEAR? len/2 : len;
+                short[] buf = ensureCapacity(leg, samples);
+                int pos = legCounts[leg];
+                switch (encoding) {
+                    case LINEAR:
+                        for (int i=0; i<samples; ++i, offset+=2)
+                            buf[pos++] = (short) ((data[offset] & 0xFF) | (data[offset+1] << 8));
+                        break;
+                    case ALAW:
+                        for (int i=0; i<samples; ++i)
+                            buf[pos++] = G711.alaw2linear(data[offset+i]);
+                        break;
+                    case ULAW:
+                        for (int i=0; i<samples; ++i)
+                            buf[pos++] = G711.ulaw2linear(data[offset+i]);
+                        break;
+                }
+                legCounts[leg] = pos;
+                chunkReady = writeFrames(false);
+            }
+            if (chunkReady)
+                lane.queue.offer(this);
+        }
+
+        /**
+         * Writes the rest of the frames (the missing samples of the legs are filled with the silence) and 
+         * closes the file on the I/O thread. Does not wait for the file closing
+         */
+        public void close() {
+            synchronized(this) {
+                if (closed)
+                    return;
+                writeFrames(true);
+                commitChunk();
+                closed = true;
+            }
+            lane.queue.offer(this);
+        }
+
+        /**
+         * Waits for the file closing
+         * @return <b>true</b> if the file was closed
+         */
+        public boolean awaitClose(long timeout, TimeUnit timeUnit) throws InterruptedException {
+            return closeLatch.await(timeout, timeUnit);
+        }
+
+        private short[] ensureCapacity(int leg, int samples) {
+            short[] buf = legSamples[leg];
+            if (legCounts[leg]+samples > buf.length) {
+                short[] newBuf = new short[Math.max(buf.length*2, legCounts[leg]+samples)];
+                System.arraycopy(buf, 0, newBuf, 0, legCounts[leg]);
+                legSamples[leg] = buf = newBuf;
+            }
+            return buf;
+        }
+
+        /**
+         * Moves the aligned samples of the legs to the chunk
+         * @return true if the chunk was passed to the I/O thread
+         */
+        private boolean writeFrames(boolean flush) {
+            int frames = Integer.MAX_VALUE;
+            int maxCount = 0;
+            for (int count: legCounts) {
+                frames = Math.min(frames, count);
+                maxCount = Math.max(maxCount, count);
+            }
+            //the leg that lags too much (or the legs on close) is filled with the silence
+            if (flush || maxCount-frames > maxLegLag)
+                frames = flush? maxCount : maxCount-maxLegLag;
+            if (frames==0)
+                return false;
+            boolean chunkReady = false;
+            for (int i=0; i<frames; ++i) {
+                if (chunk.remaining() < frameSize)
+                    chunkReady |= commitChunk();
+                if (stereo) {
+                    for (int leg=0; leg<legs; ++leg) {
+                        final short sample = i<legCounts[leg]? legSamples[leg][i] : 0;
+                        switch (encoding) {
+                            case LINEAR: chunk.putShort(sample); break;
+                            case ALAW: chunk.put(G711.linear2alaw(sample)); break;
+                            case ULAW: chunk.put(G711.linear2ulaw(sample)); break;
+                        }
+                    }
+                } else {
+                    int sum = 0;
+                    for (int leg=0; leg<legs; ++leg)
+                        if (i<legCounts[leg])
+                            sum += legSamples[leg][i];
+                    chunk.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum)));
+                }
+            }
+            for (int leg=0; leg<legs; ++leg) {
+                final int rest = Math.max(0, legCounts[leg]-frames);
+                if (rest>0)
+                    System.arraycopy(legSamples[leg], frames, legSamples[leg], 0, rest);
+                legCounts[leg] = rest;
+            }
+            if (chunk.remaining() < frameSize)
+                chunkReady |= commitChunk();
+            return chunkReady;
+        }
+
+        private boolean commitChunk() {
+            if (chunk.position()==0)
+                return false;
+            chunk.flip();
+            pendingBytes.addAndGet(chunk.remaining());
+            chunks.offer(chunk);
+            chunk = newChunk();
+            return true;
+        }
+
+        private ByteBuffer newChunk() {
+            return ByteBuffer.allocate(chunkSize - chunkSize%frameSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void writeHeader() throws IOException {
+            header.putInt(4, (int) (36+dataSize));
+            header.putInt(40, (int) dataSize);
+            header.clear();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+        }
+
+        /**
+         * Executed by the I/O thread only
+         * @param commit if <b>true</b> the partial chunk is written too
+         */
+        private void flush(boolean commit) {
+            if (finished)
+                return;
+            if (commit && !closed)
+                synchronized(this) {
+                    commitChunk();
+                }
+            try {
+                final List<ByteBuffer> batch = new ArrayList<>();
+                ByteBuffer buf;
+                while ((buf = chunks.poll()) != null)
+                    batch.add(buf);
+                if (!batch.isEmpty()) {
+                    final ByteBuffer[] bufs = batch.toArray(new ByteBuffer[batch.size()]);
+                    long bytes = 0;
+                    for (ByteBuffer b: bufs)
+                        bytes += b.remaining();
+                    long written = 0;
+                    while (written < bytes)
+                        written += channel.write(bufs);
+                    writesCount.incrementAndGet();
+                    bytesWritten.addAndGet(bytes);
+                    pendingBytes.addAndGet(-bytes);
+                    dataSize += bytes;
+                    writeHeader();
+                }
+                if (closed && chunks.isEmpty())
+                    finish();
+            } catch (IOException e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("Error writing to the file (%s). Recording stopped", file), e);
+                synchronized(this) {
+                    closed = true;
+                }
+                chunks.clear();
+                finish();
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            lane.recordings.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("Error closing the file (%s)", file), e);
+            }
+            closeLatch.countDown();
+            if (logger.isDebugEnabled())
+                logger.debug("Recording to the file ({}) finished. {} bytes written", file, dataSize);
+        }
+    }
+
+    private class IoLane implements Runnable {
+        private final BlockingQueue<Recording> queue = new LinkedBlockingQueue<>();
+        private final Queue<Recording> recordings = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        public IoLane(int index) {
+            thread = new Thread(this, name+" I/O "+index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Waits for the lane thread (it exits after all its recordings are closed)
+         */
+        public void stop() {
+            try {
+                thread.join(flushInterval*2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextFlush = System.currentTimeMillis() + flushInterval;
+            try {
+                while (!stopped || !recordings.isEmpty()) {
+                    final Recording recording = queue.poll(
+                            Math.max(1, nextFlush-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (recording!=null)
+                        recording.flush(false);
+                    if (System.currentTimeMillis()>=nextFlush) {
+                        for (Recording rec: recordings)
+                            rec.flush(true);
+                        nextFlush = System.currentTimeMillis() + flushInterval;
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (logger.isWarnEnabled())
+                    logger.warn("I/O thread ({}) interrupted", thread.getName());
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("I/O thread ({}) stopped", thread.getName());
+        }
+    }
+}
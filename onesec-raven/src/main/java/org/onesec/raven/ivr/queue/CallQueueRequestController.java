@@ -146,6 +146,17 @@ public interface CallQueueRequestController extends CallQueueRequest
      * "on busy" event
      */
     public int getOnBusyBehaviourStep();
+    /**
+     * Sets the time (in milliseconds) when the current "on busy" behaviour step of the request must be
+     * processed again. The value is set by the step, zero means that the step does not wait for the time
+     */
+    public void setOnBusyBehaviourDeadline(long deadline);
+    /**
+     * Returns the time (in milliseconds) when the current "on busy" behaviour step of the request must be
+     * processed again or zero if the step does not wait for the time
+     * @see #setOnBusyBehaviourDeadline(long) 
+     */
+    public long getOnBusyBehaviourDeadline();
     /**
      * Returns <b>true</b> if the request valid at this moment of time. If method returns 
      * <b>false</b> then queue must cancel request processing.
@@ -30,6 +30,7 @@ import org.raven.annotations.Parameter;
 import org.raven.log.LogLevel;
 import org.raven.sched.ExecutorService;
 import org.raven.sched.impl.SystemSchedulerValueHandlerFactory;
+import org.raven.tree.Node;
 import org.raven.tree.impl.BaseNode;
 import org.raven.tree.impl.NodeReferenceValueHandlerFactory;
 import org.weda.annotations.constraints.NotNull;
@@ -118,6 +119,13 @@ public abstract class AbstractOperatorNode extends BaseNode implements CallsQueu
     protected void doStart() throws Exception {
         super.doStart();
         resetStat();
+        fireOperatorStateChanged();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        fireOperatorStateChanged();
     }
     
     //CallQueueOpertor's method
@@ -145,6 +153,25 @@ public abstract class AbstractOperatorNode extends BaseNode implements CallsQueu
     protected CallsQueuesNode getCallsQueues() {
         return (CallsQueuesNode) getParent().getParent();
     }
+    
+    /**
+     * Returns <b>true</b> if the operator may take the request now. Used by the
+     * {@link OperatorsAvailabilityIndex}, the {@link #processRequest} makes the final decision
+     */
+    public boolean isReadyToProcessRequests() {
+        return Status.STARTED.equals(getStatus()) && active!=null && active;
+    }
+    
+    /**
+     * Informs the operators index of the queues about the change of the operator state (busy, free,
+     * activity, etc). The queues waiting for the operator are informed if the operator became available
+     */
+    protected void fireOperatorStateChanged() {
+        final Node operators = getParent();
+        final Node queues = operators==null? null : operators.getParent();
+        if (queues instanceof CallsQueuesNode)
+            ((CallsQueuesNode)queues).fireOperatorStateChanged(this);
+    }
 
     protected abstract boolean doProcessRequest(CallsQueue queue, CallQueueRequestController request
             , IvrConversationScenario conversationScenario, AudioFile greeting
@@ -284,6 +311,7 @@ public abstract class AbstractOperatorNode extends BaseNode implements CallsQueu
 
     public void setActive(Boolean active) {
         this.active = active;
+        fireOperatorStateChanged();
     }
 
     public ExecutorService getExecutor() {
@@ -72,6 +72,7 @@ public class CallQueueRequestControllerImpl implements CallQueueRequestControlle
     private CallsQueue targetQueue;
     private StringBuilder log;
     private int onBusyBehaviourStep;
+    private long onBusyBehaviourDeadline;
     private CallsQueueOnBusyBehaviour onBusyBehaviour;
     private final AtomicBoolean valid;
     private final AtomicBoolean handlingByOperator = new AtomicBoolean();
@@ -159,6 +160,9 @@ public class CallQueueRequestControllerImpl implements CallQueueRequestControlle
             addToLog("conversation stopped by abonent");
             fireDisconnectedQueueEvent(cause);
             fireRequestInvalidated();
+            final CallsQueue _queue = queue;
+            if (_queue instanceof CallsQueueNode)
+                ((CallsQueueNode)_queue).requestInvalidated();
         }
     }
 
@@ -197,6 +201,14 @@ public class CallQueueRequestControllerImpl implements CallQueueRequestControlle
         this.onBusyBehaviourStep = onBusyBehaviourStep;
     }
 
+    public long getOnBusyBehaviourDeadline() {
+        return onBusyBehaviourDeadline;
+    }
+
+    public void setOnBusyBehaviourDeadline(long onBusyBehaviourDeadline) {
+        this.onBusyBehaviourDeadline = onBusyBehaviourDeadline;
+    }
+
     public DataContext getContext() {
         return request.getContext();
     }
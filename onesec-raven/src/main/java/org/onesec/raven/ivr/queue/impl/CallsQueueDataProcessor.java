@@ -15,9 +15,8 @@
  */
 package org.onesec.raven.ivr.queue.impl;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import org.onesec.raven.ivr.queue.CallQueueRequestController;
 import org.onesec.raven.ivr.queue.CallsQueue;
@@ -31,20 +30,37 @@ import org.raven.tree.Node;
 import org.raven.util.NodeUtils;
 
 /**
+ * Queue of the calls. The requests are kept in the {@link IndexedPriorityQueue}. The head of the queue is
+ * processed when it is changed (the request is added to the head or the head request is removed), when the
+ * operator becomes available ({@link #OPERATOR_AVAILABLE}) and at the deadline of the current on busy
+ * behaviour step of the head request ({@link CallQueueRequestController#getOnBusyBehaviourDeadline()}).
+ * The invalid requests are removed by the {@link #REQUEST_INVALIDATED} message. The queue is not polled,
+ * if the step of the head request has no deadline the request waits for the one of these events.
  *
  * @author Mikhail Titov
  */
 public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
     public final static String GET_REQUESTS = "GET_REQUESTS";
+    public final static String OPERATOR_AVAILABLE = "OPERATOR_AVAILABLE";
+    public final static String REQUEST_INVALIDATED = "REQUEST_INVALIDATED";
     
 //    private final static long MIN_REQUEST_REPROCESS_INTERVAL = 1000; //      
-    public final static long TICK_INTERVAL = 100;
-    private final static String PROCESS_REQUEST = "PROCESS_REQUEST";
     private final static CallsQueueRequestComparator requestComparator = new CallsQueueRequestComparator();
-    private final LinkedList<CallQueueRequestController> queue = new LinkedList<>();
+    private final static CallsQueuePrioritySelectorComparator selectorComparator =
+            new CallsQueuePrioritySelectorComparator();
+    private final IndexedPriorityQueue<CallQueueRequestController> queue =
+            new IndexedPriorityQueue<>(requestComparator);
     private final int maxQueueSize;
     private CallsQueueNode callsQueue;
-    private boolean wating = false;
+    //the last scheduled processing of the head request, the earlier scheduled ones are ignored
+    private ProcessRequest scheduledProcessing;
+    //the on busy behaviour step of the head request before the last processing
+    private int processedStep;
+    private boolean positionsChanged = false;
+    //the priority selectors sorted by the priority and the priorities at the moment of the sorting
+    private List<CallsQueuePrioritySelector> selectors;
+    private Integer[] selectorsPriorities;
+    private int selectorsVersion;
 
     public CallsQueueDataProcessor(int maxQueueSize) {
         this.maxQueueSize = maxQueueSize;
@@ -62,13 +78,22 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
         if (getLogger().isDebugEnabled())
             getLogger().debug("Processing message: "+message);
         if (message instanceof CallQueueRequestController) {
-            addRequestToQueue((CallQueueRequestController)message);
-            if (!wating) 
+            final CallQueueRequestController request = (CallQueueRequestController) message;
+            addRequestToQueue(request);
+            if (queue.peek()==request) 
                 processQueue();
-        } else if (PROCESS_REQUEST==message) {
-            processQueue();
+        } else if (message instanceof ProcessRequest) {
+            if (scheduledProcessing==message) {
+                scheduledProcessing = null;
+                processQueue();
+            }
+        } else if (OPERATOR_AVAILABLE==message) {
+            callsQueue.resetOperatorAvailableEvent();
+            dispatchWaitingRequests();
+        } else if (REQUEST_INVALIDATED==message) {
+            removeInvalidRequests();
         } else if (GET_REQUESTS==message) {
-            return queue.isEmpty()? Collections.EMPTY_LIST : new ArrayList<>(queue);
+            return queue.isEmpty()? Collections.EMPTY_LIST : queue.toList();
         } else 
             return UNHANDLED;
         return VOID;
@@ -80,23 +105,30 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
         if (getLogger().isDebugEnabled()) 
             getLogger().debug(request.logMess("Request %s to the queue", this==oldQueue?"returned":"added"));       
         
-        queue.offer(request);
-        if (queue.size() > 1) {
-            Collections.sort(queue, requestComparator);
+        if (queue.contains(request)) {
+            if (getLogger().isWarnEnabled())
+                getLogger().warn(request.logMess("Request already in the queue"));
+            return;
         }
+        final boolean addedToTail = queue.add(request);
         if (queue.size() > maxQueueSize) {
-            CallQueueRequestController rejReq = queue.removeLast();
+            CallQueueRequestController rejReq = queue.pollLast();
             if (getLogger().isDebugEnabled())
                 getLogger().debug(rejReq.logMess("Rejectected. Queue size was exceeded"));
             sendReject(rejReq, "queue size was exceeded");
+            if (rejReq!=request)
+                positionsChanged = true;
         } else {
             request.fireCallQueuedEvent();
-            fireQueueNumberChangedEvents();
+            if (addedToTail)
+                request.setPositionInQueue(queue.size());
+            else
+                positionsChanged = true;
         }
+        fireQueueNumberChangedEvents();
     }
     
     private void processQueue() throws Exception {        
-        wating = false;
         if (getLogger().isDebugEnabled())
             getLogger().debug("Processing requests from queue. Queue size: "+queue.size());
         CallQueueRequestController request;
@@ -107,18 +139,79 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
             if (!valid || !processRequest(request)) {
                 //          
                 queue.poll();
+                positionsChanged = true;
                 fireQueueNumberChangedEvents();
             } else {
                 //         
-                sendTickEvent();
+                scheduleProcessing(request);
                 return;
             }
         } 
     }
     
-    private void sendTickEvent() throws ExecutorServiceException {
-        wating = true;
-        getFacade().sendDelayed(TICK_INTERVAL, PROCESS_REQUEST);
+    /**
+     * Dispatches the requests waiting for the operator (the operator index of the request is reset by the
+     * on busy behaviour) from the head of the queue to the available operators. The on busy behaviour is
+     * processed here only for the new head of the queue
+     */
+    private void dispatchWaitingRequests() throws Exception {
+        final CallQueueRequestController head = queue.peek();
+        CallQueueRequestController request;
+        while ( (request=queue.peek())!=null && request.getOperatorIndex()==-1 && request.isValid()) {
+            CallsQueuePrioritySelector selector = searchForPrioritySelector(request);
+            if (selector==null)
+                break;
+            //resets the operator hops
+            request.setOperatorIndex(-1);
+            if (!dispatchToOperator(request, selector))
+                break;
+            queue.poll();
+            positionsChanged = true;
+            fireQueueNumberChangedEvents();
+        }
+        processQueueIfHeadChanged(head);
+    }
+    
+    private void removeInvalidRequests() throws Exception {
+        final CallQueueRequestController head = queue.peek();
+        for (Iterator<CallQueueRequestController> it = queue.iterator(); it.hasNext();) {
+            CallQueueRequestController request = it.next();
+            if (!request.isValid()) {
+                if (getLogger().isDebugEnabled())
+                    getLogger().debug(request.logMess("Removed. Not valid request"));
+                it.remove();
+                positionsChanged = true;
+            }
+        }
+        fireQueueNumberChangedEvents();
+        processQueueIfHeadChanged(head);
+    }
+    
+    private void processQueueIfHeadChanged(CallQueueRequestController oldHead) throws Exception {
+        final CallQueueRequestController head = queue.peek();
+        if (head!=null && (head!=oldHead || !head.isValid()))
+            processQueue();
+    }
+    
+    /**
+     * Schedules the processing of the head request at the deadline of its on busy behaviour step. If the
+     * step has no deadline but the behaviour moved the request to the next step, the next step is processed
+     * immediately, else the request waits for the queue events
+     */
+    private void scheduleProcessing(CallQueueRequestController request) throws ExecutorServiceException {
+        final long deadline = request.getOnBusyBehaviourDeadline();
+        final long now = System.currentTimeMillis();
+        final long time;
+        if (deadline>0)
+            time = deadline;
+        else if (request.getOnBusyBehaviourStep()!=processedStep)
+            time = now;
+        else
+            return;
+        if (scheduledProcessing!=null && scheduledProcessing.time<=time)
+            return;
+        scheduledProcessing = new ProcessRequest(time);
+        getFacade().sendDelayed(Math.max(0, time-now), scheduledProcessing);
     }
     
     private boolean processRequest(CallQueueRequestController request) {
@@ -144,6 +237,8 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
                     onBusyBehaviour = selector.getOnBusyBehaviour();
                     request.setOnBusyBehaviour(onBusyBehaviour);
                 }
+                processedStep = request.getOnBusyBehaviourStep();
+                request.setOnBusyBehaviourDeadline(0);
                 leaveInQueue = onBusyBehaviour.handleBehaviour(callsQueue, request);
                 if (getLogger().isDebugEnabled()) {
                     if (leaveInQueue)
@@ -157,6 +252,14 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
     }
     
     private boolean dispatchToOperator(CallQueueRequestController request, CallsQueuePrioritySelector selector) {
+        if (selector instanceof CallsQueuePrioritySelectorNode) {
+            //only the available operators are visited
+            CallsQueueOperatorRef ref = ((CallsQueuePrioritySelectorNode)selector).getOperatorsIndex()
+                    .dispatch(callsQueue, request);
+            if (ref!=null && getLogger().isDebugEnabled())
+                getLogger().debug(request.logMess("Assigned to operator references: "+ref));
+            return ref!=null;
+        }
         List<CallsQueueOperatorRef> operatorRefs = selector.getOperatorsRefs();
         int startIndex = selector.getStartIndex(request, operatorRefs.size());
         if (startIndex<operatorRefs.size())
@@ -175,25 +278,48 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
     
     private CallsQueuePrioritySelector searchForPrioritySelector(CallQueueRequestController request)
     {
-        List<CallsQueuePrioritySelector> selectors = NodeUtils.getChildsOfType(
-                callsQueue, CallsQueuePrioritySelector.class);
-        
-        if (selectors.isEmpty())
-            return null;
-        
-        Collections.sort(selectors, new CallsQueuePrioritySelectorComparator());
-        for (CallsQueuePrioritySelector selector: selectors)
+        for (CallsQueuePrioritySelector selector: getPrioritySelectors())
             if (selector.getPriority()<=request.getPriority())
                 return selector;
         return null;
     }
     
+    /**
+     * Returns the started priority selectors sorted by the priority. The list is cached until the
+     * selectors of the queue are changed (added, removed, started or stopped) or the priority of the
+     * selector is changed
+     */
+    private List<CallsQueuePrioritySelector> getPrioritySelectors() {
+        final int version = callsQueue.getPrioritySelectorsVersion();
+        if (selectors==null || selectorsVersion!=version || !isSelectorsValid()) {
+            selectorsVersion = version;
+            selectors = NodeUtils.getChildsOfType(callsQueue, CallsQueuePrioritySelector.class);
+            Collections.sort(selectors, selectorComparator);
+            selectorsPriorities = new Integer[selectors.size()];
+            for (int i=0; i<selectorsPriorities.length; ++i)
+                selectorsPriorities[i] = selectors.get(i).getPriority();
+        }
+        return selectors;
+    }
+    
+    private boolean isSelectorsValid() {
+        for (int i=0; i<selectorsPriorities.length; ++i) {
+            final CallsQueuePrioritySelector selector = selectors.get(i);
+            if (!selector.isStarted() || !selectorsPriorities[i].equals(selector.getPriority()))
+                return false;
+        }
+        return true;
+    }
+    
     private void sendReject(CallQueueRequestController req, String message) {        
         getContext().getExecutor().executeQuietly(new RejectTask(getContext().getOwner(), req, message));
     }
     
     private void fireQueueNumberChangedEvents() 
     {
+        if (!positionsChanged)
+            return;
+        positionsChanged = false;
         int lastElement = Math.min(maxQueueSize, queue.size());
         int pos = 1;
         for (CallQueueRequestController req: queue) {
@@ -204,6 +330,19 @@ public class CallsQueueDataProcessor extends AbstractDataProcessorLogic {
         }
     }
     
+    private static class ProcessRequest {
+        private final long time;
+
+        public ProcessRequest(long time) {
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return "PROCESS_REQUEST";
+        }
+    }
+    
     private static class RejectTask extends AbstractTask {
         private final String log;
         private final CallQueueRequestController req;
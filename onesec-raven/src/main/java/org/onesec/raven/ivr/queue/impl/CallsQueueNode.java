@@ -19,6 +19,7 @@ package org.onesec.raven.ivr.queue.impl;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -84,6 +85,8 @@ public class CallsQueueNode extends BaseNode implements CallsQueue, Viewable
 
     private AtomicLong sumCallDuration;
     private AtomicInteger callsCount;
+    private AtomicInteger prioritySelectorsVersion;
+    private AtomicBoolean operatorAvailableEventSent;
 
     @Override
     protected void initFields() {
@@ -91,12 +94,15 @@ public class CallsQueueNode extends BaseNode implements CallsQueue, Viewable
         processor = new AtomicReference<>();
         callsCount = new AtomicInteger();
         sumCallDuration = new AtomicLong();
+        prioritySelectorsVersion = new AtomicInteger();
+        operatorAvailableEventSent = new AtomicBoolean();
     }
 
     @Override
     protected void doStart() throws Exception {
         super.doStart();
         resetStat();
+        operatorAvailableEventSent.set(false);
         processor.set(new DataProcessorFacadeConfig(
                 "Queue", this, new CallsQueueDataProcessor(maxQueueSize), executor, new LoggerHelper(this, null)).build());
     }
@@ -120,6 +126,53 @@ public class CallsQueueNode extends BaseNode implements CallsQueue, Viewable
         }
     }
     
+    /**
+     * Informs the queue that the operator became available. The requests waiting for the operator
+     * will be dispatched without waiting for the next tick of the queue. The events are coalesced, only one
+     * event can wait for the processing
+     */
+    public void operatorAvailable() {
+        DataProcessorFacade _processor = processor.get();
+        if (_processor!=null && operatorAvailableEventSent.compareAndSet(false, true))
+            _processor.send(CallsQueueDataProcessor.OPERATOR_AVAILABLE);
+    }
+    
+    /**
+     * Informs the queue that one of its requests became invalid (the abonent hung up), so the request is
+     * removed from the queue without waiting for the processing of the request
+     */
+    void requestInvalidated() {
+        DataProcessorFacade _processor = processor.get();
+        if (_processor!=null)
+            _processor.send(CallsQueueDataProcessor.REQUEST_INVALIDATED);
+    }
+    
+    void resetOperatorAvailableEvent() {
+        operatorAvailableEventSent.set(false);
+    }
+    
+    /**
+     * Returns the version of the priority selectors set. The version changes when the priority selector
+     * of the queue is started, stopped or removed
+     */
+    int getPrioritySelectorsVersion() {
+        return prioritySelectorsVersion.get();
+    }
+
+    @Override
+    public void nodeStatusChanged(Node node, Status oldStatus, Status newStatus) {
+        super.nodeStatusChanged(node, oldStatus, newStatus);
+        if (node.getParent()==this && node instanceof CallsQueuePrioritySelector)
+            prioritySelectorsVersion.incrementAndGet();
+    }
+
+    @Override
+    public void nodeRemoved(Node removedNode) {
+        super.nodeRemoved(removedNode);
+        if (removedNode instanceof CallsQueuePrioritySelector)
+            prioritySelectorsVersion.incrementAndGet();
+    }
+    
     public Collection<CallQueueRequestController> getRequests() {
         DataProcessorFacade _processor = processor.get();
         if (_processor!=null)
@@ -224,12 +277,13 @@ public class CallsQueueNode extends BaseNode implements CallsQueue, Viewable
     
     private Set<CallsQueueOperator> getOpers(boolean onlyActive) {
         Set<CallsQueueOperator> opers = new HashSet<CallsQueueOperator>();
-        for (Node priority: getNodes())
-            for (CallsQueueOperatorRefNode ref: NodeUtils.getChildsOfType(priority, CallsQueueOperatorRefNode.class)) {
-                CallsQueueOperator oper = ref.getOperator();
+        for (CallsQueuePrioritySelectorNode selector: 
+                NodeUtils.getChildsOfType(this, CallsQueuePrioritySelectorNode.class))
+        {
+            for (CallsQueueOperator oper: selector.getOperatorsIndex().getOperators())
                 if (oper.isStarted() && (!onlyActive || oper.isActive()))
                     opers.add(oper);
-            }
+        }
         return opers.isEmpty()? Collections.EMPTY_SET : opers;
     }
 
@@ -37,6 +37,7 @@ import org.raven.expr.impl.BindingSupportImpl;
 import org.raven.expr.impl.ScriptAttributeValueHandlerFactory;
 import org.raven.log.LogLevel;
 import org.raven.sched.impl.AbstractTask;
+import org.raven.tree.Node;
 import org.weda.annotations.constraints.NotNull;
 
 /**
@@ -121,6 +122,16 @@ public class CallsQueueOperatorNode extends AbstractOperatorNode {
         return getActive();
     }
 
+    @Override
+    public boolean isReadyToProcessRequests() {
+        if (!super.isReadyToProcessRequests() || busy.get() || busyByBusyTimer.get())
+            return false;
+        Node queues = getParent()==null? null : getParent().getParent();
+        return !(queues instanceof CallsQueuesNode) 
+                || !Boolean.TRUE.equals(((CallsQueuesNode)queues).getUseOnlyRegisteredOperators())
+                || getOperatorId()!=null;
+    }
+
     public String getOperatorDesc() {
         return personDesc;
     }
@@ -135,6 +146,7 @@ public class CallsQueueOperatorNode extends AbstractOperatorNode {
 
     public void setPersonId(String personId) {
         this.personId = personId;
+        fireOperatorStateChanged();
     }
 
     public String getPhoneNumbers() {
@@ -203,6 +215,7 @@ public class CallsQueueOperatorNode extends AbstractOperatorNode {
             onBusyRequests.incrementAndGet();
             return false;
         }
+        fireOperatorStateChanged();
         //todo:      
 //        final long _lastProcessTime = lastProcessTime.get();
 //        final long curTime = System.currentTimeMillis();
@@ -220,6 +233,7 @@ public class CallsQueueOperatorNode extends AbstractOperatorNode {
                 getLogger().error(request.logMess("Error handling request by operator"), e);
             busy.set(false);
             this.request.set(null);
+            fireOperatorStateChanged();
             return false;
         }
     }
@@ -231,6 +245,7 @@ public class CallsQueueOperatorNode extends AbstractOperatorNode {
                 
             busy.set(false);
             request.set(null);
+            fireOperatorStateChanged();
         }
     }
     
@@ -251,6 +266,7 @@ public class CallsQueueOperatorNode extends AbstractOperatorNode {
             return false;
         //fireBusyTimer stopped
         getCallsQueues().fireEvent(new OperatorBusyTimerStoppedImpl(getName(), getPersonId(), getPersonDesc()));
+        fireOperatorStateChanged();
         return true;
     }
     
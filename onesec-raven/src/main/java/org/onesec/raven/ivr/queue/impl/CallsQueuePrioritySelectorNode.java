@@ -16,16 +16,21 @@
  */
 package org.onesec.raven.ivr.queue.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.onesec.raven.ivr.queue.CallQueueRequestController;
 import org.onesec.raven.ivr.queue.CallsQueueOnBusyBehaviour;
+import org.onesec.raven.ivr.queue.CallsQueueOperator;
 import org.onesec.raven.ivr.queue.CallsQueueOperatorRef;
 import org.onesec.raven.ivr.queue.CallsQueuePrioritySelector;
 import org.onesec.raven.ivr.queue.OperatorsUsagePolicy;
 import org.raven.annotations.NodeClass;
 import org.raven.annotations.Parameter;
+import org.raven.tree.Node;
+import org.raven.tree.NodeAttribute;
 import org.raven.tree.impl.BaseNode;
 import org.raven.util.NodeUtils;
 import org.weda.annotations.constraints.NotNull;
@@ -44,6 +49,19 @@ public class CallsQueuePrioritySelectorNode extends BaseNode implements CallsQue
     private OperatorsUsagePolicy operatorsUsagePolicy;
 
     private CallsQueueOnBusyBehaviourNode onBusyBehaviour;
+    
+    private AtomicInteger operatorsRefsVersion;
+    private SelectorOperatorsIndex operatorsIndex;
+    private int operatorsIndexVersion;
+    private OperatorsAvailabilityIndex localAvailabilityIndex;
+
+    @Override
+    protected void initFields() {
+        super.initFields();
+        operatorsRefsVersion = new AtomicInteger();
+        operatorsIndex = null;
+        localAvailabilityIndex = null;
+    }
 
     @Override
     protected void doInit() throws Exception {
@@ -55,6 +73,13 @@ public class CallsQueuePrioritySelectorNode extends BaseNode implements CallsQue
     protected void doStart() throws Exception {
         super.doStart();
         initNodes();
+        operatorsRefsVersion.incrementAndGet();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        releaseOperatorsIndex();
     }
     
     private void initNodes() {
@@ -80,6 +105,73 @@ public class CallsQueuePrioritySelectorNode extends BaseNode implements CallsQue
         return operators;
     }
 
+    /**
+     * Returns the index of the available operators of this selector. The index is rebuilt when the
+     * references to the operators or the operators usage policy are changed
+     */
+    public synchronized SelectorOperatorsIndex getOperatorsIndex() {
+        final int version = operatorsRefsVersion.get();
+        if (operatorsIndex==null || operatorsIndexVersion!=version) {
+            if (operatorsIndex!=null)
+                operatorsIndex.release();
+            operatorsIndexVersion = version;
+            operatorsIndex = createOperatorsIndex();
+        }
+        return operatorsIndex;
+    }
+    
+    private SelectorOperatorsIndex createOperatorsIndex() {
+        List<CallsQueueOperatorRef> refs = NodeUtils.getChildsOfType(this, CallsQueueOperatorRef.class);
+        List<CallsQueueOperator> operators = new ArrayList<>(refs.size());
+        for (CallsQueueOperatorRef ref: refs)
+            operators.add(ref instanceof CallsQueueOperatorRefNode? 
+                    ((CallsQueueOperatorRefNode)ref).getOperator() : null);
+        Node queue = getParent();
+        return new SelectorOperatorsIndex(getAvailabilityIndex(queue)
+                , queue instanceof CallsQueueNode? (CallsQueueNode)queue : null
+                , refs, operators, operatorsUsagePolicy==OperatorsUsagePolicy.UNIFORM_USAGE);
+    }
+    
+    private OperatorsAvailabilityIndex getAvailabilityIndex(Node queue) {
+        Node queues = queue==null || queue.getParent()==null? null : queue.getParent().getParent();
+        if (queues instanceof CallsQueuesNode)
+            return ((CallsQueuesNode)queues).getOperatorsIndex();
+        //the selector is not the part of the calls queues tree
+        if (localAvailabilityIndex==null)
+            localAvailabilityIndex = new OperatorsAvailabilityIndex();
+        return localAvailabilityIndex;
+    }
+    
+    private synchronized void releaseOperatorsIndex() {
+        if (operatorsIndex!=null) {
+            operatorsIndex.release();
+            operatorsIndex = null;
+        }
+    }
+
+    @Override
+    public void nodeStatusChanged(Node node, Status oldStatus, Status newStatus) {
+        super.nodeStatusChanged(node, oldStatus, newStatus);
+        if (node.getParent()==this && node instanceof CallsQueueOperatorRef)
+            operatorsRefsVersion.incrementAndGet();
+    }
+
+    @Override
+    public void nodeRemoved(Node removedNode) {
+        super.nodeRemoved(removedNode);
+        if (removedNode instanceof CallsQueueOperatorRef)
+            operatorsRefsVersion.incrementAndGet();
+    }
+
+    @Override
+    public void nodeAttributeValueChanged(Node node, NodeAttribute attribute, Object oldRealValue
+            , Object newRealValue) 
+    {
+        super.nodeAttributeValueChanged(node, attribute, oldRealValue, newRealValue);
+        if (node.getParent()==this && node instanceof CallsQueueOperatorRef)
+            operatorsRefsVersion.incrementAndGet();
+    }
+
     public void rebuildIndex(List<CallsQueueOperatorRef> operators, int handledByOperator) 
     {
         if (operatorsUsagePolicy==OperatorsUsagePolicy.SEQUENCE_USAGE)
@@ -111,6 +203,8 @@ public class CallsQueuePrioritySelectorNode extends BaseNode implements CallsQue
 
     public void setOperatorsUsagePolicy(OperatorsUsagePolicy operatorsUsagePolicy) {
         this.operatorsUsagePolicy = operatorsUsagePolicy;
+        if (operatorsRefsVersion!=null)
+            operatorsRefsVersion.incrementAndGet();
     }
 
 }
@@ -90,6 +90,7 @@ public class CallsQueuesNode  extends BaseNode implements DataPipe, Schedulable
     private RecordSchemaNode _cdrRecordSchema;
     private CallsQueueOperatorsNode operatorsNode;
     private CallsQueuesContainerNode queuesNode;
+    private OperatorsAvailabilityIndex operatorsIndex;
     private CallsQueueTransferOperatorNode transferOperator;
     private OperatorRegistratorNode operatorRegistrator;
     private AtomicReference<Set<String>> permittedEvents; 
@@ -100,6 +101,7 @@ public class CallsQueuesNode  extends BaseNode implements DataPipe, Schedulable
         super.initFields();
         permittedEvents = new AtomicReference<Set<String>>(Collections.EMPTY_SET);
         requestIdSeq = new AtomicLong();
+        operatorsIndex = new OperatorsAvailabilityIndex();
     }
 
     @Override
@@ -325,6 +327,9 @@ public class CallsQueuesNode  extends BaseNode implements DataPipe, Schedulable
 
     public void setUseOnlyRegisteredOperators(Boolean useOnlyRegisteredOperators) {
         this.useOnlyRegisteredOperators = useOnlyRegisteredOperators;
+        if (operatorsIndex!=null)
+            for (CallsQueueNode queue: operatorsIndex.refresh())
+                queue.operatorAvailable();
     }
 
     public DataSource getDataSource() {
@@ -375,6 +380,22 @@ public class CallsQueuesNode  extends BaseNode implements DataPipe, Schedulable
         }
     }
     
+    /**
+     * Returns the index of the available operators shared by all queues
+     */
+    public OperatorsAvailabilityIndex getOperatorsIndex() {
+        return operatorsIndex;
+    }
+    
+    /**
+     * Updates the availability of the operator in the operators index and informs the queues referencing
+     * the operator if it became available
+     */
+    void fireOperatorStateChanged(CallsQueueOperator operator) {
+        for (CallsQueueNode queue: operatorsIndex.operatorStateChanged(operator))
+            queue.operatorAvailable();
+    }
+    
     void fireEvent(CallQueueManagerEvent event) {
         RecordSchema schema = cdrRecordSchema;
         if (schema==null)
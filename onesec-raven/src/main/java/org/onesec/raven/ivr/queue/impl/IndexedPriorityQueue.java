@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.queue.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The priority queue with O(log n) insert, remove (of any element) and poll from the both ends. The
+ * elements equal by the comparator are kept in the order of the insertion. The element is indexed by the
+ * value of the comparator at the moment of the insertion, so the fields used by the comparator must not be
+ * changed while the element is in the queue. Not thread safe.
+ *
+ * @author Mikhail Titov
+ */
+public class IndexedPriorityQueue<T> implements Iterable<T> {
+    private final Comparator<? super T> comparator;
+    private final TreeSet<Entry<T>> entries;
+    private final Map<T, Entry<T>> index = new IdentityHashMap<>();
+    private long seq = 0;
+
+    public IndexedPriorityQueue(Comparator<? super T> comparator) {
+        this.comparator = comparator;
+        this.entries = new TreeSet<>(new EntryComparator());
+    }
+
+    /**
+     * Adds the element to the queue.
+     * @return <b>true</b> if the element was added to the tail of the queue, so the positions of the other
+     *      elements were not changed
+     * @throws IllegalArgumentException if the element is already in the queue
+     */
+    public boolean add(T element) {
+        if (index.containsKey(element))
+            throw new IllegalArgumentException("The element is already in the queue");
+        Entry<T> entry = new Entry<>(element, seq++);
+        entries.add(entry);
+        index.put(element, entry);
+        return entries.last()==entry;
+    }
+
+    public boolean remove(T element) {
+        Entry<T> entry = index.remove(element);
+        return entry!=null && entries.remove(entry);
+    }
+
+    public boolean contains(T element) {
+        return index.containsKey(element);
+    }
+
+    public T peek() {
+        return entries.isEmpty()? null : entries.first().element;
+    }
+
+    public T poll() {
+        return unindex(entries.pollFirst());
+    }
+
+    public T pollLast() {
+        return unindex(entries.pollLast());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public List<T> toList() {
+        List<T> list = new ArrayList<>(entries.size());
+        for (Entry<T> entry: entries)
+            list.add(entry.element);
+        return list;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<Entry<T>> it = entries.iterator();
+        return new Iterator<T>() {
+            private Entry<T> last;
+            @Override public boolean hasNext() {
+                return it.hasNext();
+            }
+            @Override public T next() {
+                last = it.next();
+                return last.element;
+            }
+            @Override public void remove() {
+                it.remove();
+                index.remove(last.element);
+            }
+        };
+    }
+
+    private T unindex(Entry<T> entry) {
+        if (entry==null)
+            return null;
+        index.remove(entry.element);
+        return entry.element;
+    }
+
+    private static class Entry<T> {
+        private final T element;
+        private final long seq;
+
+        public Entry(T element, long seq) {
+            this.element = element;
+            this.seq = seq;
+        }
+    }
+
+    private class EntryComparator implements Comparator<Entry<T>> {
+        @Override
+        public int compare(Entry<T> o1, Entry<T> o2) {
+            int res = comparator.compare(o1.element, o2.element);
+            return res!=0? res : Long.compare(o1.seq, o2.seq);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.queue.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.onesec.raven.ivr.queue.CallsQueueOperator;
+
+/**
+ * The index of the operators available for the requests processing. The index is shared by all queues of
+ * the {@link CallsQueuesNode}. Every priority selector registers the references to the operators
+ * ({@link SelectorOperatorsIndex}), the operator informs the index about the changes of its state (busy,
+ * free, busy timer, active, registered, started) by the {@link #operatorStateChanged} method. The index
+ * updates the sets of the available operators of all selectors referencing the operator, so the queue
+ * does not walk through the busy operators when dispatching the request.
+ *
+ * @author Mikhail Titov
+ */
+public class OperatorsAvailabilityIndex {
+    private final ConcurrentMap<CallsQueueOperator, OperatorEntry> operators = new ConcurrentHashMap<>();
+
+    /**
+     * Updates the availability of the operator in the indexes of the priority selectors.
+     * @return the queues which priority selectors reference the operator if the operator is available
+     *      for the requests processing, otherwise the empty collection
+     */
+    public Collection<CallsQueueNode> operatorStateChanged(CallsQueueOperator operator) {
+        OperatorEntry entry = operators.get(operator);
+        return entry==null? Collections.EMPTY_LIST : entry.refresh();
+    }
+
+    /**
+     * Updates the availability of the all indexed operators
+     * @return the queues which priority selectors reference the available operators
+     */
+    public Collection<CallsQueueNode> refresh() {
+        Set<CallsQueueNode> queues = new LinkedHashSet<>();
+        for (OperatorEntry entry: operators.values())
+            queues.addAll(entry.refresh());
+        return queues;
+    }
+
+    public int getOperatorsCount() {
+        return operators.size();
+    }
+
+    public static boolean isOperatorAvailable(CallsQueueOperator operator) {
+        return operator instanceof AbstractOperatorNode?
+                ((AbstractOperatorNode)operator).isReadyToProcessRequests() : true;
+    }
+
+    void register(SelectorOperatorsIndex.Slot slot) {
+        for (;;) {
+            OperatorEntry entry = operators.get(slot.operator);
+            if (entry==null) {
+                entry = new OperatorEntry(slot.operator);
+                OperatorEntry prev = operators.putIfAbsent(slot.operator, entry);
+                if (prev!=null)
+                    entry = prev;
+            }
+            if (entry.addSlot(slot))
+                return;
+        }
+    }
+
+    void unregister(SelectorOperatorsIndex.Slot slot) {
+        OperatorEntry entry = operators.get(slot.operator);
+        if (entry!=null)
+            entry.removeSlot(slot);
+    }
+
+    private class OperatorEntry {
+        private final CallsQueueOperator operator;
+        private final List<SelectorOperatorsIndex.Slot> slots = new ArrayList<>(2);
+        private boolean removed = false;
+
+        public OperatorEntry(CallsQueueOperator operator) {
+            this.operator = operator;
+        }
+
+        public synchronized boolean addSlot(SelectorOperatorsIndex.Slot slot) {
+            if (removed)
+                return false;
+            slots.add(slot);
+            slot.setAvailable(isOperatorAvailable(operator));
+            return true;
+        }
+
+        public synchronized void removeSlot(SelectorOperatorsIndex.Slot slot) {
+            slots.remove(slot);
+            if (slots.isEmpty()) {
+                removed = true;
+                operators.remove(operator, this);
+            }
+        }
+
+        /**
+         * The state of the operator is evaluated under the lock of the entry, so the last evaluation
+         * always sees the last state change of the operator
+         */
+        public synchronized Collection<CallsQueueNode> refresh() {
+            final boolean available = isOperatorAvailable(operator);
+            for (SelectorOperatorsIndex.Slot slot: slots)
+                slot.setAvailable(available);
+            if (!available)
+                return Collections.EMPTY_LIST;
+            Set<CallsQueueNode> queues = new LinkedHashSet<>();
+            for (SelectorOperatorsIndex.Slot slot: slots)
+                if (slot.getQueue()!=null)
+                    queues.add(slot.getQueue());
+            return queues;
+        }
+    }
+}
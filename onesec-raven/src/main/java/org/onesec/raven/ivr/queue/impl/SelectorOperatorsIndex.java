@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.queue.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import org.onesec.raven.ivr.queue.CallQueueRequestController;
+import org.onesec.raven.ivr.queue.CallsQueue;
+import org.onesec.raven.ivr.queue.CallsQueueOperator;
+import org.onesec.raven.ivr.queue.CallsQueueOperatorRef;
+
+/**
+ * The references to the operators of the priority selector ordered by the operators usage policy: by the
+ * position of the reference for the {@link org.onesec.raven.ivr.queue.OperatorsUsagePolicy#SEQUENCE_USAGE}
+ * and by the sort index of the reference (the operator that handled the request is moved to the end) for
+ * the {@link org.onesec.raven.ivr.queue.OperatorsUsagePolicy#UNIFORM_USAGE}. Only the references to the
+ * available operators are kept in the ordered set, the availability is updated by the
+ * {@link OperatorsAvailabilityIndex}. The references to the operators unknown to the index are always
+ * available. The index is built for the current set of the references of the selector, the selector creates
+ * the new index when the references are changed and releases the old one.
+ *
+ * @author Mikhail Titov
+ */
+public class SelectorOperatorsIndex {
+    private final OperatorsAvailabilityIndex availabilityIndex;
+    private final CallsQueueNode queue;
+    private final boolean uniformUsage;
+    private final List<Slot> slots;
+    private final List<CallsQueueOperator> operators;
+    private final TreeSet<Slot> available;
+    private int nextSortIndex = 0;
+    private boolean released = false;
+
+    /**
+     * @param availabilityIndex the index of the operators availability
+     * @param queue the queue of the priority selector, it will be informed when the operator becomes
+     *      available. May be null
+     * @param refs the references to the operators in the order of the selector
+     * @param operators the operators of the references (the element is null if the operator of the
+     *      reference is unknown)
+     * @param uniformUsage if <b>true</b> the references are ordered by the sort index
+     */
+    public SelectorOperatorsIndex(OperatorsAvailabilityIndex availabilityIndex, CallsQueueNode queue
+            , List<CallsQueueOperatorRef> refs, List<CallsQueueOperator> operators, boolean uniformUsage)
+    {
+        this.availabilityIndex = availabilityIndex;
+        this.queue = queue;
+        this.uniformUsage = uniformUsage;
+        this.available = new TreeSet<>(uniformUsage? new SortIndexComparator() : new PositionComparator());
+        this.slots = new ArrayList<>(refs.size());
+        List<CallsQueueOperator> _operators = new ArrayList<>(refs.size());
+        for (int i=0; i<refs.size(); ++i) {
+            final CallsQueueOperatorRef ref = refs.get(i);
+            final Slot slot = new Slot(ref, operators.get(i), i, uniformUsage? ref.getSortIndex() : i);
+            nextSortIndex = Math.max(nextSortIndex, slot.sortIndex+1);
+            slots.add(slot);
+            if (slot.operator!=null && !_operators.contains(slot.operator))
+                _operators.add(slot.operator);
+        }
+        this.operators = Collections.unmodifiableList(_operators);
+        for (Slot slot: slots)
+            if (slot.operator==null)
+                slot.setAvailable(true);
+            else
+                availabilityIndex.register(slot);
+    }
+
+    /**
+     * Dispatches the request to the first available operator starting from the operator defined by the
+     * operators usage policy (the {@link CallsQueuePrioritySelectorNode#getStartIndex} contract).
+     * @return the reference to the operator that took the request or null
+     */
+    public CallsQueueOperatorRef dispatch(CallsQueue callsQueue, CallQueueRequestController request) {
+        final int count = slots.size();
+        Slot slot;
+        if (uniformUsage) {
+            if (request.getOperatorHops()>=count)
+                return null;
+            slot = first();
+        } else
+            slot = ceiling(request.getOperatorIndex()+1);
+        int hops = 0;
+        for (; slot!=null; slot=higher(slot)) {
+            ++hops;
+            request.incOperatorHops();
+            if (slot.ref.processRequest(callsQueue, request)) {
+                request.setOperatorIndex(slot.position);
+                if (uniformUsage)
+                    moveToTail(slot);
+                return slot.ref;
+            } else if (slot.operator!=null)
+                //the operator is busy but the index was not informed yet
+                availabilityIndex.operatorStateChanged(slot.operator);
+        }
+        //the unavailable operators were passed too
+        if (uniformUsage)
+            for (; hops<count; ++hops)
+                request.incOperatorHops();
+        return null;
+    }
+
+    /**
+     * Returns the distinct operators referenced by the selector
+     */
+    public List<CallsQueueOperator> getOperators() {
+        return operators;
+    }
+
+    public int getOperatorsRefsCount() {
+        return slots.size();
+    }
+
+    public synchronized int getAvailableOperatorsRefsCount() {
+        return available.size();
+    }
+
+    /**
+     * Removes the references of the selector from the availability index
+     */
+    public void release() {
+        synchronized(this) {
+            if (released)
+                return;
+            released = true;
+            available.clear();
+        }
+        for (Slot slot: slots)
+            if (slot.operator!=null)
+                availabilityIndex.unregister(slot);
+    }
+
+    private synchronized Slot first() {
+        return available.isEmpty()? null : available.first();
+    }
+
+    private synchronized Slot ceiling(int position) {
+        return available.ceiling(new Slot(null, null, position, position));
+    }
+
+    private synchronized Slot higher(Slot slot) {
+        return available.higher(slot);
+    }
+
+    private synchronized void moveToTail(Slot slot) {
+        if (nextSortIndex==Integer.MAX_VALUE)
+            renumberSlots();
+        final boolean wasAvailable = available.remove(slot);
+        slot.sortIndex = nextSortIndex++;
+        slot.ref.setSortIndex(slot.sortIndex);
+        if (wasAvailable && !released)
+            available.add(slot);
+    }
+
+    private void renumberSlots() {
+        List<Slot> ordered = new ArrayList<>(slots);
+        Collections.sort(ordered, new SortIndexComparator());
+        List<Slot> availableSlots = new ArrayList<>(available);
+        available.clear();
+        nextSortIndex = 0;
+        for (Slot slot: ordered) {
+            slot.sortIndex = nextSortIndex++;
+            slot.ref.setSortIndex(slot.sortIndex);
+        }
+        available.addAll(availableSlots);
+    }
+
+    private synchronized void setAvailable(Slot slot, boolean availableFlag) {
+        if (released)
+            return;
+        if (availableFlag)
+            available.add(slot);
+        else
+            available.remove(slot);
+    }
+
+    class Slot {
+        final CallsQueueOperatorRef ref;
+        final CallsQueueOperator operator;
+        final int position;
+        private int sortIndex;
+
+        public Slot(CallsQueueOperatorRef ref, CallsQueueOperator operator, int position, int sortIndex) {
+            this.ref = ref;
+            this.operator = operator;
+            this.position = position;
+            this.sortIndex = sortIndex;
+        }
+
+        public CallsQueueNode getQueue() {
+            return queue;
+        }
+
+        public void setAvailable(boolean availableFlag) {
+            SelectorOperatorsIndex.this.setAvailable(this, availableFlag);
+        }
+    }
+
+    private static class PositionComparator implements Comparator<Slot> {
+        @Override
+        public int compare(Slot o1, Slot o2) {
+            return Integer.compare(o1.position, o2.position);
+        }
+    }
+
+    private static class SortIndexComparator implements Comparator<Slot> {
+        @Override
+        public int compare(Slot o1, Slot o2) {
+            int res = Integer.compare(o1.sortIndex, o2.sortIndex);
+            return res!=0? res : Integer.compare(o1.position, o2.position);
+        }
+    }
+}
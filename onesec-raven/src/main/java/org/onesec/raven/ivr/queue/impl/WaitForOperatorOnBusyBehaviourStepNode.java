@@ -39,10 +39,13 @@ public class WaitForOperatorOnBusyBehaviourStepNode extends BaseNode implements
 
     public BehaviourResult handleBehaviour(CallsQueue queue, CallQueueRequestController request)
     {
-        StepPolicy stepPolicy = System.currentTimeMillis()-request.getLastQueuedTime()<=waitTimeout*1000?
+        final long deadline = request.getLastQueuedTime()+waitTimeout*1000+1;
+        StepPolicy stepPolicy = System.currentTimeMillis()<deadline?
             StepPolicy.LEAVE_AT_THIS_STEP : StepPolicy.IMMEDIATELY_EXECUTE_NEXT_STEP;
-        if (stepPolicy==StepPolicy.LEAVE_AT_THIS_STEP) 
+        if (stepPolicy==StepPolicy.LEAVE_AT_THIS_STEP) {
             request.setOperatorIndex(-1);
+            request.setOnBusyBehaviourDeadline(deadline);
+        }
         return new BehaviourResultImpl(true, stepPolicy);
     }
 
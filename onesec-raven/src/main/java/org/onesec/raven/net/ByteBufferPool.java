@@ -30,4 +30,20 @@ public interface ByteBufferPool {
      * Returns buffers count in the pool
      */
     public int getBuffersCount();
+    /**
+     * Returns the number of requests served by the buffers from the pool
+     */
+    public long getHitsCount();
+    /**
+     * Returns the number of requests for which the pool has not got the free buffer
+     */
+    public long getMissesCount();
+    /**
+     * Returns the number of buffers allocated by the pool
+     */
+    public long getAllocatedCount();
+    /**
+     * Returns the number of released buffers which were not retained by the pool
+     */
+    public long getDiscardedCount();
 }
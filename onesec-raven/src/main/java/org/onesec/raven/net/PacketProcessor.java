@@ -40,4 +40,5 @@ public interface PacketProcessor {
     public boolean changeToProcessing();
     public void changeToUnprocessing(); 
     public void stop();
+    public void setListener(PacketProcessorListener listener);
 }
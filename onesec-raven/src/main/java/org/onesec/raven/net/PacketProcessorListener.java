@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.net;
+
+/**
+ * Receives the events of the {@link PacketProcessor}. The listener is set by the packet dispatcher at
+ * the moment of the registration of the processor.
+ *
+ * @author Mikhail Titov
+ */
+public interface PacketProcessorListener {
+    /**
+     * Called when the processor became invalid (stopped), so its channel can be closed
+     */
+    public void processorInvalidated(PacketProcessor processor);
+    /**
+     * Called when the processor got the packet for outbound processing outside of the inbound processing
+     * (for example, the packet was queued by the other thread)
+     */
+    public void outboundPacketReady(PacketProcessor processor);
+}
@@ -123,6 +123,7 @@ public abstract class AbstractDataProcessor implements DataProcessor  {
 //                            if (!pp.isValid())
 //                                key.cancel();
                             pp.changeToUnprocessing();
+                            packetDispatcher.keyProcessed(key);
                         }
                     }
                 } catch (InterruptedException e) {
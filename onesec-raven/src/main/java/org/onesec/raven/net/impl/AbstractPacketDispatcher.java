@@ -17,77 +17,89 @@ package org.onesec.raven.net.impl;
 
 import java.io.IOException;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 import org.onesec.raven.net.ByteBufferPool;
 import org.onesec.raven.net.DataProcessor;
 import org.onesec.raven.net.KeysSet;
 import org.onesec.raven.net.PacketDispatcher;
 import org.onesec.raven.net.PacketProcessor;
+import org.onesec.raven.net.PacketProcessorListener;
 import org.raven.sched.ExecutorService;
 import org.raven.sched.Task;
 import org.raven.tree.Node;
 import org.raven.tree.impl.LoggerHelper;
 
 /**
+ * Dispatches the channel operations of the packet processors to the data processors (workers). The
+ * processors are spread over the <b>selectorsCount</b> selector threads by the hash code. Every selector
+ * thread blocks in the {@link Selector#select()} and is woken up only by the channel operations or by the
+ * events: the registration of the new processor, the end of the processing of the key by the worker, the
+ * invalidation of the processor and the outbound packet ready signal of the processor.
+ *
+ * <p/>The key passed to the worker is disarmed (interest set is cleared) until the worker processes it, so
+ * the selector never returns the keys that are already in the processing. After the processing the key is
+ * armed again: for reading if the processor needs the inbound processing and for writing only if the
+ * processor has the packet for outbound processing. The processor that got the outbound packet outside of
+ * the processing of its key must signal it (see {@link AbstractPacketProcessor#outboundPacketReady()}).
+ *
+ * <p/>If all workers reject the keys (the queues of the workers are full) the keys stay disarmed until the
+ * worker finishes the processing of the key of the same selector thread or, because the workers are shared
+ * by the selector threads, until {@link #REJECTED_KEYS_RETRY_INTERVAL} ms pass.
  *
  * @author Mikhail Titov
  */
 public class AbstractPacketDispatcher<P extends PacketProcessor> 
         implements PacketDispatcher<P>, Task
 {
-    private static int BUFFER_SIZE = 512;
+    private final static int KEYS_SET_SIZE = 16;
+    private final static long START_RETRY_INTERVAL = 100;
+    private final static long REJECTED_KEYS_RETRY_INTERVAL = 10;
     
     protected final ExecutorService executor;
     protected final Node owner;
     protected final LoggerHelper logger;
     protected final ByteBufferPool byteBufferPool;
     private final DataProcessor[] dataProcessors;
-    private final int dataProcessorsCount;
     private final boolean[] runningFlag;
-    private final KeysSet[] keysSet;
-    private int curKeySet = 0;
-    private final Queue<SelectionKey> keysQueue = new ConcurrentLinkedQueue<SelectionKey>();
-    private final AtomicInteger keysQueueSize = new AtomicInteger();
-    private final AtomicBoolean selectionThreadWaiting = new AtomicBoolean(false);
+    private final SelectorLane[] lanes;
     
-    protected final LinkedList<PacketProcessor> pendingProcessors = new LinkedList<PacketProcessor>();
-    private final ReentrantLock pendingProcessorsLock = new ReentrantLock();
     private final AtomicBoolean stopFlag = new AtomicBoolean(false);
     protected volatile String statusMessage;
-    private volatile boolean hasPendingProcessors = false;
     private boolean hasNotStartedWorkers = false;
-    private int nextDataProcessor = 0;
 
     public AbstractPacketDispatcher(ExecutorService executor, int workersCount, Node owner
             , LoggerHelper logger, ByteBufferPool byteBufferPool) 
     {
+        this(executor, 1, workersCount, owner, logger, byteBufferPool);
+    }
+
+    public AbstractPacketDispatcher(ExecutorService executor, int selectorsCount, int workersCount, Node owner
+            , LoggerHelper logger, ByteBufferPool byteBufferPool) 
+    {
+        if (selectorsCount<1)
+            throw new IllegalArgumentException("selectorsCount must be greater than zero");
         this.executor = executor;
         this.logger = logger;
         this.owner = owner;
         this.byteBufferPool = byteBufferPool;
         this.dataProcessors = new DataProcessor[workersCount];
         this.runningFlag = new boolean[workersCount];
-        this.dataProcessorsCount = workersCount;
-        keysSet = new KeysSet[10];
-        for (int i=0; i<keysSet.length; ++i)
-            keysSet[i] = new KeysSetImpl(100);
+        this.lanes = (SelectorLane[]) new AbstractPacketDispatcher.SelectorLane[selectorsCount];
+        for (int i=0; i<selectorsCount; ++i)
+            lanes[i] = new SelectorLane(i, selectorsCount==1? logger : new LoggerHelper(logger, "Selector "+i+". "));
     }
     
     public void addPacketProcessor(P packetProcessor) {
-        pendingProcessorsLock.lock();
-        try {
-            pendingProcessors.add(packetProcessor);
-            hasPendingProcessors = true;
-        } finally {
-            pendingProcessorsLock.unlock();
-        }
+        getLane(packetProcessor).addPacketProcessor(packetProcessor);
     }
 
     public Node getTaskNode() {
@@ -99,319 +111,69 @@ public class AbstractPacketDispatcher<P extends PacketProcessor>
     }
 
     public void stop() {
-        stopFlag.compareAndSet(false, true);
+        if (stopFlag.compareAndSet(false, true))
+            for (SelectorLane lane: lanes)
+                lane.wakeup();
+    }
+    
+    public int getSelectorsCount() {
+        return lanes.length;
     }
 
     public void run() {
-        if (logger.isErrorEnabled())
+        if (logger.isInfoEnabled())
             logger.info("Initializing");
-        final Selector selector = createSelector();
-        if (selector==null)
+        if (!openSelectors())
             return;
         try {
             createWorkers();
+            for (int i=1; i<lanes.length; ++i)
+                startLane(lanes[i]);
             if (logger.isInfoEnabled())
                 logger.info("Successfully started");
-            long lastCheckForInvalidPP = System.currentTimeMillis();
-            while (!stopFlag.get()) {
-                try {
-                    if (hasPendingProcessors)
-                        processPendingProcessors(selector);
-                    if (hasNotStartedWorkers)
-                        startNotStartedWorkers();
-                    long ts = System.currentTimeMillis();
-                    if (lastCheckForInvalidPP+20 <= ts) {
-                        closeKeysForInvalidPacketProcessors(selector);
-                        lastCheckForInvalidPP = ts;
-                    }
-                    processSelection(selector);
-//                    Thread.sleep(1);
-                } catch (Throwable e) {
-                    if (logger.isErrorEnabled())
-                        logger.error("Unexpected error in processing cycle", e);
-                }
-            }
+            lanes[0].run();
         } finally {
             closeWorkers();
-            closeSelector(selector);
+            for (SelectorLane lane: lanes)
+                if (!lane.running)
+                    lane.closeSelector();
             if (logger.isInfoEnabled())
                 logger.info("Stopped");
         }
     }
     
-    private void closeKeysForInvalidPacketProcessors(Selector selector) {
-        for (SelectionKey key: selector.keys()) {
-            PacketProcessor pp = (PacketProcessor) key.attachment();
-            if (!pp.isProcessing()) {
-                if (!pp.isValid())
-                    closeKey(key);
-//                else if ( (key.interestOps() & (SelectionKey.OP_ACCEPT | SelectionKey.OP_CONNECT))==0 ) {
-//                    if (pp.isNeedOutboundProcessing() && pp.hasPacketForOutboundProcessing())
-//                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-//                    if (pp.isNeedInboundProcessing())
-//                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
-//                }
-            }
-        }
+    /**
+     * Called by the data processor when the processing of the key is finished
+     */
+    void keyProcessed(SelectionKey key) {
+        getLane((PacketProcessor)key.attachment()).keyProcessed(key);
     }
     
-    private void processSelection(Selector selector) throws Exception {
-        try {
-            selector.select(3);
-//            selector.selectNow();
-            Set<SelectionKey> keys = selector.selectedKeys();
-            if (keys!=null && !keys.isEmpty()) {
-                Iterator<SelectionKey> it = keys.iterator();
-                while(it.hasNext()) {
-                    SelectionKey key = it.next();
-                    PacketProcessor pp = (PacketProcessor) key.attachment();
-                    if (!pp.isValid())
-                        continue;
-                    if (key.isReadable() || key.isWritable()) {
-                        if (pp.isProcessing() || pushKeyToKeysSet(key))
-                            it.remove();
-                    } else if (key.isAcceptable()) {
-                        acceptIncomingConnection(selector, key);
-                        it.remove();
-                    } else if (key.isConnectable()) {
-                        ((SocketChannel)key.channel()).finishConnect();
-                        key.interestOps(genOpsForKey(0, (PacketProcessor)key.attachment()));
-                        it.remove();
-                    }
-                }
-                submitPartialKeysSet();
-            } 
-            else
-                Thread.sleep(1);
-        } catch (IOException ex) {
-            if (logger.isErrorEnabled())
-                logger.error("Error in selection process", ex);
-        }
+    private SelectorLane getLane(PacketProcessor pp) {
+        return lanes[(pp.hashCode() & Integer.MAX_VALUE) % lanes.length];
     }
     
-    private void submitPartialKeysSet() {
-        if (curKeySet==keysSet.length)
-            curKeySet = 0;
-        if (keysSet[curKeySet].isFree() && keysSet[curKeySet].hasKeys()) 
-            submitKeysSetToDataProcessor(keysSet[curKeySet++].switchToWaitingForProcess());
-    }
-    
-    private boolean pushKeyToKeysSet(SelectionKey key) {
-        PacketProcessor pp = (PacketProcessor) key.attachment();
-        if (key.isReadable() || (key.isWritable() && pp.hasPacketForOutboundProcessing())) {
-            int attempt = 0;
-            while(attempt<keysSet.length) {
-                if (curKeySet==keysSet.length)
-                    curKeySet = 0;
-                if (keysSet[curKeySet].isFree()) {
-                    if (!keysSet[curKeySet].add(key)) 
-                        submitKeysSetToDataProcessor(keysSet[curKeySet++]);
-                    return true;
-                }
-                curKeySet++;
-                attempt++;
+    private boolean openSelectors() {
+        for (int i=0; i<lanes.length; ++i)
+            if (!lanes[i].openSelector()) {
+                for (int j=0; j<i; ++j)
+                    lanes[j].closeSelector();
+                return false;
             }
-        }
-        return false;
+        return true;
     }
     
-    private void submitKeysSetToDataProcessor(KeysSet keys) {
-        int attempt = 0;
-        while (attempt<dataProcessors.length) {
-            if (nextDataProcessor>=dataProcessors.length)
-                nextDataProcessor = 0;
-            if (runningFlag[nextDataProcessor] && dataProcessors[nextDataProcessor++].processData(keys)) 
-                return;
-            ++attempt;
+    private void startLane(SelectorLane lane) {
+        lane.running = true;
+        if (!executor.executeQuietly(lane)) {
+            lane.running = false;
+            hasNotStartedWorkers = true;
         }
     }
     
-//    private boolean submitOperationToDataProcessor(SelectionKey key) {
-//        int attempt = 0;
-//        while (attempt<dataProcessors.length) {
-//            if (nextDataProcessor>=dataProcessors.length)
-//                nextDataProcessor = 0;
-//            if (runningFlag[nextDataProcessor] && dataProcessors[nextDataProcessor++].processData(key)) {
-//                key.interestOps(0);
-//                return true;
-//            }
-//            ++attempt;
-//        }
-//        return false;
-//    }
-        
-        
-//        if (keysQueueSize.get()<=dataProcessorsCount*2)
-//            for (int i=0; i<dataProcessors.length; ++i)
-//                if (runningFlag[i] && dataProcessors[i].processData(key))
-//                    return;
-//        PacketProcessor pp = (PacketProcessor) key.attachment();
-//        if (pp.changeToProcessing()) {
-//            key.interestOps(0);
-//            keysQueue.add(key);
-//            keysQueueSize.incrementAndGet();
-//        }
-    
-//    public SelectionKey getNextKey() {
-//        SelectionKey key = keysQueue.poll();
-//        if (key!=null) {
-//            int queueSize = keysQueueSize.decrementAndGet();
-//            if (queueSize<=dataProcessorsCount*5 && selectionThreadWaiting.compareAndSet(true, false))
-//                synchronized(keysQueue) {
-//                    keysQueue.notify();
-//                }
-//        }
-//        return key;
-//    }
-//    
-//    private boolean _submitOperationToDataProcessor(SelectionKey key) {
-//        PacketProcessor pp = (PacketProcessor) key.attachment();
-//        if ( !pp.isProcessing() && 
-//             (key.isReadable() || (key.isWritable() && pp.hasPacketForOutboundProcessing())) )
-//        {
-//            for (int i=0; i<dataProcessors.length; ++i)
-//                if (runningFlag[i] && dataProcessors[i].processData(key))
-//                    return true;
-//        }
-//        return false;
-//    }
-    
-    private void acceptIncomingConnection(Selector selector, SelectionKey key) {
-        PacketProcessor pp = (PacketProcessor) key.attachment();
-        try {
-            try {
-                if (logger.isDebugEnabled())
-                    logger.debug("Accepting incoming connection");
-                SocketChannel socketChannel = ((ServerSocketChannel)key.channel()).accept(); //can return null
-                socketChannel.configureBlocking(false);
-//                socketChannel.register(selector, 0, pp);
-                socketChannel.register(selector, genOpsForKey(0, pp), pp);
-            } catch (Throwable ex) {
-                pp.stopUnexpected(ex);
-            }
-        } finally {
-            closeKey(key);
-        }
-    }
-    
-    private void processPendingProcessors(Selector selector) {
-        if (pendingProcessorsLock.tryLock()) {
-            try {
-                for (PacketProcessor pp: pendingProcessors) {
-                    SelectableChannel channel = null;
-                    SelectionKey key = null;
-                    if (pp.isServerSideProcessor()) {
-                        if (logger.isDebugEnabled())
-                            logger.debug("Registering new server PacketProcessor: {}", pp);
-                        if (!pp.isDatagramProcessor())
-                            registerServerChannel(selector, pp);
-                        else
-                            registerDatagramServerChannel(selector, pp);
-                    } else {
-                        if (logger.isDebugEnabled())
-                            logger.debug("Registering new client PacketProcessor: {}", pp);
-                        if (!pp.isDatagramProcessor())
-                            registerClientChannel(selector, pp);
-                        else 
-                            registerDatagramClientChannel(selector, pp);
-                    }
-                }
-                pendingProcessors.clear();
-                hasPendingProcessors = false;
-            } finally {
-                pendingProcessorsLock.unlock();
-            }
-        } 
-    }
-    
-    private void registerDatagramClientChannel(Selector selector, PacketProcessor pp) {
-        SelectionKey key = null; DatagramChannel channel = null;
-        try {
-            channel = DatagramChannel.open();
-            channel.configureBlocking(false);
-            channel.socket().setTrafficClass(22);
-            channel.connect(pp.getAddress());
-            key = channel.register(selector, genOpsForKey(0, pp), pp);
-        } catch (Throwable e) {
-            stopPacketProcessorUnexpected(pp, key, channel, e);
-        }
-    }
-    
-    private void registerDatagramServerChannel(Selector selector, PacketProcessor pp) {
-        SelectionKey key = null; DatagramChannel channel = null;
-        try {
-            channel = DatagramChannel.open();
-            channel.configureBlocking(false);
-            channel.socket().bind(pp.getAddress());
-            key = channel.register(selector, genOpsForKey(0, pp), pp);
-//            key = channel.register(selector, genOpsForKey(0, pp), pp);
-        } catch (Throwable e) {
-            stopPacketProcessorUnexpected(pp, key, channel, e);
-        }
-    }
-    
-    private void registerServerChannel(Selector selector, PacketProcessor pp) {
-        SelectionKey key = null; ServerSocketChannel channel = null;
-        try {
-            channel = ServerSocketChannel.open();
-            channel.configureBlocking(false);
-            channel.socket().bind(pp.getAddress());
-            channel.register(selector, SelectionKey.OP_ACCEPT, pp);
-        } catch (Throwable e) {
-            stopPacketProcessorUnexpected(pp, key, channel, e);
-        }
-    }
-    
-    private void registerClientChannel(Selector selector, PacketProcessor pp) {
-        SelectionKey key = null; SocketChannel channel = null;
-        try {
-            channel = SocketChannel.open();
-            channel.configureBlocking(false);
-            key = channel.register(selector, SelectionKey.OP_CONNECT, pp);
-            channel.connect(pp.getAddress());
-        } catch (Throwable e) {
-            stopPacketProcessorUnexpected(pp, key, channel, e);
-        }
-    }
-        
-    private void stopPacketProcessorUnexpected(PacketProcessor pp, SelectionKey key
-            , Channel channel, Throwable e) 
-    {
-        if (key!=null)
-            key.cancel();
-        else if (channel!=null)
-            closeChannel(channel);
-        pp.stopUnexpected(e);
-    }
-    
-    private int genOpsForKey(int initialOps, PacketProcessor pp) {
-        return initialOps
-                | (pp.isNeedInboundProcessing()?SelectionKey.OP_READ:0)
-                | (pp.isNeedOutboundProcessing()?SelectionKey.OP_WRITE:0);
-    }
-    
-    private void closeKey(SelectionKey key) {
-        try {
-            if (logger.isDebugEnabled()) 
-                logger.debug("Unregistering packet processor: {}", ((PacketProcessor)key.attachment()));
-            key.cancel();
-            key.channel().close();
-        } catch (Throwable ex) {
-            if (logger.isErrorEnabled())
-                logger.error("Error closing SelectionKey and associated channel", ex);
-        }
-    }
-    
-    private void closeChannel(Channel channel) {
-        try {
-            channel.close();
-        } catch (Throwable ex) {
-            if (logger.isErrorEnabled())
-                logger.error("Error closing channel", ex);
-        }
-        
-    }
-    
+    /**
+     * Called by the first selector thread
+     */
     private void startNotStartedWorkers() {
         hasNotStartedWorkers = false;
         for (int i=0; i<dataProcessors.length; ++i)
@@ -421,6 +183,9 @@ public class AbstractPacketDispatcher<P extends PacketProcessor>
                 else
                     hasNotStartedWorkers = true;
             }
+        for (int i=1; i<lanes.length; ++i)
+            if (!lanes[i].running && !stopFlag.get())
+                startLane(lanes[i]);
     }
     
     private void createWorkers() {
@@ -438,32 +203,401 @@ public class AbstractPacketDispatcher<P extends PacketProcessor>
                 dataProcessor.stop();
     }
     
-//    protected abstract void executeOneCycle(Selector selector);
-    
-    private Selector createSelector() {
+    private void closeChannel(Channel channel) {
         try {
-            return Selector.open();
-        } catch (IOException ex) {
+            channel.close();
+        } catch (Throwable ex) {
             if (logger.isErrorEnabled())
-                logger.error("Error creating SELECTOR");
-            return null;
+                logger.error("Error closing channel", ex);
         }
     }
     
-    private void closeSelector(Selector selector) {
-        try {
-            Set<SelectionKey> keys = selector.keys();
-            if (keys!=null) {
+    private class SelectorLane implements Task, PacketProcessorListener {
+        private final int index;
+        private final LoggerHelper logger;
+        private final Queue<PacketProcessor> pendingProcessors = new ConcurrentLinkedQueue<PacketProcessor>();
+        private final Queue<SelectionKey> processedKeys = new ConcurrentLinkedQueue<SelectionKey>();
+        private final Queue<PacketProcessor> invalidatedProcessors = new ConcurrentLinkedQueue<PacketProcessor>();
+        private final Queue<PacketProcessor> readyProcessors = new ConcurrentLinkedQueue<PacketProcessor>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+        //accessed only by the selector thread
+        private final Map<PacketProcessor, SelectionKey> keys = new IdentityHashMap<PacketProcessor, SelectionKey>();
+        private final Set<SelectionKey> keysToArm = new LinkedHashSet<SelectionKey>();
+        private final List<SelectionKey> rejectedKeys = new ArrayList<SelectionKey>();
+        private long rejectedKeysRetryTime;
+        private int nextDataProcessor;
+        private volatile Selector selector;
+        private volatile boolean running = false;
+
+        public SelectorLane(int index, LoggerHelper logger) {
+            this.index = index;
+            this.logger = logger;
+            this.nextDataProcessor = index;
+        }
+
+        public Node getTaskNode() {
+            return owner;
+        }
+
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+        
+        public void addPacketProcessor(PacketProcessor pp) {
+            pendingProcessors.offer(pp);
+            wakeup();
+        }
+        
+        public void keyProcessed(SelectionKey key) {
+            processedKeys.offer(key);
+            wakeup();
+        }
+
+        public void processorInvalidated(PacketProcessor processor) {
+            invalidatedProcessors.offer(processor);
+            wakeup();
+        }
+
+        public void outboundPacketReady(PacketProcessor processor) {
+            readyProcessors.offer(processor);
+            wakeup();
+        }
+        
+        /**
+         * Wakes up the selector thread. The wakeups are coalesced until the selector thread returns from
+         * the selection
+         */
+        public void wakeup() {
+            final Selector _selector = selector;
+            if (_selector!=null && wakeupPending.compareAndSet(false, true))
+                _selector.wakeup();
+        }
+
+        public void run() {
+            running = true;
+            if (index>0 && logger.isDebugEnabled())
+                logger.debug("Started");
+            try {
+                while (!stopFlag.get()) {
+                    try {
+                        //the events queued after this point will wake up the selection
+                        wakeupPending.set(false);
+                        if (!pendingProcessors.isEmpty())
+                            registerPendingProcessors();
+                        if (!processedKeys.isEmpty()) {
+                            rearmProcessedKeys();
+                            //the worker has processed the keys so it can accept the rejected keys
+                            if (!rejectedKeys.isEmpty())
+                                armRejectedKeys();
+                        }
+                        if (!invalidatedProcessors.isEmpty())
+                            closeKeysOfInvalidatedProcessors();
+                        if (!readyProcessors.isEmpty())
+                            armReadyProcessors();
+                        if (index==0 && hasNotStartedWorkers)
+                            startNotStartedWorkers();
+                        if (!rejectedKeys.isEmpty() && System.currentTimeMillis()>=rejectedKeysRetryTime)
+                            armRejectedKeys();
+                        selector.select(getSelectTimeout());
+                        processSelection();
+                    } catch (Throwable e) {
+                        if (logger.isErrorEnabled())
+                            logger.error("Unexpected error in processing cycle", e);
+                    }
+                }
+            } finally {
+                closeSelector();
+                running = false;
+                if (index>0 && logger.isDebugEnabled())
+                    logger.debug("Stopped");
+            }
+        }
+        
+        private void processSelection() {
+            Set<SelectionKey> selectedKeys = selector.selectedKeys();
+            if (selectedKeys.isEmpty())
+                return;
+            KeysSet keysSet = null;
+            for (Iterator<SelectionKey> it = selectedKeys.iterator(); it.hasNext();) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid())
+                    continue;
+                PacketProcessor pp = (PacketProcessor) key.attachment();
+                if (!pp.isValid()) 
+                    closeKey(key);
+                else if (key.isAcceptable()) 
+                    acceptIncomingConnection(key);
+                else if (key.isConnectable()) 
+                    finishConnection(key);
+                else if (key.isReadable() || key.isWritable()) {
+                    key.interestOps(0);
+                    if (keysSet==null)
+                        keysSet = new KeysSetImpl(KEYS_SET_SIZE);
+                    if (!keysSet.add(key)) {
+                        submitKeysSetToDataProcessor(keysSet);
+                        keysSet = null;
+                    }
+                }
+            }
+            if (keysSet!=null)
+                submitKeysSetToDataProcessor(keysSet.switchToWaitingForProcess());
+        }
+
+        private void submitKeysSetToDataProcessor(KeysSet keysSet) {
+            for (int attempt=0; attempt<dataProcessors.length; ++attempt) {
+                if (nextDataProcessor>=dataProcessors.length)
+                    nextDataProcessor = 0;
+                if (runningFlag[nextDataProcessor] && dataProcessors[nextDataProcessor++].processData(keysSet)) 
+                    return;
+            }
+            //all data processors are busy, the keys stay disarmed until the data processor frees up
+            if (rejectedKeys.isEmpty())
+                rejectedKeysRetryTime = System.currentTimeMillis()+REJECTED_KEYS_RETRY_INTERVAL;
+            SelectionKey key;
+            while ( (key = keysSet.getNext())!=null ) {
+                ((PacketProcessor)key.attachment()).changeToUnprocessing();
+                keysToArm.remove(key);
+                rejectedKeys.add(key);
+            }
+        }
+        
+        private void armRejectedKeys() {
+            for (SelectionKey key: rejectedKeys)
+                armKey(key);
+            rejectedKeys.clear();
+        }
+        
+        private long getSelectTimeout() {
+            long timeout = index==0 && hasNotStartedWorkers? START_RETRY_INTERVAL : 0;
+            if (!rejectedKeys.isEmpty()) {
+                final long retryTimeout = Math.max(1, rejectedKeysRetryTime-System.currentTimeMillis());
+                timeout = timeout==0? retryTimeout : Math.min(timeout, retryTimeout);
+            }
+            return timeout;
+        }
+        
+        private void rearmProcessedKeys() {
+            SelectionKey key;
+            while ( (key = processedKeys.poll())!=null ) 
+                armKey(key);
+        }
+        
+        private void closeKeysOfInvalidatedProcessors() {
+            PacketProcessor pp;
+            while ( (pp = invalidatedProcessors.poll())!=null ) {
+                SelectionKey key = keys.get(pp);
+                //the key of the processor that is in processing will be closed after the processing
+                if (key!=null && !pp.isProcessing())
+                    closeKey(key);
+            }
+        }
+        
+        private void armReadyProcessors() {
+            PacketProcessor pp;
+            while ( (pp = readyProcessors.poll())!=null ) {
+                SelectionKey key = keys.get(pp);
+                //the key of the processor that is in processing will be armed after the processing
+                if (key!=null && key.isValid() && !pp.isProcessing() && keysToArm.contains(key))
+                    armKey(key);
+            }
+        }
+        
+        /**
+         * Arms the key for the operations required by the packet processor. The key of the processor
+         * without the packet for outbound processing is not armed for writing until the processor signals
+         * about the packet.
+         */
+        private void armKey(SelectionKey key) {
+            if (!key.isValid())
+                return;
+            PacketProcessor pp = (PacketProcessor) key.attachment();
+            if (!pp.isValid()) {
+                closeKey(key);
+                return;
+            }
+            int ops = pp.isNeedInboundProcessing()? SelectionKey.OP_READ : 0;
+            if (pp.isNeedOutboundProcessing()) {
+                if (pp.hasPacketForOutboundProcessing()) {
+                    ops |= SelectionKey.OP_WRITE;
+                    keysToArm.remove(key);
+                } else
+                    keysToArm.add(key);
+            }
+            key.interestOps(ops);
+        }
+        
+        private void acceptIncomingConnection(SelectionKey key) {
+            PacketProcessor pp = (PacketProcessor) key.attachment();
+            try {
+                try {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Accepting incoming connection");
+                    SocketChannel socketChannel = ((ServerSocketChannel)key.channel()).accept(); //can return null
+                    socketChannel.configureBlocking(false);
+                    keys.put(pp, socketChannel.register(selector, 0, pp));
+                    armKey(keys.get(pp));
+                } catch (Throwable ex) {
+                    pp.stopUnexpected(ex);
+                }
+            } finally {
+                closeKey(key);
+            }
+        }
+        
+        private void finishConnection(SelectionKey key) {
+            PacketProcessor pp = (PacketProcessor) key.attachment();
+            try {
+                if (((SocketChannel)key.channel()).finishConnect())
+                    armKey(key);
+            } catch (Throwable ex) {
+                closeKey(key);
+                pp.stopUnexpected(ex);
+            }
+        }
+
+        private void registerPendingProcessors() {
+            PacketProcessor pp;
+            while ( (pp = pendingProcessors.poll())!=null ) {
+                if (!pp.isValid())
+                    continue;
+                pp.setListener(this);
+                if (pp.isServerSideProcessor()) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Registering new server PacketProcessor: {}", pp);
+                    if (!pp.isDatagramProcessor())
+                        registerServerChannel(pp);
+                    else
+                        registerDatagramServerChannel(pp);
+                } else {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Registering new client PacketProcessor: {}", pp);
+                    if (!pp.isDatagramProcessor())
+                        registerClientChannel(pp);
+                    else 
+                        registerDatagramClientChannel(pp);
+                }
+            }
+        }
+
+        private void registerDatagramClientChannel(PacketProcessor pp) {
+            SelectionKey key = null; DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTrafficClass(22);
+                channel.connect(pp.getAddress());
+                key = registerChannel(channel, 0, pp);
+                armKey(key);
+            } catch (Throwable e) {
+                stopPacketProcessorUnexpected(pp, key, channel, e);
+            }
+        }
+
+        private void registerDatagramServerChannel(PacketProcessor pp) {
+            SelectionKey key = null; DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().bind(pp.getAddress());
+                key = registerChannel(channel, 0, pp);
+                armKey(key);
+            } catch (Throwable e) {
+                stopPacketProcessorUnexpected(pp, key, channel, e);
+            }
+        }
+
+        private void registerServerChannel(PacketProcessor pp) {
+            SelectionKey key = null; ServerSocketChannel channel = null;
+            try {
+                channel = ServerSocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().bind(pp.getAddress());
+                key = registerChannel(channel, SelectionKey.OP_ACCEPT, pp);
+            } catch (Throwable e) {
+                stopPacketProcessorUnexpected(pp, key, channel, e);
+            }
+        }
+
+        private void registerClientChannel(PacketProcessor pp) {
+            SelectionKey key = null; SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                key = registerChannel(channel, SelectionKey.OP_CONNECT, pp);
+                if (channel.connect(pp.getAddress()))
+                    armKey(key);
+            } catch (Throwable e) {
+                stopPacketProcessorUnexpected(pp, key, channel, e);
+            }
+        }
+        
+        private SelectionKey registerChannel(SelectableChannel channel, int ops, PacketProcessor pp) 
+            throws ClosedChannelException
+        {
+            SelectionKey key = channel.register(selector, ops, pp);
+            keys.put(pp, key);
+            return key;
+        }
+
+        private void stopPacketProcessorUnexpected(PacketProcessor pp, SelectionKey key
+                , Channel channel, Throwable e) 
+        {
+            if (key!=null)
+                closeKey(key);
+            else if (channel!=null)
+                closeChannel(channel);
+            pp.stopUnexpected(e);
+        }
+
+        private void closeKey(SelectionKey key) {
+            PacketProcessor pp = (PacketProcessor) key.attachment();
+            try {
+                if (logger.isDebugEnabled()) 
+                    logger.debug("Unregistering packet processor: {}", pp);
+                if (keys.get(pp)==key)
+                    keys.remove(pp);
+                keysToArm.remove(key);
+                key.cancel();
+                key.channel().close();
+            } catch (Throwable ex) {
+                if (logger.isErrorEnabled())
+                    logger.error("Error closing SelectionKey and associated channel", ex);
+            }
+        }
+        
+        private boolean openSelector() {
+            try {
+                selector = Selector.open();
+                return true;
+            } catch (IOException ex) {
+                if (logger.isErrorEnabled())
+                    logger.error("Error creating SELECTOR");
+                return false;
+            }
+        }
+
+        private void closeSelector() {
+            final Selector _selector = selector;
+            if (_selector==null || !_selector.isOpen())
+                return;
+            try {
                 Exception e  = new Exception("SelectorDispatcher was closed");
-                for (SelectionKey key: keys) {
+                for (SelectionKey key: _selector.keys()) {
                     ((PacketProcessor)key.attachment()).stopUnexpected(e);
                     closeChannel(key.channel());
                 }
+                _selector.close();
+            } catch (IOException ex) {
+                if (logger.isErrorEnabled())
+                    logger.error("Error closing SELECTOR");
             }
-            selector.close();
-        } catch (IOException ex) {
-            if (logger.isErrorEnabled())
-                logger.error("Error closing SELECTOR");
+            keys.clear();
+            keysToArm.clear();
+            pendingProcessors.clear();
+            processedKeys.clear();
+            invalidatedProcessors.clear();
+            readyProcessors.clear();
         }
     }
 }
@@ -24,6 +24,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.onesec.raven.net.ByteBufferHolder;
 import org.onesec.raven.net.ByteBufferPool;
 import org.onesec.raven.net.PacketProcessor;
+import org.onesec.raven.net.PacketProcessorListener;
 import org.raven.tree.impl.LoggerHelper;
 
 /**
@@ -48,6 +49,7 @@ public abstract class AbstractPacketProcessor implements PacketProcessor {
     private boolean stoppingOutboundProcessing = false;
     
     private final AtomicBoolean processing = new AtomicBoolean(false);
+    private volatile PacketProcessorListener listener;
 
     public AbstractPacketProcessor(SocketAddress address, boolean needInboundProcessing
             , boolean needOutboundProcessing, boolean serverSideProcessor, boolean datagramProcessor
@@ -131,6 +133,18 @@ public abstract class AbstractPacketProcessor implements PacketProcessor {
     protected abstract ProcessResult doProcessOutboundBuffer(ByteBuffer buffer) throws Exception;
     protected abstract boolean containsPacketsForOutboundProcessing();
 
+    /**
+     * Must be called by the processor when the packet for outbound processing appeared outside of the
+     * inbound processing (in the other thread or by the timer). The dispatcher does not poll the processors
+     * for the outbound packets, it checks them only after the processing of the channel operation and on
+     * this signal.
+     */
+    protected void outboundPacketReady() {
+        final PacketProcessorListener _listener = listener;
+        if (_listener!=null)
+            _listener.outboundPacketReady(this);
+    }
+
     public boolean isNeedInboundProcessing() {
         return needInboundProcessing;
     }
@@ -148,20 +162,33 @@ public abstract class AbstractPacketProcessor implements PacketProcessor {
     }
 
     public void stopUnexpected(Throwable e) {
+        if (!validFlag.compareAndSet(true, false))
+            return;
         try {
-            if (!validFlag.compareAndSet(true, false))
-                return;
             if (logger.isErrorEnabled())
                 logger.error("Unexpected processing stop", e);
             doStopUnexpected(e);
         } finally {
             releaseResources();
+            fireProcessorInvalidated();
         }
     }
 
     public void stop() {
-        if (validFlag.compareAndSet(true, false)) 
+        if (validFlag.compareAndSet(true, false)) {
             releaseResources();
+            fireProcessorInvalidated();
+        }
+    }
+
+    public void setListener(PacketProcessorListener listener) {
+        this.listener = listener;
+    }
+
+    private void fireProcessorInvalidated() {
+        final PacketProcessorListener _listener = listener;
+        if (_listener!=null)
+            _listener.processorInvalidated(this);
     }
     
     private void releaseResources() {
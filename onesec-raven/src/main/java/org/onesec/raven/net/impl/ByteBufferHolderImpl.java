@@ -26,10 +26,22 @@ import org.onesec.raven.net.ByteBufferHolder;
 public class ByteBufferHolderImpl implements ByteBufferHolder {
     private final AtomicBoolean useFlag = new AtomicBoolean(false);
     private final ByteBuffer buffer;
+    private final ByteBufferPoolImpl pool;
+    private final int sizeClassIndex;
 
     public ByteBufferHolderImpl(int bufferSize) {
+        this(null, -1, bufferSize);
+    }
+
+    ByteBufferHolderImpl(ByteBufferPoolImpl pool, int sizeClassIndex, int bufferSize) {
 //        this.buffer = ByteBuffer.allocateDirect(bufferSize);
         this.buffer = ByteBuffer.allocate(bufferSize);
+        this.pool = pool;
+        this.sizeClassIndex = sizeClassIndex;
+    }
+
+    int getSizeClassIndex() {
+        return sizeClassIndex;
     }
     
     public boolean use() {
@@ -41,7 +53,10 @@ public class ByteBufferHolderImpl implements ByteBufferHolder {
     }
 
     public void release() {
-        if (useFlag.compareAndSet(true, false))
+        if (useFlag.compareAndSet(true, false)) {
             buffer.clear();
+            if (pool!=null)
+                pool.recycle(this);
+        }
     }
 }
@@ -15,82 +15,302 @@
  */
 package org.onesec.raven.net.impl;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.onesec.raven.net.ByteBufferHolder;
 import org.onesec.raven.net.ByteBufferPool;
 
 /**
+ * Byte buffer pool with power of two size classes. Released buffers are stored in the small per thread
+ * cache (not more than {@link #MAX_THREAD_CACHE_SIZE} buffers of the each size class), overflowed buffers
+ * are moved to the lock-free bounded free list of the size class. The free buffers of the thread caches and
+ * of the free list are counted together, when they reach the high water mark of the size class the
+ * released buffer is not retained by the pool. The caches of the terminated threads are released by the
+ * {@link #trim(int)} and when the cache for the new thread is created.
  *
  * @author Mikhail Titov
  */
 public class ByteBufferPoolImpl implements ByteBufferPool {
-    private final static Integer BUFFERS_LIST_INITIAL_CAPACITY = 64;
-    
-    private final Map<Integer, List<ByteBufferHolderImpl>> pool = new HashMap<Integer, List<ByteBufferHolderImpl>>();
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private volatile int buffersCount = 0;
+    public final static int MIN_BUFFER_SIZE = 64;
+    public final static int DEFAULT_MAX_POOLED_BUFFER_SIZE = 64*1024;
+    public final static int DEFAULT_THREAD_CACHE_SIZE = 16;
+    public final static int MAX_THREAD_CACHE_SIZE = 32;
+    public final static int DEFAULT_HIGH_WATER_MARK = 1024;
+
+    private final static int MIN_SIZE_CLASS = sizeClassOf(MIN_BUFFER_SIZE);
+
+    private final int maxPooledBufferSize;
+    private final int threadCacheSize;
+    private final FreeList[] freeLists;
+    //the number of the free buffers of the each size class in the thread caches
+    private final AtomicIntegerArray threadCachedCounts;
+    private final Queue<ThreadCache> threadCaches = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override protected ThreadCache initialValue() {
+            releaseTerminatedThreadCaches();
+            ThreadCache cache = new ThreadCache();
+            threadCaches.add(cache);
+            return cache;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public ByteBufferPoolImpl() {
+        this(DEFAULT_MAX_POOLED_BUFFER_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * @param maxPooledBufferSize buffers greater than this size are not pooled
+     * @param threadCacheSize the maximum number of buffers of the each size class cached by the thread
+     *      (not more than {@link #MAX_THREAD_CACHE_SIZE})
+     * @param highWaterMark the maximum number of free buffers of the each size class retained by the pool,
+     *      including the buffers of the thread caches (rounded up to the power of two)
+     */
+    public ByteBufferPoolImpl(int maxPooledBufferSize, int threadCacheSize, int highWaterMark) {
+        if (maxPooledBufferSize<MIN_BUFFER_SIZE)
+            throw new IllegalArgumentException("maxPooledBufferSize can't be less than "+MIN_BUFFER_SIZE);
+        if (highWaterMark<1)
+            throw new IllegalArgumentException("highWaterMark must be greater than zero");
+        this.maxPooledBufferSize = 1 << sizeClassOf(maxPooledBufferSize);
+        this.threadCacheSize = Math.min(Math.max(threadCacheSize, 0), MAX_THREAD_CACHE_SIZE);
+        this.freeLists = new FreeList[sizeClassOf(this.maxPooledBufferSize) - MIN_SIZE_CLASS + 1];
+        for (int i=0; i<freeLists.length; ++i)
+            freeLists[i] = new FreeList(highWaterMark);
+        this.threadCachedCounts = new AtomicIntegerArray(freeLists.length);
+    }
 
     public ByteBufferHolder getBuffer(int bufferSize) {
-        List<ByteBufferHolderImpl> bufferList = null;
-        lock.readLock().lock();
-        try {
-            bufferList = pool.get(bufferSize);
-            if (bufferList!=null) {
-                ByteBufferHolder holder = getFromList(bufferList, bufferSize);
-                if (holder!=null)
-                    return holder;
-            }
-        } finally {
-            lock.readLock().unlock();
+        if (bufferSize>maxPooledBufferSize) {
+            misses.incrementAndGet();
+            ByteBufferHolderImpl holder = new ByteBufferHolderImpl(null, -1, bufferSize);
+            holder.use();
+            return holder;
         }
-        return bufferList==null? createBuffersListAndByteBuffer(bufferSize) 
-                : createByteBufferAndAddToList(bufferList, bufferSize);
+        final int index = indexOf(bufferSize);
+        ByteBufferHolderImpl holder = threadCache.get().pop(index);
+        if (holder==null)
+            holder = freeLists[index].poll();
+        if (holder!=null)
+            hits.incrementAndGet();
+        else {
+            misses.incrementAndGet();
+            allocated.incrementAndGet();
+            holder = new ByteBufferHolderImpl(this, index, 1 << (index+MIN_SIZE_CLASS));
+        }
+        holder.use();
+        holder.getBuffer().limit(bufferSize);
+        return holder;
     }
 
+    /**
+     * Returns the number of buffers created by the pool and not discarded yet
+     */
     public int getBuffersCount() {
-        return buffersCount;
-    }
-    
-    private ByteBufferHolder getFromList(List<ByteBufferHolderImpl> bufferList, int bufferSize) {
-        for (ByteBufferHolderImpl holder: bufferList)
-            if (holder.use())
-                return holder;
-        return null;
-    }
-    
-    private ByteBufferHolder createBuffersListAndByteBuffer(int bufferSize) {
-        lock.writeLock().lock();
-        try {
-            List<ByteBufferHolderImpl> list = pool.get(bufferSize);
-            if (list==null) {
-                list = new ArrayList<ByteBufferHolderImpl>(BUFFERS_LIST_INITIAL_CAPACITY);
-                pool.put(bufferSize, list);
+        return (int) (allocated.get() - discarded.get());
+    }
+
+    public long getHitsCount() {
+        return hits.get();
+    }
+
+    public long getMissesCount() {
+        return misses.get();
+    }
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * Returns the number of free buffers in the shared free lists and in the thread caches
+     */
+    public int getFreeBuffersCount() {
+        int count = 0;
+        for (int i=0; i<freeLists.length; ++i)
+            count += freeLists[i].size() + threadCachedCounts.get(i);
+        return count;
+    }
+
+    /**
+     * Releases the caches of the terminated threads and the free buffers from the shared free lists leaving
+     * not more than <b>retainCount</b> free buffers in the each size class. The caches of the live threads
+     * are counted but not released (they are bounded by {@link #MAX_THREAD_CACHE_SIZE}), so more than
+     * <b>retainCount</b> buffers may stay in the size class
+     * @return the number of released buffers
+     */
+    public int trim(int retainCount) {
+        int count = releaseTerminatedThreadCaches();
+        for (int i=0; i<freeLists.length; ++i) {
+            final FreeList list = freeLists[i];
+            int released = 0;
+            while (list.size()+threadCachedCounts.get(i)>retainCount && list.poll()!=null)
+                ++released;
+            discarded.addAndGet(released);
+            count += released;
+        }
+        return count;
+    }
+
+    void recycle(ByteBufferHolderImpl holder) {
+        final int index = holder.getSizeClassIndex();
+        final FreeList list = freeLists[index];
+        if (list.size()+threadCachedCounts.get(index)>=list.capacity() 
+            || (!threadCache.get().push(index, holder) && !list.offer(holder)))
+        {
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Releases the buffers of the caches of the terminated threads. The terminated thread does not use its
+     * cache, so the cache can be released by the other thread
+     * @return the number of released buffers
+     */
+    private int releaseTerminatedThreadCaches() {
+        int count = 0;
+        for (Iterator<ThreadCache> it = threadCaches.iterator(); it.hasNext();) {
+            ThreadCache cache = it.next();
+            if (!cache.owner.isAlive()) {
+                it.remove();
+                count += cache.release();
+            }
+        }
+        return count;
+    }
+
+    private static int sizeClassOf(int size) {
+        return size<=1? 0 : 32 - Integer.numberOfLeadingZeros(size-1);
+    }
+
+    private static int indexOf(int bufferSize) {
+        return Math.max(sizeClassOf(bufferSize), MIN_SIZE_CLASS) - MIN_SIZE_CLASS;
+    }
+
+    private class ThreadCache {
+        private final Thread owner = Thread.currentThread();
+        private final ByteBufferHolderImpl[][] stacks = new ByteBufferHolderImpl[freeLists.length][];
+        private final int[] sizes = new int[freeLists.length];
+
+        public ByteBufferHolderImpl pop(int index) {
+            int size = sizes[index];
+            if (size==0)
+                return null;
+            sizes[index] = --size;
+            threadCachedCounts.decrementAndGet(index);
+            ByteBufferHolderImpl holder = stacks[index][size];
+            stacks[index][size] = null;
+            return holder;
+        }
+
+        public boolean push(int index, ByteBufferHolderImpl holder) {
+            int size = sizes[index];
+            if (size>=threadCacheSize)
+                return false;
+            ByteBufferHolderImpl[] stack = stacks[index];
+            if (stack==null)
+                stacks[index] = stack = new ByteBufferHolderImpl[threadCacheSize];
+            stack[size] = holder;
+            sizes[index] = size+1;
+            threadCachedCounts.incrementAndGet(index);
+            return true;
+        }
+
+        /**
+         * Releases the cached buffers. Must be called only after the termination of the owner thread
+         */
+        public int release() {
+            int count = 0;
+            for (int i=0; i<sizes.length; ++i) {
+                count += sizes[i];
+                threadCachedCounts.addAndGet(i, -sizes[i]);
+                sizes[i] = 0;
+                stacks[i] = null;
             }
-            ByteBufferHolderImpl bufferHolder = new ByteBufferHolderImpl(bufferSize);
-            bufferHolder.use();
-            list.add(bufferHolder);
-            buffersCount++;
-            return bufferHolder;
-        } finally {
-            lock.writeLock().unlock();
+            discarded.addAndGet(count);
+            return count;
         }
     }
-    
-    private ByteBufferHolder createByteBufferAndAddToList(List<ByteBufferHolderImpl> bufferList, int bufferSize) {
-        lock.writeLock().lock();
-        try {
-            ByteBufferHolderImpl bufferHolder = new ByteBufferHolderImpl(bufferSize);
-            bufferHolder.use();
-            bufferList.add(bufferHolder);
-            buffersCount++;
-            return bufferHolder;
-        } finally {
-            lock.writeLock().unlock();
+
+    /**
+     * Bounded lock-free multi-producer multi-consumer free list (the array based queue with per slot
+     * sequence numbers). The array based structure does not suffer from ABA problem of the linked stack
+     * with reused nodes and does not allocate nodes on the offer.
+     */
+    private static class FreeList {
+        private final AtomicReferenceArray<ByteBufferHolderImpl> items;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        public FreeList(int capacity) {
+            int size = 1 << sizeClassOf(capacity);
+            mask = size-1;
+            items = new AtomicReferenceArray<ByteBufferHolderImpl>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i=0; i<size; ++i)
+                sequences.set(i, i);
+        }
+
+        public boolean offer(ByteBufferHolderImpl holder) {
+            long pos = tail.get();
+            for (;;) {
+                int index = (int) (pos & mask);
+                long diff = sequences.get(index) - pos;
+                if (diff==0) {
+                    if (tail.compareAndSet(pos, pos+1)) {
+                        items.lazySet(index, holder);
+                        sequences.lazySet(index, pos+1);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff<0)
+                    return false;
+                else
+                    pos = tail.get();
+            }
+        }
+
+        public ByteBufferHolderImpl poll() {
+            long pos = head.get();
+            for (;;) {
+                int index = (int) (pos & mask);
+                long diff = sequences.get(index) - (pos+1);
+                if (diff==0) {
+                    if (head.compareAndSet(pos, pos+1)) {
+                        ByteBufferHolderImpl holder = items.get(index);
+                        items.lazySet(index, null);
+                        sequences.lazySet(index, pos+mask+1);
+                        return holder;
+                    }
+                    pos = head.get();
+                } else if (diff<0)
+                    return null;
+                else
+                    pos = head.get();
+            }
+        }
+
+        public int size() {
+            long size = tail.get() - head.get();
+            return size<0? 0 : (int) size;
+        }
+
+        public int capacity() {
+            return mask+1;
         }
     }
 }
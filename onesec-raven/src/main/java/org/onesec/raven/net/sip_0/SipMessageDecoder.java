@@ -20,7 +20,9 @@ import java.nio.ByteBuffer;
 /**
  *
  * @author Mikhail Titov
+ * @deprecated replaced by {@link org.onesec.raven.sip.impl.SipMessageDecoder}
  */
+@Deprecated
 public interface SipMessageDecoder {
     public SipMessage decode(ByteBuffer buffer) throws Exception;
 }
@@ -27,7 +27,9 @@ import org.slf4j.Logger;
 /**
  *
  * @author Mikhail Titov
+ * @deprecated replaced by {@link org.onesec.raven.sip.impl.SipMessageDecoder}
  */
+@Deprecated
 public class SipMessageDecoderImpl implements SipMessageDecoder, SipConstants {
     private final byte[] decodeBuffer;
     private final Logger logger;
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import java.util.Arrays;
+
+/**
+ * Adaptive jitter buffer of the received RTP stream. Packets are ordered by the sequence number and played
+ * out by the timestamps with the delay after the arrival of the first packet. The delay follows the
+ * interarrival jitter between the minimum and the maximum delay: it grows by one frame when a packet
+ * arrives too late and shrinks by one frame (the frame is dropped) when the buffered delay is greater
+ * than needed, but not more often than once per {@link #SHRINK_INTERVAL} frames.
+ *
+ * <p/>The frame missing at the playout time is concealed: the first concealed frame repeats the last
+ * played frame, the next ones are silence (if silence is known for the payload type). When the buffer
+ * is empty not more than {@link #MAX_UNDERRUN_FRAMES} frames are concealed, after that the playout is
+ * stopped until the next packet.
+ *
+ * <p/>All methods take the current time as the parameter so the buffer can be tested deterministically.
+ *
+ * @author Mikhail Titov
+ */
+public class JitterBuffer implements RtpSession.PayloadListener {
+    public final static int DEFAULT_CAPACITY = 64;
+    public final static int MAX_UNDERRUN_FRAMES = 5;
+    /**
+     * The minimum number of frames played between the delay reductions
+     */
+    public final static int SHRINK_INTERVAL = 50;
+    public final static int DEFAULT_FRAME_SAMPLES = 160;
+    private final static long NANOS_PER_SAMPLE = 1000000000L / RtpSession.CLOCK_RATE;
+    private final static long NANOS_PER_MS = 1000000L;
+
+    public static class Frame {
+        private int payloadType;
+        private int sequenceNumber;
+        private long timestamp;
+        private boolean marker;
+        private boolean concealed;
+        private byte[] data = new byte[0];
+        private int length;
+        private boolean occupied;
+
+        public int getPayloadType() {
+            return payloadType;
+        }
+
+        public int getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public boolean isMarker() {
+            return marker;
+        }
+
+        /**
+         * Returns <b>true</b> if the frame was generated by the buffer in place of the missing one
+         */
+        public boolean isConcealed() {
+            return concealed;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        private byte[] ensureCapacity(int len) {
+            if (data.length<len)
+                data = new byte[len];
+            return data;
+        }
+
+        private void copyFrom(Frame frame) {
+            payloadType = frame.payloadType;
+            sequenceNumber = frame.sequenceNumber;
+            timestamp = frame.timestamp;
+            marker = frame.marker;
+            concealed = frame.concealed;
+            length = frame.length;
+            System.arraycopy(frame.data, 0, ensureCapacity(length), 0, length);
+        }
+    }
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final Frame[] slots;
+    private final int mask;
+    private final Frame lastFrame = new Frame();
+
+    private boolean anchored = false;
+    private long basePlayout;
+    private long baseTimestamp;
+    private int nextSeq;
+    private long nextTimestamp;
+    private int highestSeq;
+    private int bufferedCount;
+    private int frameSamples = DEFAULT_FRAME_SAMPLES;
+    private long delay;
+    private int pendingStretches;
+    private int concealedInRow;
+    private int framesSinceAdjust;
+    //frames concealed on the buffer underrun, they are lost if the stream continues
+    private int underrunFrames;
+    private boolean hasLastFrame = false;
+
+    private double jitter;
+    private long lastTransit;
+    private boolean hasTransit = false;
+
+    private long received;
+    private long played;
+    private long late;
+    private long lost;
+    private long reordered;
+    private long discarded;
+    private long concealed;
+
+    /**
+     * @param minDelay the minimum playout delay in milliseconds
+     * @param maxDelay the maximum playout delay in milliseconds
+     */
+    public JitterBuffer(long minDelay, long maxDelay) {
+        this(minDelay, maxDelay, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of buffered frames (rounded up to the power of two)
+     */
+    public JitterBuffer(long minDelay, long maxDelay, int capacity) {
+        if (minDelay<0 || maxDelay<minDelay)
+            throw new IllegalArgumentException("Invalid jitter buffer delay range: "+minDelay+" - "+maxDelay);
+        this.minDelay = minDelay * NANOS_PER_MS;
+        this.maxDelay = maxDelay * NANOS_PER_MS;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new Frame[size];
+        this.mask = size - 1;
+        for (int i=0; i<size; ++i)
+            slots[i] = new Frame();
+    }
+
+    public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+        put(packet, payloadIndex, payloadLength, System.nanoTime());
+    }
+
+    /**
+     * Puts the received packet to the buffer. The payload is copied.
+     * @param now the arrival time of the packet in nanoseconds
+     */
+    public synchronized void put(final ByteBuf packet, final int payloadIndex, final int payloadLength,
+            final long now)
+    {
+        final int seq = RtpPacket.getSequenceNumber(packet);
+        final long timestamp = RtpPacket.getTimestamp(packet);
+        ++received;
+        updateJitter(timestamp, now);
+        if (!anchored)
+            anchor(seq, timestamp, now);
+        final int diff = (short) (seq - nextSeq);
+        if (diff>=0 && underrunFrames>0) {
+            lost += underrunFrames;
+            underrunFrames = 0;
+        }
+        if (diff<0) {
+            ++late;
+            grow();
+            return;
+        }
+        if (diff>mask) {
+            //too far ahead, the source was restarted or the buffer was stopped for a long time
+            discarded += bufferedCount;
+            clear();
+            anchor(seq, timestamp, now);
+        }
+        final Frame slot = slots[seq & mask];
+        if (slot.occupied) {
+            ++discarded;
+            return;
+        }
+        if (bufferedCount>0 && (short)(seq - highestSeq)<0)
+            ++reordered;
+        else
+            highestSeq = seq;
+        slot.occupied = true;
+        slot.payloadType = RtpPacket.getPayloadType(packet);
+        slot.sequenceNumber = seq;
+        slot.timestamp = timestamp;
+        slot.marker = RtpPacket.isMarker(packet);
+        slot.concealed = false;
+        slot.length = payloadLength;
+        packet.getBytes(payloadIndex, slot.ensureCapacity(payloadLength), 0, payloadLength);
+        ++bufferedCount;
+    }
+
+    /**
+     * Returns the next frame if its playout time has come
+     * @param now the current time in nanoseconds
+     * @param frame the frame which receives the data
+     * @return <b>false</b> if there is no frame to play now
+     */
+    public synchronized boolean poll(final long now, final Frame frame) {
+        while (anchored && now>=getPlayoutTime(nextTimestamp)) {
+            if (pendingStretches>0) {
+                --pendingStretches;
+                basePlayout += frameSamples * NANOS_PER_SAMPLE;
+                conceal(frame, false);
+                return true;
+            }
+            final Frame slot = slots[nextSeq & mask];
+            if (slot.occupied) {
+                slot.occupied = false;
+                --bufferedCount;
+                final int samples = RtpPayloadTypes.getSamplesCount(slot.payloadType, slot.length);
+                if (canShrink(samples)) {
+                    ++discarded;
+                    delay -= samples * NANOS_PER_SAMPLE;
+                    basePlayout -= samples * NANOS_PER_SAMPLE;
+                    framesSinceAdjust = 0;
+                    advance(samples);
+                    continue;
+                }
+                frameSamples = samples;
+                nextTimestamp = slot.timestamp;
+                advance(samples);
+                concealedInRow = 0;
+                ++framesSinceAdjust;
+                ++played;
+                lastFrame.copyFrom(slot);
+                hasLastFrame = true;
+                frame.copyFrom(slot);
+                return true;
+            } else if (bufferedCount>0) {
+                ++lost;
+                conceal(frame, true);
+                return true;
+            } else if (concealedInRow<MAX_UNDERRUN_FRAMES && hasLastFrame) {
+                ++underrunFrames;
+                conceal(frame, true);
+                return true;
+            } else {
+                //the stream is paused, the playout will be restarted by the next packet
+                anchored = false;
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resets the buffer. Statistics are not reset
+     */
+    public synchronized void reset() {
+        discarded += bufferedCount;
+        clear();
+    }
+
+    /**
+     * Returns the current playout delay in milliseconds
+     */
+    public synchronized long getDelay() {
+        return delay / NANOS_PER_MS;
+    }
+
+    /**
+     * Returns the target playout delay computed from the interarrival jitter in milliseconds
+     */
+    public synchronized long getTargetDelay() {
+        return getTargetDelayNanos() / NANOS_PER_MS;
+    }
+
+    /**
+     * Returns the interarrival jitter estimate in milliseconds
+     */
+    public synchronized double getJitter() {
+        return jitter / NANOS_PER_MS;
+    }
+
+    public synchronized int getBufferedCount() {
+        return bufferedCount;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getPlayed() {
+        return played;
+    }
+
+    /**
+     * Returns the number of packets arrived after their playout time
+     */
+    public synchronized long getLate() {
+        return late;
+    }
+
+    /**
+     * Returns the number of frames missing at their playout time (concealed frames followed by the next
+     * frames of the stream)
+     */
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    /**
+     * Returns the number of packets received out of the order
+     */
+    public synchronized long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * Returns the number of dropped packets: duplicates, overflow and the frames dropped to reduce the delay
+     */
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    public synchronized long getConcealed() {
+        return concealed;
+    }
+
+    private long getPlayoutTime(long timestamp) {
+        return basePlayout + ((int)(timestamp - baseTimestamp)) * NANOS_PER_SAMPLE;
+    }
+
+    private long getTargetDelayNanos() {
+        return Math.max(minDelay, Math.min(maxDelay, (long) (3 * jitter)));
+    }
+
+    private void anchor(int seq, long timestamp, long now) {
+        anchored = true;
+        delay = Math.max(delay, getTargetDelayNanos());
+        basePlayout = now + delay;
+        baseTimestamp = timestamp;
+        nextSeq = seq;
+        nextTimestamp = timestamp;
+        highestSeq = seq;
+        pendingStretches = 0;
+        concealedInRow = 0;
+        underrunFrames = 0;
+    }
+
+    private void clear() {
+        for (Frame slot: slots)
+            slot.occupied = false;
+        bufferedCount = 0;
+        anchored = false;
+    }
+
+    private void advance(int samples) {
+        nextSeq = (nextSeq + 1) & 0xFFFF;
+        nextTimestamp = (nextTimestamp + samples) & 0xFFFFFFFFL;
+    }
+
+    private void grow() {
+        if (delay + frameSamples * NANOS_PER_SAMPLE <= maxDelay) {
+            delay += frameSamples * NANOS_PER_SAMPLE;
+            ++pendingStretches;
+            framesSinceAdjust = 0;
+        }
+    }
+
+    private boolean canShrink(int samples) {
+        return framesSinceAdjust>=SHRINK_INTERVAL
+                && delay - samples * NANOS_PER_SAMPLE >= getTargetDelayNanos()
+                && slots[(nextSeq + 1) & mask].occupied;
+    }
+
+    private void conceal(Frame frame, boolean advance) {
+        ++concealed;
+        ++concealedInRow;
+        frame.payloadType = lastFrame.payloadType;
+        frame.sequenceNumber = nextSeq;
+        frame.timestamp = nextTimestamp;
+        frame.marker = false;
+        frame.concealed = true;
+        frame.length = hasLastFrame? lastFrame.length : frameSamples;
+        final byte[] data = frame.ensureCapacity(frame.length);
+        final int silence = getSilence(frame.payloadType);
+        if ((concealedInRow==1 || silence<0) && hasLastFrame)
+            System.arraycopy(lastFrame.data, 0, data, 0, frame.length);
+        else
+            Arrays.fill(data, 0, frame.length, (byte) (silence<0? 0 : silence));
+        if (advance)
+            advance(frameSamples);
+    }
+
+    private void updateJitter(long timestamp, long now) {
+        final long transit = now - timestamp * NANOS_PER_SAMPLE;
+        if (hasTransit) {
+            long d = transit - lastTransit;
+            //the timestamp wrap is not a jitter
+            if (Math.abs(d) < (1L << 31) * NANOS_PER_SAMPLE)
+                jitter += (Math.abs(d) - jitter) / 16;
+        }
+        lastTransit = transit;
+        hasTransit = true;
+    }
+
+    private static int getSilence(int payloadType) {
+        switch (payloadType) {
+            case RtpPayloadTypes.PCMU: return 0xFF;
+            case RtpPayloadTypes.PCMA: return 0xD5;
+            default: return -1;
+        }
+    }
+}
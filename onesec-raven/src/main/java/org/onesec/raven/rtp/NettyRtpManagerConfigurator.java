@@ -32,6 +32,8 @@ import org.onesec.raven.net.NettyEventLoopGroupProvider;
 import org.onesec.raven.net.impl.BufHolderToBufDecoder;
 import org.raven.annotations.NodeClass;
 import org.raven.annotations.Parameter;
+import org.raven.sched.ExecutorService;
+import org.raven.sched.impl.SystemSchedulerValueHandlerFactory;
 import org.raven.tree.impl.BaseNode;
 import org.raven.tree.impl.LoggerHelper;
 import org.raven.tree.impl.NodeReferenceValueHandlerFactory;
@@ -43,7 +45,7 @@ import org.weda.internal.annotations.Service;
  * @author Mikhail Titov
  */
 @NodeClass
-public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerConfigurator {
+public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerConfigurator, RtpSessionFactory {
     
    
     @Service
@@ -52,12 +54,36 @@ public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerC
     @NotNull @Parameter(valueHandlerType = NodeReferenceValueHandlerFactory.TYPE)
     private NettyEventLoopGroupProvider eventLoopGroupProvider;
     
+    @Parameter(valueHandlerType = SystemSchedulerValueHandlerFactory.TYPE)
+    private ExecutorService executor;
+    
     @NotNull @Parameter(defaultValue = "true")
     private Boolean useBuffersPool;
     
     @NotNull @Parameter(defaultValue = "true")
     private Boolean preferDirectBuffer;
     
+    @NotNull @Parameter(defaultValue = "false")
+    private Boolean useNativeRtpEngine;
+    
+    @NotNull @Parameter(defaultValue = "5000")
+    private Long rtcpInterval;
+    
+    @NotNull @Parameter(defaultValue = "true")
+    private Boolean useJitterBuffer;
+    
+    @NotNull @Parameter(defaultValue = "40")
+    private Long jitterBufferMinDelay;
+    
+    @NotNull @Parameter(defaultValue = "200")
+    private Long jitterBufferMaxDelay;
+    
+    @NotNull @Parameter(defaultValue = "false")
+    private Boolean useTelephoneEvents;
+    
+    @NotNull @Parameter(defaultValue = "101")
+    private Integer telephoneEventPayloadType;
+    
     private ByteBufAllocator bufferAllocator;
 
     @Override
@@ -69,6 +95,8 @@ public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerC
     @Override
     protected void doStart() throws Exception {
         super.doStart();
+        if (useNativeRtpEngine && executor==null)
+            throw new Exception("The executor must be set when useNativeRtpEngine is true");
         bufferAllocator = useBuffersPool? 
                 new PooledByteBufAllocator(preferDirectBuffer) : 
                 new UnpooledByteBufAllocator(preferDirectBuffer);
@@ -96,6 +124,28 @@ public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerC
                 createManagerForUnknownRemotePort(localAddress, localPort, remoteAddress, logger);
     }
 
+    public boolean isNativeRtpEngineEnabled() {
+        return useNativeRtpEngine && isStarted();
+    }
+
+    public RtpSession createSession(InetAddress localAddress, int localPort, InetAddress remoteAddress, 
+            int remotePort, LoggerHelper logger) 
+        throws Exception 
+    {
+        RtpSession session = new RtpSession(eventLoopGroupProvider.getEventLoopGroup(), bufferAllocator, 
+                localAddress, localPort, remoteAddress, remotePort, rtcpInterval, logger);
+        session.open();
+        return session;
+    }
+
+    public JitterBuffer createJitterBuffer() {
+        return useJitterBuffer? new JitterBuffer(jitterBufferMinDelay, jitterBufferMaxDelay) : null;
+    }
+
+    public int getDtmfPayloadType() {
+        return useTelephoneEvents? telephoneEventPayloadType : -1;
+    }
+
     private Bootstrap createBootstrap() {
         return new Bootstrap()
                 .group(eventLoopGroupProvider.getEventLoopGroup())
@@ -158,6 +208,14 @@ public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerC
         return manager;
     }
     
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     public NettyEventLoopGroupProvider getEventLoopGroupProvider() {
         return eventLoopGroupProvider;
     }
@@ -174,6 +232,62 @@ public class NettyRtpManagerConfigurator extends BaseNode implements RtpManagerC
         this.preferDirectBuffer = preferDirectBuffer;
     }
 
+    public Boolean getUseNativeRtpEngine() {
+        return useNativeRtpEngine;
+    }
+
+    public void setUseNativeRtpEngine(Boolean useNativeRtpEngine) {
+        this.useNativeRtpEngine = useNativeRtpEngine;
+    }
+
+    public Long getRtcpInterval() {
+        return rtcpInterval;
+    }
+
+    public void setRtcpInterval(Long rtcpInterval) {
+        this.rtcpInterval = rtcpInterval;
+    }
+
+    public Boolean getUseJitterBuffer() {
+        return useJitterBuffer;
+    }
+
+    public void setUseJitterBuffer(Boolean useJitterBuffer) {
+        this.useJitterBuffer = useJitterBuffer;
+    }
+
+    public Long getJitterBufferMinDelay() {
+        return jitterBufferMinDelay;
+    }
+
+    public void setJitterBufferMinDelay(Long jitterBufferMinDelay) {
+        this.jitterBufferMinDelay = jitterBufferMinDelay;
+    }
+
+    public Long getJitterBufferMaxDelay() {
+        return jitterBufferMaxDelay;
+    }
+
+    public void setJitterBufferMaxDelay(Long jitterBufferMaxDelay) {
+        this.jitterBufferMaxDelay = jitterBufferMaxDelay;
+    }
+
+    public Boolean getUseTelephoneEvents() {
+        return useTelephoneEvents;
+    }
+
+    public void setUseTelephoneEvents(Boolean useTelephoneEvents) {
+        this.useTelephoneEvents = useTelephoneEvents;
+    }
+
+    public Integer getTelephoneEventPayloadType() {
+        return telephoneEventPayloadType;
+    }
+
+    public void setTelephoneEventPayloadType(Integer telephoneEventPayloadType) {
+        this.telephoneEventPayloadType = telephoneEventPayloadType;
+    }
+
     public Boolean getUseBuffersPool() {
         return useBuffersPool;
     }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Builds and reads the RTCP packets (RFC 3550) in place. Only the packets required by the RTP session are
+ * supported: SR, RR, SDES with CNAME item and BYE.
+ *
+ * @author Mikhail Titov
+ */
+public class RtcpPacket {
+    public final static int SR = 200;
+    public final static int RR = 201;
+    public final static int SDES = 202;
+    public final static int BYE = 203;
+    public final static int APP = 204;
+
+    public final static int SDES_CNAME = 1;
+    public final static int HEADER_SIZE = 4;
+    public final static int SR_SIZE = 28;
+
+    private final static long NTP_EPOCH_OFFSET = 2208988800L;
+
+    private RtcpPacket() {}
+
+    /**
+     * Converts the java time to the 64 bit NTP timestamp
+     */
+    public static long toNtpTimestamp(final long timeMillis) {
+        final long seconds = timeMillis / 1000 + NTP_EPOCH_OFFSET;
+        final long fraction = ((timeMillis % 1000) << 32) / 1000;
+        return (seconds << 32) | fraction;
+    }
+
+    /**
+     * Writes the sender report. If <b>receiver</b> is not null and has the reception state then the report
+     * block about the remote source is added to the report.
+     */
+    public static void writeSenderReport(final ByteBuf buf, final int ssrc, final long ntpTimestamp,
+            final long rtpTimestamp, final long packetCount, final long octetCount,
+            final RtpReceiver receiver, final long nowNanos)
+    {
+        final int start = buf.writerIndex();
+        writeHeader(buf, 0, SR);
+        buf.writeInt(ssrc);
+        buf.writeLong(ntpTimestamp);
+        buf.writeInt((int) rtpTimestamp);
+        buf.writeInt((int) packetCount);
+        buf.writeInt((int) octetCount);
+        final boolean hasBlock = receiver!=null && receiver.writeReportBlock(buf, nowNanos);
+        completePacket(buf, start, hasBlock? 1 : 0);
+    }
+
+    /**
+     * Writes the receiver report with the report block about the remote source (if it was received)
+     */
+    public static void writeReceiverReport(final ByteBuf buf, final int ssrc, final RtpReceiver receiver,
+            final long nowNanos)
+    {
+        final int start = buf.writerIndex();
+        writeHeader(buf, 0, RR);
+        buf.writeInt(ssrc);
+        final boolean hasBlock = receiver!=null && receiver.writeReportBlock(buf, nowNanos);
+        completePacket(buf, start, hasBlock? 1 : 0);
+    }
+
+    /**
+     * Writes the SDES packet with one chunk holding the CNAME item
+     */
+    public static void writeSdes(final ByteBuf buf, final int ssrc, final byte[] cname) {
+        final int start = buf.writerIndex();
+        writeHeader(buf, 1, SDES);
+        buf.writeInt(ssrc);
+        buf.writeByte(SDES_CNAME);
+        buf.writeByte(cname.length);
+        buf.writeBytes(cname);
+        //the list of items is terminated by the null octet and padded to the 32 bit boundary
+        do {
+            buf.writeByte(0);
+        } while (((buf.writerIndex() - start) & 0x03) != 0);
+        completePacket(buf, start, 1);
+    }
+
+    public static void writeBye(final ByteBuf buf, final int ssrc) {
+        final int start = buf.writerIndex();
+        writeHeader(buf, 1, BYE);
+        buf.writeInt(ssrc);
+        completePacket(buf, start, 1);
+    }
+
+    public static int getVersion(final ByteBuf buf, final int offset) {
+        return (buf.getUnsignedByte(offset) >> 6) & 0x03;
+    }
+
+    public static int getCount(final ByteBuf buf, final int offset) {
+        return buf.getByte(offset) & 0x1F;
+    }
+
+    public static int getPacketType(final ByteBuf buf, final int offset) {
+        return buf.getUnsignedByte(offset+1);
+    }
+
+    /**
+     * Returns the length of the packet in bytes (including the header)
+     */
+    public static int getLength(final ByteBuf buf, final int offset) {
+        return (buf.getUnsignedShort(offset+2) + 1) * 4;
+    }
+
+    public static int getSsrc(final ByteBuf buf, final int offset) {
+        return buf.getInt(offset+4);
+    }
+
+    /**
+     * Returns the NTP timestamp of the sender report
+     */
+    public static long getNtpTimestamp(final ByteBuf buf, final int offset) {
+        return buf.getLong(offset+8);
+    }
+
+    private static void writeHeader(final ByteBuf buf, final int count, final int packetType) {
+        buf.writeByte((RtpPacket.VERSION << 6) | count);
+        buf.writeByte(packetType);
+        buf.writeShort(0);
+    }
+
+    private static void completePacket(final ByteBuf buf, final int start, final int count) {
+        buf.setByte(start, (RtpPacket.VERSION << 6) | count);
+        buf.setShort(start+2, (buf.writerIndex() - start) / 4 - 1);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Access to the fields of the RTP packet (RFC 3550) stored in the {@link ByteBuf}. Fields are read in place
+ * (relative to the reader index of the buffer), neither the packet nor the header is copied.
+ *
+ * @author Mikhail Titov
+ */
+public class RtpPacket {
+    public final static int VERSION = 2;
+    public final static int HEADER_SIZE = 12;
+    public final static int MAX_PAYLOAD_TYPE = 127;
+
+    private RtpPacket() {}
+
+    /**
+     * Returns <b>true</b> if the buffer holds the RTP packet of the version 2 with the consistent lengths of
+     * the CSRC list, the header extension and the padding
+     */
+    public static boolean isValid(final ByteBuf buf) {
+        final int len = buf.readableBytes();
+        if (len<HEADER_SIZE || getVersion(buf)!=VERSION)
+            return false;
+        final int payloadOffset = getPayloadOffset(buf);
+        return payloadOffset<=len && getPayloadLength(buf)>=0;
+    }
+
+    public static int getVersion(final ByteBuf buf) {
+        return (buf.getUnsignedByte(buf.readerIndex()) >> 6) & 0x03;
+    }
+
+    public static boolean hasPadding(final ByteBuf buf) {
+        return (buf.getByte(buf.readerIndex()) & 0x20) != 0;
+    }
+
+    public static boolean hasExtension(final ByteBuf buf) {
+        return (buf.getByte(buf.readerIndex()) & 0x10) != 0;
+    }
+
+    public static int getCsrcCount(final ByteBuf buf) {
+        return buf.getByte(buf.readerIndex()) & 0x0F;
+    }
+
+    public static boolean isMarker(final ByteBuf buf) {
+        return (buf.getByte(buf.readerIndex()+1) & 0x80) != 0;
+    }
+
+    public static int getPayloadType(final ByteBuf buf) {
+        return buf.getByte(buf.readerIndex()+1) & 0x7F;
+    }
+
+    public static int getSequenceNumber(final ByteBuf buf) {
+        return buf.getUnsignedShort(buf.readerIndex()+2);
+    }
+
+    public static long getTimestamp(final ByteBuf buf) {
+        return buf.getUnsignedInt(buf.readerIndex()+4);
+    }
+
+    public static int getSsrc(final ByteBuf buf) {
+        return buf.getInt(buf.readerIndex()+8);
+    }
+
+    /**
+     * Returns the offset of the payload relative to the reader index of the buffer
+     */
+    public static int getPayloadOffset(final ByteBuf buf) {
+        int offset = HEADER_SIZE + getCsrcCount(buf)*4;
+        if (hasExtension(buf)) {
+            if (buf.readableBytes()<offset+4)
+                return Integer.MAX_VALUE;
+            offset += 4 + buf.getUnsignedShort(buf.readerIndex()+offset+2)*4;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the payload length without the padding or -1 if the packet is malformed
+     */
+    public static int getPayloadLength(final ByteBuf buf) {
+        final int len = buf.readableBytes();
+        final int payloadOffset = getPayloadOffset(buf);
+        if (payloadOffset>len)
+            return -1;
+        final int padding = hasPadding(buf) && len>payloadOffset? buf.getUnsignedByte(buf.writerIndex()-1) : 0;
+        return len - payloadOffset - padding;
+    }
+
+    /**
+     * Writes the RTP header without CSRC list and extension to the buffer
+     */
+    public static ByteBuf writeHeader(final ByteBuf buf, final boolean marker, final int payloadType,
+            final int sequenceNumber, final long timestamp, final int ssrc)
+    {
+        buf.writeByte(VERSION << 6);
+        buf.writeByte((marker? 0x80 : 0) | (payloadType & 0x7F));
+        buf.writeShort(sequenceNumber);
+        buf.writeInt((int) timestamp);
+        buf.writeInt(ssrc);
+        return buf;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import javax.media.Format;
+import javax.media.format.AudioFormat;
+import org.onesec.raven.codec.AlawAudioFormat;
+import org.onesec.raven.ivr.Codec;
+
+/**
+ * The static RTP payload types (RFC 3551) supported by the native RTP engine and their JMF formats
+ *
+ * @author Mikhail Titov
+ */
+public class RtpPayloadTypes {
+    public final static int PCMU = 0;
+    public final static int PCMA = 8;
+    public final static int G729 = 18;
+    public final static int[] SUPPORTED = new int[]{PCMU, PCMA, G729};
+
+    private RtpPayloadTypes() {}
+
+    /**
+     * Returns the JMF format of the payload type or null if payload type is not supported
+     */
+    public static AudioFormat getFormat(final int payloadType) {
+        switch (payloadType) {
+            case PCMU: return Codec.G711_MU_LAW.getAudioFormat();
+            case PCMA: return Codec.G711_A_LAW.getAudioFormat();
+            case G729: return Codec.G729.getAudioFormat();
+            default: return null;
+        }
+    }
+
+    /**
+     * Returns the payload type of the JMF format or -1 if format is not supported
+     */
+    public static int getPayloadType(final Format format) {
+        final String encoding = format==null? null : format.getEncoding();
+        if (AudioFormat.ULAW_RTP.equals(encoding))
+            return PCMU;
+        else if (AlawAudioFormat.ALAW_RTP.equals(encoding))
+            return PCMA;
+        else if (AudioFormat.G729_RTP.equals(encoding))
+            return G729;
+        return -1;
+    }
+
+    /**
+     * Returns the duration of the payload in timestamp units (samples)
+     */
+    public static int getSamplesCount(final int payloadType, final int payloadLength) {
+        //G.729 frame is 10 bytes for 10 ms (80 samples), G.711 is one byte per sample
+        return payloadType==G729? payloadLength*8 : payloadLength;
+    }
+}
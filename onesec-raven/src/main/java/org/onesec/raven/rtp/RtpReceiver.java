@@ -15,10 +15,199 @@
  */
 package org.onesec.raven.rtp;
 
+import io.netty.buffer.ByteBuf;
+
 /**
+ * The reception state of the one RTP source: sequence number validation, packet loss and interarrival
+ * jitter (RFC 3550 appendixes A.1, A.3 and A.8). The state is used to build the report block of the RTCP
+ * receiver and sender reports.
  *
-* @author Mikhail Titov
+ * @author Mikhail Titov
  */
 public class RtpReceiver {
-    
+    public final static int MIN_SEQUENTIAL = 2;
+    public final static int MAX_DROPOUT = 3000;
+    public final static int MAX_MISORDER = 100;
+    public final static int RTP_SEQ_MOD = 1 << 16;
+    public final static int REPORT_BLOCK_SIZE = 24;
+
+    private final int clockRate;
+    private boolean initialized = false;
+    private int ssrc;
+    private int maxSeq;
+    private int cycles;
+    private int baseSeq;
+    private int badSeq;
+    private int probation;
+    private long received;
+    private long expectedPrior;
+    private long receivedPrior;
+    private long baseArrival;
+    private long lastTransit;
+    private boolean hasTransit;
+    private long jitter;
+    private long lastSr;
+    private long lastSrArrival;
+
+    /**
+     * @param clockRate the RTP clock rate of the source (timestamp units per second)
+     */
+    public RtpReceiver(int clockRate) {
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Updates the state by the received packet.
+     * @param arrivalNanos the arrival time of the packet ({@link System#nanoTime()})
+     * @return <b>true</b> if the packet must be delivered or <b>false</b> if the source is not validated
+     *      yet or the packet is out of the sequence
+     */
+    public synchronized boolean update(final int packetSsrc, final int seq, final long timestamp,
+            final long arrivalNanos)
+    {
+        if (!initialized || packetSsrc!=ssrc) {
+            initialized = true;
+            ssrc = packetSsrc;
+            initSeq(seq);
+            maxSeq = seq - 1;
+            probation = MIN_SEQUENTIAL;
+            baseArrival = arrivalNanos;
+            hasTransit = false;
+            jitter = 0;
+        }
+        if (!updateSeq(seq))
+            return false;
+        updateJitter(timestamp, arrivalNanos);
+        return true;
+    }
+
+    private void initSeq(final int seq) {
+        baseSeq = seq;
+        maxSeq = seq;
+        badSeq = RTP_SEQ_MOD + 1;
+        cycles = 0;
+        received = 0;
+        receivedPrior = 0;
+        expectedPrior = 0;
+    }
+
+    private boolean updateSeq(final int seq) {
+        final int udelta = (seq - maxSeq) & 0xFFFF;
+        if (probation>0) {
+            if (seq==((maxSeq + 1) & 0xFFFF)) {
+                --probation;
+                maxSeq = seq;
+                if (probation==0) {
+                    initSeq(seq);
+                    ++received;
+                    return true;
+                }
+            } else {
+                probation = MIN_SEQUENTIAL - 1;
+                maxSeq = seq;
+            }
+            return false;
+        } else if (udelta<MAX_DROPOUT) {
+            if (seq<maxSeq)
+                cycles += RTP_SEQ_MOD;
+            maxSeq = seq;
+        } else if (udelta<=RTP_SEQ_MOD - MAX_MISORDER) {
+            if (seq==badSeq) {
+                //two sequential packets, assume that the other side restarted without telling us
+                initSeq(seq);
+            } else {
+                badSeq = (seq + 1) & (RTP_SEQ_MOD - 1);
+                return false;
+            }
+        } else {
+            //duplicate or reordered packet
+        }
+        ++received;
+        return true;
+    }
+
+    private void updateJitter(final long timestamp, final long arrivalNanos) {
+        final long arrival = (arrivalNanos - baseArrival) * clockRate / 1000000000L;
+        final long transit = arrival - timestamp;
+        if (hasTransit) {
+            long d = (int) (transit - lastTransit);
+            if (d<0)
+                d = -d;
+            jitter += d - ((jitter + 8) >> 4);
+        }
+        lastTransit = transit;
+        hasTransit = true;
+    }
+
+    /**
+     * Must be called when the sender report of this source received
+     * @param ntpTimestamp the NTP timestamp from the sender report
+     * @param arrivalNanos the arrival time of the report ({@link System#nanoTime()})
+     */
+    public synchronized void senderReportReceived(final long ntpTimestamp, final long arrivalNanos) {
+        lastSr = (ntpTimestamp >>> 16) & 0xFFFFFFFFL;
+        lastSrArrival = arrivalNanos;
+    }
+
+    public synchronized boolean isInitialized() {
+        return initialized;
+    }
+
+    public synchronized int getSsrc() {
+        return ssrc;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getExtendedMaxSeq() {
+        return cycles + maxSeq;
+    }
+
+    public synchronized long getExpected() {
+        return probation>0? 0 : cycles + maxSeq - baseSeq + 1;
+    }
+
+    /**
+     * Returns the cumulative number of packets lost. The value may be negative if duplicates are received
+     */
+    public synchronized long getLost() {
+        return getExpected() - received;
+    }
+
+    /**
+     * Returns the interarrival jitter in timestamp units
+     */
+    public synchronized long getJitter() {
+        return jitter >> 4;
+    }
+
+    /**
+     * Writes the report block about this source to the buffer. The interval fraction lost is reset.
+     * @param nowNanos the current time ({@link System#nanoTime()})
+     * @return <b>false</b> if the source was never received, in this case nothing is written
+     */
+    public synchronized boolean writeReportBlock(final ByteBuf buf, final long nowNanos) {
+        if (!initialized || probation>0)
+            return false;
+        final long expected = getExpected();
+        long lost = expected - received;
+        lost = Math.max(Math.min(lost, 0x7FFFFF), -0x800000);
+        final long expectedInterval = expected - expectedPrior;
+        final long receivedInterval = received - receivedPrior;
+        expectedPrior = expected;
+        receivedPrior = received;
+        final long lostInterval = expectedInterval - receivedInterval;
+        final int fraction = expectedInterval==0 || lostInterval<=0? 0 : (int) ((lostInterval << 8) / expectedInterval);
+        final long dlsr = lastSr==0? 0 : (nowNanos - lastSrArrival) * 65536 / 1000000000L;
+        buf.writeInt(ssrc);
+        buf.writeByte(Math.min(fraction, 0xFF));
+        buf.writeMedium((int) lost);
+        buf.writeInt((int) getExtendedMaxSeq());
+        buf.writeInt((int) (jitter >> 4));
+        buf.writeInt((int) lastSr);
+        buf.writeInt((int) dlsr);
+        return true;
+    }
 }
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.media.rtp.SessionAddress;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * The RTP session over the pair of the Netty datagram channels (RTP on the even port and RTCP on the next
+ * one). Received packets are parsed in place and dispatched to the {@link PayloadListener listener} of the
+ * payload type in the event loop thread, the network buffer is released after the listener returns.
+ * The session keeps the sequence and timestamp state of the sent stream, the reception state of the remote
+ * source and periodically sends the RTCP sender or receiver report.
+ *
+ * <p/>If the remote port is {@link SessionAddress#ANY_PORT} the remote RTP and RTCP addresses are learned
+ * from the first received packets.
+ *
+ * @author Mikhail Titov
+ */
+public class RtpSession {
+    public final static int CLOCK_RATE = 8000;
+    public final static long DEFAULT_RTCP_INTERVAL = 5000;
+    private final static Random random = new Random();
+    private final static Charset CNAME_CHARSET = Charset.forName("US-ASCII");
+
+    /**
+     * Receives the payload of the RTP packets. The packet buffer is valid only while the method is executing
+     */
+    public interface PayloadListener {
+        /**
+         * @param packet the whole RTP packet. Header fields may be read using {@link RtpPacket}
+         * @param payloadIndex the absolute index of the payload in the buffer
+         * @param payloadLength the length of the payload without padding
+         */
+        public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength);
+    }
+
+    public interface Listener {
+        /**
+         * Fires when RTCP BYE received from the remote side
+         */
+        public void byeReceived(RtpSession session);
+    }
+
+    private final EventLoopGroup group;
+    private final ByteBufAllocator allocator;
+    private final InetAddress localAddress;
+    private final int localPort;
+    private final InetAddress remoteAddress;
+    private final long rtcpInterval;
+    private final LoggerHelper logger;
+    private final int ssrc;
+    private final byte[] cname;
+    private final RtpReceiver receiver = new RtpReceiver(CLOCK_RATE);
+    private final PayloadListener[] payloadListeners = new PayloadListener[RtpPacket.MAX_PAYLOAD_TYPE+1];
+
+    private volatile Listener listener;
+    private volatile InetSocketAddress remoteDataAddress;
+    private volatile InetSocketAddress remoteControlAddress;
+    private volatile Channel dataChannel;
+    private volatile Channel controlChannel;
+    private volatile ScheduledFuture<?> reportFuture;
+    private volatile boolean closed = false;
+
+    //the state of the sent stream. Modified only by the sender thread
+    private int sequenceNumber;
+    private long timestamp;
+    private volatile long lastTimestamp;
+    private volatile long lastSendTime;
+    private volatile long packetsSent;
+    private volatile long octetsSent;
+    //the reception counters. Modified only by the event loop threads of the channels
+    private volatile long packetsReceived;
+    private volatile long bytesReceived;
+    private volatile long badPackets;
+    private volatile long unknownPayloads;
+    private volatile long rtcpSent;
+    private volatile long rtcpReceived;
+    private volatile long badRtcpPackets;
+    private volatile boolean byeReceived;
+
+    /**
+     * @param remoteAddress the address of the remote side. If null packets from any address are accepted
+     *      and the remote address is learned from the first received packet
+     * @param remotePort the RTP port of the remote side or {@link SessionAddress#ANY_PORT}
+     */
+    public RtpSession(EventLoopGroup group, ByteBufAllocator allocator, InetAddress localAddress, int localPort,
+            InetAddress remoteAddress, int remotePort, long rtcpInterval, LoggerHelper logger)
+    {
+        this.group = group;
+        this.allocator = allocator;
+        this.localAddress = localAddress;
+        this.localPort = localPort;
+        this.remoteAddress = remoteAddress;
+        this.rtcpInterval = rtcpInterval;
+        this.logger = new LoggerHelper(logger, "RTP session. ");
+        this.ssrc = random.nextInt();
+        this.sequenceNumber = random.nextInt(RtpReceiver.RTP_SEQ_MOD);
+        this.timestamp = random.nextInt() & 0xFFFFFFFFL;
+        this.cname = (Integer.toHexString(ssrc)+"@"+localAddress.getHostAddress()).getBytes(CNAME_CHARSET);
+        if (remoteAddress!=null && remotePort!=SessionAddress.ANY_PORT) {
+            remoteDataAddress = new InetSocketAddress(remoteAddress, remotePort);
+            remoteControlAddress = new InetSocketAddress(remoteAddress, remotePort+1);
+        }
+    }
+
+    /**
+     * Binds the RTP and RTCP channels and starts the RTCP reports
+     */
+    public void open() throws Exception {
+        dataChannel = createBootstrap().handler(new DataHandler()).bind(localAddress, localPort).sync().channel();
+        try {
+            controlChannel = createBootstrap().handler(new ControlHandler())
+                    .bind(localAddress, localPort+1).sync().channel();
+        } catch (Exception e) {
+            dataChannel.close();
+            throw e;
+        }
+        scheduleReport();
+        if (logger.isDebugEnabled())
+            logger.debug("Opened. SSRC: {}", Integer.toHexString(ssrc));
+    }
+
+    /**
+     * Sends the RTCP BYE and closes the channels. The method does not wait for the sending and the closing
+     * of the channels, so it may be called from the event loop threads
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        final ScheduledFuture<?> _reportFuture = reportFuture;
+        if (_reportFuture!=null)
+            _reportFuture.cancel(false);
+        final Channel _controlChannel = controlChannel;
+        final InetSocketAddress remote = remoteControlAddress;
+        closeChannel(dataChannel);
+        if (_controlChannel!=null && remote!=null && _controlChannel.isActive()) {
+            final ByteBuf buf = _controlChannel.alloc().buffer();
+            RtcpPacket.writeReceiverReport(buf, ssrc, null, System.nanoTime());
+            RtcpPacket.writeBye(buf, ssrc);
+            //the control channel is closed when the BYE is sent (or failed to send)
+            _controlChannel.writeAndFlush(new DatagramPacket(buf, remote)).addListener(
+                new ChannelFutureListener() {
+                    @Override public void operationComplete(ChannelFuture future) {
+                        closeChannel(_controlChannel);
+                    }
+                });
+        } else
+            closeChannel(_controlChannel);
+        if (logger.isDebugEnabled())
+            logger.debug("Closed");
+    }
+
+    public void setPayloadListener(int payloadType, PayloadListener listener) {
+        payloadListeners[payloadType] = listener;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sends the RTP packet. Must be called from the one thread (the sender of the session).
+     * @param samples the duration of the payload in timestamp units (the timestamp of the next packet is
+     *      incremented by this value)
+     * @return <b>false</b> if the session is closed or the remote address is not known yet
+     */
+    public boolean send(final int payloadType, final boolean marker, final byte[] data, final int offset,
+            final int len, final int samples)
+    {
+        final Channel channel = dataChannel;
+        final InetSocketAddress remote = remoteDataAddress;
+        if (closed || channel==null || remote==null)
+            return false;
+        final ByteBuf buf = channel.alloc().buffer(RtpPacket.HEADER_SIZE + len);
+        writeHeader(buf, payloadType, marker, samples).writeBytes(data, offset, len);
+        return send(channel, remote, buf, len);
+    }
+
+    /**
+     * Sends the payload of the packet received by another session (relaying). The sequence number, the
+     * timestamp and the SSRC of the packet are replaced by the ones of this session. The payload is copied
+     * from the received network buffer directly to the sent one.
+     * @see #send(int, boolean, byte[], int, int, int)
+     */
+    public boolean send(final int payloadType, final boolean marker, final ByteBuf data, final int index,
+            final int len, final int samples)
+    {
+        final Channel channel = dataChannel;
+        final InetSocketAddress remote = remoteDataAddress;
+        if (closed || channel==null || remote==null)
+            return false;
+        final ByteBuf buf = channel.alloc().buffer(RtpPacket.HEADER_SIZE + len);
+        writeHeader(buf, payloadType, marker, samples).writeBytes(data, index, len);
+        return send(channel, remote, buf, len);
+    }
+
+    /**
+     * Sends the packet with the passed timestamp. Used for the telephone events (RFC 4733) whose packets
+     * carry the timestamp of the start of the event. The timestamp of the sent stream is not changed.
+     * @see #send(int, boolean, byte[], int, int, int)
+     */
+    public boolean sendEvent(final int payloadType, final boolean marker, final byte[] data, final int offset,
+            final int len, final long eventTimestamp)
+    {
+        final Channel channel = dataChannel;
+        final InetSocketAddress remote = remoteDataAddress;
+        if (closed || channel==null || remote==null)
+            return false;
+        final ByteBuf buf = channel.alloc().buffer(RtpPacket.HEADER_SIZE + len);
+        RtpPacket.writeHeader(buf, marker, payloadType, sequenceNumber, eventTimestamp, ssrc);
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        buf.writeBytes(data, offset, len);
+        return send(channel, remote, buf, len);
+    }
+
+    /**
+     * Returns the timestamp of the next packet of the sent stream. Must be called from the sender thread
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    private ByteBuf writeHeader(final ByteBuf buf, final int payloadType, final boolean marker, final int samples) {
+        RtpPacket.writeHeader(buf, marker, payloadType, sequenceNumber, timestamp, ssrc);
+        lastTimestamp = timestamp;
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        timestamp = (timestamp + samples) & 0xFFFFFFFFL;
+        return buf;
+    }
+
+    private boolean send(final Channel channel, final InetSocketAddress remote, final ByteBuf buf, final int len) {
+        lastSendTime = System.nanoTime();
+        packetsSent++;
+        octetsSent += len;
+        channel.writeAndFlush(new DatagramPacket(buf, remote), channel.voidPromise());
+        return true;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    public InetAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public InetSocketAddress getRemoteDataAddress() {
+        return remoteDataAddress;
+    }
+
+    public RtpReceiver getReceiver() {
+        return receiver;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getOctetsSent() {
+        return octetsSent;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBadPackets() {
+        return badPackets;
+    }
+
+    public long getBadRtcpPackets() {
+        return badRtcpPackets;
+    }
+
+    public long getUnknownPayloads() {
+        return unknownPayloads;
+    }
+
+    public long getRtcpSent() {
+        return rtcpSent;
+    }
+
+    public long getRtcpReceived() {
+        return rtcpReceived;
+    }
+
+    public boolean isByeReceived() {
+        return byeReceived;
+    }
+
+    private Bootstrap createBootstrap() {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .option(ChannelOption.ALLOCATOR, allocator);
+    }
+
+    private void closeChannel(Channel channel) {
+        if (channel==null)
+            return;
+        channel.close().addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess() && logger.isErrorEnabled())
+                    logger.error("Close channel error", future.cause());
+            }
+        });
+    }
+
+    private void scheduleReport() {
+        if (closed)
+            return;
+        //the report interval is randomized to avoid the synchronization of the reports of the different sessions
+        final long interval = (long) (rtcpInterval * (0.5 + random.nextDouble()));
+        reportFuture = controlChannel.eventLoop().schedule(new Runnable() {
+            @Override public void run() {
+                try {
+                    sendReport();
+                } catch (Throwable e) {
+                    if (logger.isErrorEnabled())
+                        logger.error("Error sending RTCP report", e);
+                }
+                scheduleReport();
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendReport() {
+        final Channel channel = controlChannel;
+        final InetSocketAddress remote = remoteControlAddress;
+        if (closed || remote==null)
+            return;
+        final long now = System.nanoTime();
+        final ByteBuf buf = channel.alloc().buffer();
+        final long _packetsSent = packetsSent;
+        if (_packetsSent>0) {
+            //the RTP timestamp of the report corresponds to the same instant as the NTP timestamp
+            final long rtpTimestamp = lastTimestamp + (now - lastSendTime) * CLOCK_RATE / 1000000000L;
+            RtcpPacket.writeSenderReport(buf, ssrc, RtcpPacket.toNtpTimestamp(System.currentTimeMillis()),
+                    rtpTimestamp, _packetsSent, octetsSent, receiver, now);
+        } else
+            RtcpPacket.writeReceiverReport(buf, ssrc, receiver, now);
+        RtcpPacket.writeSdes(buf, ssrc, cname);
+        rtcpSent++;
+        channel.writeAndFlush(new DatagramPacket(buf, remote), channel.voidPromise());
+    }
+
+    private boolean acceptDataSender(final InetSocketAddress sender) {
+        final InetSocketAddress remote = remoteDataAddress;
+        if (remote!=null)
+            return remote.equals(sender);
+        if (remoteAddress!=null && !remoteAddress.equals(sender.getAddress()))
+            return false;
+        remoteDataAddress = sender;
+        if (remoteControlAddress==null)
+            remoteControlAddress = new InetSocketAddress(sender.getAddress(), sender.getPort()+1);
+        if (logger.isDebugEnabled())
+            logger.debug("Remote RTP address learned: {}", sender);
+        return true;
+    }
+
+    private boolean acceptControlSender(final InetSocketAddress sender) {
+        final InetSocketAddress remote = remoteDataAddress;
+        if (remote!=null)
+            return remote.getAddress().equals(sender.getAddress());
+        return remoteAddress==null || remoteAddress.equals(sender.getAddress());
+    }
+
+    private class DataHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
+            if (!acceptDataSender(msg.sender()))
+                return;
+            final ByteBuf buf = msg.content();
+            if (!RtpPacket.isValid(buf)) {
+                badPackets++;
+                return;
+            }
+            packetsReceived++;
+            bytesReceived += buf.readableBytes();
+            if (!receiver.update(RtpPacket.getSsrc(buf), RtpPacket.getSequenceNumber(buf),
+                    RtpPacket.getTimestamp(buf), System.nanoTime()))
+                return;
+            final PayloadListener payloadListener = payloadListeners[RtpPacket.getPayloadType(buf)];
+            if (payloadListener==null)
+                unknownPayloads++;
+            else
+                payloadListener.payloadReceived(buf, buf.readerIndex()+RtpPacket.getPayloadOffset(buf),
+                        RtpPacket.getPayloadLength(buf));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            if (logger.isErrorEnabled())
+                logger.error("RTP channel error", cause);
+        }
+    }
+
+    private class ControlHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
+            if (!acceptControlSender(msg.sender()))
+                return;
+            final ByteBuf buf = msg.content();
+            final long now = System.nanoTime();
+            int offset = buf.readerIndex();
+            final int end = buf.writerIndex();
+            if (end-offset<RtcpPacket.HEADER_SIZE+4 || RtcpPacket.getVersion(buf, offset)!=RtpPacket.VERSION) {
+                badRtcpPackets++;
+                return;
+            }
+            rtcpReceived++;
+            boolean bye = false;
+            while (end-offset>=RtcpPacket.HEADER_SIZE) {
+                final int len = RtcpPacket.getLength(buf, offset);
+                if (offset+len>end) {
+                    badRtcpPackets++;
+                    break;
+                }
+                switch (RtcpPacket.getPacketType(buf, offset)) {
+                    case RtcpPacket.SR:
+                        if (len>=RtcpPacket.SR_SIZE && receiver.isInitialized()
+                            && receiver.getSsrc()==RtcpPacket.getSsrc(buf, offset))
+                        {
+                            receiver.senderReportReceived(RtcpPacket.getNtpTimestamp(buf, offset), now);
+                        }
+                        break;
+                    case RtcpPacket.BYE: bye = true; break;
+                }
+                offset += len;
+            }
+            if (bye && !byeReceived) {
+                byeReceived = true;
+                if (logger.isDebugEnabled())
+                    logger.debug("BYE received");
+                final Listener _listener = listener;
+                if (_listener!=null)
+                    _listener.byeReceived(RtpSession.this);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            if (logger.isErrorEnabled())
+                logger.error("RTCP channel error", cause);
+        }
+    }
+}
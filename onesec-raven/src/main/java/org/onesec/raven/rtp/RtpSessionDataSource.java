@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.Time;
+import javax.media.format.AudioFormat;
+import javax.media.protocol.BufferTransferHandler;
+import javax.media.protocol.ContentDescriptor;
+import javax.media.protocol.PushBufferDataSource;
+import javax.media.protocol.PushBufferStream;
+
+/**
+ * The JMF data source of the one payload type received by the {@link RtpSession}. The payload is pushed to
+ * the transfer handler directly from the event loop thread: the handler must read the buffer in the
+ * {@link BufferTransferHandler#transferData(PushBufferStream)} call, the payload is copied from the network
+ * buffer to the data of the JMF buffer.
+ *
+ * @author Mikhail Titov
+ */
+public class RtpSessionDataSource extends PushBufferDataSource implements RtpSession.PayloadListener {
+    private final static Object[] EMPTY_CONTROLS = new Object[0];
+    private final static long NANOS_PER_SAMPLE = 1000000000L / RtpSession.CLOCK_RATE;
+
+    private final int payloadType;
+    private final AudioFormat format;
+    private final Stream[] streams = new Stream[]{new Stream()};
+    private volatile boolean started = false;
+
+    public RtpSessionDataSource(int payloadType) {
+        this.payloadType = payloadType;
+        this.format = RtpPayloadTypes.getFormat(payloadType);
+        if (format==null)
+            throw new IllegalArgumentException("Unsupported payload type: "+payloadType);
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+        if (started)
+            streams[0].transfer(packet, payloadIndex, payloadLength);
+    }
+
+    /**
+     * Pushes the frame played out by the {@link JitterBuffer}
+     */
+    public void frameReceived(JitterBuffer.Frame frame) {
+        if (started)
+            streams[0].transfer(frame);
+    }
+
+    @Override
+    public PushBufferStream[] getStreams() {
+        return streams;
+    }
+
+    @Override
+    public String getContentType() {
+        return ContentDescriptor.RAW;
+    }
+
+    @Override
+    public void connect() throws IOException {
+    }
+
+    @Override
+    public void disconnect() {
+        started = false;
+    }
+
+    @Override
+    public void start() throws IOException {
+        started = true;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        started = false;
+    }
+
+    @Override
+    public Object getControl(String controlType) {
+        return null;
+    }
+
+    @Override
+    public Object[] getControls() {
+        return EMPTY_CONTROLS;
+    }
+
+    @Override
+    public Time getDuration() {
+        return DURATION_UNKNOWN;
+    }
+
+    private class Stream implements PushBufferStream {
+        private volatile BufferTransferHandler transferHandler;
+        //the packet or the frame being transfered. Accessed only by the transfering thread (the event loop
+        //thread or the media clock thread)
+        private ByteBuf packet;
+        private int payloadIndex;
+        private int payloadLength;
+        private JitterBuffer.Frame frame;
+
+        private void transfer(ByteBuf packet, int payloadIndex, int payloadLength) {
+            final BufferTransferHandler handler = transferHandler;
+            if (handler==null)
+                return;
+            this.packet = packet;
+            this.payloadIndex = payloadIndex;
+            this.payloadLength = payloadLength;
+            try {
+                handler.transferData(this);
+            } finally {
+                this.packet = null;
+            }
+        }
+
+        private void transfer(JitterBuffer.Frame frame) {
+            final BufferTransferHandler handler = transferHandler;
+            if (handler==null)
+                return;
+            this.frame = frame;
+            try {
+                handler.transferData(this);
+            } finally {
+                this.frame = null;
+            }
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public void read(Buffer buffer) throws IOException {
+            final ByteBuf _packet = packet;
+            final JitterBuffer.Frame _frame = frame;
+            if (_packet==null && _frame==null) {
+                buffer.setDiscard(true);
+                return;
+            }
+            final int len = _packet!=null? payloadLength : _frame.getLength();
+            final Object data = buffer.getData();
+            final byte[] bytes = data instanceof byte[] && ((byte[])data).length>=len? (byte[])data : new byte[len];
+            buffer.setData(bytes);
+            buffer.setOffset(0);
+            buffer.setLength(len);
+            buffer.setFormat(format);
+            buffer.setDiscard(false);
+            if (_packet!=null) {
+                _packet.getBytes(payloadIndex, bytes, 0, len);
+                buffer.setSequenceNumber(RtpPacket.getSequenceNumber(_packet));
+                buffer.setTimeStamp(RtpPacket.getTimestamp(_packet) * NANOS_PER_SAMPLE);
+                buffer.setFlags(Buffer.FLAG_RTP_TIME | (RtpPacket.isMarker(_packet)? Buffer.FLAG_RTP_MARKER : 0));
+            } else {
+                System.arraycopy(_frame.getData(), 0, bytes, 0, len);
+                buffer.setSequenceNumber(_frame.getSequenceNumber());
+                buffer.setTimeStamp(_frame.getTimestamp() * NANOS_PER_SAMPLE);
+                buffer.setFlags(Buffer.FLAG_RTP_TIME | (_frame.isMarker()? Buffer.FLAG_RTP_MARKER : 0));
+            }
+        }
+
+        public void setTransferHandler(BufferTransferHandler transferHandler) {
+            this.transferHandler = transferHandler;
+        }
+
+        public ContentDescriptor getContentDescriptor() {
+            return new ContentDescriptor(ContentDescriptor.RAW);
+        }
+
+        public long getContentLength() {
+            return LENGTH_UNKNOWN;
+        }
+
+        public boolean endOfStream() {
+            return false;
+        }
+
+        public Object[] getControls() {
+            return EMPTY_CONTROLS;
+        }
+
+        public Object getControl(String controlType) {
+            return null;
+        }
+    }
+}
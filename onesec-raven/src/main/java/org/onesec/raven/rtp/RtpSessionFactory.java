@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import java.net.InetAddress;
+import org.raven.sched.ExecutorService;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * Creates the sessions of the native RTP engine (the engine that does not use JMF RTPManager)
+ *
+ * @author Mikhail Titov
+ */
+public interface RtpSessionFactory {
+    /**
+     * Returns <b>true</b> if the RTP streams must use the native RTP engine
+     */
+    public boolean isNativeRtpEngineEnabled();
+    /**
+     * Creates and opens the RTP session
+     */
+    public RtpSession createSession(InetAddress localAddress, int localPort,
+            InetAddress remoteAddress, int remotePort, LoggerHelper logger) throws Exception;
+    /**
+     * Creates the jitter buffer for the incoming stream or returns <b>null</b> if the received packets
+     * must be pushed to the consumers as is
+     */
+    public JitterBuffer createJitterBuffer();
+    /**
+     * Returns the payload type of the telephone events (RFC 4733) or -1 if the DTMF must not be sent and
+     * received in the RTP streams
+     */
+    public int getDtmfPayloadType();
+    /**
+     * Returns the executor for the work of the sessions consumers that must not be done in the
+     * event loop thread (for example, the data source initialization)
+     */
+    public ExecutorService getExecutor();
+}
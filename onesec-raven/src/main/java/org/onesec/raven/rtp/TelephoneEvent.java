@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Access to the fields of the telephone-event payload (RFC 4733, named events of the DTMF). All packets
+ * of the one event have the same RTP timestamp (the start of the event), the duration grows with every
+ * packet and the last packets of the event have the end bit set.
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |     event     |E|R| volume    |          duration             |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ *
+ * @author Mikhail Titov
+ */
+public class TelephoneEvent {
+    public final static int DEFAULT_PAYLOAD_TYPE = 101;
+    public final static int PAYLOAD_SIZE = 4;
+    /**
+     * The power level of the tone (-10 dBm0)
+     */
+    public final static int DEFAULT_VOLUME = 10;
+    public final static int MAX_DURATION = 0xFFFF;
+    private final static String DTMF_EVENTS = "0123456789*#ABCD";
+
+    private TelephoneEvent() {}
+
+    /**
+     * Returns the code of the DTMF event or -1 if the character is not the DTMF digit
+     */
+    public static int toEvent(final char dtmf) {
+        return DTMF_EVENTS.indexOf(Character.toUpperCase(dtmf));
+    }
+
+    /**
+     * Returns the DTMF digit of the event or 0 if the event is not the DTMF event
+     */
+    public static char toDtmf(final int event) {
+        return event>=0 && event<DTMF_EVENTS.length()? DTMF_EVENTS.charAt(event) : 0;
+    }
+
+    public static int getEvent(final ByteBuf buf, final int payloadIndex) {
+        return buf.getUnsignedByte(payloadIndex);
+    }
+
+    public static boolean isEnd(final ByteBuf buf, final int payloadIndex) {
+        return (buf.getByte(payloadIndex+1) & 0x80) != 0;
+    }
+
+    public static int getVolume(final ByteBuf buf, final int payloadIndex) {
+        return buf.getByte(payloadIndex+1) & 0x3F;
+    }
+
+    public static int getDuration(final ByteBuf buf, final int payloadIndex) {
+        return buf.getUnsignedShort(payloadIndex+2);
+    }
+
+    /**
+     * Writes the payload to the array
+     * @param duration the duration of the event in timestamp units
+     */
+    public static void write(final byte[] buf, final int offset, final int event, final boolean end,
+            final int volume, final int duration)
+    {
+        buf[offset] = (byte) event;
+        buf[offset+1] = (byte) ((end? 0x80 : 0) | (volume & 0x3F));
+        buf[offset+2] = (byte) (duration >> 8);
+        buf[offset+3] = (byte) duration;
+    }
+}
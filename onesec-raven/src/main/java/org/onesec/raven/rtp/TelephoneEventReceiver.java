@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import org.onesec.raven.codec.DtmfListener;
+
+/**
+ * Receives the telephone-event packets (RFC 4733) of the {@link RtpSession} and reports every DTMF event
+ * once. The event is reported on the first received packet of the event (the packet with the new
+ * timestamp) so the latency of the detection is the network latency only. The updates of the event, the
+ * repeated end packets and the late packets of the previous events are ignored. If the first packets of the
+ * event are lost the event is reported on the first packet that is received (it may be the end packet).
+ *
+ * <p/>The packets are processed in the event loop thread of the session, the listener must not block.
+ *
+ * @author Mikhail Titov
+ */
+public class TelephoneEventReceiver implements RtpSession.PayloadListener {
+    private volatile DtmfListener listener;
+    //accessed only by the event loop thread
+    private boolean hasEvent = false;
+    private long eventTimestamp;
+    private volatile long eventsCount;
+    private volatile long duplicatesCount;
+    private volatile long badPacketsCount;
+
+    public TelephoneEventReceiver(DtmfListener listener) {
+        this.listener = listener;
+    }
+
+    public void setListener(DtmfListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+        if (payloadLength<TelephoneEvent.PAYLOAD_SIZE) {
+            badPacketsCount++;
+            return;
+        }
+        final long timestamp = RtpPacket.getTimestamp(packet);
+        //the timestamps of the events are compared in the serial number arithmetic
+        if (hasEvent && (int)(timestamp-eventTimestamp)<=0) {
+            duplicatesCount++;
+            return;
+        }
+        hasEvent = true;
+        eventTimestamp = timestamp;
+        final char dtmf = TelephoneEvent.toDtmf(TelephoneEvent.getEvent(packet, payloadIndex));
+        if (dtmf==0)
+            return;
+        eventsCount++;
+        final DtmfListener _listener = listener;
+        if (_listener!=null)
+            _listener.dtmfDetected(dtmf);
+    }
+
+    /**
+     * Returns the number of reported DTMF events
+     */
+    public long getEventsCount() {
+        return eventsCount;
+    }
+
+    /**
+     * Returns the number of the ignored packets (updates, repeated end packets and late packets)
+     */
+    public long getDuplicatesCount() {
+        return duplicatesCount;
+    }
+
+    public long getBadPacketsCount() {
+        return badPacketsCount;
+    }
+}
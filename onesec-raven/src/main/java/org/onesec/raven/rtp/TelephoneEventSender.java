@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Generates the telephone-event packets (RFC 4733) for the queued DTMF digits. The sender is driven by
+ * the caller: {@link #nextPacket(byte[], int)} is called once per packet interval and returns the payload
+ * of the packet that must be sent in this interval. For every digit the sender produces:
+ * <ul>
+ *  <li>the first packet (the marker bit must be set, see {@link #isEventStart()});</li>
+ *  <li>the update packets with the growing duration, one per interval;</li>
+ *  <li>{@link #END_PACKETS} packets with the end bit (the redundancy for the case of the packet loss);</li>
+ *  <li>the pause of {@link #DEFAULT_PAUSE} ms without packets.</li>
+ * </ul>
+ * All packets of the digit must be sent with the same RTP timestamp (the timestamp of the stream at the
+ * start of the event).
+ *
+ * <p/>Digits may be added from any thread, <b>nextPacket</b> must be called from the one thread.
+ *
+ * @author Mikhail Titov
+ */
+public class TelephoneEventSender {
+    public final static int DEFAULT_DURATION = 100;
+    public final static int DEFAULT_PAUSE = 60;
+    public final static int END_PACKETS = 3;
+    public final static int SAMPLES_PER_MS = RtpSession.CLOCK_RATE/1000;
+
+    private final int duration;
+    private final int pause;
+    private final Queue<Character> digits = new ConcurrentLinkedQueue<>();
+    //accessed only by the sender thread
+    private int event = -1;
+    private int eventDuration;
+    private int endPacketsSent;
+    private int pauseLeft;
+    private boolean eventStart;
+
+    /**
+     * @param duration the duration of the tone in milliseconds
+     * @param pause the pause after the tone in milliseconds
+     */
+    public TelephoneEventSender(int duration, int pause) {
+        this.duration = duration*SAMPLES_PER_MS;
+        this.pause = pause*SAMPLES_PER_MS;
+    }
+
+    public TelephoneEventSender() {
+        this(DEFAULT_DURATION, DEFAULT_PAUSE);
+    }
+
+    /**
+     * Queues the DTMF digits. Returns <b>false</b> if the string contains the character that is not the DTMF
+     * digit (nothing is queued in this case)
+     */
+    public boolean add(String dtmfs) {
+        for (int i=0; i<dtmfs.length(); ++i)
+            if (TelephoneEvent.toEvent(dtmfs.charAt(i))<0)
+                return false;
+        for (int i=0; i<dtmfs.length(); ++i)
+            digits.offer(dtmfs.charAt(i));
+        return true;
+    }
+
+    /**
+     * Returns <b>true</b> if there is no event being sent and no queued digits
+     */
+    public boolean isIdle() {
+        return event<0 && pauseLeft<=0 && digits.isEmpty();
+    }
+
+    /**
+     * Returns <b>true</b> if the last packet returned by {@link #nextPacket(byte[], int)} is the first
+     * packet of the event
+     */
+    public boolean isEventStart() {
+        return eventStart;
+    }
+
+    /**
+     * Moves the sender on one packet interval.
+     * @param payload the array for the payload ({@link TelephoneEvent#PAYLOAD_SIZE} bytes)
+     * @param interval the packet interval in timestamp units
+     * @return <b>true</b> if the payload of the packet was written to the array
+     */
+    public boolean nextPacket(final byte[] payload, final int interval) {
+        eventStart = false;
+        if (event<0) {
+            if (pauseLeft>0) {
+                pauseLeft -= interval;
+                return false;
+            }
+            final Character dtmf = digits.poll();
+            if (dtmf==null)
+                return false;
+            event = TelephoneEvent.toEvent(dtmf);
+            eventDuration = 0;
+            endPacketsSent = 0;
+            eventStart = true;
+        }
+        final boolean end;
+        if (eventDuration<duration) {
+            eventDuration = Math.min(eventDuration+interval, Math.min(duration, TelephoneEvent.MAX_DURATION));
+            //the packet that reaches the duration is the first end packet
+            end = eventDuration>=duration;
+        } else
+            end = true;
+        TelephoneEvent.write(payload, 0, event, end, TelephoneEvent.DEFAULT_VOLUME, eventDuration);
+        if (end && ++endPacketsSent==END_PACKETS) {
+            event = -1;
+            pauseLeft = pause;
+        }
+        return true;
+    }
+}
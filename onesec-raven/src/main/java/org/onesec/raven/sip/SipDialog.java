@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip;
+
+/**
+ * The dialog (RFC 3261 section 12) identified by Call-ID and the local and the remote tags
+ * 
+ * @author Mikhail Titov
+ */
+public interface SipDialog {
+    public enum State {EARLY, CONFIRMED, TERMINATED};
+    
+    public String getId();
+    public String getCallId();
+    public String getLocalTag();
+    public String getRemoteTag();
+    public State getState();
+    /**
+     * Returns the URI from the Contact header of the remote side or <b>null</b>
+     */
+    public String getRemoteTarget();
+    /**
+     * Returns <b>true</b> if the dialog was created by the INVITE sent by the local side
+     */
+    public boolean isClient();
+    public long nextLocalSeqNumber();
+    public long getRemoteSeqNumber();
+    /**
+     * Returns the estimated count of the bytes of the heap held by the dialog
+     */
+    public int getMemoryUsage();
+}
@@ -39,6 +39,11 @@ public interface SipMessage {
     public SipHeaders headers();
     public Integer getContentLength();
     public String getContentType();
+    /**
+     * Returns the body of the message. The body of the decoded message is the {@link io.netty.buffer.ByteBuf}
+     * (without the copying of the message bytes) or <b>null</b> if the message has no body
+     */
+    public Object getContent();
     public void setContent(Object body);
     
 }
@@ -24,4 +24,8 @@ public class SipMessageException extends Exception {
     public SipMessageException(String msg) {
         super(msg);
     }
+
+    public SipMessageException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
 }
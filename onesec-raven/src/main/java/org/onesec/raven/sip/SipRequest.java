@@ -26,7 +26,12 @@ public interface SipRequest extends SipMessage {
     
     public String getMethod();
     public Method getKnownMethod();
-    public SipURI getRequestURI();
+    /**
+     * Returns the parsed Request-URI. The URI is parsed on the first access
+     * @throws SipMessageException if the Request-URI of the message is invalid
+     */
+    public SipURI getRequestURI() throws SipMessageException;
+    public String getRawRequestURI();
     public String getVersion();
     public ByteBuf writeTo(ByteBuf buf) throws UnsupportedEncodingException;
 }
@@ -15,10 +15,15 @@
  */
 package org.onesec.raven.sip;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  *
  * @author Mikhail Titov
  */
-public interface SipResponse {
-    
+public interface SipResponse extends SipMessage {
+    public int getStatusCode();
+    public String getReasonPhrase();
+    public String getVersion();
+    public ByteBuf writeTo(ByteBuf buf);
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public interface SipServerTransaction extends SipTransaction {
+    /**
+     * Sends the response to the request of the transaction. The final response moves the transaction to the
+     * completed (or terminated for 2xx response to INVITE) state.
+     * @throws SipMessageException if the transaction already sent the final response
+     */
+    public void sendResponse(SipResponse response) throws SipMessageException;
+    public SipResponse getLastResponse();
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The SIP transaction (RFC 3261 section 17). The INVITE transactions have the ACCEPTED state of RFC 6026,
+ * so the retransmissions of INVITE and of its 2xx response are absorbed by the transaction.
+ * 
+ * @author Mikhail Titov
+ */
+public interface SipTransaction {
+    public enum State {CALLING, TRYING, PROCEEDING, ACCEPTED, COMPLETED, CONFIRMED, TERMINATED};
+    
+    /**
+     * Returns the branch parameter of the top Via header of the request
+     */
+    public String getBranch();
+    public SipRequest getRequest();
+    public State getState();
+    public InetSocketAddress getRemoteAddress();
+    /**
+     * Returns the count of the messages retransmitted by the transaction
+     */
+    public int getRetransmissionsCount();
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The transaction user (the layer above the transactions: UAC, UAS or proxy core). The methods are called
+ * by the thread of the transport or by the thread of the timer, so they must not block.
+ * 
+ * @author Mikhail Titov
+ */
+public interface SipTransactionUser {
+    /**
+     * Called for the new request. The retransmissions of the request are absorbed by the transaction
+     */
+    public void processRequest(SipServerTransaction transaction, SipRequest request);
+    public void processResponse(SipClientTransaction transaction, SipResponse response);
+    /**
+     * Called for the message that does not match any transaction: the ACK for the 2xx response and the
+     * retransmissions of the 2xx response to INVITE
+     */
+    public void processStray(SipMessage message, InetSocketAddress source);
+    /**
+     * Called when the transaction did not receive the response (timers B, F), did not receive the ACK for
+     * the final response (timer H, or 64*T1 for the 2xx response) or the proxy timer C fired
+     */
+    public void processTimeout(SipTransaction transaction);
+    public void processTransportError(SipTransaction transaction, Exception error);
+    public void transactionTerminated(SipTransaction transaction);
+}
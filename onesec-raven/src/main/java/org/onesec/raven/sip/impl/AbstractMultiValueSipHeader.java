@@ -44,9 +44,13 @@ public abstract class AbstractMultiValueSipHeader<T> extends AbstractSipHeader<T
     
     @Override
     public ByteBuf writeTo(final ByteBuf buf) {
+        buf.writeBytes(getBytesOfName()).writeByte(':').writeByte(' ');
+        boolean first = true;
         for (T value: values) {
-            buf.writeBytes(getBytesOfName()).writeByte(':').writeByte(' ');
+            if (!first)
+                buf.writeByte(',').writeByte(' ');
             buf.writeBytes(getBytesOfValue(value));
+            first = false;
         }
         return buf;
     }    
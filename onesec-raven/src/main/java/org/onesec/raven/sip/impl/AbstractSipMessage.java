@@ -15,6 +15,8 @@
  */
 package org.onesec.raven.sip.impl;
 
+import io.netty.buffer.ByteBuf;
+import org.onesec.raven.sip.ByteBufWriteable;
 import org.onesec.raven.sip.SipMessage;
 import org.onesec.raven.sip.headers.*;
 import static org.onesec.raven.sip.SipHeaders.Names.*;
@@ -45,8 +47,21 @@ public abstract class AbstractSipMessage implements SipMessage {
         }
     }
 
+    @Override
+    public Object getContent() {
+        return content;
+    }
+
     @Override
     public void setContent(Object body) {
         this.content = body;
     }
+    
+    protected void writeContentTo(ByteBuf buf) {
+        if (content instanceof ByteBuf) {
+            final ByteBuf body = (ByteBuf) content;
+            buf.writeBytes(body, body.readerIndex(), body.readableBytes());
+        } else if (content instanceof ByteBufWriteable)
+            ((ByteBufWriteable)content).writeTo(buf);
+    }
 }
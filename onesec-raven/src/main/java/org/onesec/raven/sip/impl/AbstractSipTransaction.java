@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipTransaction;
+
+/**
+ * The base of the transaction state machines. The timers (A - M) are scheduled on the timer wheel of the 
+ * {@link SipTransactionLayer}. The state is guarded by the monitor of the transaction. The transaction user
+ * is called outside of the monitor, so the user may call the other transactions (the proxy core does).
+ *
+ * @author Mikhail Titov
+ */
+public abstract class AbstractSipTransaction implements SipTransaction {
+    public final static char TIMER_A = 'A';
+    public final static char TIMER_B = 'B';
+    public final static char TIMER_C = 'C';
+    public final static char TIMER_D = 'D';
+    public final static char TIMER_E = 'E';
+    public final static char TIMER_F = 'F';
+    public final static char TIMER_G = 'G';
+    public final static char TIMER_H = 'H';
+    public final static char TIMER_I = 'I';
+    public final static char TIMER_J = 'J';
+    public final static char TIMER_K = 'K';
+    //RFC 6026
+    public final static char TIMER_L = 'L';
+    public final static char TIMER_M = 'M';
+    
+    protected final SipTransactionLayer layer;
+    protected final String key;
+    protected final String branch;
+    protected final SipRequest request;
+    protected final InetSocketAddress remoteAddress;
+    private final Timeout[] timers = new Timeout[TIMER_M-TIMER_A+1];
+    protected volatile State state;
+    //the current interval of the retransmission timer (A, E or G)
+    protected long retransmitInterval;
+    private volatile int retransmissionsCount;
+    private final AtomicBoolean terminatedNotified = new AtomicBoolean();
+    private boolean timeoutPending;
+    private Exception transportError;
+    private boolean transportErrorPending;
+
+    public AbstractSipTransaction(SipTransactionLayer layer, String key, String branch, SipRequest request, 
+            InetSocketAddress remoteAddress, State initialState) 
+    {
+        this.layer = layer;
+        this.key = key;
+        this.branch = branch;
+        this.request = request;
+        this.remoteAddress = remoteAddress;
+        this.state = initialState;
+        this.retransmitInterval = layer.getT1();
+    }
+
+    @Override
+    public String getBranch() {
+        return branch;
+    }
+
+    @Override
+    public SipRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int getRetransmissionsCount() {
+        return retransmissionsCount;
+    }
+
+    String getKey() {
+        return key;
+    }
+    
+    /**
+     * Called under the monitor of the transaction when the timer fired
+     * @return <b>true</b> if the transaction user must be notified about the timeout
+     */
+    protected abstract boolean timerFired(char timer);
+    
+    protected boolean isReliable() {
+        return layer.getTransport().isReliable();
+    }
+    
+    /**
+     * Sends the message to the remote side. The transport error terminates the transaction
+     */
+    protected void send(SipMessage message) {
+        final Exception error = layer.send(message, remoteAddress);
+        if (error!=null && transportError==null) {
+            transportError = error;
+            transportErrorPending = true;
+            terminate();
+        }
+    }
+    
+    protected void retransmit(SipMessage message) {
+        ++retransmissionsCount;
+        layer.retransmitted();
+        send(message);
+    }
+    
+    /**
+     * Starts the timer. The timer with zero delay (the wait timers D, I, J, K of the reliable transport)
+     * fires immediately
+     */
+    protected void startTimer(final char timer, final long delay) {
+        cancelTimer(timer);
+        if (delay<=0) {
+            if (timerFired(timer))
+                timeoutPending = true;
+        } else
+            timers[timer-TIMER_A] = layer.getTimer().newTimeout(new TransactionTimer(timer), delay, 
+                    TimeUnit.MILLISECONDS);
+    }
+    
+    protected void cancelTimer(final char timer) {
+        final Timeout timeout = timers[timer-TIMER_A];
+        if (timeout!=null) {
+            timeout.cancel();
+            timers[timer-TIMER_A] = null;
+        }
+    }
+    
+    /**
+     * Moves the transaction to the TERMINATED state and cancels the all timers. The transaction is removed
+     * from the layer by the {@link #fireEvents()}
+     */
+    protected void terminate() {
+        if (state==State.TERMINATED)
+            return;
+        state = State.TERMINATED;
+        for (char timer=TIMER_A; timer<=TIMER_M; ++timer)
+            cancelTimer(timer);
+    }
+    
+    /**
+     * Delivers the pending events (transport error, timeout, termination) to the transaction user. Must be
+     * called outside of the monitor of the transaction after the every state change
+     */
+    protected void fireEvents() {
+        final boolean timeout;
+        final Exception error;
+        synchronized(this) {
+            timeout = timeoutPending;
+            timeoutPending = false;
+            error = transportErrorPending? transportError : null;
+            transportErrorPending = false;
+        }
+        if (error!=null)
+            layer.getUser().processTransportError(this, error);
+        if (timeout)
+            layer.timeout(this);
+        if (state==State.TERMINATED && terminatedNotified.compareAndSet(false, true))
+            layer.terminated(this);
+    }
+    
+    private class TransactionTimer implements TimerTask {
+        private final char timer;
+
+        public TransactionTimer(char timer) {
+            this.timer = timer;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized(AbstractSipTransaction.this) {
+                if (timers[timer-TIMER_A]!=timeout || state==State.TERMINATED)
+                    return;
+                timers[timer-TIMER_A] = null;
+                if (timerFired(timer))
+                    timeoutPending = true;
+            }
+            fireEvents();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+" ("+branch+", "+request.getMethod()+", "+state+")";
+    }
+}
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import org.onesec.raven.sip.SipHeader;
 import org.onesec.raven.sip.SipHeaders;
 import org.onesec.raven.sip.SipMessage;
 import org.onesec.raven.sip.SipHeaders.Names;
@@ -44,18 +45,18 @@ public class HeadersParser {
     
     public void addHeadersToMessage(final SipMessage message) {        
         final SipHeaders sipHeaders = message.headers();
-        for (Map.Entry<String, List<String>> headerDef: headers.entrySet()) {
-            switch(Names.getByHeaderName(headerDef.getKey())) {
-                case Content_Length:
-                    sipHeaders.add(new ContentLength(headerDef.getValue()));
-                    break;
-                case Content_Type:
-                    sipHeaders.add(new ContentType(headerDef.getValue()));
-                    break;
-                default:
-                    sipHeaders.add(new DefaultSipHeader(headerDef.getKey(), headerDef.getValue()));
-            }
-        }
+        for (Map.Entry<String, List<String>> headerDef: headers.entrySet())
+            sipHeaders.add(createHeader(headerDef.getKey(), headerDef.getValue()));
+    }
+    
+    public static SipHeader createHeader(final String name, final List<String> values) {
+        final Names knownName = Names.getByHeaderName(name);
+        if (knownName==Names.Content_Length)
+            return new ContentLength(values);
+        else if (knownName==Names.Content_Type)
+            return new ContentType(values);
+        else
+            return new DefaultSipHeader(name, values);
     }
     
     public Map<String, List<String>> headers() {
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.net.InetSocketAddress;
+import org.onesec.raven.sip.SipClientTransaction;
+import org.onesec.raven.sip.SipHeader;
+import org.onesec.raven.sip.SipHeaders.Names;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import static org.onesec.raven.sip.SipTransaction.State.*;
+
+/**
+ * INVITE client transaction (RFC 3261 section 17.1.1, RFC 6026 section 7.2)
+ *
+ * @author Mikhail Titov
+ */
+public class InviteClientTransaction extends AbstractSipTransaction implements SipClientTransaction {
+    private volatile SipResponse lastResponse;
+    private SipRequest ack;
+
+    public InviteClientTransaction(SipTransactionLayer layer, String key, String branch, SipRequest request, 
+            InetSocketAddress remoteAddress) 
+    {
+        super(layer, key, branch, request, remoteAddress, CALLING);
+    }
+
+    @Override
+    public SipResponse getLastResponse() {
+        return lastResponse;
+    }
+    
+    void start() {
+        synchronized(this) {
+            send(request);
+            if (state==CALLING) {
+                if (!isReliable())
+                    startTimer(TIMER_A, retransmitInterval);
+                startTimer(TIMER_B, 64*layer.getT1());
+                if (layer.getTimerC()>0)
+                    startTimer(TIMER_C, layer.getTimerC());
+            }
+        }
+        fireEvents();
+    }
+    
+    void receiveResponse(final SipResponse response) {
+        boolean deliver = false;
+        synchronized(this) {
+            final int code = response.getStatusCode();
+            switch (state) {
+                case CALLING:
+                case PROCEEDING:
+                    deliver = true;
+                    lastResponse = response;
+                    cancelTimer(TIMER_A);
+                    cancelTimer(TIMER_B);
+                    if (code<200) {
+                        state = PROCEEDING;
+                        if (layer.getTimerC()>0)
+                            startTimer(TIMER_C, layer.getTimerC());
+                    } else if (code<300) {
+                        //the ACK for 2xx is the business of the transaction user
+                        state = ACCEPTED;
+                        cancelTimer(TIMER_C);
+                        startTimer(TIMER_M, 64*layer.getT1());
+                    } else {
+                        state = COMPLETED;
+                        cancelTimer(TIMER_C);
+                        ack = createAck(response);
+                        send(ack);
+                        startTimer(TIMER_D, isReliable()? 0 : layer.getTimerD());
+                    }
+                    break;
+                case ACCEPTED:
+                    //the retransmissions of 2xx (or 2xx from the other forks) are passed to the user
+                    deliver = code>=200 && code<300;
+                    break;
+                case COMPLETED:
+                    //the retransmission of the final response
+                    if (code>=300)
+                        retransmit(ack);
+                    break;
+            }
+        }
+        if (deliver)
+            layer.getUser().processResponse(this, response);
+        fireEvents();
+    }
+
+    @Override
+    protected boolean timerFired(char timer) {
+        switch (timer) {
+            case TIMER_A:
+                if (state==CALLING) {
+                    retransmit(request);
+                    retransmitInterval *= 2;
+                    startTimer(TIMER_A, retransmitInterval);
+                }
+                return false;
+            case TIMER_B:
+                terminate();
+                return true;
+            case TIMER_C:
+                //the proxy must cancel the request
+                return state==CALLING || state==PROCEEDING;
+            case TIMER_D:
+            case TIMER_M:
+                terminate();
+                return false;
+            default: 
+                return false;
+        }
+    }
+    
+    /**
+     * Creates the ACK for the non 2xx final response (RFC 3261 section 17.1.1.3)
+     */
+    private SipRequest createAck(final SipResponse response) {
+        final SipRequestImpl ackRequest = SipMessageFactory.createRequest(
+                SipRequest.Method.ACK.name(), request.getRawRequestURI());
+        SipMessageFactory.setHeader(ackRequest, Names.Via.headerName, 
+                SipMessageFactory.getHeader(request, Names.Via.headerName));
+        for (String name: new String[]{Names.From.headerName, Names.Call_Id.headerName, "Route"}) {
+            final SipHeader header = request.headers().get(name);
+            if (header!=null)
+                ackRequest.headers().add(header);
+        }
+        final SipHeader to = response.headers().get(Names.To.headerName);
+        if (to!=null)
+            ackRequest.headers().add(to);
+        SipMessageFactory.setHeader(ackRequest, SipMessageFactory.CSEQ, 
+                SipMessageFactory.getCSeqNumber(request)+" "+SipRequest.Method.ACK.name());
+        SipMessageFactory.setHeader(ackRequest, SipMessageFactory.MAX_FORWARDS, "70");
+        SipMessageFactory.setHeader(ackRequest, Names.Content_Length.headerName, "0");
+        return ackRequest;
+    }
+}
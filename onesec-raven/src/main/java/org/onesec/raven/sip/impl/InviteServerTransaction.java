@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.net.InetSocketAddress;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipMessageException;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import org.onesec.raven.sip.SipServerTransaction;
+import static org.onesec.raven.sip.SipTransaction.State.*;
+
+/**
+ * INVITE server transaction (RFC 3261 section 17.2.1, RFC 6026 section 7.1). The transaction answers with
+ * 100 Trying at once, so the client stops the retransmissions of the INVITE. In the ACCEPTED state the
+ * retransmissions of the INVITE are absorbed and the user may pass the retransmissions of 2xx.
+ *
+ * @author Mikhail Titov
+ */
+public class InviteServerTransaction extends AbstractSipTransaction implements SipServerTransaction {
+    private volatile SipResponse lastResponse;
+
+    public InviteServerTransaction(SipTransactionLayer layer, String key, String branch, SipRequest request, 
+            InetSocketAddress remoteAddress) 
+    {
+        super(layer, key, branch, request, remoteAddress, PROCEEDING);
+    }
+
+    @Override
+    public SipResponse getLastResponse() {
+        return lastResponse;
+    }
+    
+    void start() {
+        synchronized(this) {
+            lastResponse = SipMessageFactory.createResponse(request, 100, "Trying");
+            send(lastResponse);
+        }
+        fireEvents();
+    }
+    
+    /**
+     * Absorbs the retransmission of the INVITE or the ACK for the non 2xx final response. The retransmission
+     * of the INVITE in the ACCEPTED state is discarded.
+     */
+    void receiveRequest(final SipRequest req) {
+        synchronized(this) {
+            if (req.getKnownMethod()==SipMessage.Method.ACK) {
+                if (state==COMPLETED) {
+                    state = CONFIRMED;
+                    cancelTimer(TIMER_G);
+                    cancelTimer(TIMER_H);
+                    startTimer(TIMER_I, isReliable()? 0 : layer.getT4());
+                }
+            } else if ((state==PROCEEDING || state==COMPLETED) && lastResponse!=null)
+                retransmit(lastResponse);
+        }
+        fireEvents();
+    }
+
+    @Override
+    public void sendResponse(final SipResponse response) throws SipMessageException {
+        synchronized(this) {
+            if (state!=PROCEEDING && !(state==ACCEPTED && isSuccess(response)))
+                throw new SipMessageException("The final response to the request was already sent");
+            final int code = response.getStatusCode();
+            lastResponse = response;
+            send(response);
+            if (isSuccess(response) && state==PROCEEDING) {
+                //the retransmissions of 2xx is the business of the transaction user
+                state = ACCEPTED;
+                startTimer(TIMER_L, 64*layer.getT1());
+            } else if (code>=300 && state==PROCEEDING) {
+                state = COMPLETED;
+                if (!isReliable())
+                    startTimer(TIMER_G, retransmitInterval);
+                startTimer(TIMER_H, 64*layer.getT1());
+            }
+        }
+        fireEvents();
+    }
+
+    private static boolean isSuccess(final SipResponse response) {
+        return response.getStatusCode()>=200 && response.getStatusCode()<300;
+    }
+
+    @Override
+    protected boolean timerFired(char timer) {
+        switch (timer) {
+            case TIMER_G:
+                if (state==COMPLETED) {
+                    retransmit(lastResponse);
+                    retransmitInterval = Math.min(2*retransmitInterval, layer.getT2());
+                    startTimer(TIMER_G, retransmitInterval);
+                }
+                return false;
+            case TIMER_H:
+                terminate();
+                return true;
+            case TIMER_I:
+            case TIMER_L:
+                terminate();
+                return false;
+            default: 
+                return false;
+        }
+    }
+}
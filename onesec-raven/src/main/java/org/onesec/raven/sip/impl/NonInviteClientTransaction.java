@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.net.InetSocketAddress;
+import org.onesec.raven.sip.SipClientTransaction;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import static org.onesec.raven.sip.SipTransaction.State.*;
+
+/**
+ * Non-INVITE client transaction (RFC 3261 section 17.1.2)
+ *
+ * @author Mikhail Titov
+ */
+public class NonInviteClientTransaction extends AbstractSipTransaction implements SipClientTransaction {
+    private volatile SipResponse lastResponse;
+
+    public NonInviteClientTransaction(SipTransactionLayer layer, String key, String branch, SipRequest request, 
+            InetSocketAddress remoteAddress) 
+    {
+        super(layer, key, branch, request, remoteAddress, TRYING);
+    }
+
+    @Override
+    public SipResponse getLastResponse() {
+        return lastResponse;
+    }
+    
+    void start() {
+        synchronized(this) {
+            send(request);
+            if (state==TRYING) {
+                if (!isReliable())
+                    startTimer(TIMER_E, retransmitInterval);
+                startTimer(TIMER_F, 64*layer.getT1());
+            }
+        }
+        fireEvents();
+    }
+    
+    void receiveResponse(final SipResponse response) {
+        boolean deliver = false;
+        synchronized(this) {
+            if (state==TRYING || state==PROCEEDING) {
+                deliver = true;
+                lastResponse = response;
+                if (response.getStatusCode()<200) 
+                    state = PROCEEDING;
+                else {
+                    state = COMPLETED;
+                    cancelTimer(TIMER_E);
+                    cancelTimer(TIMER_F);
+                    startTimer(TIMER_K, isReliable()? 0 : layer.getT4());
+                }
+            }
+        }
+        if (deliver)
+            layer.getUser().processResponse(this, response);
+        fireEvents();
+    }
+
+    @Override
+    protected boolean timerFired(char timer) {
+        switch (timer) {
+            case TIMER_E:
+                if (state==TRYING || state==PROCEEDING) {
+                    retransmit(request);
+                    retransmitInterval = state==TRYING? Math.min(2*retransmitInterval, layer.getT2()) : layer.getT2();
+                    startTimer(TIMER_E, retransmitInterval);
+                }
+                return false;
+            case TIMER_F:
+                terminate();
+                return true;
+            case TIMER_K:
+                terminate();
+                return false;
+            default: 
+                return false;
+        }
+    }
+}
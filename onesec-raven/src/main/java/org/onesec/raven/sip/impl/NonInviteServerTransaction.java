@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.net.InetSocketAddress;
+import org.onesec.raven.sip.SipMessageException;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import org.onesec.raven.sip.SipServerTransaction;
+import static org.onesec.raven.sip.SipTransaction.State.*;
+
+/**
+ * Non-INVITE server transaction (RFC 3261 section 17.2.2)
+ *
+ * @author Mikhail Titov
+ */
+public class NonInviteServerTransaction extends AbstractSipTransaction implements SipServerTransaction {
+    private volatile SipResponse lastResponse;
+
+    public NonInviteServerTransaction(SipTransactionLayer layer, String key, String branch, SipRequest request, 
+            InetSocketAddress remoteAddress) 
+    {
+        super(layer, key, branch, request, remoteAddress, TRYING);
+    }
+
+    @Override
+    public SipResponse getLastResponse() {
+        return lastResponse;
+    }
+    
+    /**
+     * Absorbs the retransmission of the request. The retransmission in the TRYING state is discarded
+     */
+    void receiveRequest(final SipRequest req) {
+        synchronized(this) {
+            if ((state==PROCEEDING || state==COMPLETED) && lastResponse!=null)
+                retransmit(lastResponse);
+        }
+        fireEvents();
+    }
+
+    @Override
+    public void sendResponse(final SipResponse response) throws SipMessageException {
+        synchronized(this) {
+            if (state!=TRYING && state!=PROCEEDING)
+                throw new SipMessageException("The final response to the request was already sent");
+            lastResponse = response;
+            send(response);
+            if (response.getStatusCode()<200) {
+                if (state==TRYING)
+                    state = PROCEEDING;
+            } else if (state!=TERMINATED) {
+                state = COMPLETED;
+                startTimer(TIMER_J, isReliable()? 0 : 64*layer.getT1());
+            }
+        }
+        fireEvents();
+    }
+
+    @Override
+    protected boolean timerFired(char timer) {
+        if (timer==TIMER_J) 
+            terminate();
+        return false;
+    }
+}
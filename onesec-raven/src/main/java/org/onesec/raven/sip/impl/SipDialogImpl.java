@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.sip.SipDialog;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class SipDialogImpl implements SipDialog {
+    //object headers and fields of the dialog, of the AtomicLong and of the entry of the registry map
+    private final static int SHALLOW_SIZE = 64 + 24 + 48;
+    
+    private final String id;
+    private final String callId;
+    private final String localTag;
+    private final String remoteTag;
+    private final boolean client;
+    private final AtomicLong localSeqNumber;
+    private volatile long remoteSeqNumber;
+    private volatile String remoteTarget;
+    private volatile State state;
+    private final int memoryUsage;
+
+    public SipDialogImpl(String callId, String localTag, String remoteTag, boolean client, long localSeqNumber, 
+            long remoteSeqNumber, String remoteTarget, State state) 
+    {
+        this.id = createId(callId, localTag, remoteTag);
+        this.callId = callId;
+        this.localTag = localTag;
+        this.remoteTag = remoteTag;
+        this.client = client;
+        this.localSeqNumber = new AtomicLong(localSeqNumber);
+        this.remoteSeqNumber = remoteSeqNumber;
+        this.remoteTarget = remoteTarget;
+        this.state = state;
+        this.memoryUsage = SHALLOW_SIZE + sizeOf(id) + sizeOf(callId) + sizeOf(localTag) + sizeOf(remoteTag) 
+                + sizeOf(remoteTarget);
+    }
+    
+    public static String createId(String callId, String localTag, String remoteTag) {
+        return callId+"|"+localTag+"|"+remoteTag;
+    }
+    
+    /**
+     * Returns the estimated size of the string in the heap (object header, char array with the header)
+     */
+    static int sizeOf(String str) {
+        return str==null? 0 : 40 + 2*str.length();
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getCallId() {
+        return callId;
+    }
+
+    @Override
+    public String getLocalTag() {
+        return localTag;
+    }
+
+    @Override
+    public String getRemoteTag() {
+        return remoteTag;
+    }
+
+    @Override
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    @Override
+    public String getRemoteTarget() {
+        return remoteTarget;
+    }
+
+    void setRemoteTarget(String remoteTarget) {
+        this.remoteTarget = remoteTarget;
+    }
+
+    @Override
+    public boolean isClient() {
+        return client;
+    }
+
+    @Override
+    public long nextLocalSeqNumber() {
+        return localSeqNumber.incrementAndGet();
+    }
+
+    @Override
+    public long getRemoteSeqNumber() {
+        return remoteSeqNumber;
+    }
+
+    void setRemoteSeqNumber(long remoteSeqNumber) {
+        this.remoteSeqNumber = remoteSeqNumber;
+    }
+
+    @Override
+    public int getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    @Override
+    public String toString() {
+        return "Dialog ("+id+", "+state+")";
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.sip.SipDialog;
+import org.onesec.raven.sip.SipHeaders.Names;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+
+/**
+ * The dialogs of the user agent (RFC 3261 section 12) found by Call-ID and tags. The registry accounts the 
+ * estimated heap held by the active dialogs.
+ *
+ * @author Mikhail Titov
+ */
+public class SipDialogRegistry {
+    private final ConcurrentHashMap<String, SipDialogImpl> dialogs = new ConcurrentHashMap<>();
+    private final AtomicLong memoryUsage = new AtomicLong();
+    private final AtomicLong dialogsCount = new AtomicLong();
+    
+    /**
+     * Creates (or confirms the early) dialog of the UAC by the response with the To tag to the INVITE.
+     * @return the dialog or <b>null</b> if the response does not create the dialog (without To tag, or
+     *      the final non 2xx response)
+     */
+    public SipDialog processInviteResponse(SipRequest invite, SipResponse response) {
+        final int code = response.getStatusCode();
+        final String remoteTag = SipMessageFactory.getTag(response, Names.To);
+        if (code<101 || code>=300 || remoteTag==null)
+            return null;
+        final String callId = SipMessageFactory.getCallId(response);
+        final String localTag = SipMessageFactory.getTag(response, Names.From);
+        final SipDialog.State state = code<200? SipDialog.State.EARLY : SipDialog.State.CONFIRMED;
+        SipDialogImpl dialog = dialogs.get(SipDialogImpl.createId(callId, localTag, remoteTag));
+        if (dialog==null) {
+            dialog = add(new SipDialogImpl(callId, localTag, remoteTag, true, 
+                    SipMessageFactory.getCSeqNumber(invite), 0, SipMessageFactory.getContactUri(response), state));
+        } else if (state==SipDialog.State.CONFIRMED && dialog.getState()==SipDialog.State.EARLY) {
+            dialog.setState(state);
+            dialog.setRemoteTarget(SipMessageFactory.getContactUri(response));
+        }
+        return dialog;
+    }
+    
+    /**
+     * Creates the dialog of the UAS for the INVITE answered with the response (with the local tag in To).
+     */
+    public SipDialog createServerDialog(SipRequest invite, SipResponse response) {
+        final SipDialogImpl dialog = new SipDialogImpl(SipMessageFactory.getCallId(invite), 
+                SipMessageFactory.getTag(response, Names.To), SipMessageFactory.getTag(invite, Names.From), false, 
+                0, SipMessageFactory.getCSeqNumber(invite), SipMessageFactory.getContactUri(invite), 
+                response.getStatusCode()<200? SipDialog.State.EARLY : SipDialog.State.CONFIRMED);
+        return add(dialog);
+    }
+    
+    /**
+     * Finds the dialog of the message received from the remote side
+     */
+    public SipDialog find(SipMessage message) {
+        final String callId = SipMessageFactory.getCallId(message);
+        final String fromTag = SipMessageFactory.getTag(message, Names.From);
+        final String toTag = SipMessageFactory.getTag(message, Names.To);
+        final SipDialogImpl dialog = message instanceof SipRequest?
+                dialogs.get(SipDialogImpl.createId(callId, toTag, fromTag)) :
+                dialogs.get(SipDialogImpl.createId(callId, fromTag, toTag));
+        if (dialog!=null && message instanceof SipRequest) {
+            final long seqNumber = SipMessageFactory.getCSeqNumber(message);
+            if (seqNumber>dialog.getRemoteSeqNumber())
+                dialog.setRemoteSeqNumber(seqNumber);
+        }
+        return dialog;
+    }
+    
+    public void confirm(SipDialog dialog) {
+        if (dialog.getState()==SipDialog.State.EARLY)
+            ((SipDialogImpl)dialog).setState(SipDialog.State.CONFIRMED);
+    }
+    
+    public void terminate(SipDialog dialog) {
+        ((SipDialogImpl)dialog).setState(SipDialog.State.TERMINATED);
+        if (dialogs.remove(dialog.getId(), dialog))
+            memoryUsage.addAndGet(-dialog.getMemoryUsage());
+    }
+    
+    public int getActiveDialogsCount() {
+        return dialogs.size();
+    }
+    
+    public long getDialogsCount() {
+        return dialogsCount.get();
+    }
+    
+    /**
+     * Returns the estimated count of the bytes held by the active dialogs
+     */
+    public long getMemoryUsage() {
+        return memoryUsage.get();
+    }
+    
+    private SipDialogImpl add(final SipDialogImpl dialog) {
+        final SipDialogImpl existing = dialogs.putIfAbsent(dialog.getId(), dialog);
+        if (existing!=null)
+            return existing;
+        dialogsCount.incrementAndGet();
+        memoryUsage.addAndGet(dialog.getMemoryUsage());
+        return dialog;
+    }
+}
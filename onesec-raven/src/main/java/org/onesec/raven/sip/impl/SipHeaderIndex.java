@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.onesec.raven.sip.SipConstants;
+import org.onesec.raven.sip.SipHeaders.Names;
+import org.onesec.raven.sip.SipMessageDecoderException;
+
+/**
+ * The index of the header lines of the decoded message. The index holds only the offsets of the name and
+ * of the value of every header line in the buffer of the message, so the decoding of the message does not
+ * create the strings. The values are materialized on the first access to the header. The known names
+ * (including the compact forms) are resolved at the moment of the indexing, the folded values (continued
+ * on the next lines) are joined with the single space.
+ *
+ * @author Mikhail Titov
+ */
+public final class SipHeaderIndex {
+    private final static int INITIAL_CAPACITY = 16;
+    private final static Names[] NAMES = Names.values();
+    private final static byte[][] NAME_BYTES = new byte[NAMES.length][];
+    private final static byte[][] COMPACT_NAME_BYTES = new byte[NAMES.length][];
+    static {
+        for (int i=0; i<NAMES.length; ++i) {
+            NAME_BYTES[i] = NAMES[i].getBytesOfHeaderName();
+            COMPACT_NAME_BYTES[i] = NAMES[i].getBytesOfCompactForm();
+        }
+    }
+    
+    private ByteBuf buf;
+    private int base;
+    private int count = 0;
+    //nameStart, nameEnd, valueStart, valueEnd (relative to the base) of the every header line
+    private int[] offsets = new int[INITIAL_CAPACITY*4];
+    //the ordinal of the known name, -1 for the unknown name
+    private byte[] names = new byte[INITIAL_CAPACITY];
+    private boolean[] folded = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * @param buf the buffer with the message
+     * @param base the index of the first byte of the message in the buffer
+     */
+    public SipHeaderIndex(ByteBuf buf, int base) {
+        this.buf = buf;
+        this.base = base;
+    }
+    
+    /**
+     * Switches the index to the copy of the message
+     */
+    void attach(ByteBuf buf, int base) {
+        this.buf = buf;
+        this.base = base;
+    }
+    
+    /**
+     * Adds the header line. All positions are the absolute indexes in the buffer
+     */
+    void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (count==names.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length*2);
+            names = Arrays.copyOf(names, names.length*2);
+            folded = Arrays.copyOf(folded, folded.length*2);
+        }
+        final int pos = count*4;
+        offsets[pos] = nameStart-base;
+        offsets[pos+1] = nameEnd-base;
+        offsets[pos+2] = valueStart-base;
+        offsets[pos+3] = valueEnd-base;
+        names[count] = (byte)resolveName(nameStart, nameEnd);
+        folded[count++] = false;
+    }
+    
+    /**
+     * Extends the value of the last header to the continuation line ending at the <b>valueEnd</b>
+     */
+    void appendLine(int valueEnd) {
+        offsets[(count-1)*4+3] = valueEnd-base;
+        folded[count-1] = true;
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Returns the known name of the header line or <b>null</b> if the name is not in the {@link Names}
+     */
+    public Names getKnownName(int i) {
+        return names[i]<0? null : NAMES[names[i]];
+    }
+    
+    /**
+     * Returns the canonical name of the header line (the full form for the known names)
+     */
+    public String getName(int i) {
+        if (names[i]>=0)
+            return NAMES[names[i]].headerName;
+        final int start = offsets[i*4];
+        return SipUtils.toHeaderName(buf.toString(base+start, offsets[i*4+1]-start, StandardCharsets.UTF_8));
+    }
+    
+    public String getValue(int i) {
+        final int start = base+offsets[i*4+2];
+        final int end = base+offsets[i*4+3];
+        if (!folded[i])
+            return buf.toString(start, end-start, StandardCharsets.UTF_8);
+        //unfolding: the line break with the following whitespaces is replaced by the one space
+        final byte[] bytes = new byte[end-start];
+        int len = 0;
+        boolean lineBreak = false;
+        for (int pos=start; pos<end; ++pos) {
+            final byte b = buf.getByte(pos);
+            if (b==SipConstants.CR || b==SipConstants.LF)
+                lineBreak = true;
+            else if (lineBreak && (b==' ' || b=='\t'))
+                continue;
+            else {
+                if (lineBreak) {
+                    if (len>0)
+                        bytes[len++] = ' ';
+                    lineBreak = false;
+                }
+                bytes[len++] = b;
+            }
+        }
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Returns the values of all header lines with the name. The values of the line are split by the comma
+     * @param name the canonical name of the header
+     * @return the list of values or <b>null</b> if the message does not contain the header
+     */
+    public List<String> getValues(String name) {
+        final Names knownName = Names.getByHeaderName(name);
+        List<String> values = null;
+        for (int i=0; i<count; ++i)
+            if (knownName!=null? names[i]==knownName.ordinal() : names[i]<0 && nameEquals(i, name)) {
+                if (values==null)
+                    values = new ArrayList<>(2);
+                SipUtils.splitHeaderValues(getValue(i), ',', '"', false, values);
+            }
+        return values;
+    }
+    
+    /**
+     * Returns the value of the Content-Length header or -1 if the message does not have the header
+     * @throws SipMessageDecoderException if the value is invalid, greater than <b>maxContentLength</b> or the
+     *      message contains the different values of the header
+     */
+    public int getContentLength(int maxContentLength) throws SipMessageDecoderException {
+        int contentLength = -1;
+        for (int i=0; i<count; ++i)
+            if (names[i]==Names.Content_Length.ordinal()) {
+                final int len = parseContentLength(i, maxContentLength);
+                if (contentLength>=0 && len!=contentLength)
+                    throw new SipMessageDecoderException("Multiple Content-Length headers with different values");
+                contentLength = len;
+            }
+        return contentLength;
+    }
+    
+    private int parseContentLength(int i, int maxContentLength) throws SipMessageDecoderException {
+        final int start = base+offsets[i*4+2];
+        final int end = base+offsets[i*4+3];
+        long len = 0;
+        int digits = 0;
+        for (int pos=start; pos<end; ++pos) {
+            final byte b = buf.getByte(pos);
+            if (b>='0' && b<='9') {
+                len = len*10 + b-'0';
+                if (len>maxContentLength)
+                    throw new SipMessageDecoderException(String.format(
+                            "Content-Length is greater than %d bytes", maxContentLength));
+                ++digits;
+            } else if (b!=' ' && b!='\t' && b!=SipConstants.CR && b!=SipConstants.LF)
+                throw new SipMessageDecoderException("Invalid value of Content-Length header: "+getValue(i));
+        }
+        if (digits==0)
+            throw new SipMessageDecoderException("Empty value of Content-Length header");
+        return (int)len;
+    }
+    
+    private boolean nameEquals(int i, String name) {
+        final int start = base+offsets[i*4];
+        final int len = offsets[i*4+1]-offsets[i*4];
+        if (len!=name.length())
+            return false;
+        for (int j=0; j<len; ++j)
+            if (toLowerCase(buf.getByte(start+j))!=toLowerCase((byte)name.charAt(j)))
+                return false;
+        return true;
+    }
+    
+    private int resolveName(int nameStart, int nameEnd) {
+        final int len = nameEnd-nameStart;
+        for (int i=0; i<NAMES.length; ++i) {
+            final byte[] name = len==1? COMPACT_NAME_BYTES[i] : NAME_BYTES[i];
+            if (name!=null && name.length==len && bytesEqual(nameStart, name))
+                return i;
+        }
+        return -1;
+    }
+    
+    private boolean bytesEqual(int start, byte[] name) {
+        for (int j=0; j<name.length; ++j)
+            if (toLowerCase(buf.getByte(start+j))!=toLowerCase(name[j]))
+                return false;
+        return true;
+    }
+    
+    private static byte toLowerCase(byte b) {
+        return b>='A' && b<='Z'? (byte)(b+32) : b;
+    }
+}
@@ -17,10 +17,12 @@ package org.onesec.raven.sip.impl;
 
 import io.netty.buffer.ByteBuf;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.onesec.raven.sip.SipConstants;
 import org.onesec.raven.sip.SipHeader;
 import org.onesec.raven.sip.SipHeaders;
+import org.onesec.raven.sip.SipHeaders.Names;
 
 
 /**
@@ -29,7 +31,16 @@ import org.onesec.raven.sip.SipHeaders;
  */
 public class SipHeadersImpl implements SipHeaders {
     
-    private final Map<String, SipHeader> headers = new LinkedHashMap<>(8);
+    private Map<String, SipHeader> headers = new LinkedHashMap<>(8);
+    //the headers of the decoded message not materialized yet
+    private SipHeaderIndex index;
+
+    public SipHeadersImpl() {
+    }
+
+    public SipHeadersImpl(SipHeaderIndex index) {
+        this.index = index;
+    }
 
 //    @Override
 //    public Set<String> getHeaderNames() {
@@ -108,18 +119,61 @@ public class SipHeadersImpl implements SipHeaders {
 
     @Override
     public <T extends SipHeader> T get(String name) {
-        return (T) headers.get(name);
+        final String headerName = toCanonicalName(name);
+        SipHeader header = headers.get(headerName);
+        if (header==null && index!=null) {
+            header = createHeader(headerName);
+            if (header!=null)
+                headers.put(headerName, header);
+        }
+        return (T) header;
     }
 
     @Override
     public void add(SipHeader header) {
-        headers.put(header.getName(), header);
+        headers.put(toCanonicalName(header.getName()), header);
     }
 
     @Override
     public ByteBuf writeTo(ByteBuf buf) {
+        materializeAll();
         for (SipHeader header: headers.values())
             header.writeTo(buf).writeBytes(SipConstants.CRLF);
         return buf;
     }
+    
+    private SipHeader createHeader(final String name) {
+        final List<String> values = index.getValues(name);
+        return values==null? null : HeadersParser.createHeader(name, values);
+    }
+    
+    /**
+     * Creates the all headers of the decoded message in the order of the appearance in the message
+     */
+    private void materializeAll() {
+        if (index==null)
+            return;
+        final Map<String, SipHeader> all = new LinkedHashMap<>(index.size()*2);
+        for (int i=0; i<index.size(); ++i) {
+            final String name = index.getName(i);
+            if (!all.containsKey(name)) {
+                final SipHeader header = headers.get(name);
+                all.put(name, header!=null? header : createHeader(name));
+            }
+        }
+        for (Map.Entry<String, SipHeader> header: headers.entrySet())
+            if (!all.containsKey(header.getKey()))
+                all.put(header.getKey(), header.getValue());
+        headers = all;
+        index = null;
+    }
+    
+    private static String toCanonicalName(final String name) {
+        if (name.length()==1) {
+            final Names knownName = Names.getByHeaderName(name.toLowerCase());
+            if (knownName!=null)
+                return knownName.headerName;
+        }
+        return SipUtils.toHeaderName(name);
+    }
 }
@@ -16,185 +16,325 @@
 package org.onesec.raven.sip.impl;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.HttpConstants;
-import io.netty.util.internal.AppendableCharSequence;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import org.onesec.raven.sip.SipConstants;
 import org.onesec.raven.sip.SipMessage;
 import org.onesec.raven.sip.SipMessageDecoderException;
 import org.onesec.raven.sip.SipMessageDecoderState;
 import org.raven.tree.impl.LoggerHelper;
-import static org.onesec.raven.sip.impl.SipUtils.*;
 
 /**
+ * Decodes the SIP messages (requests and responses, RFC 3261 section 7) from the stream (TCP) or from the
+ * datagrams (UDP). The decoder scans the bytes only once: the head of the message is indexed
+ * ({@link SipHeaderIndex}) and the header values are materialized on the first access. Every decoded
+ * message is copied once to its own heap buffer, so the message does not hold the buffer of the channel.
+ * <p/>
+ * The message in the stream must have the Content-Length header (RFC 3261 section 18.3). In the datagram
+ * the body without Content-Length is the rest of the datagram and the bytes after the body are discarded.
  *
  * @author Mikhail Titov
  */
-public class SipMessageDecoder implements SipConstants {
-    public final static int MAX_INITIAL_LINE_SIZE = 256;
-    public final static int MAX_HEADER_LINE_SIZE = 1024;
+public class SipMessageDecoder extends ByteToMessageDecoder implements SipConstants {
+    public final static int MAX_INITIAL_LINE_SIZE = 1024;
+    public final static int MAX_HEADERS_SIZE = 16*1024;
+    public final static int MAX_CONTENT_LENGTH = 64*1024;
     
     public final static SipMessageDecoderException decoderException = new SipMessageDecoderException();
     private final LoggerHelper logger;
-    private final AppendableCharSequence line = new AppendableCharSequence(128);
-    private final String[] messageTypeLine = new String[3];
-    private SipMessage message;
-    private final HeadersParser headersParser = new HeadersParser();
-    private String currentHeaderName;
-    private String currentHeaderValue;
+    private final int maxHeadersSize;
+    private final int maxContentLength;
+    private SipMessageDecoderState state = SipMessageDecoderState.INIT;
+    //the count of the bytes of the head already scanned for the end of the headers
+    private int scanned;
+    private AbstractSipMessage message;
+    private ByteBuf messageBuf;
+    private int headLength;
+    private int contentLength;
 
     public SipMessageDecoder(final LoggerHelper logger) {
+        this(logger, MAX_HEADERS_SIZE, MAX_CONTENT_LENGTH);
+    }
+    
+    public SipMessageDecoder(final LoggerHelper logger, final int maxHeadersSize, final int maxContentLength) {
         this.logger = logger;
+        this.maxHeadersSize = maxHeadersSize;
+        this.maxContentLength = maxContentLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        SipMessage decoded;
+        while ( (decoded=decode(in))!=null )
+            out.add(decoded);
     }
     
-    protected SipMessageDecoderState decode(SipMessageDecoderState state, ChannelHandlerContext ctx, ByteBuf in, List<Object> out) 
-            throws Exception 
-    {
-        switch(state) {
-            case INIT: 
-                if (!skipControlCharacters(in))
-                    return SipMessageDecoderState.INIT;
-//                state = SipMessageDecoderState.DETECT_MESSAGE_TYPE;
-            case DETECT_MESSAGE_TYPE: 
-                if (!readLine(in, MAX_INITIAL_LINE_SIZE))
-                    return SipMessageDecoderState.DETECT_MESSAGE_TYPE;
-                boolean res = splitExactByWs(messageTypeLine, line, 0);
-                if (!res) {
-                    if (logger.isErrorEnabled())
-                        logger.error("Error decoding initial line: "+line);
-                    throw decoderException;
-                }
-                if (SIP_2_0.equals(messageTypeLine[0])) {
-                    //decoding response
-                } else {
-                    //decoding request
-                    message = new SipRequestImpl(messageTypeLine[0], messageTypeLine[1], messageTypeLine[2]);
-                }
-                line.reset();
-                state = SipMessageDecoderState.READING_HEADERS;
-            case READING_HEADERS: 
-                if (!readHeaders(in))
-                    return SipMessageDecoderState.READING_HEADERS;
-                state = SipMessageDecoderState.READING_CONTENT;
-            case READING_CONTENT:
-                if (!readContent(in))
-                    return SipMessageDecoderState.READING_CONTENT;
-                
-                break;            
+    /**
+     * Decodes the next message from the stream.
+     * @return the decoded message or <b>null</b> if the buffer does not contain the whole message yet (the
+     *      decoding will be continued from the same place when more bytes arrive)
+     * @throws SipMessageDecoderException if the message is invalid. The readable bytes of the buffer are
+     *      skipped, the decoder is ready for the next message
+     */
+    public SipMessage decode(final ByteBuf in) throws SipMessageDecoderException {
+        try {
+            switch (state) {
+                case INIT:
+                    if (!skipLineBreaks(in))
+                        return null;
+                    scanned = 0;
+                    state = SipMessageDecoderState.READING_HEADERS;
+                case READING_HEADERS:
+                    final int start = in.readerIndex();
+                    final int headEnd = findHeadEnd(in, start+scanned);
+                    if (headEnd<0) {
+                        scanned = Math.max(0, in.readableBytes()-3);
+                        if (in.readableBytes()>maxHeadersSize)
+                            throw error("The head of the message is larger than %d bytes", maxHeadersSize);
+                        return null;
+                    }
+                    headLength = headEnd-start;
+                    if (headLength>maxHeadersSize)
+                        throw error("The head of the message is larger than %d bytes", maxHeadersSize);
+                    final SipHeaderIndex index = new SipHeaderIndex(in, start);
+                    message = decodeHead(in, start, headEnd, index);
+                    contentLength = index.getContentLength(maxContentLength);
+                    if (contentLength<0)
+                        throw error("The message received from the stream must have Content-Length header");
+                    messageBuf = copyHead(in, start, index);
+                    state = SipMessageDecoderState.READING_CONTENT;
+                case READING_CONTENT:
+                    if (in.readableBytes()<contentLength)
+                        return null;
+                    return completeMessage(in);
+            }
+            return null;
+        } catch (SipMessageDecoderException e) {
+            in.skipBytes(in.readableBytes());
+            reset();
+            throw e;
         }
-        return state;
     }
     
-    private boolean readHeaders(final ByteBuf buf) throws SipMessageDecoderException {
-        for (;;) {
-            if (!readLine(buf, MAX_HEADER_LINE_SIZE)) 
-                return false;
-            if (line.length()==0) {
-                if (currentHeaderName!=null)
-                    headersParser.add(currentHeaderName, currentHeaderValue);
-                headersParser.addHeadersToMessage(message);
-                return true;
-            } if (Character.isWhitespace(line.charAt(0))) {
-                //appending string to current header;
-                if (currentHeaderName==null) {
-                    if (logger.isErrorEnabled())
-                        logger.error("Invalid start of header: "+line);
-                    throw decoderException;
-                } else {
-                    currentHeaderValue += " "+line;
+    /**
+     * Decodes the message from the datagram. The whole datagram is consumed.
+     * @return the decoded message or <b>null</b> if the datagram contains only the line breaks (keep-alive)
+     * @throws SipMessageDecoderException if the datagram does not contain the valid message
+     */
+    public SipMessage decodeDatagram(final ByteBuf datagram) throws SipMessageDecoderException {
+        try {
+            if (!skipLineBreaks(datagram))
+                return null;
+            final int start = datagram.readerIndex();
+            final int headEnd = findHeadEnd(datagram, start);
+            if (headEnd<0)
+                throw error("The datagram does not contain the whole head of the message");
+            final int headSize = headEnd-start;
+            final SipHeaderIndex index = new SipHeaderIndex(datagram, start);
+            final AbstractSipMessage msg = decodeHead(datagram, start, headEnd, index);
+            final int available = datagram.writerIndex()-headEnd;
+            int len = index.getContentLength(maxContentLength);
+            if (len<0) {
+                len = available;
+                if (len>maxContentLength)
+                    throw error("The body of the message is larger than %d bytes", maxContentLength);
+            } else if (len>available)
+                throw error("Content-Length (%d) is greater than the size of the body (%d)", len, available);
+            final ByteBuf buf = Unpooled.buffer(headSize+len).writeBytes(datagram, start, headSize+len);
+            index.attach(buf, 0);
+            if (len>0)
+                msg.setContent(buf.slice(headSize, len));
+            return msg;
+        } finally {
+            datagram.skipBytes(datagram.readableBytes());
+        }
+    }
+    
+    private SipMessage completeMessage(final ByteBuf in) {
+        messageBuf.writeBytes(in, in.readerIndex(), contentLength);
+        in.skipBytes(contentLength);
+        if (contentLength>0)
+            message.setContent(messageBuf.slice(headLength, contentLength));
+        final SipMessage res = message;
+        reset();
+        return res;
+    }
+    
+    private ByteBuf copyHead(final ByteBuf in, final int start, final SipHeaderIndex index) {
+        final ByteBuf buf = Unpooled.buffer(headLength+contentLength).writeBytes(in, start, headLength);
+        in.skipBytes(headLength);
+        index.attach(buf, 0);
+        return buf;
+    }
+    
+    /**
+     * Returns the index of the byte following the empty line that terminates the headers or -1 if the empty
+     * line is not found. The line may be terminated by CRLF or by the LF only
+     */
+    private static int findHeadEnd(final ByteBuf in, final int from) {
+        final int end = in.writerIndex();
+        for (int pos=from; pos<end; ++pos) 
+            if (in.getByte(pos)==LF) {
+                if (pos+1>=end)
+                    return -1;
+                final byte next = in.getByte(pos+1);
+                if (next==LF)
+                    return pos+2;
+                else if (next==CR) {
+                    if (pos+2>=end)
+                        return -1;
+                    if (in.getByte(pos+2)==LF)
+                        return pos+3;
                 }
-                line.reset();
-            } else {
-                //creating new header
-                if (currentHeaderName!=null) 
-                    headersParser.add(currentHeaderName, currentHeaderValue);
-                parseHeader(line);
-                line.reset();
             }
-        } 
+        return -1;
     }
     
-    private boolean readContent(final ByteBuf buf) throws SipMessageDecoderException {
-        final Integer contentLength = message.getContentLength();
-        if (contentLength==null || contentLength<0) {
-            if (logger.isErrorEnabled())
-                logger.error("SIP message must have valid Content-Length header");
-            throw decoderException;
-        }
-        if (contentLength==0)
-            return true;
-        final String contentType = message.getContentType();
-        if (contentType==null || contentType.isEmpty()) {
-            if (logger.isErrorEnabled())
-                logger.error("SIP message with not empty body must have Content-Type header");
-            throw decoderException;
-        }
-        if (buf.readableBytes()<contentLength)
-            return false;        
-//        parseContent(buf);
-        return true;
+    private AbstractSipMessage decodeHead(final ByteBuf in, final int start, final int headEnd, 
+            final SipHeaderIndex index) 
+        throws SipMessageDecoderException
+    {
+        int lineEnd = in.indexOf(start, headEnd, LF);
+        final int pos = lineEnd+1;
+        if (lineEnd>start && in.getByte(lineEnd-1)==CR)
+            --lineEnd;
+        if (lineEnd-start>MAX_INITIAL_LINE_SIZE)
+            throw error("The initial line is larger than %d bytes", MAX_INITIAL_LINE_SIZE);
+        final AbstractSipMessage msg = decodeInitialLine(in, start, lineEnd, new SipHeadersImpl(index));
+        indexHeaders(in, pos, headEnd, index);
+        return msg;
     }
     
-    private void parseContent(final String contentType, final ByteBuf buf) {
-        
+    private AbstractSipMessage decodeInitialLine(final ByteBuf in, final int start, final int end, 
+            final SipHeadersImpl headers) 
+        throws SipMessageDecoderException
+    {
+        final int firstSpace = in.indexOf(start, end, (byte)' ');
+        if (firstSpace<=start)
+            throw invalidInitialLine(in, start, end);
+        if (startsWithVersion(in, start, firstSpace)) {
+            //Status-Line = SIP-Version SP Status-Code SP Reason-Phrase
+            final int codeEnd = firstSpace+4;
+            if (codeEnd>end || (codeEnd<end && in.getByte(codeEnd)!=' '))
+                throw invalidInitialLine(in, start, end);
+            int statusCode = 0;
+            for (int i=firstSpace+1; i<codeEnd; ++i) {
+                final byte b = in.getByte(i);
+                if (b<'0' || b>'9')
+                    throw invalidInitialLine(in, start, end);
+                statusCode = statusCode*10 + b-'0';
+            }
+            if (statusCode<100)
+                throw invalidInitialLine(in, start, end);
+            final String reason = codeEnd<end? in.toString(codeEnd+1, end-codeEnd-1, StandardCharsets.UTF_8) : "";
+            return new SipResponseImpl(statusCode, reason, headers);
+        } else {
+            //Request-Line = Method SP Request-URI SP SIP-Version
+            final int secondSpace = in.indexOf(firstSpace+1, end, (byte)' ');
+            if (secondSpace<=firstSpace+1 || !startsWithVersion(in, secondSpace+1, end))
+                throw invalidInitialLine(in, start, end);
+            for (int i=firstSpace+1; i<secondSpace; ++i)
+                if (in.getByte(i)=='\t')
+                    throw invalidInitialLine(in, start, end);
+            final String method = in.toString(start, firstSpace-start, StandardCharsets.UTF_8);
+            final String uri = in.toString(firstSpace+1, secondSpace-firstSpace-1, StandardCharsets.UTF_8);
+            return new SipRequestImpl(method, uri, headers);
+        }
     }
     
-    private void parseHeader(AppendableCharSequence headerLine) throws SipMessageDecoderException {
-        int pos = indexOf(':', headerLine);
-        if (pos<1) {
-            if (logger.isErrorEnabled())
-                logger.error("Invalid header: "+headerLine);
-            throw decoderException;        
+    private static boolean startsWithVersion(final ByteBuf in, final int start, final int end) {
+        if (end-start<SIP_2_0_BYTES.length)
+            return false;
+        for (int i=0; i<SIP_2_0_BYTES.length; ++i) {
+            byte b = in.getByte(start+i);
+            if (b>='a' && b<='z')
+                b -= 32;
+            if (b!=SIP_2_0_BYTES[i])
+                return false;
         }
-        currentHeaderName = headerLine.substring(0, pos);
-        currentHeaderValue = pos+1<headerLine.length()? headerLine.substring(pos+1, headerLine.length()) : "";
+        return end-start==SIP_2_0_BYTES.length;
     }
     
-    private boolean readLine(final ByteBuf buf, final int maxSize) throws SipMessageDecoderException {
-        char prevChar = line.length()==0? 0 : line.charAt(line.length()-1);
-        for (int i=0; i<buf.readableBytes(); ++i) {
-            char ch = (char)buf.readByte();
-            if (prevChar==HttpConstants.CR && ch==HttpConstants.LF) 
-                return true;
-            else {
-                prevChar = ch;
-                if (line.length()>=maxSize) {
-                    if (logger.isErrorEnabled())
-                        logger.error("SIP header or initial line is lager than "+maxSize+" bytes.");
-                    throw decoderException;
-                }
-                if (ch!=HttpConstants.CR && ch!=HttpConstants.LF) {
-                    line.append(ch);                
+    private void indexHeaders(final ByteBuf in, final int from, final int headEnd, final SipHeaderIndex index) 
+            throws SipMessageDecoderException 
+    {
+        int pos = from;
+        while (pos<headEnd) {
+            final int lineEnd = in.indexOf(pos, headEnd, LF);
+            final int next = lineEnd+1;
+            final int end = trimRight(in, pos, lineEnd>pos && in.getByte(lineEnd-1)==CR? lineEnd-1 : lineEnd);
+            if (end==pos && lineEnd-pos<=1)
+                break;
+            final byte first = in.getByte(pos);
+            if (first==' ' || first=='\t') {
+                //the continuation of the value of the previous header (folding)
+                if (index.size()==0)
+                    throw error("The first header line starts with the whitespace");
+                if (end>pos)
+                    index.appendLine(end);
+            } else {
+                final int colon = in.indexOf(pos, end, (byte)':');
+                if (colon<0)
+                    throw error("Invalid header line: %s", in.toString(pos, end-pos, StandardCharsets.UTF_8));
+                final int nameEnd = trimRight(in, pos, colon);
+                for (int i=pos; i<nameEnd; ++i) {
+                    final byte b = in.getByte(i);
+                    if (b==' ' || b=='\t')
+                        throw error("Invalid header name: %s", in.toString(pos, nameEnd-pos, StandardCharsets.UTF_8));
                 }
+                int valueStart = colon+1;
+                while (valueStart<end && isWhitespace(in.getByte(valueStart)))
+                    ++valueStart;
+                index.add(pos, nameEnd, valueStart, end);
             }
+            pos = next;
         }
-        return false;
     }
     
-    static boolean skipControlCharacters(ByteBuf buf) {       
-        int ch;
-        for (int i=0; i<buf.readableBytes(); i++) {
-            ch = buf.readUnsignedByte();
-            if (!Character.isISOControl(ch) && !Character.isWhitespace(ch)) {
-                buf.readerIndex(buf.readerIndex()-1);
+    private static int trimRight(final ByteBuf in, final int start, int end) {
+        while (end>start && isWhitespace(in.getByte(end-1)))
+            --end;
+        return end;
+    }
+    
+    private static boolean isWhitespace(final byte b) {
+        return b==' ' || b=='\t';
+    }
+    
+    /**
+     * Skips the CRLF sequences between the messages (RFC 5626 keep-alive)
+     * @return <b>true</b> if the buffer contains the start of the message
+     */
+    static boolean skipLineBreaks(final ByteBuf buf) {
+        while (buf.isReadable()) {
+            final byte b = buf.getByte(buf.readerIndex());
+            if (b!=CR && b!=LF)
                 return true;
-            }
+            buf.skipBytes(1);
         }
         return false;
     }
     
-    private void reset() {
-        message = null;
-        headersParser.reset();
-        currentHeaderName = null;
-        currentHeaderValue = null;
-        line.reset();
-        for (int i=0; i<messageTypeLine.length; ++i) 
-            messageTypeLine[i] = null;
+    private SipMessageDecoderException invalidInitialLine(final ByteBuf in, final int start, final int end) {
+        return error("Invalid initial line: %s", in.toString(start, end-start, StandardCharsets.UTF_8));
+    }
+    
+    private SipMessageDecoderException error(final String message, final Object... args) {
+        final String msg = args.length==0? message : String.format(message, args);
+        if (logger.isDebugEnabled())
+            logger.debug(msg);
+        return new SipMessageDecoderException(msg);
     }
     
-    public SipMessage getMessage() {
-        return message;
+    private void reset() {
+        state = SipMessageDecoderState.INIT;
+        scanned = 0;
+        message = null;
+        messageBuf = null;
+        headLength = 0;
+        contentLength = 0;
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.sip.SipConstants;
+import org.onesec.raven.sip.SipHeader;
+import org.onesec.raven.sip.SipHeaders.Names;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipRequest;
+
+/**
+ * Creates the requests and the responses and generates the unique branches, tags and Call-IDs. The
+ * static methods give the access to the headers used by the transactions and by the dialogs.
+ *
+ * @author Mikhail Titov
+ */
+public class SipMessageFactory implements SipConstants {
+    public final static String BRANCH_MAGIC_COOKIE = "z9hG4bK";
+    public final static String CSEQ = "CSeq";
+    public final static String MAX_FORWARDS = "Max-Forwards";
+    public final static String EXPIRES = "Expires";
+    public final static String TAG_PARAM = "tag";
+    public final static String BRANCH_PARAM = "branch";
+    
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public SipMessageFactory() {
+        this.prefix = Long.toHexString(new Random().nextLong() & 0xFFFFFFFFFFFFl)+".";
+    }
+    
+    public String generateBranch() {
+        return BRANCH_MAGIC_COOKIE+prefix+Long.toHexString(counter.incrementAndGet());
+    }
+    
+    public String generateTag() {
+        return prefix+Long.toHexString(counter.incrementAndGet());
+    }
+    
+    public String generateCallId(String host) {
+        return prefix+Long.toHexString(counter.incrementAndGet())+"@"+host;
+    }
+    
+    public static SipRequestImpl createRequest(String method, String requestUri) {
+        return new SipRequestImpl(method, requestUri, new SipHeadersImpl());
+    }
+    
+    /**
+     * Creates the response to the request. The Via, From, To, Call-ID and CSeq headers are copied from the
+     * request (RFC 3261 section 8.2.6.2)
+     */
+    public static SipResponseImpl createResponse(SipRequest request, int statusCode, String reasonPhrase) {
+        final SipResponseImpl response = new SipResponseImpl(statusCode, reasonPhrase);
+        for (String name: new String[]{Names.Via.headerName, Names.From.headerName, Names.To.headerName, 
+                Names.Call_Id.headerName, CSEQ}) 
+        {
+            final SipHeader header = request.headers().get(name);
+            if (header!=null)
+                response.headers().add(header);
+        }
+        setHeader(response, Names.Content_Length.headerName, "0");
+        return response;
+    }
+    
+    /**
+     * Adds the tag parameter to the To header of the message
+     */
+    public static void setToTag(SipMessage message, String tag) {
+        final String to = getHeader(message, Names.To.headerName);
+        if (to!=null && SipUtils.getParam(to, TAG_PARAM)==null)
+            setHeader(message, Names.To.headerName, to+";"+TAG_PARAM+"="+tag);
+    }
+    
+    /**
+     * Sets the header of the message (replaces the existing header with the same name)
+     */
+    public static void setHeader(SipMessage message, String name, String... values) {
+        message.headers().add(HeadersParser.createHeader(name, Arrays.asList(values)));
+    }
+    
+    /**
+     * Returns the first value of the header or <b>null</b> if the message does not have the header
+     */
+    public static String getHeader(SipMessage message, String name) {
+        final SipHeader header = message.headers().get(name);
+        return header==null? null : String.valueOf(header.getFirstValue());
+    }
+    
+    public static String getCallId(SipMessage message) {
+        return getHeader(message, Names.Call_Id.headerName);
+    }
+    
+    /**
+     * Returns the branch parameter of the top Via header
+     */
+    public static String getBranch(SipMessage message) {
+        return SipUtils.getParam(getHeader(message, Names.Via.headerName), BRANCH_PARAM);
+    }
+    
+    public static String getTag(SipMessage message, Names header) {
+        return SipUtils.getParam(getHeader(message, header.headerName), TAG_PARAM);
+    }
+    
+    public static String getCSeqMethod(SipMessage message) {
+        final String cseq = getHeader(message, CSEQ);
+        if (cseq==null)
+            return null;
+        final int pos = cseq.lastIndexOf(' ');
+        return pos<0? null : cseq.substring(pos+1).trim();
+    }
+    
+    /**
+     * Returns the sequence number of the CSeq header or -1 if the message does not have the valid header
+     */
+    public static long getCSeqNumber(SipMessage message) {
+        final String cseq = getHeader(message, CSEQ);
+        if (cseq==null)
+            return -1;
+        final int pos = cseq.indexOf(' ');
+        try {
+            return Long.parseLong(pos<0? cseq : cseq.substring(0, pos));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Returns the URI of the Contact header (without the display name and the angle brackets) or <b>null</b>
+     */
+    public static String getContactUri(SipMessage message) {
+        final String contact = getHeader(message, Names.Contact.headerName);
+        if (contact==null)
+            return null;
+        final int start = contact.indexOf('<');
+        if (start>=0) {
+            final int end = contact.indexOf('>', start);
+            return end<0? null : contact.substring(start+1, end);
+        }
+        final int end = contact.indexOf(';');
+        return end<0? contact.trim() : contact.substring(0, end).trim();
+    }
+}
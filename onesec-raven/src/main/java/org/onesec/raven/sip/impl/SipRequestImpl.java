@@ -32,17 +32,27 @@ import org.onesec.raven.sip.SipURI;
 public class SipRequestImpl extends AbstractSipMessage implements SipRequest, SipConstants {
     private final String method;
     private final Method knownMethod;
-    private final SipURI requestUri;
-    private final SipHeadersImpl headers = new SipHeadersImpl();
+    private final String rawRequestUri;
+    private SipURI requestUri;
+    private final SipHeadersImpl headers;
 
     public SipRequestImpl(String method, String requestUri, String version) throws Exception {
-        this.method = method;
-        this.knownMethod = parseMethod(method);
-        this.requestUri = new SipURIImpl(requestUri);
+        this(method, requestUri, new SipHeadersImpl());
         if (!SIP_2_0.equalsIgnoreCase(version))
             throw new SipMessageException("Invalid SIP version: ("+version+")");
+        getRequestURI();
     }    
 
+    /**
+     * Creates the decoded request. The Request-URI is parsed on the first access
+     */
+    SipRequestImpl(String method, String rawRequestUri, SipHeadersImpl headers) {
+        this.method = method;
+        this.knownMethod = parseMethod(method);
+        this.rawRequestUri = rawRequestUri;
+        this.headers = headers;
+    }
+
     @Override
     public String getMethod() {
         return method;
@@ -54,10 +64,21 @@ public class SipRequestImpl extends AbstractSipMessage implements SipRequest, Si
     }
 
     @Override
-    public SipURI getRequestURI() {
+    public SipURI getRequestURI() throws SipMessageException {
+        if (requestUri==null)
+            try {
+                requestUri = new SipURIImpl(rawRequestUri);
+            } catch (Exception e) {
+                throw new SipMessageException("Invalid Request-URI: "+rawRequestUri, e);
+            }
         return requestUri;
     }
 
+    @Override
+    public String getRawRequestURI() {
+        return rawRequestUri;
+    }
+
     @Override
     public String getVersion() {
         return SIP_2_0;
@@ -75,12 +96,16 @@ public class SipRequestImpl extends AbstractSipMessage implements SipRequest, Si
         else
             buf.writeBytes(SipUtils.toBytes(method));
         buf.writeByte(' ');
-        requestUri.writeTo(buf);
+        if (requestUri!=null)
+            requestUri.writeTo(buf);
+        else
+            buf.writeBytes(SipUtils.toBytes(rawRequestUri));
         buf.writeByte(' ');
         buf.writeBytes(SIP_2_0_BYTES);
         buf.writeBytes(CRLF);
         headers.writeTo(buf);
         buf.writeBytes(CRLF);
+        writeContentTo(buf);
         return buf;
     }
 
@@ -92,9 +117,4 @@ public class SipRequestImpl extends AbstractSipMessage implements SipRequest, Si
             return null;
         }
     }
-
-    @Override
-    public void setContent(Object body) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
 }
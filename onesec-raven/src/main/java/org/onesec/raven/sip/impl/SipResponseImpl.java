@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import org.onesec.raven.sip.SipConstants;
+import org.onesec.raven.sip.SipHeaders;
+import org.onesec.raven.sip.SipResponse;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class SipResponseImpl extends AbstractSipMessage implements SipResponse, SipConstants {
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final SipHeadersImpl headers;
+
+    public SipResponseImpl(int statusCode, String reasonPhrase) {
+        this(statusCode, reasonPhrase, new SipHeadersImpl());
+    }
+
+    SipResponseImpl(int statusCode, String reasonPhrase, SipHeadersImpl headers) {
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers;
+    }
+
+    @Override
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    @Override
+    public String getVersion() {
+        return SIP_2_0;
+    }
+
+    @Override
+    public SipHeaders headers() {
+        return headers;
+    }
+
+    @Override
+    public ByteBuf writeTo(ByteBuf buf) {
+        buf.writeBytes(SIP_2_0_BYTES);
+        buf.writeByte(' ');
+        buf.writeBytes(SipUtils.toBytes(Integer.toString(statusCode)));
+        buf.writeByte(' ');
+        buf.writeBytes(SipUtils.toBytes(reasonPhrase));
+        buf.writeBytes(CRLF);
+        headers.writeTo(buf);
+        buf.writeBytes(CRLF);
+        writeContentTo(buf);
+        return buf;
+    }
+
+    @Override
+    public String toString() {
+        return writeTo(Unpooled.buffer(64)).toString(StandardCharsets.ISO_8859_1);
+    }
+}
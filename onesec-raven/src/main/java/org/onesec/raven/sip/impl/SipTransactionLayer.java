@@ -0,0 +1,399 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.sip.SipClientTransaction;
+import org.onesec.raven.sip.SipHeaders.Names;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipMessageException;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import org.onesec.raven.sip.SipServerTransaction;
+import org.onesec.raven.sip.SipTransaction;
+import org.onesec.raven.sip.SipTransactionUser;
+import org.onesec.raven.sip.SipTransport;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * The transaction layer (RFC 3261 section 17). The transactions are found by the branch of the top Via and
+ * by the method (O(1) lookup in the hash map), the timers of the all transactions are scheduled on the one 
+ * timer wheel passed to the layer, so the many layers (proxies, terminals) may share the one timer thread.
+ * <p/>
+ * The layer also retransmits the 2xx responses to INVITE until the ACK (the duty of the UAS core, RFC 3261
+ * section 13.3.1.4), see {@link #sendInviteOk(SipServerTransaction, SipResponse)}.
+ * <p/>
+ * The layer works over the messages of the netty sip codec ({@link SipMessageDecoder}) and the
+ * {@link SipTransport}. The {@link org.onesec.raven.ivr.impl.SipTransparentProxyNode} does not use it: the proxy
+ * is built on the JAIN-SIP stack, which runs its own transactions and timers over its own message model.
+ *
+ * @author Mikhail Titov
+ */
+public class SipTransactionLayer {
+    public final static long T1 = 500;
+    public final static long T2 = 4000;
+    public final static long T4 = 5000;
+    public final static long TIMER_C = 180000;
+    public final static long TIMER_D = 32000;
+    
+    private final SipTransport transport;
+    private final SipTransactionUser user;
+    private final Timer timer;
+    private final LoggerHelper logger;
+    private final long t1;
+    private final long t2;
+    private final long t4;
+    private final long timerC;
+    private final long timerD;
+    private final ConcurrentHashMap<String, AbstractSipTransaction> clientTransactions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AbstractSipTransaction> serverTransactions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PendingInviteOk> pendingInviteOks = new ConcurrentHashMap<>();
+    private final AtomicLong transactionsCount = new AtomicLong();
+    private final AtomicLong retransmissionsCount = new AtomicLong();
+    private final AtomicLong timeoutsCount = new AtomicLong();
+    private final AtomicLong strayMessagesCount = new AtomicLong();
+
+    public SipTransactionLayer(SipTransport transport, SipTransactionUser user, Timer timer, LoggerHelper logger) {
+        this(transport, user, timer, logger, T1, T2, T4, 0);
+    }
+    
+    /**
+     * @param t1 the estimate of the round trip time in milliseconds
+     * @param t2 the maximum retransmit interval for the non-INVITE requests and INVITE responses
+     * @param t4 the maximum duration a message will remain in the network
+     * @param timerC the proxy INVITE transaction timeout (zero disables the timer C)
+     */
+    public SipTransactionLayer(SipTransport transport, SipTransactionUser user, Timer timer, LoggerHelper logger, 
+            long t1, long t2, long t4, long timerC) 
+    {
+        this.transport = transport;
+        this.user = user;
+        this.timer = timer;
+        this.logger = logger;
+        this.t1 = t1;
+        this.t2 = t2;
+        this.t4 = t4;
+        this.timerC = timerC;
+        this.timerD = Math.max(TIMER_D, 64*t1);
+    }
+    
+    /**
+     * Creates the client transaction and sends the request. 
+     * @throws SipMessageException if the top Via of the request does not have the RFC 3261 branch or the
+     *      transaction with the same branch already exists
+     */
+    public SipClientTransaction sendRequest(SipRequest request, InetSocketAddress destination) 
+            throws SipMessageException 
+    {
+        final String branch = SipMessageFactory.getBranch(request);
+        if (branch==null || !branch.startsWith(SipMessageFactory.BRANCH_MAGIC_COOKIE))
+            throw new SipMessageException("The top Via header of the request must have the branch parameter "
+                    + "starting with "+SipMessageFactory.BRANCH_MAGIC_COOKIE);
+        final String key = createKey(branch, request.getMethod());
+        switch (request.getKnownMethod()) {
+            case ACK:
+                throw new SipMessageException("ACK must be sent without the transaction");
+            case INVITE:
+                final InviteClientTransaction inviteTransaction = new InviteClientTransaction(
+                        this, key, branch, request, destination);
+                addTransaction(clientTransactions, inviteTransaction);
+                inviteTransaction.start();
+                return inviteTransaction;
+            default:
+                final NonInviteClientTransaction transaction = new NonInviteClientTransaction(
+                        this, key, branch, request, destination);
+                addTransaction(clientTransactions, transaction);
+                transaction.start();
+                return transaction;
+        }
+    }
+    
+    /**
+     * Sends the message without the transaction (ACK for 2xx, the stateless proxy forwarding)
+     */
+    public void sendStateless(SipMessage message, InetSocketAddress destination) throws Exception {
+        transport.send(message, destination);
+    }
+    
+    /**
+     * Sends the 2xx response to INVITE through the server transaction and retransmits it (for the unreliable
+     * transport) until the ACK is received. If the ACK was not received in 64*T1 the transaction user
+     * receives {@link SipTransactionUser#processTimeout(SipTransaction)}
+     */
+    public void sendInviteOk(SipServerTransaction transaction, SipResponse response) throws SipMessageException {
+        transaction.sendResponse(response);
+        if (transport.isReliable())
+            return;
+        final PendingInviteOk pending = new PendingInviteOk(transaction, response);
+        final PendingInviteOk prev = pendingInviteOks.put(pending.key, pending);
+        if (prev!=null)
+            prev.cancel();
+        pending.start();
+    }
+    
+    /**
+     * Passes the received message to the matching transaction or creates the server transaction for the
+     * new request.
+     */
+    public void receive(SipMessage message, InetSocketAddress source) {
+        if (message instanceof SipResponse)
+            receiveResponse((SipResponse) message, source);
+        else if (message instanceof SipRequest)
+            receiveRequest((SipRequest) message, source);
+    }
+    
+    public SipServerTransaction findServerTransaction(String branch, String method) {
+        return (SipServerTransaction) serverTransactions.get(createKey(branch, method));
+    }
+    
+    public SipClientTransaction findClientTransaction(String branch, String method) {
+        return (SipClientTransaction) clientTransactions.get(createKey(branch, method));
+    }
+    
+    /**
+     * Cancels the retransmissions of the 2xx responses. The active transactions are dropped without the
+     * notification of the transaction user.
+     */
+    public void stop() {
+        for (PendingInviteOk pending: pendingInviteOks.values())
+            pending.cancel();
+        pendingInviteOks.clear();
+        for (AbstractSipTransaction transaction: clientTransactions.values())
+            synchronized(transaction) {
+                transaction.terminate();
+            }
+        for (AbstractSipTransaction transaction: serverTransactions.values())
+            synchronized(transaction) {
+                transaction.terminate();
+            }
+        clientTransactions.clear();
+        serverTransactions.clear();
+    }
+    
+    private void receiveResponse(final SipResponse response, final InetSocketAddress source) {
+        final String branch = SipMessageFactory.getBranch(response);
+        final String method = SipMessageFactory.getCSeqMethod(response);
+        final AbstractSipTransaction transaction = branch==null || method==null? 
+                null : clientTransactions.get(createKey(branch, method));
+        if (transaction instanceof InviteClientTransaction)
+            ((InviteClientTransaction)transaction).receiveResponse(response);
+        else if (transaction instanceof NonInviteClientTransaction)
+            ((NonInviteClientTransaction)transaction).receiveResponse(response);
+        else
+            stray(response, source);
+    }
+    
+    private void receiveRequest(final SipRequest request, final InetSocketAddress source) {
+        final String branch = getServerBranch(request);
+        final SipRequest.Method method = request.getKnownMethod();
+        //ACK for the non 2xx response belongs to the INVITE transaction (RFC 3261 section 17.2.3)
+        final String key = createKey(branch, method==SipRequest.Method.ACK? 
+                SipRequest.Method.INVITE.name() : request.getMethod());
+        AbstractSipTransaction transaction = serverTransactions.get(key);
+        if (method==SipRequest.Method.ACK 
+                && (transaction==null || transaction.getState()==SipTransaction.State.ACCEPTED)) 
+        {
+            //ACK for 2xx is not the part of the transaction
+            final PendingInviteOk pending = pendingInviteOks.remove(createInviteOkKey(request));
+            if (pending!=null)
+                pending.cancel();
+            stray(request, source);
+            return;
+        }
+        if (transaction==null) {
+            final AbstractSipTransaction newTransaction = method==SipRequest.Method.INVITE?
+                    new InviteServerTransaction(this, key, branch, request, source) :
+                    new NonInviteServerTransaction(this, key, branch, request, source);
+            transaction = serverTransactions.putIfAbsent(key, newTransaction);
+            if (transaction==null) {
+                transactionsCount.incrementAndGet();
+                if (newTransaction instanceof InviteServerTransaction)
+                    ((InviteServerTransaction)newTransaction).start();
+                user.processRequest((SipServerTransaction)newTransaction, request);
+                return;
+            }
+        }
+        if (transaction instanceof InviteServerTransaction)
+            ((InviteServerTransaction)transaction).receiveRequest(request);
+        else
+            ((NonInviteServerTransaction)transaction).receiveRequest(request);
+    }
+    
+    /**
+     * Returns the branch of the request. The request of the RFC 2543 client (without the magic cookie) is 
+     * identified by the Call-ID, the From tag and the CSeq number.
+     */
+    private static String getServerBranch(final SipRequest request) {
+        final String branch = SipMessageFactory.getBranch(request);
+        if (branch!=null && branch.startsWith(SipMessageFactory.BRANCH_MAGIC_COOKIE))
+            return branch;
+        return SipMessageFactory.getCallId(request)+"|"+SipMessageFactory.getTag(request, Names.From)+"|"
+                +SipMessageFactory.getCSeqNumber(request);
+    }
+    
+    private static String createKey(final String branch, final String method) {
+        return branch+"|"+method;
+    }
+    
+    private static String createInviteOkKey(final SipMessage message) {
+        return SipMessageFactory.getCallId(message)+"|"+SipMessageFactory.getCSeqNumber(message);
+    }
+    
+    private void addTransaction(ConcurrentHashMap<String, AbstractSipTransaction> transactions, 
+            AbstractSipTransaction transaction) 
+        throws SipMessageException
+    {
+        if (transactions.putIfAbsent(transaction.getKey(), transaction)!=null)
+            throw new SipMessageException("The transaction with the branch ("+transaction.getBranch()
+                    +") already exists");
+        transactionsCount.incrementAndGet();
+    }
+    
+    private void stray(final SipMessage message, final InetSocketAddress source) {
+        strayMessagesCount.incrementAndGet();
+        user.processStray(message, source);
+    }
+    
+    Exception send(final SipMessage message, final InetSocketAddress destination) {
+        try {
+            transport.send(message, destination);
+            return null;
+        } catch (Exception e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error sending message to "+destination, e);
+            return e;
+        }
+    }
+    
+    void retransmitted() {
+        retransmissionsCount.incrementAndGet();
+    }
+    
+    void timeout(final SipTransaction transaction) {
+        timeoutsCount.incrementAndGet();
+        if (logger.isDebugEnabled())
+            logger.debug("Transaction timeout: "+transaction);
+        user.processTimeout(transaction);
+    }
+    
+    void terminated(final AbstractSipTransaction transaction) {
+        if (!clientTransactions.remove(transaction.getKey(), transaction))
+            serverTransactions.remove(transaction.getKey(), transaction);
+        user.transactionTerminated(transaction);
+    }
+
+    public SipTransport getTransport() {
+        return transport;
+    }
+
+    public SipTransactionUser getUser() {
+        return user;
+    }
+
+    public Timer getTimer() {
+        return timer;
+    }
+
+    public long getT1() {
+        return t1;
+    }
+
+    public long getT2() {
+        return t2;
+    }
+
+    public long getT4() {
+        return t4;
+    }
+
+    public long getTimerC() {
+        return timerC;
+    }
+
+    public long getTimerD() {
+        return timerD;
+    }
+    
+    public int getActiveTransactionsCount() {
+        return clientTransactions.size()+serverTransactions.size();
+    }
+    
+    public long getTransactionsCount() {
+        return transactionsCount.get();
+    }
+
+    public long getRetransmissionsCount() {
+        return retransmissionsCount.get();
+    }
+
+    public long getTimeoutsCount() {
+        return timeoutsCount.get();
+    }
+
+    public long getStrayMessagesCount() {
+        return strayMessagesCount.get();
+    }
+    
+    /**
+     * The 2xx response to INVITE waiting for the ACK
+     */
+    private class PendingInviteOk implements TimerTask {
+        private final String key;
+        private final SipServerTransaction transaction;
+        private final SipResponse response;
+        private final long deadline;
+        private long interval = t1;
+        private volatile Timeout timeout;
+
+        public PendingInviteOk(SipServerTransaction transaction, SipResponse response) {
+            this.key = createInviteOkKey(response);
+            this.transaction = transaction;
+            this.response = response;
+            this.deadline = System.currentTimeMillis()+64*t1;
+        }
+        
+        public void start() {
+            timeout = timer.newTimeout(this, interval, TimeUnit.MILLISECONDS);
+        }
+        
+        public void cancel() {
+            final Timeout _timeout = timeout;
+            if (_timeout!=null)
+                _timeout.cancel();
+        }
+
+        @Override
+        public void run(Timeout _timeout) throws Exception {
+            if (pendingInviteOks.get(key)!=this)
+                return;
+            if (System.currentTimeMillis()>=deadline) {
+                if (pendingInviteOks.remove(key, this))
+                    timeout(transaction);
+                return;
+            }
+            retransmitted();
+            send(response, transaction.getRemoteAddress());
+            interval = Math.min(2*interval, t2);
+            timeout = timer.newTimeout(this, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+}
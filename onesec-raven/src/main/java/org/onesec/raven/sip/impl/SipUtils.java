@@ -222,6 +222,54 @@ public class SipUtils {
         return new Pair(paramsAndValues.get(0), params);
     }
     
+    /**
+     * Returns the value of the parameter (<b>;name=value</b>) of the header value or <b>null</b> if the value
+     * does not have the parameter. The parameters of the URI enclosed in the angle brackets and the quoted
+     * strings are skipped. Unlike {@link #slitHeaderValueAndParams(String)} the case of the value is kept.
+     */
+    public static String getParam(final String value, final String name) {
+        if (value==null)
+            return null;
+        final int len = value.length();
+        boolean inQuotes = false;
+        int angles = 0;
+        for (int i=0; i<len; ++i) {
+            final char ch = value.charAt(i);
+            if (inQuotes) {
+                if (ch=='\\')
+                    ++i;
+                else if (ch=='"')
+                    inQuotes = false;
+            } else if (ch=='"')
+                inQuotes = true;
+            else if (ch=='<')
+                ++angles;
+            else if (ch=='>')
+                --angles;
+            else if (ch==';' && angles==0) {
+                int pos = i+1;
+                while (pos<len && Character.isWhitespace(value.charAt(pos)))
+                    ++pos;
+                if (value.regionMatches(true, pos, name, 0, name.length())) {
+                    pos += name.length();
+                    while (pos<len && Character.isWhitespace(value.charAt(pos)))
+                        ++pos;
+                    if (pos==len || value.charAt(pos)==';')
+                        return "";
+                    if (value.charAt(pos)=='=') {
+                        int end = ++pos;
+                        while (end<len && value.charAt(end)!=';')
+                            ++end;
+                        final String paramValue = value.substring(pos, end).trim();
+                        return paramValue.length()>1 && paramValue.charAt(0)=='"'? 
+                                paramValue.substring(1, paramValue.length()-1) : paramValue;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    
     public static final int indexOf(char ch, CharSequence seq) {
         for (int i=0; i<seq.length(); i++)
             if (ch==seq.charAt(i))
@@ -25,7 +25,9 @@ import org.onesec.raven.net.sip_0.SipMessage;
 /**
  *
  * @author Mikhail Titov
+ * @deprecated replaced by {@link org.onesec.raven.sip.impl.SipMessageDecoder}
  */
+@Deprecated
 public class SipMessageDecoder extends ReplayingDecoder<SipMessage>{
 
     @Override
@@ -93,4 +93,8 @@ public interface SmsConfig {
     public long getConcatenatedMessageReceiveTimeout();
     public TimeUnit getConcatenatedMessageReceiveTimeoutTimeUnit();
     public int getMaxInboundQueueSize();
+    /**
+     * The path to the journal of the outbound queue or null if the queue is not persistent
+     */
+    public String getJournalFile();
 }
@@ -73,6 +73,7 @@ public class SmsConfigImpl implements SmsConfig {
     private final long concatenatedMessageReceiveTimeout;
     private final TimeUnit concatenatedMessageReceiveTimeoutTimeUnit;
     private final int maxInboundQueueSize;
+    private final String journalFile;
 
     public SmsConfigImpl(SmsTransceiverNode node) throws Exception {
         bindMode = node.getBindMode();
@@ -123,6 +124,7 @@ public class SmsConfigImpl implements SmsConfig {
         concatenatedMessageReceiveTimeout = node.getConcatenatedMessageReceiveTimeout();
         concatenatedMessageReceiveTimeoutTimeUnit = node.getConcatenatedMessageReceiveTimeoutTimeUnit();
         maxInboundQueueSize = node.getMaxInboundQueueSize();
+        journalFile = node.getJournalFile();
     }
 
     public BindMode getBindMode() {
@@ -340,4 +342,8 @@ public class SmsConfigImpl implements SmsConfig {
     public int getMaxInboundQueueSize() {
         return maxInboundQueueSize;
     }    
+
+    public String getJournalFile() {
+        return journalFile;
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sms.impl;
+
+import com.logica.smpp.WrongSessionStateException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.onesec.raven.sms.MessageUnit;
+import org.onesec.raven.sms.SmsConfig;
+import org.onesec.raven.sms.queue.OutQueue;
+import org.raven.sched.ExecutorService;
+import org.raven.sched.impl.AbstractTask;
+import org.raven.tree.Node;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * Submits the message units of the outbound queue without polling and without sleeping. The queue limits
+ * the number of the units waiting for the response (the window, {@link SmsConfig#getMaxUnconfirmed()}) and
+ * the rate of the units. The submitter takes the units from the queue until {@link OutQueue#getNext()}
+ * returns nothing and then releases the thread until the event ({@link #wakeUp()}: the message was added,
+ * the response was received, the session was bound) or until the time returned by 
+ * {@link OutQueue#getReadyDelay()}. Only one submit task is executed at the time. The task submits at most
+ * <b>batchSize</b> units and then is rescheduled, so the executor thread is not held by the big queue.
+ *
+ * @author Mikhail Titov
+ */
+public class SmsSubmitter {
+    public final static long SUBMIT_EXCEPTION_DELAY_INTERVAL = 3000;
+    public final static long SUBMIT_EXCEPTION_DELAY_FACTOR = 2;
+    //the delay of the queue check when the queue reports the ready unit but does not provide it
+    public final static long RECHECK_DELAY = 10;
+
+    public interface Sender {
+        /**
+         * Sends the unit to the SMSC.
+         * @return <b>false</b> if the unit can't be sent now (the session is not bound). In this case the 
+         *      submitter waits for the {@link SmsSubmitter#wakeUp()}
+         */
+        public boolean send(MessageUnit unit) throws Exception;
+        /**
+         * Called when all units of the queue were handled
+         */
+        public void queueEmpty();
+    }
+
+    private final Node owner;
+    private final OutQueue queue;
+    private final ExecutorService executor;
+    private final Sender sender;
+    private final int batchSize;
+    private final LoggerHelper logger;
+    private final SubmitTask submitTask;
+    //the number of the wake up signals received since the start of the submit task
+    private final AtomicInteger signals = new AtomicInteger();
+    private final AtomicLong suspendedUntil = new AtomicLong();
+    //the time of the scheduled wake up or Long.MAX_VALUE
+    private final AtomicLong wakeUpTime = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean stopped = false;
+
+    public SmsSubmitter(Node owner, OutQueue queue, ExecutorService executor, Sender sender, int batchSize, 
+            LoggerHelper logger) 
+    {
+        this.owner = owner;
+        this.queue = queue;
+        this.executor = executor;
+        this.sender = sender;
+        this.batchSize = Math.max(1, batchSize);
+        this.logger = new LoggerHelper(logger, "Submitter. ");
+        this.submitTask = new SubmitTask();
+    }
+
+    /**
+     * Signals that the queue or the session state was changed. Never blocks
+     */
+    public void wakeUp() {
+        if (!stopped && signals.getAndIncrement()==0)
+            executeSubmitTask();
+    }
+
+    /**
+     * Stops the submitting for the <b>delay</b> milliseconds (for example on THROTTLED response). The active
+     * suspension is prolonged only
+     */
+    public void suspend(long delay) {
+        final long untilTime = System.currentTimeMillis()+delay;
+        long curUntilTime;
+        do {
+            curUntilTime = suspendedUntil.get();
+            if (curUntilTime>=untilTime)
+                return;
+        } while (!suspendedUntil.compareAndSet(curUntilTime, untilTime));
+        if (logger.isInfoEnabled())
+            logger.info(String.format("Submitting suspended on %s ms", delay));
+        scheduleWakeUp(delay);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns <b>true</b> if the submit task is executing or the wake up is scheduled
+     */
+    public boolean isActive() {
+        return !stopped && (signals.get()>0 || wakeUpTime.get()!=Long.MAX_VALUE);
+    }
+
+    private void executeSubmitTask() {
+        if (!executor.executeQuietly(submitTask)) {
+            signals.set(0);
+            if (logger.isErrorEnabled())
+                logger.error("Can't execute the submit task");
+        }
+    }
+
+    private void scheduleWakeUp(long delay) {
+        final long now = System.currentTimeMillis();
+        final long time = now+delay;
+        long curTime;
+        do {
+            curTime = wakeUpTime.get();
+            //the earlier wake up is already scheduled
+            if (curTime<=time && curTime>=now)
+                return;
+        } while (!wakeUpTime.compareAndSet(curTime, time));
+        if (!executor.executeQuietly(delay, new WakeUpTask(time))) {
+            wakeUpTime.compareAndSet(time, Long.MAX_VALUE);
+            if (logger.isErrorEnabled())
+                logger.error("Can't schedule the wake up task");
+        }
+    }
+
+    /**
+     * Returns <b>true</b> if the batch was submitted, so the queue may have more ready units
+     */
+    private boolean submitUnits() {
+        if (stopped)
+            return false;
+        final long delay = suspendedUntil.get()-System.currentTimeMillis();
+        if (delay>0) {
+            scheduleWakeUp(delay);
+            return false;
+        }
+        for (int i=0; i<batchSize; ++i) {
+            final MessageUnit unit = queue.getNext();
+            if (unit==null) {
+                final long readyDelay = queue.getReadyDelay();
+                if (readyDelay>=0)
+                    scheduleWakeUp(readyDelay==0? RECHECK_DELAY : readyDelay);
+                else if (queue.isEmpty())
+                    sender.queueEmpty();
+                return false;
+            }
+            if (!submit(unit))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean submit(MessageUnit unit) {
+        try {
+            if (!sender.send(unit)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("SMS agent is not active. Waiting for it");
+                return false;
+            }
+            unit.submitted();
+            return true;
+        } catch (Exception ex) {
+            if (logger.isErrorEnabled())
+                logger.error(
+                    String.format("Error submitting message unit: %s", unit.getPdu().debugString())
+                    , ex);
+            if (ex instanceof IOException || ex instanceof WrongSessionStateException) {
+                //the connection problem, the unit stays in the queue
+                if (logger.isWarnEnabled())
+                    logger.warn("Detected IO exception. Waiting {} ms...", SUBMIT_EXCEPTION_DELAY_INTERVAL);
+                suspend(SUBMIT_EXCEPTION_DELAY_INTERVAL);
+                return false;
+            } else {
+                //counting the attempt, so the unit that can't be submitted becomes FATAL at last
+                unit.submitted();
+                unit.delay(SUBMIT_EXCEPTION_DELAY_INTERVAL * (1 + SUBMIT_EXCEPTION_DELAY_FACTOR * unit.getAttempts()));
+                return true;
+            }
+        }
+    }
+
+    private class SubmitTask extends AbstractTask {
+
+        public SubmitTask() {
+            super(owner, "Submitting message units");
+        }
+
+        @Override
+        public void doRun() throws Exception {
+            try {
+                int handledSignals;
+                do {
+                    handledSignals = signals.get();
+                    if (submitUnits()) {
+                        //giving the thread to the other tasks, the signals are not reset so the only one 
+                        //submit task exists
+                        executeSubmitTask();
+                        return;
+                    }
+                } while (!signals.compareAndSet(handledSignals, 0));
+            } catch (Exception e) {
+                signals.set(0);
+                if (logger.isErrorEnabled())
+                    logger.error("Message units submitting error", e);
+                scheduleWakeUp(SUBMIT_EXCEPTION_DELAY_INTERVAL);
+            }
+        }
+    }
+
+    private class WakeUpTask extends AbstractTask {
+        private final long time;
+
+        public WakeUpTask(long time) {
+            super(owner, "Waiting for the ready message units");
+            this.time = time;
+        }
+
+        @Override
+        public void doRun() throws Exception {
+            wakeUpTime.compareAndSet(time, Long.MAX_VALUE);
+            wakeUp();
+        }
+    }
+}
@@ -34,6 +34,8 @@ import org.raven.ds.Record;
 import org.raven.ds.RecordException;
 import org.raven.ds.impl.AbstractSafeDataPipe;
 import org.raven.ds.impl.DataSourceHelper;
+import org.raven.ds.impl.RecordSchemaNode;
+import org.raven.ds.impl.RecordSchemaValueTypeHandlerFactory;
 import org.raven.expr.BindingSupport;
 import org.raven.log.LogLevel;
 import org.raven.sched.ExecutorService;
@@ -158,6 +160,10 @@ public class SmsTransceiverNode extends AbstractSafeDataPipe {
     private Long maxMessageUnitsTimeQuantity;  
     @NotNull @Parameter(defaultValue = "60000", parent = "smscQueueAttributes")
     private Long messageQueueWaitTimeout;
+    @Parameter(parent = "smscQueueAttributes")
+    private String journalFile;
+    @Parameter(valueHandlerType = RecordSchemaValueTypeHandlerFactory.TYPE, parent = "smscQueueAttributes")
+    private RecordSchemaNode journalRecordSchema;
     
     @Parameter(valueHandlerType = ChildAttributesValueHandlerFactory.TYPE)
     private String smscInboundQueueAttributes;
@@ -199,7 +205,12 @@ public class SmsTransceiverNode extends AbstractSafeDataPipe {
         super.doStart();
         initNodes(true);
         worker.set(new SmsTransceiverWorker(this, new SmsConfigImpl(this), executor));
-        worker.get().start();
+        try {
+            worker.get().start();
+        } catch (Exception e) {
+            worker.getAndSet(null).stop();
+            throw e;
+        }
     }
 
     @Override
@@ -688,6 +699,22 @@ public class SmsTransceiverNode extends AbstractSafeDataPipe {
         this.messageQueueWaitTimeout = messageQueueWaitTimeout;
     }
 
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    public void setJournalFile(String journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public RecordSchemaNode getJournalRecordSchema() {
+        return journalRecordSchema;
+    }
+
+    public void setJournalRecordSchema(RecordSchemaNode journalRecordSchema) {
+        this.journalRecordSchema = journalRecordSchema;
+    }
+
     public String getSmscConnectionAttributes() {
         return smscConnectionAttributes;
     }
@@ -16,13 +16,15 @@
 package org.onesec.raven.sms.impl;
 
 import com.logica.smpp.Data;
-import com.logica.smpp.WrongSessionStateException;
 import com.logica.smpp.pdu.DeliverSM;
 import com.logica.smpp.pdu.Request;
 import com.logica.smpp.pdu.Response;
 import com.logica.smpp.pdu.SubmitSMResp;
-import java.io.IOException;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.onesec.raven.sms.BindMode;
@@ -34,9 +36,13 @@ import org.onesec.raven.sms.SmsConfig;
 import org.onesec.raven.sms.SmsMessageEncoder;
 import org.onesec.raven.sms.queue.InQueue;
 import org.onesec.raven.sms.queue.OutQueue;
+import org.onesec.raven.sms.queue.OutQueueJournal;
 import org.onesec.raven.sms.queue.ShortTextMessageImpl;
 import org.raven.dp.DataProcessorFacade;
 import org.raven.dp.impl.DataProcessorFacadeConfig;
+import org.raven.ds.Record;
+import org.raven.ds.impl.DataContextImpl;
+import org.raven.ds.impl.RecordSchemaNode;
 import org.raven.sched.ExecutorService;
 import org.raven.sched.impl.AbstractTask;
 import org.raven.tree.impl.LoggerHelper;
@@ -46,12 +52,9 @@ import org.raven.tree.impl.LoggerHelper;
  * @author Mikhail Titov
  */
 public class SmsTransceiverWorker implements ShortMessageListener {
-    public final static long CYCLE_PAUSE_INTERVAL = 50;
 //    public final static long RESTART_AGENT_ON_ERROR = 30; //secs
     public final static long SMS_AGENT_BIND_TIMEOUT = 10000; //ms
     
-    public final static long SUBMIT_EXCEPTION_DELAY_INTERVAL = 3000;
-    public final static long SUBMIT_EXCEPTION_DELAY_FACTOR = 2;
     /**
      * @see OutQueue.factorQF
      */
@@ -76,17 +79,17 @@ public class SmsTransceiverWorker implements ShortMessageListener {
     private final SmsConfig config;
     private final ExecutorService executor;
     private final OutQueue queue;
+    private final OutQueueJournal journal;
     private final DataProcessorFacade inQueue;
     private final LoggerHelper logger;
     private final SmsMessageEncoder messageEncoder;
 //    private final AtomicReference<SmsAgent> agent = new AtomicReference<SmsAgent>();
-    private final AtomicReference<MessageProcessor> messageProcessor = new AtomicReference<MessageProcessor>();
+    private final SmsSubmitter submitter;
     private final SmsTransceiverNode owner;
-    private final AtomicBoolean running = new AtomicBoolean();
     private final AtomicBoolean stopped = new AtomicBoolean();
-    private final AtomicLong suspendProcessorUntil = new AtomicLong();
     private final AtomicReference<SmsAgent> agent = new AtomicReference<SmsAgent>();
     private final AtomicBoolean binding = new AtomicBoolean(false);
+    private final AtomicInteger bindAttempts = new AtomicInteger();
     private final AtomicBoolean unbinding = new AtomicBoolean(false);
     private final AtomicLong lastAgentRestart = new AtomicLong();
     private final boolean isReceiver;
@@ -100,7 +103,9 @@ public class SmsTransceiverWorker implements ShortMessageListener {
         this.executor = executor;
         this.logger = new LoggerHelper(owner, "Transceiver. ");
         this.messageEncoder = new SmsMessageEncoderImpl(config, logger);
-        this.queue = new OutQueue(config, this.logger);
+        this.journal = config.getJournalFile()==null? null : createJournal();
+        this.queue = new OutQueue(config, this.logger, journal);
+        this.submitter = new SmsSubmitter(owner, queue, executor, new AgentSender(), config.getOnceSend(), logger);
         this.isReceiver =    config.getBindMode()==BindMode.RECEIVER 
                           || config.getBindMode()==BindMode.RECEIVER_AND_TRANSMITTER;
         if (isReceiver) {
@@ -125,7 +130,7 @@ public class SmsTransceiverWorker implements ShortMessageListener {
     }
     
     public boolean isProcessorActive() {
-        return messageProcessor.get()!=null;
+        return submitter.isActive();
     }
     
     public String getSmsAgentStatus() {
@@ -144,7 +149,7 @@ public class SmsTransceiverWorker implements ShortMessageListener {
             if (!queue.addMessage(msg)) 
                 return false;
             else {
-                startMessageProcessor();
+                submitter.wakeUp();
                 return true;
             }
 //        } catch (Exception e) {
@@ -154,61 +159,65 @@ public class SmsTransceiverWorker implements ShortMessageListener {
 //        }
     }        
     
-    public void start() {
+    public void start() throws Exception {
+        if (journal!=null) 
+            restoreMessages();
         if (isReceiver) {
             getAgent();
         }
     }
     
+    private OutQueueJournal createJournal() throws Exception {
+        final RecordSchemaNode schema = owner.getJournalRecordSchema();
+        if (schema==null)
+            throw new Exception("The journalRecordSchema must be set for the persistent outbound queue");
+        return new OutQueueJournal(new File(config.getJournalFile()), schema, executor, owner, logger);
+    }
+    
+    private void restoreMessages() throws Exception {
+        final RecordSchemaNode schema = owner.getJournalRecordSchema();
+        final List<OutQueueJournal.PendingMessage> messages = journal.open();
+        for (OutQueueJournal.PendingMessage message: messages) {
+            try {
+                Record rec = schema.createRecord();
+                for (Map.Entry<String, Object> value: message.getValues().entrySet())
+                    rec.setValue(value.getKey(), value.getValue());
+                if (message.getOptionalParameters()!=null)
+                    rec.setTag(SmsRecordSchemaNode.OPTIONAL_PARAMETERS_TAG, message.getOptionalParameters());
+                if (message.getMessageId()!=null)
+                    rec.setValue(SmsRecordSchemaNode.MESSAGE_ID, message.getMessageId());
+                ShortTextMessageImpl msg = new ShortTextMessageImpl(
+                        new SmsTransceiverNode.RecordHolder(rec, new DataContextImpl()), messageEncoder, config, logger);
+                msg.addListener(this);
+                MessageUnit[] units = msg.getUnits();
+                for (int i=0; i<units.length; ++i)
+                    if (message.isUnitConfirmed(i))
+                        units[i].confirmed();
+                queue.restoreMessage(msg, message.getKey());
+            } catch (Exception e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format(
+                            "Can't restore message (%s) from the journal. Message dropped", message.getKey()), e);
+                journal.messageHandled(message.getKey());
+            }
+        }
+        if (!messages.isEmpty())
+            submitter.wakeUp();
+    }
+    
     public void stop() {
         synchronized(stopped) {
             stopped.set(true);
-            stopMessageProcessor();
+            submitter.stop();
             stopAgent();
             if (inQueue!=null)
                 inQueue.stop();
+            if (journal!=null)
+                journal.close();
 //            stopAgent();
         }
     }
     
-    private void startMessageProcessor() {
-        if (!stopped.get() && !isProcessorSuspended() && running.compareAndSet(false, true)) {
-            stopMessageProcessor();
-            messageProcessor.set(new MessageProcessor());
-            queue.unsuspend();
-            if (!executor.executeQuietly(messageProcessor.get()))
-                running.set(false);
-        }
-    }
-    
-    private boolean isProcessorSuspended() {
-        return System.currentTimeMillis() < suspendProcessorUntil.get();
-    }
-    
-    private void startMessageProcessor(long delay) {
-        executor.executeQuietly(delay, new AbstractTask(owner, "Waiting for processor start") {
-            @Override public void doRun() throws Exception {
-                startMessageProcessor();
-            }
-        });
-    }
-    
-    private void restartMessageProcessor(long delay) {
-        suspendProcessorUntil.set(System.currentTimeMillis()+delay);
-        stopMessageProcessor();
-        startMessageProcessor(delay);
-        if (logger.isInfoEnabled())
-            logger.info(String.format("Message processor suspended on %s secs", delay/1000));
-    }
-    
-    private void stopMessageProcessor() {
-        MessageProcessor _processor = messageProcessor.getAndSet(null);
-        if (_processor!=null) {
-            queue.suspend();
-            _processor.stop();
-        }
-    }
-    
     public void messageHandled(ShortTextMessage msg, boolean success, SmsTransceiverNode.RecordHolder origMessage) {
         if (!stopped.get())
             owner.messageHandled(success, origMessage);
@@ -242,47 +251,51 @@ public class SmsTransceiverWorker implements ShortMessageListener {
     }
     
     private SmsAgent getAgent() {
-        if (agent.get()!=null) return agent.get();
-        else {
+        final SmsAgent _agent = agent.get();
+        if (_agent==null && canStartAgent() && binding.compareAndSet(false, true)) {
+            unbinding.set(false);
+            final int attempt = bindAttempts.incrementAndGet();
             try {
-                if (canStartAgent() && binding.compareAndSet(false, true)) {
-                    unbinding.set(false);
-                    try {
-                        SmsAgent _agent = new SmsAgent(config, new AgentListener(), executor, owner, logger);
-                        if (logger.isDebugEnabled())
-                            logger.debug("SmsAgent created. Wating for IN_SERVICE");
-                        synchronized(this) {
-                            wait(SMS_AGENT_BIND_TIMEOUT);
+                new SmsAgent(config, new AgentListener(), executor, owner, logger);
+                if (logger.isDebugEnabled())
+                    logger.debug("SmsAgent created. Wating for IN_SERVICE");
+                executor.executeQuietly(SMS_AGENT_BIND_TIMEOUT, new AbstractTask(owner, "Waiting for agent bind") {
+                    @Override public void doRun() throws Exception {
+                        if (   bindAttempts.get()==attempt && agent.get()==null && binding.compareAndSet(true, false)
+                            && !stopped.get())
+                        {
+                            if (logger.isErrorEnabled())
+                                logger.error(String.format(
+                                        "SMS agent bind timeout. Will try again via %s seconds"
+                                        , config.getRebindOnTimeoutInterval()/1000));
+                            restartAgent();
                         }
-                        if (agent.get()!=null) return agent.get();
-                        else throw new Exception("Bind timeout");
-                    } finally {
-                        binding.set(false);
                     }
-                }
-                return null;
+                });
             } catch (Exception ex) {
+                binding.set(false);
                 if (logger.isErrorEnabled())
                     logger.error(
                             String.format("Error creating SMS agent. Will try again via %s seconds"
                                 , config.getRebindOnTimeoutInterval()/1000)
                             , ex);
                 restartAgent();
-//                restartMessageProcessor(config.getRebindOnTimeoutInterval());sd
-                return null;
             }
         }
+        return _agent;
     }
 
     private void setAgent(SmsAgent agent) {
-        boolean needNotify = false;
+        boolean agentActivated = false;
         synchronized(unbinding) {
             if (unbinding.get()) {
                 if (agent!=null) agent.unbind();
             } else {
                 this.agent.set(agent);
-                if (agent!=null) needNotify = true;
-                else {
+                if (agent!=null) {
+                    binding.set(false);
+                    agentActivated = true;
+                } else {
                     if (logger.isWarnEnabled())
                         logger.warn("SMS agent unexpected changed state to OUT_OF_SERVICE. "
                                 + "Restarting processor and sms agent via {} seconds", 
@@ -292,101 +305,26 @@ public class SmsTransceiverWorker implements ShortMessageListener {
                 }
             }
         }
-        if (needNotify)
-            synchronized(this) {
-                notify();
-            }
+        if (agentActivated)
+            submitter.wakeUp();
     }
 
-    private class MessageProcessor extends AbstractTask {
-        private final AtomicBoolean needStop = new AtomicBoolean();
-        private final LoggerHelper logger = new LoggerHelper(SmsTransceiverWorker.this.logger, "Processor. ");
-//        private final AtomicReference<SmsAgent> agent = new AtomicReference<SmsAgent>();
-//        private final AtomicBoolean binding = new AtomicBoolean(false);
-//        private final AtomicBoolean unbinding = new AtomicBoolean(false);
-        
-        public MessageProcessor() {
-            super(owner, "Processing messages");
-        }
-        
-        public void stop() {
-            needStop.set(true);
-        }
+    private class AgentSender implements SmsSubmitter.Sender {
 
         @Override
-        public void doRun() throws Exception {
-            if (logger.isDebugEnabled())
-                logger.debug("Message processor task STARTED");
-            try {
-                while (true) {
-                    long cyclePause = 0;
-                    int counter = 0;
-                    while (!needStop.get() && !queue.isEmpty()) {
-                       if (cyclePause > 0) {
-                           Thread.sleep(cyclePause);
-                            cyclePause = 0;
-                       }
-                       cyclePause = CYCLE_PAUSE_INTERVAL;
-                       if (!queue.isEmpty() && trySendMessageUnit()) {
-                           ++counter;
-                           if (counter > config.getOnceSend()) {
-                               if (logger.isTraceEnabled())
-                                   logger.trace("Packet sent. Messages in packet - {}", counter);
-                               counter = 0;
-                           }
-                           else cyclePause = 0;
-                       }
-                    }                    
-                    running.set(false);
-                    if (needStop.get() || queue.isEmpty() || !running.compareAndSet(false, true)) {
-                        if (logger.isDebugEnabled())
-                            logger.debug("Message processor task FINISHED. Queue empty flag: {}; Stopped flag: {}", 
-                                    queue.isEmpty(), needStop.get());
-                        return;
-                    }
-                }
-            } finally {
-                running.compareAndSet(true, false);
-                if (!isReceiver)
-                    stopAgent();
-            }
+        public boolean send(MessageUnit unit) throws Exception {
+            final SmsAgent _agent = getAgent();
+            if (_agent==null)
+                return false;
+            _agent.submit(unit.getPdu());
+            return true;
         }
 
-        private boolean trySendMessageUnit() {
-            MessageUnit unit = queue.getNext();
-            if (unit==null) {
-                if (logger.isTraceEnabled())
-                    logger.trace("Queue doesn't have message unit READY to submit. Waiting");
-                return false;
-            }
-            SmsAgent _agent = getAgent();
-            if (_agent!=null) { 
-                try {
-                    _agent.submit(unit.getPdu());
-                    unit.submitted();
-                    return true;
-                } catch (Exception ex) {
-                    if (logger.isErrorEnabled())
-                        logger.error(
-                            String.format("Error submitting message unit: %s", unit.getPdu().debugString())
-                            , ex);
-                    unit.delay(SUBMIT_EXCEPTION_DELAY_INTERVAL * (1 + SUBMIT_EXCEPTION_DELAY_FACTOR * unit.getAttempts()));
-                    if (ex instanceof IOException || ex instanceof WrongSessionStateException) {
-                        if (logger.isWarnEnabled())
-                            logger.warn("Detected IO exception. Waiting {} ms...", SUBMIT_EXCEPTION_DELAY_INTERVAL);
-                        try {
-                            Thread.sleep(SUBMIT_EXCEPTION_DELAY_INTERVAL);
-                        } catch (InterruptedException e) {}
-                    }
-                    return false;
-                }
-            } else {
-                if (logger.isWarnEnabled())
-                    logger.warn("SmsAgent not active");
-                return false;
-            }
+        @Override
+        public void queueEmpty() {
+            if (!isReceiver)
+                stopAgent();
         }
-        
     }
     
     private class AgentListener implements SmsAgentListener {
@@ -421,7 +359,7 @@ public class SmsTransceiverWorker implements ShortMessageListener {
                         if (logger.isWarnEnabled())
                             logger.warn("Received THROTTLED event from SMSC");
                         if (config.getThrottledDelay() > 0) 
-                            restartMessageProcessor(config.getThrottledDelay());
+                            submitter.suspend(config.getThrottledDelay());
                         unit = queue.getMessageUnit(sq);
                         if (unit!=null) {
 //                            final long messDelay = Math.max(config.getMesThrottledDelay(), config.getThrottledDelay());
@@ -435,7 +373,7 @@ public class SmsTransceiverWorker implements ShortMessageListener {
                         if (logger.isWarnEnabled())
                             logger.warn("Received QUEUE_FULL event from SMSC");
                         if (config.getQueueFullDelay() > 0) 
-                            restartMessageProcessor(config.getQueueFullDelay());
+                            submitter.suspend(config.getQueueFullDelay());
                         queue.queueFullOn(sq);
                         unit = queue.getMessageUnit(sq);
                         if (unit!=null) {
@@ -450,6 +388,8 @@ public class SmsTransceiverWorker implements ShortMessageListener {
                         unit = queue.getMessageUnit(sq);
                         if (unit!=null) unit.fatal();
                 }
+                //the window slot is released
+                submitter.wakeUp();
             }
         }
 
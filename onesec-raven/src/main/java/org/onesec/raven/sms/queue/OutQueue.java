@@ -1,26 +1,45 @@
 package org.onesec.raven.sms.queue;
 
-import java.util.Deque;
-import org.onesec.raven.sms.MessageUnit;
-import org.onesec.raven.sms.MessageUnitListener;
-import org.onesec.raven.sms.MessageUnitStatus;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import org.onesec.raven.sms.SmsConfig;
-import org.raven.tree.impl.LoggerHelper;
+import org.onesec.raven.impl.TokenBucket;
+import org.onesec.raven.sms.MessageUnit;
+import org.onesec.raven.sms.MessageUnitListener;
+import org.onesec.raven.sms.MessageUnitStatus;
 import static org.onesec.raven.sms.MessageUnitStatus.*;
 import org.onesec.raven.sms.ShortMessageListener;
 import org.onesec.raven.sms.ShortTextMessage;
+import org.onesec.raven.sms.SmsConfig;
+import org.onesec.raven.sms.impl.SmsRecordSchemaNode;
 import org.onesec.raven.sms.impl.SmsTransceiverNode;
-import org.weda.beans.ObjectUtils;
+import org.raven.ds.Record;
+import org.raven.tree.impl.LoggerHelper;
 
+/**
+ * The outbound queue of the message units. The units are indexed by the readiness: the units ready to
+ * submit are ordered by the position in the queue, the delayed and the submitted (waiting for the response)
+ * units are ordered by the time when they may become ready and the ready units of the blocked destination are
+ * parked until the block expires. So {@link #getNext()} takes O(log n) and never walks through the units
+ * that can't be submitted. The rate of the units is limited by the token bucket
+ * ({@link SmsConfig#getMaxMessageUnitsPerTimeUnit()} units per {@link SmsConfig#getMaxMessageUnitsTimeQuantity()}
+ * time units), the counters of the fixed periods are kept for the statistics only. If the journal is set the
+ * queue writes the messages and the transitions of the units to it (see {@link OutQueueJournal}).
+ */
 public class OutQueue implements MessageUnitListener, ShortMessageListener {
+    //the interval of the status check of the unit that was released by the time but is not ready yet
+    private final static long RECHECK_INTERVAL = 10;
 
 //    private int maxMesCount = 100;
     /**
@@ -53,14 +72,20 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
     
 //    private final Map<Integer, MessageUnit> sended = new ConcurrentHashMap<Integer, MessageUnit>();
     private final Map<Integer, MessageUnit> submitted = new ConcurrentHashMap<Integer, MessageUnit>();
-    private final Map<Integer, MessageUnit> delivered = new ConcurrentHashMap<Integer, MessageUnit>();
-    private final ConcurrentHashMap<String, Long> blockedNums = new ConcurrentHashMap<String, Long>();
-//    private final LinkedBlockingQueue<MessageUnit> queue = new LinkedBlockingQueue<MessageUnit>();
-    private final Deque<MessageUnit> queue = new ConcurrentLinkedDeque<MessageUnit>();
+    //the index. Guarded by this
+    private final Map<MessageUnit, UnitEntry> entries = new IdentityHashMap<>();
+    private final Map<ShortTextMessage, MessageEntry> messages = new IdentityHashMap<>();
+    private final TreeSet<UnitEntry> ready = new TreeSet<>(new OrderComparator());
+    private final TreeSet<UnitEntry> waiting = new TreeSet<>(new ReadyTimeComparator());
+    private final Map<String, Long> blockedNums = new HashMap<>();
+    private final PriorityQueue<DirectionBlock> blocks = new PriorityQueue<>();
+    private final Map<String, Set<UnitEntry>> parked = new HashMap<>();
+    private long orderSeq = 0;
+
     private final AtomicInteger mesCount = new AtomicInteger(0);
-//    private final AtomicInteger submittedCount = new AtomicInteger(0);
     private final LoggerHelper logger;
     private final SmsConfig config;
+    private final OutQueueJournal journal;
     private final AtomicLong timePeriod = new AtomicLong();
     private final AtomicLong submittedInPeriod = new AtomicLong();
     
@@ -75,14 +100,28 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
     private final AtomicLong unsuccessMessages = new AtomicLong();
     private final AtomicLong sentTime = new AtomicLong();
     private final AtomicBoolean suspended = new AtomicBoolean();
+    private volatile TokenBucket rateLimiter;
 
     public OutQueue(SmsConfig config, LoggerHelper logger) {
+        this(config, logger, null);
+    }
+
+    public OutQueue(SmsConfig config, LoggerHelper logger, OutQueueJournal journal) {
         this.config = config;
         this.logger = new LoggerHelper(logger, "Outbound queue. ");
+        this.journal = journal;
     }
     
     public void clear() {
-        queue.clear();
+        synchronized(this) {
+            entries.clear();
+            messages.clear();
+            ready.clear();
+            waiting.clear();
+            blockedNums.clear();
+            blocks.clear();
+            parked.clear();
+        }
         submitted.clear();
     }
     
@@ -143,6 +182,10 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
         return fatalUnits.get();
     }
 
+    public OutQueueJournal getJournal() {
+        return journal;
+    }
+
     public boolean addMessage(ShortTextMessage sm) {
         if (mesCount.incrementAndGet() > config.getMaxMessagesInQueue()) {
             mesCount.decrementAndGet();
@@ -150,20 +193,68 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
                 logger.debug("Can't queue message. Queue is FULL");
             return false;
         } else {
-            totalMessages.incrementAndGet();
-            sm.addListener(this);
-            MessageUnit[] units = sm.getUnits();
-            totalUnits.addAndGet(units.length);
-            for (int i = 0; i < units.length; i++) 
-                queue.offer(units[i].addListener(this));
+            long journalKey = 0;
+            if (journal!=null)
+                try {
+                    final Record rec = sm.getOriginalMessage().getRecord();
+                    journalKey = journal.messageQueued(rec.getValues(), 
+                            (Map) rec.getTag(SmsRecordSchemaNode.OPTIONAL_PARAMETERS_TAG));
+                } catch (Exception e) {
+                    mesCount.decrementAndGet();
+                    if (logger.isErrorEnabled())
+                        logger.error(String.format("Can't queue message (%s). Journal write error", sm), e);
+                    return false;
+                }
+            queueMessage(sm, journalKey, false);
             if (logger.isDebugEnabled())
                 logger.debug("Message ({}) queued", sm);
             return true;
         }
     }
 
-    public boolean isEmpty() {
-        return queue.isEmpty() && submitted.isEmpty();
+    /**
+     * Queues the message replayed from the journal. The limit of the messages in the queue is not checked,
+     * the units of the message in the final status (confirmed before the restart) are not queued.
+     * @param journalKey the key of the message in the journal
+     */
+    public void restoreMessage(ShortTextMessage sm, long journalKey) {
+        mesCount.incrementAndGet();
+        if (queueMessage(sm, journalKey, true)) {
+            if (logger.isDebugEnabled())
+                logger.debug("Message ({}) restored from the journal", sm);
+        } else {
+            //all units were confirmed before the restart
+            mesCount.decrementAndGet();
+            journalMessageHandled(sm, journalKey);
+        }
+    }
+
+    private boolean queueMessage(ShortTextMessage sm, long journalKey, boolean restored) {
+        totalMessages.incrementAndGet();
+        sm.addListener(this);
+        MessageUnit[] units = sm.getUnits();
+        totalUnits.addAndGet(units.length);
+        synchronized(this) {
+            final MessageEntry message = new MessageEntry(journalKey, units.length);
+            for (int i = 0; i < units.length; i++) {
+                final MessageUnit unit = units[i].addListener(this);
+                final MessageUnitStatus status = restored? unit.getStatus() : READY;
+                if (status!=CONFIRMED && status!=FATAL) {
+                    final UnitEntry entry = new UnitEntry(unit, message, i);
+                    message.units[i] = entry;
+                    entries.put(unit, entry);
+                    toReady(entry);
+                }
+            }
+            if (!message.hasUnits())
+                return false;
+            messages.put(sm, message);
+            return true;
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
     }
     
     /**
@@ -178,33 +269,103 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
         MessageUnit unit = getMessageUnit(sequenceNumber);
         if (unit!=null) {
             //moving all message units to the end of queue
-            LinkedList<MessageUnit> messageUnits = new LinkedList<>();
-            for (Iterator<MessageUnit> it=queue.iterator(); it.hasNext();) {
-                final MessageUnit mesUnit = it.next();
-                if (mesUnit.getMessage()==unit.getMessage()) {
-                    messageUnits.add(mesUnit);
-                    it.remove();
-                }
+            synchronized(this) {
+                final UnitEntry entry = entries.get(unit);
+                if (entry!=null)
+                    for (UnitEntry messageUnit: entry.message.units)
+                        if (messageUnit!=null && entries.get(messageUnit.unit)==messageUnit)
+                            moveToEnd(messageUnit);
             }
-//            for (MessageUnit mesUnit: messageUnits)
-//                queue.add(mesUnit);
-            queue.addAll(messageUnits);
             if (logger.isDebugEnabled())
                 logger.debug("Message moved to the end of the queue: "+unit.getMessage());
         }
     }
 
     public MessageUnit getNext() {
-        if (!suspended.get() && checkSubmitted()) 
-            for (Iterator<MessageUnit> it=queue.iterator(); it.hasNext();) {
-                MessageUnit unit = it.next();
-                if (isDirectionAvailable(unit.getDst()) && unit.checkStatus()==READY)
-                    return unit;
-                else if (ObjectUtils.in(unit.getStatus(), CONFIRMED, FATAL)) 
-                    it.remove();
+        if (!suspended.get() && checkSubmitted()) {
+            UnitEntry entry;
+            //the status is checked out of the lock because the status change fires the listeners
+            while ((entry = getFirstReady()) != null) {
+                final MessageUnitStatus status = entry.unit.checkStatus();
+                if (status==READY) {
+                    final TokenBucket limiter = rateLimiter;
+                    if (limiter!=null)
+                        limiter.tryAcquire();
+                    return entry.unit;
+                }
+                unitChecked(entry, status);
             }
+        }
         return null;
     }
+
+    /**
+     * Returns the time (in milliseconds) after which {@link #getNext()} may return the unit: zero if the unit
+     * can be taken now or -1 if the queue must wait for the event (the queue is empty or suspended, the
+     * units are waiting for the responses only).
+     */
+    public long getReadyDelay() {
+        if (suspended.get())
+            return -1;
+        if (submitted.size()<config.getMaxUnconfirmed() && getFirstReady()!=null) {
+            final TokenBucket limiter = rateLimiter;
+            final long wait = limiter==null? 0 : limiter.getWaitTime(System.nanoTime());
+            return wait==0? 0 : TimeUnit.NANOSECONDS.toMillis(wait)+1;
+        }
+        final long now = System.currentTimeMillis();
+        long readyTime = Long.MAX_VALUE;
+        synchronized(this) {
+            releaseDue(now);
+            //the submitted units are waiting here for the response timeout too
+            if (!waiting.isEmpty())
+                readyTime = waiting.first().readyTime;
+            if (!parked.isEmpty() && !blocks.isEmpty())
+                readyTime = Math.min(readyTime, blocks.peek().untilTime);
+        }
+        return readyTime==Long.MAX_VALUE? -1 : Math.max(1, readyTime-now);
+    }
+
+    private synchronized UnitEntry getFirstReady() {
+        final long now = System.currentTimeMillis();
+        releaseDue(now);
+        while (!ready.isEmpty()) {
+            final UnitEntry entry = ready.first();
+            if (entry.dst==null)
+                entry.dst = entry.unit.getDst();
+            if (!blockedNums.containsKey(entry.dst))
+                return entry;
+            park(entry);
+        }
+        return null;
+    }
+
+    private synchronized void unitChecked(UnitEntry entry, MessageUnitStatus status) {
+        if (entries.get(entry.unit)!=entry)
+            return;
+        if (status==CONFIRMED || status==FATAL)
+            removeEntry(entry);
+        else
+            //the unit is not ready yet, checking it again a bit later
+            toWaiting(entry, Math.max(entry.readyTime, System.currentTimeMillis())+RECHECK_INTERVAL);
+    }
+
+    private void releaseDue(long now) {
+        while (!waiting.isEmpty() && waiting.first().readyTime<=now)
+            toReady(waiting.first());
+        while (!blocks.isEmpty() && blocks.peek().untilTime<=now) {
+            final DirectionBlock block = blocks.poll();
+            final Long untilTime = blockedNums.get(block.dst);
+            if (untilTime!=null && untilTime==block.untilTime) {
+                blockedNums.remove(block.dst);
+                final Set<UnitEntry> parkedEntries = parked.remove(block.dst);
+                if (parkedEntries!=null)
+                    for (UnitEntry entry: parkedEntries) {
+                        entry.state = null;
+                        toReady(entry);
+                    }
+            }
+        }
+    }
     
     private boolean checkSubmitted() {
         if (submitted.size()>=config.getMaxUnconfirmed()) {
@@ -214,9 +375,10 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
                 unit.checkStatus();
             return false;
         }
-        if (config.getMaxMessageUnitsPerTimeUnit()<=0)
+        final long maxUnits = config.getMaxMessageUnitsPerTimeUnit();
+        if (maxUnits<=0)
             return true;
-        if (getUnitsInPeriod() < config.getMaxMessageUnitsPerTimeUnit()) return true;
+        if (getRateLimiter(maxUnits).getWaitTime(System.nanoTime())==0) return true;
         else {
             if (logger.isTraceEnabled()) 
                 logger.trace(String.format("Exceeded max messages per time unit. %s messages per %s %s"
@@ -227,6 +389,16 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
         }
     }
     
+    private TokenBucket getRateLimiter(long maxUnits) {
+        TokenBucket limiter = rateLimiter;
+        if (limiter==null) {
+            limiter = new TokenBucket(maxUnits, config.getMaxMessageUnitsTimeQuantity(), 
+                    config.getMaxMessageUnitsTimeUnit(), maxUnits);
+            rateLimiter = limiter;
+        }
+        return limiter;
+    }
+    
     public long getUnitsInPeriod() {
         checkPeriod();
         return submittedInPeriod.get();
@@ -241,71 +413,6 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
             submittedInPeriod.set(0);
         }
     }
-//    public MessageUnit getNext() {
-//        Iterator<MessageUnit> it = queue.iterator();
-//        long t = System.currentTimeMillis();
-//        MessageUnit prev = null;
-//        boolean noPrev;
-//        while (it.hasNext()) {
-//            noPrev = false;
-//            MessageUnit m = it.next();
-//            synchronized (m) {
-//                checkMessageUnitForFatal(t, m, prev);
-//                noPrev = handleMessageUnitStatus(m, t, prev, it, noPrev);
-//            }
-//            if (m.getStatus() == READY) {
-//                if (m.getAttempts() >= config.getMaxSubmitAttempts()) 
-//                    m.fatal();
-//                else if (!blockedNums.contains(m.getDst())) 
-//                    return m;
-//            }
-//            if (!noPrev) 
-//                prev = m;
-//        }
-//        return null;
-//    }
-
-//    private void checkMessageUnitForFatal(long curTime, MessageUnit unit, MessageUnit prev) {
-//        boolean a = curTime - unit.getFd() > config.getMesLifeTime();
-//        boolean b = prev!=null && prev.getMessageId()==unit.getMessageId() && prev.getStatus()==FATAL;
-//        if (a || b) {
-//            if (unit.getStatus() == DELAYED) 
-//                blockedNums.remove(unit.getDst());
-//            unit.fatal();
-//        }
-//    }
-//
-//    private boolean handleMessageUnitStatus(MessageUnit unit, long curTime, MessageUnit prevUnit, 
-//            Iterator<MessageUnit> it, boolean noPrev) 
-//    {
-//        switch (unit.getStatus()) {
-//            case DELAYED:
-//                if (curTime > unit.getXTime()) {
-//                    blockedNums.remove(unit.getDst());
-//                    unit.ready();
-//                }
-//                break;
-//            case SUBMITTED:
-//                if (curTime - unit.getXTime() > config.getMaxWaitForResp()) 
-//                    unit.ready();
-//                break;
-//            case CONFIRMED:
-//                if (prevUnit == null || (prevUnit.getMessageId() != unit.getMessageId())) {
-//                    it.remove();
-//                    if (unit.isLastSeg()) 
-//                        messageSubmitted(unit, true);
-//                    noPrev = true;
-//                }
-//                break;
-//            case FATAL:
-//                it.remove();
-//                sended.remove(unit.getSequenceNumber());
-//                if (unit.isLastSeg()) 
-//                    messageSubmitted(unit, false);
-//                break;
-//        }
-//        return noPrev;
-//    }
 
     public void statusChanged(MessageUnit unit, MessageUnitStatus oldStatus, MessageUnitStatus newStatus) {
         switch (newStatus) {
@@ -314,34 +421,131 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
                 submitted.put(unit.getSequenceNumber(), unit); 
                 checkPeriod();
                 submittedInPeriod.incrementAndGet();
+                //the unit will be resubmitted if the response will not be received
+                unitWaiting(unit, null, System.currentTimeMillis()+config.getMaxWaitForResp()+1);
+                break;
+            case DELAYED: 
+                final long xtime = unit.getXTime();
+                unitWaiting(unit, unit.getDst(), xtime); //block direction
+                break;
+            case READY:
+            case TRY_WHEN_READY: 
+                unitReady(unit); 
                 break;
-            case DELAYED: blockDirection(unit.getDst(), unit.getXTime()); break; //block direction
-//            case TRY_WHEN_READY: moveMessageToEndOfTheQueue(); break;
             case CONFIRMED: 
                 confirmedUnits.incrementAndGet(); 
                 confirmTime.addAndGet(unit.getConfirmTime());
+                journalUnitConfirmed(unit, unitHandled(unit));
+                break;
+            case FATAL: 
+                fatalUnits.incrementAndGet(); 
+                unitHandled(unit);
                 break;
-            case FATAL: fatalUnits.incrementAndGet(); break;
         }
         switch (oldStatus) {
             case SUBMITTED: submitted.remove(unit.getSequenceNumber()); break;
         }
     }
+
+    private synchronized void unitWaiting(MessageUnit unit, String blockDst, long readyTime) {
+        if (blockDst!=null)
+            blockDirection(blockDst, readyTime);
+        final UnitEntry entry = entries.get(unit);
+        if (entry!=null) {
+            if (blockDst!=null)
+                entry.dst = blockDst;
+            toWaiting(entry, readyTime);
+        }
+    }
+
+    private synchronized void unitReady(MessageUnit unit) {
+        final UnitEntry entry = entries.get(unit);
+        if (entry!=null && entry.state!=State.READY && entry.state!=State.PARKED)
+            toReady(entry);
+    }
+
+    private synchronized UnitEntry unitHandled(MessageUnit unit) {
+        final UnitEntry entry = entries.get(unit);
+        if (entry!=null)
+            removeEntry(entry);
+        return entry;
+    }
+
+    private void journalUnitConfirmed(MessageUnit unit, UnitEntry entry) {
+        if (journal==null || entry==null)
+            return;
+        try {
+            final String messageId = (String) unit.getMessage().getOriginalMessage().getRecord().getValue(
+                    SmsRecordSchemaNode.MESSAGE_ID);
+            journal.unitConfirmed(entry.message.journalKey, entry.index, messageId);
+        } catch (Exception e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error writing unit confirmation to the journal", e);
+        }
+    }
     
     private void blockDirection(String dst, long untilTime) {
-        blockedNums.putIfAbsent(dst, untilTime);
+        //the active block is not prolonged
+        if (!blockedNums.containsKey(dst)) {
+            blockedNums.put(dst, untilTime);
+            blocks.add(new DirectionBlock(dst, untilTime));
+        }
     }
-    
-    private boolean isDirectionAvailable(String dst) {
-        Long time = blockedNums.get(dst);
-        if (time==null) 
-            return true;
-        else if (time>System.currentTimeMillis()) 
-            return false;
-        else {
-            blockedNums.remove(dst);
-            return true;
+
+    private void toReady(UnitEntry entry) {
+        detach(entry);
+        entry.state = State.READY;
+        ready.add(entry);
+    }
+
+    private void toWaiting(UnitEntry entry, long readyTime) {
+        detach(entry);
+        entry.readyTime = readyTime;
+        entry.state = State.WAITING;
+        waiting.add(entry);
+    }
+
+    private void park(UnitEntry entry) {
+        detach(entry);
+        Set<UnitEntry> parkedEntries = parked.get(entry.dst);
+        if (parkedEntries==null) {
+            parkedEntries = new LinkedHashSet<>();
+            parked.put(entry.dst, parkedEntries);
+        }
+        entry.state = State.PARKED;
+        parkedEntries.add(entry);
+    }
+
+    private void moveToEnd(UnitEntry entry) {
+        final State state = entry.state;
+        detach(entry);
+        entry.order = orderSeq++;
+        if (state==State.WAITING)
+            toWaiting(entry, entry.readyTime);
+        else if (state==State.PARKED)
+            park(entry);
+        else
+            toReady(entry);
+    }
+
+    private void removeEntry(UnitEntry entry) {
+        detach(entry);
+        entries.remove(entry.unit);
+    }
+
+    private void detach(UnitEntry entry) {
+        if (entry.state==null)
+            return;
+        switch (entry.state) {
+            case READY: ready.remove(entry); break;
+            case WAITING: waiting.remove(entry); break;
+            case PARKED: 
+                final Set<UnitEntry> parkedEntries = parked.get(entry.dst);
+                if (parkedEntries!=null && parkedEntries.remove(entry) && parkedEntries.isEmpty())
+                    parked.remove(entry.dst);
+                break;
         }
+        entry.state = null;
     }
 
     public void messageHandled(ShortTextMessage msg, boolean success, SmsTransceiverNode.RecordHolder origMessage) {
@@ -349,9 +553,94 @@ public class OutQueue implements MessageUnitListener, ShortMessageListener {
         sentTime.addAndGet(msg.getHandledTime());
         if (success) successMessages.incrementAndGet();
         else unsuccessMessages.incrementAndGet();
+        final MessageEntry message;
+        synchronized(this) {
+            message = messages.remove(msg);
+            if (message!=null)
+                for (UnitEntry entry: message.units)
+                    if (entry!=null && entries.get(entry.unit)==entry)
+                        removeEntry(entry);
+        }
+        if (message!=null)
+            journalMessageHandled(msg, message.journalKey);
+    }
+
+    private void journalMessageHandled(ShortTextMessage msg, long journalKey) {
+        if (journal!=null)
+            try {
+                journal.messageHandled(journalKey);
+            } catch (IOException e) {
+                if (logger.isErrorEnabled())
+                    logger.error(String.format("Error writing message (%s) completion to the journal", msg), e);
+            }
     }
 
     private long getCurPeriod() {
         return System.currentTimeMillis() / config.getMaxMessageUnitsTimeUnit().toMillis(config.getMaxMessageUnitsTimeQuantity());
     }
-}
\ No newline at end of file
+
+    private enum State {READY, WAITING, PARKED};
+
+    private class UnitEntry {
+        private final MessageUnit unit;
+        private final MessageEntry message;
+        private final int index;
+        private long order = orderSeq++;
+        private long readyTime;
+        private String dst;
+        private State state;
+
+        public UnitEntry(MessageUnit unit, MessageEntry message, int index) {
+            this.unit = unit;
+            this.message = message;
+            this.index = index;
+        }
+    }
+
+    private static class MessageEntry {
+        private final long journalKey;
+        private final UnitEntry[] units;
+
+        public MessageEntry(long journalKey, int unitsCount) {
+            this.journalKey = journalKey;
+            this.units = new UnitEntry[unitsCount];
+        }
+
+        public boolean hasUnits() {
+            for (UnitEntry unit: units)
+                if (unit!=null)
+                    return true;
+            return false;
+        }
+    }
+
+    private static class DirectionBlock implements Comparable<DirectionBlock> {
+        private final String dst;
+        private final long untilTime;
+
+        public DirectionBlock(String dst, long untilTime) {
+            this.dst = dst;
+            this.untilTime = untilTime;
+        }
+
+        @Override
+        public int compareTo(DirectionBlock o) {
+            return Long.compare(untilTime, o.untilTime);
+        }
+    }
+
+    private static class OrderComparator implements Comparator<UnitEntry> {
+        @Override
+        public int compare(UnitEntry o1, UnitEntry o2) {
+            return Long.compare(o1.order, o2.order);
+        }
+    }
+
+    private static class ReadyTimeComparator implements Comparator<UnitEntry> {
+        @Override
+        public int compare(UnitEntry o1, UnitEntry o2) {
+            int res = Long.compare(o1.readyTime, o2.readyTime);
+            return res!=0? res : Long.compare(o1.order, o2.order);
+        }
+    }
+}
@@ -0,0 +1,802 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sms.queue;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.raven.ds.RecordSchema;
+import org.raven.ds.RecordSchemaField;
+import org.raven.ds.RecordSchemaFieldType;
+import org.raven.sched.ExecutorService;
+import org.raven.sched.impl.AbstractTask;
+import org.raven.tree.Node;
+import org.raven.tree.impl.LoggerHelper;
+
+/**
+ * The append-only journal of the outbound queue. The message is written to the journal (the values of the
+ * original record and the optional parameters) and forced to the disk before the queue accepts it. The
+ * confirmation of every message unit and the completion of the message are appended after. On start the
+ * journal is replayed and the messages without the completion entry are returned to be queued again (the
+ * confirmed units of them must not be submitted again).
+ *
+ * <p/>The values of the record are encoded by the types of the fields of the journal record schema, the values
+ * of the fields absent in the schema are not journaled.
+ *
+ * <p/>Every entry starts with the marker and is framed by its length and CRC32. The corrupted entry is skipped
+ * on the replay (the next entry is found by the marker), the copy of the journal with the corrupted entries is
+ * kept near the journal before the compaction. The torn tail (the crash in the middle of the write) is cut.
+ *
+ * <p/>Only the message entry is forced to the disk, losing of the confirmation or the completion entry on the
+ * crash leads to the repeated submit of the unit but never to the lost message. The messages queued
+ * concurrently are forced by one sync (group commit): the writer waits for the sync in progress and the next
+ * sync covers all entries appended meanwhile. If the other writers are queueing messages the sync is delayed
+ * for the group commit delay or until {@link #GROUP_COMMIT_MAX_ENTRIES} entries are appended. The count of the
+ * submit attempts is not journaled.
+ *
+ * <p/>The journal is compacted (rewritten with the pending messages only) on open and, by the task of the
+ * executor, when it grows twice over the size of the last compaction and over the compact threshold. The
+ * pending messages are written to the new file without locking the journal, the lock is held only to copy
+ * the entries appended meanwhile and to replace the file.
+ *
+ * @author Mikhail Titov
+ */
+public class OutQueueJournal {
+    public final static long DEFAULT_COMPACT_THRESHOLD = 16*1024*1024;
+    public final static long DEFAULT_GROUP_COMMIT_DELAY = 2;
+    public final static int GROUP_COMMIT_MAX_ENTRIES = 64;
+
+    private final static int ENTRY_MARKER = 0x4F514A45;
+    private final static int ENTRY_HEADER_SIZE = 12;
+    private final static byte MESSAGE_QUEUED = 1;
+    private final static byte UNIT_CONFIRMED = 2;
+    private final static byte MESSAGE_HANDLED = 3;
+    private final static int MAX_ENTRY_SIZE = 1024*1024;
+
+    //the tags of the journaled values
+    private final static byte NULL_VALUE = 0;
+    private final static byte BOOLEAN_VALUE = 1;
+    private final static byte BYTE_VALUE = 2;
+    private final static byte SHORT_VALUE = 3;
+    private final static byte INTEGER_VALUE = 4;
+    private final static byte LONG_VALUE = 5;
+    private final static byte DOUBLE_VALUE = 6;
+    private final static byte STRING_VALUE = 7;
+    private final static byte DATE_VALUE = 8;
+    private final static byte TIMESTAMP_VALUE = 9;
+    private final static byte BINARY_VALUE = 10;
+
+    private final File file;
+    private final Map<String, RecordSchemaFieldType> fieldTypes = new LinkedHashMap<>();
+    private final ExecutorService executor;
+    private final Node owner;
+    private final LoggerHelper logger;
+    private final long compactThreshold;
+    private final long groupCommitDelay;
+    private final Map<Long, PendingMessage> pending = new LinkedHashMap<>();
+    private FileOutputStream fileStream;
+    private DataOutputStream out;
+    private long nextKey = 1;
+    private long size;
+    private long compactedSize;
+    private long fileVersion;
+    private boolean compactionScheduled;
+    //group commit
+    private int activeWriters;
+    private long appendedSeq;
+    private long syncedSeq;
+    private boolean syncing;
+    private long syncsCount;
+
+    public OutQueueJournal(File file, RecordSchema schema, ExecutorService executor, Node owner,
+            LoggerHelper logger)
+    {
+        this(file, schema, executor, owner, logger, DEFAULT_COMPACT_THRESHOLD, DEFAULT_GROUP_COMMIT_DELAY);
+    }
+
+    public OutQueueJournal(File file, RecordSchema schema, ExecutorService executor, Node owner,
+            LoggerHelper logger, long compactThreshold, long groupCommitDelay)
+    {
+        this.file = file;
+        this.executor = executor;
+        this.owner = owner;
+        this.logger = new LoggerHelper(logger, "Journal. ");
+        this.compactThreshold = compactThreshold;
+        this.groupCommitDelay = groupCommitDelay;
+        final RecordSchemaField[] fields = schema.getFields();
+        if (fields!=null)
+            for (RecordSchemaField field: fields)
+                fieldTypes.put(field.getName(), field.getFieldType());
+    }
+
+    /**
+     * Replays and compacts the journal and opens it for the writing.
+     * @return the messages queued but not handled before the last close (or the crash) in the order of queueing
+     */
+    public synchronized List<PendingMessage> open() throws IOException {
+        close();
+        pending.clear();
+        if (file.exists())
+            replay();
+        final File tmpFile = new File(file.getPath()+".tmp");
+        try {
+            writeMessages(tmpFile, pending.values(), -1);
+            replaceFile(tmpFile);
+        } finally {
+            tmpFile.delete();
+        }
+        if (logger.isInfoEnabled())
+            logger.info("Opened ({}). Pending messages: {}", file, pending.size());
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized void close() {
+        awaitSyncCompletion();
+        if (out!=null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (logger.isErrorEnabled())
+                    logger.error("Error closing journal", e);
+            }
+            out = null;
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Writes the message to the journal. Returns when the entry is forced to the disk.
+     * @return the key of the message in the journal
+     */
+    public long messageQueued(Map<String, Object> values, Map<Object, Object> optionalParameters)
+        throws IOException
+    {
+        final byte[] data = encode(values, optionalParameters);
+        final PendingMessage message;
+        final long seq;
+        synchronized(this) {
+            checkOpened();
+            message = new PendingMessage(nextKey++, data);
+            writeEntry(out, message.createQueuedEntry());
+            pending.put(message.key, message);
+            seq = ++appendedSeq;
+            ++activeWriters;
+            if (syncing && appendedSeq-syncedSeq >= GROUP_COMMIT_MAX_ENTRIES)
+                notifyAll();
+        }
+        boolean synced = false;
+        try {
+            awaitSync(seq);
+            synced = true;
+            return message.key;
+        } finally {
+            synchronized(this) {
+                --activeWriters;
+                //the queue will not accept the message so it must not be replayed even if the entry reaches the disk
+                if (!synced && pending.remove(message.key)!=null && out!=null)
+                    try {
+                        writeEntry(out, createHandledEntry(message.key));
+                        out.flush();
+                    } catch (IOException e) {
+                        if (logger.isErrorEnabled())
+                            logger.error("Error writing completion of the not synced message", e);
+                    }
+            }
+        }
+    }
+
+    public synchronized void unitConfirmed(long key, int unitIndex, String messageId) throws IOException {
+        checkOpened();
+        final PendingMessage message = pending.get(key);
+        if (message!=null) {
+            message.unitConfirmed(unitIndex, messageId);
+            writeEntry(out, createConfirmedEntry(key, unitIndex, messageId));
+            out.flush();
+        }
+    }
+
+    public void messageHandled(long key) throws IOException {
+        synchronized(this) {
+            checkOpened();
+            if (pending.remove(key)==null)
+                return;
+            writeEntry(out, createHandledEntry(key));
+            out.flush();
+            if (compactionScheduled || size <= compactThreshold || size <= compactedSize*2)
+                return;
+            compactionScheduled = true;
+        }
+        final boolean scheduled = executor.executeQuietly(new AbstractTask(owner, "Compacting the journal") {
+            @Override public void doRun() throws Exception {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    if (logger.isErrorEnabled())
+                        logger.error("Error compacting journal", e);
+                } finally {
+                    synchronized(OutQueueJournal.this) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+        if (!scheduled)
+            synchronized(this) {
+                compactionScheduled = false;
+            }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the count of the syncs of the journal to the disk made by the writers
+     */
+    public synchronized long getSyncsCount() {
+        return syncsCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void checkOpened() throws IOException {
+        if (out==null)
+            throw new IOException(String.format("Journal (%s) is not opened", file));
+    }
+
+    /**
+     * Waits until the entry with the sequence number passed in the parameter is forced to the disk. The first
+     * waiting writer forces the journal (outside of the lock) for all writers waiting with it.
+     */
+    private void awaitSync(long seq) throws IOException {
+        final FileChannel channel;
+        final long syncSeq;
+        synchronized(this) {
+            try {
+                while (syncing && syncedSeq < seq)
+                    wait();
+                if (syncedSeq >= seq)
+                    return;
+                syncing = true;
+                try {
+                    if (groupCommitDelay > 0 && activeWriters > 1) {
+                        final long deadline = System.currentTimeMillis() + groupCommitDelay;
+                        long delay;
+                        while (appendedSeq-syncedSeq < GROUP_COMMIT_MAX_ENTRIES
+                                && (delay = deadline-System.currentTimeMillis()) > 0)
+                            wait(delay);
+                    }
+                    checkOpened();
+                    out.flush();
+                    channel = fileStream.getChannel();
+                    syncSeq = appendedSeq;
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    syncing = false;
+                    notifyAll();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the journal sync");
+            }
+        }
+        boolean synced = false;
+        try {
+            channel.force(false);
+            synced = true;
+        } finally {
+            synchronized(this) {
+                syncing = false;
+                if (synced) {
+                    syncedSeq = Math.max(syncedSeq, syncSeq);
+                    ++syncsCount;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits (under the lock) for the sync in progress. Must be called before the file is closed or replaced
+     */
+    private void awaitSyncCompletion() {
+        boolean interrupted = false;
+        while (syncing)
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void replay() throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int entries = 0;
+        int corrupted = 0;
+        boolean torn = false;
+        while (buf.hasRemaining()) {
+            final int entryStart = buf.position();
+            final byte[] entry = readEntry(buf);
+            if (entry!=null) {
+                if (applyEntry(entry))
+                    ++entries;
+                else
+                    ++corrupted;
+            } else if (seekNextEntry(buf, entryStart+1))
+                ++corrupted;
+            else {
+                torn = true;
+                break;
+            }
+        }
+        if (corrupted > 0) {
+            final File copy = new File(file.getPath()+".corrupted."+System.currentTimeMillis());
+            Files.copy(file.toPath(), copy.toPath());
+            if (logger.isErrorEnabled())
+                logger.error("{} corrupted entries of the journal ({}) were skipped. Copy of the journal saved "
+                        + "to ({}). The skipped messages are lost or may be sent again", corrupted, file, copy);
+        }
+        if (torn && logger.isWarnEnabled())
+            logger.warn("The tail of the journal ({}) is corrupted and was cut after {} entries", file, entries);
+        else if (logger.isDebugEnabled())
+            logger.debug("Replayed {} entries", entries);
+    }
+
+    /**
+     * Reads the entry at the current position of the buffer. Returns null if the entry is corrupted or incomplete
+     */
+    private static byte[] readEntry(ByteBuffer buf) {
+        if (buf.remaining() < ENTRY_HEADER_SIZE || buf.getInt()!=ENTRY_MARKER)
+            return null;
+        final int len = buf.getInt();
+        final long crc = buf.getInt() & 0xFFFFFFFFL;
+        if (len<=0 || len>MAX_ENTRY_SIZE || len>buf.remaining())
+            return null;
+        final byte[] entry = new byte[len];
+        buf.get(entry);
+        final CRC32 crc32 = new CRC32();
+        crc32.update(entry);
+        return crc32.getValue()==crc? entry : null;
+    }
+
+    /**
+     * Moves the position of the buffer to the marker of the next entry starting from the position passed in
+     * the parameter. Returns false if there is no next entry
+     */
+    private static boolean seekNextEntry(ByteBuffer buf, int from) {
+        for (int pos=from; pos <= buf.limit()-ENTRY_HEADER_SIZE; ++pos)
+            if (buf.getInt(pos)==ENTRY_MARKER) {
+                buf.position(pos);
+                return true;
+            }
+        return false;
+    }
+
+    private boolean applyEntry(byte[] entry) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        try {
+            final byte type = in.readByte();
+            final long key = in.readLong();
+            switch (type) {
+                case MESSAGE_QUEUED:
+                    final byte[] data = new byte[entry.length-9];
+                    in.readFully(data);
+                    pending.put(key, new PendingMessage(key, data));
+                    break;
+                case UNIT_CONFIRMED:
+                    final int unitIndex = in.readInt();
+                    final String messageId = in.readBoolean()? in.readUTF() : null;
+                    final PendingMessage message = pending.get(key);
+                    if (message!=null)
+                        message.unitConfirmed(unitIndex, messageId);
+                    break;
+                case MESSAGE_HANDLED:
+                    pending.remove(key);
+                    break;
+                default:
+                    if (logger.isErrorEnabled())
+                        logger.error("Invalid journal entry type ({})", type);
+                    return false;
+            }
+            nextKey = Math.max(nextKey, key+1);
+            return true;
+        } catch (IOException e) {
+            if (logger.isErrorEnabled())
+                logger.error("Error decoding journal entry", e);
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the journal with the pending messages only. The pending messages are written to the temporary
+     * file outside of the lock, the entries appended meanwhile are copied under the lock.
+     */
+    private void compact() throws IOException {
+        final List<PendingMessage> messages;
+        final long position;
+        final long version;
+        synchronized(this) {
+            if (out==null)
+                return;
+            out.flush();
+            position = size;
+            version = fileVersion;
+            messages = new ArrayList<>(pending.size());
+            for (PendingMessage message: pending.values())
+                messages.add(message.copy());
+        }
+        final File tmpFile = new File(file.getPath()+".compact");
+        try {
+            writeMessages(tmpFile, messages, position);
+            synchronized(this) {
+                awaitSyncCompletion();
+                //the journal was closed or reopened meanwhile
+                if (out==null || version!=fileVersion)
+                    return;
+                out.flush();
+                copyTail(tmpFile, position);
+                replaceFile(tmpFile);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private void writeMessages(File tmpFile, Collection<PendingMessage> messages, long position)
+        throws IOException
+    {
+        try (FileOutputStream tmpStream = new FileOutputStream(tmpFile)) {
+            final DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpStream));
+            for (PendingMessage message: messages) {
+                writeEntry(tmpOut, message.createQueuedEntry());
+                for (int i=message.confirmedUnits.nextSetBit(0); i>=0; i=message.confirmedUnits.nextSetBit(i+1))
+                    writeEntry(tmpOut, createConfirmedEntry(message.key, i, message.messageId));
+            }
+            tmpOut.flush();
+            if (position < 0)
+                tmpStream.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Appends the entries written to the journal after the position passed in the parameter to the compacted file
+     * and forces it to the disk
+     */
+    private void copyTail(File tmpFile, long position) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileOutputStream tmpStream = new FileOutputStream(tmpFile, true))
+        {
+            final FileChannel source = in.getChannel();
+            final FileChannel target = tmpStream.getChannel();
+            long pos = position;
+            final long end = source.size();
+            while (pos < end)
+                pos += source.transferTo(pos, end-pos, target);
+            target.force(true);
+        }
+    }
+
+    /**
+     * Replaces the journal by the compacted file and reopens it for appending. Must be called under the lock
+     */
+    private void replaceFile(File tmpFile) throws IOException {
+        close();
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        fileStream = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        size = compactedSize = file.length();
+        ++fileVersion;
+        //the compacted file is forced to the disk with all entries appended before
+        syncedSeq = appendedSeq;
+        if (logger.isDebugEnabled())
+            logger.debug("Compacted. Pending messages: {}; size: {}", pending.size(), size);
+    }
+
+    private void writeEntry(DataOutputStream stream, byte[] entry) throws IOException {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(entry);
+        stream.writeInt(ENTRY_MARKER);
+        stream.writeInt(entry.length);
+        stream.writeInt((int)crc32.getValue());
+        stream.write(entry);
+        if (stream==out)
+            size += entry.length+ENTRY_HEADER_SIZE;
+    }
+
+    private static byte[] createConfirmedEntry(long key, int unitIndex, String messageId) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(32);
+        final DataOutputStream entry = new DataOutputStream(buf);
+        entry.writeByte(UNIT_CONFIRMED);
+        entry.writeLong(key);
+        entry.writeInt(unitIndex);
+        entry.writeBoolean(messageId!=null);
+        if (messageId!=null)
+            entry.writeUTF(messageId);
+        return buf.toByteArray();
+    }
+
+    private static byte[] createHandledEntry(long key) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(9);
+        final DataOutputStream entry = new DataOutputStream(buf);
+        entry.writeByte(MESSAGE_HANDLED);
+        entry.writeLong(key);
+        return buf.toByteArray();
+    }
+
+    /**
+     * Encodes the values of the fields of the journal record schema and the optional parameters (the tags of the
+     * optional parameters are stored as strings)
+     */
+    private byte[] encode(Map<String, Object> values, Map<Object, Object> optionalParameters)
+        throws IOException
+    {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        final DataOutputStream data = new DataOutputStream(buf);
+        int count = 0;
+        for (String name: fieldTypes.keySet())
+            if (values.containsKey(name))
+                ++count;
+        data.writeInt(count);
+        for (Map.Entry<String, RecordSchemaFieldType> field: fieldTypes.entrySet())
+            if (values.containsKey(field.getKey())) {
+                data.writeUTF(field.getKey());
+                writeFieldValue(data, field.getKey(), field.getValue(), values.get(field.getKey()));
+            }
+        data.writeBoolean(optionalParameters!=null);
+        if (optionalParameters!=null) {
+            data.writeInt(optionalParameters.size());
+            for (Map.Entry<Object, Object> param: optionalParameters.entrySet()) {
+                data.writeUTF(param.getKey().toString());
+                writeParameterValue(data, param.getKey(), param.getValue());
+            }
+        }
+        data.flush();
+        if (buf.size()+9 > MAX_ENTRY_SIZE)
+            throw new IOException(String.format("Message is too big (%s bytes) for the journal", buf.size()));
+        return buf.toByteArray();
+    }
+
+    private static void writeFieldValue(DataOutputStream data, String name, RecordSchemaFieldType type,
+            Object value) throws IOException
+    {
+        if (value==null) {
+            data.writeByte(NULL_VALUE);
+            return;
+        }
+        try {
+            switch (type) {
+                case BOOLEAN:
+                    data.writeByte(BOOLEAN_VALUE);
+                    data.writeBoolean((Boolean)value);
+                    break;
+                case BYTE:
+                    data.writeByte(BYTE_VALUE);
+                    data.writeByte(((Number)value).byteValue());
+                    break;
+                case SHORT:
+                    data.writeByte(SHORT_VALUE);
+                    data.writeShort(((Number)value).shortValue());
+                    break;
+                case INTEGER:
+                    data.writeByte(INTEGER_VALUE);
+                    data.writeInt(((Number)value).intValue());
+                    break;
+                case LONG:
+                    data.writeByte(LONG_VALUE);
+                    data.writeLong(((Number)value).longValue());
+                    break;
+                case DOUBLE:
+                    data.writeByte(DOUBLE_VALUE);
+                    data.writeDouble(((Number)value).doubleValue());
+                    break;
+                case STRING:
+                    data.writeByte(STRING_VALUE);
+                    writeString(data, value.toString());
+                    break;
+                case DATE:
+                    data.writeByte(DATE_VALUE);
+                    data.writeLong(((Date)value).getTime());
+                    break;
+                case TIMESTAMP:
+                    data.writeByte(TIMESTAMP_VALUE);
+                    data.writeLong(((Date)value).getTime());
+                    break;
+                default:
+                    throw new IOException(String.format(
+                            "The type (%s) of the field (%s) is not supported by the journal", type, name));
+            }
+        } catch (ClassCastException e) {
+            throw new IOException(String.format(
+                    "Invalid value (%s) of the field (%s) of type (%s)", value, name, type), e);
+        }
+    }
+
+    private static void writeParameterValue(DataOutputStream data, Object tag, Object value) throws IOException {
+        if (value==null)
+            data.writeByte(NULL_VALUE);
+        else if (value instanceof Byte) {
+            data.writeByte(BYTE_VALUE);
+            data.writeByte((Byte)value);
+        } else if (value instanceof Short) {
+            data.writeByte(SHORT_VALUE);
+            data.writeShort((Short)value);
+        } else if (value instanceof Integer) {
+            data.writeByte(INTEGER_VALUE);
+            data.writeInt((Integer)value);
+        } else if (value instanceof String) {
+            data.writeByte(STRING_VALUE);
+            writeString(data, (String)value);
+        } else if (value instanceof byte[]) {
+            data.writeByte(BINARY_VALUE);
+            data.writeInt(((byte[])value).length);
+            data.write((byte[])value);
+        } else
+            throw new IOException(String.format(
+                    "The type of the value (%s) of the optional parameter (%s) is not supported by the journal",
+                    value, tag));
+    }
+
+    private static Object readValue(DataInputStream data) throws IOException {
+        final byte tag = data.readByte();
+        switch (tag) {
+            case NULL_VALUE: return null;
+            case BOOLEAN_VALUE: return data.readBoolean();
+            case BYTE_VALUE: return data.readByte();
+            case SHORT_VALUE: return data.readShort();
+            case INTEGER_VALUE: return data.readInt();
+            case LONG_VALUE: return data.readLong();
+            case DOUBLE_VALUE: return data.readDouble();
+            case STRING_VALUE: return readString(data);
+            case DATE_VALUE: return new java.sql.Date(data.readLong());
+            case TIMESTAMP_VALUE: return new Timestamp(data.readLong());
+            case BINARY_VALUE:
+                final byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                return bytes;
+            default:
+                throw new IOException(String.format("Invalid tag (%s) of the journaled value", tag));
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        final byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The message queued but not handled
+     */
+    public static class PendingMessage {
+        private final long key;
+        private final byte[] data;
+        private final BitSet confirmedUnits;
+        private String messageId;
+
+        private PendingMessage(long key, byte[] data) {
+            this(key, data, new BitSet(), null);
+        }
+
+        private PendingMessage(long key, byte[] data, BitSet confirmedUnits, String messageId) {
+            this.key = key;
+            this.data = data;
+            this.confirmedUnits = confirmedUnits;
+            this.messageId = messageId;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the values of the original record (the fields of the journal record schema only)
+         */
+        public Map<String, Object> getValues() throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            final int count = in.readInt();
+            final Map<String, Object> values = new HashMap<>();
+            for (int i=0; i<count; ++i)
+                values.put(in.readUTF(), readValue(in));
+            return values;
+        }
+
+        /**
+         * Returns the optional parameters of the original record or null
+         */
+        public Map<Object, Object> getOptionalParameters() throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            final int count = in.readInt();
+            for (int i=0; i<count; ++i) {
+                in.readUTF();
+                readValue(in);
+            }
+            if (!in.readBoolean())
+                return null;
+            final int paramsCount = in.readInt();
+            final Map<Object, Object> params = new HashMap<>();
+            for (int i=0; i<paramsCount; ++i)
+                params.put(in.readUTF(), readValue(in));
+            return params;
+        }
+
+        public boolean isUnitConfirmed(int unitIndex) {
+            return confirmedUnits.get(unitIndex);
+        }
+
+        /**
+         * Returns the message id received with the last unit confirmation or null
+         */
+        public String getMessageId() {
+            return messageId;
+        }
+
+        private void unitConfirmed(int unitIndex, String messageId) {
+            confirmedUnits.set(unitIndex);
+            if (messageId!=null)
+                this.messageId = messageId;
+        }
+
+        private PendingMessage copy() {
+            return new PendingMessage(key, data, (BitSet) confirmedUnits.clone(), messageId);
+        }
+
+        private byte[] createQueuedEntry() throws IOException {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length+9);
+            final DataOutputStream entry = new DataOutputStream(buf);
+            entry.writeByte(MESSAGE_QUEUED);
+            entry.writeLong(key);
+            entry.write(data);
+            return buf.toByteArray();
+        }
+    }
+}
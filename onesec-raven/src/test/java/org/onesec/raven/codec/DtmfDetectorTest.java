@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class DtmfDetectorTest extends Assert {
+    private final static String DIGITS = "123A456B789C*0#D";
+    private final static double[] ROW_FREQS = {697, 770, 852, 941};
+    private final static double[] COL_FREQS = {1209, 1336, 1477, 1633};
+
+    @Test
+    public void allDigitsTest() {
+        for (int frameMs: new int[]{10, 20, 30}) {
+            Collector collector = new Collector();
+            DtmfDetector detector = new DtmfDetector(collector);
+            Signal signal = new Signal(1);
+            for (char digit: DIGITS.toCharArray())
+                signal.tone(digit, 8000, 8000, 50).silence(50);
+            feed(detector, signal, frameMs);
+            assertEquals("frame "+frameMs+" ms", DIGITS, collector.toString());
+        }
+    }
+
+    @Test
+    public void minimumDurationTest() {
+        Collector collector = new Collector();
+        DtmfDetector detector = new DtmfDetector(collector);
+        Signal signal = new Signal(1);
+        //40 ms tones with 40 ms pauses must be detected
+        for (char digit: "5555".toCharArray())
+            signal.tone(digit, 6000, 6000, 40).silence(40);
+        //20 ms tones must be ignored
+        for (char digit: "1111".toCharArray())
+            signal.tone(digit, 6000, 6000, 20).silence(40);
+        feed(detector, signal, 20);
+        assertEquals("5555", collector.toString());
+    }
+
+    @Test
+    public void noiseTest() {
+        Collector collector = new Collector();
+        DtmfDetector detector = new DtmfDetector(collector);
+        Signal signal = new Signal(1);
+        //-26 dBFS tones with the white noise 15 dB below the tones
+        for (char digit: DIGITS.toCharArray())
+            signal.tone(digit, 1600, 1600, 60).silence(60);
+        signal.addNoise(1600/Math.pow(10, 15./20.));
+        //the loud noise without tones
+        signal.noise(3000, 2000);
+        feed(detector, signal, 20);
+        assertEquals(DIGITS, collector.toString());
+    }
+
+    @Test
+    public void twistTest() {
+        Collector collector = new Collector();
+        DtmfDetector detector = new DtmfDetector(collector);
+        Signal signal = new Signal(1);
+        //row tone 6 dB above the column tone: allowed
+        signal.tone('1', 8000, 4000, 60).silence(60);
+        //column tone 3 dB above the row tone: allowed
+        signal.tone('2', 5700, 8000, 60).silence(60);
+        //row tone 12 dB above the column tone: rejected
+        signal.tone('3', 8000, 2000, 60).silence(60);
+        //column tone 8 dB above the row tone: rejected
+        signal.tone('4', 3200, 8000, 60).silence(60);
+        //too weak tones: rejected
+        signal.tone('5', 200, 200, 60).silence(60);
+        feed(detector, signal, 20);
+        assertEquals("12", collector.toString());
+    }
+
+    @Test
+    public void talkOffTest() {
+        Collector collector = new Collector();
+        DtmfDetector detector = new DtmfDetector(collector);
+        Signal signal = new Signal(1);
+        //voiced speech like signal: harmonics of the gliding pitch with the formant like envelope
+        signal.speech(20000);
+        //single tones and the dial tone
+        signal.sine(697, 8000, 500).sine(1336, 8000, 500).sine(425, 8000, 1000);
+        signal.noise(4000, 1000);
+        feed(detector, signal, 20);
+        assertEquals("", collector.toString());
+        assertEquals(0, detector.getDetectedCount());
+    }
+
+    @Test
+    public void codedStreamsTest() {
+        Signal signal = new Signal(1);
+        for (char digit: "0#9".toCharArray())
+            signal.tone(digit, 8000, 8000, 50).silence(50);
+        byte[] pcm = signal.toPcm(false);
+        int samples = pcm.length/2;
+        byte[] alaw = new byte[samples];
+        byte[] ulaw = new byte[samples];
+        G711.encodeAlaw(pcm, 0, alaw, 0, samples, false);
+        G711.encodeUlaw(pcm, 0, ulaw, 0, samples, false);
+        Collector collector = new Collector();
+        DtmfDetector detector = new DtmfDetector(collector);
+        for (int i=0; i<samples; i+=160)
+            detector.processAlaw(alaw, i, Math.min(160, samples-i));
+        detector.reset();
+        for (int i=0; i<samples; i+=160)
+            detector.processUlaw(ulaw, i, Math.min(160, samples-i));
+        assertEquals("0#90#9", collector.toString());
+    }
+
+    /**
+     * CPU budget: one detector per call, 1000 simultaneous streams of 20 ms frames
+     */
+    @Ignore @Test
+    public void benchmark() {
+        final int streams = 1000;
+        final int frames = 2000;
+        DtmfDetector[] detectors = new DtmfDetector[streams];
+        for (int i=0; i<streams; ++i)
+            detectors[i] = new DtmfDetector(null);
+        byte[] frame = new Signal(1).speech(20).toPcm(false);
+        for (int round=0; round<3; ++round) {
+            long start = System.nanoTime();
+            for (int f=0; f<frames; ++f)
+                for (DtmfDetector detector: detectors)
+                    detector.processLinear(frame, 0, 160, false);
+            long time = System.nanoTime()-start;
+            //the one stream gets the frame every 20 ms
+            double cpuPerStream = 100. * time / frames / streams / 20000000.;
+            System.out.println(String.format(
+                    "%d streams x %d frames: %d ns/frame; CPU per stream: %.4f%%; streams per core: %.0f",
+                    streams, frames, time/frames/streams, cpuPerStream, 100./cpuPerStream));
+        }
+    }
+
+    private static void feed(DtmfDetector detector, Signal signal, int frameMs) {
+        byte[] pcm = signal.toPcm(true);
+        int frameSamples = frameMs*8;
+        int samples = pcm.length/2;
+        for (int i=0; i<samples; i+=frameSamples)
+            detector.processLinear(pcm, i*2, Math.min(frameSamples, samples-i), true);
+    }
+
+    private static class Collector implements DtmfListener {
+        private final StringBuilder digits = new StringBuilder();
+
+        @Override
+        public void dtmfDetected(char dtmf) {
+            digits.append(dtmf);
+        }
+
+        @Override
+        public String toString() {
+            return digits.toString();
+        }
+    }
+
+    private static class Signal {
+        private final Random rnd;
+        private double[] data = new double[8000];
+        private int len = 0;
+
+        public Signal(long seed) {
+            this.rnd = new Random(seed);
+        }
+
+        public Signal tone(char digit, double rowAmp, double colAmp, int ms) {
+            int pos = DIGITS.indexOf(digit);
+            double row = ROW_FREQS[pos/4];
+            double col = COL_FREQS[pos%4];
+            int n = ms*8;
+            ensure(n);
+            for (int i=0; i<n; ++i)
+                data[len+i] = rowAmp*Math.sin(2*Math.PI*row*i/8000) + colAmp*Math.sin(2*Math.PI*col*i/8000);
+            len += n;
+            return this;
+        }
+
+        public Signal sine(double freq, double amp, int ms) {
+            int n = ms*8;
+            ensure(n);
+            for (int i=0; i<n; ++i)
+                data[len+i] = amp*Math.sin(2*Math.PI*freq*i/8000);
+            len += n;
+            return this;
+        }
+
+        public Signal silence(int ms) {
+            int n = ms*8;
+            ensure(n);
+            len += n;
+            return this;
+        }
+
+        public Signal speech(int ms) {
+            int n = ms*8;
+            ensure(n);
+            double phase = 0;
+            for (int i=0; i<n; ++i) {
+                double t = i/8000.;
+                double pitch = 120 + 60*Math.sin(2*Math.PI*1.3*t) + 20*Math.sin(2*Math.PI*4.1*t);
+                phase += 2*Math.PI*pitch/8000;
+                double v = 0;
+                for (int h=1; h*pitch<3400; ++h) {
+                    double f = h*pitch;
+                    double formants = Math.exp(-Math.pow((f-700)/300, 2)) + 0.7*Math.exp(-Math.pow((f-1200)/250, 2))
+                            + 0.4*Math.exp(-Math.pow((f-2500)/400, 2)) + 0.05;
+                    v += formants*Math.sin(h*phase);
+                }
+                double syllable = 0.5 + 0.5*Math.sin(2*Math.PI*3.*t);
+                data[len+i] = 3000*syllable*v + 100*rnd.nextGaussian();
+            }
+            len += n;
+            return this;
+        }
+
+        public Signal noise(double rms, int ms) {
+            int n = ms*8;
+            ensure(n);
+            for (int i=0; i<n; ++i)
+                data[len+i] = rms*rnd.nextGaussian();
+            len += n;
+            return this;
+        }
+
+        /**
+         * Adds the white noise with the passed RMS to the whole signal
+         */
+        public Signal addNoise(double rms) {
+            for (int i=0; i<len; ++i)
+                data[i] += rms*rnd.nextGaussian();
+            return this;
+        }
+
+        public byte[] toPcm(boolean bigEndian) {
+            byte[] pcm = new byte[len*2];
+            for (int i=0; i<len; ++i)
+                ByteUtils.writeShort(i*2, PcmUtils.saturate((int)Math.round(data[i])), pcm, !bigEndian);
+            return pcm;
+        }
+
+        private void ensure(int n) {
+            if (len+n>data.length) {
+                double[] newData = new double[Math.max(data.length*2, len+n)];
+                System.arraycopy(data, 0, newData, 0, len);
+                data = newData;
+            }
+        }
+    }
+}
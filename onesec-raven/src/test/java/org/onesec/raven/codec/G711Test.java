@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class G711Test extends Assert {
+    private final static int FRAME_SAMPLES = 160;
+
+    @Test
+    public void alawEncodeBitExactnessTest() {
+        byte[] le = new byte[65536*2];
+        byte[] be = new byte[65536*2];
+        for (int i=0; i<65536; ++i) {
+            ByteUtils.writeShort(i*2, i, le, true);
+            ByteUtils.writeShort(i*2, i, be, false);
+            assertEquals("sample "+(short)i, oldLinear2alaw((short)i), G711.linear2alaw(i));
+        }
+        byte[] expected = new byte[65536];
+        oldPcm162alaw(le, 0, expected, 0, 65536, false);
+        byte[] encoded = new byte[65536];
+        G711.encodeAlaw(le, 0, encoded, 0, 65536, false);
+        assertArrayEquals(expected, encoded);
+        G711.encodeAlaw(be, 0, encoded, 0, 65536, true);
+        assertArrayEquals(expected, encoded);
+        ByteBuffer dst = ByteBuffer.allocate(65536);
+        G711.encodeAlaw(ByteBuffer.wrap(le).order(ByteOrder.LITTLE_ENDIAN), dst);
+        assertArrayEquals(expected, dst.array());
+    }
+
+    @Test
+    public void alawDecodeBitExactnessTest() {
+        byte[] codes = new byte[256];
+        for (int i=0; i<256; ++i)
+            codes[i] = (byte) i;
+        byte[] expected = new byte[512];
+        oldAlawDecode(codes, 0, expected, 0, 256);
+        byte[] decoded = new byte[514];
+        G711.decodeAlaw(codes, 0, decoded, 2, 256);
+        for (int i=0; i<512; ++i)
+            assertEquals("byte "+i, expected[i], decoded[i+2]);
+        ByteBuffer dst = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        G711.decodeAlaw(ByteBuffer.wrap(codes), dst);
+        assertArrayEquals(expected, dst.array());
+    }
+
+    @Test
+    public void ulawBitExactnessTest() {
+        for (int i=0; i<65536; ++i)
+            assertEquals("sample "+(short)i, refLinear2ulaw((short)i), G711.linear2ulaw(i));
+        for (int i=0; i<256; ++i) {
+            assertEquals("code "+i, refUlaw2linear((byte)i), G711.ulaw2linear((byte)i));
+            //decoded value is encoded to the same code (except the negative zero)
+            if (i!=0x7F)
+                assertEquals((byte)i, G711.linear2ulaw(G711.ulaw2linear((byte)i)));
+        }
+        byte[] pcm = new byte[FRAME_SAMPLES*2];
+        new Random(1).nextBytes(pcm);
+        byte[] encoded = new byte[FRAME_SAMPLES];
+        G711.encodeUlaw(pcm, 0, encoded, 0, FRAME_SAMPLES, false);
+        byte[] decoded = new byte[FRAME_SAMPLES*2];
+        G711.decodeUlaw(encoded, 0, decoded, 0, FRAME_SAMPLES);
+        for (int i=0; i<FRAME_SAMPLES; ++i) {
+            short sample = (short) ByteUtils.readSignedShort(i*2, pcm, true);
+            assertEquals(refLinear2ulaw(sample), encoded[i]);
+            assertEquals(refUlaw2linear(encoded[i]), (short)ByteUtils.readSignedShort(i*2, decoded, true));
+        }
+    }
+
+    @Test
+    public void alawRoundTripTest() {
+        for (int i=0; i<256; ++i)
+            assertEquals((byte)i, G711.linear2alaw(G711.alaw2linear((byte)i)));
+    }
+
+    @Ignore @Test
+    public void benchmark() {
+        final int frames = 2000000;
+        byte[] pcm = new byte[FRAME_SAMPLES*2];
+        new Random(1).nextBytes(pcm);
+        byte[] encoded = new byte[FRAME_SAMPLES];
+        byte[] decoded = new byte[FRAME_SAMPLES*2];
+        for (int round=0; round<3; ++round) {
+            long start = System.nanoTime();
+            for (int f=0; f<frames; ++f)
+                oldPcm162alaw(pcm, 0, encoded, 0, FRAME_SAMPLES, false);
+            long oldEncode = System.nanoTime()-start;
+            start = System.nanoTime();
+            for (int f=0; f<frames; ++f)
+                G711.encodeAlaw(pcm, 0, encoded, 0, FRAME_SAMPLES, false);
+            long newEncode = System.nanoTime()-start;
+            start = System.nanoTime();
+            for (int f=0; f<frames; ++f)
+                oldAlawDecode(encoded, 0, decoded, 0, FRAME_SAMPLES);
+            long oldDecode = System.nanoTime()-start;
+            start = System.nanoTime();
+            for (int f=0; f<frames; ++f)
+                G711.decodeAlaw(encoded, 0, decoded, 0, FRAME_SAMPLES);
+            long newDecode = System.nanoTime()-start;
+            double samples = 1000. * frames * FRAME_SAMPLES;
+            System.out.println(String.format(
+                    "A-law encode: old %.0f, new %.0f Msamples/s; decode: old %.0f, new %.0f Msamples/s",
+                    samples/oldEncode, samples/newEncode, samples/oldDecode, samples/newDecode));
+        }
+    }
+
+    //the AlawEncoder implementation before G711
+    private static final short[] seg_end = {0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF, 0x3FFF, 0x7FFF};
+
+    private static byte oldLinear2alaw(short pcm_val) {
+        byte mask;
+        byte seg = 8;
+        byte aval;
+        if (pcm_val >= 0)
+            mask = (byte) 0xD5;
+        else {
+            mask = 0x55;
+            pcm_val = (short) ( -pcm_val - 8);
+        }
+        for (int i = 0; i < 8; i++) {
+            if (pcm_val <= seg_end[i]) {
+                seg = (byte) i;
+                break;
+            }
+        }
+        if (seg >= 8)
+            return (byte) ( (0x7F ^ mask) & 0xFF);
+        else {
+            aval = (byte) (seg << 4);
+            if (seg < 2)
+                aval |= (pcm_val >> 4) & 0xf;
+            else
+                aval |= (pcm_val >> (seg + 3)) & 0xf;
+            return (byte) ( (aval ^ mask) & 0xFF);
+        }
+    }
+
+    private static void oldPcm162alaw(byte[] inBuffer, int inByteOffset, byte[] outBuffer, int outByteOffset,
+            int sampleCount, boolean bigEndian)
+    {
+        int shortIndex = inByteOffset;
+        int alawIndex = outByteOffset;
+        while (sampleCount > 0) {
+            byte hi = bigEndian? inBuffer[shortIndex] : inBuffer[shortIndex + 1];
+            byte lo = bigEndian? inBuffer[shortIndex + 1] : inBuffer[shortIndex];
+            outBuffer[alawIndex++] = oldLinear2alaw((short) ( (hi << 8) | (lo & 0xFF)));
+            shortIndex += 2;
+            sampleCount--;
+        }
+    }
+
+    //the AlawDecoder implementation before G711
+    private static final byte[] lutTableL = new byte[256];
+    private static final byte[] lutTableH = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int input = i ^ 0x55;
+            int mantissa = (input & 0xF) << 4;
+            int segment = (input & 0x70) >> 4;
+            int value = mantissa + 8;
+            if (segment >= 1)
+                value += 256;
+            if (segment > 1)
+                value <<= segment - 1;
+            if ((input & 0x80) == 0)
+                value = -value;
+            lutTableL[i] = (byte) value;
+            lutTableH[i] = (byte) (value >> 8);
+        }
+    }
+
+    private static void oldAlawDecode(byte[] inData, int inOffset, byte[] outData, int outOffset, int len) {
+        for (int i = 0; i < len; ++i) {
+            int temp = inData[(inOffset++)] & 0xFF;
+            outData[(outOffset++)] = lutTableL[temp];
+            outData[(outOffset++)] = lutTableH[temp];
+        }
+    }
+
+    //the reference u-law implementation (ITU-T G.191, g711.c)
+    private static byte refLinear2ulaw(short sample) {
+        int pcm = sample >> 2;
+        boolean negative = pcm < 0;
+        if (negative)
+            pcm = -pcm;
+        if (pcm > 8159)
+            pcm = 8159;
+        pcm += 0x21;
+        int seg = 0;
+        for (int tmp = pcm >> 6; tmp != 0; tmp >>= 1)
+            seg++;
+        int code = seg >= 8? 0x7F : (seg << 4) | ((pcm >> (seg + 1)) & 0xF);
+        return (byte) (negative? code ^ 0x7F : code ^ 0xFF);
+    }
+
+    private static short refUlaw2linear(byte code) {
+        int u = ~code & 0xFF;
+        int t = ((u & 0x0F) << 3) + 0x84;
+        t <<= (u & 0x70) >> 4;
+        return (short) ((u & 0x80) != 0? 0x84 - t : t - 0x84);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec;
+
+import static java.lang.Math.*;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class PcmUtilsTest extends Assert {
+    private final static int FRAME_SAMPLES = 160;
+
+    @Test
+    public void decodeTest() {
+        byte[] bytes = new byte[FRAME_SAMPLES*2+2];
+        new Random(1).nextBytes(bytes);
+        int[] expected = new int[FRAME_SAMPLES];
+        int expectedMax = decodeWithByteUtils(bytes, 2, expected);
+        int[] data = new int[FRAME_SAMPLES];
+        assertEquals(expectedMax, PcmUtils.decode(bytes, 2, data, 0, FRAME_SAMPLES));
+        assertArrayEquals(expected, data);
+    }
+
+    @Test
+    public void encodeTest() {
+        int[] data = new int[FRAME_SAMPLES];
+        Random rnd = new Random(1);
+        for (int i=0; i<FRAME_SAMPLES; ++i)
+            data[i] = rnd.nextInt(65536)-32768;
+        byte[] expected = new byte[FRAME_SAMPLES*2];
+        for (int i=0; i<FRAME_SAMPLES; ++i)
+            ByteUtils.writeShort(i*2, data[i], expected, true);
+        byte[] bytes = new byte[FRAME_SAMPLES*2];
+        PcmUtils.encode(data, 0, bytes, 0, FRAME_SAMPLES);
+        assertArrayEquals(expected, bytes);
+    }
+
+    @Test
+    public void saturationTest() {
+        int[] data = new int[]{40000, -40000, 32767, -32768};
+        byte[] bytes = new byte[8];
+        PcmUtils.encode(data, 0, bytes, 0, 4);
+        assertEquals(32767, ByteUtils.readSignedShort(0, bytes, true));
+        assertEquals(-32768, ByteUtils.readSignedShort(2, bytes, true));
+        assertEquals(32767, ByteUtils.readSignedShort(4, bytes, true));
+        assertEquals(-32768, ByteUtils.readSignedShort(6, bytes, true));
+        int[] dst = new int[]{30000, -30000};
+        PcmUtils.addSaturated(dst, new int[]{30000, -30000}, 2);
+        assertArrayEquals(new int[]{32767, -32768}, dst);
+    }
+
+    @Test
+    public void normalizeTest() {
+        Random rnd = new Random(1);
+        for (int streams=1; streams<5; ++streams)
+            for (double gain: new double[]{0., 1., 3.}) {
+                int[] data = new int[FRAME_SAMPLES];
+                for (int i=0; i<FRAME_SAMPLES; ++i)
+                    data[i] = (rnd.nextInt(65536)-32768)*streams/4;
+                int[] expected = Arrays.copyOf(data, FRAME_SAMPLES);
+                normalizeOld(expected, FRAME_SAMPLES, streams, gain);
+                PcmUtils.normalize(data, FRAME_SAMPLES, streams, gain);
+                assertArrayEquals(expected, data);
+            }
+    }
+
+    @Ignore @Test
+    public void benchmark() {
+        final int frames = 1000000;
+        byte[][] bytes = new byte[4][FRAME_SAMPLES*2];
+        Random rnd = new Random(1);
+        for (byte[] b: bytes)
+            rnd.nextBytes(b);
+        byte[] out = new byte[FRAME_SAMPLES*2];
+        int[] mix = new int[FRAME_SAMPLES];
+        int[] work = new int[FRAME_SAMPLES];
+        for (int round=0; round<3; ++round) {
+            long start = System.nanoTime();
+            for (int f=0; f<frames; ++f) {
+                Arrays.fill(mix, 0);
+                for (byte[] b: bytes) {
+                    decodeWithByteUtils(b, 0, work);
+                    for (int i=0; i<FRAME_SAMPLES; ++i)
+                        mix[i] += work[i];
+                }
+                normalizeOld(mix, FRAME_SAMPLES, bytes.length, 3.);
+                for (int i=0; i<FRAME_SAMPLES; ++i)
+                    ByteUtils.writeShort(i*2, mix[i], out, true);
+            }
+            long oldTime = System.nanoTime()-start;
+            start = System.nanoTime();
+            for (int f=0; f<frames; ++f) {
+                Arrays.fill(mix, 0);
+                for (byte[] b: bytes) {
+                    PcmUtils.decode(b, 0, work, 0, FRAME_SAMPLES);
+                    PcmUtils.add(mix, work, FRAME_SAMPLES);
+                }
+                PcmUtils.normalize(mix, FRAME_SAMPLES, bytes.length, 3.);
+                PcmUtils.encode(mix, 0, out, 0, FRAME_SAMPLES);
+            }
+            long newTime = System.nanoTime()-start;
+            System.out.println(String.format("4 x 160 samples mix. ByteUtils: %d ns/frame; PcmUtils: %d ns/frame",
+                    oldTime/frames, newTime/frames));
+        }
+    }
+
+    private static int decodeWithByteUtils(byte[] bytes, int offset, int[] data) {
+        int max = 0;
+        for (int i=0; i<data.length; ++i) {
+            data[i] = ByteUtils.readSignedShort(offset+i*2, bytes, true);
+            max = max(max, abs(data[i]));
+        }
+        return max;
+    }
+
+    //the normalization algorithm used by AbstractRealTimeMixer before PcmUtils
+    private static void normalizeOld(int[] data, int len, int streamsCount, double maxGainCoef) {
+        double koef = maxGainCoef;
+        if (koef>1.01 || streamsCount>1) {
+            int max=0;
+            for (int i=0; i<len; i++) {
+                data[i] = data[i]/streamsCount;
+                max = max(max, abs(data[i]));
+            }
+            koef = min(max>0? 32767./max : 1., maxGainCoef);
+        }
+        koef = min(maxGainCoef, koef);
+        if (koef>1.01)
+            for (int i=0; i<len; i++)
+                data[i] = (int) (koef*data[i]);
+    }
+}
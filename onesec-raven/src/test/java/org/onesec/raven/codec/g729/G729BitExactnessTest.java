@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.codec.g729;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.onesec.raven.codec.g729.Ld8k.*;
+
+/**
+ * The reference checksums of the bit stream and of the decoded speech were produced by the floating point
+ * ITU-T G.729 reference implementation (the code of this package before the scratch buffers were moved
+ * to the instance fields). Any change of the codec arithmetic breaks the test.
+ *
+ * @author Mikhail Titov
+ */
+public class G729BitExactnessTest extends Assert {
+    private final static String SPEECH_FILE = "src/test/wav/greeting.wav";
+    private final static int WAV_HEADER_SIZE = 44;
+    //every ERASURE_INTERVAL frame is erased before decoding
+    private final static int ERASURE_INTERVAL = 37;
+
+    private final static long SPEECH_BITSTREAM_CRC = 3183902506L;
+    private final static long SPEECH_SYNTH_CRC = 214450744L;
+    private final static long SIGNAL_BITSTREAM_CRC = 990584025L;
+    private final static long SIGNAL_SYNTH_CRC = 1348507577L;
+
+    @Test
+    public void speechTest() throws Exception {
+        short[] speech = readSpeech(new File(SPEECH_FILE));
+        check(speech, SPEECH_BITSTREAM_CRC, SPEECH_SYNTH_CRC);
+    }
+
+    @Test
+    public void syntheticSignalTest() throws Exception {
+        check(createSignal(500), SIGNAL_BITSTREAM_CRC, SIGNAL_SYNTH_CRC);
+    }
+
+    @Test
+    public void independentInstancesTest() throws Exception {
+        //interleaved coders must not affect each other
+        short[] speech = readSpeech(new File(SPEECH_FILE));
+        short[] signal = createSignal(speech.length / L_FRAME);
+        Coder coder1 = new Coder(), coder2 = new Coder();
+        Decoder decoder1 = new Decoder(), decoder2 = new Decoder();
+        CRC32 bits1 = new CRC32(), bits2 = new CRC32(), synth1 = new CRC32(), synth2 = new CRC32();
+        short[] frame = new short[L_FRAME];
+        short[] serial = new short[SERIAL_SIZE];
+        for (int i=0; i+L_FRAME<=speech.length; i+=L_FRAME) {
+            process(coder1, decoder1, speech, i, i/L_FRAME, frame, serial, bits1, synth1);
+            process(coder2, decoder2, signal, i, i/L_FRAME, frame, serial, bits2, synth2);
+        }
+        assertEquals(SPEECH_BITSTREAM_CRC, bits1.getValue());
+        assertEquals(SPEECH_SYNTH_CRC, synth1.getValue());
+        CRC32 signalBits = new CRC32(), signalSynth = new CRC32();
+        encodeAndDecode(signal, signalBits, signalSynth);
+        assertEquals(signalBits.getValue(), bits2.getValue());
+        assertEquals(signalSynth.getValue(), synth2.getValue());
+    }
+
+    @Test @Ignore
+    public void encoderDecoderBenchmark() throws Exception {
+        short[] speech = readSpeech(new File(SPEECH_FILE));
+        int framesCount = speech.length / L_FRAME;
+        short[][] bitstream = new short[framesCount][SERIAL_SIZE];
+        Coder coder = new Coder();
+        Decoder decoder = new Decoder();
+        short[] frame = new short[L_FRAME];
+        for (int i=0; i<framesCount; ++i) {
+            System.arraycopy(speech, i*L_FRAME, frame, 0, L_FRAME);
+            coder.process(frame, bitstream[i]);
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+            fail("Thread allocation counters are not supported");
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+        for (int round=0; round<5; ++round) {
+            int frames = 0;
+            long allocated = bean.getThreadAllocatedBytes(threadId);
+            long ts = System.nanoTime();
+            for (int r=0; r<20; ++r)
+                for (int i=0; i<framesCount; ++i, ++frames) {
+                    System.arraycopy(speech, i*L_FRAME, frame, 0, L_FRAME);
+                    coder.process(frame, bitstream[i]);
+                }
+            long time = System.nanoTime() - ts;
+            long bytes = bean.getThreadAllocatedBytes(threadId) - allocated;
+            System.out.println(String.format("Encoder: %.0f frames/sec, %.1f bytes/frame",
+                    frames * 1e9 / time, (double)bytes / frames));
+            frames = 0;
+            allocated = bean.getThreadAllocatedBytes(threadId);
+            ts = System.nanoTime();
+            for (int r=0; r<20; ++r)
+                for (int i=0; i<framesCount; ++i, ++frames)
+                    decoder.process(bitstream[i], frame);
+            time = System.nanoTime() - ts;
+            bytes = bean.getThreadAllocatedBytes(threadId) - allocated;
+            System.out.println(String.format("Decoder: %.0f frames/sec, %.1f bytes/frame",
+                    frames * 1e9 / time, (double)bytes / frames));
+        }
+    }
+
+    private void check(short[] speech, long bitstreamCrc, long synthCrc) {
+        CRC32 bits = new CRC32(), synth = new CRC32();
+        encodeAndDecode(speech, bits, synth);
+        assertEquals(bitstreamCrc, bits.getValue());
+        assertEquals(synthCrc, synth.getValue());
+    }
+
+    private void encodeAndDecode(short[] speech, CRC32 bits, CRC32 synth) {
+        Coder coder = new Coder();
+        Decoder decoder = new Decoder();
+        short[] frame = new short[L_FRAME];
+        short[] serial = new short[SERIAL_SIZE];
+        for (int i=0; i+L_FRAME<=speech.length; i+=L_FRAME)
+            process(coder, decoder, speech, i, i/L_FRAME, frame, serial, bits, synth);
+    }
+
+    private void process(Coder coder, Decoder decoder, short[] speech, int offset, int frameNumber,
+            short[] frame, short[] serial, CRC32 bits, CRC32 synth)
+    {
+        System.arraycopy(speech, offset, frame, 0, L_FRAME);
+        coder.process(frame, serial);
+        update(bits, serial);
+        if (frameNumber % ERASURE_INTERVAL == ERASURE_INTERVAL-1)
+            for (int i=2; i<SERIAL_SIZE; ++i)
+                serial[i] = 0;
+        decoder.process(serial, frame);
+        update(synth, frame);
+    }
+
+    private static void update(CRC32 crc, short[] data) {
+        for (short v: data) {
+            crc.update(v & 0xFF);
+            crc.update((v >> 8) & 0xFF);
+        }
+    }
+
+    private static short[] createSignal(int framesCount) {
+        Random random = new Random(1);
+        short[] signal = new short[framesCount * L_FRAME];
+        for (int i=0; i<signal.length; ++i) {
+            double v = 6000 * StrictMath.sin(2 * Math.PI * 440 * i / 8000.)
+                    + 3000 * StrictMath.sin(2 * Math.PI * (200 + (i / 800) * 50) * i / 8000.)
+                    + random.nextGaussian() * 1000;
+            signal[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+        }
+        return signal;
+    }
+
+    private static short[] readSpeech(File file) throws IOException {
+        byte[] bytes = new byte[(int)file.length()];
+        InputStream is = new FileInputStream(file);
+        try {
+            int len = 0;
+            for (int n; len<bytes.length && (n=is.read(bytes, len, bytes.length-len))>0; )
+                len += n;
+        } finally {
+            is.close();
+        }
+        short[] speech = new short[(bytes.length - WAV_HEADER_SIZE) / 2];
+        for (int i=0; i<speech.length; ++i)
+            speech[i] = (short) ((bytes[WAV_HEADER_SIZE+i*2] & 0xFF) | (bytes[WAV_HEADER_SIZE+i*2+1] << 8));
+        return speech;
+    }
+}
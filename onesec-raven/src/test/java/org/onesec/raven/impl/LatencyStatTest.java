@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class LatencyStatTest extends Assert {
+    
+    @Test
+    public void emptyTest() {
+        LatencyStat stat = new LatencyStat();
+        assertEquals(0, stat.getCount());
+        assertEquals(0, stat.getAverage());
+        assertEquals(0, stat.getPercentile(99));
+    }
+    
+    @Test
+    public void percentileTest() {
+        LatencyStat stat = new LatencyStat(100);
+        for (int i=100; i>0; --i)
+            stat.add(i);
+        assertEquals(100, stat.getCount());
+        assertEquals(5050, stat.getTotal());
+        assertEquals(50, stat.getAverage());
+        assertEquals(50, stat.getPercentile(50));
+        assertEquals(95, stat.getPercentile(95));
+        assertEquals(99, stat.getPercentile(99));
+        assertEquals(100, stat.getPercentile(100));
+        assertEquals(1, stat.getPercentile(0));
+    }
+    
+    @Test
+    public void windowTest() {
+        LatencyStat stat = new LatencyStat(10);
+        for (int i=0; i<10; ++i)
+            stat.add(1000);
+        for (int i=0; i<10; ++i)
+            stat.add(i+1);
+        assertEquals(20, stat.getCount());
+        assertEquals(10, stat.getPercentile(100));
+        assertEquals(5, stat.getPercentile(50));
+        stat.reset();
+        assertEquals(0, stat.getCount());
+        assertEquals(0, stat.getPercentile(50));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class TokenBucketTest extends Assert {
+    private final static long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void burstTest() {
+        TokenBucket bucket = new TokenBucket(10);
+        long now = System.nanoTime();
+        for (int i=0; i<10; ++i)
+            assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(100*MS, bucket.tryAcquire(now));
+        assertEquals(60*MS, bucket.tryAcquire(now+40*MS));
+        assertEquals(0, bucket.tryAcquire(now+100*MS));
+        assertEquals(100*MS, bucket.tryAcquire(now+100*MS));
+    }
+
+    @Test
+    public void rateTest() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(now));
+        int acquired = 0;
+        //the bucket must not accumulate more than one token after the long pause
+        now += TimeUnit.SECONDS.toNanos(10);
+        for (int i=0; i<1000; ++i)
+            if (bucket.tryAcquire(now+i*MS)==0)
+                ++acquired;
+        assertEquals(10, acquired);
+    }
+
+    @Test
+    public void periodTest() {
+        //5 tokens per 2 seconds
+        TokenBucket bucket = new TokenBucket(5, 2, TimeUnit.SECONDS, 5);
+        long now = System.nanoTime();
+        for (int i=0; i<5; ++i)
+            assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(400*MS, bucket.getWaitTime(now));
+        //the wait time check does not take the token
+        assertEquals(0, bucket.getWaitTime(now+400*MS));
+        assertEquals(0, bucket.tryAcquire(now+400*MS));
+        assertEquals(400*MS, bucket.getWaitTime(now+400*MS));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.conference.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.media.Buffer;
+import javax.media.protocol.PushBufferStream;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.codec.ByteUtils;
+import org.raven.log.LogLevel;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+import static org.onesec.raven.ivr.impl.AbstractRealTimeMixer.*;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class MixMinusBufferTest extends Assert {
+
+    @Test
+    public void mixMinusSelfTest() {
+        MixMinusBuffer buffer = new MixMinusBuffer();
+        assertNull(buffer.getCurrent());
+        int[] self = new int[BUFFER_SIZE];
+        int[] other = new int[BUFFER_SIZE];
+        int[] mix = new int[BUFFER_SIZE];
+        for (int i=0; i<BUFFER_SIZE; ++i) {
+            self[i] = 1000;
+            other[i] = i;
+            mix[i] = self[i] + other[i];
+        }
+        Buffer buf = buffer.mix(self, mix, BUFFER_SIZE, 2, 1., BYTE_BUFFER_SIZE);
+        assertSame(buf, buffer.getCurrent());
+        assertEquals(BYTE_BUFFER_SIZE, buf.getLength());
+        byte[] data = (byte[]) buf.getData();
+        for (int i=0; i<BUFFER_SIZE; ++i)
+            assertEquals(i, ByteUtils.readSignedShort(i*2, data, true));
+        //the mix must not be changed
+        assertEquals(1000, mix[0]-other[0]);
+    }
+
+    @Test
+    public void doubleBufferTest() {
+        MixMinusBuffer buffer = new MixMinusBuffer();
+        int[] mix = new int[BUFFER_SIZE];
+        Buffer buf1 = buffer.mix(null, mix, BUFFER_SIZE, 1, 1., BYTE_BUFFER_SIZE);
+        Buffer buf2 = buffer.mix(null, mix, BUFFER_SIZE, 1, 1., BYTE_BUFFER_SIZE);
+        Buffer buf3 = buffer.mix(null, mix, BUFFER_SIZE, 1, 1., BYTE_BUFFER_SIZE);
+        assertNotSame(buf1, buf2);
+        assertNotSame(buf1.getData(), buf2.getData());
+        assertSame(buf1, buf3);
+    }
+
+    @Test
+    public void readCopyTest() {
+        MixMinusBuffer buffer = new MixMinusBuffer();
+        Buffer target = new Buffer();
+        assertFalse(buffer.read(target));
+        int[] mix = new int[BUFFER_SIZE];
+        Arrays.fill(mix, 100);
+        Buffer published = buffer.mix(null, mix, BUFFER_SIZE, 1, 1., BYTE_BUFFER_SIZE);
+        assertTrue(buffer.read(target));
+        assertNotSame(published.getData(), target.getData());
+        assertEquals(BYTE_BUFFER_SIZE, target.getLength());
+        byte[] targetData = (byte[]) target.getData();
+        //the data array of the reader is reused
+        assertTrue(buffer.read(target));
+        assertSame(targetData, target.getData());
+    }
+
+    /**
+     * The participant's stream is driven through the handler of the real mixer. The reader holds every
+     * received buffer for the several ticks (like the slow encoder), the held data must not be changed by the
+     * following mixes.
+     */
+    @Test
+    public void laggingReaderTest() throws Exception {
+        LoggerHelper logger = new LoggerHelper(LogLevel.WARN, "Mixer", "Mixer. ", 
+                LoggerFactory.getLogger(MixMinusBufferTest.class));
+        RealTimeConferenceMixer mixer = new RealTimeConferenceMixer(null, null, logger, null, 0, 1.);
+        RealTimeConferenceMixer.Handler handler = 
+                (RealTimeConferenceMixer.Handler) mixer.addParticipant("P1", null);
+        PushBufferStream stream = handler.getConferenceAudioSource().getStreams()[0];
+        List<Buffer> held = new ArrayList<>();
+        List<byte[]> expected = new ArrayList<>();
+        int[] mix = new int[BUFFER_SIZE];
+        for (int tick=0; tick<10; ++tick) {
+            Arrays.fill(mix, (tick+1)*100);
+            mixer.applyBufferToHandlers(handler, mix, BUFFER_SIZE, 1, 1., BYTE_BUFFER_SIZE);
+            Buffer buf = new Buffer();
+            stream.read(buf);
+            assertFalse(buf.isDiscard());
+            held.add(buf);
+            expected.add(Arrays.copyOfRange((byte[])buf.getData(), buf.getOffset(), buf.getOffset()+buf.getLength()));
+        }
+        for (int i=0; i<held.size(); ++i) {
+            Buffer buf = held.get(i);
+            assertArrayEquals("Tick "+i, expected.get(i), 
+                    Arrays.copyOfRange((byte[])buf.getData(), buf.getOffset(), buf.getOffset()+buf.getLength()));
+        }
+        //the reader that is late for the several ticks receives the last mix
+        Buffer late = new Buffer();
+        stream.read(late);
+        assertArrayEquals(expected.get(expected.size()-1), 
+                Arrays.copyOfRange((byte[])late.getData(), late.getOffset(), late.getOffset()+late.getLength()));
+    }
+
+    @Test
+    public void silenceTest() {
+        MixMinusBuffer buffer = new MixMinusBuffer();
+        int[] self = new int[BUFFER_SIZE];
+        int[] mix = new int[BUFFER_SIZE];
+        for (int i=0; i<BUFFER_SIZE; ++i)
+            self[i] = mix[i] = 100;
+        Buffer buf = buffer.mix(self, mix, BUFFER_SIZE, 1, 1., BYTE_BUFFER_SIZE);
+        byte[] data = (byte[]) buf.getData();
+        for (int i=0; i<BYTE_BUFFER_SIZE; ++i)
+            assertEquals(0, data[i]);
+    }
+
+    @Test
+    public void noAllocationTest() {
+        for (int participants: new int[]{2, 10, 50}) {
+            long bytesPerTick = measureAllocation(participants, 1000);
+            assertEquals("Participants: "+participants, 0, bytesPerTick);
+        }
+    }
+
+    @Ignore @Test
+    public void mixBenchmark() {
+        for (int participants: new int[]{2, 10, 50}) {
+            int ticks = 100000;
+            long start = System.nanoTime();
+            long bytesPerTick = measureAllocation(participants, ticks);
+            long duration = System.nanoTime()-start;
+            System.out.println(String.format("PARTICIPANTS: %d; TICK TIME: %d ns; ALLOCATED BYTES PER TICK: %d",
+                    participants, duration/ticks, bytesPerTick));
+        }
+    }
+
+    private long measureAllocation(int participants, int ticks) {
+        MixMinusBuffer[] buffers = new MixMinusBuffer[participants];
+        int[][] selfData = new int[participants][BUFFER_SIZE];
+        int[] mix = new int[BUFFER_SIZE];
+        for (int p=0; p<participants; ++p) {
+            buffers[p] = new MixMinusBuffer();
+            for (int i=0; i<BUFFER_SIZE; ++i) {
+                selfData[p][i] = (i*(p+1)) % 1000;
+                mix[i] += selfData[p][i];
+            }
+        }
+        //warming up
+        runTicks(buffers, selfData, mix, ticks);
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+        runTicks(buffers, selfData, mix, ticks);
+        return (threadBean.getThreadAllocatedBytes(threadId)-startBytes) / ticks;
+    }
+
+    private void runTicks(MixMinusBuffer[] buffers, int[][] selfData, int[] mix, int ticks) {
+        for (int t=0; t<ticks; ++t)
+            for (int p=0; p<buffers.length; ++p)
+                buffers[p].mix(selfData[p], mix, BUFFER_SIZE, buffers.length, 1., BYTE_BUFFER_SIZE);
+    }
+}
@@ -17,7 +17,10 @@
 
 package org.onesec.raven.ivr.impl;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import javax.media.Buffer;
 import org.junit.Assert;
@@ -103,6 +106,90 @@ public class BufferCacheImplTest extends Assert
         assertNull(cache.getCachedBuffers("key", 1, Codec.G711_A_LAW, 1));
     }
     
+    @Test
+    public void lruEvictionTest() throws Exception {
+        RTPManagerService rtpManager = createMock(RTPManagerService.class);
+        BufferCacheImpl cache = new BufferCacheImpl(rtpManager, logger, codecManager);
+        cache.setMaxCacheSize(1000);
+        cache.cacheBuffers("key1", 1, Codec.G711_A_LAW, 160, createBuffers(3, 160, 1));
+        cache.cacheBuffers("key2", 1, Codec.G711_A_LAW, 160, createBuffers(2, 160, 2));
+        assertEquals(800, cache.getCacheSize());
+        assertNotNull(cache.getCachedBuffers("key1", 1, Codec.G711_A_LAW, 160));
+        cache.cacheBuffers("key3", 1, Codec.G711_A_LAW, 160, createBuffers(2, 160, 3));
+        assertEquals(1, cache.getCacheEvictions());
+        assertEquals(800, cache.getCacheSize());
+        assertNull(cache.getCachedBuffers("key2", 1, Codec.G711_A_LAW, 160));
+        assertNotNull(cache.getCachedBuffers("key1", 1, Codec.G711_A_LAW, 160));
+        assertNotNull(cache.getCachedBuffers("key3", 1, Codec.G711_A_LAW, 160));
+        assertEquals(3, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+        //entity that is larger than the cache is kept until the next one is cached
+        cache.cacheBuffers("key4", 1, Codec.G711_A_LAW, 160, createBuffers(10, 160, 4));
+        assertEquals(1600, cache.getCacheSize());
+        assertEquals(1, cache.getCacheEntities().size());
+    }
+
+    @Test
+    public void storeTest() throws Exception {
+        File dir = new File("target/buffers_cache_store");
+        if (dir.exists())
+            for (File file: dir.listFiles())
+                file.delete();
+        RTPManagerService rtpManager = createMock(RTPManagerService.class);
+        BufferCacheImpl cache = new BufferCacheImpl(rtpManager, logger, codecManager);
+        cache.setStoreDirectory(dir);
+        List<Buffer> buffers = createBuffers(3, 160, 1);
+        cache.cacheBuffers("key1", 1, Codec.G711_A_LAW, 160, buffers);
+        cache.cacheBuffers("key2", 1, Codec.G711_A_LAW, 160, createBuffers(2, 160, 2));
+        cache.cacheBuffers("key2", 2, Codec.G711_A_LAW, 160, createBuffers(2, 160, 3));
+        assertEquals(2, cache.getStoreEntitiesCount());
+        assertEquals(800, cache.getStoreSize());
+
+        //warm up from the store
+        cache = new BufferCacheImpl(rtpManager, logger, codecManager);
+        cache.setMaxCacheSize(500);
+        cache.setStoreDirectory(dir);
+        assertEquals(2, cache.getStoreEntitiesCount());
+        assertEquals(1, cache.getCacheEntities().size());
+        assertNull(cache.getCachedBuffers("key2", 1, Codec.G711_A_LAW, 160));
+        assertNotNull(cache.getCachedBuffers("key2", 2, Codec.G711_A_LAW, 160));
+        Buffer[] res = cache.getCachedBuffers("key1", 1, Codec.G711_A_LAW, 160);
+        assertEquals(2, cache.getCacheHits()+cache.getStoreHits());
+        assertEquals(1, cache.getCacheMisses());
+        assertNotNull(res);
+        assertEquals(buffers.size(), res.length);
+        for (int i=0; i<res.length; ++i) {
+            Buffer buf = buffers.get(i);
+            assertEquals(buf.getFormat(), res[i].getFormat());
+            assertEquals(buf.getLength(), res[i].getLength());
+            assertEquals(buf.getTimeStamp(), res[i].getTimeStamp());
+            assertEquals(buf.getDuration(), res[i].getDuration());
+            assertEquals(buf.getSequenceNumber(), res[i].getSequenceNumber());
+            assertArrayEquals((byte[])buf.getData(), 
+                    Arrays.copyOfRange((byte[])res[i].getData(), res[i].getOffset(), res[i].getOffset()+res[i].getLength()));
+        }
+        //the store is disabled
+        cache.setStoreDirectory(null);
+        assertEquals(0, cache.getStoreEntitiesCount());
+    }
+
+    private static List<Buffer> createBuffers(int count, int size, int fill) {
+        List<Buffer> buffers = new ArrayList<>(count);
+        for (int i=0; i<count; ++i) {
+            Buffer buffer = new Buffer();
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte)(fill+i));
+            buffer.setData(data);
+            buffer.setLength(size);
+            buffer.setFormat(Codec.G711_A_LAW.getAudioFormat());
+            buffer.setTimeStamp(i*20);
+            buffer.setDuration(20000000);
+            buffer.setSequenceNumber(i);
+            buffers.add(buffer);
+        }
+        return buffers;
+    }
+
     public static Task executeTask() {
         reportMatcher(new IArgumentMatcher() {
             public boolean matches(Object argument) {
@@ -37,6 +37,7 @@ public class BufferCacheNodeTest extends OnesecRavenTestCase
         BufferCacheNode cacheNode = new BufferCacheNode();
         tree.getRootNode().addAndSaveChildren(cacheNode);
         assertEquals(BufferCacheImpl.DEFAULT_MAX_CACHE_IDLE_TIME, cacheNode.getMaxCacheIdleTime().longValue());
+        assertEquals(BufferCacheImpl.DEFAULT_MAX_CACHE_SIZE, cacheNode.getMaxCacheSize().longValue());
     }
 
     @Test
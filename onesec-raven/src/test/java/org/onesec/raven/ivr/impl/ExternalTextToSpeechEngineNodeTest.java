@@ -18,6 +18,8 @@ package org.onesec.raven.ivr.impl;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -149,6 +151,124 @@ public class ExternalTextToSpeechEngineNodeTest extends OnesecRavenTestCase {
         Thread.sleep(1000);
     }
     
+    @Test
+    public void singleFlightTest() throws Exception {
+        FileUtils.forceMkdir(cacheDir);
+        File script = createSlowCopyScript();
+        ttsNode.setCommandLine("\"sh "+script.getPath()+" ${textFilename} ${wavFilename}\".toString()");
+        assertTrue(ttsNode.start());
+        
+        final List<DataCollector> collectors = new ArrayList<>();
+        collectors.add(collector);
+        for (int i=1; i<5; ++i) {
+            DataCollector c = new DataCollector();
+            c.setName("collector"+i);
+            tree.getRootNode().addAndSaveChildren(c);
+            c.setDataSource(ttsNode);
+            collectors.add(c);
+        }
+        for (DataCollector c: collectors) {
+            c.getNodeAttribute(ExternalTextToSpeechEngineNode.TEXT_ATTR).setValue("test");
+            assertTrue(c.start());
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (final DataCollector c: collectors) 
+            threads.add(new Thread() {
+                @Override public void run() {
+                    c.refereshData(null);
+                }
+            });
+        for (Thread thread: threads)
+            thread.start();
+        for (Thread thread: threads)
+            thread.join(5000);
+        
+        Object res = collector.getDataList().get(0);
+        assertTrue(res instanceof InputStreamSource);
+        for (DataCollector c: collectors) {
+            assertEquals(1, c.getDataList().size());
+            assertSame(res, c.getDataList().get(0));
+        }
+        assertEquals(new Long(1), ttsNode.getOperationsCount());
+        assertEquals(new Integer(4), ttsNode.getJoinedRequestsCount());
+        assertEquals(new Integer(0), ttsNode.getInFlightCount());
+        assertTrue(ttsNode.getExecutionTime99PercentileMS()>=1000);
+    }
+    
+    @Test
+    public void cacheSizeLimitTest() throws Exception {
+        FileUtils.forceMkdir(cacheDir);
+        ttsNode.setCommandLine("\"cp ${textFilename} ${wavFilename}\".toString()");
+        ttsNode.setMaxCacheSizeMb(2l);
+        ttsNode.setEvictedEntryRemoveDelay(100l);
+        assertTrue(ttsNode.start());
+        
+        NodeAttribute textAttr = collector.getNodeAttribute(ExternalTextToSpeechEngineNode.TEXT_ATTR);
+        assertTrue(collector.start());
+        String[] texts = synthesizeLargeTexts(textAttr, 'a', 3);
+        assertEquals(new Integer(1), ttsNode.getCachedEntriesCount());
+        //the files of the evicted entries are removed after the delay
+        Thread.sleep(500);
+        assertEquals(2, cacheDir.list().length);
+        assertTrue(new File(cacheDir, ExternalTextToSpeechEngineNode.hash(texts[2])+".wav").exists());
+        assertFalse(new File(cacheDir, ExternalTextToSpeechEngineNode.hash(texts[0])+".wav").exists());
+        
+        //index is restored without reading of text files
+        ttsNode.stop();
+        assertTrue(ttsNode.start());
+        assertEquals(new Integer(1), ttsNode.getCachedEntriesCount());
+        collector.getDataList().clear();
+        collector.refereshData(null);
+        assertEquals(new Integer(1), ttsNode.getCacheHitCount());
+        assertEquals(new Long(0), ttsNode.getOperationsCount());
+    }
+    
+    @Test
+    public void evictedEntryInUseTest() throws Exception {
+        FileUtils.forceMkdir(cacheDir);
+        ttsNode.setCommandLine("\"cp ${textFilename} ${wavFilename}\".toString()");
+        ttsNode.setMaxCacheSizeMb(2l);
+        ttsNode.setEvictedEntryRemoveDelay(100l);
+        assertTrue(ttsNode.start());
+        
+        NodeAttribute textAttr = collector.getNodeAttribute(ExternalTextToSpeechEngineNode.TEXT_ATTR);
+        assertTrue(collector.start());
+        String[] texts = synthesizeLargeTexts(textAttr, 'a', 1);
+        InputStream stream = ((InputStreamSource)collector.getDataList().get(0)).getInputStream();
+        assertNotNull(stream);
+        File wavFile = new File(cacheDir, ExternalTextToSpeechEngineNode.hash(texts[0])+".wav");
+        synthesizeLargeTexts(textAttr, 'b', 1);
+        assertEquals(new Integer(1), ttsNode.getCachedEntriesCount());
+        //the evicted entry is still read by the consumer
+        Thread.sleep(500);
+        assertTrue(wavFile.exists());
+        assertEquals(texts[0].length(), IOUtils.toString(stream, "utf-8").length());
+        stream.close();
+        assertFalse(wavFile.exists());
+    }
+    
+    @Test
+    public void restoredEntryTextCheckTest() throws Exception {
+        FileUtils.forceMkdir(cacheDir);
+        //the entry with the name of the hash of the requested text but with the other text
+        String base = cacheDir.getPath()+"/"+ExternalTextToSpeechEngineNode.hash("test");
+        FileUtils.writeStringToFile(new File(base+".txt"), "other text");
+        FileUtils.writeStringToFile(new File(base+".wav"), "other wav file");
+        ttsNode.setCommandLine("\"cp ${textFilename} ${wavFilename}\".toString()");
+        assertTrue(ttsNode.start());
+        assertEquals(new Integer(1), ttsNode.getCachedEntriesCount());
+        
+        NodeAttribute textAttr = collector.getNodeAttribute(ExternalTextToSpeechEngineNode.TEXT_ATTR);
+        textAttr.setValue("test");
+        assertTrue(collector.start());
+        collector.refereshData(null);
+        assertEquals(1, collector.getDataList().size());
+        InputStreamSource source = (InputStreamSource) collector.getDataList().get(0);
+        assertEquals("test", IOUtils.toString(source.getInputStream(), "utf-8"));
+        assertEquals(new Integer(0), ttsNode.getCacheHitCount());
+        assertEquals(new Long(1), ttsNode.getOperationsCount());
+    }
+    
     @Test
     public void getViewableObjectsTest() throws Exception {
         FileUtils.forceMkdir(cacheDir);
@@ -188,6 +308,28 @@ public class ExternalTextToSpeechEngineNodeTest extends OnesecRavenTestCase {
         
     }
     
+    /**
+     * Every entry takes 1.2MB (text and "wav" files)
+     */
+    private String[] synthesizeLargeTexts(NodeAttribute textAttr, char firstChar, int count) throws Exception {
+        String[] texts = new String[count];
+        for (int i=0; i<texts.length; ++i) {
+            char[] text = new char[600*1024];
+            Arrays.fill(text, (char)(firstChar+i));
+            texts[i] = new String(text);
+            textAttr.setValue(texts[i]);
+            collector.getDataList().clear();
+            collector.refereshData(null);
+        }
+        return texts;
+    }
+
+    private File createSlowCopyScript() throws IOException {
+        File script = new File("target/tts_slow_copy.sh");
+        FileUtils.writeStringToFile(script, "sleep 1\ncp $1 $2\n");
+        return script;
+    }
+
 //    @Test
     public void execTest() throws Exception {
         Process proc = Runtime.getRuntime().exec("ls -l");
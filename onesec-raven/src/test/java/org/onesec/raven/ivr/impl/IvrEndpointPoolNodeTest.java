@@ -20,6 +20,8 @@ package org.onesec.raven.ivr.impl;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import mockit.integration.junit4.JMockit;
 import static org.easymock.EasyMock.*;
@@ -28,6 +30,7 @@ import org.easymock.IArgumentMatcher;
 import org.easymock.IMocksControl;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.onesec.raven.OnesecRavenModule;
@@ -274,11 +277,13 @@ public class IvrEndpointPoolNodeTest extends OnesecRavenTestCase
 
         pool.requestEndpoint(req);
         TimeUnit.MILLISECONDS.sleep(500);
-        endpoint.start();
+        //the requests are not blocked by the waiting one, so the endpoint is started when all of them
+        //are queued
         pool.requestEndpoint(req1);
         pool.requestEndpoint(req2);
         pool.requestEndpoint(req3);
         pool.requestEndpoint(req4);
+        endpoint.start();
         TimeUnit.SECONDS.sleep(5);
 
         control.verify();
@@ -338,6 +343,101 @@ public class IvrEndpointPoolNodeTest extends OnesecRavenTestCase
         auxiliaryPoolTest();
     }
         
+    @Test(timeout=25000)
+    public void waitingRequestNotBlocksQueueTest() throws Exception {
+        EndpointRequest req = createMock("req", EndpointRequest.class);
+        EndpointRequest req1 = createMock("req1", EndpointRequest.class);
+        EndpointRequest req2 = createMock("req2", EndpointRequest.class);
+        expect(req.getOwner()).andReturn(requestOwner).anyTimes();
+        expect(req1.getOwner()).andReturn(requestOwner).anyTimes();
+        expect(req2.getOwner()).andReturn(requestOwner2).anyTimes();
+        expect(req.getPriority()).andReturn(1).anyTimes();
+        expect(req1.getPriority()).andReturn(1).anyTimes();
+        expect(req2.getPriority()).andReturn(10).anyTimes();
+        expect(req1.getWaitTimeout()).andReturn(5000l).anyTimes();
+        expect(req2.getWaitTimeout()).andReturn(500l).anyTimes();
+        final long[] req2ProcessTime = new long[]{0};
+        req.processRequest(endpoint);
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                TimeUnit.SECONDS.sleep(2);
+                pool.releaseEndpoint(endpoint);
+                return null;
+            }
+        });
+        req1.processRequest(processRequest(pool));
+        req2.processRequest(null);
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                req2ProcessTime[0] = System.currentTimeMillis();
+                return null;
+            }
+        });
+        replay(req, req1, req2);
+
+        long ts = System.currentTimeMillis();
+        pool.requestEndpoint(req);
+        TimeUnit.MILLISECONDS.sleep(100);
+        //req1 waits for the endpoint up to 5 seconds but must not delay the timeout of the req2
+        pool.requestEndpoint(req1);
+        pool.requestEndpoint(req2);
+        TimeUnit.MILLISECONDS.sleep(2500);
+
+        verify(req, req1, req2);
+        assertTrue(req2ProcessTime[0]-ts < 1000);
+    }
+
+    @Test @Ignore
+    public void endpointRequestsBenchmark() throws Exception {
+        final int endpointsCount = 1000;
+        final int requestsCount = 200000;
+        pool.stop();
+        pool.setLogLevel(LogLevel.WARN);
+        pool.setMaxRequestQueueSize(endpointsCount*2);
+        pool.setMaxRequestsPerSecond(null);
+        for (int i=1; i<endpointsCount; ++i)
+            createEndpoint(""+(90000+i)).setLogLevel(LogLevel.WARN);
+        assertTrue(pool.start());
+        //the number of the requests in the queue and in the executor is limited by the number of endpoints
+        final Semaphore inFlight = new Semaphore(endpointsCount);
+        final CountDownLatch processed = new CountDownLatch(requestsCount);
+        final int[] errors = new int[]{0};
+        EndpointRequest req = new EndpointRequest() {
+            public void processRequest(IvrEndpoint endpoint) {
+                if (endpoint==null)
+                    ++errors[0];
+                else
+                    pool.releaseEndpoint(endpoint);
+                inFlight.release();
+                processed.countDown();
+            }
+            public long getWaitTimeout() {
+                return 60000;
+            }
+            public Node getOwner() {
+                return requestOwner;
+            }
+            public String getStatusMessage() {
+                return "benchmark";
+            }
+            public int getPriority() {
+                return 1;
+            }
+        };
+        long ts = System.nanoTime();
+        for (int i=0; i<requestsCount; ++i) {
+            inFlight.acquire();
+            pool.requestEndpoint(req);
+        }
+        assertTrue(processed.await(120, TimeUnit.SECONDS));
+        long time = System.nanoTime()-ts;
+        System.out.println(String.format(
+                "Endpoints: %d; requests: %d; time: %d ms; requests per second: %d; not served: %d",
+                endpointsCount, requestsCount, TimeUnit.NANOSECONDS.toMillis(time),
+                requestsCount*TimeUnit.SECONDS.toNanos(1)/time, errors[0]));
+        assertEquals(0, errors[0]);
+    }
+
     @Test
     public void addressRangesTest() throws Exception {
         pool.stop();
@@ -208,6 +208,50 @@ public class IvrUtilsTest extends Assert {
         public List<String> getSilentBuffersKeys() {
             throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
         }
+
+        public void setMaxCacheSize(long size) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getMaxCacheSize() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public void setStoreDirectory(File dir) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public File getStoreDirectory() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getCacheHits() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getStoreHits() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getCacheMisses() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getCacheEvictions() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getCacheSize() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public long getStoreSize() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public int getStoreEntitiesCount() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
         
     }
     
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.core.provider.ProviderController;
+import org.onesec.core.provider.ProviderControllerState;
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class JtapiEventDispatcherTest extends Assert {
+    private final static int LANES = 16;
+    private final static int TERMINALS = 50;
+    private final static int CALLS_PER_SECOND = 500;
+    private final static int CALLS = 1000;
+    //call created, connection established, logical channel opened, RTP started, call disconnected
+    private final static int EVENTS_PER_CALL = 5;
+    private final static long SLOW_SETUP_MS = 200;
+
+    @Test
+    public void orderTest() throws Exception {
+        JtapiEventDispatcher dispatcher = new JtapiEventDispatcher("test", 4);
+        try {
+            final int[] last = new int[10];
+            final AtomicInteger errors = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(10000);
+            for (int i=0; i<10000; ++i) {
+                final int key = i%10;
+                final int seq = i;
+                dispatcher.dispatch(key, new Runnable() {
+                    @Override public void run() {
+                        if (last[key]>seq)
+                            errors.incrementAndGet();
+                        last[key] = seq;
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            assertEquals(10000, dispatcher.getEventsCount());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void errorTest() throws Exception {
+        JtapiEventDispatcher dispatcher = new JtapiEventDispatcher("test", 1);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            dispatcher.dispatch(1, new Runnable() {
+                @Override public void run() {
+                    throw new RuntimeException("test");
+                }
+            });
+            dispatcher.dispatch(1, new Runnable() {
+                @Override public void run() {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            assertEquals(1, dispatcher.getErrorsCount());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void providerShutdownTest() throws Exception {
+        JtapiEventDispatcher dispatcher = JtapiEventDispatcher.getDispatcher("test provider");
+        assertSame(dispatcher, JtapiEventDispatcher.getDispatcher("test provider"));
+        final CountDownLatch latch = new CountDownLatch(3);
+        for (int i=0; i<3; ++i)
+            dispatcher.dispatch(i, new Runnable() {
+                @Override public void run() {
+                    latch.countDown();
+                }
+            });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.getActiveLanesCount());
+        
+        ProviderController provider = createMock(ProviderController.class);
+        ProviderControllerState state = createMock(ProviderControllerState.class);
+        expect(state.getId()).andReturn(ProviderControllerState.STOPED).anyTimes();
+        expect(state.getObservableObject()).andReturn(provider).anyTimes();
+        expect(provider.getName()).andReturn("test provider").anyTimes();
+        expect(provider.getFromNumber()).andReturn(1000).anyTimes();
+        expect(provider.getToNumber()).andReturn(1999).anyTimes();
+        replay(provider, state);
+        
+        new TerminalStateMonitoringServiceImpl().stateChanged(state);
+        assertTrue(dispatcher.isStopped());
+        Thread.sleep(100);
+        assertEquals(0, dispatcher.getActiveLanesCount());
+        JtapiEventDispatcher newDispatcher = JtapiEventDispatcher.getDispatcher("test provider");
+        assertNotSame(dispatcher, newDispatcher);
+        JtapiEventDispatcher.removeDispatcher("test provider");
+        assertTrue(newDispatcher.isStopped());
+    }
+
+    /**
+     * The fake provider delivers {@link #CALLS_PER_SECOND} calls per second from the one observer thread
+     * (as the JTAPI provider does). The call setup of the terminal 0 is slow. The observer thread must not
+     * be stalled by it, the terminals of the other lanes must not wait for it and the order of the events of
+     * every terminal must be kept. The benchmark depends on the wall clock, so it is not run with the
+     * other tests.
+     */
+    @Ignore @Test
+    public void loadTest() throws Exception {
+        final JtapiEventDispatcher dispatcher = new JtapiEventDispatcher("load test", LANES);
+        final FakeTerminal[] terminals = new FakeTerminal[TERMINALS];
+        final CountDownLatch processed = new CountDownLatch(CALLS*EVENTS_PER_CALL);
+        for (int i=0; i<TERMINALS; ++i)
+            terminals[i] = new FakeTerminal(i, i==0? SLOW_SETUP_MS : 1, processed);
+        try {
+            final long interval = TimeUnit.SECONDS.toNanos(1)/CALLS_PER_SECOND;
+            long maxDispatchTime = 0;
+            final long start = System.nanoTime();
+            for (int call=0; call<CALLS; ++call) {
+                final long due = start + call*interval;
+                while (System.nanoTime()<due)
+                    Thread.sleep(0, 100000);
+                final FakeTerminal term = terminals[call%TERMINALS];
+                for (int ev=0; ev<EVENTS_PER_CALL; ++ev) {
+                    final long ts = System.nanoTime();
+                    //the observer method of the terminal: dispatches the event and returns
+                    dispatcher.dispatch(term.id, term.createEvent(call*EVENTS_PER_CALL+ev, ev==0));
+                    maxDispatchTime = Math.max(maxDispatchTime, System.nanoTime()-ts);
+                }
+            }
+            final long injectTime = System.nanoTime()-start;
+            assertTrue(processed.await(30, TimeUnit.SECONDS));
+            long maxOtherLanesLatency = 0;
+            for (FakeTerminal term: terminals) {
+                assertEquals("terminal "+term.id, 0, term.orderErrors.get());
+                if (term.id%LANES!=0)
+                    maxOtherLanesLatency = Math.max(maxOtherLanesLatency, term.maxLatency.get());
+            }
+            System.out.println(String.format(
+                    "Injected %d calls (%d events) in %d ms; max dispatch time: %d us; "
+                    + "queue depth p50/p99: %d/%d; latency p50/p99: %d/%d ms; "
+                    + "max latency of the lanes without the slow terminal: %d ms",
+                    CALLS, CALLS*EVENTS_PER_CALL, TimeUnit.NANOSECONDS.toMillis(injectTime),
+                    TimeUnit.NANOSECONDS.toMicros(maxDispatchTime),
+                    dispatcher.getQueueDepthPercentile(50), dispatcher.getQueueDepthPercentile(99),
+                    dispatcher.getLatencyPercentile(50, TimeUnit.MILLISECONDS),
+                    dispatcher.getLatencyPercentile(99, TimeUnit.MILLISECONDS),
+                    TimeUnit.NANOSECONDS.toMillis(maxOtherLanesLatency)));
+            //inline processing would take at least CALLS/TERMINALS*SLOW_SETUP_MS = 4 s for the slow terminal
+            assertTrue(injectTime < TimeUnit.MILLISECONDS.toNanos(CALLS*1000/CALLS_PER_SECOND + 1000));
+            assertTrue(maxOtherLanesLatency < TimeUnit.MILLISECONDS.toNanos(SLOW_SETUP_MS));
+            assertEquals(CALLS*EVENTS_PER_CALL, dispatcher.getEventsCount());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    private static class FakeTerminal {
+        private final int id;
+        private final long setupTime;
+        private final CountDownLatch processed;
+        private final AtomicInteger orderErrors = new AtomicInteger();
+        private final AtomicLong maxLatency = new AtomicLong();
+        private volatile int lastEvent = -1;
+
+        public FakeTerminal(int id, long setupTime, CountDownLatch processed) {
+            this.id = id;
+            this.setupTime = setupTime;
+            this.processed = processed;
+        }
+
+        public Runnable createEvent(final int seq, final boolean callSetup) {
+            final long created = System.nanoTime();
+            return new Runnable() {
+                @Override public void run() {
+                    long latency = System.nanoTime()-created;
+                    if (latency>maxLatency.get())
+                        maxLatency.set(latency);
+                    if (seq<=lastEvent)
+                        orderErrors.incrementAndGet();
+                    lastEvent = seq;
+                    if (callSetup)
+                        try {
+                            //conversation creation, RTP streams initialization
+                            Thread.sleep(setupTime);
+                        } catch (InterruptedException e) { }
+                    processed.countDown();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class MediaClockTest extends Assert {
+
+    @Test
+    public void tickTest() throws Exception {
+        MediaClock clock = new MediaClock("Test clock", 20, TimeUnit.MILLISECONDS, 2);
+        try {
+            TestListener listener = new TestListener(Integer.MAX_VALUE);
+            clock.register(listener);
+            assertEquals(1, clock.getListenersCount());
+            assertEquals(1, clock.getThreadsCount());
+            Thread.sleep(500);
+            int firstTicks = listener.ticks.get();
+            Thread.sleep(500);
+            int ticks = listener.ticks.get();
+            //the exact count depends on the load of the machine, so only the progress of the clock is checked
+            assertTrue("Ticks: "+firstTicks, firstTicks>0);
+            assertTrue("Ticks: "+firstTicks+" -> "+ticks, ticks>firstTicks);
+            assertTrue("Ticks: "+ticks, ticks>=10);
+            assertTrue(clock.getTicksCount()>=ticks);
+            clock.unregister(listener);
+            assertEquals(0, clock.getListenersCount());
+            Thread.sleep(100);
+            ticks = listener.ticks.get();
+            Thread.sleep(100);
+            assertEquals(ticks, listener.ticks.get());
+        } finally {
+            clock.stop();
+        }
+    }
+
+    @Test
+    public void lanesTest() throws Exception {
+        MediaClock clock = new MediaClock("Test clock", 20, TimeUnit.MILLISECONDS, 2);
+        try {
+            clock.register(new TestListener(Integer.MAX_VALUE));
+            clock.register(new TestListener(Integer.MAX_VALUE));
+            clock.register(new TestListener(Integer.MAX_VALUE));
+            assertEquals(3, clock.getListenersCount());
+            assertEquals(2, clock.getThreadsCount());
+        } finally {
+            clock.stop();
+        }
+    }
+
+    @Test
+    public void autoUnregisterTest() throws Exception {
+        MediaClock clock = new MediaClock("Test clock", 20, TimeUnit.MILLISECONDS, 1);
+        try {
+            TestListener listener = new TestListener(5);
+            clock.register(listener);
+            clock.register(new ErrorListener());
+            Thread.sleep(300);
+            assertEquals(5, listener.ticks.get());
+            assertEquals(0, clock.getListenersCount());
+        } finally {
+            clock.stop();
+        }
+    }
+
+    @Ignore @Test
+    public void jitterBenchmark() throws Exception {
+        for (int count: new int[]{10, 100, 1000})
+            runJitterBenchmark(count);
+    }
+
+    private void runJitterBenchmark(int listenersCount) throws Exception {
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        MediaClock clock = new MediaClock("Benchmark clock", MediaClock.TICK_INTERVAL, TimeUnit.MILLISECONDS,
+                Runtime.getRuntime().availableProcessors());
+        try {
+            for (int i=0; i<listenersCount; ++i)
+                clock.register(new WorkListener());
+            Thread.sleep(1000);
+            clock.resetStat();
+            Thread.sleep(10000);
+            System.out.println(String.format(
+                    "LISTENERS: %d; THREADS: %d (+%d); TICKS: %d; OVERRUNS: %d; SKIPPED: %d; "
+                    + "AVG LATENESS: %d us; MAX LATENESS: %d us; MAX TICK DURATION: %d us",
+                    listenersCount, clock.getThreadsCount(),
+                    ManagementFactory.getThreadMXBean().getThreadCount()-threadsBefore,
+                    clock.getTicksCount(), clock.getOverrunsCount(), clock.getSkippedTicksCount(),
+                    clock.getAvgLateness(TimeUnit.MICROSECONDS), clock.getMaxLateness(TimeUnit.MICROSECONDS),
+                    clock.getMaxTickDuration(TimeUnit.MICROSECONDS)));
+        } finally {
+            clock.stop();
+        }
+    }
+
+    private static class TestListener implements MediaClock.Listener {
+        private final AtomicInteger ticks = new AtomicInteger();
+        private final int maxTicks;
+
+        public TestListener(int maxTicks) {
+            this.maxTicks = maxTicks;
+        }
+
+        public boolean tick() {
+            return ticks.incrementAndGet() < maxTicks;
+        }
+    }
+
+    private static class ErrorListener implements MediaClock.Listener {
+        public boolean tick() {
+            throw new IllegalStateException("Test error");
+        }
+    }
+
+    private static class WorkListener implements MediaClock.Listener {
+        private final int[] data = new int[AbstractRealTimeMixer.BUFFER_SIZE];
+        private int counter;
+
+        public boolean tick() {
+            //emulating the mixing of one buffer
+            for (int i=0; i<data.length; ++i)
+                data[i] = (data[i] + i * ++counter) / 2;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.ivr.impl.RecordingCatalog.Entry;
+import org.onesec.raven.ivr.impl.RecordingCatalog.Index;
+import org.raven.log.LogLevel;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class RecordingCatalogTest extends Assert {
+    private final static LoggerHelper logger = new LoggerHelper(LogLevel.WARN, "Test. ", null, 
+            LoggerFactory.getLogger(RecordingCatalogTest.class));
+    private final static long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private final static int BENCHMARK_ENTRIES = 10000000;
+    private final static int BENCHMARK_FILES = 200000;
+    private final static int NUMBERS = 100000;
+
+    private File dir;
+    private RecordingCatalog catalog;
+
+    @Before
+    public void prepare() throws Exception {
+        dir = new File("target/recording-catalog-test");
+        if (dir.exists())
+            FileUtils.forceDelete(dir);
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void finish() {
+        if (catalog!=null)
+            catalog.close();
+    }
+
+    @Test
+    public void findTest() throws Exception {
+        catalog = new RecordingCatalog(new File(dir, "catalog"), logger);
+        catalog.open();
+        for (int i=0; i<10; ++i)
+            catalog.add(createEntry(i, "file"+i));
+        catalog.add(new Entry("conv10", null, null, "file10", 10*MINUTE, 11*MINUTE));
+        assertEquals(11, catalog.size());
+        List<Entry> entries = catalog.find(Index.CALLING_NUMBER, "100", 10);
+        //the newest first
+        assertEquals(3, entries.size());
+        assertEquals("file8", entries.get(0).getFile());
+        assertEquals("file0", entries.get(2).getFile());
+        assertEquals(2, catalog.find(Index.CALLING_NUMBER, "100", 2).size());
+        entries = catalog.find(Index.CALLED_NUMBER, "2001", 10);
+        assertEquals(5, entries.size());
+        entries = catalog.find(Index.CONVERSATION_ID, "conv5", 10);
+        assertEquals(1, entries.size());
+        Entry entry = entries.get(0);
+        assertEquals("conv5", entry.getConversationId());
+        assertEquals("101", entry.getCallingNumber());
+        assertEquals("2001", entry.getCalledNumber());
+        assertEquals(5*MINUTE, entry.getStartTime());
+        assertEquals(6*MINUTE, entry.getCloseTime());
+        assertTrue(catalog.find(Index.CALLING_NUMBER, "999", 10).isEmpty());
+        assertEquals("file10", catalog.find(Index.CONVERSATION_ID, "conv10", 10).get(0).getFile());
+    }
+
+    @Test
+    public void findByTimeTest() throws Exception {
+        catalog = new RecordingCatalog(new File(dir, "catalog"), logger);
+        catalog.open();
+        //the long recording is closed after the short ones started later
+        catalog.add(new Entry("c1", "1", "2", "f1", 1*MINUTE, 2*MINUTE));
+        catalog.add(new Entry("c2", "1", "2", "f2", 3*MINUTE, 4*MINUTE));
+        catalog.add(new Entry("c3", "1", "2", "f3", 2*MINUTE, 30*MINUTE));
+        catalog.add(new Entry("c4", "1", "2", "f4", 31*MINUTE, 32*MINUTE));
+        List<Entry> entries = catalog.findByTime(2*MINUTE, 5*MINUTE, 10);
+        assertEquals(2, entries.size());
+        assertEquals("f2", entries.get(0).getFile());
+        assertEquals("f3", entries.get(1).getFile());
+        assertEquals(4, catalog.findByTime(0, 40*MINUTE, 10).size());
+        assertEquals(1, catalog.findByTime(0, 40*MINUTE, 1).size());
+    }
+
+    @Test
+    public void reopenTest() throws Exception {
+        File catalogDir = new File(dir, "catalog");
+        catalog = new RecordingCatalog(catalogDir, 1024, logger);
+        catalog.open();
+        for (int i=0; i<100; ++i)
+            catalog.add(createEntry(i, "file"+i));
+        final int segments = catalog.getSegmentsCount();
+        assertTrue(segments>1);
+        catalog.close();
+        //the process was terminated in the middle of the entry write
+        File[] files = catalogDir.listFiles();
+        File last = files[0];
+        for (File file: files)
+            if (file.getName().compareTo(last.getName())>0)
+                last = file;
+        try (RandomAccessFile out = new RandomAccessFile(last, "rw")) {
+            out.seek(out.length());
+            out.writeInt(100);
+            out.writeInt(0);
+            out.write(new byte[10]);
+        }
+        catalog = new RecordingCatalog(catalogDir, 1024, logger);
+        catalog.open();
+        assertEquals(100, catalog.size());
+        assertEquals(segments, catalog.getSegmentsCount());
+        assertEquals("file99", catalog.find(Index.CONVERSATION_ID, "conv99", 1).get(0).getFile());
+        catalog.add(createEntry(100, "file100"));
+        catalog.close();
+        catalog = new RecordingCatalog(catalogDir, 1024, logger);
+        catalog.open();
+        assertEquals(101, catalog.size());
+        assertEquals(26, catalog.find(Index.CALLING_NUMBER, "100", 100).size());
+        assertEquals("file100", catalog.find(Index.CONVERSATION_ID, "conv100", 1).get(0).getFile());
+    }
+
+    @Test
+    public void expireTest() throws Exception {
+        File catalogDir = new File(dir, "catalog");
+        catalog = new RecordingCatalog(catalogDir, 1024, logger);
+        catalog.open();
+        List<File> files = new ArrayList<>();
+        for (int i=0; i<100; ++i) {
+            File file = new File(dir, String.format("2016.01/%02d/rec%d.wav", i/10+1, i));
+            file.getParentFile().mkdirs();
+            assertTrue(file.createNewFile());
+            files.add(file);
+            catalog.add(createEntry(i, file.getAbsolutePath()));
+        }
+        final int segments = catalog.getSegmentsCount();
+        //the entries closed before the 56th minute
+        assertEquals(55, catalog.expire(56*MINUTE));
+        assertEquals(45, catalog.size());
+        assertTrue(catalog.getSegmentsCount()<segments);
+        for (int i=0; i<100; ++i)
+            assertEquals(files.get(i).getPath(), i>=55, files.get(i).exists());
+        //the empty day directories were deleted
+        assertFalse(new File(dir, "2016.01/05").exists());
+        assertTrue(new File(dir, "2016.01/06").exists());
+        assertTrue(catalog.find(Index.CONVERSATION_ID, "conv10", 1).isEmpty());
+        assertEquals(11, catalog.find(Index.CALLING_NUMBER, "101", 100).size());
+        assertEquals(0, catalog.findByTime(0, 54*MINUTE, 100).size());
+        assertEquals(1, catalog.findByTime(0, 56*MINUTE, 100).size());
+        //the expired entries of the partially expired segment are expired again after the reopen
+        catalog.close();
+        catalog = new RecordingCatalog(catalogDir, 1024, logger);
+        catalog.open();
+        assertTrue(catalog.size()>=45);
+        catalog.expire(56*MINUTE);
+        assertEquals(45, catalog.size());
+        assertEquals(45, catalog.expire(Long.MAX_VALUE));
+        assertEquals(0, catalog.size());
+        assertEquals(0, catalog.getSegmentsCount());
+        assertFalse(new File(dir, "2016.01").exists());
+        catalog.add(createEntry(200, "file200"));
+        assertEquals(1, catalog.size());
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        catalog = new RecordingCatalog(new File(dir, "catalog"), 64*1024, logger);
+        catalog.open();
+        //the index is compacted when the expired entries take more than the half of it
+        for (int round=0; round<5; ++round) {
+            for (int i=round*3000; i<(round+1)*3000; ++i)
+                catalog.add(createEntry(i, "file"+i));
+            catalog.expire(((round+1)*3000-1000)*MINUTE);
+            assertEquals(1001, catalog.size());
+        }
+        assertEquals(1, catalog.find(Index.CONVERSATION_ID, "conv14999", 10).size());
+        assertEquals(1, catalog.find(Index.CONVERSATION_ID, "conv14000", 10).size());
+        assertEquals(0, catalog.find(Index.CONVERSATION_ID, "conv13998", 10).size());
+        assertEquals(250, catalog.find(Index.CALLING_NUMBER, "100", 1000).size());
+    }
+
+    /**
+     * Catalog of {@link #BENCHMARK_ENTRIES} entries (the heap must be at least 2 GB) against the directory 
+     * scan of the {@link #BENCHMARK_FILES} recordings
+     */
+    @Test @Ignore
+    public void benchmark() throws Exception {
+        File catalogDir = new File(dir, "catalog");
+        catalog = new RecordingCatalog(catalogDir, logger);
+        catalog.open();
+        long ts = System.nanoTime();
+        for (int i=0; i<BENCHMARK_ENTRIES; ++i)
+            catalog.add(new Entry("conv"+i, ""+(i%NUMBERS), ""+(i%1000), 
+                    String.format("2016.01/%02d/%d_%d.wav", i/(BENCHMARK_ENTRIES/30)+1, i%NUMBERS, i),
+                    i*MINUTE/100, i*MINUTE/100+MINUTE));
+        System.out.println(String.format("Added %d entries in %d ms, segments: %d", 
+                BENCHMARK_ENTRIES, ms(ts), catalog.getSegmentsCount()));
+        catalog.close();
+        catalog = new RecordingCatalog(catalogDir, logger);
+        ts = System.nanoTime();
+        catalog.open();
+        System.out.println(String.format("Opened in %d ms", ms(ts)));
+        ts = System.nanoTime();
+        int found = 0;
+        for (int i=0; i<1000; ++i)
+            found += catalog.find(Index.CALLING_NUMBER, ""+(i*97%NUMBERS), 1000).size();
+        System.out.println(String.format("Number lookup: %d us (%d entries per number)", 
+                us(ts)/1000, found/1000));
+        ts = System.nanoTime();
+        for (int i=0; i<1000; ++i)
+            assertEquals(1, catalog.find(Index.CONVERSATION_ID, "conv"+(i*9973), 1).size());
+        System.out.println(String.format("Conversation id lookup: %d us", us(ts)/1000));
+        ts = System.nanoTime();
+        for (int i=0; i<100; ++i)
+            catalog.findByTime(i*10000*MINUTE/100, (i*10000+100)*MINUTE/100, 1000);
+        System.out.println(String.format("Time range lookup (100 entries): %d us", us(ts)/100));
+        ts = System.nanoTime();
+        //the sweep of the one day (1/30 of the catalog). The files do not exist
+        int expired = catalog.expire((BENCHMARK_ENTRIES/30)*MINUTE/100+MINUTE);
+        System.out.println(String.format("Expired %d entries in %d ms", expired, ms(ts)));
+        catalog.close();
+        catalog = null;
+        FileUtils.forceDelete(catalogDir);
+
+        for (int i=0; i<BENCHMARK_FILES; ++i) {
+            File file = new File(dir, String.format("2016.01/%02d/%d_%d.wav", i/(BENCHMARK_FILES/30)+1, i%NUMBERS, i));
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+        }
+        ts = System.nanoTime();
+        found = scan(dir, "_"+(97%NUMBERS)+"_");
+        long scanTime = us(ts);
+        System.out.println(String.format(
+                "Directory scan of %d files (found %d): %d ms, estimated for %d files: %d ms", 
+                BENCHMARK_FILES, found, scanTime/1000, BENCHMARK_ENTRIES,
+                scanTime*(BENCHMARK_ENTRIES/BENCHMARK_FILES)/1000));
+    }
+
+    private static int scan(File dir, String key) {
+        int found = 0;
+        File[] files = dir.listFiles();
+        if (files!=null)
+            for (File file: files)
+                if (file.isDirectory())
+                    found += scan(file, key);
+                else if (("_"+file.getName()).contains(key))
+                    ++found;
+        return found;
+    }
+
+    private static long ms(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+    }
+
+    private static long us(long start) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime()-start);
+    }
+
+    private static Entry createEntry(int i, String file) {
+        return new Entry("conv"+i, ""+(100+i%4), ""+(2000+i%2), file, i*MINUTE, (i+1)*MINUTE);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class RtpPortAllocatorTest extends Assert {
+    
+    @Test
+    public void allocateTest() throws Exception {
+        RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 3000, 3004);
+        assertEquals(3, allocator.getCapacity());
+        assertEquals(3000, allocator.allocate());
+        assertEquals(3002, allocator.allocate());
+        assertEquals(3004, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+        assertEquals(3, allocator.getAllocatedCount());
+        
+        assertTrue(allocator.release(3002));
+        assertFalse(allocator.release(3002));
+        assertEquals(2, allocator.getAllocatedCount());
+        assertEquals(3002, allocator.allocate());
+        
+        assertTrue(allocator.release(3000));
+        assertTrue(allocator.release(3002));
+        assertEquals(3000, allocator.allocate());
+    }
+    
+    @Test
+    public void nextFitTest() throws Exception {
+        RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 3000, 3006);
+        assertEquals(3000, allocator.allocate());
+        assertTrue(allocator.release(3000));
+        //the just released pair is not reused at once
+        assertEquals(3002, allocator.allocate());
+        assertEquals(3004, allocator.allocate());
+        assertEquals(3006, allocator.allocate());
+        assertEquals(3000, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+    }
+    
+    @Test
+    public void oddStartingPortTest() throws Exception {
+        RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 3001, 3005);
+        assertEquals(2, allocator.getCapacity());
+        assertEquals(3002, allocator.allocate());
+        assertFalse(allocator.release(3003));
+        assertFalse(allocator.release(3006));
+    }
+    
+    @Test
+    public void busyPortTest() throws Exception {
+        RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 3000, 3006);
+        int port = allocator.allocate();
+        allocator.markBusy(port, port+1);
+        assertEquals(0, allocator.getAllocatedCount());
+        assertEquals(1, allocator.getBusyPairsCount());
+        assertEquals(Arrays.asList(3001), allocator.getBusyPorts());
+        assertEquals(3002, allocator.allocate());
+        assertTrue(allocator.release(3002));
+        assertEquals(3004, allocator.allocate());
+        assertEquals(3006, allocator.allocate());
+        //the busy pair is skipped
+        assertEquals(3002, allocator.allocate());
+        assertFalse(allocator.release(3000));
+    }
+    
+    @Test
+    public void busyPortExpirationTest() throws Exception {
+        RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 3000, 3002, 100);
+        assertEquals(3000, allocator.allocate());
+        allocator.markBusy(3000, 3000);
+        assertEquals(3002, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+        Thread.sleep(150);
+        assertEquals(3000, allocator.allocate());
+        assertEquals(0, allocator.getBusyPairsCount());
+        assertEquals(2, allocator.getAllocatedCount());
+    }
+    
+    @Test
+    public void allocateExactPortTest() throws Exception {
+        RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 3000, 3006);
+        assertTrue(allocator.allocate(3002));
+        assertFalse(allocator.allocate(3002));
+        assertFalse(allocator.allocate(3008));
+        assertEquals(3000, allocator.allocate());
+        assertEquals(3004, allocator.allocate());
+    }
+    
+    @Ignore @Test
+    public void allocationRateBenchmark() throws Exception {
+        final RtpPortAllocator allocator = new RtpPortAllocator(InetAddress.getByName("127.0.0.1"), 16384, 32768);
+        //keeping the half of the range allocated
+        for (int i=0; i<allocator.getCapacity()/2; ++i)
+            allocator.allocate();
+        for (final int threadsCount: new int[]{1, 4, 16}) {
+            final int operations = 1000000;
+            final CountDownLatch latch = new CountDownLatch(threadsCount);
+            long start = System.nanoTime();
+            for (int t=0; t<threadsCount; ++t)
+                new Thread() {
+                    @Override public void run() {
+                        for (int i=0; i<operations; ++i)
+                            allocator.release(allocator.allocate());
+                        latch.countDown();
+                    }
+                }.start();
+            latch.await();
+            long time = System.nanoTime()-start;
+            System.out.println(String.format("THREADS: %d; ALLOCATIONS: %.0f per ms", 
+                    threadsCount, (double)operations*threadsCount/(time/1000000.)));
+        }
+    }
+}
@@ -157,6 +157,18 @@ public class RtpStressTest extends RtpManagerTestCase {
         createStreams();
     }
     
+    @Test
+    public void nativeRtpEngineTest() throws Exception {
+        manager.stop();
+        nettyRtpConfigurator.stop();
+        nettyRtpConfigurator.setUseNativeRtpEngine(true);
+        nettyRtpConfigurator.setExecutor(executor);
+        assertTrue(nettyRtpConfigurator.start());
+        switchToNettyRtpManagerConfigurator();
+        assertTrue(manager.start());
+        createStreams();
+    }
+    
     private void createStreams() throws Exception {
         System.out.println("Creating "+STREAMS_COUNT+" streams...");
         long threadsCount = threads.getThreadCount();
@@ -191,7 +203,10 @@ public class RtpStressTest extends RtpManagerTestCase {
         long rtpThreads = threads.getThreadCount() - threadsCount;
         long cpuTime = getCpuUsage();
         Thread.sleep(WAIT_INTERVAL);
-        System.out.println("CPU usage time: "+(getCpuUsage()-cpuTime));
+        cpuTime = getCpuUsage()-cpuTime;
+        System.out.println("CPU usage time: "+cpuTime);
+        double usedCores = cpuTime / (WAIT_INTERVAL * 1000000.);
+        System.out.println(String.format("Streams per core: %.0f", STREAMS_COUNT / usedCores));
         System.out.println("\nReceived packets: "+receivedPackets.get());
         long expected = WAIT_INTERVAL / (PACKET_SIZE/8) * STREAMS_COUNT;
         System.out.println("Expected packets: "+expected);
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.codec.G711;
+import org.onesec.raven.ivr.impl.WavRecordingWriter.Encoding;
+import org.onesec.raven.ivr.impl.WavRecordingWriter.Recording;
+import org.raven.log.LogLevel;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class WavRecordingWriterTest extends Assert {
+    private final static LoggerHelper logger = new LoggerHelper(LogLevel.WARN, "Test. ", null, 
+            LoggerFactory.getLogger(WavRecordingWriterTest.class));
+    //20 ms of the 8000 Hz audio
+    private final static int FRAME_SAMPLES = 160;
+    private final static int CRASH_FRAMES = 100;
+
+    private File dir;
+    private WavRecordingWriter writer;
+
+    @Before
+    public void prepare() throws Exception {
+        dir = new File("target/wav-writer-test");
+        if (dir.exists())
+            for (File file: dir.listFiles())
+                file.delete();
+        else
+            assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void finish() {
+        if (writer!=null)
+            writer.stop();
+    }
+
+    @Test
+    public void stereoTest() throws Exception {
+        writer = new WavRecordingWriter("test", 1, 100, 1024, logger);
+        File file = new File(dir, "stereo.wav");
+        Recording rec = writer.createRecording(file, Encoding.LINEAR, 8000, 2, true);
+        for (int i=0; i<10; ++i) {
+            rec.write(0, linearFrame(1000+i), 0, FRAME_SAMPLES*2);
+            rec.write(1, linearFrame(-1000-i), 0, FRAME_SAMPLES*2);
+        }
+        rec.close();
+        assertTrue(rec.awaitClose(1, TimeUnit.SECONDS));
+        assertEquals(10*FRAME_SAMPLES*4, rec.getDataSize());
+        ByteBuffer buf = readFile(file);
+        checkHeader(buf, 1, 2, 8000, 16, 10*FRAME_SAMPLES*4);
+        for (int i=0; i<10*FRAME_SAMPLES; ++i) {
+            assertEquals(1000+i/FRAME_SAMPLES, buf.getShort(44+i*4));
+            assertEquals(-1000-i/FRAME_SAMPLES, buf.getShort(44+i*4+2));
+        }
+        checkAudioSystem(file, 2, 10*FRAME_SAMPLES);
+    }
+
+    @Test
+    public void stereoG711Test() throws Exception {
+        writer = new WavRecordingWriter("test", 1, 100, 1024, logger);
+        File file = new File(dir, "stereo-alaw.wav");
+        Recording rec = writer.createRecording(file, Encoding.ALAW, 8000, 2, true);
+        byte[] frame1 = g711Frame(true, 3000);
+        byte[] frame2 = g711Frame(true, -200);
+        rec.write(0, frame1, 0, FRAME_SAMPLES);
+        rec.write(1, frame2, 0, FRAME_SAMPLES);
+        rec.close();
+        assertTrue(rec.awaitClose(1, TimeUnit.SECONDS));
+        ByteBuffer buf = readFile(file);
+        checkHeader(buf, 6, 2, 8000, 8, FRAME_SAMPLES*2);
+        for (int i=0; i<FRAME_SAMPLES; ++i) {
+            assertEquals(frame1[i], buf.get(44+i*2));
+            assertEquals(frame2[i], buf.get(44+i*2+1));
+        }
+    }
+
+    @Test
+    public void monoMixTest() throws Exception {
+        writer = new WavRecordingWriter("test", 1, 100, 1024, logger);
+        File file = new File(dir, "mono.wav");
+        Recording rec = writer.createRecording(file, Encoding.ULAW, 8000, 2, false);
+        rec.write(0, g711Frame(false, 30000), 0, FRAME_SAMPLES);
+        rec.write(1, g711Frame(false, 30000), 0, FRAME_SAMPLES);
+        rec.write(0, g711Frame(false, 1000), 0, FRAME_SAMPLES);
+        rec.write(1, g711Frame(false, -1000), 0, FRAME_SAMPLES);
+        rec.close();
+        assertTrue(rec.awaitClose(1, TimeUnit.SECONDS));
+        ByteBuffer buf = readFile(file);
+        checkHeader(buf, 1, 1, 8000, 16, FRAME_SAMPLES*4);
+        //the sum is clipped
+        assertEquals(Short.MAX_VALUE, buf.getShort(44));
+        final short sample = G711.ulaw2linear(G711.linear2ulaw(1000));
+        assertEquals(sample+G711.ulaw2linear(G711.linear2ulaw(-1000)), buf.getShort(44+FRAME_SAMPLES*2));
+    }
+
+    @Test
+    public void legLagTest() throws Exception {
+        writer = new WavRecordingWriter("test", 1, 100, 1024, logger);
+        File file = new File(dir, "lag.wav");
+        Recording rec = writer.createRecording(file, Encoding.LINEAR, 8000, 2, true);
+        //the second leg is silent (no packets) for 2 seconds
+        for (int i=0; i<100; ++i)
+            rec.write(0, linearFrame(100), 0, FRAME_SAMPLES*2);
+        rec.write(1, linearFrame(200), 0, FRAME_SAMPLES*2);
+        rec.close();
+        assertTrue(rec.awaitClose(1, TimeUnit.SECONDS));
+        ByteBuffer buf = readFile(file);
+        //the lag of the second leg over one second was filled with the silence, the rest is aligned
+        final int lagSamples = (int) (8000*WavRecordingWriter.MAX_LEG_LAG/1000);
+        final int filled = 100*FRAME_SAMPLES - lagSamples;
+        assertEquals(100*FRAME_SAMPLES*4, buf.getInt(40));
+        assertEquals(0, buf.getShort(44+(filled-1)*4+2));
+        assertEquals(200, buf.getShort(44+filled*4+2));
+        assertEquals(0, buf.getShort(44+(filled+FRAME_SAMPLES)*4+2));
+        assertEquals(100, buf.getShort(44+(100*FRAME_SAMPLES-1)*4));
+    }
+
+    @Test
+    public void flushIntervalTest() throws Exception {
+        writer = new WavRecordingWriter("test", 1, 100, 64*1024, logger);
+        File file = new File(dir, "flush.wav");
+        Recording rec = writer.createRecording(file, Encoding.LINEAR, 8000, 1, false);
+        rec.write(0, linearFrame(1), 0, FRAME_SAMPLES*2);
+        //the partial chunk and the header are written after the flush interval
+        Thread.sleep(300);
+        ByteBuffer buf = readFile(file);
+        assertEquals(44+FRAME_SAMPLES*2, buf.limit());
+        checkHeader(buf, 1, 1, 8000, 16, FRAME_SAMPLES*2);
+        assertFalse(rec.isClosed());
+        assertEquals(1, writer.getRecordingsCount());
+        rec.close();
+        assertTrue(rec.awaitClose(1, TimeUnit.SECONDS));
+        assertEquals(0, writer.getRecordingsCount());
+    }
+
+    /**
+     * The child JVM records the file and is halted without closing it. The header must describe the data
+     * written by the last commit and the file must be readable
+     */
+    @Test
+    public void crashTest() throws Exception {
+        File file = new File(dir, "crash.wav");
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(CrashWriter.class.getName());
+        cmd.add(file.getPath());
+        Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null)
+            System.out.println("Crash writer: "+line);
+        assertEquals(1, process.waitFor());
+        ByteBuffer buf = readFile(file);
+        final int dataSize = buf.getInt(40);
+        assertTrue(dataSize>0);
+        assertEquals(0, dataSize % 2);
+        assertTrue(44+dataSize <= buf.limit());
+        checkHeader(buf, 1, 1, 8000, 16, dataSize);
+        checkAudioSystem(file, 1, dataSize/2);
+    }
+
+    @Test @Ignore
+    public void concurrentRecordingsBenchmark() throws Exception {
+        for (int count: new int[]{100, 500, 1000})
+            runBenchmark(count, 10);
+    }
+
+    private void runBenchmark(int recordingsCount, int seconds) throws Exception {
+        writer = new WavRecordingWriter("benchmark", 2, 1000, 64*1024, logger);
+        try {
+            Recording[] recs = new Recording[recordingsCount];
+            for (int i=0; i<recordingsCount; ++i)
+                recs[i] = writer.createRecording(new File(dir, "bench-"+i+".wav"), Encoding.ALAW, 8000, 2, false);
+            final byte[] frame = g711Frame(true, 1000);
+            final long start = System.nanoTime();
+            long maxWriteTime = 0;
+            for (int tick=0; tick<seconds*50; ++tick) {
+                final long due = start + TimeUnit.MILLISECONDS.toNanos(tick*20);
+                while (System.nanoTime()<due)
+                    Thread.sleep(1);
+                for (Recording rec: recs) {
+                    final long ts = System.nanoTime();
+                    rec.write(0, frame, 0, frame.length);
+                    rec.write(1, frame, 0, frame.length);
+                    maxWriteTime = Math.max(maxWriteTime, System.nanoTime()-ts);
+                }
+            }
+            for (Recording rec: recs)
+                rec.close();
+            for (Recording rec: recs)
+                assertTrue(rec.awaitClose(10, TimeUnit.SECONDS));
+            final long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+            System.out.println(String.format(
+                    "%d recordings, %d s: %.1f MB/s, %d writes/s, max frame write time: %d us, dropped: %d bytes",
+                    recordingsCount, seconds, writer.getBytesWritten()/1024./1024.*1000/time,
+                    writer.getWritesCount()*1000/time, TimeUnit.NANOSECONDS.toMicros(maxWriteTime), 
+                    writer.getDroppedBytes()));
+        } finally {
+            writer.stop();
+            writer = null;
+            for (File file: dir.listFiles())
+                file.delete();
+        }
+    }
+
+    private static ByteBuffer readFile(File file) throws Exception {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int)in.length()];
+            in.readFully(data);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer buf, int formatTag, int channels, int sampleRate, int bits,
+            int dataSize)
+    {
+        assertEquals("RIFF", new String(buf.array(), 0, 4));
+        assertEquals(36+dataSize, buf.getInt(4));
+        assertEquals("WAVEfmt ", new String(buf.array(), 8, 8));
+        assertEquals(16, buf.getInt(16));
+        assertEquals(formatTag, buf.getShort(20));
+        assertEquals(channels, buf.getShort(22));
+        assertEquals(sampleRate, buf.getInt(24));
+        assertEquals(sampleRate*channels*bits/8, buf.getInt(28));
+        assertEquals(channels*bits/8, buf.getShort(32));
+        assertEquals(bits, buf.getShort(34));
+        assertEquals("data", new String(buf.array(), 36, 4));
+        assertEquals(dataSize, buf.getInt(40));
+    }
+
+    private static void checkAudioSystem(File file, int channels, long frames) throws Exception {
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+            AudioFormat format = in.getFormat();
+            assertEquals(channels, format.getChannels());
+            assertEquals(8000f, format.getSampleRate(), 0.1);
+            assertEquals(frames, in.getFrameLength());
+        }
+    }
+
+    private static byte[] linearFrame(int value) {
+        ByteBuffer buf = ByteBuffer.allocate(FRAME_SAMPLES*2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<FRAME_SAMPLES; ++i)
+            buf.putShort((short)value);
+        return buf.array();
+    }
+
+    private static byte[] g711Frame(boolean alaw, int value) {
+        byte[] frame = new byte[FRAME_SAMPLES];
+        for (int i=0; i<FRAME_SAMPLES; ++i)
+            frame[i] = alaw? G711.linear2alaw(value) : G711.linear2ulaw(value);
+        return frame;
+    }
+
+    /**
+     * Records the file for 2 seconds and halts the JVM without closing it
+     */
+    public static class CrashWriter {
+        public static void main(String[] args) throws Exception {
+            WavRecordingWriter writer = new WavRecordingWriter("crash", 1, 100, 1024, logger);
+            Recording rec = writer.createRecording(new File(args[0]), Encoding.LINEAR, 8000, 1, false);
+            for (int i=0; i<CRASH_FRAMES; ++i) {
+                rec.write(0, linearFrame(i), 0, FRAME_SAMPLES*2);
+                Thread.sleep(20);
+            }
+            Runtime.getRuntime().halt(1);
+        }
+    }
+}
@@ -301,10 +301,12 @@ public class CallsQueueNodeTest extends OnesecRavenModuleTest
         addPrioritySelector("p1", 1, null);
         trainRequest(req1, "Req#1");
         trainRequest(req2, "Req#2");
+        final long deadline = System.currentTimeMillis()+100;
         new Expectations() {{
             req1.isValid(); result = true;
             req1.getPriority(); result = 1;
             req1.getOnBusyBehaviour(); result = onBusyBehaviour;
+            req1.getOnBusyBehaviourDeadline(); result = deadline;
             onBusyBehaviour.handleBehaviour(queue, req1); returns(true, false); 
             
             req2.isValid(); result = true;
@@ -313,7 +315,7 @@ public class CallsQueueNodeTest extends OnesecRavenModuleTest
         assertTrue(queue.start());
         queue.queueCall(req1);
         queue.queueCall(req2);        
-        Thread.sleep(CallsQueueDataProcessor.TICK_INTERVAL+20);
+        Thread.sleep(deadline-System.currentTimeMillis()+50);
         queue.stop();
         new Verifications() {{
             req2.setPositionInQueue(2);
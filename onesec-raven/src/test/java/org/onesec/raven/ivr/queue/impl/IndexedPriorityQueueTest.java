@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.queue.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class IndexedPriorityQueueTest extends Assert {
+    private final static int QUEUED_CALLS = 10000;
+    private final static int DISPATCHED_CALLS = 10000;
+
+    @Test
+    public void orderTest() {
+        IndexedPriorityQueue<Req> queue = new IndexedPriorityQueue<>(new ReqComparator());
+        Req r1 = new Req(2, 1), r2 = new Req(1, 2), r3 = new Req(2, 3), r4 = new Req(3, 4);
+        assertTrue(queue.add(r1));
+        assertFalse(queue.add(r2));
+        assertTrue(queue.add(r3));
+        assertTrue(queue.add(r4));
+        assertEquals(Arrays.asList(r2, r1, r3, r4), queue.toList());
+        assertSame(r2, queue.peek());
+        assertSame(r4, queue.pollLast());
+        assertSame(r2, queue.poll());
+        assertSame(r1, queue.poll());
+        assertSame(r3, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void tiesTest() {
+        IndexedPriorityQueue<Req> queue = new IndexedPriorityQueue<>(new ReqComparator());
+        Req r1 = new Req(1, 1), r2 = new Req(1, 1), r3 = new Req(1, 1);
+        queue.add(r1);
+        queue.add(r2);
+        queue.add(r3);
+        assertEquals(Arrays.asList(r1, r2, r3), queue.toList());
+        assertSame(r3, queue.pollLast());
+    }
+
+    @Test
+    public void removeTest() {
+        IndexedPriorityQueue<Req> queue = new IndexedPriorityQueue<>(new ReqComparator());
+        Req r1 = new Req(1, 1), r2 = new Req(1, 2), r3 = new Req(1, 3);
+        queue.add(r1);
+        queue.add(r2);
+        queue.add(r3);
+        assertTrue(queue.remove(r2));
+        assertFalse(queue.remove(r2));
+        assertFalse(queue.contains(r2));
+        Iterator<Req> it = queue.iterator();
+        it.next();
+        it.remove();
+        assertFalse(queue.contains(r1));
+        assertEquals(Arrays.asList(r3), queue.toList());
+        //the element can be added again after the removal
+        assertFalse(queue.add(r1));
+        assertEquals(Arrays.asList(r1, r3), queue.toList());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void duplicateTest() {
+        IndexedPriorityQueue<Req> queue = new IndexedPriorityQueue<>(new ReqComparator());
+        Req r1 = new Req(1, 1);
+        queue.add(r1);
+        queue.add(r1);
+    }
+
+    /**
+     * Simulates the queue with {@link #QUEUED_CALLS} waiting calls of the random priorities: the new call is
+     * queued and the head of the queue is dispatched to the operator, the queue size stays the same. Compares
+     * the indexed queue with the sorting of the linked list on every insert.
+     */
+    @Test @Ignore
+    public void dispatchBenchmark() {
+        for (int i=0; i<3; ++i) {
+            runIndexedQueue();
+            runSortedList();
+        }
+    }
+
+    private void runIndexedQueue() {
+        Random rnd = new Random(1);
+        long id = 0;
+        IndexedPriorityQueue<Req> queue = new IndexedPriorityQueue<>(new ReqComparator());
+        for (int i=0; i<QUEUED_CALLS; ++i)
+            queue.add(new Req(rnd.nextInt(10), ++id));
+        long insertTime = 0, dispatchTime = 0;
+        for (int i=0; i<DISPATCHED_CALLS; ++i) {
+            long ts = System.nanoTime();
+            queue.add(new Req(rnd.nextInt(10), ++id));
+            insertTime += System.nanoTime()-ts;
+            ts = System.nanoTime();
+            queue.poll();
+            dispatchTime += System.nanoTime()-ts;
+        }
+        printResult("indexed queue", insertTime, dispatchTime);
+    }
+
+    private void runSortedList() {
+        Random rnd = new Random(1);
+        long id = 0;
+        ReqComparator comparator = new ReqComparator();
+        LinkedList<Req> queue = new LinkedList<>();
+        for (int i=0; i<QUEUED_CALLS; ++i)
+            queue.add(new Req(rnd.nextInt(10), ++id));
+        Collections.sort(queue, comparator);
+        long insertTime = 0, dispatchTime = 0;
+        for (int i=0; i<DISPATCHED_CALLS; ++i) {
+            long ts = System.nanoTime();
+            queue.offer(new Req(rnd.nextInt(10), ++id));
+            Collections.sort(queue, comparator);
+            insertTime += System.nanoTime()-ts;
+            ts = System.nanoTime();
+            queue.poll();
+            dispatchTime += System.nanoTime()-ts;
+        }
+        printResult("sorted list", insertTime, dispatchTime);
+    }
+
+    private void printResult(String name, long insertTime, long dispatchTime) {
+        System.out.println(String.format("%s (%d queued calls): avg insert time %d ns, avg dispatch time %d ns"
+                , name, QUEUED_CALLS, insertTime/DISPATCHED_CALLS, dispatchTime/DISPATCHED_CALLS));
+    }
+
+    private static class Req {
+        private final int priority;
+        private final long id;
+
+        public Req(int priority, long id) {
+            this.priority = priority;
+            this.id = id;
+        }
+    }
+
+    private static class ReqComparator implements Comparator<Req> {
+        @Override
+        public int compare(Req o1, Req o2) {
+            int res = Integer.compare(o1.priority, o2.priority);
+            return res!=0? res : Long.compare(o1.id, o2.id);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.ivr.queue.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.ivr.queue.CallQueueRequestController;
+import org.onesec.raven.ivr.queue.CallsQueue;
+import org.onesec.raven.ivr.queue.CallsQueueOperator;
+import org.onesec.raven.ivr.queue.CallsQueueOperatorRef;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class SelectorOperatorsIndexTest extends Assert {
+    private final static int OPERATORS = 500;
+    private final static int QUEUES = 50;
+    private final static int CALLS = 200000;
+    //the part of the operators kept busy by the simulator
+    private final static int BUSY_PERCENT = 98;
+
+    @Test
+    public void sequenceUsageTest() {
+        OperatorsAvailabilityIndex availabilityIndex = new OperatorsAvailabilityIndex();
+        List<TestOperator> opers = createOperators(4);
+        List<TestRef> refs = createRefs(opers);
+        SelectorOperatorsIndex index = createIndex(availabilityIndex, null, refs, opers, false);
+        
+        setFree(availabilityIndex, opers.get(0), false);
+        setFree(availabilityIndex, opers.get(1), false);
+        assertEquals(2, index.getAvailableOperatorsRefsCount());
+        
+        Request req = new Request();
+        assertSame(refs.get(2), index.dispatch(null, req.controller));
+        assertEquals(2, req.operatorIndex);
+        //the busy operators were not visited
+        assertEquals(0, refs.get(0).calls);
+        assertEquals(0, refs.get(1).calls);
+        //the operator informs the index that it is busy
+        availabilityIndex.operatorStateChanged(opers.get(2));
+        assertEquals(1, index.getAvailableOperatorsRefsCount());
+        
+        //the search starts from the operator next to the last one
+        req = new Request();
+        req.operatorIndex = 3;
+        assertNull(index.dispatch(null, req.controller));
+        req.operatorIndex = 2;
+        assertSame(refs.get(3), index.dispatch(null, req.controller));
+        availabilityIndex.operatorStateChanged(opers.get(3));
+        assertEquals(0, index.getAvailableOperatorsRefsCount());
+    }
+    
+    @Test
+    public void uniformUsageTest() {
+        OperatorsAvailabilityIndex availabilityIndex = new OperatorsAvailabilityIndex();
+        List<TestOperator> opers = createOperators(3);
+        List<TestRef> refs = createRefs(opers);
+        SelectorOperatorsIndex index = createIndex(availabilityIndex, null, refs, opers, true);
+        
+        assertSame(refs.get(0), index.dispatch(null, new Request().controller));
+        assertSame(refs.get(1), index.dispatch(null, new Request().controller));
+        setFree(availabilityIndex, opers.get(0), true);
+        //the operator that handled the request is moved to the end
+        assertSame(refs.get(2), index.dispatch(null, new Request().controller));
+        setFree(availabilityIndex, opers.get(1), true);
+        assertSame(refs.get(0), index.dispatch(null, new Request().controller));
+        assertSame(refs.get(1), index.dispatch(null, new Request().controller));
+        
+        //all operators are busy: the request is passed through the all operators
+        Request req = new Request();
+        assertNull(index.dispatch(null, req.controller));
+        assertEquals(3, req.operatorHops);
+        setFree(availabilityIndex, opers.get(2), true);
+        assertNull(index.dispatch(null, req.controller));
+    }
+    
+    @Test
+    public void availabilityTest() {
+        OperatorsAvailabilityIndex availabilityIndex = new OperatorsAvailabilityIndex();
+        List<TestOperator> opers = createOperators(2);
+        SelectorOperatorsIndex index1 = createIndex(availabilityIndex, null, createRefs(opers), opers, false);
+        SelectorOperatorsIndex index2 = createIndex(
+                availabilityIndex, null, createRefs(opers.subList(1, 2)), opers.subList(1, 2), true);
+        assertEquals(2, availabilityIndex.getOperatorsCount());
+        assertEquals(Arrays.asList(opers.get(1)), index2.getOperators());
+        
+        setFree(availabilityIndex, opers.get(1), false);
+        assertEquals(1, index1.getAvailableOperatorsRefsCount());
+        assertEquals(0, index2.getAvailableOperatorsRefsCount());
+        
+        //the index is informed about the busy operator by the dispatch
+        opers.get(0).free = false;
+        assertNull(index1.dispatch(null, new Request().controller));
+        assertEquals(0, index1.getAvailableOperatorsRefsCount());
+        
+        index1.release();
+        assertEquals(1, availabilityIndex.getOperatorsCount());
+        setFree(availabilityIndex, opers.get(1), true);
+        assertEquals(1, index2.getAvailableOperatorsRefsCount());
+        index2.release();
+        assertEquals(0, availabilityIndex.getOperatorsCount());
+    }
+    
+    /**
+     * Simulates {@link #QUEUES} queues, each queue has the priority selector referencing the same
+     * {@link #OPERATORS} operators (the half of the selectors with the uniform usage policy). The
+     * {@link #BUSY_PERCENT} of the operators are busy. Compares the dispatch through the index with the walk
+     * through the all references of the selector.
+     */
+    @Test @Ignore
+    public void dispatchBenchmark() {
+        OperatorsAvailabilityIndex availabilityIndex = new OperatorsAvailabilityIndex();
+        List<TestOperator> opers = createOperators(OPERATORS);
+        List<List<TestRef>> queuesRefs = new ArrayList<>(QUEUES);
+        SelectorOperatorsIndex[] indexes = new SelectorOperatorsIndex[QUEUES];
+        for (int i=0; i<QUEUES; ++i) {
+            queuesRefs.add(createRefs(opers));
+            indexes[i] = createIndex(availabilityIndex, null, queuesRefs.get(i), opers, i%2==0);
+        }
+        Random rnd = new Random(1);
+        ArrayDeque<TestOperator> busyOpers = new ArrayDeque<>();
+        for (int run=0; run<3; ++run) {
+            long indexTime = 0, walkTime = 0, walkVisits = 0;
+            for (int i=0; i<CALLS; ++i) {
+                while (busyOpers.size() > OPERATORS*BUSY_PERCENT/100)
+                    setFree(availabilityIndex, busyOpers.poll(), true);
+                final int queue = rnd.nextInt(QUEUES);
+                long ts = System.nanoTime();
+                TestRef ref = (TestRef) indexes[queue].dispatch(null, new Request().controller);
+                indexTime += System.nanoTime()-ts;
+                if (ref!=null) {
+                    availabilityIndex.operatorStateChanged(ref.operator);
+                    busyOpers.offer(ref.operator);
+                }
+                //the walk through the references up to the first free operator
+                ts = System.nanoTime();
+                for (TestRef walkRef: queuesRefs.get(queue)) {
+                    ++walkVisits;
+                    if (walkRef.operator.isReadyToProcessRequests())
+                        break;
+                }
+                walkTime += System.nanoTime()-ts;
+            }
+            System.out.println(String.format(
+                    "%d operators, %d queues: indexed dispatch %d ns per call, "
+                    + "walk %d ns per call (%d operators visited per call)"
+                    , OPERATORS, QUEUES, indexTime/CALLS, walkTime/CALLS, walkVisits/CALLS));
+        }
+    }
+    
+    private static void setFree(OperatorsAvailabilityIndex index, TestOperator operator, boolean free) {
+        operator.free = free;
+        index.operatorStateChanged(operator);
+    }
+    
+    private static List<TestOperator> createOperators(int count) {
+        List<TestOperator> opers = new ArrayList<>(count);
+        for (int i=0; i<count; ++i)
+            opers.add(new TestOperator());
+        return opers;
+    }
+    
+    private static List<TestRef> createRefs(List<TestOperator> opers) {
+        List<TestRef> refs = new ArrayList<>(opers.size());
+        for (TestOperator oper: opers)
+            refs.add(new TestRef(oper));
+        return refs;
+    }
+    
+    private static SelectorOperatorsIndex createIndex(OperatorsAvailabilityIndex availabilityIndex
+            , CallsQueueNode queue, List<TestRef> refs, List<TestOperator> opers, boolean uniformUsage)
+    {
+        return new SelectorOperatorsIndex(availabilityIndex, queue
+                , new ArrayList<CallsQueueOperatorRef>(refs), new ArrayList<CallsQueueOperator>(opers)
+                , uniformUsage);
+    }
+    
+    private static class TestOperator extends CallsQueueVirtualOperatorNode {
+        private volatile boolean free = true;
+
+        @Override
+        public boolean isReadyToProcessRequests() {
+            return free;
+        }
+    }
+    
+    private static class TestRef implements CallsQueueOperatorRef {
+        private final TestOperator operator;
+        private int sortIndex;
+        private int calls;
+
+        public TestRef(TestOperator operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        public boolean processRequest(CallsQueue queue, CallQueueRequestController request) {
+            ++calls;
+            if (!operator.free)
+                return false;
+            operator.free = false;
+            return true;
+        }
+
+        @Override
+        public int getSortIndex() {
+            return sortIndex;
+        }
+
+        @Override
+        public void setSortIndex(int sortIndex) {
+            this.sortIndex = sortIndex;
+        }
+    }
+    
+    private static class Request implements InvocationHandler {
+        private final CallQueueRequestController controller = (CallQueueRequestController) Proxy.newProxyInstance(
+                CallQueueRequestController.class.getClassLoader()
+                , new Class[]{CallQueueRequestController.class}, this);
+        private int operatorIndex = -1;
+        private int operatorHops = 0;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getOperatorIndex": return operatorIndex;
+                case "setOperatorIndex": operatorIndex = (Integer) args[0]; return null;
+                case "getOperatorHops": return operatorHops;
+                case "incOperatorHops": ++operatorHops; return null;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
@@ -41,8 +41,10 @@ public class WaitForOperatorOnBusyBehaviourStepNodeTest extends OnesecRavenTestC
         long time = System.currentTimeMillis();
         expect(req.getLastQueuedTime()).andReturn(time);
         req.setOperatorIndex(-1);
+        req.setOnBusyBehaviourDeadline(time+5001);
         expect(req.getLastQueuedTime()).andReturn(time-3000);
         req.setOperatorIndex(-1);
+        req.setOnBusyBehaviourDeadline(time+2001);
         expect(req.getLastQueuedTime()).andReturn(time-6000);
 
         replay(req);
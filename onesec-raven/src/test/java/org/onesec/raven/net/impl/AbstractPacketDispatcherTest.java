@@ -15,19 +15,27 @@
  */
 package org.onesec.raven.net.impl;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import static org.easymock.EasyMock.*;
 import org.easymock.IArgumentMatcher;
 import org.easymock.IMocksControl;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
+import org.onesec.raven.impl.LatencyStat;
 import org.onesec.raven.net.ByteBufferPool;
 import org.raven.log.LogLevel;
 import org.raven.sched.ExecutorService;
@@ -48,6 +56,7 @@ public class AbstractPacketDispatcherTest extends Assert {
     private final static int PACKET_SIZE = 160;
     
     private final static AtomicInteger stoppedThreadsCount = new AtomicInteger();
+    private final static Queue<Thread> startedThreads = new ConcurrentLinkedQueue<Thread>();
     private ByteBufferPoolImpl bufferPool;
     private IMocksControl control;
     private LoggerHelper logger;
@@ -220,12 +229,78 @@ public class AbstractPacketDispatcherTest extends Assert {
 //        logger.debug("Total packets lost: "+lostPacketsCount);
     }
     
+    /**
+     * Measures the CPU time consumed by the dispatcher threads (selectors and data processors) when no
+     * packets are flowing and the latency of the packet (from the outbound packet ready signal of the
+     * sender to the processing of the packet by the receiver) with 1, 100 and 10000 idle processors
+     * registered in the dispatcher.
+     */
+    @Test @Ignore
+    public void idleCpuAndLatencyBenchmark() throws Exception {
+        for (int processors: new int[]{1, 100, 10000})
+            runIdleCpuAndLatencyBenchmark(processors, 2, 2);
+    }
+    
+    private void runIdleCpuAndLatencyBenchmark(int processorsCount, int selectorsCount, int workersCount) 
+        throws Exception 
+    {
+        IMocksControl _control = createControl();
+        ExecutorService executor = trainExecutor(_control, 1, workersCount+selectorsCount-1);
+        _control.replay();
+        startedThreads.clear();
+        LoggerHelper _logger = new LoggerHelper(LogLevel.WARN, "", "", classLogger);
+        AbstractPacketDispatcher dispatcher = new AbstractPacketDispatcher(
+                executor, selectorsCount, workersCount, null, _logger, bufferPool);
+        executor.execute(dispatcher);
+        try {
+            InetSocketAddress anyPort = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+            for (int i=0; i<processorsCount; ++i)
+                dispatcher.addPacketProcessor(new IdlePacketProcessor(anyPort, _logger));
+            SocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), 3234);
+            PingReceiverPacketProcessor receiver = new PingReceiverPacketProcessor(addr, _logger);
+            PingPacketProcessor sender = new PingPacketProcessor(addr, _logger);
+            dispatcher.addPacketProcessor(receiver);
+            dispatcher.addPacketProcessor(sender);
+            Thread.sleep(1000+processorsCount/10);
+            //warming up
+            for (int i=0; i<2000; ++i)
+                assertTrue(sender.ping(receiver));
+            receiver.latency.reset();
+            for (int i=0; i<1000; ++i)
+                assertTrue(sender.ping(receiver));
+            long idleCpu = getCpuTime(startedThreads);
+            long idleStart = System.nanoTime();
+            Thread.sleep(2000);
+            idleCpu = (getCpuTime(startedThreads) - idleCpu)*TimeUnit.SECONDS.toNanos(1)/(System.nanoTime()-idleStart);
+            System.out.println(String.format(
+                    "Processors: %d; selectors: %d; workers: %d; idle CPU: %d us/s; latency p50/p99: %d/%d us"
+                    , processorsCount, selectorsCount, workersCount, idleCpu
+                    , TimeUnit.NANOSECONDS.toMicros(receiver.latency.getPercentile(50))
+                    , TimeUnit.NANOSECONDS.toMicros(receiver.latency.getPercentile(99))));
+        } finally {
+            dispatcher.stop();
+            Thread.sleep(500);
+        }
+    }
+    
+    private static long getCpuTime(Iterable<Thread> threads) {
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        long time = 0;
+        for (Thread thread: threads) {
+            long threadTime = mxBean.getThreadCpuTime(thread.getId());
+            if (threadTime>0)
+                time += threadTime;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(time);
+    }
+    
     private class Dispatcher {
         private final AbstractPacketDispatcher dispatcher;
         private final Pair[] processors;
         private final LoggerHelper logger;
         private final int packetsCount;
         private final int processorsCount;
+        private volatile boolean stopped = false;
 
         public Dispatcher(int id, int processorsCount, int packetsCount, ExecutorService executor
                 , LoggerHelper logger) 
@@ -241,6 +316,22 @@ public class AbstractPacketDispatcherTest extends Assert {
         }
         
         public void start(int startPort) throws Exception {
+            //the real time clock of the clients
+            Thread ticker = new Thread() {
+                @Override public void run() {
+                    try {
+                        while (!stopped) {
+                            long curTime = System.currentTimeMillis();
+                            for (Pair p: processors)
+                                if (p!=null)
+                                    p.client.tick(curTime);
+                            Thread.sleep(1);
+                        }
+                    } catch (InterruptedException e) { }
+                }
+            };
+            ticker.setDaemon(true);
+            ticker.start();
             for (int i=0; i<processors.length; ++i) {
                 SocketAddress addr = new InetSocketAddress(Inet4Address.getLocalHost(), startPort+i);
                 RealTimeServerPacketProcessor server = new RealTimeServerPacketProcessor(i, 160, addr, true, logger);
@@ -253,6 +344,7 @@ public class AbstractPacketDispatcherTest extends Assert {
         }
         
         public void stop() {
+            stopped = true;
             dispatcher.stop();
             long maxClientDelta = 0;
             double avgClientDelta = 0.;
@@ -295,12 +387,14 @@ public class AbstractPacketDispatcherTest extends Assert {
     public static Task executeTask() {
         reportMatcher(new IArgumentMatcher() {
             public boolean matches(final Object arg) {
-                new Thread() {
+                Thread thread = new Thread() {
                     @Override public void run() {
                         ((Task)arg).run();
                         stoppedThreadsCount.incrementAndGet();
                     }
-                }.start();
+                };
+                startedThreads.add(thread);
+                thread.start();
                 return true;
             }
             public void appendTo(StringBuffer buffer) {
@@ -488,7 +582,7 @@ public class AbstractPacketDispatcherTest extends Assert {
         private final int packetSize;
         private final int packetsCount;
         
-        private long nextSendTime = 0;
+        private volatile long nextSendTime = 0;
         private long maxDelta = 0;
         private long sumDelta = 0;
         private int countDelta = 0;
@@ -563,6 +657,11 @@ public class AbstractPacketDispatcherTest extends Assert {
             return sumDelta2/countDelta2;
         }
         
+        public void tick(long curTime) {
+            if (isValid() && curTime>=nextSendTime)
+                outboundPacketReady();
+        }
+        
         public void showStat() {
             logger.debug("avgDelta: "+getAvgDelta());
             logger.debug("maxDelta: "+maxDelta);
@@ -644,6 +743,99 @@ public class AbstractPacketDispatcherTest extends Assert {
         }
     }
     
+    private class IdlePacketProcessor extends AbstractPacketProcessor {
+        public IdlePacketProcessor(SocketAddress address, LoggerHelper logger) {
+            super(address, true, false, true, true, "Idle", logger, bufferPool, 64);
+        }
+
+        @Override
+        protected ProcessResult doProcessInboundBuffer(ByteBuffer buffer) throws Exception {
+            buffer.clear();
+            return ProcessResult.CONT;
+        }
+
+        @Override
+        protected ProcessResult doProcessOutboundBuffer(ByteBuffer buffer) throws Exception {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        protected boolean containsPacketsForOutboundProcessing() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        protected void doStopUnexpected(Throwable e) {
+        }
+    }
+    
+    private class PingPacketProcessor extends AbstractPacketProcessor {
+        private volatile long sendTime = 0;
+        
+        public PingPacketProcessor(SocketAddress address, LoggerHelper logger) {
+            super(address, false, true, false, true, "Ping", logger, bufferPool, 64);
+        }
+        
+        public boolean ping(PingReceiverPacketProcessor receiver) throws InterruptedException {
+            sendTime = System.nanoTime();
+            outboundPacketReady();
+            return receiver.received.tryAcquire(1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected ProcessResult doProcessInboundBuffer(ByteBuffer buffer) throws Exception {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        protected ProcessResult doProcessOutboundBuffer(ByteBuffer buffer) throws Exception {
+            buffer.clear();
+            buffer.putLong(sendTime);
+            sendTime = 0;
+            return ProcessResult.CONT;
+        }
+
+        @Override
+        protected boolean containsPacketsForOutboundProcessing() {
+            return sendTime!=0;
+        }
+
+        @Override
+        protected void doStopUnexpected(Throwable e) {
+        }
+    }
+    
+    private class PingReceiverPacketProcessor extends AbstractPacketProcessor {
+        private final LatencyStat latency = new LatencyStat();
+        private final Semaphore received = new Semaphore(0);
+        
+        public PingReceiverPacketProcessor(SocketAddress address, LoggerHelper logger) {
+            super(address, true, false, true, true, "Ping receiver", logger, bufferPool, 64);
+        }
+
+        @Override
+        protected ProcessResult doProcessInboundBuffer(ByteBuffer buffer) throws Exception {
+            latency.add(System.nanoTime()-buffer.getLong());
+            buffer.clear();
+            received.release();
+            return ProcessResult.CONT;
+        }
+
+        @Override
+        protected ProcessResult doProcessOutboundBuffer(ByteBuffer buffer) throws Exception {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        protected boolean containsPacketsForOutboundProcessing() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        protected void doStopUnexpected(Throwable e) {
+        }
+    }
+    
     private class Pair {
         private final RealTimeServerPacketProcessor server;
         private final RealTimeClientPacketProcessor client;
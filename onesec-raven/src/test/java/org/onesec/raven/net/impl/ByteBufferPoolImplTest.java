@@ -18,9 +18,14 @@ package org.onesec.raven.net.impl;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.Ignore;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.onesec.raven.net.ByteBufferHolder;
+import org.onesec.raven.net.ByteBufferPool;
 
 /**
  *
@@ -74,4 +79,161 @@ public class ByteBufferPoolImplTest {
             assertFalse(thread.isAlive());
         assertTrue(pool.getBuffersCount()<=101);
     }
+    
+    @Test
+    public void sizeClassesTest() {
+        ByteBufferPoolImpl pool = new ByteBufferPoolImpl();
+        ByteBufferHolder holder = pool.getBuffer(100);
+        assertEquals(128, holder.getBuffer().capacity());
+        assertEquals(100, holder.getBuffer().limit());
+        holder.release();
+        assertEquals(128, holder.getBuffer().limit());
+        ByteBufferHolder holder2 = pool.getBuffer(120);
+        assertSame(holder, holder2);
+        assertEquals(120, holder2.getBuffer().limit());
+        ByteBufferHolder holder3 = pool.getBuffer(10);
+        assertEquals(ByteBufferPoolImpl.MIN_BUFFER_SIZE, holder3.getBuffer().capacity());
+        assertEquals(2, pool.getAllocatedCount());
+        assertEquals(1, pool.getHitsCount());
+        assertEquals(2, pool.getMissesCount());
+    }
+    
+    @Test
+    public void notPooledBufferTest() {
+        ByteBufferPoolImpl pool = new ByteBufferPoolImpl(1024, 4, 4);
+        ByteBufferHolder holder = pool.getBuffer(2000);
+        assertEquals(2000, holder.getBuffer().capacity());
+        holder.release();
+        assertNotSame(holder, pool.getBuffer(2000));
+        assertEquals(0, pool.getBuffersCount());
+    }
+    
+    @Test
+    public void highWaterMarkTest() {
+        ByteBufferPoolImpl pool = new ByteBufferPoolImpl(1024, 2, 4);
+        List<ByteBufferHolder> holders = new ArrayList<ByteBufferHolder>();
+        for (int i=0; i<10; ++i)
+            holders.add(pool.getBuffer(128));
+        assertEquals(10, pool.getBuffersCount());
+        for (ByteBufferHolder holder: holders)
+            holder.release();
+        //2 buffers in the thread cache and 2 buffers in the free list
+        assertEquals(4, pool.getFreeBuffersCount());
+        assertEquals(6, pool.getDiscardedCount());
+        assertEquals(4, pool.getBuffersCount());
+        //the buffers of the thread cache are counted but stay in the cache
+        assertEquals(2, pool.trim(1));
+        assertEquals(2, pool.getFreeBuffersCount());
+        assertEquals(2, pool.getBuffersCount());
+    }
+    
+    @Test
+    public void terminatedThreadCacheTest() throws InterruptedException {
+        final ByteBufferPoolImpl pool = new ByteBufferPoolImpl(1024, 4, 16);
+        Thread thread = new Thread() {
+            @Override public void run() {
+                ByteBufferHolder holder = pool.getBuffer(128);
+                ByteBufferHolder holder2 = pool.getBuffer(128);
+                holder.release();
+                holder2.release();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(2, pool.getFreeBuffersCount());
+        assertEquals(2, pool.trim(0));
+        assertEquals(0, pool.getFreeBuffersCount());
+        assertEquals(0, pool.getBuffersCount());
+    }
+    
+    @Test
+    public void crossThreadReleaseTest() throws InterruptedException {
+        final ByteBufferPoolImpl pool = new ByteBufferPoolImpl(1024, 0, 16);
+        final ByteBufferHolder holder = pool.getBuffer(128);
+        Thread thread = new Thread() {
+            @Override public void run() {
+                holder.release();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(1, pool.getFreeBuffersCount());
+        assertSame(holder, pool.getBuffer(128));
+    }
+    
+    @Ignore @Test
+    public void throughputBenchmark() throws InterruptedException {
+        for (int threads: new int[]{1, 4, 16}) {
+            double oldRate = runBenchmark(new LockingByteBufferPool(), threads);
+            double newRate = runBenchmark(new ByteBufferPoolImpl(), threads);
+            System.out.println(String.format(
+                    "THREADS: %d; LOCKING POOL: %.0f ops/ms; SIZE CLASS POOL: %.0f ops/ms", 
+                    threads, oldRate, newRate));
+        }
+    }
+    
+    private double runBenchmark(final ByteBufferPool pool, int threadsCount) throws InterruptedException {
+        final int operations = 1000000;
+        final CountDownLatch latch = new CountDownLatch(threadsCount);
+        long start = System.nanoTime();
+        for (int t=0; t<threadsCount; ++t)
+            new Thread() {
+                @Override public void run() {
+                    ByteBufferHolder[] held = new ByteBufferHolder[8];
+                    for (int i=0; i<operations; ++i) {
+                        int slot = i & 7;
+                        if (held[slot]!=null)
+                            held[slot].release();
+                        held[slot] = pool.getBuffer(172 + slot);
+                    }
+                    for (ByteBufferHolder holder: held)
+                        holder.release();
+                    latch.countDown();
+                }
+            }.start();
+        latch.await();
+        return (double)operations * threadsCount / ((System.nanoTime()-start) / 1000000.);
+    }
+    
+    //the copy of the pool implementation used before size classes, just for the benchmark
+    private static class LockingByteBufferPool implements ByteBufferPool {
+        private final java.util.Map<Integer, List<ByteBufferHolderImpl>> pool = 
+                new java.util.HashMap<Integer, List<ByteBufferHolderImpl>>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final AtomicInteger buffersCount = new AtomicInteger();
+
+        public ByteBufferHolder getBuffer(int bufferSize) {
+            lock.readLock().lock();
+            try {
+                List<ByteBufferHolderImpl> list = pool.get(bufferSize);
+                if (list!=null)
+                    for (ByteBufferHolderImpl holder: list)
+                        if (holder.use())
+                            return holder;
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                List<ByteBufferHolderImpl> list = pool.get(bufferSize);
+                if (list==null) {
+                    list = new ArrayList<ByteBufferHolderImpl>(64);
+                    pool.put(bufferSize, list);
+                }
+                ByteBufferHolderImpl holder = new ByteBufferHolderImpl(bufferSize);
+                holder.use();
+                list.add(holder);
+                buffersCount.incrementAndGet();
+                return holder;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public int getBuffersCount() { return buffersCount.get(); }
+        public long getHitsCount() { return 0; }
+        public long getMissesCount() { return 0; }
+        public long getAllocatedCount() { return buffersCount.get(); }
+        public long getDiscardedCount() { return 0; }
+    }
 }
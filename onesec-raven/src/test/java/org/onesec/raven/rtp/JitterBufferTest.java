@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The tests replay the packet traces (arrival time, sequence number, timestamp) through the jitter buffer
+ * in the simulated time with the 1 ms step and 20 ms playout ticks.
+ *
+ * @author Mikhail Titov
+ */
+public class JitterBufferTest extends Assert {
+    private final static long MS = 1000000L;
+
+    @Test
+    public void steadyStreamTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Played> out = replay(buffer, createTrace(0, 100));
+        checkSequence(out, 0, 100);
+        assertEquals(100, buffer.getPlayed());
+        assertEquals(0, buffer.getLost());
+        assertEquals(0, buffer.getLate());
+        assertEquals(0, buffer.getReordered());
+        assertEquals(0, buffer.getDiscarded());
+        assertEquals(40, buffer.getDelay());
+        //the underrun at the end of the stream
+        assertEquals(JitterBuffer.MAX_UNDERRUN_FRAMES, buffer.getConcealed());
+        assertEquals(100 + JitterBuffer.MAX_UNDERRUN_FRAMES, out.size());
+    }
+
+    @Test
+    public void reorderTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(0, 100);
+        trace.get(10).arrival += 25;
+        trace.get(50).arrival += 30;
+        List<Played> out = replay(buffer, trace);
+        checkSequence(out, 0, 100);
+        assertEquals(2, buffer.getReordered());
+        assertEquals(0, buffer.getLost());
+        assertEquals(0, buffer.getLate());
+    }
+
+    @Test
+    public void lossConcealmentTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(0, 100);
+        trace.remove(22);
+        trace.remove(21);
+        trace.remove(20);
+        List<Played> out = replay(buffer, trace);
+        for (int i=0; i<100; ++i)
+            assertEquals(i, out.get(i).seq);
+        assertFalse(out.get(19).concealed);
+        //the first lost frame repeats the last frame, the next ones are silence
+        assertTrue(out.get(20).concealed);
+        assertEquals(payload(19), out.get(20).data);
+        assertTrue(out.get(21).concealed);
+        assertEquals((byte)0xFF, out.get(21).data);
+        assertTrue(out.get(22).concealed);
+        assertEquals((byte)0xFF, out.get(22).data);
+        assertFalse(out.get(23).concealed);
+        assertEquals(3, buffer.getLost());
+    }
+
+    @Test
+    public void lateAndGrowTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(0, 200);
+        trace.get(30).arrival += 100;
+        List<Played> out = replay(buffer, trace);
+        assertEquals(1, buffer.getLate());
+        assertEquals(1, buffer.getLost());
+        assertTrue(out.get(30).concealed);
+        int played = 0;
+        for (Played frame: out)
+            if (!frame.concealed)
+                ++played;
+        //one frame was dropped to reduce the delay grown by the late packet
+        assertEquals(198, played);
+        assertEquals(1, buffer.getDiscarded());
+        assertEquals(40, buffer.getDelay());
+    }
+
+    @Test
+    public void duplicateTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(0, 50);
+        Packet dup = new Packet(5, trace.get(5).timestamp, trace.get(5).arrival+5);
+        trace.add(dup);
+        List<Played> out = replay(buffer, trace);
+        checkSequence(out, 0, 50);
+        assertEquals(1, buffer.getDiscarded());
+    }
+
+    @Test
+    public void sequenceWrapTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(65500, 100);
+        trace.get(40).arrival += 30;
+        List<Played> out = replay(buffer, trace);
+        checkSequence(out, 65500, 100);
+        assertEquals(1, buffer.getReordered());
+    }
+
+    @Test
+    public void restartAfterPauseTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(0, 50);
+        //silence suppression: the next talk spurt starts after one second
+        for (Packet packet: createTrace(50, 50))
+            trace.add(new Packet(packet.seq, packet.timestamp + 50*160 + 8000, packet.arrival + 2000));
+        List<Played> out = replay(buffer, trace);
+        assertEquals(100, buffer.getPlayed());
+        assertEquals(0, buffer.getLate());
+        assertEquals(0, buffer.getLost());
+        assertEquals(100 + 2*JitterBuffer.MAX_UNDERRUN_FRAMES, out.size());
+    }
+
+    @Test
+    public void adaptiveDelayTest() {
+        JitterBuffer buffer = new JitterBuffer(40, 200);
+        List<Packet> trace = createTrace(0, 3000);
+        Random random = new Random(1);
+        for (int i=0; i<1500; ++i)
+            trace.get(i).arrival += random.nextInt(80);
+        List<Played> out = replay(buffer, trace);
+        checkContinuous(out, 0, 3000);
+        System.out.println(String.format(
+                "Jitter buffer: played %s, late %s, lost %s, reordered %s, discarded %s, delay %s",
+                buffer.getPlayed(), buffer.getLate(), buffer.getLost(), buffer.getReordered(),
+                buffer.getDiscarded(), buffer.getDelay()));
+        long maxDelay = 0;
+        for (Played frame: out)
+            maxDelay = Math.max(maxDelay, frame.delay);
+        assertTrue(maxDelay>40);
+        assertTrue(buffer.getReordered()>0);
+        assertTrue(buffer.getLate()<30);
+        //the jitter is gone and the delay is reduced to the minimum
+        assertEquals(40, buffer.getDelay());
+        assertTrue(buffer.getDiscarded()>0);
+    }
+
+    @Test
+    public void maxDelayTest() {
+        JitterBuffer buffer = new JitterBuffer(20, 60);
+        List<Packet> trace = createTrace(0, 1000);
+        Random random = new Random(2);
+        for (Packet packet: trace)
+            packet.arrival += random.nextInt(300);
+        long maxDelay = 0;
+        for (Played frame: replay(buffer, trace))
+            maxDelay = Math.max(maxDelay, frame.delay);
+        assertTrue(maxDelay<=60);
+        assertTrue(buffer.getLate()>0);
+    }
+
+    @Test
+    public void deterministicReplayTest() {
+        List<Packet> trace = createTrace(100, 2000);
+        Random random = new Random(3);
+        for (Packet packet: trace)
+            packet.arrival += random.nextInt(60);
+        for (int i=trace.size()-1; i>=0; --i)
+            if (random.nextInt(100)<2)
+                trace.remove(i);
+        JitterBuffer buffer1 = new JitterBuffer(40, 200);
+        JitterBuffer buffer2 = new JitterBuffer(40, 200);
+        List<Played> out1 = replay(buffer1, trace);
+        List<Played> out2 = replay(buffer2, trace);
+        assertEquals(out1.size(), out2.size());
+        for (int i=0; i<out1.size(); ++i) {
+            assertEquals(out1.get(i).seq, out2.get(i).seq);
+            assertEquals(out1.get(i).concealed, out2.get(i).concealed);
+        }
+        assertEquals(buffer1.getLost(), buffer2.getLost());
+        assertEquals(buffer1.getLate(), buffer2.getLate());
+        assertEquals(buffer1.getDiscarded(), buffer2.getDiscarded());
+        assertTrue(buffer1.getLost()>0);
+    }
+
+    private static List<Packet> createTrace(int firstSeq, int count) {
+        List<Packet> trace = new ArrayList<>(count);
+        for (int i=0; i<count; ++i)
+            trace.add(new Packet((firstSeq+i) & 0xFFFF, 1000 + i*160L, i*20L));
+        return trace;
+    }
+
+    private static byte payload(int seq) {
+        return (byte) (seq & 0x7F);
+    }
+
+    private static List<Played> replay(JitterBuffer buffer, List<Packet> trace) {
+        List<Packet> packets = new ArrayList<>(trace);
+        Collections.sort(packets, new Comparator<Packet>() {
+            @Override public int compare(Packet p1, Packet p2) {
+                return Long.compare(p1.arrival, p2.arrival);
+            }
+        });
+        List<Played> out = new ArrayList<>();
+        JitterBuffer.Frame frame = new JitterBuffer.Frame();
+        ByteBuf buf = Unpooled.buffer(200);
+        long end = packets.get(packets.size()-1).arrival + 1000;
+        int next = 0;
+        //the playout clock is not aligned with the packets
+        for (long ms=0; ms<end; ++ms) {
+            final long now = 1000000*MS + ms*MS;
+            while (next<packets.size() && packets.get(next).arrival<=ms) {
+                Packet packet = packets.get(next++);
+                buf.clear();
+                RtpPacket.writeHeader(buf, false, RtpPayloadTypes.PCMU, packet.seq, packet.timestamp, 1);
+                for (int i=0; i<160; ++i)
+                    buf.writeByte(payload(packet.seq));
+                buffer.put(buf, RtpPacket.HEADER_SIZE, 160, now);
+            }
+            if (ms%20==7)
+                while (buffer.poll(now, frame))
+                    out.add(new Played(frame, buffer.getDelay()));
+        }
+        return out;
+    }
+
+    private static void checkSequence(List<Played> out, int firstSeq, int count) {
+        for (int i=0; i<count; ++i) {
+            Played frame = out.get(i);
+            assertFalse(frame.concealed);
+            assertEquals((firstSeq+i) & 0xFFFF, frame.seq);
+            assertEquals(payload(frame.seq), frame.data);
+        }
+    }
+
+    private static void checkContinuous(List<Played> out, int firstSeq, int count) {
+        int expected = firstSeq;
+        int i = 0;
+        for (Played frame: out) {
+            if (!frame.concealed) {
+                assertTrue(frame.seq>=expected);
+                expected = frame.seq + 1;
+            }
+            if (++i>=count)
+                break;
+        }
+    }
+
+    private static class Packet {
+        private final int seq;
+        private final long timestamp;
+        private long arrival;
+
+        public Packet(int seq, long timestamp, long arrival) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.arrival = arrival;
+        }
+    }
+
+    private static class Played {
+        private final int seq;
+        private final boolean concealed;
+        private final byte data;
+        private final long delay;
+
+        public Played(JitterBuffer.Frame frame, long delay) {
+            this.seq = frame.getSequenceNumber();
+            this.concealed = frame.isConcealed();
+            this.data = frame.getData()[0];
+            this.delay = delay;
+        }
+    }
+}
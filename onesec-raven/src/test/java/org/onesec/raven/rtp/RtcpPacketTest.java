@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class RtcpPacketTest extends Assert {
+    
+    @Test
+    public void ntpTimestampTest() {
+        long ntp = RtcpPacket.toNtpTimestamp(1500);
+        assertEquals(2208988801L, ntp >>> 32);
+        assertEquals(1L << 31, ntp & 0xFFFFFFFFL);
+    }
+    
+    @Test
+    public void senderReportTest() {
+        RtpReceiver receiver = new RtpReceiver(8000);
+        for (int seq=0; seq<10; ++seq)
+            if (seq!=5)
+                receiver.update(7, seq, seq*160, seq*20000000L);
+        ByteBuf buf = Unpooled.buffer();
+        RtcpPacket.writeSenderReport(buf, 1, 0x0102030405060708L, 160, 10, 1600, receiver, 0);
+        assertEquals(RtcpPacket.SR_SIZE + RtpReceiver.REPORT_BLOCK_SIZE, buf.readableBytes());
+        assertEquals(2, RtcpPacket.getVersion(buf, 0));
+        assertEquals(1, RtcpPacket.getCount(buf, 0));
+        assertEquals(RtcpPacket.SR, RtcpPacket.getPacketType(buf, 0));
+        assertEquals(buf.readableBytes(), RtcpPacket.getLength(buf, 0));
+        assertEquals(1, RtcpPacket.getSsrc(buf, 0));
+        assertEquals(0x0102030405060708L, RtcpPacket.getNtpTimestamp(buf, 0));
+        assertEquals(10, buf.getInt(20));
+        assertEquals(1600, buf.getInt(24));
+        //report block
+        assertEquals(7, buf.getInt(28));
+        assertEquals(1, buf.getMedium(33));
+        assertEquals(9, buf.getInt(36));
+    }
+    
+    @Test
+    public void receiverReportWithoutSourceTest() {
+        ByteBuf buf = Unpooled.buffer();
+        RtcpPacket.writeReceiverReport(buf, 1, new RtpReceiver(8000), 0);
+        assertEquals(8, buf.readableBytes());
+        assertEquals(0, RtcpPacket.getCount(buf, 0));
+        assertEquals(RtcpPacket.RR, RtcpPacket.getPacketType(buf, 0));
+        assertEquals(8, RtcpPacket.getLength(buf, 0));
+    }
+    
+    @Test
+    public void compoundPacketTest() {
+        ByteBuf buf = Unpooled.buffer();
+        RtcpPacket.writeReceiverReport(buf, 1, null, 0);
+        RtcpPacket.writeSdes(buf, 1, new byte[]{'a','b','c'});
+        RtcpPacket.writeBye(buf, 1);
+        int offset = 0;
+        assertEquals(RtcpPacket.RR, RtcpPacket.getPacketType(buf, offset));
+        offset += RtcpPacket.getLength(buf, offset);
+        assertEquals(RtcpPacket.SDES, RtcpPacket.getPacketType(buf, offset));
+        //header + ssrc + type + len + 3 bytes of cname + null and padding
+        assertEquals(16, RtcpPacket.getLength(buf, offset));
+        offset += RtcpPacket.getLength(buf, offset);
+        assertEquals(RtcpPacket.BYE, RtcpPacket.getPacketType(buf, offset));
+        offset += RtcpPacket.getLength(buf, offset);
+        assertEquals(buf.writerIndex(), offset);
+    }
+}
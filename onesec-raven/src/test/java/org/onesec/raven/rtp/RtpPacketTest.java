@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class RtpPacketTest extends Assert {
+    
+    @Test
+    public void writeAndReadHeaderTest() {
+        ByteBuf buf = Unpooled.buffer();
+        RtpPacket.writeHeader(buf, true, 18, 65535, 0xFFFFFFF0L, 0xCAFEBABE).writeBytes(new byte[]{1,2,3});
+        assertTrue(RtpPacket.isValid(buf));
+        assertEquals(2, RtpPacket.getVersion(buf));
+        assertTrue(RtpPacket.isMarker(buf));
+        assertEquals(18, RtpPacket.getPayloadType(buf));
+        assertEquals(65535, RtpPacket.getSequenceNumber(buf));
+        assertEquals(0xFFFFFFF0L, RtpPacket.getTimestamp(buf));
+        assertEquals(0xCAFEBABE, RtpPacket.getSsrc(buf));
+        assertEquals(RtpPacket.HEADER_SIZE, RtpPacket.getPayloadOffset(buf));
+        assertEquals(3, RtpPacket.getPayloadLength(buf));
+    }
+    
+    @Test
+    public void readerIndexTest() {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(new byte[]{9,9,9});
+        buf.readerIndex(3);
+        RtpPacket.writeHeader(buf, false, 8, 10, 160, 1).writeBytes(new byte[]{1});
+        assertTrue(RtpPacket.isValid(buf));
+        assertFalse(RtpPacket.isMarker(buf));
+        assertEquals(8, RtpPacket.getPayloadType(buf));
+        assertEquals(10, RtpPacket.getSequenceNumber(buf));
+        assertEquals(1, RtpPacket.getPayloadLength(buf));
+    }
+    
+    @Test
+    public void csrcExtensionAndPaddingTest() {
+        ByteBuf buf = Unpooled.buffer();
+        //version 2, padding, extension, 2 CSRC
+        buf.writeByte(0x80 | 0x20 | 0x10 | 2).writeByte(0).writeShort(1).writeInt(0).writeInt(0);
+        buf.writeInt(1).writeInt(2);
+        //extension header with one 32 bit word
+        buf.writeShort(0xBEDE).writeShort(1).writeInt(0);
+        buf.writeBytes(new byte[]{1,2,3,4,5});
+        //3 bytes of padding
+        buf.writeBytes(new byte[]{0,0,3});
+        assertTrue(RtpPacket.isValid(buf));
+        assertEquals(12+8+8, RtpPacket.getPayloadOffset(buf));
+        assertEquals(5, RtpPacket.getPayloadLength(buf));
+    }
+    
+    @Test
+    public void invalidPacketTest() {
+        assertFalse(RtpPacket.isValid(Unpooled.wrappedBuffer(new byte[]{(byte)0x80, 0, 0, 1})));
+        ByteBuf buf = Unpooled.buffer();
+        RtpPacket.writeHeader(buf, false, 0, 1, 1, 1);
+        buf.setByte(0, 0x40);
+        assertFalse(RtpPacket.isValid(buf));
+        buf.setByte(0, 0x82);
+        assertFalse(RtpPacket.isValid(buf));
+    }
+}
@@ -15,18 +15,78 @@
  */
 package org.onesec.raven.rtp;
 
-import java.nio.channels.DatagramChannel;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
  *
  * @author Mikhail Titov
  */
-public class RtpReceiverTest {
+public class RtpReceiverTest extends Assert {
+    private final static long PACKET_NANOS = 20000000L;
     
     @Test
-    public void testMine() {
-//        DatagramChannel channel = DatagramChannel.
+    public void probationTest() {
+        RtpReceiver receiver = new RtpReceiver(8000);
+        assertFalse(receiver.update(1, 100, 0, 0));
+        assertTrue(receiver.update(1, 101, 160, PACKET_NANOS));
+        assertEquals(1, receiver.getReceived());
+        assertEquals(1, receiver.getExpected());
+        assertEquals(0, receiver.getLost());
     }
     
+    @Test
+    public void lossAndWrapTest() {
+        RtpReceiver receiver = new RtpReceiver(8000);
+        int seq = 65530;
+        for (int i=0; i<20; ++i, seq = (seq+1) & 0xFFFF)
+            if (i!=10 && i!=11)
+                receiver.update(1, seq, i*160, i*PACKET_NANOS);
+        assertEquals(65536 + 13, receiver.getExtendedMaxSeq());
+        assertEquals(19, receiver.getExpected());
+        assertEquals(2, receiver.getLost());
+        ByteBuf buf = Unpooled.buffer();
+        assertTrue(receiver.writeReportBlock(buf, 0));
+        assertEquals(RtpReceiver.REPORT_BLOCK_SIZE, buf.readableBytes());
+        assertEquals(2*256/19, buf.getUnsignedByte(4));
+        assertEquals(2, buf.getMedium(5));
+        //no packets lost in the next interval
+        receiver.update(1, seq, 20*160, 20*PACKET_NANOS);
+        buf = Unpooled.buffer();
+        assertTrue(receiver.writeReportBlock(buf, 0));
+        assertEquals(0, buf.getUnsignedByte(4));
+        assertEquals(2, buf.getMedium(5));
+    }
+    
+    @Test
+    public void jitterTest() {
+        RtpReceiver receiver = new RtpReceiver(8000);
+        for (int i=0; i<100; ++i)
+            receiver.update(1, i, i*160, i*PACKET_NANOS);
+        assertEquals(0, receiver.getJitter());
+        receiver = new RtpReceiver(8000);
+        for (int i=0; i<1000; ++i)
+            receiver.update(1, i, i*160, i*PACKET_NANOS + (i%2==0? 0 : 10000000L));
+        //transit time differs by 10 ms (80 timestamp units) on every packet
+        assertTrue(Math.abs(receiver.getJitter()-80) <= 5);
+    }
+    
+    @Test
+    public void sourceRestartTest() {
+        RtpReceiver receiver = new RtpReceiver(8000);
+        for (int i=0; i<10; ++i)
+            receiver.update(1, i, i*160, i*PACKET_NANOS);
+        assertFalse(receiver.update(1, 30000, 0, 0));
+        assertTrue(receiver.update(1, 30001, 160, PACKET_NANOS));
+        assertEquals(30001, receiver.getExtendedMaxSeq());
+        assertFalse(receiver.update(2, 5, 0, 0));
+        assertEquals(2, receiver.getSsrc());
+    }
+    
+    @Test
+    public void reportWithoutSourceTest() {
+        assertFalse(new RtpReceiver(8000).writeReportBlock(Unpooled.buffer(), 0));
+    }
 }
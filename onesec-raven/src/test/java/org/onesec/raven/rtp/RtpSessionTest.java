@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.nio.NioEventLoopGroup;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.media.rtp.SessionAddress;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.codec.DtmfListener;
+import org.raven.log.LogLevel;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class RtpSessionTest extends Assert {
+    private final static int PORT = 7790;
+    private NioEventLoopGroup group;
+    private InetAddress localhost;
+    private LoggerHelper logger;
+    
+    @Before
+    public void prepare() throws Exception {
+        group = new NioEventLoopGroup(2);
+        localhost = InetAddress.getByName("127.0.0.1");
+        logger = new LoggerHelper(LogLevel.DEBUG, "", "", LoggerFactory.getLogger(RtpSessionTest.class));
+    }
+    
+    @After
+    public void finish() throws Exception {
+        group.shutdownGracefully().await();
+    }
+    
+    @Test
+    public void sendReceiveTest() throws Exception {
+        RtpSession receiver = createSession(PORT, SessionAddress.ANY_PORT, 200);
+        RtpSession sender = createSession(PORT+2, PORT, 200);
+        final CountDownLatch packetsLatch = new CountDownLatch(9);
+        final AtomicInteger payloadErrors = new AtomicInteger();
+        receiver.setPayloadListener(RtpPayloadTypes.PCMU, new RtpSession.PayloadListener() {
+            @Override public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+                if (payloadLength!=160 || packet.getByte(payloadIndex)!=0x55)
+                    payloadErrors.incrementAndGet();
+                packetsLatch.countDown();
+            }
+        });
+        final CountDownLatch byeLatch = new CountDownLatch(1);
+        receiver.setListener(new RtpSession.Listener() {
+            @Override public void byeReceived(RtpSession session) {
+                byeLatch.countDown();
+            }
+        });
+        try {
+            byte[] payload = new byte[160];
+            payload[0] = 0x55;
+            for (int i=0; i<10; ++i) {
+                assertTrue(sender.send(RtpPayloadTypes.PCMU, i==0, payload, 0, payload.length, payload.length));
+                Thread.sleep(20);
+            }
+            //the first packet of the source is not delivered (source validation)
+            assertTrue(packetsLatch.await(2, TimeUnit.SECONDS));
+            assertEquals(0, payloadErrors.get());
+            assertEquals(10, receiver.getPacketsReceived());
+            assertEquals(0, receiver.getReceiver().getLost());
+            assertEquals(new InetSocketAddress(localhost, PORT+2), receiver.getRemoteDataAddress());
+            //waiting for RTCP reports
+            Thread.sleep(500);
+            assertTrue(sender.getRtcpSent()>0);
+            assertTrue(receiver.getRtcpReceived()>0);
+            assertTrue(receiver.getRtcpSent()>0);
+            sender.close();
+            assertTrue(byeLatch.await(2, TimeUnit.SECONDS));
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+    
+    @Test
+    public void relayTest() throws Exception {
+        RtpSession sender = createSession(PORT+2, PORT, 5000);
+        RtpSession relayIn = createSession(PORT, SessionAddress.ANY_PORT, 5000);
+        final RtpSession relayOut = createSession(PORT+4, PORT+6, 5000);
+        RtpSession receiver = createSession(PORT+6, SessionAddress.ANY_PORT, 5000);
+        relayIn.setPayloadListener(RtpPayloadTypes.PCMU, new RtpSession.PayloadListener() {
+            @Override public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+                relayOut.send(RtpPayloadTypes.PCMU, false, packet, payloadIndex, payloadLength, payloadLength);
+            }
+        });
+        final CountDownLatch packetsLatch = new CountDownLatch(8);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger lastSeq = new AtomicInteger(-1);
+        receiver.setPayloadListener(RtpPayloadTypes.PCMU, new RtpSession.PayloadListener() {
+            @Override public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+                int seq = RtpPacket.getSequenceNumber(packet);
+                if (RtpPacket.getSsrc(packet)!=relayOut.getSsrc() || payloadLength!=160 
+                    || packet.getByte(payloadIndex)!=0x55 
+                    || (lastSeq.get()>=0 && seq!=((lastSeq.get()+1) & 0xFFFF)))
+                {
+                    errors.incrementAndGet();
+                }
+                lastSeq.set(seq);
+                packetsLatch.countDown();
+            }
+        });
+        try {
+            byte[] payload = new byte[160];
+            payload[0] = 0x55;
+            for (int i=0; i<10; ++i) {
+                assertTrue(sender.send(RtpPayloadTypes.PCMU, i==0, payload, 0, payload.length, payload.length));
+                Thread.sleep(20);
+            }
+            //the first packets of the sender and of the relay are not delivered (source validation)
+            assertTrue(packetsLatch.await(2, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            assertEquals(9, relayOut.getPacketsSent());
+            assertEquals(0, receiver.getReceiver().getLost());
+        } finally {
+            sender.close();
+            relayIn.close();
+            relayOut.close();
+            receiver.close();
+        }
+    }
+    
+    @Test
+    public void closeInEventLoopTest() throws Exception {
+        RtpSession receiver = createSession(PORT, SessionAddress.ANY_PORT, 5000);
+        final RtpSession sender = createSession(PORT+2, PORT, 5000);
+        final CountDownLatch byeLatch = new CountDownLatch(1);
+        final CountDownLatch closedLatch = new CountDownLatch(1);
+        receiver.setListener(new RtpSession.Listener() {
+            @Override public void byeReceived(RtpSession session) {
+                byeLatch.countDown();
+                //the session is closed by its own event loop thread
+                session.close();
+                closedLatch.countDown();
+            }
+        });
+        try {
+            group.next().execute(new Runnable() {
+                @Override public void run() {
+                    sender.close();
+                }
+            });
+            assertTrue(byeLatch.await(2, TimeUnit.SECONDS));
+            assertTrue(closedLatch.await(2, TimeUnit.SECONDS));
+            //the ports are released when the channels are closed
+            Thread.sleep(200);
+            RtpSession session = createSession(PORT, PORT+2, 5000);
+            session.close();
+            session = createSession(PORT+2, PORT, 5000);
+            session.close();
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+    
+    /**
+     * CPU cost of the one direction of the pass-through bridge: 20 ms G.711 packets relayed from one
+     * session to another. The bridged call is two directions of 50 packets per second.
+     */
+    @Test @Ignore
+    public void relayBenchmark() throws Exception {
+        final int packets = 200000;
+        RtpSession sender = createSession(PORT+2, PORT, 5000);
+        RtpSession relayIn = createSession(PORT, SessionAddress.ANY_PORT, 5000);
+        final RtpSession relayOut = createSession(PORT+4, PORT+6, 5000);
+        RtpSession receiver = createSession(PORT+6, SessionAddress.ANY_PORT, 5000);
+        relayIn.setPayloadListener(RtpPayloadTypes.PCMU, new RtpSession.PayloadListener() {
+            @Override public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+                relayOut.send(RtpPayloadTypes.PCMU, false, packet, payloadIndex, payloadLength, payloadLength);
+            }
+        });
+        final CountDownLatch packetsLatch = new CountDownLatch(packets-2);
+        receiver.setPayloadListener(RtpPayloadTypes.PCMU, new RtpSession.PayloadListener() {
+            @Override public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) {
+                packetsLatch.countDown();
+            }
+        });
+        com.sun.management.OperatingSystemMXBean os = 
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        try {
+            byte[] payload = new byte[160];
+            long cpu = os.getProcessCpuTime();
+            long ts = System.nanoTime();
+            for (int i=0; i<packets; ++i) {
+                sender.send(RtpPayloadTypes.PCMU, false, payload, 0, payload.length, payload.length);
+                if (i % 100 == 0)
+                    Thread.sleep(1);
+            }
+            packetsLatch.await(60, TimeUnit.SECONDS);
+            cpu = os.getProcessCpuTime() - cpu;
+            ts = System.nanoTime() - ts;
+            //the cpu of the sender and of the receiver is included, so the estimation is pessimistic
+            long cpuPerPacket = cpu / packets;
+            System.out.println(String.format(
+                    "Relayed %d packets in %d ms. CPU per packet: %d ns. CPU per call: %.3f%%. "
+                    + "Calls per core: %d",
+                    relayOut.getPacketsSent(), ts/1000000, cpuPerPacket, cpuPerPacket*100*100./1000000000,
+                    1000000000L/(cpuPerPacket*100)));
+        } finally {
+            sender.close();
+            relayIn.close();
+            relayOut.close();
+            receiver.close();
+        }
+    }
+    
+    /**
+     * Loopback of the DTMF sent as the telephone events along with the audio stream. The latency is measured
+     * from the moment the digit is queued to the sender to the detection by the receiver. The DTMF sent by
+     * JTAPI passes the CUCM signalling instead, its latency is logged by the conversation (compare the time
+     * of the sendDTMF call with the time of the dtmfReceived event of the other leg).
+     */
+    @Test
+    public void telephoneEventsLatencyTest() throws Exception {
+        final String digits = "159#";
+        final RtpSession receiver = createSession(PORT, SessionAddress.ANY_PORT, 5000);
+        final RtpSession sender = createSession(PORT+2, PORT, 5000);
+        final StringBuffer received = new StringBuffer();
+        final long[] detectTimes = new long[digits.length()];
+        final CountDownLatch eventsLatch = new CountDownLatch(digits.length());
+        receiver.setPayloadListener(RtpPayloadTypes.PCMU, new RtpSession.PayloadListener() {
+            @Override public void payloadReceived(ByteBuf packet, int payloadIndex, int payloadLength) { }
+        });
+        receiver.setPayloadListener(TelephoneEvent.DEFAULT_PAYLOAD_TYPE, new TelephoneEventReceiver(
+            new DtmfListener() {
+                @Override public void dtmfDetected(char dtmf) {
+                    detectTimes[received.length()] = System.nanoTime();
+                    received.append(dtmf);
+                    eventsLatch.countDown();
+                }
+            }));
+        final TelephoneEventSender eventSender = new TelephoneEventSender();
+        final long[] sendTimes = new long[digits.length()];
+        try {
+            byte[] payload = new byte[160];
+            byte[] eventPayload = new byte[TelephoneEvent.PAYLOAD_SIZE];
+            long eventTimestamp = 0;
+            int sentDigits = 0;
+            //the audio and the events are sent from the one thread, as the outgoing stream does
+            for (int i=0; i<200 && eventsLatch.getCount()>0; ++i) {
+                if (i>=10 && i%15==0 && sentDigits<digits.length()) {
+                    sendTimes[sentDigits] = System.nanoTime();
+                    eventSender.add(digits.substring(sentDigits, ++sentDigits));
+                }
+                if (eventSender.nextPacket(eventPayload, payload.length)) {
+                    if (eventSender.isEventStart())
+                        eventTimestamp = sender.getTimestamp();
+                    sender.sendEvent(TelephoneEvent.DEFAULT_PAYLOAD_TYPE, eventSender.isEventStart(), 
+                            eventPayload, 0, eventPayload.length, eventTimestamp);
+                }
+                sender.send(RtpPayloadTypes.PCMU, i==0, payload, 0, payload.length, payload.length);
+                Thread.sleep(20);
+            }
+            assertTrue(eventsLatch.await(2, TimeUnit.SECONDS));
+            assertEquals(digits, received.toString());
+            long maxLatency = 0;
+            long totalLatency = 0;
+            for (int i=0; i<digits.length(); ++i) {
+                long latency = detectTimes[i] - sendTimes[i];
+                maxLatency = Math.max(maxLatency, latency);
+                totalLatency += latency;
+            }
+            System.out.println(String.format("Telephone events latency: avg %.2f ms, max %.2f ms",
+                    totalLatency/digits.length()/1000000., maxLatency/1000000.));
+            //the digit waits for the next packet interval at most
+            assertTrue(maxLatency < TimeUnit.MILLISECONDS.toNanos(100));
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+    
+    @Test
+    public void unknownPayloadTest() throws Exception {
+        RtpSession receiver = createSession(PORT, SessionAddress.ANY_PORT, 5000);
+        RtpSession sender = createSession(PORT+2, PORT, 5000);
+        try {
+            byte[] payload = new byte[10];
+            for (int i=0; i<3; ++i)
+                sender.send(RtpPayloadTypes.G729, false, payload, 0, payload.length, 80);
+            Thread.sleep(200);
+            assertEquals(3, receiver.getPacketsReceived());
+            assertEquals(2, receiver.getUnknownPayloads());
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+    
+    private RtpSession createSession(int localPort, int remotePort, long rtcpInterval) throws Exception {
+        RtpSession session = new RtpSession(group, PooledByteBufAllocator.DEFAULT, localhost, localPort, 
+                localhost, remotePort, rtcpInterval, logger);
+        session.open();
+        return session;
+    }
+}
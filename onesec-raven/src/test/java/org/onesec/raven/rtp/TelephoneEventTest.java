@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.onesec.raven.codec.DtmfListener;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class TelephoneEventTest extends Assert {
+    private final static int INTERVAL = 160;
+
+    @Test
+    public void payloadTest() {
+        byte[] payload = new byte[TelephoneEvent.PAYLOAD_SIZE];
+        TelephoneEvent.write(payload, 0, TelephoneEvent.toEvent('#'), true, 10, 1000);
+        ByteBuf buf = Unpooled.buffer();
+        RtpPacket.writeHeader(buf, true, TelephoneEvent.DEFAULT_PAYLOAD_TYPE, 1, 2, 3);
+        buf.writeBytes(payload);
+        int index = RtpPacket.getPayloadOffset(buf);
+        assertEquals(4, RtpPacket.getPayloadLength(buf));
+        assertEquals(11, TelephoneEvent.getEvent(buf, index));
+        assertTrue(TelephoneEvent.isEnd(buf, index));
+        assertEquals(10, TelephoneEvent.getVolume(buf, index));
+        assertEquals(1000, TelephoneEvent.getDuration(buf, index));
+        assertEquals('#', TelephoneEvent.toDtmf(TelephoneEvent.getEvent(buf, index)));
+        assertEquals(TelephoneEvent.toEvent('a'), TelephoneEvent.toEvent('A'));
+        assertEquals(-1, TelephoneEvent.toEvent('x'));
+        assertEquals(0, TelephoneEvent.toDtmf(16));
+    }
+
+    @Test
+    public void senderTest() {
+        //the tone of 100 ms is 5 packets of 20 ms, the last of them is the first end packet
+        TelephoneEventSender sender = new TelephoneEventSender(100, 60);
+        assertTrue(sender.isIdle());
+        assertFalse(sender.add("1x"));
+        assertTrue(sender.isIdle());
+        assertTrue(sender.add("12"));
+        List<Packet> packets = run(sender, 40);
+        assertTrue(sender.isIdle());
+        assertEquals(14, packets.size());
+        for (int d=0; d<2; ++d) {
+            for (int i=0; i<7; ++i) {
+                Packet packet = packets.get(d*7+i);
+                assertEquals(d==0? 1 : 2, packet.event);
+                assertEquals(i==0, packet.start);
+                assertEquals(i>=4, packet.end);
+                assertEquals(Math.min(i+1, 5)*INTERVAL, packet.duration);
+            }
+        }
+        //the pause between the digits: 3 intervals
+        assertEquals(packets.get(6).tick+4, packets.get(7).tick);
+    }
+
+    @Test
+    public void receiverTest() {
+        final StringBuilder digits = new StringBuilder();
+        TelephoneEventReceiver receiver = new TelephoneEventReceiver(new DtmfListener() {
+            @Override public void dtmfDetected(char dtmf) {
+                digits.append(dtmf);
+            }
+        });
+        //the digit 5 (all packets), the digit 0 (the start packets are lost), the digit 5 again
+        receive(receiver, 1000, 5, false, 160);
+        receive(receiver, 1000, 5, false, 320);
+        receive(receiver, 1000, 5, true, 480);
+        receive(receiver, 1000, 5, true, 480);
+        receive(receiver, 2000, 0, true, 800);
+        receive(receiver, 2000, 0, true, 800);
+        //the late redundant end packet of the first digit
+        receive(receiver, 1000, 5, true, 480);
+        receive(receiver, 3000, 5, false, 160);
+        assertEquals("505", digits.toString());
+        assertEquals(3, receiver.getEventsCount());
+        assertEquals(5, receiver.getDuplicatesCount());
+        //the timestamp wraps around
+        receive(receiver, 0x7FFFFF00L, 9, false, 160);
+        receive(receiver, 0xFFFFFE00L, 9, false, 160);
+        receive(receiver, 0x00000010L, 8, false, 160);
+        receive(receiver, 0xFFFFFE00L, 9, true, 480);
+        assertEquals("505998", digits.toString());
+        //the bad packet
+        ByteBuf buf = Unpooled.buffer();
+        RtpPacket.writeHeader(buf, false, TelephoneEvent.DEFAULT_PAYLOAD_TYPE, 1, 5000, 1);
+        buf.writeShort(0);
+        receiver.payloadReceived(buf, RtpPacket.getPayloadOffset(buf), RtpPacket.getPayloadLength(buf));
+        assertEquals(1, receiver.getBadPacketsCount());
+    }
+
+    @Test
+    public void loopbackTest() {
+        final StringBuilder digits = new StringBuilder();
+        TelephoneEventReceiver receiver = new TelephoneEventReceiver(new DtmfListener() {
+            @Override public void dtmfDetected(char dtmf) {
+                digits.append(dtmf);
+            }
+        });
+        TelephoneEventSender sender = new TelephoneEventSender();
+        sender.add("0123456789*#ABCD");
+        byte[] payload = new byte[TelephoneEvent.PAYLOAD_SIZE];
+        long timestamp = 0;
+        long eventTimestamp = 0;
+        while (!sender.isIdle()) {
+            if (sender.nextPacket(payload, INTERVAL)) {
+                if (sender.isEventStart())
+                    eventTimestamp = timestamp;
+                ByteBuf buf = Unpooled.buffer();
+                RtpPacket.writeHeader(buf, sender.isEventStart(), TelephoneEvent.DEFAULT_PAYLOAD_TYPE, 1,
+                        eventTimestamp, 1);
+                buf.writeBytes(payload);
+                receiver.payloadReceived(buf, RtpPacket.getPayloadOffset(buf), RtpPacket.getPayloadLength(buf));
+            }
+            timestamp += INTERVAL;
+        }
+        assertEquals("0123456789*#ABCD", digits.toString());
+    }
+
+    private static void receive(TelephoneEventReceiver receiver, long timestamp, int event, boolean end,
+            int duration)
+    {
+        byte[] payload = new byte[TelephoneEvent.PAYLOAD_SIZE];
+        TelephoneEvent.write(payload, 0, event, end, TelephoneEvent.DEFAULT_VOLUME, duration);
+        ByteBuf buf = Unpooled.buffer();
+        RtpPacket.writeHeader(buf, false, TelephoneEvent.DEFAULT_PAYLOAD_TYPE, 1, timestamp, 1);
+        buf.writeBytes(payload);
+        receiver.payloadReceived(buf, RtpPacket.getPayloadOffset(buf), RtpPacket.getPayloadLength(buf));
+    }
+
+    private static List<Packet> run(TelephoneEventSender sender, int ticks) {
+        List<Packet> packets = new ArrayList<>();
+        byte[] payload = new byte[TelephoneEvent.PAYLOAD_SIZE];
+        for (int i=0; i<ticks; ++i)
+            if (sender.nextPacket(payload, INTERVAL)) {
+                ByteBuf buf = Unpooled.wrappedBuffer(payload);
+                packets.add(new Packet(i, sender.isEventStart(), TelephoneEvent.getEvent(buf, 0),
+                        TelephoneEvent.isEnd(buf, 0), TelephoneEvent.getDuration(buf, 0)));
+            }
+        return packets;
+    }
+
+    private static class Packet {
+        private final int tick;
+        private final boolean start;
+        private final int event;
+        private final boolean end;
+        private final int duration;
+
+        public Packet(int tick, boolean start, int event, boolean end, int duration) {
+            this.tick = tick;
+            this.start = start;
+            this.event = event;
+            this.end = end;
+            this.duration = duration;
+        }
+    }
+}
@@ -17,11 +17,17 @@ package org.onesec.raven.sip.impl;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
-import org.onesec.raven.sip.SipMessageDecoderState;
+import org.onesec.raven.sip.SipHeader;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipMessageDecoderException;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
 import org.raven.log.LogLevel;
 import org.raven.tree.impl.LoggerHelper;
 import org.slf4j.Logger;
@@ -32,27 +38,7 @@ import org.slf4j.LoggerFactory;
  * @author Mikhail Titov
  */
 public class SipMessageDecoderTest extends Assert {
-    private final Logger logger = LoggerFactory.getLogger(SipMessageDecoderTest.class.getName());
-    private final LoggerHelper loggerHelper = new LoggerHelper(LogLevel.TRACE, "Decoder", "Decoder. ", logger);
-    private final ByteBuf buf = Unpooled.buffer();
-    
-    @Test
-    public void decodeRequestTest() throws Exception {
-//        byte[] crlf = SipUtils.toBytes("\r\n");
-        String req = "INVITE sip:1001@192.168.1.2:5061 SIP/2.0\r\n" +
-            "Via: SIP/2.0/UDP 192.168.1.2:5060;branch=z9hG4bK.A8taTbnGQ;rport\r\n" +
-            "From: <sip:linphone@192.168.1.2>;tag=1gYNrJbv-\r\n" +
-            "To: sip:1001@192.168.1.2\r\n" +
-            "CSeq: 20 INVITE\r\n" +
-            "Call-ID: AVrq~wU7aZ\r\n" +
-            "Max-Forwards: 70\r\n" +
-            "Supported: outbound\r\n" +
-            "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE, SUBSCRIBE, INFO, UPDATE\r\n" +
-            "Content-Type: application/sdp\r\n" +
-            "Content-Length: 584\r\n" +
-            "Contact: <sip:linphone@192.168.1.2>;+sip.instance=\"<urn:uuid:e23e352a-1c52-475c-93c0-8f70f3097725>\"\r\n" +
-            "User-Agent: Linphone/3.9.1 (belle-sip/1.4.2)\r\n" +
-            "\r\n" +
+    private final static String SDP = 
             "v=0\r\n" +
             "o=linphone 3390 358 IN IP4 192.168.1.2\r\n" +
             "s=Talk\r\n" +
@@ -74,11 +60,234 @@ public class SipMessageDecoderTest extends Assert {
             "a=rtpmap:96 VP8/90000\r\n" +
             "a=rtpmap:97 H264/90000\r\n" +
             "a=fmtp:97 profile-level-id=42801F";
-        buf.writeBytes(SipUtils.toBytes(req));
+    private final static String INVITE = 
+            "INVITE sip:1001@192.168.1.2:5061 SIP/2.0\r\n" +
+            "Via: SIP/2.0/UDP 192.168.1.2:5060;branch=z9hG4bK.A8taTbnGQ;rport\r\n" +
+            "From: <sip:linphone@192.168.1.2>;tag=1gYNrJbv-\r\n" +
+            "To: sip:1001@192.168.1.2\r\n" +
+            "CSeq: 20 INVITE\r\n" +
+            "Call-ID: AVrq~wU7aZ\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "Supported: outbound\r\n" +
+            "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE, SUBSCRIBE, INFO, UPDATE\r\n" +
+            "Content-Type: application/sdp\r\n" +
+            "Content-Length: "+SDP.length()+"\r\n" +
+            "Contact: <sip:linphone@192.168.1.2>;+sip.instance=\"<urn:uuid:e23e352a-1c52-475c-93c0-8f70f3097725>\"\r\n" +
+            "User-Agent: Linphone/3.9.1 (belle-sip/1.4.2)\r\n" +
+            "\r\n" +
+            SDP;
+    private final static String OK = 
+            "SIP/2.0 200 OK\r\n" +
+            "Via: SIP/2.0/UDP 192.168.1.2:5060;branch=z9hG4bK.A8taTbnGQ;rport=5060\r\n" +
+            "From: <sip:linphone@192.168.1.2>;tag=1gYNrJbv-\r\n" +
+            "To: sip:1001@192.168.1.2;tag=a6c85cf\r\n" +
+            "CSeq: 20 INVITE\r\n" +
+            "Call-ID: AVrq~wU7aZ\r\n" +
+            "Contact: <sip:1001@192.168.1.3:5061>\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+    private final static String ACK = 
+            "ACK sip:1001@192.168.1.3:5061 SIP/2.0\r\n" +
+            "Via: SIP/2.0/UDP 192.168.1.2:5060;branch=z9hG4bK.Kd83gfs;rport\r\n" +
+            "From: <sip:linphone@192.168.1.2>;tag=1gYNrJbv-\r\n" +
+            "To: sip:1001@192.168.1.2;tag=a6c85cf\r\n" +
+            "CSeq: 20 ACK\r\n" +
+            "Call-ID: AVrq~wU7aZ\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+    private final static String BYE = 
+            "BYE sip:1001@192.168.1.3:5061 SIP/2.0\r\n" +
+            "Via: SIP/2.0/UDP 192.168.1.2:5060;branch=z9hG4bK.sd98DkL;rport\r\n" +
+            "From: <sip:linphone@192.168.1.2>;tag=1gYNrJbv-\r\n" +
+            "To: sip:1001@192.168.1.2;tag=a6c85cf\r\n" +
+            "CSeq: 21 BYE\r\n" +
+            "Call-ID: AVrq~wU7aZ\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+    private final static String REGISTER = 
+            "REGISTER sip:192.168.1.2 SIP/2.0\r\n" +
+            "v: SIP/2.0/UDP 192.168.1.5:5060;branch=z9hG4bK.3kdOw2\r\n" +
+            "f: <sip:1002@192.168.1.2>;tag=8sdk3\r\n" +
+            "t: <sip:1002@192.168.1.2>\r\n" +
+            "CSeq: 3 REGISTER\r\n" +
+            "i: 8f7d6e5c@192.168.1.5\r\n" +
+            "m: <sip:1002@192.168.1.5:5060>;expires=3600\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "l: 0\r\n" +
+            "\r\n";
+    
+    private final Logger logger = LoggerFactory.getLogger(SipMessageDecoderTest.class.getName());
+    private final LoggerHelper loggerHelper = new LoggerHelper(LogLevel.TRACE, "Decoder", "Decoder. ", logger);
+    
+    @Test
+    public void decodeRequestTest() throws Exception {
         SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
-        List<Object> res = new ArrayList<>();
-        SipMessageDecoderState state = decoder.decode(SipMessageDecoderState.INIT, null, buf, res);
-        System.out.println("Decoder state: "+state);
-        System.out.println("MESSAGE:\r\n"+decoder.getMessage().toString());
+        SipMessage message = decoder.decode(toBuf(INVITE));
+        assertTrue(message instanceof SipRequest);
+        SipRequest request = (SipRequest) message;
+        assertEquals("INVITE", request.getMethod());
+        assertEquals(SipMessage.Method.INVITE, request.getKnownMethod());
+        assertEquals("sip:1001@192.168.1.2:5061", request.getRawRequestURI());
+        assertEquals("SIP/2.0", request.getVersion());
+        assertEquals("AVrq~wU7aZ", getValue(request, "Call-ID"));
+        assertEquals("20 INVITE", getValue(request, "CSeq"));
+        assertEquals("application/sdp", request.getContentType());
+        assertEquals(Integer.valueOf(SDP.length()), request.getContentLength());
+        assertEquals(SDP, ((ByteBuf)request.getContent()).toString(StandardCharsets.UTF_8));
+        assertNull(request.headers().get("Subject"));
+    }
+    
+    @Test
+    public void decodeResponseTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        SipMessage message = decoder.decode(toBuf(OK));
+        assertTrue(message instanceof SipResponse);
+        SipResponse response = (SipResponse) message;
+        assertEquals(200, response.getStatusCode());
+        assertEquals("OK", response.getReasonPhrase());
+        assertEquals("AVrq~wU7aZ", getValue(response, "call-id"));
+        assertEquals(Integer.valueOf(0), response.getContentLength());
+        assertNull(response.getContent());
+    }
+    
+    @Test
+    public void compactFormTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        SipMessage message = decoder.decode(toBuf(REGISTER));
+        assertEquals("8f7d6e5c@192.168.1.5", getValue(message, "Call-ID"));
+        assertEquals("8f7d6e5c@192.168.1.5", getValue(message, "i"));
+        assertEquals("SIP/2.0/UDP 192.168.1.5:5060;branch=z9hG4bK.3kdOw2", getValue(message, "Via"));
+        assertEquals(Integer.valueOf(0), message.getContentLength());
+    }
+    
+    @Test
+    public void writeTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        SipRequest request = (SipRequest) decoder.decode(toBuf(ACK));
+        //the header is materialized before the writing, the order of the headers must be kept.
+        //The names of the headers are written in the canonical form (CSeq -> Cseq)
+        assertEquals("20 ACK", getValue(request, "CSeq"));
+        assertEquals(ACK.toLowerCase(), request.writeTo(Unpooled.buffer()).toString(StandardCharsets.UTF_8).toLowerCase());
+        request = (SipRequest) decoder.decode(toBuf(INVITE));
+        assertEquals(INVITE.toLowerCase(), request.writeTo(Unpooled.buffer()).toString(StandardCharsets.UTF_8).toLowerCase());
+    }
+    
+    @Test
+    public void streamTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        byte[] bytes = SipUtils.toBytes(INVITE);
+        ByteBuf buf = Unpooled.buffer();
+        SipMessage message = null;
+        for (int i=0; i<bytes.length; ++i) {
+            assertNull(message);
+            buf.writeByte(bytes[i]);
+            message = decoder.decode(buf);
+            //the channel buffer discards the read bytes between the reads
+            buf.discardReadBytes();
+        }
+        assertNotNull(message);
+        assertEquals("AVrq~wU7aZ", getValue(message, "Call-ID"));
+        assertEquals(SDP, ((ByteBuf)message.getContent()).toString(StandardCharsets.UTF_8));
+        assertFalse(buf.isReadable());
+    }
+    
+    @Test
+    public void pipelinedMessagesTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        //keep-alive line breaks between the messages
+        ByteBuf buf = toBuf(INVITE+OK+"\r\n\r\n"+ACK+"\r\n"+BYE.substring(0, 20));
+        List<Object> out = new ArrayList<>();
+        decoder.decode(null, buf, out);
+        assertEquals(3, out.size());
+        assertEquals("INVITE", ((SipRequest)out.get(0)).getMethod());
+        assertEquals(200, ((SipResponse)out.get(1)).getStatusCode());
+        assertEquals("ACK", ((SipRequest)out.get(2)).getMethod());
+        out.clear();
+        buf.writeBytes(SipUtils.toBytes(BYE.substring(20)));
+        decoder.decode(null, buf, out);
+        assertEquals(1, out.size());
+        assertEquals("21 BYE", getValue((SipMessage)out.get(0), "CSeq"));
+    }
+    
+    @Test
+    public void streamWithoutContentLengthTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        try {
+            decoder.decode(toBuf(REGISTER.replace("l: 0\r\n", "")));
+            fail();
+        } catch (SipMessageDecoderException e) { }
+        //the decoder must be ready for the next message
+        assertEquals("ACK", ((SipRequest)decoder.decode(toBuf(ACK))).getMethod());
+    }
+    
+    @Test
+    public void datagramTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        //without Content-Length the body is the rest of the datagram
+        ByteBuf datagram = toBuf(INVITE.replace("Content-Length: "+SDP.length()+"\r\n", ""));
+        SipMessage message = decoder.decodeDatagram(datagram);
+        assertFalse(datagram.isReadable());
+        assertEquals(SDP, ((ByteBuf)message.getContent()).toString(StandardCharsets.UTF_8));
+        //the bytes after the body are discarded
+        message = decoder.decodeDatagram(toBuf(ACK+"garbage"));
+        assertNull(message.getContent());
+        assertEquals("20 ACK", getValue(message, "CSeq"));
+        assertNull(decoder.decodeDatagram(toBuf("\r\n\r\n")));
+    }
+    
+    @Test
+    public void tooLargeHeadTest() throws Exception {
+        SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper, 256, 1024);
+        StringBuilder req = new StringBuilder(BYE.substring(0, BYE.length()-2));
+        while (req.length()<300)
+            req.append("X-Padding: 0123456789\r\n");
+        ByteBuf buf = toBuf(req.toString());
+        try {
+            decoder.decode(buf);
+            fail();
+        } catch (SipMessageDecoderException e) { }
+        assertFalse(buf.isReadable());
+    }
+    
+    /**
+     * Decodes the INVITE/200/ACK/BYE/REGISTER corpus from the stream and reads the headers used by the
+     * transaction layer (Call-ID, CSeq, Via)
+     */
+    @Test @Ignore
+    public void decodeBenchmark() throws Exception {
+        final String[] corpus = {INVITE, OK, ACK, BYE, REGISTER};
+        final byte[][] bytes = new byte[corpus.length][];
+        for (int i=0; i<corpus.length; ++i)
+            bytes[i] = SipUtils.toBytes(corpus[i]);
+        final SipMessageDecoder decoder = new SipMessageDecoder(loggerHelper);
+        final ByteBuf buf = Unpooled.buffer(4096);
+        final int warmup = 200000;
+        final int count = 1000000;
+        for (int round=0; round<2; ++round) {
+            final int messages = round==0? warmup : count;
+            long headersLength = 0;
+            final long start = System.nanoTime();
+            for (int i=0; i<messages; ++i) {
+                buf.clear().writeBytes(bytes[i%bytes.length]);
+                final SipMessage message = decoder.decode(buf);
+                headersLength += getValue(message, "Call-ID").length() + getValue(message, "CSeq").length() 
+                        + getValue(message, "Via").length();
+            }
+            final long time = System.nanoTime()-start;
+            if (round==1)
+                System.out.println(String.format("Decoded %d messages in %d ms: %d messages/sec (%d)", 
+                        messages, time/1000000, messages*1000000000l/time, headersLength));
+        }
+    }
+    
+    private static String getValue(SipMessage message, String headerName) {
+        SipHeader header = message.headers().get(headerName);
+        return header==null? null : (String) header.getFirstValue();
+    }
+    
+    private static ByteBuf toBuf(String message) {
+        return Unpooled.buffer().writeBytes(SipUtils.toBytes(message));
     }
 }
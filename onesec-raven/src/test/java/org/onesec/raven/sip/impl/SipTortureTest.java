@@ -0,0 +1,327 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Test;
+import org.onesec.raven.sip.SipHeader;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipMessageDecoderException;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import org.raven.log.LogLevel;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The messages of the RFC 4475 (SIP Torture Test Messages)
+ * 
+ * @author Mikhail Titov
+ */
+public class SipTortureTest extends Assert {
+    private final static String WSINV_BODY = 
+            "v=0\r\n" +
+            "o=mhandley 29739 7272939 IN IP4 192.0.2.3\r\n" +
+            "s=-\r\n" +
+            "c=IN IP4 192.0.2.4\r\n" +
+            "t=0 0\r\n" +
+            "m=audio 49217 RTP/AVP 0 12\r\n" +
+            "m=video 3227 RTP/AVP 31\r\n" +
+            "a=rtpmap:31 LPC\r\n";
+    //wsinv: A Short Tortuous INVITE
+    private final static String WSINV = 
+            "INVITE sip:vivekg@chair-dnrc.example.com;unknownparam SIP/2.0\r\n" +
+            "TO :\r\n" +
+            " sip:vivekg@chair-dnrc.example.com ;   tag    = 1918181833n\r\n" +
+            "from   : \"J Rosenberg \\\\\\\"\"       <sip:jdrosen@example.com>\r\n" +
+            "  ;\r\n" +
+            "  tag = 98asjd8\r\n" +
+            "MaX-fOrWaRdS: 0068\r\n" +
+            "Call-ID: wsinv.ndaksdj@192.0.2.1\r\n" +
+            "Content-Length   : "+WSINV_BODY.length()+"\r\n" +
+            "cseq: 0009\r\n" +
+            "  INVITE\r\n" +
+            "Via  : SIP  /   2.0\r\n" +
+            " /UDP\r\n" +
+            "    192.0.2.2;branch=390skdjuw\r\n" +
+            "s :\r\n" +
+            "NewFangledHeader:   newfangled value\r\n" +
+            " continued newfangled value\r\n" +
+            "UnknownHeaderWithUnusualValue: ;;,,;;,;\r\n" +
+            "Content-Type: application/sdp\r\n" +
+            "Route:\r\n" +
+            " <sip:services.example.com;lr;unknownwith=value;unknown-no-value>\r\n" +
+            "v:  SIP  / 2.0  / TCP     spindle.example.com   ;\r\n" +
+            "  branch  =   z9hG4bK9ikj8  ,\r\n" +
+            " SIP  /    2.0   / UDP  192.168.255.111   ; branch=\r\n" +
+            " z9hG4bK30239\r\n" +
+            "m:\"Quoted string \\\"\\\"\" <sip:jdrosen@example.com> ; newparam =\r\n" +
+            "      newvalue ;\r\n" +
+            "  secondparam ; q = 0.33\r\n" +
+            "\r\n" +
+            WSINV_BODY;
+    
+    private final LoggerHelper logger = new LoggerHelper(
+            LogLevel.TRACE, "Decoder", "Decoder. ", LoggerFactory.getLogger(SipTortureTest.class));
+    
+    @Test
+    public void wsinvTest() throws Exception {
+        SipRequest request = (SipRequest) newDecoder().decode(toBuf(WSINV));
+        assertEquals("sip:vivekg@chair-dnrc.example.com;unknownparam", request.getRawRequestURI());
+        assertEquals("sip:vivekg@chair-dnrc.example.com ;   tag    = 1918181833n", getValue(request, "To"));
+        assertEquals("\"J Rosenberg \\\\\\\"\"       <sip:jdrosen@example.com> ; tag = 98asjd8", 
+                getValue(request, "From"));
+        assertEquals("0068", getValue(request, "Max-Forwards"));
+        assertEquals("wsinv.ndaksdj@192.0.2.1", getValue(request, "Call-ID"));
+        assertEquals("0009 INVITE", getValue(request, "CSeq"));
+        assertEquals("newfangled value continued newfangled value", getValue(request, "NewFangledHeader"));
+        assertNotNull(request.headers().get("Subject"));
+        assertEquals("<sip:services.example.com;lr;unknownwith=value;unknown-no-value>", 
+                getValue(request, "Route"));
+        //the values of Via and of its compact form are collected to the one header
+        SipHeader via = request.headers().get("Via");
+        assertEquals(3, via.getValues().size());
+        assertEquals("SIP  /   2.0 /UDP 192.0.2.2;branch=390skdjuw", via.getValues().get(0));
+        assertEquals("SIP  /    2.0   / UDP  192.168.255.111   ; branch= z9hG4bK30239", via.getValues().get(2));
+        assertEquals("application/sdp", request.getContentType());
+        assertEquals(Integer.valueOf(WSINV_BODY.length()), request.getContentLength());
+        assertEquals(WSINV_BODY, ((ByteBuf)request.getContent()).toString(StandardCharsets.UTF_8));
+    }
+    
+    //mcl01: Multiple Content-Length Values
+    @Test(expected = SipMessageDecoderException.class)
+    public void mcl01Test() throws Exception {
+        newDecoder().decode(toBuf(
+                "OPTIONS sip:user@example.com SIP/2.0\r\n" +
+                "Via: SIP/2.0/UDP host5.example.net;branch=z9hG4bK293423\r\n" +
+                "To: sip:user@example.com\r\n" +
+                "From: sip:other@example.net;tag=3923942\r\n" +
+                "Call-ID: mcl01.fhn2323orihawfdoa3o4r52o3irsdf\r\n" +
+                "CSeq: 15932 OPTIONS\r\n" +
+                "Content-Length: 13\r\n" +
+                "Max-Forwards: 60\r\n" +
+                "Content-Length: 5\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "There's no way to know how many octets are supposed to be here.\r\n"));
+    }
+    
+    //ncl: Negative Content-Length
+    @Test(expected = SipMessageDecoderException.class)
+    public void nclTest() throws Exception {
+        newDecoder().decodeDatagram(toBuf(
+                "INVITE sip:user@example.com SIP/2.0\r\n" +
+                "Max-Forwards: 254\r\n" +
+                "To: sip:j.user@example.com\r\n" +
+                "From: sip:caller@example.net;tag=32394234\r\n" +
+                "Call-ID: ncl.0ha0isndaksdj2193423r542w35\r\n" +
+                "CSeq: 0 INVITE\r\n" +
+                "Via: SIP/2.0/UDP 192.0.2.53;branch=z9hG4bKkdjuw\r\n" +
+                "Contact: <sip:caller@example53.example.net>\r\n" +
+                "Content-Type: application/sdp\r\n" +
+                "Content-Length: -999\r\n" +
+                "\r\n" +
+                WSINV_BODY));
+    }
+    
+    //scalar02: Request Scalar Fields with Overlarge Values
+    @Test(expected = SipMessageDecoderException.class)
+    public void scalar02Test() throws Exception {
+        newDecoder().decode(toBuf(
+                "REGISTER sip:example.com SIP/2.0\r\n" +
+                "Via: SIP/2.0/TCP host129.example.com;branch=z9hG4bK342sdfoi3\r\n" +
+                "To: <sip:user@example.com>\r\n" +
+                "From: <sip:user@example.com>;tag=239232jh3\r\n" +
+                "CSeq: 36893488147419103232 REGISTER\r\n" +
+                "Call-ID: scalar02.23o0pd9vanlq3wnrlnewofjas9ui32\r\n" +
+                "Max-Forwards: 300\r\n" +
+                "Expires: 1000000000000000000000000000000000000000000000000000000000000\r\n" +
+                "Contact: <sip:user@host129.example.com>\r\n" +
+                "  ;expires=280297596632815\r\n" +
+                "Content-Length: 18446744073709551616\r\n" +
+                "\r\n"));
+    }
+    
+    //clerr: Content-Length Larger Than Message
+    @Test(expected = SipMessageDecoderException.class)
+    public void clerrTest() throws Exception {
+        newDecoder().decodeDatagram(toBuf(
+                "INVITE sip:user@example.com SIP/2.0\r\n" +
+                "Max-Forwards: 80\r\n" +
+                "To: sip:j.user@example.com\r\n" +
+                "From: sip:caller@example.net;tag=93942939o2\r\n" +
+                "Contact: <sip:caller@hungry.example.net>\r\n" +
+                "Call-ID: clerr.0ha0isndaksdjweiafasdk3\r\n" +
+                "CSeq: 8 INVITE\r\n" +
+                "Via: SIP/2.0/UDP host5.example.com;branch=z9hG4bK-39234-23523\r\n" +
+                "Content-Type: application/sdp\r\n" +
+                "Content-Length: 9999\r\n" +
+                "\r\n" +
+                WSINV_BODY));
+    }
+    
+    //badvers: Unknown Protocol Version
+    @Test(expected = SipMessageDecoderException.class)
+    public void badversTest() throws Exception {
+        newDecoder().decode(toBuf(
+                "OPTIONS sip:t.watson@example.org SIP/7.0\r\n" +
+                "Via:     SIP/7.0/UDP c.example.com;branch=z9hG4bKkdjuw\r\n" +
+                "Max-Forwards:     70\r\n" +
+                "From:    A. Bell <sip:a.g.bell@example.com>;tag=qweoiqpe\r\n" +
+                "To:      T. Watson <sip:t.watson@example.org>\r\n" +
+                "Call-ID: badvers.31417@c.example.com\r\n" +
+                "CSeq:    1 OPTIONS\r\n" +
+                "l: 0\r\n" +
+                "\r\n"));
+    }
+    
+    //lwsruri, lwsstart: Extra Whitespace in the Start Line
+    @Test
+    public void lwsStartLineTest() throws Exception {
+        final String head = 
+                "Via: SIP/2.0/UDP host1.example.com;branch=z9hG4bK23d\r\n" +
+                "Max-Forwards: 70\r\n" +
+                "From: Caller <sip:caller@example.com>;tag=323\r\n" +
+                "To: <sip:user@example.com>\r\n" +
+                "Call-ID: lwsstart.dfknq234oi243099adsdfnawe3@example.com\r\n" +
+                "CSeq: 1 OPTIONS\r\n" +
+                "l: 0\r\n" +
+                "\r\n";
+        final SipMessageDecoder decoder = newDecoder();
+        for (String line: new String[]{
+                "OPTIONS  sip:user@example.com SIP/2.0\r\n", 
+                "OPTIONS sip:user@example.com  SIP/2.0\r\n",
+                "OPTIONS sip:user@example.com; lr SIP/2.0\r\n",
+                "OPTIONS sip:user@example.com\tSIP/2.0\r\n"})
+        {
+            try {
+                decoder.decode(toBuf(line+head));
+                fail(line);
+            } catch (SipMessageDecoderException e) { }
+        }
+        assertNotNull(decoder.decode(toBuf("OPTIONS sip:user@example.com SIP/2.0\r\n"+head)));
+    }
+    
+    //the invalid Request-URI is detected on the first access, the rest of the message is decoded
+    @Test
+    public void invalidRequestUriTest() throws Exception {
+        SipRequest request = (SipRequest) newDecoder().decode(toBuf(
+                "OPTIONS nosuchscheme://user@example.com SIP/2.0\r\n" +
+                "Call-ID: baduri@example.com\r\n" +
+                "CSeq: 1 OPTIONS\r\n" +
+                "Content-Length: 0\r\n" +
+                "\r\n"));
+        assertEquals("baduri@example.com", getValue(request, "Call-ID"));
+        try {
+            request.getRequestURI();
+            fail();
+        } catch (Exception e) { }
+    }
+    
+    //dblreq: Extra Trailing Octets in a UDP Datagram
+    @Test
+    public void dblreqTest() throws Exception {
+        ByteBuf datagram = toBuf(
+                "REGISTER sip:example.com SIP/2.0\r\n" +
+                "To: sip:j.user@example.com\r\n" +
+                "From: sip:j.user@example.com;tag=43251j3j324\r\n" +
+                "Max-Forwards: 8\r\n" +
+                "I: dblreq.0ha0isndaksdj99sdfafnl3lk233412\r\n" +
+                "Contact: sip:j.user@host.example.com\r\n" +
+                "CSeq: 8 REGISTER\r\n" +
+                "Via: SIP/2.0/UDP 192.0.2.125;branch=z9hG4bKkdjuw23492\r\n" +
+                "Content-Length: 0\r\n" +
+                "\r\n" +
+                "INVITE sip:joe@example.com SIP/2.0\r\n" +
+                "t: sip:joe@example.com\r\n" +
+                "From: sip:caller@example.net;tag=141334\r\n" +
+                "Max-Forwards: 8\r\n" +
+                "Call-ID: dblreq.0ha0isnda977644900765@192.0.2.15\r\n" +
+                "CSeq: 8 INVITE\r\n" +
+                "Via: SIP/2.0/UDP 192.0.2.15;branch=z9hG4bKkdjuw380234\r\n" +
+                "Content-Type: application/sdp\r\n" +
+                "Content-Length: "+WSINV_BODY.length()+"\r\n" +
+                "\r\n" +
+                WSINV_BODY);
+        SipRequest request = (SipRequest) newDecoder().decodeDatagram(datagram);
+        assertEquals("REGISTER", request.getMethod());
+        assertEquals("dblreq.0ha0isndaksdj99sdfafnl3lk233412", getValue(request, "Call-ID"));
+        assertNull(request.getContent());
+        assertFalse(datagram.isReadable());
+    }
+    
+    //unreason, noreason: Unusual and Empty Reason Phrase
+    @Test
+    public void reasonPhraseTest() throws Exception {
+        final String head = 
+                "Via: SIP/2.0/UDP 192.0.2.198;branch=z9hG4bK1324923\r\n" +
+                "Call-ID: unreason.1234ksdfak3j2erwedfsASdf\r\n" +
+                "CSeq: 35 INVITE\r\n" +
+                "From: sip:user@example.com;tag=11141343\r\n" +
+                "To: sip:user@example.edu;tag=2229\r\n" +
+                "Content-Length: 0\r\n" +
+                "\r\n";
+        final String reason = "= 2**3 * 5**2 \u043d\u043e \u0441\u0442\u043e \u0434\u0435\u0432\u044f\u043d\u043e\u0441\u0442\u043e"
+                + " \u0434\u0435\u0432\u044f\u0442\u044c";
+        final SipMessageDecoder decoder = newDecoder();
+        SipResponse response = (SipResponse) decoder.decode(toBuf("SIP/2.0 200 "+reason+"\r\n"+head));
+        assertEquals(200, response.getStatusCode());
+        assertEquals(reason, response.getReasonPhrase());
+        response = (SipResponse) decoder.decode(toBuf("SIP/2.0 100 \r\n"+head));
+        assertEquals(100, response.getStatusCode());
+        assertEquals("", response.getReasonPhrase());
+        try {
+            decoder.decode(toBuf("SIP/2.0 20 OK\r\n"+head));
+            fail();
+        } catch (SipMessageDecoderException e) { }
+    }
+    
+    //longreq: Long Values in Header Fields
+    @Test
+    public void longHeadersTest() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        while (longValue.length()<2000)
+            longValue.append("longreq.one");
+        StringBuilder req = new StringBuilder("INVITE sip:user@example.com SIP/2.0\r\n")
+                .append("To: \"I have a user name of ").append(longValue).append("\" <sip:user@example.com>\r\n")
+                .append("Call-ID: longreq.onereallyreallyreallyreallyreallyreallyreallylongcallid\r\n")
+                .append("CSeq: 3882340 INVITE\r\n");
+        for (int i=0; i<34; ++i)
+            req.append("Via: SIP/2.0/TCP sip").append(i).append(".example.com;branch=z9hG4bK").append(i).append("\r\n");
+        req.append("Content-Length: 0\r\n\r\n");
+        SipMessage message = newDecoder().decode(toBuf(req.toString()));
+        assertEquals("\"I have a user name of "+longValue+"\" <sip:user@example.com>", getValue(message, "To"));
+        SipHeader via = message.headers().get("Via");
+        assertEquals(34, via.getValues().size());
+        assertEquals("SIP/2.0/TCP sip33.example.com;branch=z9hG4bK33", via.getValues().get(33));
+    }
+    
+    private SipMessageDecoder newDecoder() {
+        return new SipMessageDecoder(logger);
+    }
+    
+    private static String getValue(SipMessage message, String headerName) {
+        SipHeader header = message.headers().get(headerName);
+        return header==null? null : (String) header.getFirstValue();
+    }
+    
+    private static ByteBuf toBuf(String message) {
+        return Unpooled.buffer().writeBytes(message.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sip.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.sip.SipClientTransaction;
+import org.onesec.raven.sip.SipDialog;
+import org.onesec.raven.sip.SipHeaders.Names;
+import org.onesec.raven.sip.SipMessage;
+import org.onesec.raven.sip.SipMessageException;
+import org.onesec.raven.sip.SipRequest;
+import org.onesec.raven.sip.SipResponse;
+import org.onesec.raven.sip.SipServerTransaction;
+import org.onesec.raven.sip.SipTransaction;
+import org.onesec.raven.sip.SipTransactionUser;
+import org.onesec.raven.sip.SipTransport;
+import org.raven.log.LogLevel;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+import static org.onesec.raven.sip.SipTransaction.State.*;
+import static org.onesec.raven.sip.impl.SipMessageFactory.*;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class SipTransactionLayerTest extends Assert {
+    private final static long T1 = 20;
+    private final static InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 5060);
+    
+    private final LoggerHelper logger = new LoggerHelper(
+            LogLevel.WARN, "Sip", "Sip. ", LoggerFactory.getLogger(SipTransactionLayerTest.class));
+    private final SipMessageFactory factory = new SipMessageFactory();
+    private HashedWheelTimer timer;
+    
+    @Before
+    public void prepare() {
+        timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+    }
+    
+    @After
+    public void finish() {
+        timer.stop();
+    }
+    
+    @Test
+    public void inviteClientTimeoutTest() throws Exception {
+        TestTransport transport = new TestTransport();
+        TestUser user = new TestUser();
+        SipTransactionLayer layer = createLayer(transport, user);
+        SipClientTransaction transaction = layer.sendRequest(createRequest("INVITE", "call-1", 1), REMOTE);
+        assertEquals(CALLING, transaction.getState());
+        assertSame(transaction, user.timeouts.poll(200*T1, TimeUnit.MILLISECONDS));
+        assertSame(transaction, user.terminated.poll(10*T1, TimeUnit.MILLISECONDS));
+        assertEquals(TERMINATED, transaction.getState());
+        //timer A fires after T1, 3*T1, 7*T1 ... 63*T1, timer B after 64*T1
+        assertTrue(transaction.getRetransmissionsCount()>=5 && transaction.getRetransmissionsCount()<=6);
+        assertEquals(transaction.getRetransmissionsCount()+1, transport.sent.size());
+        assertEquals(0, layer.getActiveTransactionsCount());
+        assertEquals(1, layer.getTimeoutsCount());
+    }
+    
+    @Test
+    public void inviteClientRejectedTest() throws Exception {
+        TestTransport transport = new TestTransport();
+        TestUser user = new TestUser();
+        SipTransactionLayer layer = createLayer(transport, user);
+        SipRequest invite = createRequest("INVITE", "call-1", 1);
+        SipClientTransaction transaction = layer.sendRequest(invite, REMOTE);
+        assertSame(invite, transport.sent.poll());
+        
+        layer.receive(createResponse(invite, 180, "Ringing", "uas"), REMOTE);
+        assertEquals(PROCEEDING, transaction.getState());
+        assertEquals(180, user.responses.poll().getStatusCode());
+        //no retransmissions after the provisional response
+        Thread.sleep(4*T1);
+        assertTrue(transport.sent.isEmpty());
+        
+        SipResponse busy = createResponse(invite, 486, "Busy Here", "uas");
+        layer.receive(busy, REMOTE);
+        assertEquals(COMPLETED, transaction.getState());
+        assertSame(busy, user.responses.poll());
+        SipRequest ack = (SipRequest) transport.sent.poll();
+        assertEquals(SipMessage.Method.ACK, ack.getKnownMethod());
+        assertEquals(getBranch(invite), getBranch(ack));
+        assertEquals("1 ACK", getHeader(ack, CSEQ));
+        assertEquals("uas", getTag(ack, Names.To));
+        //the retransmission of the final response is answered with the same ACK and is not passed to the user
+        layer.receive(busy, REMOTE);
+        assertSame(ack, transport.sent.poll());
+        assertNull(user.responses.poll());
+        assertEquals(1, layer.getRetransmissionsCount());
+    }
+    
+    @Test
+    public void nonInviteServerTest() throws Exception {
+        TestTransport transport = new TestTransport();
+        TestUser user = new TestUser();
+        SipTransactionLayer layer = createLayer(transport, user);
+        SipRequest bye = createRequest("BYE", "call-1", 2);
+        layer.receive(bye, REMOTE);
+        SipServerTransaction transaction = user.requests.poll();
+        assertNotNull(transaction);
+        assertEquals(TRYING, transaction.getState());
+        //the retransmission in the TRYING state is discarded
+        layer.receive(bye, REMOTE);
+        assertNull(user.requests.poll());
+        assertTrue(transport.sent.isEmpty());
+        
+        SipResponse ok = createResponse(bye, 200, "OK", null);
+        transaction.sendResponse(ok);
+        assertEquals(COMPLETED, transaction.getState());
+        assertSame(ok, transport.sent.poll());
+        layer.receive(bye, REMOTE);
+        assertSame(ok, transport.sent.poll());
+        assertNull(user.requests.poll());
+        try {
+            transaction.sendResponse(createResponse(bye, 500, "Server Internal Error", null));
+            fail();
+        } catch (SipMessageException e) {}
+        //timer J
+        assertSame(transaction, user.terminated.poll(200*T1, TimeUnit.MILLISECONDS));
+        assertEquals(0, layer.getActiveTransactionsCount());
+        assertEquals(1, layer.getTransactionsCount());
+    }
+    
+    @Test
+    public void inviteServerRejectedTest() throws Exception {
+        TestTransport transport = new TestTransport();
+        TestUser user = new TestUser();
+        SipTransactionLayer layer = createLayer(transport, user);
+        SipRequest invite = createRequest("INVITE", "call-1", 1);
+        layer.receive(invite, REMOTE);
+        SipServerTransaction transaction = user.requests.poll();
+        assertEquals(100, ((SipResponse)transport.sent.poll()).getStatusCode());
+        layer.receive(invite, REMOTE);
+        assertEquals(100, ((SipResponse)transport.sent.poll()).getStatusCode());
+        assertNull(user.requests.poll());
+        
+        SipResponse busy = createResponse(invite, 486, "Busy Here", "uas");
+        transaction.sendResponse(busy);
+        assertEquals(COMPLETED, transaction.getState());
+        assertSame(busy, transport.sent.poll());
+        //timer G
+        assertSame(busy, transport.sent.poll(10*T1, TimeUnit.MILLISECONDS));
+        
+        SipRequest ack = createRequest("ACK", "call-1", 1);
+        setHeader(ack, "Via", getHeader(invite, "Via"));
+        layer.receive(ack, REMOTE);
+        assertEquals(CONFIRMED, transaction.getState());
+        assertNull(user.strays.poll());
+        Thread.sleep(2*T1);
+        transport.sent.clear();
+        Thread.sleep(8*T1);
+        assertTrue(transport.sent.isEmpty());
+        //timer I
+        assertSame(transaction, user.terminated.poll(50*T1, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void inviteOkRetransmissionTest() throws Exception {
+        TestTransport transport = new TestTransport();
+        TestUser user = new TestUser();
+        SipTransactionLayer layer = createLayer(transport, user);
+        SipRequest invite = createRequest("INVITE", "call-1", 1);
+        layer.receive(invite, REMOTE);
+        SipServerTransaction transaction = user.requests.poll();
+        transport.sent.clear();
+        
+        SipResponse ok = createResponse(invite, 200, "OK", "uas");
+        layer.sendInviteOk(transaction, ok);
+        assertEquals(ACCEPTED, transaction.getState());
+        assertSame(ok, transport.sent.poll());
+        assertSame(ok, transport.sent.poll(10*T1, TimeUnit.MILLISECONDS));
+        //the retransmission of INVITE is absorbed in the ACCEPTED state
+        layer.receive(invite, REMOTE);
+        assertNull(user.requests.poll());
+        
+        //ACK for 2xx has its own branch and stops the retransmissions
+        SipRequest ack = createRequest("ACK", "call-1", 1);
+        layer.receive(ack, REMOTE);
+        assertSame(ack, user.strays.poll());
+        Thread.sleep(2*T1);
+        transport.sent.clear();
+        Thread.sleep(8*T1);
+        assertTrue(transport.sent.isEmpty());
+        //timer L
+        assertSame(transaction, user.terminated.poll(200*T1, TimeUnit.MILLISECONDS));
+        assertNull(user.timeouts.poll());
+    }
+    
+    @Test
+    public void loopbackLoadTest() throws Exception {
+        try (CallsGenerator generator = new CallsGenerator(T1, 0.05)) {
+            generator.start(200, 20);
+            assertTrue(generator.await(60, TimeUnit.SECONDS));
+            assertEquals(200, generator.completed.get());
+            assertEquals(0, generator.failed.get());
+            assertTrue(generator.getRetransmissionsCount()>0);
+            assertEquals(0, generator.uacDialogs.getActiveDialogsCount());
+            assertEquals(0, generator.uasDialogs.getActiveDialogsCount());
+            assertEquals(0, generator.uacDialogs.getMemoryUsage());
+            assertEquals(200, generator.uasDialogs.getDialogsCount());
+        }
+    }
+    
+    /**
+     * Runs the calls through the loopback UDP with the RFC 3261 timers and prints the rate of the calls, the 
+     * count of the retransmissions and the heap used by the established call (the dialogs and the transactions
+     * of the both sides)
+     */
+    @Test @Ignore
+    public void loopbackLoadBenchmark() throws Exception {
+        final int calls = 20000;
+        final int heldCalls = 10000;
+        for (double loss: new double[]{0, 0.01, 0.05}) {
+            try (CallsGenerator generator = new CallsGenerator(SipTransactionLayer.T1, loss)) {
+                long start = System.nanoTime();
+                generator.start(calls, 500);
+                assertTrue(generator.await(10, TimeUnit.MINUTES));
+                long time = System.nanoTime()-start;
+                System.out.println(String.format(
+                        "Loss %.0f%%: %d calls/sec, completed: %d, failed: %d, retransmissions: %d, "
+                        + "dropped datagrams: %d", 
+                        loss*100, calls*TimeUnit.SECONDS.toNanos(1)/time, generator.completed.get(), 
+                        generator.failed.get(), generator.getRetransmissionsCount(), 
+                        generator.getDroppedCount()));
+            }
+        }
+        try (CallsGenerator generator = new CallsGenerator(SipTransactionLayer.T1, 0)) {
+            generator.hold = true;
+            long usedBefore = getUsedHeap();
+            generator.start(heldCalls, heldCalls);
+            while (generator.established.get()<heldCalls)
+                Thread.sleep(100);
+            long used = getUsedHeap()-usedBefore;
+            System.out.println(String.format(
+                    "Established calls: %d, heap per call: %d bytes, estimated size of the dialog: %d bytes", 
+                    heldCalls, used/heldCalls, 
+                    generator.uacDialogs.getMemoryUsage()/generator.uacDialogs.getActiveDialogsCount()));
+            generator.release();
+            assertTrue(generator.await(10, TimeUnit.MINUTES));
+        }
+    }
+    
+    private static long getUsedHeap() throws InterruptedException {
+        for (int i=0; i<3; ++i) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory();
+    }
+    
+    private SipTransactionLayer createLayer(SipTransport transport, SipTransactionUser user) {
+        return new SipTransactionLayer(transport, user, timer, logger, T1, 8*T1, 10*T1, 0);
+    }
+    
+    private SipRequestImpl createRequest(String method, String callId, long seqNumber) {
+        return createRequest(method, "sip:uas@127.0.0.1", callId, seqNumber);
+    }
+    
+    private SipRequestImpl createRequest(String method, String uri, String callId, long seqNumber) {
+        SipRequestImpl request = SipMessageFactory.createRequest(method, uri);
+        setHeader(request, "Via", "SIP/2.0/UDP 127.0.0.1:5070;branch="+factory.generateBranch());
+        setHeader(request, "From", "<sip:uac@127.0.0.1>;tag=uac");
+        setHeader(request, "To", "<sip:uas@127.0.0.1>");
+        setHeader(request, "Call-ID", callId);
+        setHeader(request, CSEQ, seqNumber+" "+method);
+        setHeader(request, MAX_FORWARDS, "70");
+        setHeader(request, "Content-Length", "0");
+        return request;
+    }
+    
+    private static SipResponse createResponse(SipRequest request, int code, String reason, String toTag) {
+        SipResponseImpl response = SipMessageFactory.createResponse(request, code, reason);
+        if (toTag!=null)
+            setToTag(response, toTag);
+        return response;
+    }
+    
+    private static class TestTransport implements SipTransport {
+        private final BlockingQueue<SipMessage> sent = new LinkedBlockingQueue<>();
+
+        @Override
+        public boolean isReliable() {
+            return false;
+        }
+
+        @Override
+        public void send(SipMessage message, InetSocketAddress destination) throws Exception {
+            sent.add(message);
+        }
+    }
+    
+    private static class TestUser implements SipTransactionUser {
+        private final BlockingQueue<SipServerTransaction> requests = new LinkedBlockingQueue<>();
+        private final BlockingQueue<SipResponse> responses = new LinkedBlockingQueue<>();
+        private final BlockingQueue<SipMessage> strays = new LinkedBlockingQueue<>();
+        private final BlockingQueue<SipTransaction> timeouts = new LinkedBlockingQueue<>();
+        private final BlockingQueue<SipTransaction> terminated = new LinkedBlockingQueue<>();
+
+        @Override
+        public void processRequest(SipServerTransaction transaction, SipRequest request) {
+            requests.add(transaction);
+        }
+
+        @Override
+        public void processResponse(SipClientTransaction transaction, SipResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void processStray(SipMessage message, InetSocketAddress source) {
+            strays.add(message);
+        }
+
+        @Override
+        public void processTimeout(SipTransaction transaction) {
+            timeouts.add(transaction);
+        }
+
+        @Override
+        public void processTransportError(SipTransaction transaction, Exception error) {
+        }
+
+        @Override
+        public void transactionTerminated(SipTransaction transaction) {
+            terminated.add(transaction);
+        }
+    }
+    
+    /**
+     * The UDP transport bound to the loopback interface. The datagrams are dropped with the given probability 
+     * on send, the received datagrams are decoded and passed to the layer in the receiver thread.
+     */
+    private class LoopbackTransport implements SipTransport, Runnable {
+        private final DatagramChannel channel;
+        private final SipMessageDecoder decoder = new SipMessageDecoder(logger);
+        private final double loss;
+        private final Random random = new Random(1);
+        private final AtomicLong droppedCount = new AtomicLong();
+        private volatile SipTransactionLayer layer;
+
+        public LoopbackTransport(double loss) throws IOException {
+            this.loss = loss;
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4*1024*1024);
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+        
+        public InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) channel.getLocalAddress();
+        }
+        
+        public void start(SipTransactionLayer layer) {
+            this.layer = layer;
+            new Thread(this, "Loopback SIP transport").start();
+        }
+
+        @Override
+        public boolean isReliable() {
+            return false;
+        }
+
+        @Override
+        public void send(SipMessage message, InetSocketAddress destination) throws Exception {
+            if (loss>0 && random.nextDouble()<loss) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            ByteBuf buf = Unpooled.buffer(1024);
+            if (message instanceof SipRequest)
+                ((SipRequest)message).writeTo(buf);
+            else
+                ((SipResponse)message).writeTo(buf);
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            channel.send(ByteBuffer.wrap(bytes), destination);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            while (channel.isOpen()) 
+                try {
+                    buffer.clear();
+                    SocketAddress source = channel.receive(buffer);
+                    buffer.flip();
+                    SipMessage message = decoder.decodeDatagram(
+                            Unpooled.wrappedBuffer(buffer.array(), 0, buffer.limit()));
+                    if (message!=null)
+                        layer.receive(message, (InetSocketAddress) source);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+        }
+        
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    private class Call {
+        private final SipRequest invite;
+        private SipDialog dialog;
+        private SipRequest ack;
+
+        public Call(SipRequest invite) {
+            this.invite = invite;
+        }
+    }
+    
+    /**
+     * Makes the calls (INVITE, ACK, BYE) from the UAC layer to the UAS layer through the loopback transports
+     */
+    private class CallsGenerator implements AutoCloseable {
+        private final long t1;
+        private final LoopbackTransport uacTransport;
+        private final LoopbackTransport uasTransport;
+        private final InetSocketAddress uasAddress;
+        private final SipTransactionLayer uacLayer;
+        private final SipTransactionLayer uasLayer;
+        private final SipDialogRegistry uacDialogs = new SipDialogRegistry();
+        private final SipDialogRegistry uasDialogs = new SipDialogRegistry();
+        private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<>();
+        //ACK for the retransmissions of 2xx received after the end of the call
+        private final ConcurrentHashMap<String, SipRequest> acks = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<Call> heldCalls = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger established = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile boolean hold = false;
+        private volatile Semaphore permits;
+        private volatile CountDownLatch done;
+
+        public CallsGenerator(long t1, double loss) throws IOException {
+            this.t1 = t1;
+            uacTransport = new LoopbackTransport(loss);
+            uasTransport = new LoopbackTransport(loss);
+            uasAddress = uasTransport.getAddress();
+            uacLayer = new SipTransactionLayer(uacTransport, new Uac(), timer, logger, t1, 8*t1, 10*t1, 0);
+            uasLayer = new SipTransactionLayer(uasTransport, new Uas(), timer, logger, t1, 8*t1, 10*t1, 0);
+            uacTransport.start(uacLayer);
+            uasTransport.start(uasLayer);
+        }
+        
+        /**
+         * Starts the calls keeping at most <b>concurrency</b> calls at once
+         */
+        public void start(int count, int concurrency) throws Exception {
+            permits = new Semaphore(concurrency);
+            done = new CountDownLatch(count);
+            for (int i=0; i<count; ++i) {
+                permits.acquire();
+                SipRequest invite = createRequest(SipRequest.Method.INVITE.name(), getUasUri(), 
+                        factory.generateCallId("127.0.0.1"), 1);
+                Call call = new Call(invite);
+                calls.put(getCallId(invite), call);
+                uacLayer.sendRequest(invite, uasAddress);
+            }
+        }
+        
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+        
+        /**
+         * Ends the calls held after the establishment
+         */
+        public void release() throws Exception {
+            hold = false;
+            for (Call call=heldCalls.poll(); call!=null; call=heldCalls.poll())
+                sendBye(call);
+        }
+        
+        private String getUasUri() {
+            return "sip:uas@"+uasAddress.getHostString()+":"+uasAddress.getPort();
+        }
+        
+        public long getRetransmissionsCount() {
+            return uacLayer.getRetransmissionsCount()+uasLayer.getRetransmissionsCount();
+        }
+        
+        public long getDroppedCount() {
+            return uacTransport.droppedCount.get()+uasTransport.droppedCount.get();
+        }
+
+        @Override
+        public void close() throws Exception {
+            uacLayer.stop();
+            uasLayer.stop();
+            uacTransport.close();
+            uasTransport.close();
+        }
+        
+        private void callEstablished(Call call, SipResponse response) throws Exception {
+            synchronized(call) {
+                if (call.ack!=null) {
+                    uacLayer.sendStateless(call.ack, uasAddress);
+                    return;
+                }
+                call.dialog = uacDialogs.processInviteResponse(call.invite, response);
+                call.ack = createInDialogRequest(call, response, SipRequest.Method.ACK.name(), 
+                        getCSeqNumber(call.invite));
+                acks.put(getCallId(response), call.ack);
+                uacLayer.sendStateless(call.ack, uasAddress);
+                established.incrementAndGet();
+                if (hold)
+                    heldCalls.add(call);
+                else
+                    sendBye(call);
+            }
+        }
+        
+        private void sendBye(Call call) throws Exception {
+            SipRequest bye = createInDialogRequest(call, call.dialog.getRemoteTag(), SipRequest.Method.BYE.name(), 
+                    call.dialog.nextLocalSeqNumber());
+            uacLayer.sendRequest(bye, uasAddress);
+        }
+        
+        private SipRequest createInDialogRequest(Call call, SipResponse response, String method, long seqNumber) {
+            return createInDialogRequest(call, getTag(response, Names.To), method, seqNumber);
+        }
+        
+        private SipRequest createInDialogRequest(Call call, String remoteTag, String method, long seqNumber) {
+            SipRequestImpl request = createRequest(method, call.dialog.getRemoteTarget(), call.dialog.getCallId(), 
+                    seqNumber);
+            setHeader(request, "To", getHeader(call.invite, "To"));
+            setToTag(request, remoteTag);
+            return request;
+        }
+        
+        private void endCall(Call call, boolean success) {
+            final String callId = getCallId(call.invite);
+            if (!calls.remove(callId, call))
+                return;
+            if (call.dialog!=null)
+                uacDialogs.terminate(call.dialog);
+            if (success)
+                completed.incrementAndGet();
+            else
+                failed.incrementAndGet();
+            timer.newTimeout(new TimerTask() {
+                @Override public void run(Timeout timeout) throws Exception {
+                    acks.remove(callId);
+                }
+            }, 64*t1, TimeUnit.MILLISECONDS);
+            permits.release();
+            done.countDown();
+        }
+        
+        private class Uac implements SipTransactionUser {
+            @Override
+            public void processRequest(SipServerTransaction transaction, SipRequest request) {
+            }
+
+            @Override
+            public void processResponse(SipClientTransaction transaction, SipResponse response) {
+                final Call call = calls.get(getCallId(response));
+                final int code = response.getStatusCode();
+                try {
+                    if (transaction.getRequest().getKnownMethod()==SipRequest.Method.INVITE) {
+                        if (code>=200 && code<300) {
+                            if (call!=null)
+                                callEstablished(call, response);
+                            else
+                                processStray(response, uasAddress);
+                        } else if (code>=300 && call!=null)
+                            endCall(call, false);
+                    } else if (code>=200 && call!=null)
+                        endCall(call, code<300);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    if (call!=null)
+                        endCall(call, false);
+                }
+            }
+
+            @Override
+            public void processStray(SipMessage message, InetSocketAddress source) {
+                final SipRequest ack = acks.get(getCallId(message));
+                if (ack!=null && message instanceof SipResponse)
+                    try {
+                        uacLayer.sendStateless(ack, uasAddress);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+            }
+
+            @Override
+            public void processTimeout(SipTransaction transaction) {
+                final Call call = calls.get(getCallId(transaction.getRequest()));
+                if (call!=null)
+                    endCall(call, false);
+            }
+
+            @Override
+            public void processTransportError(SipTransaction transaction, Exception error) {
+                processTimeout(transaction);
+            }
+
+            @Override
+            public void transactionTerminated(SipTransaction transaction) {
+            }
+        }
+        
+        private class Uas implements SipTransactionUser {
+            @Override
+            public void processRequest(SipServerTransaction transaction, SipRequest request) {
+                try {
+                    switch (request.getKnownMethod()) {
+                        case INVITE:
+                            final String tag = factory.generateTag();
+                            transaction.sendResponse(createResponse(request, 180, "Ringing", tag));
+                            final SipResponse ok = createResponse(request, 200, "OK", tag);
+                            setHeader(ok, "Contact", "<"+getUasUri()+">");
+                            uasDialogs.createServerDialog(request, ok);
+                            uasLayer.sendInviteOk(transaction, ok);
+                            break;
+                        case BYE:
+                            final SipDialog dialog = uasDialogs.find(request);
+                            if (dialog!=null) {
+                                uasDialogs.terminate(dialog);
+                                transaction.sendResponse(createResponse(request, 200, "OK", null));
+                            } else
+                                transaction.sendResponse(createResponse(request, 481, 
+                                        "Call/Transaction Does Not Exist", null));
+                            break;
+                        default:
+                            transaction.sendResponse(createResponse(request, 405, "Method Not Allowed", null));
+                    }
+                } catch (SipMessageException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void processResponse(SipClientTransaction transaction, SipResponse response) {
+            }
+
+            @Override
+            public void processStray(SipMessage message, InetSocketAddress source) {
+                if (message instanceof SipRequest) {
+                    final SipDialog dialog = uasDialogs.find(message);
+                    if (dialog!=null)
+                        uasDialogs.confirm(dialog);
+                }
+            }
+
+            @Override
+            public void processTimeout(SipTransaction transaction) {
+            }
+
+            @Override
+            public void processTransportError(SipTransaction transaction, Exception error) {
+            }
+
+            @Override
+            public void transactionTerminated(SipTransaction transaction) {
+            }
+        }
+    }
+}
@@ -39,6 +39,19 @@ public class SipUtilsTest {
     private final LoggerHelper loggerHelper = new LoggerHelper(LogLevel.TRACE, "Decoder", "Decoder. ", logger);
     
     
+    @Test
+    public void getParamTest() throws Exception {
+        String via = "SIP/2.0/UDP 10.0.0.1:5060;rport;Branch=z9hG4bK776;received=10.0.0.2";
+        assertEquals("z9hG4bK776", SipUtils.getParam(via, "branch"));
+        assertEquals("", SipUtils.getParam(via, "rport"));
+        assertNull(SipUtils.getParam(via, "maddr"));
+        //the parameters of the URI and of the quoted display name are skipped
+        String to = "\"Bob;tag=1\" <sip:bob@example.com;tag=2> ; tag = 3";
+        assertEquals("3", SipUtils.getParam(to, "tag"));
+        assertNull(SipUtils.getParam("<sip:bob@example.com;tag=2>", "tag"));
+        assertNull(SipUtils.getParam(null, "tag"));
+    }
+    
     @Test
     public void splitTest() throws Exception {
         String[] arr = new String[2];
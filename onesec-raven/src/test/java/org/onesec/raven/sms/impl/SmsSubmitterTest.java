@@ -0,0 +1,385 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sms.impl;
+
+import com.logica.smpp.pdu.SubmitSM;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.easymock.IMocksControl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.onesec.raven.NodeAdapter;
+import org.onesec.raven.impl.LatencyStat;
+import org.onesec.raven.sms.MessageUnit;
+import org.onesec.raven.sms.MessageUnitListener;
+import org.onesec.raven.sms.MessageUnitStatus;
+import org.onesec.raven.sms.ShortMessageListener;
+import org.onesec.raven.sms.ShortTextMessage;
+import org.onesec.raven.sms.SmsConfig;
+import org.onesec.raven.sms.queue.OutQueue;
+import org.raven.log.LogLevel;
+import org.raven.sched.ExecutorService;
+import org.raven.sched.ExecutorServiceException;
+import org.raven.sched.Task;
+import org.raven.tree.Node;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.easymock.EasyMock.*;
+
+/**
+ * The submitter works against the local SMSC simulator: the simulator responds to every submit after the
+ * fixed latency, so the throughput is limited by the window (the number of the unconfirmed units).
+ *
+ * @author Mikhail Titov
+ */
+public class SmsSubmitterTest extends Assert {
+    private final static Logger logger = LoggerFactory.getLogger(SmsSubmitterTest.class);
+    private final static LoggerHelper loggerHelper = new LoggerHelper(LogLevel.WARN, "SMS. ", null, logger);
+    
+    private IMocksControl mocks;
+    private Node owner;
+    private TestExecutor executor;
+    private ScheduledExecutorService smscTimer;
+
+    @Before
+    public void prepare() {
+        mocks = createControl();
+        owner = mocks.createMock("owner", Node.class);
+        expect(owner.getLogger()).andReturn(logger).anyTimes();
+        expect(owner.getLogLevel()).andReturn(LogLevel.WARN).anyTimes();
+        expect(owner.getName()).andReturn("owner").anyTimes();
+        expect(owner.isLogLevelEnabled(anyObject(LogLevel.class))).andReturn(Boolean.TRUE).anyTimes();
+        mocks.replay();
+        executor = new TestExecutor();
+        smscTimer = Executors.newScheduledThreadPool(2);
+    }
+    
+    @After
+    public void shutdown() {
+        executor.stop();
+        smscTimer.shutdownNow();
+        mocks.verify();
+    }
+    
+    @Test
+    public void windowTest() throws Exception {
+        SmscSimulator smsc = runSimulation(500, 10, 0, 5, 0);
+        assertEquals(500, smsc.confirmed.get());
+        assertEquals(10, smsc.maxOutstanding.get());
+        //the units are submitted by the windows, not by the polling cycles
+        assertTrue(smsc.getElapsedTime() < 500/10*5*4);
+    }
+
+    @Test
+    public void rateLimitTest() throws Exception {
+        //100 units per second with the burst of 100 units, so the last 50 units take 500 ms
+        SmscSimulator smsc = runSimulation(150, 100, 100, 1, 0);
+        assertEquals(150, smsc.confirmed.get());
+        assertTrue(smsc.getElapsedTime() >= 450);
+    }
+
+    @Test
+    public void throttledTest() throws Exception {
+        SmscSimulator smsc = runSimulation(20, 5, 0, 1, 200);
+        assertEquals(20, smsc.confirmed.get());
+        assertEquals(1, smsc.throttled.get());
+        assertTrue(smsc.getElapsedTime() >= 200);
+    }
+
+    @Test @Ignore
+    public void windowBenchmark() throws Exception {
+        for (int window: new int[]{1, 10, 50, 100}) {
+            SmscSimulator smsc = runSimulation(2000, window, 0, 10, 0);
+            System.out.println(String.format(
+                    "Window: %d; submits/sec: %d; submit to response latency p50/p99: %d/%d ms", 
+                    window, smsc.confirmed.get()*1000/Math.max(1, smsc.getElapsedTime()),
+                    TimeUnit.NANOSECONDS.toMillis(smsc.latencyStat.getPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMillis(smsc.latencyStat.getPercentile(99))));
+        }
+    }
+    
+    private SmscSimulator runSimulation(int count, int window, long rate, long latency, long throttledDelay) 
+        throws Exception 
+    {
+        OutQueue queue = new OutQueue(createConfig(count, window, rate), loggerHelper);
+        SmscSimulator smsc = new SmscSimulator(count, latency, throttledDelay);
+        SmsSubmitter submitter = new SmsSubmitter(owner, queue, executor, smsc, 10, loggerHelper);
+        smsc.submitter = submitter;
+        smsc.start = System.currentTimeMillis();
+        for (int i=0; i<count; ++i) {
+            assertTrue(queue.addMessage(new FakeMessage(new FakeUnit(i+1, "7900"+(i%100)))));
+            submitter.wakeUp();
+        }
+        assertTrue(smsc.handled.await(30, TimeUnit.SECONDS));
+        assertTrue(smsc.queueEmpty.await(1, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+        submitter.stop();
+        return smsc;
+    }
+    
+    private SmsConfig createConfig(final int count, final int window, final long rate) {
+        return (SmsConfig) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{SmsConfig.class}, 
+            new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "getMaxMessagesInQueue": return count;
+                        case "getMaxUnconfirmed": return window;
+                        case "getMaxMessageUnitsPerTimeUnit": return rate;
+                        case "getMaxMessageUnitsTimeQuantity": return 1l;
+                        case "getMaxMessageUnitsTimeUnit": return TimeUnit.SECONDS;
+                        case "getMaxWaitForResp": return TimeUnit.MINUTES.toMillis(1);
+                        default: throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+    }
+    
+    private class SmscSimulator implements SmsSubmitter.Sender {
+        private final long latency;
+        private final long throttledDelay;
+        private final CountDownLatch handled;
+        private final CountDownLatch queueEmpty = new CountDownLatch(1);
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger maxOutstanding = new AtomicInteger();
+        private final AtomicInteger confirmed = new AtomicInteger();
+        private final AtomicInteger throttled = new AtomicInteger();
+        private final AtomicBoolean throttle;
+        private final LatencyStat latencyStat = new LatencyStat();
+        private volatile SmsSubmitter submitter;
+        private volatile long start;
+        private volatile long finish;
+
+        public SmscSimulator(int count, long latency, long throttledDelay) {
+            this.latency = latency;
+            this.throttledDelay = throttledDelay;
+            this.handled = new CountDownLatch(count);
+            this.throttle = new AtomicBoolean(throttledDelay>0);
+        }
+
+        @Override
+        public boolean send(MessageUnit unit) throws Exception {
+            final int cur = outstanding.incrementAndGet();
+            if (cur>maxOutstanding.get())
+                maxOutstanding.set(cur);
+            smscTimer.schedule(new Response((FakeUnit) unit, System.nanoTime()), latency, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        @Override
+        public void queueEmpty() {
+            queueEmpty.countDown();
+        }
+        
+        public long getElapsedTime() {
+            return finish-start;
+        }
+        
+        private class Response implements Runnable {
+            private final FakeUnit unit;
+            private final long submitTime;
+
+            public Response(FakeUnit unit, long submitTime) {
+                this.unit = unit;
+                this.submitTime = submitTime;
+            }
+
+            @Override
+            public void run() {
+                if (unit.getStatus()!=MessageUnitStatus.SUBMITTED) {
+                    //the response was received before the unit.submitted()
+                    smscTimer.schedule(this, 1, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                outstanding.decrementAndGet();
+                //the transceiver worker does the same on the responses of the SMSC
+                if (throttle.compareAndSet(true, false)) {
+                    throttled.incrementAndGet();
+                    submitter.suspend(throttledDelay);
+                    unit.tryWhenReady();
+                } else {
+                    latencyStat.add(System.nanoTime()-submitTime);
+                    confirmed.incrementAndGet();
+                    unit.confirmed();
+                    finish = System.currentTimeMillis();
+                    handled.countDown();
+                }
+                submitter.wakeUp();
+            }
+        }
+    }
+    
+    private class TestExecutor extends NodeAdapter implements ExecutorService {
+        private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+        public void stop() {
+            scheduler.shutdownNow();
+        }
+
+        public void execute(Task task) throws ExecutorServiceException {
+            executeQuietly(task);
+        }
+
+        public void execute(long delay, Task task) throws ExecutorServiceException {
+            executeQuietly(delay, task);
+        }
+
+        public boolean executeQuietly(final Task task) {
+            return executeQuietly(0, task);
+        }
+
+        public boolean executeQuietly(final long delay, final Task task) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    task.run();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+    
+    private static class FakeMessage implements ShortTextMessage {
+        private final MessageUnit[] units;
+
+        public FakeMessage(FakeUnit unit) {
+            this.units = new MessageUnit[]{unit};
+            unit.message = this;
+        }
+
+        @Override public MessageUnit[] getUnits() {
+            return units;
+        }
+        @Override public long getId() {
+            return 0;
+        }
+        @Override public void setMessageId(String messageId) { }
+        @Override public SmsTransceiverNode.RecordHolder getOriginalMessage() {
+            return null;
+        }
+        @Override public int getUnitsCount() {
+            return units.length;
+        }
+        @Override public String getDst() {
+            return units[0].getDst();
+        }
+        @Override public String getMessage() {
+            return null;
+        }
+        @Override public long getHandledTime() {
+            return 0;
+        }
+        @Override public void addListener(ShortMessageListener listener) { }
+    }
+    
+    private static class FakeUnit implements MessageUnit {
+        private final int seq;
+        private final String dst;
+        private final List<MessageUnitListener> listeners = new ArrayList<>(1);
+        private ShortTextMessage message;
+        private volatile MessageUnitStatus status = MessageUnitStatus.READY;
+        private volatile long xtime;
+        private int attempts;
+
+        public FakeUnit(int seq, String dst) {
+            this.seq = seq;
+            this.dst = dst;
+        }
+        
+        private void changeStatusTo(MessageUnitStatus newStatus, long interval) {
+            final MessageUnitStatus oldStatus;
+            synchronized(this) {
+                oldStatus = status;
+                if (oldStatus==newStatus || oldStatus==MessageUnitStatus.CONFIRMED)
+                    return;
+                if (newStatus==MessageUnitStatus.SUBMITTED)
+                    ++attempts;
+                status = newStatus;
+                xtime = System.currentTimeMillis()+interval;
+            }
+            //the listeners are called out of the lock as in the MessageUnitImpl
+            for (MessageUnitListener listener: listeners)
+                listener.statusChanged(this, oldStatus, newStatus);
+        }
+
+        @Override public ShortTextMessage getMessage() {
+            return message;
+        }
+        @Override public void submitted() {
+            changeStatusTo(MessageUnitStatus.SUBMITTED, 0);
+        }
+        @Override public void fatal() {
+            changeStatusTo(MessageUnitStatus.FATAL, 0);
+        }
+        @Override public void confirmed() {
+            changeStatusTo(MessageUnitStatus.CONFIRMED, 0);
+        }
+        @Override public void delay(long interval) {
+            changeStatusTo(MessageUnitStatus.DELAYED, interval);
+        }
+        @Override public void tryWhenReady() {
+            changeStatusTo(MessageUnitStatus.TRY_WHEN_READY, 0);
+        }
+        @Override public SubmitSM getPdu() {
+            return null;
+        }
+        @Override public String getDst() {
+            return dst;
+        }
+        @Override public MessageUnitStatus getStatus() {
+            return status;
+        }
+        @Override public long getXTime() {
+            return xtime;
+        }
+        @Override public synchronized int getAttempts() {
+            return attempts;
+        }
+        @Override public long getFd() {
+            return 0;
+        }
+        @Override public long getConfirmTime() {
+            return 0;
+        }
+        @Override public int getSequenceNumber() {
+            return seq;
+        }
+        @Override public MessageUnitStatus checkStatus() {
+            final MessageUnitStatus curStatus = status;
+            if (   curStatus==MessageUnitStatus.TRY_WHEN_READY 
+                || (curStatus==MessageUnitStatus.DELAYED && System.currentTimeMillis()>xtime))
+            {
+                changeStatusTo(MessageUnitStatus.READY, 0);
+            }
+            return status;
+        }
+        @Override public MessageUnit addListener(MessageUnitListener listener) {
+            listeners.add(listener);
+            return this;
+        }
+    }
+}
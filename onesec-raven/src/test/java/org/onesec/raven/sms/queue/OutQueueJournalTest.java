@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Mikhail Titov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onesec.raven.sms.queue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.easymock.IArgumentMatcher;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.raven.ds.RecordSchema;
+import org.raven.ds.RecordSchemaField;
+import org.raven.ds.RecordSchemaFieldType;
+import org.raven.log.LogLevel;
+import org.raven.sched.ExecutorService;
+import org.raven.sched.Task;
+import org.raven.tree.impl.LoggerHelper;
+import org.slf4j.LoggerFactory;
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author Mikhail Titov
+ */
+public class OutQueueJournalTest extends Assert {
+    private final static LoggerHelper logger = new LoggerHelper(
+            LogLevel.TRACE, "SMS. ", null, LoggerFactory.getLogger(OutQueueJournalTest.class));
+    private File file;
+    private RecordSchema schema;
+    private ExecutorService executor;
+    private List<Task> tasks;
+
+    @Before
+    public void prepare() {
+        file = new File("target/out_queue_journal_test.dat");
+        file.getParentFile().mkdirs();
+        for (File f: file.getParentFile().listFiles())
+            if (f.getName().startsWith(file.getName()))
+                f.delete();
+        schema = createMock(RecordSchema.class);
+        RecordSchemaField[] fields = new RecordSchemaField[]{
+                createField("id", RecordSchemaFieldType.LONG),
+                createField("message", RecordSchemaFieldType.STRING),
+                createField("address", RecordSchemaFieldType.STRING),
+                createField("ts", RecordSchemaFieldType.TIMESTAMP)};
+        expect(schema.getFields()).andReturn(fields).anyTimes();
+        tasks = new ArrayList<>();
+        executor = createMock(ExecutorService.class);
+        expect(executor.executeQuietly(collectTask(tasks))).andReturn(true).anyTimes();
+        replay(schema, executor);
+        for (RecordSchemaField field: fields)
+            replay(field);
+    }
+
+    @Test
+    public void replayTest() throws Exception {
+        OutQueueJournal journal = createJournal();
+        assertTrue(journal.open().isEmpty());
+        Map<Object, Object> optParams = new HashMap<>();
+        optParams.put("0x1403", "test");
+        optParams.put((short)0x1404, new byte[]{1, 2});
+        long key1 = journal.messageQueued(createValues(1, "message 1"), null);
+        Map<String, Object> values2 = createValues(2, "message 2");
+        values2.put("ts", new Timestamp(1000l));
+        //the field is absent in the journal schema
+        values2.put("unknown", new Object());
+        long key2 = journal.messageQueued(values2, optParams);
+        long key3 = journal.messageQueued(createValues(3, "message 3"), null);
+        journal.unitConfirmed(key2, 1, "abc");
+        journal.messageHandled(key1);
+        assertEquals(2, journal.getPendingCount());
+        //crash: the journal is not closed
+
+        journal = createJournal();
+        List<OutQueueJournal.PendingMessage> messages = journal.open();
+        assertEquals(2, messages.size());
+        OutQueueJournal.PendingMessage message = messages.get(0);
+        assertEquals(key2, message.getKey());
+        Map<String, Object> values = message.getValues();
+        assertEquals(4, values.size());
+        assertEquals(2l, values.get("id"));
+        assertEquals("message 2", values.get("message"));
+        assertEquals(new Timestamp(1000l), values.get("ts"));
+        Map<Object, Object> params = message.getOptionalParameters();
+        assertEquals(2, params.size());
+        assertEquals("test", params.get("0x1403"));
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) params.get("5124"));
+        assertFalse(message.isUnitConfirmed(0));
+        assertTrue(message.isUnitConfirmed(1));
+        assertEquals("abc", message.getMessageId());
+        message = messages.get(1);
+        assertEquals(key3, message.getKey());
+        assertNull(message.getOptionalParameters());
+        assertNull(message.getMessageId());
+        //the new keys must not collide with the replayed ones
+        assertTrue(journal.messageQueued(createValues(4, "message 4"), null) > key3);
+        journal.close();
+    }
+
+    @Test(expected=java.io.IOException.class)
+    public void invalidValueTypeTest() throws Exception {
+        OutQueueJournal journal = createJournal();
+        journal.open();
+        try {
+            journal.messageQueued(createValues(1, "message 1"), null);
+            Map<String, Object> values = createValues(2, "message 2");
+            values.put("ts", "not a date");
+            journal.messageQueued(values, null);
+        } finally {
+            assertEquals(1, journal.getPendingCount());
+            journal.close();
+        }
+    }
+
+    @Test
+    public void tornTailTest() throws Exception {
+        OutQueueJournal journal = createJournal();
+        journal.open();
+        journal.messageQueued(createValues(1, "message 1"), null);
+        journal.messageQueued(createValues(2, "message 2"), null);
+        journal.close();
+        //the crash in the middle of the entry write
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0x4F, 0x51, 0x4A, 0x45, 0, 0, 0, 100, 1, 2, 3});
+        }
+        journal = createJournal();
+        assertEquals(2, journal.open().size());
+        journal.messageQueued(createValues(3, "message 3"), null);
+        journal.close();
+
+        journal = createJournal();
+        assertEquals(3, journal.open().size());
+        journal.close();
+    }
+
+    @Test
+    public void corruptedEntryTest() throws Exception {
+        OutQueueJournal journal = createJournal();
+        journal.open();
+        long key1 = journal.messageQueued(createValues(1, "message 1"), null);
+        long size = journal.getSize();
+        journal.messageQueued(createValues(2, "message 2"), null);
+        long key3 = journal.messageQueued(createValues(3, "message 3"), null);
+        journal.unitConfirmed(key3, 0, "id3");
+        journal.close();
+        //corrupting the payload of the second message
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(size+20);
+            raf.write(raf.read()^0xFF);
+        }
+        journal = createJournal();
+        List<OutQueueJournal.PendingMessage> messages = journal.open();
+        assertEquals(2, messages.size());
+        assertEquals(key1, messages.get(0).getKey());
+        assertEquals(key3, messages.get(1).getKey());
+        assertTrue(messages.get(1).isUnitConfirmed(0));
+        journal.close();
+        int copies = 0;
+        for (File f: file.getParentFile().listFiles())
+            if (f.getName().startsWith(file.getName()+".corrupted."))
+                ++copies;
+        assertEquals(1, copies);
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        OutQueueJournal journal = createJournal(4096, 0);
+        journal.open();
+        long pendingKey = journal.messageQueued(createValues(0, "pending"), null);
+        long appendedKey = 0;
+        for (int i=1; i<1000; ++i) {
+            long key = journal.messageQueued(createValues(i, "message "+i), null);
+            journal.unitConfirmed(key, 0, "id"+i);
+            journal.messageHandled(key);
+            //the compaction is not executed by the writer
+            if (!tasks.isEmpty()) {
+                assertEquals(1, tasks.size());
+                appendedKey = journal.messageQueued(createValues(-i, "appended"), null);
+                tasks.remove(0).run();
+                journal.messageHandled(appendedKey);
+            }
+            assertTrue(journal.getSize() < 3*4096);
+        }
+        assertTrue(appendedKey > 0);
+        assertEquals(1, journal.getPendingCount());
+        journal.close();
+
+        journal = createJournal();
+        List<OutQueueJournal.PendingMessage> messages = journal.open();
+        assertEquals(1, messages.size());
+        assertEquals(pendingKey, messages.get(0).getKey());
+        journal.close();
+    }
+
+    @Test
+    public void groupCommitTest() throws Exception {
+        final OutQueueJournal journal = createJournal(OutQueueJournal.DEFAULT_COMPACT_THRESHOLD, 5);
+        journal.open();
+        final int threadsCount = 8;
+        final int messagesCount = 50;
+        final CountDownLatch latch = new CountDownLatch(threadsCount);
+        final AtomicInteger errors = new AtomicInteger();
+        for (int t=0; t<threadsCount; ++t) {
+            final int threadNum = t;
+            new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int i=0; i<messagesCount; ++i)
+                            journal.messageQueued(createValues(threadNum*1000+i, "message"), null);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        latch.await();
+        assertEquals(0, errors.get());
+        assertEquals(threadsCount*messagesCount, journal.getPendingCount());
+        assertTrue(journal.getSyncsCount() < threadsCount*messagesCount/2);
+        journal.close();
+        assertEquals(threadsCount*messagesCount, createJournal().open().size());
+    }
+
+    private OutQueueJournal createJournal() {
+        return createJournal(OutQueueJournal.DEFAULT_COMPACT_THRESHOLD, OutQueueJournal.DEFAULT_GROUP_COMMIT_DELAY);
+    }
+
+    private OutQueueJournal createJournal(long compactThreshold, long groupCommitDelay) {
+        return new OutQueueJournal(file, schema, executor, null, logger, compactThreshold, groupCommitDelay);
+    }
+
+    private static RecordSchemaField createField(String name, RecordSchemaFieldType type) {
+        RecordSchemaField field = createMock(RecordSchemaField.class);
+        expect(field.getName()).andReturn(name).anyTimes();
+        expect(field.getFieldType()).andReturn(type).anyTimes();
+        return field;
+    }
+
+    private static Task collectTask(final List<Task> tasks) {
+        reportMatcher(new IArgumentMatcher() {
+            public boolean matches(Object argument) {
+                tasks.add((Task) argument);
+                return true;
+            }
+            public void appendTo(StringBuffer buffer) {
+            }
+        });
+        return null;
+    }
+
+    private static Map<String, Object> createValues(long id, String message) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("id", id);
+        values.put("message", message);
+        values.put("address", "79001234567");
+        return values;
+    }
+}
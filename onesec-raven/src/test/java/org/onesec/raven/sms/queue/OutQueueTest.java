@@ -15,6 +15,12 @@
  */
 package org.onesec.raven.sms.queue;
 
+import com.logica.smpp.pdu.SubmitSM;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import mockit.Expectations;
 import mockit.Mocked;
@@ -24,10 +30,14 @@ import org.easymock.IMocksControl;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.onesec.raven.sms.MessageUnit;
+import org.onesec.raven.sms.MessageUnitListener;
+import org.onesec.raven.sms.ShortMessageListener;
 import org.onesec.raven.sms.ShortTextMessage;
 import org.onesec.raven.sms.SmsConfig;
+import org.onesec.raven.sms.impl.SmsTransceiverNode;
 import org.raven.log.LogLevel;
 import org.raven.tree.impl.LoggerHelper;
 import org.slf4j.Logger;
@@ -91,7 +101,7 @@ public class OutQueueTest extends Assert {
         assertFalse(queue.isEmpty());
         
         queue.statusChanged(unit1, MessageUnitStatus.SUBMITTED, MessageUnitStatus.CONFIRMED);
-        assertFalse(queue.isEmpty());
+        assertTrue(queue.isEmpty());
         assertEquals(0, queue.howManyUnconfirmed());
         assertNull(queue.getNext());
         assertTrue(queue.isEmpty());
@@ -183,6 +193,64 @@ public class OutQueueTest extends Assert {
         assertEquals(0, queue.getUnitsInPeriod());
     }
     
+    /**
+     * The tenth part of the queue (at the head) is not ready: the units waiting for the response and the 
+     * delayed units (that block the half of the destinations). The rest units are taken from the queue, 
+     * submitted and confirmed.
+     */
+    @Test @Ignore
+    public void throughputBenchmark() {
+        mocks = null;
+        for (int count: new int[]{10000, 100000, 1000000})
+            runBenchmark(count, 1000);
+    }
+    
+    private void runBenchmark(int count, int destinations) {
+        OutQueue queue = new OutQueue(createBenchmarkConfig(), 
+                new LoggerHelper(LogLevel.WARN, "SMS. ", null, logger));
+        FakeUnit[] units = new FakeUnit[count];
+        long ts = System.nanoTime();
+        for (int i=0; i<count; ++i) {
+            units[i] = new FakeUnit(i, "7900"+(i%destinations));
+            assertTrue(queue.addMessage(new FakeMessage(units[i])));
+        }
+        long addTime = System.nanoTime()-ts;
+        int notReady = count/10;
+        for (int i=0; i<notReady; ++i) {
+            units[i].submitted();
+            if (i%2==0 && i<destinations)
+                units[i].delay(TimeUnit.MINUTES.toMillis(1));
+        }
+        int handled = 0;
+        ts = System.nanoTime();
+        MessageUnit unit;
+        while ((unit = queue.getNext()) != null) {
+            unit.submitted();
+            unit.confirmed();
+            ++handled;
+        }
+        long handleTime = System.nanoTime()-ts;
+        assertEquals((count-notReady)/2, handled);
+        System.out.println(String.format(
+                "Units in queue: %d; add: %d ns/unit; getNext+submit+confirm: %d ns/unit (%d units handled)", 
+                count, addTime/count, handleTime/handled, handled));
+    }
+    
+    private SmsConfig createBenchmarkConfig() {
+        return (SmsConfig) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{SmsConfig.class}, 
+            new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "getMaxMessagesInQueue": 
+                        case "getMaxUnconfirmed": return Integer.MAX_VALUE;
+                        case "getMaxMessageUnitsPerTimeUnit": return 0l;
+                        case "getMaxWaitForResp": return TimeUnit.MINUTES.toMillis(1);
+                        default: throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+    }
+    
     private void createMocksForMaxMessagesPerTimeUnit() {
         config = mocks.createMock(SmsConfig.class);
         mess1 = mocks.createMock("mess1", ShortTextMessage.class);
@@ -195,6 +263,7 @@ public class OutQueueTest extends Assert {
         expect(config.getMaxMessageUnitsTimeQuantity()).andReturn(1l).anyTimes();
         expect(config.getMaxMessageUnitsTimeUnit()).andReturn(TimeUnit.SECONDS).anyTimes();
         expect(config.getMaxUnconfirmed()).andReturn(10).anyTimes();
+        expect(config.getMaxWaitForResp()).andReturn(60000l).anyTimes();
         
         //on addMessage()
         expect(mess1.getUnits()).andReturn(new MessageUnit[]{unit1});
@@ -213,10 +282,7 @@ public class OutQueueTest extends Assert {
         //on unit1.submitted()
         expect(unit1.getSequenceNumber()).andReturn(1);
         
-        //on getNext()
-        expect(unit1.getDst()).andReturn("123");
-        expect(unit1.checkStatus()).andReturn(MessageUnitStatus.SUBMITTED);
-        expect(unit1.getStatus()).andReturn(MessageUnitStatus.SUBMITTED);
+        //on getNext(). The submitted unit is not checked until the response timeout
         expect(unit2.getDst()).andReturn("123");
         expect(unit2.checkStatus()).andReturn(MessageUnitStatus.READY);
         
@@ -262,6 +328,7 @@ public class OutQueueTest extends Assert {
         unit1 = mocks.createMock(MessageUnit.class);
         
         expect(config.getMaxMessageUnitsPerTimeUnit()).andReturn(0l).anyTimes();
+        expect(config.getMaxWaitForResp()).andReturn(60000l).anyTimes();
         //on addMessage()
         expect(config.getMaxMessagesInQueue()).andReturn(1).times(1);
         expect(mess1.getUnits()).andReturn(new MessageUnit[]{unit1});
@@ -271,17 +338,11 @@ public class OutQueueTest extends Assert {
         //on MessageUnit.submitted()
         expect(unit1.getSequenceNumber()).andReturn(1);       
         expect(config.getMaxUnconfirmed()).andReturn(2);
-        expect(unit1.getDst()).andReturn("123");
-        expect(unit1.checkStatus()).andReturn(MessageUnitStatus.SUBMITTED);
-        expect(unit1.getStatus()).andReturn(MessageUnitStatus.SUBMITTED);
         
         //on MessageUnit.confirmed
         expect(config.getMaxUnconfirmed()).andReturn(2);        
-        expect(unit1.getDst()).andReturn("123");
-        expect(unit1.checkStatus()).andReturn(MessageUnitStatus.CONFIRMED);
         expect(unit1.getSequenceNumber()).andReturn(1);
         expect(unit1.getConfirmTime()).andReturn(1l);
-        expect(unit1.getStatus()).andReturn(MessageUnitStatus.CONFIRMED);
         
         
         mocks.replay();
@@ -302,9 +363,6 @@ public class OutQueueTest extends Assert {
         //on MessageUnit.fatal
         expect(unit1.getSequenceNumber()).andReturn(1);
         expect(config.getMaxUnconfirmed()).andReturn(2);        
-        expect(unit1.getDst()).andReturn("123");
-        expect(unit1.checkStatus()).andReturn(MessageUnitStatus.FATAL);
-        expect(unit1.getStatus()).andReturn(MessageUnitStatus.FATAL);
         
         mocks.replay();
     }
@@ -327,17 +385,119 @@ public class OutQueueTest extends Assert {
         
         //on first getNext() when direction locked
         expect(config.getMaxUnconfirmed()).andReturn(2);        
-        expect(unit1.getDst()).andReturn("123");
-        expect(unit1.getStatus()).andReturn(MessageUnitStatus.READY);
         
         //on next getNext() when direction unlocked
         expect(config.getMaxUnconfirmed()).andReturn(2);        
-        expect(unit1.getDst()).andReturn("123");
         expect(unit1.checkStatus()).andReturn(MessageUnitStatus.READY);
         
         mocks.replay();
     }
 
+    private static class FakeMessage implements ShortTextMessage {
+        private final MessageUnit[] units;
+
+        public FakeMessage(FakeUnit unit) {
+            this.units = new MessageUnit[]{unit};
+            unit.message = this;
+        }
+
+        @Override public MessageUnit[] getUnits() {
+            return units;
+        }
+        @Override public long getId() {
+            return 0;
+        }
+        @Override public void setMessageId(String messageId) { }
+        @Override public SmsTransceiverNode.RecordHolder getOriginalMessage() {
+            return null;
+        }
+        @Override public int getUnitsCount() {
+            return units.length;
+        }
+        @Override public String getDst() {
+            return units[0].getDst();
+        }
+        @Override public String getMessage() {
+            return null;
+        }
+        @Override public long getHandledTime() {
+            return 0;
+        }
+        @Override public void addListener(ShortMessageListener listener) { }
+    }
+    
+    private static class FakeUnit implements MessageUnit {
+        private final int seq;
+        private final String dst;
+        private final List<MessageUnitListener> listeners = new ArrayList<>(1);
+        private ShortTextMessage message;
+        private MessageUnitStatus status = MessageUnitStatus.READY;
+        private long xtime;
+
+        public FakeUnit(int seq, String dst) {
+            this.seq = seq;
+            this.dst = dst;
+        }
+        
+        private void changeStatusTo(MessageUnitStatus newStatus, long interval) {
+            MessageUnitStatus oldStatus = status;
+            status = newStatus;
+            xtime = System.currentTimeMillis()+interval;
+            for (MessageUnitListener listener: listeners)
+                listener.statusChanged(this, oldStatus, newStatus);
+        }
+
+        @Override public ShortTextMessage getMessage() {
+            return message;
+        }
+        @Override public void submitted() {
+            changeStatusTo(MessageUnitStatus.SUBMITTED, 0);
+        }
+        @Override public void fatal() {
+            changeStatusTo(MessageUnitStatus.FATAL, 0);
+        }
+        @Override public void confirmed() {
+            changeStatusTo(MessageUnitStatus.CONFIRMED, 0);
+        }
+        @Override public void delay(long interval) {
+            changeStatusTo(MessageUnitStatus.DELAYED, interval);
+        }
+        @Override public void tryWhenReady() {
+            changeStatusTo(MessageUnitStatus.TRY_WHEN_READY, 0);
+        }
+        @Override public SubmitSM getPdu() {
+            return null;
+        }
+        @Override public String getDst() {
+            return dst;
+        }
+        @Override public MessageUnitStatus getStatus() {
+            return status;
+        }
+        @Override public long getXTime() {
+            return xtime;
+        }
+        @Override public int getAttempts() {
+            return 0;
+        }
+        @Override public long getFd() {
+            return 0;
+        }
+        @Override public long getConfirmTime() {
+            return 0;
+        }
+        @Override public int getSequenceNumber() {
+            return seq;
+        }
+        @Override public MessageUnitStatus checkStatus() {
+            return status;
+        }
+        @Override public MessageUnit addListener(MessageUnitListener listener) {
+            listeners.add(listener);
+            return this;
+        }
+    }
+
     private OutQueue createQueueAndAddMessage() {
         OutQueue queue = new OutQueue(config, loggerHelper);
         assertTrue(queue.addMessage(mess1));